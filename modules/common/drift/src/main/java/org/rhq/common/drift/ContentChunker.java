@@ -0,0 +1,267 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.common.drift;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.rhq.core.util.MessageDigestGenerator;
+
+/**
+ * Splits file content into chunks whose boundaries are defined by the content itself rather than by fixed offsets, so
+ * that inserting or removing bytes in a file only changes the chunks around the edit. Drift uses this to transfer and
+ * store only the chunks of a changed file that the server does not already have.
+ * <p/>
+ * Boundaries are found with a gear rolling hash: a boundary is declared after a byte at which the hash has no bits set
+ * under a mask. A stricter mask is used until the chunk reaches the average size and a looser one after it, which keeps
+ * chunk sizes close to the average. Chunks are never smaller than the minimum size, except at the end of the content,
+ * or larger than the maximum size. Each chunk is identified by the SHA-256 of its bytes.
+ * <p/>
+ * The chunks of a file are described by a manifest, written by {@link #writeManifest(List, Writer)}, that has one line
+ * per chunk, in order, of the form
+ * <pre>
+ *     &lt;chunk SHA-256&gt; &lt;chunk length&gt;
+ * </pre>
+ */
+public class ContentChunker {
+
+    /** Files smaller than this are transferred and stored whole. */
+    public static final long CHUNKING_THRESHOLD = 1024 * 1024;
+
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+    public static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /** The suffix of the name under which the manifest of a file is sent, appended to the file's SHA-256. */
+    public static final String MANIFEST_SUFFIX = ".chunks";
+
+    /** The suffix of the name under which a chunk is sent, appended to the chunk's SHA-256. */
+    public static final String CHUNK_SUFFIX = ".chunk";
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // any fixed table works, but it must never change or previously stored chunks would no longer be matched
+        long seed = 0x52485144726966L;
+        for (int i = 0; i < GEAR.length; ++i) {
+            // SplitMix64
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minChunkSize;
+
+    private final int averageChunkSize;
+
+    private final int maxChunkSize;
+
+    private final long strictMask;
+
+    private final long looseMask;
+
+    public ContentChunker() {
+        this(MIN_CHUNK_SIZE, AVERAGE_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * @param minChunkSize the smallest chunk, other than the last one
+     * @param averageChunkSize the expected chunk size, must be a power of two
+     * @param maxChunkSize the largest chunk
+     */
+    public ContentChunker(int minChunkSize, int averageChunkSize, int maxChunkSize) {
+        if (Integer.bitCount(averageChunkSize) != 1 || minChunkSize > averageChunkSize
+            || averageChunkSize > maxChunkSize || minChunkSize >= maxChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes [min=" + minChunkSize + ", average="
+                + averageChunkSize + ", max=" + maxChunkSize + "]");
+        }
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+
+        // a boundary is declared when the masked high bits of the hash are all zero, which happens once every
+        // 2^bits bytes on average; the high bits are used because they depend on the most recent bytes
+        int bits = Integer.numberOfTrailingZeros(averageChunkSize);
+        strictMask = highBits(bits + 2);
+        looseMask = highBits(Math.max(1, bits - 2));
+    }
+
+    /**
+     * Splits the file into chunks.
+     *
+     * @param file the file to split
+     * @return the chunks of the file, in order
+     * @throws IOException if the file could not be read
+     */
+    public List<Chunk> chunk(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return chunk(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Splits the content of the stream into chunks. The stream is read to its end but not closed.
+     *
+     * @param in the content to split
+     * @return the chunks of the content, in order
+     * @throws IOException if the stream could not be read
+     */
+    public List<Chunk> chunk(InputStream in) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        MessageDigest digest = new MessageDigestGenerator(MessageDigestGenerator.SHA_256).getMessageDigest();
+        byte[] buffer = new byte[64 * 1024];
+        long offset = 0;
+        int length = 0;
+        long hash = 0;
+
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            int start = 0;
+            for (int i = 0; i < read; ++i) {
+                ++length;
+                if (length <= minChunkSize) {
+                    // no boundary can be declared yet, and bytes before the minimum never influence one
+                    continue;
+                }
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                long mask = (length < averageChunkSize) ? strictMask : looseMask;
+                if ((hash & mask) == 0 || length == maxChunkSize) {
+                    digest.update(buffer, start, i + 1 - start);
+                    chunks.add(new Chunk(offset, length, toHex(digest.digest())));
+                    offset += length;
+                    start = i + 1;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, start, read - start);
+        }
+
+        if (length > 0) {
+            chunks.add(new Chunk(offset, length, toHex(digest.digest())));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Writes a manifest of chunks, one line per chunk.
+     */
+    public static void writeManifest(List<Chunk> chunks, Writer writer) throws IOException {
+        for (Chunk chunk : chunks) {
+            writer.write(chunk.getHash());
+            writer.write(' ');
+            writer.write(Integer.toString(chunk.getLength()));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a manifest written by {@link #writeManifest(List, Writer)}. The reader is not closed.
+     *
+     * @return the chunks, in order, with their offsets computed from the lengths of the chunks before them
+     */
+    public static List<Chunk> readManifest(Reader reader) throws IOException {
+        BufferedReader lines = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(
+            reader);
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        long offset = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            if (line.length() == 0) {
+                continue;
+            }
+            int separator = line.indexOf(' ');
+            if (separator == -1) {
+                throw new IOException("Invalid chunk manifest line [" + line + "]");
+            }
+            int length;
+            try {
+                length = Integer.parseInt(line.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk manifest line [" + line + "]");
+            }
+            chunks.add(new Chunk(offset, length, line.substring(0, separator)));
+            offset += length;
+        }
+        return chunks;
+    }
+
+    private static long highBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A chunk of content, identified by the SHA-256 of its bytes.
+     */
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final String hash;
+
+        public Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /** @return the position of the chunk's first byte in the content */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** @return the SHA-256 of the chunk's bytes */
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[hash=" + hash + ", offset=" + offset + ", length=" + length + "]";
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.common.drift;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import org.rhq.common.drift.ContentChunker.Chunk;
+
+public class ContentChunkerTest {
+
+    private Random random = new Random(42);
+
+    @Test
+    public void chunksCoverContentWithinSizeBounds() throws Exception {
+        byte[] content = randomBytes(3 * 1024 * 1024);
+        List<Chunk> chunks = new ContentChunker().chunk(new ByteArrayInputStream(content));
+
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); ++i) {
+            Chunk chunk = chunks.get(i);
+            assertEquals(chunk.getOffset(), offset, "Chunks should be contiguous");
+            assertTrue(chunk.getLength() <= ContentChunker.MAX_CHUNK_SIZE, "Chunk " + chunk + " is too large");
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.getLength() > ContentChunker.MIN_CHUNK_SIZE, "Chunk " + chunk + " is too small");
+            }
+            offset += chunk.getLength();
+        }
+        assertEquals(offset, content.length, "Chunks should cover all of the content");
+    }
+
+    @Test
+    public void chunkingIsDeterministic() throws Exception {
+        byte[] content = randomBytes(2 * 1024 * 1024);
+
+        assertEquals(hashes(new ContentChunker().chunk(new ByteArrayInputStream(content))),
+            hashes(new ContentChunker().chunk(new ByteArrayInputStream(content))),
+            "The same content should always be split into the same chunks");
+    }
+
+    @Test
+    public void insertingBytesOnlyChangesNearbyChunks() throws Exception {
+        byte[] content = randomBytes(4 * 1024 * 1024);
+        byte[] modified = new byte[content.length + 10];
+        int insertAt = content.length / 2;
+        System.arraycopy(content, 0, modified, 0, insertAt);
+        System.arraycopy(randomBytes(10), 0, modified, insertAt, 10);
+        System.arraycopy(content, insertAt, modified, insertAt + 10, content.length - insertAt);
+
+        ContentChunker chunker = new ContentChunker();
+        Set<String> original = hashes(chunker.chunk(new ByteArrayInputStream(content)));
+        List<Chunk> chunks = chunker.chunk(new ByteArrayInputStream(modified));
+
+        int changed = 0;
+        for (Chunk chunk : chunks) {
+            if (!original.contains(chunk.getHash())) {
+                ++changed;
+            }
+        }
+        assertTrue(changed <= 2, "Inserting 10 bytes should change at most 2 of " + chunks.size()
+            + " chunks but changed " + changed);
+    }
+
+    @Test
+    public void readWrittenManifest() throws Exception {
+        List<Chunk> chunks = new ContentChunker().chunk(new ByteArrayInputStream(randomBytes(1024 * 1024)));
+
+        StringWriter manifest = new StringWriter();
+        ContentChunker.writeManifest(chunks, manifest);
+        List<Chunk> actual = ContentChunker.readManifest(new StringReader(manifest.toString()));
+
+        assertEquals(actual.size(), chunks.size(), "The manifest should list every chunk");
+        for (int i = 0; i < chunks.size(); ++i) {
+            assertEquals(actual.get(i).getHash(), chunks.get(i).getHash());
+            assertEquals(actual.get(i).getLength(), chunks.get(i).getLength());
+            assertEquals(actual.get(i).getOffset(), chunks.get(i).getOffset());
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void averageChunkSizeMustBePowerOfTwo() {
+        new ContentChunker(1024, 3000, 8192);
+    }
+
+    private byte[] randomBytes(int numBytes) {
+        byte[] bytes = new byte[numBytes];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Set<String> hashes(List<Chunk> chunks) {
+        Set<String> hashes = new HashSet<String>();
+        for (Chunk chunk : chunks) {
+            hashes.add(chunk.getHash());
+        }
+        return hashes;
+    }
+}
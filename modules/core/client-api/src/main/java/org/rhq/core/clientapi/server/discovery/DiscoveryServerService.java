@@ -22,6 +22,7 @@
  */
 package org.rhq.core.clientapi.server.discovery;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -32,6 +33,7 @@ import org.rhq.core.communications.command.annotation.LimitedConcurrency;
 import org.rhq.core.communications.command.annotation.Timeout;
 import org.rhq.core.domain.discovery.AvailabilityReport;
 import org.rhq.core.domain.discovery.MergeResourceResponse;
+import org.rhq.core.domain.discovery.ResourceSyncHash;
 import org.rhq.core.domain.discovery.ResourceSyncInfo;
 import org.rhq.core.domain.measurement.ResourceMeasurementScheduleRequest;
 import org.rhq.core.domain.resource.InventoryStatus;
@@ -65,6 +67,37 @@ public interface DiscoveryServerService {
     ResourceSyncInfo mergeInventoryReport(InventoryReport inventoryReport)
         throws InvalidInventoryReportException, StaleTypeException;
 
+    /**
+     * Like {@link #mergeInventoryReport(InventoryReport)}, but rather than the full sync info tree of the platform,
+     * only the root of the platform's {@link ResourceSyncHash sync hash} tree is returned. The plugin container compares
+     * it against the hashes of its local inventory and calls {@link #getChildSyncHashes(Set)} to descend into the
+     * subtrees that differ, so a sync costs about as much as the number of Resources that actually changed.
+     *
+     * @param  inventoryReport a report containing updated inventory data
+     *
+     * @return the sync hash of the agent's platform, or <code>null</code> if the server does not have a platform for
+     *         the agent yet
+     *
+     * @throws InvalidInventoryReportException if the inventory report contains invalid data
+     */
+    @LimitedConcurrency(CONCURRENCY_LIMIT_INVENTORY_REPORT)
+    @Timeout(1000L * 60 * 30)
+    ResourceSyncHash mergeInventoryReportForHashedSync(InventoryReport inventoryReport)
+        throws InvalidInventoryReportException, StaleTypeException;
+
+    /**
+     * Returns the sync hashes of the direct children of the given Resources. Children that are
+     * {@link InventoryStatus#DELETED} on the server are included so the caller can tell them apart from children the
+     * server does not know about.
+     *
+     * @param  parentResourceIds ids of Resources previously returned by
+     *                           {@link #mergeInventoryReportForHashedSync(InventoryReport)} or by this method
+     *
+     * @return the children of each requested parent, keyed by the parent's id
+     */
+    @LimitedConcurrency(CONCURRENCY_LIMIT_INVENTORY_SYNC)
+    Map<Integer, List<ResourceSyncHash>> getChildSyncHashes(Set<Integer> parentResourceIds);
+
     /**
      * Merges a new availability report from the agent into the server. This updates the availability statuses of known
      * resources.
@@ -118,6 +118,18 @@ public interface DriftServerService {
     @Asynchronous(guaranteedDelivery = true)
     void sendFilesZip(int resourceId, String driftDefName, String token, long zipSize, InputStream zipStream);
 
+    /**
+     * The agent invokes this method before sending large files with {@link #sendFilesZip}, to find out which of their
+     * content chunks the server already stores. Only the missing chunks then need to be sent, along with a manifest of
+     * each file's chunks. See {@link org.rhq.common.drift.ContentChunker ContentChunker} for how files are chunked
+     * and how the chunks and manifests are named in the zip file.
+     *
+     * @param chunkHashes The SHA-256 hashes of the chunks the agent would send
+     * @return The hashes of the chunks that the server does not have, or <code>null</code> if the drift server
+     * plugin does not store content in chunks, in which case files must be sent whole
+     */
+    Set<String> findMissingDriftFileChunks(Set<String> chunkHashes);
+
     @Asynchronous
     void repeatChangeSet(int resourceId, String driftDefName, int version);
 
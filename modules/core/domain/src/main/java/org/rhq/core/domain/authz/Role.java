@@ -82,7 +82,19 @@ import org.rhq.core.domain.resource.group.ResourceGroup;
         + "                          JOIN ss.roles AS rr " //
         + "                         WHERE ss.id = :subjectId )"), //
     @NamedQuery(name = Role.QUERY_DYNAMIC_CONFIG_VALUES, query = "" //
-        + "SELECT r.name, r.name FROM Role AS r") })
+        + "SELECT r.name, r.name FROM Role AS r"), //
+    @NamedQuery(name = Role.QUERY_FIND_IDS_BY_SUBJECT_ID, query = "" //
+        + "SELECT r.id FROM Role AS r JOIN r.subjects AS s WHERE s.id = :subjectId"), //
+    @NamedQuery(name = Role.QUERY_FIND_GROUP_IDS_BY_ROLE_ID, query = "" //
+        + "SELECT g.id FROM Role AS r JOIN r.resourceGroups AS g WHERE r.id = :roleId"), //
+    @NamedQuery(name = Role.QUERY_FIND_IMPLICIT_RESOURCE_IDS_BY_ROLE_ID, query = "" //
+        + "   SELECT DISTINCT res.id " //
+        + "     FROM Role AS r " //
+        + "     JOIN r.resourceGroups AS g " //
+        + "     JOIN g.implicitResources AS res " //
+        + "    WHERE r.id = :roleId"), //
+    @NamedQuery(name = Role.QUERY_COUNT_BY_GROUP_IDS, query = "" //
+        + "SELECT COUNT(r) FROM Role AS r JOIN r.resourceGroups AS g WHERE g.id IN ( :groupIds )") })
 @SequenceGenerator(allocationSize = org.rhq.core.domain.util.Constants.ALLOCATION_SIZE, name = "RHQ_ROLE_ID_SEQ", sequenceName = "RHQ_ROLE_ID_SEQ")
 @Table(name = "RHQ_ROLE")
 public class Role implements Serializable {
@@ -93,6 +105,22 @@ public class Role implements Serializable {
 
     public static final String QUERY_DYNAMIC_CONFIG_VALUES = "Role.dynamicConfigValues";
 
+    // used to build the server's in-memory permission index
+    public static final String QUERY_FIND_IDS_BY_SUBJECT_ID = "Role.findIdsBySubjectId";
+    public static final String QUERY_FIND_GROUP_IDS_BY_ROLE_ID = "Role.findGroupIdsByRoleId";
+    public static final String QUERY_FIND_IMPLICIT_RESOURCE_IDS_BY_ROLE_ID = "Role.findImplicitResourceIdsByRoleId";
+    public static final String QUERY_COUNT_BY_GROUP_IDS = "Role.countByGroupIds";
+
+    /*
+     * The single row of RHQ_AUTHZ_GENERATION counts the changes to authorization data, so that the permission index of
+     * every server can tell when its entries are out of date.
+     */
+    public static final String NATIVE_QUERY_FIND_AUTHZ_GENERATION = "" //
+        + "SELECT GENERATION FROM RHQ_AUTHZ_GENERATION WHERE ID = 1";
+
+    public static final String NATIVE_UPDATE_AUTHZ_GENERATION = "" //
+        + "UPDATE RHQ_AUTHZ_GENERATION SET GENERATION = GENERATION + 1 WHERE ID = 1";
+
     private static final long serialVersionUID = 1L;
 
     @Column(name = "ID", nullable = false)
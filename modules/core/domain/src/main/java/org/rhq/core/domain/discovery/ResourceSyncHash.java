@@ -0,0 +1,163 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.domain.discovery;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+
+/**
+ * A node of the hash tree the agent and the server use to synchronize inventory without shipping the full
+ * {@link ResourceSyncInfo} tree. Besides the sync data of the Resource itself it carries a hash over the sync data of
+ * the Resource and all of its descendants, so both sides can skip entire subtrees whose hashes agree and only descend
+ * into the ones that differ.
+ *
+ * <p>Both sides must compute the hashes with {@link #nodeHash(int, String, long, InventoryStatus)} and
+ * {@link #subtreeHash(long, long)}. The children of a node are folded in as the plain sum of their subtree hashes so
+ * the result does not depend on the order children are visited in. Resources that are {@link InventoryStatus#DELETED}
+ * on the server and Resources not yet known to the server (id 0) on the agent do not contribute to the hash of their
+ * parent.</p>
+ */
+public class ResourceSyncHash implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+    private int id;
+    private String uuid;
+    private long mtime;
+    private InventoryStatus inventoryStatus;
+    private long subtreeHash;
+
+    public ResourceSyncHash() {
+    }
+
+    public ResourceSyncHash(int id, String uuid, long mtime, InventoryStatus inventoryStatus, long subtreeHash) {
+        this.id = id;
+        this.uuid = uuid;
+        this.mtime = mtime;
+        this.inventoryStatus = inventoryStatus;
+        this.subtreeHash = subtreeHash;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public InventoryStatus getInventoryStatus() {
+        return inventoryStatus;
+    }
+
+    /**
+     * @return the hash over this Resource and all of its descendants, or 0 for a {@link InventoryStatus#DELETED}
+     *         Resource
+     */
+    public long getSubtreeHash() {
+        return subtreeHash;
+    }
+
+    /**
+     * Hashes the sync data of a single Resource, i.e. exactly the data {@link ResourceSyncInfo} carries.
+     */
+    public static long nodeHash(int id, String uuid, long mtime, InventoryStatus inventoryStatus) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = (hash ^ id) * FNV_PRIME;
+        hash = (hash ^ mtime) * FNV_PRIME;
+        if (uuid != null) {
+            for (int i = 0, length = uuid.length(); i < length; ++i) {
+                hash = (hash ^ uuid.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // use the name rather than the ordinal so the hash does not depend on the declaration order of the enum
+        if (inventoryStatus != null) {
+            String status = inventoryStatus.name();
+            for (int i = 0, length = status.length(); i < length; ++i) {
+                hash = (hash ^ status.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Combines the {@link #nodeHash(int, String, long, InventoryStatus) node hash} of a Resource with the sum of the
+     * subtree hashes of its (contributing) children.
+     */
+    public static long subtreeHash(long nodeHash, long childSubtreeHashSum) {
+        return mix(nodeHash ^ (childSubtreeHashSum * GOLDEN_RATIO));
+    }
+
+    /**
+     * Computes the subtree hashes of the given Resource and its descendants the way the agent does, from its local
+     * inventory. Resources that were never synced with the server (id 0) are left out together with their
+     * descendants, and {@link InventoryStatus#DELETED} Resources hash to 0 and do not contribute to their parent, so
+     * the result matches what the server computes for the same tree.
+     *
+     * @param  resource      the root of the subtree
+     * @param  subtreeHashes receives the subtree hash of every Resource visited, keyed by uuid
+     *
+     * @return the subtree hash of the given Resource
+     */
+    public static long computeSubtreeHashes(Resource resource, Map<String, Long> subtreeHashes) {
+        long childSum = 0L;
+        for (Resource child : resource.getChildResources()) {
+            if (child.getId() != 0) {
+                childSum += computeSubtreeHashes(child, subtreeHashes);
+            }
+        }
+        long hash = 0L;
+        if (resource.getInventoryStatus() != InventoryStatus.DELETED) {
+            hash = subtreeHash(nodeHash(resource.getId(), resource.getUuid(), resource.getMtime(),
+                resource.getInventoryStatus()), childSum);
+        }
+        subtreeHashes.put(resource.getUuid(), hash);
+        return hash;
+    }
+
+    // the 64 bit finalizer of MurmurHash3, spreads every input bit over the whole result
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceSyncHash[id=" + id + ", uuid=" + uuid + ", mtime=" + mtime + ", status=" + inventoryStatus
+            + ", subtreeHash=" + Long.toHexString(subtreeHash) + "]";
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.domain.drift;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.sql.Blob;
+import java.sql.SQLException;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.Table;
+
+/**
+ * A content defined chunk of drift file content. Large drift files are not stored in a single blob but as an
+ * ordered list of chunks (RHQ_DRIFT_FILE_CHUNK_MAP), so that content shared by different versions of a file is
+ * stored, and transferred from the agent, only once. Like JPADriftFileBits this entity carries a Blob and must not
+ * be used client-side (gwt).
+ */
+@Entity
+@Table(name = "RHQ_DRIFT_FILE_CHUNK")
+@NamedQueries({
+    @NamedQuery(name = JPADriftFileChunk.QUERY_FIND_BY_ID, query = "FROM JPADriftFileChunk WHERE hashId = :hashId"),
+    @NamedQuery(name = JPADriftFileChunk.QUERY_FIND_EXISTING_IDS, query = "" //
+        + "SELECT c.hashId FROM JPADriftFileChunk c WHERE c.hashId IN ( :hashIds )") })
+public class JPADriftFileChunk implements Serializable {
+    public static final String QUERY_FIND_BY_ID = "JPADriftFileChunk.findById";
+    public static final String QUERY_FIND_EXISTING_IDS = "JPADriftFileChunk.findExistingIds";
+
+    /*
+     * The chunk map is a plain join table with an ordering column, it is only accessed natively.
+     */
+    public static final String NATIVE_INSERT_CHUNK_MAP = "" //
+        + "INSERT INTO RHQ_DRIFT_FILE_CHUNK_MAP (DRIFT_FILE_ID, CHUNK_INDEX, CHUNK_ID) VALUES (?, ?, ?)";
+
+    public static final String NATIVE_DELETE_CHUNK_MAP = "" //
+        + "DELETE FROM RHQ_DRIFT_FILE_CHUNK_MAP WHERE DRIFT_FILE_ID = ?";
+
+    public static final String NATIVE_FIND_CHUNK_IDS = "" //
+        + "SELECT CHUNK_ID FROM RHQ_DRIFT_FILE_CHUNK_MAP WHERE DRIFT_FILE_ID = ? ORDER BY CHUNK_INDEX";
+
+    /*
+     * Must select exactly the drift files removed by JPADriftFile.NATIVE_DELETE_ORPHANED_DRIFT_FILES, and be
+     * executed before it, otherwise the chunk map foreign key blocks the drift file delete.
+     */
+    public static final String NATIVE_DELETE_ORPHANED_CHUNK_MAPS = "" //
+        + "DELETE FROM RHQ_DRIFT_FILE_CHUNK_MAP " //
+        + " WHERE DRIFT_FILE_ID IN (SELECT HASH_ID FROM RHQ_DRIFT_FILE " //
+        + "                          WHERE (HASH_ID NOT IN (SELECT OLD_DRIFT_FILE FROM RHQ_DRIFT)) " //
+        + "                            AND (HASH_ID NOT IN (SELECT NEW_DRIFT_FILE FROM RHQ_DRIFT)) " //
+        + "                            AND CTIME < ?)";
+
+    /*
+     * The CTIME clause protects chunks that were just uploaded but whose manifest has not been stored yet.
+     */
+    public static final String NATIVE_DELETE_ORPHANED_CHUNKS = "" //
+        + "DELETE FROM RHQ_DRIFT_FILE_CHUNK " //
+        + " WHERE (HASH_ID NOT IN (SELECT CHUNK_ID FROM RHQ_DRIFT_FILE_CHUNK_MAP)) " //
+        + "   AND CTIME < ?";
+
+    private static final long serialVersionUID = 1L;
+
+    // the sha256 of the chunk content
+    @Id
+    @Column(name = "HASH_ID", nullable = false)
+    private String hashId;
+
+    @Column(name = "CTIME", nullable = false)
+    private Long ctime = -1L;
+
+    @Column(name = "DATA_SIZE", nullable = true)
+    private Long dataSize;
+
+    @Lob
+    @Column(name = "DATA", nullable = true)
+    private Blob data;
+
+    protected JPADriftFileChunk() {
+    }
+
+    public JPADriftFileChunk(String hashId) {
+        this.hashId = hashId;
+    }
+
+    @PrePersist
+    void onPersist() {
+        this.ctime = System.currentTimeMillis();
+    }
+
+    public String getHashId() {
+        return hashId;
+    }
+
+    public Long getCtime() {
+        return ctime;
+    }
+
+    public Long getDataSize() {
+        return dataSize;
+    }
+
+    public void setDataSize(Long dataSize) {
+        this.dataSize = dataSize;
+    }
+
+    public Blob getBlob() {
+        return data;
+    }
+
+    public InputStream getData() throws SQLException {
+        return data.getBinaryStream();
+    }
+
+    public void setData(Blob blob) {
+        this.data = blob;
+    }
+
+    @Override
+    public String toString() {
+        return "JPADriftFileChunk [hashId=" + hashId + ", dataSize=" + dataSize + "]";
+    }
+
+}
@@ -152,6 +152,16 @@ public class Availability implements Serializable {
 
     public static final String NATIVE_QUERY_PURGE = "DELETE FROM RHQ_AVAILABILITY WHERE END_TIME < ?";
 
+    /*
+     * The START_TIME restriction is implied by the END_TIME one, it lets the (RESOURCE_ID, START_TIME) index narrow
+     * the range being purged.
+     */
+    public static final String NATIVE_QUERY_PURGE_RESOURCE_RANGE = "" //
+        + "DELETE FROM RHQ_AVAILABILITY " //
+        + "WHERE RESOURCE_ID BETWEEN ? AND ? AND START_TIME < ? AND END_TIME < ?";
+    public static final String NATIVE_QUERY_FIND_RESOURCE_ID_RANGE = "" //
+        + "SELECT MIN(RESOURCE_ID), MAX(RESOURCE_ID) FROM RHQ_AVAILABILITY";
+
     @Column(name = "ID", nullable = false)
     @GeneratedValue(strategy = GenerationType.AUTO, generator = "Generator")
     @Id
@@ -98,6 +98,29 @@ public class MeasurementDataTrait extends MeasurementData {
         + "   AND rhq_measurement_data_trait.time_stamp = t2.time_stamp " // rewrote multi-column conditions as additional
         + "   AND rhq_measurement_data_trait.schedule_id = t2.schedule_id) "; // correlated restrictions to the delete table
 
+    /*
+     * Same as NATIVE_QUERY_PURGE, restricted to the schedules in [?, ?] so that it can be run in small chunks.
+     * Parameters: first schedule id, last schedule id, oldest, first schedule id, last schedule id
+     */
+    public static final String NATIVE_QUERY_PURGE_SCHEDULE_RANGE = "" //
+        + "DELETE FROM rhq_measurement_data_trait " //
+        + "WHERE rhq_measurement_data_trait.schedule_id BETWEEN ? AND ? " //
+        + "AND EXISTS " //
+        + "  (SELECT t2.schedule_id, t2.time_stamp " //
+        + "   FROM rhq_measurement_data_trait t2, " //
+        + "     (SELECT max(t4.time_stamp) as mx, t4.schedule_id as schedule_id " //
+        + "      FROM rhq_measurement_data_trait t4 " //
+        + "      WHERE t4.time_stamp < ? " //
+        + "      AND t4.schedule_id BETWEEN ? AND ? " //
+        + "      GROUP BY t4.schedule_id) t3 " //
+        + "   WHERE t2.schedule_id = t3.schedule_id " //
+        + "   AND t2.time_stamp < t3.mx " //
+        + "   AND rhq_measurement_data_trait.time_stamp = t2.time_stamp " //
+        + "   AND rhq_measurement_data_trait.schedule_id = t2.schedule_id) ";
+
+    public static final String NATIVE_QUERY_FIND_SCHEDULE_ID_RANGE = "" //
+        + "SELECT min(schedule_id), max(schedule_id) FROM rhq_measurement_data_trait";
+
     private static final long serialVersionUID = 1L;
 
     @Column(length = 255)
@@ -124,6 +124,9 @@ public class CallTimeData implements Serializable {
         if (value == null) {
             value = new CallTimeDataValue(beginTime, endTime);
             this.values.put(destination, value);
+        } else {
+            // the calls already added and the new ones are reported as one value, over both their time ranges
+            value.mergeTimeRange(beginTime, endTime);
         }
 
         return value;
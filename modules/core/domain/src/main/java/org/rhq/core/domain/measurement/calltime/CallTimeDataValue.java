@@ -166,6 +166,14 @@ public class CallTimeDataValue implements Serializable {
         this.count = count;
     }
 
+    /**
+     * Widens the time range of this value to include the given one.
+     */
+    void mergeTimeRange(Date beginTime, Date endTime) {
+        this.beginTime = Math.min(this.beginTime, beginTime.getTime());
+        this.endTime = Math.max(this.endTime, endTime.getTime());
+    }
+
     public void mergeCallTime(double callTime) {
         if (callTime < 0) {
             throw new IllegalArgumentException("Call time is a duration and so must be >= 0.");
@@ -732,6 +732,10 @@ import org.rhq.core.domain.util.Summary;
         + " WHERE r.id IN (:resourceIds ) "), //
     @NamedQuery(name = Resource.QUERY_FIND_RESOURCES_MARKED_FOR_ASYNC_DELETION, query = "" //
         + "SELECT r.id FROM Resource AS r WHERE r.agent IS NULL"),
+    @NamedQuery(name = Resource.QUERY_FIND_SYNC_DATA_BY_AGENT_OF_RESOURCE, query = "" //
+        + "SELECT r.id, r.uuid, r.mtime, r.inventoryStatus, p.id " //
+        + "  FROM Resource r LEFT JOIN r.parentResource p " //
+        + " WHERE r.agent.id = (SELECT rr.agent.id FROM Resource rr WHERE rr.id = :resourceId) "),
 
     @NamedQuery(name = Resource.QUERY_RESOURCE_REPORT, query = ""
         + "SELECT new org.rhq.core.domain.resource.composite.ResourceInstallCount( " //
@@ -900,6 +904,7 @@ public class Resource implements Comparable<Resource>, Serializable {
     public static final String QUERY_FIND_DESCENDANTS = "Resource.findDescendants";
     public static final String QUERY_MARK_RESOURCES_FOR_ASYNC_DELETION_QUICK = "Resource.markResourcesForAsyncDeletionQuick";
     public static final String QUERY_FIND_RESOURCES_MARKED_FOR_ASYNC_DELETION = "Resource.findResourcesMarkedForAsyncDeletion";
+    public static final String QUERY_FIND_SYNC_DATA_BY_AGENT_OF_RESOURCE = "Resource.findSyncDataByAgentOfResource";
 
     public static final String QUERY_RESOURCE_REPORT = "Resource.findResourceReport";
     public static final String QUERY_RESOURCE_VERSION_REPORT = "Resource.findResourceVersionReport";
@@ -60,6 +60,11 @@ import org.rhq.core.domain.util.StringUtils;
         + "SELECT rg.id " //
         + "  FROM ResourceGroup rg " //
         + " WHERE rg.groupDefinition.id = :groupDefinitionId "),
+    @NamedQuery(name = GroupDefinition.QUERY_FIND_MANAGED_RESOURCE_GROUP_MEMBERS_ADMIN, query = "" //
+        + "SELECT rg.id, res.id " //
+        + "  FROM ResourceGroup rg JOIN rg.explicitResources res " //
+        + " WHERE rg.groupDefinition.id = :groupDefinitionId " //
+        + "   AND res.id IN ( :resourceIds ) "),
     @NamedQuery(name = GroupDefinition.QUERY_FIND_MANAGED_RESOURCE_GROUP_SIZE_ADMIN, query = "" //
         + "SELECT COUNT(rg.id) " //
         + "  FROM ResourceGroup rg " //
@@ -94,6 +99,7 @@ public class GroupDefinition implements Serializable {
     public static final String QUERY_FIND_MEMBERS = "GroupDefinition.findMembers";
     public static final String QUERY_FIND_ALL_MEMBERS = "GroupDefinition.findAllMembers_admin";
     public static final String QUERY_FIND_MANAGED_RESOURCE_GROUP_IDS_ADMIN = "GroupDefinition.findManagedResourceGroupIds_admin";
+    public static final String QUERY_FIND_MANAGED_RESOURCE_GROUP_MEMBERS_ADMIN = "GroupDefinition.findManagedResourceGroupMembers_admin";
     public static final String QUERY_FIND_MANAGED_RESOURCE_GROUP_SIZE_ADMIN = "GroupDefinition.findManagedResourceGroupSize_admin";
     public static final String QUERY_FIND_IDS_FOR_RECALCULATION = "GroupDefinition.findIdsForRecalculation_admin";
     public static final String QUERY_FIND_ALL_RECALCULATING = "GroupDefinition.findAllRecalculating_admin";
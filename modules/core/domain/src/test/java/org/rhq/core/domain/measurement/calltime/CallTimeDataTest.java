@@ -0,0 +1,93 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2013 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.domain.measurement.calltime;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+@Test
+public class CallTimeDataTest {
+
+    private static final String DESTINATION = "/index.html";
+
+    public void testSingleCall() {
+        CallTimeData data = createCallTimeData();
+        data.addCallData(DESTINATION, new Date(1000L), 50L);
+
+        CallTimeDataValue value = data.getValues().get(DESTINATION);
+        assertEquals(value.getBeginTime(), 1000L);
+        assertEquals(value.getEndTime(), 1050L);
+        assertEquals(value.getCount(), 1L);
+    }
+
+    public void testRepeatedCallsWidenTheTimeRange() {
+        CallTimeData data = createCallTimeData();
+        data.addCallData(DESTINATION, new Date(2000L), 100L);
+        data.addCallData(DESTINATION, new Date(1000L), 50L);
+        data.addCallData(DESTINATION, new Date(3000L), 500L);
+        data.addCallData(DESTINATION, new Date(2500L), 10L);
+
+        assertEquals(data.getValues().size(), 1);
+        CallTimeDataValue value = data.getValues().get(DESTINATION);
+        assertEquals(value.getBeginTime(), 1000L, "the begin time should be that of the earliest call");
+        assertEquals(value.getEndTime(), 3500L, "the end time should be that of the last call to end");
+        assertEquals(value.getCount(), 4L);
+        assertEquals(value.getMinimum(), 10.0);
+        assertEquals(value.getMaximum(), 500.0);
+        assertEquals(value.getTotal(), 660.0);
+    }
+
+    public void testAggregatedCallsWidenTheTimeRange() {
+        CallTimeData data = createCallTimeData();
+        data.addCallData(DESTINATION, new Date(5000L), 100L);
+        data.addAggregatedCallData(DESTINATION, new Date(1000L), new Date(4000L), 10.0, 90.0, 200.0, 5L);
+
+        CallTimeDataValue value = data.getValues().get(DESTINATION);
+        assertEquals(value.getBeginTime(), 1000L);
+        assertEquals(value.getEndTime(), 5100L, "the range of the calls added before should be kept");
+        assertEquals(value.getCount(), 5L);
+    }
+
+    public void testDestinationsKeepTheirOwnTimeRange() {
+        CallTimeData data = createCallTimeData();
+        data.addCallData(DESTINATION, new Date(1000L), 50L);
+        data.addCallData("/other.html", new Date(5000L), 50L);
+
+        assertEquals(data.getValues().size(), 2);
+        assertEquals(data.getValues().get(DESTINATION).getBeginTime(), 1000L);
+        assertEquals(data.getValues().get(DESTINATION).getEndTime(), 1050L);
+        assertEquals(data.getValues().get("/other.html").getBeginTime(), 5000L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBeginTimeAfterEndTime() {
+        CallTimeData data = createCallTimeData();
+        data.addAggregatedCallData(DESTINATION, new Date(2000L), new Date(1000L), 1.0, 1.0, 1.0, 1L);
+    }
+
+    private CallTimeData createCallTimeData() {
+        return new CallTimeData(new MeasurementScheduleRequest(1, "calltime", 60000L, true, DataType.CALLTIME));
+    }
+}
@@ -24,16 +24,12 @@ package org.rhq.core.pluginapi.event.log;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.StringReader;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hyperic.sigar.FileInfo;
-import org.hyperic.sigar.SigarException;
-import org.hyperic.sigar.SigarProxy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -42,7 +38,8 @@ import org.rhq.core.pluginapi.event.EventContext;
 import org.rhq.core.pluginapi.event.EventPoller;
 
 /**
- * An Event poller that polls a log file for new entries. 
+ * An Event poller that polls a log file for new entries. The file is tailed by a {@link LogFileTailer}, which is
+ * shared with the other pollers of the same file.
  *
  * @author Ian Springer
  */
@@ -51,7 +48,7 @@ public class LogFileEventPoller implements EventPoller {
 
     private String eventType;
     private File logFile;
-    private FileInfo logFileInfo;
+    private LogFileTailer.Subscription subscription;
     private LogEntryProcessor entryProcessor;
     private EventContext eventContext;
     private boolean initialized;
@@ -79,11 +76,7 @@ public class LogFileEventPoller implements EventPoller {
         if (!this.initialized) {
             init();
         }
-        if (this.logFileInfo == null) {
-            // This means SIGAR, which we require, is unavailable, so just return null. 
-            return null;
-        }
-        
+
         if (!this.logFile.exists()) {
             log.warn("Log file [" + this.logFile + "] being polled does not exist.");
             return null;
@@ -92,15 +85,12 @@ public class LogFileEventPoller implements EventPoller {
             log.error("Log file [" + this.logFile + "] being polled is a directory, not a regular file.");
             return null;
         }
-        
-        try {            
-            if (!this.logFileInfo.changed()) {
-                return null;
-            }
-        } catch (SigarException e) {
-            throw new RuntimeException(e);
+
+        String newLines = this.subscription.readNewLines();
+        if (newLines == null) {
+            return null;
         }
-        return processNewLines(this.logFileInfo);
+        return processNewLines(newLines);
     }
 
     /**
@@ -110,76 +100,18 @@ public class LogFileEventPoller implements EventPoller {
      * invocation of that method, at which point the PC will be initialized.
      */
     protected void init() {
-        SigarProxy sigar = this.eventContext.getSigar();
-        if (sigar != null) {
-            try {
-                this.logFileInfo = new LogFileInfo(sigar.getFileInfo(logFile.getPath()));
-            } catch (SigarException e) {
-                throw new RuntimeException("Failed to obtain file info for log file [" + this.logFile + "].", e);
-            }
-        } else {
-            log.warn("SIGAR is unavailable - cannot poll log file [" + this.logFile + "] for events.");
-        }
-
+        this.subscription = LogFileTailer.subscribe(this.logFile);
         this.initialized = true;
     }
 
-    private Set<Event> processNewLines(FileInfo fileInfo) {
+    private Set<Event> processNewLines(String newLines) {
         Set<Event> events = null;
-        Reader reader = null;
         try {
-            reader = new FileReader(this.logFile);
-
-            long offset = getOffset(fileInfo);
-
-            if (offset > 0) {
-                reader.skip(offset);
-            }
-            BufferedReader bufferedReader = new BufferedReader(reader);
+            BufferedReader bufferedReader = new BufferedReader(new StringReader(newLines));
             events = this.entryProcessor.processLines(bufferedReader);
         } catch (IOException e) {
-            log.error("Failed to read log file being tailed: " + this.logFile, e);
-        } finally {
-            if (reader != null) {
-                //noinspection EmptyCatchBlock
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                }
-            }
+            log.error("Failed to process lines of log file being tailed: " + this.logFile, e);
         }
         return events;
     }
-
-    private long getOffset(FileInfo fileInfo) {
-        FileInfo previousFileInfo = fileInfo.getPreviousInfo();
-
-        if (previousFileInfo == null) {
-            if (log.isDebugEnabled()) {
-                log.debug(this.logFile + ": first stat");
-            }
-            return fileInfo.getSize();
-        }
-
-        if (fileInfo.getInode() != previousFileInfo.getInode()) {
-            if (log.isDebugEnabled()) {
-                log.debug(this.logFile + ": file inode changed");
-            }
-            return -1;
-        }
-
-        if (fileInfo.getSize() < previousFileInfo.getSize()) {
-            if (log.isDebugEnabled()) {
-                log.debug(this.logFile + ": file truncated");
-            }
-            return -1;
-        }
-
-        if (log.isDebugEnabled()) {
-            long diff = fileInfo.getSize() - previousFileInfo.getSize();
-            log.debug(this.logFile + ": " + diff + " new bytes");
-        }
-
-        return previousFileInfo.getSize();
-    }
 }
@@ -0,0 +1,319 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pluginapi.event.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tails a log file by byte position, so that each read only costs as much as the data appended since the previous
+ * one, however large the file is. Only complete lines are read; an incomplete last line is left for the next read.
+ * <p/>
+ * The file is only opened while it is read, so it can still be rotated on platforms that do not allow renaming or
+ * deleting open files. A file that is shorter than the position read up to was truncated, and a file whose first
+ * bytes are not the ones read before was replaced (e.g. rotated); both are then read again from the start.
+ * <p/>
+ * All the {@link Subscription}s to a file share one tailer, which reads and decodes the new data once for all of
+ * them. A tailer is dropped once its subscriptions are no longer referenced.
+ *
+ * @see LogFileEventPoller
+ */
+public class LogFileTailer {
+    private static final Log LOG = LogFactory.getLog(LogFileTailer.class);
+
+    /**
+     * Number of bytes at the start of the file that are compared to detect that the file was replaced.
+     */
+    static final int HEAD_SIZE = 256;
+
+    /**
+     * The most bytes read at once; what is left is read by the next read.
+     */
+    static final int MAX_READ_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The most characters kept for a subscription that is not read; older ones are dropped beyond that.
+     */
+    static final int MAX_PENDING_SIZE = 4 * 1024 * 1024;
+
+    private static final Map<File, LogFileTailer> TAILERS = new HashMap<File, LogFileTailer>();
+
+    private final File file;
+    private final Charset charset;
+    private final List<WeakReference<Subscription>> subscriptions = new ArrayList<WeakReference<Subscription>>();
+    private long position;
+    private byte[] head = new byte[0];
+    private long lastLength;
+    private long lastModified;
+    private boolean upToDate;
+
+    LogFileTailer(File file, Charset charset) {
+        this.file = file;
+        this.charset = charset;
+        // like a new tail -f, start at the end of the file
+        this.position = file.length();
+        this.lastLength = this.position;
+        this.lastModified = file.lastModified();
+        this.upToDate = true;
+        try {
+            readHead();
+        } catch (IOException e) {
+            LOG.debug("Failed to read start of log file [" + file + "]: " + e);
+        }
+    }
+
+    /**
+     * Subscribes to the lines appended to the file from now on. Subscriptions to the same file share one tailer.
+     *
+     * @param file the log file
+     * @return the subscription; it must be kept referenced for as long as it is read
+     */
+    public static Subscription subscribe(File file) {
+        File key = file.getAbsoluteFile();
+        LogFileTailer tailer;
+        synchronized (TAILERS) {
+            for (Iterator<LogFileTailer> i = TAILERS.values().iterator(); i.hasNext();) {
+                if (!i.next().hasSubscriptions()) {
+                    i.remove();
+                }
+            }
+            tailer = TAILERS.get(key);
+            if (tailer == null) {
+                tailer = new LogFileTailer(key, Charset.defaultCharset());
+                TAILERS.put(key, tailer);
+            }
+        }
+        return tailer.addSubscription();
+    }
+
+    static int getTailerCount() {
+        synchronized (TAILERS) {
+            return TAILERS.size();
+        }
+    }
+
+    synchronized Subscription addSubscription() {
+        // deliver what the other subscriptions have not read yet, so that the new one starts at the end of the file
+        read();
+        Subscription subscription = new Subscription(this);
+        this.subscriptions.add(new WeakReference<Subscription>(subscription));
+        return subscription;
+    }
+
+    synchronized boolean hasSubscriptions() {
+        for (Iterator<WeakReference<Subscription>> i = this.subscriptions.iterator(); i.hasNext();) {
+            if (i.next().get() == null) {
+                i.remove();
+            }
+        }
+        return !this.subscriptions.isEmpty();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Reads the complete lines appended to the file since the last read and hands them to the subscriptions.
+     */
+    synchronized void read() {
+        if (!this.file.isFile()) {
+            return;
+        }
+        long length = this.file.length();
+        long modified = this.file.lastModified();
+        if (this.upToDate && length == this.lastLength && modified == this.lastModified) {
+            return;
+        }
+
+        String text = null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(this.file);
+            FileChannel channel = in.getChannel();
+            length = channel.size();
+
+            if (length < this.position) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.file + ": file truncated");
+                }
+                restart();
+            } else if (!headMatches(channel)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.file + ": file replaced");
+                }
+                restart();
+            }
+
+            int size = (int) Math.min(length - this.position, MAX_READ_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            readFully(channel, buffer, this.position);
+            buffer.flip();
+
+            // only consume complete lines, except for a single line too long to ever be complete
+            int end = buffer.limit();
+            while (end > 0 && buffer.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0 && buffer.limit() == MAX_READ_SIZE) {
+                end = buffer.limit();
+            }
+            if (end > 0) {
+                buffer.limit(end);
+                text = this.charset.decode(buffer).toString();
+                this.position += end;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.file + ": " + end + " new bytes");
+                }
+            }
+
+            if (this.head.length < HEAD_SIZE && this.position > this.head.length) {
+                readHead(channel);
+            }
+            this.upToDate = (length - this.position < MAX_READ_SIZE);
+            this.lastLength = length;
+            this.lastModified = modified;
+        } catch (IOException e) {
+            LOG.error("Failed to read log file being tailed: " + this.file, e);
+        } finally {
+            if (in != null) {
+                //noinspection EmptyCatchBlock
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        if (text != null) {
+            for (Iterator<WeakReference<Subscription>> i = this.subscriptions.iterator(); i.hasNext();) {
+                Subscription subscription = i.next().get();
+                if (subscription == null) {
+                    i.remove();
+                } else {
+                    subscription.append(text);
+                }
+            }
+        }
+    }
+
+    private void restart() {
+        this.position = 0;
+        this.head = new byte[0];
+    }
+
+    private boolean headMatches(FileChannel channel) throws IOException {
+        if (this.head.length == 0) {
+            return true;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(this.head.length);
+        readFully(channel, buffer, 0);
+        return !buffer.hasRemaining() && Arrays.equals(buffer.array(), this.head);
+    }
+
+    private void readHead() throws IOException {
+        if (this.position == 0) {
+            return;
+        }
+        FileInputStream in = new FileInputStream(this.file);
+        try {
+            readHead(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readHead(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HEAD_SIZE, this.position));
+        readFully(channel, buffer, 0);
+        this.head = Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Reads from the position until the buffer is full or the end of the file is reached.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int count;
+        do {
+            count = channel.read(buffer, position + buffer.position());
+        } while (count > 0 && buffer.hasRemaining());
+    }
+
+    /**
+     * The lines of a tailed log file that one reader has not read yet.
+     */
+    public static class Subscription {
+        private final LogFileTailer tailer;
+        private final StringBuilder pending = new StringBuilder();
+
+        Subscription(LogFileTailer tailer) {
+            this.tailer = tailer;
+        }
+
+        public File getFile() {
+            return this.tailer.getFile();
+        }
+
+        /**
+         * @return the complete lines appended to the file since the last call, or null if there are none
+         */
+        @Nullable
+        public String readNewLines() {
+            this.tailer.read();
+            synchronized (this.pending) {
+                if (this.pending.length() == 0) {
+                    return null;
+                }
+                String lines = this.pending.toString();
+                this.pending.setLength(0);
+                return lines;
+            }
+        }
+
+        void append(String text) {
+            synchronized (this.pending) {
+                if (this.pending.length() + text.length() > MAX_PENDING_SIZE) {
+                    LOG.warn("Dropping [" + this.pending.length() + "] characters of log file [" + getFile()
+                        + "] that were not read in time.");
+                    this.pending.setLength(0);
+                }
+                this.pending.append(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+  * RHQ Management Platform
+  * Copyright (C) 2005-2008 Red Hat, Inc.
+  * All rights reserved.
+  *
+  * This program is free software; you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License, version 2, as
+  * published by the Free Software Foundation, and/or the GNU Lesser
+  * General Public License, version 2.1, also as published by the Free
+  * Software Foundation.
+  *
+  * This program is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License and the GNU Lesser General Public License
+  * for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * and the GNU Lesser General Public License along with this program;
+  * if not, write to the Free Software Foundation, Inc.,
+  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+  */
+package org.rhq.core.pluginapi.measurement;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.resource.ResourceType;
+
+/**
+ * Components that implement this facet collect the measurement data of several of their child resources with a
+ * single call. This is meant for components that hold a connection that their children share, such as a JMX or
+ * management API connection, where one remote call can return the values of many resources (e.g. a composite
+ * read). When measurements of two or more such children are due at the same time, the plugin container calls this
+ * facet once instead of calling each child's {@link MeasurementFacet} in turn.
+ * <p>
+ * The children still need to implement {@link MeasurementFacet}: that is used whenever a child's measurements are
+ * collected on their own, such as for live values or when its siblings are not due at the same time, and as a
+ * fallback if the batch collection fails.
+ * </p>
+ */
+public interface BatchMeasurementFacet {
+    /**
+     * Indicates whether the measurements of children of the given type can be collected through
+     * {@link #getValues(MeasurementReport, Map)}. This is asked once per child type for as long as this component
+     * instance lives, so the answer must not change while the component is started and it must not depend on the
+     * managed resource being reachable.
+     *
+     * @param  childResourceType the type of a child resource whose measurements are due
+     *
+     * @return <code>true</code> if this component can collect the measurements of children of the given type
+     */
+    boolean isBatchCollectionSupported(ResourceType childResourceType);
+
+    /**
+     * Collects the measurement data of several child resources and adds it to the given report. This has the same
+     * semantics as {@link MeasurementFacet#getValues(MeasurementReport, Set)}, only the requests are those of many
+     * resources. The schedule id of each request identifies the datum it is collected for, so the data of all the
+     * children can be added to the report as is.
+     * <p>
+     * If this method throws an exception, the plugin container will collect the measurements of each of the children
+     * through its own {@link MeasurementFacet}, so a failure here costs a retry, not a missed collection. Data that
+     * was already added to the report before the failure is discarded.
+     * </p>
+     *
+     * @param  report  the report to which all collected measurement data should be added
+     * @param  metrics the requested metrics of each child resource, keyed by the child's resource key; each child is
+     *                 of a type for which {@link #isBatchCollectionSupported(ResourceType)} returned <code>true</code>
+     *
+     * @throws Exception if the component failed to obtain the values
+     */
+    void getValues(MeasurementReport report, Map<String, Set<MeasurementScheduleRequest>> metrics) throws Exception;
+}
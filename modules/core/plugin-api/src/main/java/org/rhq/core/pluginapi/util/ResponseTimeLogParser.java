@@ -22,14 +22,22 @@
  */
 package org.rhq.core.pluginapi.util;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,28 +48,69 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import org.rhq.core.domain.measurement.calltime.CallTimeData;
+import org.rhq.core.domain.measurement.calltime.CallTimeDataValue;
 
 /**
- * This is a very simple log parser that uses a StringTokenizer instead of a regular expression to parse a HTTP
- * response-time log file. This should greatly improve the performance. It requires that lines in the log file have the
- * following format (with one line per HTTP request):
+ * This is a very simple log parser that splits lines on whitespace instead of using a regular expression to parse a
+ * HTTP response-time log file. This should greatly improve the performance. It requires that lines in the log file have
+ * the following format (with one line per HTTP request):
  *
  * <p/><code>URL date_in_milliseconds time_taken [status_code [IP_address]]</code>
  *
  * <p/>This is the output format used by the Apache RT module, as well as the servlet RT filter.
  *
+ * <p/>The file is read as a stream of bytes, a chunk at a time, from the position up to which it was read the last
+ * time, so each parse only costs as much as the lines appended since. That position is kept in the
+ * {@link #setOffsetFile offset file}, if there is one, so the lines parsed before the plugin container restarts are
+ * not parsed again. The calls are aggregated per destination while they are read and only added to the
+ * {@link CallTimeData} once per destination, and the destination each URL is excluded or transformed to is
+ * remembered, so the exclude and transform regular expressions are only evaluated once per distinct URL.
+ *
  * @author Ian Springer
  */
 public class ResponseTimeLogParser {
     public static final int DEFAULT_TIME_MULTIPLIER = 1;
 
+    /**
+     * The size above which the log file is truncated once it has been read completely, see {@link #setMaxLogFileSize}.
+     */
+    public static final long DEFAULT_MAX_LOG_FILE_SIZE = 1024L * 1024 * 10; // 10 MB
+
+    /**
+     * The name plugins give the {@link #setOffsetFile offset file} in the data directory of their resource.
+     */
+    public static final String OFFSET_FILE_NAME = "response-time-log.offset";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * the number of bytes at the start of the log file that are compared to tell whether the file was replaced since
+     * it was parsed up to the offset
+     */
+    private static final int HEAD_SIZE = 64;
+    private static final Charset HEAD_CHARSET = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    /*
+     * the number of distinct URLs and destinations remembered; they are forgotten beyond that, e.g. when URLs contain
+     * ids that no transform removes
+     */
+    private static final int MAX_CACHED_URLS = 10000;
+
     protected final Log log = LogFactory.getLog(this.getClass());
 
     /**
      * The parser will multiply by this factor to convert the duration from the log into milliseconds.
      */
     private double timeMultiplier;
-    private long startingOffset;
+    private long position;
+    private byte[] head = new byte[0];
+    private File offsetFile;
+    private long maxLogFileSize = DEFAULT_MAX_LOG_FILE_SIZE;
+    private final Charset charset = Charset.defaultCharset();
+    private ByteBuffer buffer;
+    private final UrlCache urlCache = new UrlCache();
+    private final CallTimeAggregator aggregator = new CallTimeAggregator();
     protected File logFile;
     protected List<Pattern> excludes;
     protected List<RegexSubstitution> transforms;
@@ -76,86 +125,360 @@ public class ResponseTimeLogParser {
     }
 
     /**
-     * Parse the log file, starting at the offset corresponding to the file's size after the last time this method was
-     * called. Immediately after parsing, the file will be truncated, permissions permitting. If the log file does not
-     * exist, a warning will be logged and the method will return. The parsed response-time data will be added to the
-     * passed-in CallTimeData object.
+     * Parse the log file, starting at the offset up to which it was parsed the last time this method was called. Only
+     * complete lines are parsed; an incomplete last line is parsed by the next call, once it has been completed. If the
+     * file is shorter than that offset, or starts with other bytes than it did, it was truncated or replaced, and is
+     * parsed from its start. The offset is saved to the {@link #setOffsetFile offset file}, if one was set. If the log
+     * file does not exist, a warning will be logged and the method will return. The parsed response-time data will be
+     * added to the passed-in CallTimeData object, aggregated per destination.
+     *
+     * <p/>Writers such as the servlet RT filter keep the size of the file below a maximum themselves. For the ones that
+     * do not, the file is truncated once it has been parsed completely and is larger than the
+     * {@link #setMaxLogFileSize maximum size}, permissions permitting.
      *
      * @param callTimeData the parsed response-time data will be added to this object
      * @throws IOException if an error occurs reading the log file
      */
     public synchronized void parseLog(CallTimeData callTimeData) throws IOException {
-        log.debug("Parsing response-time log file " + this.logFile + "...");
-        BufferedReader in = null;
+        log.debug("Parsing response-time log file " + this.logFile + " from offset " + this.position + "...");
+        FileInputStream in;
+        try {
+            in = new FileInputStream(this.logFile);
+        } catch (FileNotFoundException e) {
+            log.warn("Response-time log file '" + this.logFile + "' does not exist.");
+            return;
+        }
 
+        boolean truncate = false;
         try {
-            in = new BufferedReader(new FileReader(this.logFile));
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length < this.position || !hasSameHead(channel)) {
+                log.debug("Response-time log file '" + this.logFile
+                    + "' was truncated or replaced - parsing it from its start.");
+                this.position = 0;
+                this.head = new byte[0];
+            }
 
-            in.skip(this.startingOffset);
+            if (this.urlCache.size() >= MAX_CACHED_URLS || this.aggregator.size() > MAX_CACHED_URLS) {
+                this.urlCache.clear();
+                this.aggregator.clear();
+            }
 
-            String currentLine;
-            while ((currentLine = in.readLine()) != null) {
-                LogEntry logEntry;
-                try {
-                    logEntry = parseLine(currentLine);
-                } catch (Exception e) {
-                    log.debug("Problem parsing line [" + currentLine + "] - cause: " + e);
-                    continue;
-                }
+            // only parse what is there now, lines appended while parsing are left for the next time
+            parse(channel, length);
+            addCallData(callTimeData);
+            updateHead(channel);
 
-                String url = logEntry.getUrl();
-
-                // The URL should always begin with a slash. If it doesn't, log an error and skip the entry,
-                // so we don't end up with bogus data in the DB.
-                if (url.charAt(0) != '/') {
-                    String truncatedUrl = url.substring(0, Math.min(url.length(), 120));
-                    if (url.length() > 120)
-                        truncatedUrl += "...";
-                    log.error("URL ('" + truncatedUrl
-                        + "') parsed from response-time log file does not begin with '/'. " + "Line being parsed is ["
-                        + currentLine + "].");
-                    continue;
-                }
+            truncate = (this.position == channel.size() && this.position > this.maxLogFileSize);
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                log.error("Unable to close response-time log file.", e);
+            }
+            this.aggregator.reset();
+        }
 
-                if (isExcluded(url)) {
-                    continue;
-                }
+        if (truncate) {
+            truncateLog(this.logFile);
+            this.position = 0;
+            this.head = new byte[0];
+        }
+        saveOffset();
+    }
+
+    private boolean hasSameHead(FileChannel channel) throws IOException {
+        if (this.position == 0 || this.head.length == 0) {
+            return true;
+        }
+        return Arrays.equals(readHead(channel, this.head.length), this.head);
+    }
 
-                // Only collect stats for successful (2xx or 3xx) requests...
-                if ((logEntry.getStatusCode() != null)
-                    && ((logEntry.getStatusCode() < 200) || (logEntry.getStatusCode() >= 400))) {
-                    continue;
+    private void updateHead(FileChannel channel) throws IOException {
+        // only the bytes parsed so far, which the writer no longer changes
+        int size = (int) Math.min(HEAD_SIZE, this.position);
+        if (size > this.head.length) {
+            this.head = readHead(channel, size);
+        }
+    }
+
+    private static byte[] readHead(FileChannel channel, int size) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(size);
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) <= 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(head.array(), head.position());
+    }
+
+    private void loadOffset() {
+        this.position = 0;
+        this.head = new byte[0];
+        if (this.offsetFile == null || !this.offsetFile.exists()) {
+            return;
+        }
+
+        Properties offset = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(this.offsetFile);
+            try {
+                offset.load(in);
+            } finally {
+                in.close();
+            }
+            this.position = Long.parseLong(offset.getProperty("offset", "0"));
+            this.head = offset.getProperty("head", "").getBytes(HEAD_CHARSET);
+        } catch (Exception e) {
+            log.warn("Unable to read response-time log file offset from '" + this.offsetFile
+                + "' - parsing the log file from its start: " + e);
+            this.position = 0;
+            this.head = new byte[0];
+        }
+    }
+
+    private void saveOffset() {
+        if (this.offsetFile == null) {
+            return;
+        }
+
+        Properties offset = new Properties();
+        offset.setProperty("offset", Long.toString(this.position));
+        offset.setProperty("head", new String(this.head, HEAD_CHARSET));
+        try {
+            FileOutputStream out = new FileOutputStream(this.offsetFile);
+            try {
+                offset.store(out, "Parse offset of " + this.logFile);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to save response-time log file offset to '" + this.offsetFile + "': " + e);
+        }
+    }
+
+    private void parse(FileChannel channel, long length) throws IOException {
+        if (this.buffer == null) {
+            this.buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        ByteBuffer buffer = this.buffer;
+        buffer.clear();
+
+        while (this.position + buffer.position() < length) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() < MAX_LINE_LENGTH) {
+                    // a line longer than the buffer
+                    buffer.flip();
+                    this.buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+                    buffer = this.buffer;
+                } else {
+                    log.debug("Skipping response-time log file line longer than " + MAX_LINE_LENGTH + " bytes.");
+                    this.position += buffer.position();
+                    buffer.clear();
                 }
+            }
 
-                String transformedUrl = applyTransforms(url);
-                try {
-                    callTimeData.addCallData(transformedUrl, new Date(logEntry.getStartTime()), logEntry.getDuration());
-                } catch (IllegalArgumentException iae) {
-                    // if any issue with the data, log them and continue processing the rest of the report
-                    log.error(iae);
+            int toRead = (int) Math.min(buffer.remaining(), length - this.position - buffer.position());
+            buffer.limit(buffer.position() + toRead);
+            int count = channel.read(buffer, this.position + buffer.position());
+            buffer.limit(buffer.capacity());
+            if (count <= 0) {
+                break;
+            }
+
+            byte[] bytes = buffer.array();
+            int end = buffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    parseLine(bytes, lineStart, i);
+                    lineStart = i + 1;
                 }
             }
-        } catch (FileNotFoundException e) {
-            log.warn("Response-time log file '" + this.logFile + "' does not exist.");
+
+            // keep the incomplete last line for the next read
+            this.position += lineStart;
+            buffer.flip();
+            buffer.position(lineStart);
+            buffer.compact();
+        }
+    }
+
+    private void parseLine(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+
+        int urlStart = skipWhitespace(bytes, start, end);
+        int urlEnd = skipToken(bytes, urlStart, end);
+        int startTimeStart = skipWhitespace(bytes, urlEnd, end);
+        int startTimeEnd = skipToken(bytes, startTimeStart, end);
+        int durationStart = skipWhitespace(bytes, startTimeEnd, end);
+        int durationEnd = skipToken(bytes, durationStart, end);
+        int statusCodeStart = skipWhitespace(bytes, durationEnd, end);
+        int statusCodeEnd = skipToken(bytes, statusCodeStart, end);
+
+        long startTime;
+        long duration;
+        int statusCode;
+        try {
+            if (durationStart == durationEnd) {
+                throw new NumberFormatException("too few fields");
+            }
+            startTime = parseLong(bytes, startTimeStart, startTimeEnd);
+            duration = (long) (parseDouble(bytes, durationStart, durationEnd) * this.timeMultiplier);
+            statusCode = (statusCodeStart < statusCodeEnd) ? (int) parseLong(bytes, statusCodeStart, statusCodeEnd)
+                : -1;
+        } catch (NumberFormatException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Problem parsing line [" + new String(bytes, start, end - start, this.charset)
+                    + "] - cause: " + e);
+            }
             return;
-        } finally {
-            if (null != in) {
-                try {
-                    in.close();
-                } catch (Exception e) {
-                    log.error("Unable to close response-time log file.", e);
-                }
+        }
+
+        // Only collect stats for successful (2xx or 3xx) requests...
+        if ((statusCode != -1) && ((statusCode < 200) || (statusCode >= 400))) {
+            return;
+        }
+
+        int destination = this.urlCache.get(bytes, urlStart, urlEnd);
+        if (destination == UrlCache.MISSING) {
+            destination = getDestination(new String(bytes, urlStart, urlEnd - urlStart, this.charset));
+            this.urlCache.put(bytes, urlStart, urlEnd, destination);
+        }
+        if (destination < 0) {
+            return;
+        }
+
+        if (duration < 0) {
+            log.error("Negative duration parsed from response-time log file. Line being parsed is ["
+                + new String(bytes, start, end - start, this.charset) + "].");
+            return;
+        }
+        this.aggregator.add(destination, startTime, duration);
+    }
+
+    /*
+     * returns the index of the destination the URL is aggregated to, or -1 if the URL is not collected
+     */
+    private int getDestination(String url) {
+        // The URL should always begin with a slash. If it doesn't, log an error and skip the entry,
+        // so we don't end up with bogus data in the DB.
+        if (url.charAt(0) != '/') {
+            String truncatedUrl = url.substring(0, Math.min(url.length(), 120));
+            if (url.length() > 120)
+                truncatedUrl += "...";
+            log.error("URL ('" + truncatedUrl + "') parsed from response-time log file does not begin with '/'.");
+            return -1;
+        }
+
+        if (isExcluded(url)) {
+            return -1;
+        }
+
+        return this.aggregator.indexOf(applyTransforms(url));
+    }
+
+    private void addCallData(CallTimeData callTimeData) {
+        for (int i = 0; i < this.aggregator.size(); i++) {
+            if (this.aggregator.counts[i] == 0) {
+                continue;
+            }
+
+            String destination = this.aggregator.destinations.get(i);
+            double minimum = this.aggregator.minimums[i];
+            double maximum = this.aggregator.maximums[i];
+            double total = this.aggregator.totals[i];
+            long count = this.aggregator.counts[i];
+
+            // merge with the calls to the same destination the caller already added, whose time range
+            // CallTimeData widens to include the parsed calls
+            CallTimeDataValue value = callTimeData.getValues().get(destination);
+            if (value != null && value.getCount() > 0) {
+                minimum = Math.min(minimum, value.getMinimum());
+                maximum = Math.max(maximum, value.getMaximum());
+                total += value.getTotal();
+                count += value.getCount();
+            }
+
+            try {
+                callTimeData.addAggregatedCallData(destination, new Date(this.aggregator.beginTimes[i]), new Date(
+                    this.aggregator.endTimes[i]), minimum, maximum, total, count);
+            } catch (IllegalArgumentException iae) {
+                // if any issue with the data, log them and continue processing the rest of the report
+                log.error(iae);
             }
         }
+    }
 
-        /*
-         * After we're done parsing the file, truncate it. This is kosher, assuming we own any file being parsed by this
-         * parser.
-         */
-        truncateLog(this.logFile);
-        this.startingOffset = this.logFile.length();
+    private static int skipWhitespace(byte[] bytes, int start, int end) {
+        while (start < end && isWhitespace(bytes[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int skipToken(byte[] bytes, int start, int end) {
+        while (start < end && !isWhitespace(bytes[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // the delimiters of StringTokenizer
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static long parseLong(byte[] bytes, int start, int end) {
+        if (start == end || end - start > 18) {
+            return Long.parseLong(new String(bytes, start, end - start));
+        }
+        boolean negative = (bytes[start] == '-');
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("no digits");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + new String(bytes, start, end - start) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseDouble(byte[] bytes, int start, int end) {
+        // the common forms, e.g. 1234 or 0.123, exactly; anything else through Double.parseDouble
+        long digits = 0;
+        int fractionDigits = -1;
+        int i = start;
+        for (; i < end && i - start < 15; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                digits = digits * 10 + (b - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && end > start && fractionDigits != 0 && fractionDigits < POWERS_OF_TEN.length) {
+            return (fractionDigits < 0) ? digits : digits / POWERS_OF_TEN[fractionDigits];
+        }
+        return Double.parseDouble(new String(bytes, start, end - start));
     }
 
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15 };
+
     protected boolean isExcluded(String url) {
         boolean excluded = false;
         if (this.excludes != null) {
@@ -189,7 +512,8 @@ public class ResponseTimeLogParser {
     }
 
     /**
-     * Parses a line from a response time log and returns a LogEntry.
+     * Parses a line from a response time log and returns a LogEntry. This is for subclasses that read their log line
+     * by line; {@link #parseLog(CallTimeData)} parses the bytes of the lines directly, in the same way.
      *
      * @param line the line to be parsed
      *
@@ -257,8 +581,37 @@ public class ResponseTimeLogParser {
         return logFile;
     }
 
-    public void setLogFile(File logFile) {
+    public synchronized void setLogFile(File logFile) {
         this.logFile = logFile;
+        this.position = 0;
+        this.head = new byte[0];
+    }
+
+    public File getOffsetFile() {
+        return offsetFile;
+    }
+
+    /**
+     * Sets the file the offset up to which the log file was parsed is kept in, e.g. in the resource's data directory,
+     * and continues from the offset saved in it, if any.
+     *
+     * @param offsetFile the file to keep the offset in, or null to only keep it in memory
+     */
+    public synchronized void setOffsetFile(File offsetFile) {
+        this.offsetFile = offsetFile;
+        loadOffset();
+    }
+
+    public long getMaxLogFileSize() {
+        return maxLogFileSize;
+    }
+
+    /**
+     * @param maxLogFileSize the size above which the log file is truncated once it has been parsed completely, or
+     *                       {@link Long#MAX_VALUE} to never truncate it
+     */
+    public void setMaxLogFileSize(long maxLogFileSize) {
+        this.maxLogFileSize = maxLogFileSize;
     }
 
     public double getTimeMultiplier() {
@@ -269,16 +622,18 @@ public class ResponseTimeLogParser {
         return excludes;
     }
 
-    public void setExcludes(List<Pattern> excludes) {
+    public synchronized void setExcludes(List<Pattern> excludes) {
         this.excludes = excludes;
+        this.urlCache.clear();
     }
 
     public List<RegexSubstitution> getTransforms() {
         return transforms;
     }
 
-    public void setTransforms(List<RegexSubstitution> transforms) {
+    public synchronized void setTransforms(List<RegexSubstitution> transforms) {
         this.transforms = transforms;
+        this.urlCache.clear();
     }
 
     public class LogEntry {
@@ -320,4 +675,160 @@ public class ResponseTimeLogParser {
             return ipAddress;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Remembers the destination index each URL is aggregated to, keyed by the bytes of the URL so that the URLs of
+     * the lines do not even have to be decoded once they have been seen.
+     */
+    private static class UrlCache {
+        static final int MISSING = Integer.MIN_VALUE;
+
+        private int[] slots = new int[64]; // entry index + 1, 0 if empty
+        private byte[][] keys = new byte[32][];
+        private int[] hashes = new int[32];
+        private int[] values = new int[32];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        int get(byte[] bytes, int start, int end) {
+            int hash = hash(bytes, start, end);
+            int mask = slots.length - 1;
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                int entry = slots[slot] - 1;
+                if (entry < 0) {
+                    return MISSING;
+                }
+                if (hashes[entry] == hash && equals(keys[entry], bytes, start, end)) {
+                    return values[entry];
+                }
+            }
+        }
+
+        void put(byte[] bytes, int start, int end, int value) {
+            if (size >= MAX_CACHED_URLS) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                // keep the table at most half full
+                slots = new int[slots.length * 2];
+                for (int entry = 0; entry < size; entry++) {
+                    insert(entry);
+                }
+            }
+            keys[size] = Arrays.copyOfRange(bytes, start, end);
+            hashes[size] = hash(bytes, start, end);
+            values[size] = value;
+            insert(size);
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0);
+            Arrays.fill(keys, null);
+            size = 0;
+        }
+
+        private void insert(int entry) {
+            int mask = slots.length - 1;
+            int slot = hashes[entry] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equals(byte[] key, byte[] bytes, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The calls parsed so far, aggregated per destination in arrays indexed by destination.
+     */
+    private static class CallTimeAggregator {
+        final List<String> destinations = new ArrayList<String>();
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        double[] minimums = new double[16];
+        double[] maximums = new double[16];
+        double[] totals = new double[16];
+        long[] counts = new long[16];
+        long[] beginTimes = new long[16];
+        long[] endTimes = new long[16];
+
+        int size() {
+            return destinations.size();
+        }
+
+        int indexOf(String destination) {
+            Integer index = indexes.get(destination);
+            if (index == null) {
+                index = destinations.size();
+                destinations.add(destination);
+                indexes.put(destination, index);
+                if (index == counts.length) {
+                    int capacity = index * 2;
+                    minimums = Arrays.copyOf(minimums, capacity);
+                    maximums = Arrays.copyOf(maximums, capacity);
+                    totals = Arrays.copyOf(totals, capacity);
+                    counts = Arrays.copyOf(counts, capacity);
+                    beginTimes = Arrays.copyOf(beginTimes, capacity);
+                    endTimes = Arrays.copyOf(endTimes, capacity);
+                }
+            }
+            return index;
+        }
+
+        void add(int index, long startTime, long duration) {
+            long endTime = startTime + duration;
+            if (counts[index] == 0) {
+                minimums[index] = duration;
+                maximums[index] = duration;
+                totals[index] = duration;
+                beginTimes[index] = startTime;
+                endTimes[index] = endTime;
+            } else {
+                minimums[index] = Math.min(minimums[index], duration);
+                maximums[index] = Math.max(maximums[index], duration);
+                totals[index] += duration;
+                beginTimes[index] = Math.min(beginTimes[index], startTime);
+                endTimes[index] = Math.max(endTimes[index], endTime);
+            }
+            counts[index]++;
+        }
+
+        /**
+         * Forgets the calls, but keeps the destinations.
+         */
+        void reset() {
+            Arrays.fill(counts, 0, size(), 0);
+        }
+
+        void clear() {
+            reset();
+            destinations.clear();
+            indexes.clear();
+        }
+    }
+}
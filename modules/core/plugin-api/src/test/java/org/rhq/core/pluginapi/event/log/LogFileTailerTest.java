@@ -0,0 +1,103 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pluginapi.event.log;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class LogFileTailerTest {
+    private File logFile;
+
+    @BeforeMethod
+    public void createLogFile() throws IOException {
+        this.logFile = File.createTempFile("tailer", ".log");
+        write("old line\n", false);
+    }
+
+    @AfterMethod
+    public void deleteLogFile() {
+        this.logFile.delete();
+    }
+
+    public void readsOnlyAppendedLines() throws Exception {
+        LogFileTailer.Subscription subscription = LogFileTailer.subscribe(this.logFile);
+        assertNull(subscription.readNewLines(), "existing content is skipped");
+
+        write("first\nsecond\n", true);
+        assertEquals(subscription.readNewLines(), "first\nsecond\n");
+        assertNull(subscription.readNewLines());
+
+        write("third\nincomplete", true);
+        assertEquals(subscription.readNewLines(), "third\n");
+        write(" line\n", true);
+        assertEquals(subscription.readNewLines(), "incomplete line\n");
+    }
+
+    public void restartsAfterTruncation() throws Exception {
+        LogFileTailer.Subscription subscription = LogFileTailer.subscribe(this.logFile);
+        write("first\n", true);
+        assertEquals(subscription.readNewLines(), "first\n");
+
+        write("new\n", false);
+        assertEquals(subscription.readNewLines(), "new\n");
+    }
+
+    public void restartsAfterReplacement() throws Exception {
+        LogFileTailer.Subscription subscription = LogFileTailer.subscribe(this.logFile);
+        write("first\n", true);
+        assertEquals(subscription.readNewLines(), "first\n");
+
+        // a rotated file that already grew past the position read up to
+        write("rotated file with a longer first line\n", false);
+        assertEquals(subscription.readNewLines(), "rotated file with a longer first line\n");
+    }
+
+    public void subscriptionsShareTailer() throws Exception {
+        LogFileTailer.Subscription first = LogFileTailer.subscribe(this.logFile);
+        write("one\n", true);
+        LogFileTailer.Subscription second = LogFileTailer.subscribe(new File(this.logFile.getPath()));
+        write("two\n", true);
+
+        assertEquals(first.readNewLines(), "one\ntwo\n");
+        assertEquals(second.readNewLines(), "two\n", "starts at the end of the file");
+        assertNull(first.readNewLines());
+    }
+
+    private void write(String text, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(this.logFile, append);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pluginapi.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.measurement.calltime.CallTimeData;
+
+/**
+ * Measures the throughput of {@link ResponseTimeLogParser#parseLog(CallTimeData)} in lines per second on a response
+ * time log of a busy web application, comparing it with reading the log line by line with a reader and adding every
+ * call to the {@link CallTimeData}, as the parser used to.
+ */
+@Test(groups = "PERF")
+public class ResponseTimeLogParserPerformanceTest {
+
+    private static final int LINES = 1000000;
+    private static final int URLS = 500;
+    private static final int ROUNDS = 5;
+
+    public void testParseLogThroughput() throws Exception {
+        File logFile = File.createTempFile("rt-perf", ".log");
+        try {
+            Random random = new Random(17L);
+            BufferedWriter writer = new BufferedWriter(new FileWriter(logFile));
+            try {
+                for (int i = 0; i < LINES; i++) {
+                    // URLs with ids that the transform removes
+                    writer.write("/shop/item/" + random.nextInt(URLS) + "/view?category=" + random.nextInt(4) + " "
+                        + (1352100000000L + i) + " " + random.nextInt(2000) + "." + random.nextInt(1000) + " 200 "
+                        + "10.0.0." + random.nextInt(255) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+
+            for (int round = 0; round < ROUNDS; round++) {
+                ResponseTimeLogParser parser = createParser(logFile);
+                CallTimeData data = createCallTimeData();
+                long start = System.nanoTime();
+                parseWithReader(parser, data);
+                long readerNanos = System.nanoTime() - start;
+                int readerDestinations = data.getValues().size();
+
+                parser = createParser(logFile);
+                data = createCallTimeData();
+                start = System.nanoTime();
+                parser.parseLog(data);
+                long streamingNanos = System.nanoTime() - start;
+
+                assert data.getValues().size() == readerDestinations : "Parsers found different destinations";
+
+                System.out.println("Round " + round + ": " + LINES + " lines, " + logFile.length() + " bytes, "
+                    + data.getValues().size() + " destinations: reader=" + linesPerSecond(readerNanos)
+                    + " lines/s, streaming=" + linesPerSecond(streamingNanos) + " lines/s");
+            }
+        } finally {
+            logFile.delete();
+        }
+    }
+
+    private static ResponseTimeLogParser createParser(File logFile) {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(logFile);
+        parser.setMaxLogFileSize(Long.MAX_VALUE);
+        parser.setExcludes(Collections.singletonList(Pattern.compile("\\.(png|gif|css)$")));
+        parser.setTransforms(Collections.singletonList(new RegexSubstitution(Pattern.compile(
+            "^/shop/item/\\d+/"), "/shop/item/*/")));
+        return parser;
+    }
+
+    private static CallTimeData createCallTimeData() {
+        return new CallTimeData(new MeasurementScheduleRequest(1, "ResponseTime", 60000, true, DataType.CALLTIME));
+    }
+
+    private static long linesPerSecond(long nanos) {
+        return (long) (LINES / (nanos / 1000000000.0));
+    }
+
+    /*
+     * the way the parser used to read the log
+     */
+    private static void parseWithReader(ResponseTimeLogParser parser, CallTimeData data) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(parser.getLogFile()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ResponseTimeLogParser.LogEntry logEntry;
+                try {
+                    logEntry = parser.parseLine(line);
+                } catch (Exception e) {
+                    continue;
+                }
+                String url = logEntry.getUrl();
+                if (url.charAt(0) != '/' || parser.isExcluded(url)) {
+                    continue;
+                }
+                if ((logEntry.getStatusCode() != null)
+                    && ((logEntry.getStatusCode() < 200) || (logEntry.getStatusCode() >= 400))) {
+                    continue;
+                }
+                data.addCallData(parser.applyTransforms(url), new Date(logEntry.getStartTime()), logEntry.getDuration());
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
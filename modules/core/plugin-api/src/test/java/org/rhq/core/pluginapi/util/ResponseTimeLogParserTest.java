@@ -0,0 +1,212 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pluginapi.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.measurement.calltime.CallTimeData;
+import org.rhq.core.domain.measurement.calltime.CallTimeDataValue;
+
+@Test
+public class ResponseTimeLogParserTest {
+    private File logFile;
+    private File offsetFile;
+
+    @BeforeMethod
+    public void createLogFile() throws IOException {
+        this.logFile = File.createTempFile("response-time", ".log");
+        this.offsetFile = new File(this.logFile.getPath() + ".offset");
+    }
+
+    @AfterMethod
+    public void deleteLogFile() {
+        this.logFile.delete();
+        this.offsetFile.delete();
+    }
+
+    public void aggregatesCallsPerDestination() throws Exception {
+        write("/a 1000 10 200 127.0.0.1\n" //
+            + "/b 1005 5.5\n" //
+            + "/a 990 30 302\n" //
+            + "/a 2000 20 500\n" // not successful
+            + "no-slash 1000 10\n" //
+            + "/a garbage 10\n", true);
+
+        CallTimeData data = parse(new ResponseTimeLogParser(this.logFile));
+
+        assertEquals(data.getValues().size(), 2);
+        CallTimeDataValue a = data.getValues().get("/a");
+        assertEquals(a.getCount(), 2);
+        assertEquals(a.getMinimum(), 10.0);
+        assertEquals(a.getMaximum(), 30.0);
+        assertEquals(a.getTotal(), 40.0);
+        assertEquals(a.getBeginTime(), 990);
+        assertEquals(a.getEndTime(), 1020);
+        assertEquals(data.getValues().get("/b").getTotal(), 5.0, "durations are truncated to whole milliseconds");
+    }
+
+    public void parsesOnlyAppendedCompleteLines() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile);
+        write("/a 1000 10\n/a 1001 2", true);
+        assertEquals(parse(parser).getValues().get("/a").getCount(), 1, "the incomplete line is left");
+
+        write("0\n/b 1002 5\n", true);
+        CallTimeData data = parse(parser);
+        assertEquals(data.getValues().get("/a").getTotal(), 20.0);
+        assertEquals(data.getValues().get("/b").getCount(), 1);
+
+        long length = this.logFile.length();
+        assertTrue(parse(parser).getValues().isEmpty());
+        assertEquals(this.logFile.length(), length, "not truncated");
+    }
+
+    public void parsesLinesLongerThanReadBuffer() throws Exception {
+        StringBuilder longLine = new StringBuilder("/a 1000 10");
+        for (int i = 0; i < 100000; i++) {
+            longLine.append(' ');
+        }
+        write(longLine + "\n/a 1001 20\n", true);
+
+        assertEquals(parse(new ResponseTimeLogParser(this.logFile)).getValues().get("/a").getCount(), 2);
+    }
+
+    public void parsesTruncatedFileFromStart() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile);
+        write("/a 1000 10\n/a 1001 20\n", true);
+        parse(parser);
+
+        write("/b 1002 5\n", false);
+        CallTimeData data = parse(parser);
+        assertNull(data.getValues().get("/a"));
+        assertEquals(data.getValues().get("/b").getCount(), 1);
+    }
+
+    public void newParserContinuesFromSavedOffset() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile);
+        parser.setOffsetFile(this.offsetFile);
+        write("/a 1000 10\n/a 1001 20\n/a 1002", true);
+        assertEquals(parse(parser).getValues().get("/a").getCount(), 2);
+
+        // e.g. after the plugin container restarted
+        ResponseTimeLogParser restarted = new ResponseTimeLogParser(this.logFile);
+        restarted.setOffsetFile(this.offsetFile);
+        assertTrue(parse(restarted).getValues().isEmpty(), "the parsed lines should not be reported again");
+
+        write(" 30\n/b 1003 5\n", true);
+        CallTimeData data = parse(restarted);
+        assertEquals(data.getValues().get("/a").getCount(), 1, "only the line completed since");
+        assertEquals(data.getValues().get("/a").getTotal(), 30.0);
+        assertEquals(data.getValues().get("/b").getCount(), 1);
+    }
+
+    public void newParserParsesReplacedFileFromStart() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile);
+        parser.setOffsetFile(this.offsetFile);
+        write("/a 1000 10\n", true);
+        parse(parser);
+
+        // a new file, longer than the saved offset
+        write("/b 2000 5\n/b 2001 6\n/b 2002 7\n", false);
+        ResponseTimeLogParser restarted = new ResponseTimeLogParser(this.logFile);
+        restarted.setOffsetFile(this.offsetFile);
+        CallTimeData data = parse(restarted);
+        assertNull(data.getValues().get("/a"));
+        assertEquals(data.getValues().get("/b").getCount(), 3);
+    }
+
+    public void truncatesFileLargerThanMaximum() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile);
+        parser.setMaxLogFileSize(20);
+        write("/a 1000 10\n/a 1001 20\n", true);
+        assertEquals(parse(parser).getValues().get("/a").getCount(), 2);
+        assertEquals(this.logFile.length(), 0);
+
+        write("/a 1002 30\n", true);
+        assertEquals(parse(parser).getValues().get("/a").getCount(), 1);
+    }
+
+    public void appliesExcludesAndTransforms() throws Exception {
+        ResponseTimeLogParser parser = new ResponseTimeLogParser(this.logFile, 1000);
+        parser.setExcludes(Collections.singletonList(Pattern.compile("\\.png$")));
+        parser.setTransforms(Arrays.asList(new RegexSubstitution(Pattern.compile("^/users/\\d+"), "/users/*")));
+        write("/users/1 1000 0.5\n/users/2 1000 0.25\n/users/2 1000 0.25\n/logo.png 1000 1\n", true);
+
+        CallTimeData data = parse(parser);
+        assertEquals(data.getValues().size(), 1);
+        CallTimeDataValue users = data.getValues().get("/users/*");
+        assertEquals(users.getCount(), 3);
+        assertEquals(users.getTotal(), 1000.0);
+
+        parser.setTransforms(null);
+        write("/users/1 1000 0.5\n", true);
+        assertEquals(parse(parser).getValues().keySet(), Collections.singleton("/users/1"));
+    }
+
+    public void mergesWithCallsAlreadyAdded() throws Exception {
+        CallTimeData data = new CallTimeData(new MeasurementScheduleRequest(1, "ResponseTime", 60000, true,
+            DataType.CALLTIME));
+        data.addCallData("/a", new Date(500), 100);
+        write("/a 1000 10\n", true);
+        new ResponseTimeLogParser(this.logFile).parseLog(data);
+
+        CallTimeDataValue a = data.getValues().get("/a");
+        assertEquals(a.getCount(), 2);
+        assertEquals(a.getMinimum(), 10.0);
+        assertEquals(a.getMaximum(), 100.0);
+        assertEquals(a.getTotal(), 110.0);
+        assertEquals(a.getBeginTime(), 500, "the time range should include the calls already added");
+        assertEquals(a.getEndTime(), 1010, "the time range should include the parsed calls");
+    }
+
+    private static CallTimeData parse(ResponseTimeLogParser parser) throws IOException {
+        CallTimeData data = new CallTimeData(new MeasurementScheduleRequest(1, "ResponseTime", 60000, true,
+            DataType.CALLTIME));
+        parser.parseLog(data);
+        return data;
+    }
+
+    private void write(String text, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(this.logFile, append);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
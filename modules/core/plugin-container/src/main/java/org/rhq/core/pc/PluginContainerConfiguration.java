@@ -70,6 +70,8 @@ public class PluginContainerConfiguration {
     public static final long SERVICE_DISCOVERY_PERIOD_DEFAULT = 24 * 60 * 60L; // in seconds
     private static final String CHILD_RESOURCE_DISCOVERY_DELAY_PROP = PROP_PREFIX + "child-resource-discovery-delay";
     public static final long CHILD_RESOURCE_DISCOVERY_DELAY_DEFAULT = 5L; //in seconds
+    private static final String HASHED_INVENTORY_SYNC_PROP = PROP_PREFIX + "hashed-inventory-sync";
+    public static final boolean HASHED_INVENTORY_SYNC_DEFAULT = false;
     private static final String RESOURCE_FACTORY_CORE_POOL_SIZE_PROP = PROP_PREFIX + "resource-factory-core-pool-size";
     public static final int RESOURCE_FACTORY_CORE_POOL_SIZE_DEFAULT = 1;
     private static final String RESOURCE_FACTORY_MAX_POOL_SIZE_PROP = PROP_PREFIX + "resource-factory-max-pool-size";
@@ -100,6 +102,8 @@ public class PluginContainerConfiguration {
     public static final long DRIFT_DETECTION_INITIAL_DELAY_DEFAULT = 30L; // in seconds
     private static final String DRIFT_DETECTION_PERIOD_PROP = PROP_PREFIX + "drift-detection-period";
     public static final long DRIFT_DETECTION_PERIOD_DEFAULT = 60L; // in seconds
+    private static final String DRIFT_DETECTION_THREADS_PROP = PROP_PREFIX + "drift-detection-threads";
+    public static final int DRIFT_DETECTION_THREADS_DEFAULT = 1;
 
     // Content ----------
 
@@ -529,6 +533,26 @@ public class PluginContainerConfiguration {
         configuration.put(CHILD_RESOURCE_DISCOVERY_DELAY_PROP, Long.valueOf(delay));
     }
 
+    /**
+     * Whether the inventory is synchronized with the server by comparing subtree hashes and descending only into the
+     * subtrees that differ, rather than by receiving the server's full sync info tree after every inventory report.
+     *
+     * @return <code>true</code> if hashed inventory sync is enabled
+     */
+    public boolean isHashedInventorySync() {
+        Boolean enabled = (Boolean) configuration.get(HASHED_INVENTORY_SYNC_PROP);
+        return (enabled == null) ? HASHED_INVENTORY_SYNC_DEFAULT : enabled.booleanValue();
+    }
+
+    /**
+     * Enables or disables hashed inventory sync.
+     *
+     * @param enabled <code>true</code> to compare subtree hashes with the server when syncing inventory
+     */
+    public void setHashedInventorySync(boolean enabled) {
+        configuration.put(HASHED_INVENTORY_SYNC_PROP, Boolean.valueOf(enabled));
+    }
+
     /**
      * Returns the instance of <code>PluginFinder</code> for the container to use to locate all plugins to be loaded.
      *
@@ -610,6 +634,27 @@ public class PluginContainerConfiguration {
         configuration.put(DRIFT_DETECTION_PERIOD_PROP, period);
     }
 
+    /**
+     * Returns the number of threads that compute file digests during a drift detection scan. With a single thread
+     * files are hashed one at a time by the detection thread itself. If not explicitly set by
+     * {@link #setDriftDetectionThreads}, the default will be {@link #DRIFT_DETECTION_THREADS_DEFAULT}.
+     *
+     * @return number of drift detection digest threads
+     */
+    public int getDriftDetectionThreads() {
+        Integer threads = (Integer) configuration.get(DRIFT_DETECTION_THREADS_PROP);
+        return (threads == null) ? DRIFT_DETECTION_THREADS_DEFAULT : threads.intValue();
+    }
+
+    /**
+     * Sets the number of threads that compute file digests during a drift detection scan.
+     *
+     * @param threads number of drift detection digest threads
+     */
+    public void setDriftDetectionThreads(int threads) {
+        configuration.put(DRIFT_DETECTION_THREADS_PROP, Integer.valueOf(threads));
+    }
+
     /**
      * Returns the length of time, in seconds, before auto-discovery of content first begins.
      *
@@ -39,6 +39,7 @@ import org.rhq.core.clientapi.server.discovery.InventoryReport;
 import org.rhq.core.domain.configuration.PropertyList;
 import org.rhq.core.domain.configuration.PropertyMap;
 import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.pc.inventory.ComponentInvocationEngine;
 import org.rhq.core.pc.inventory.InventoryManager;
 import org.rhq.core.pc.inventory.ResourceContainer;
 import org.rhq.core.pc.plugin.CanonicalResourceKey;
@@ -299,6 +300,38 @@ public class PluginContainerMBeanImpl implements PluginContainerMBeanImplMBean {
         return this.pluginContainer.getPluginManager().getClassLoaderManager().getNumberOfResourceClassLoaders();
     }
 
+    public OperationResult retrieveComponentInvocationStatistics() {
+        OperationResult info = new OperationResult();
+        PropertyList facets = new PropertyList("facets");
+        PropertyList threadPools = new PropertyList("threadPools");
+        info.getComplexResults().put(facets);
+        info.getComplexResults().put(threadPools);
+
+        for (ComponentInvocationEngine.FacetStatistics stats : ResourceContainer.getFacetInvocationStatistics()) {
+            PropertyMap map = new PropertyMap("facet");
+            map.put(new PropertySimple("name", stats.getFacetName()));
+            map.put(new PropertySimple("invocations", stats.getInvocations()));
+            map.put(new PropertySimple("failures", stats.getFailures()));
+            map.put(new PropertySimple("timeouts", stats.getTimeouts()));
+            map.put(new PropertySimple("rejections", stats.getRejections()));
+            map.put(new PropertySimple("averageLatency", stats.getAverageLatencyMillis()));
+            map.put(new PropertySimple("maxLatency", stats.getMaxLatencyMillis()));
+            facets.add(map);
+        }
+
+        for (ComponentInvocationEngine.BulkheadStatistics stats : ResourceContainer
+            .getInvocationThreadPoolStatistics()) {
+            PropertyMap map = new PropertyMap("threadPool");
+            map.put(new PropertySimple("name", stats.getName()));
+            map.put(new PropertySimple("activeThreads", stats.getActiveThreads()));
+            map.put(new PropertySimple("queueDepth", stats.getQueueDepth()));
+            map.put(new PropertySimple("hungInvocations", stats.getHungInvocations()));
+            threadPools.add(map);
+        }
+
+        return info;
+    }
+
     private String generateInventoryReportString(InventoryReport report) {
         StringBuilder reportStr = new StringBuilder();
         if (report != null) {
@@ -106,4 +106,13 @@ public interface PluginContainerMBeanImplMBean {
      * @return resource classloader count
      */
     int getNumberOfResourceClassLoaders();
+
+    /**
+     * Retrieves the invocation counts, failures, timeouts, rejections and latencies of each facet interface invoked
+     * on resource components, and the active threads, queue depth and hung invocations of each plugin's invocation
+     * thread pool.
+     *
+     * @return component invocation statistics
+     */
+    OperationResult retrieveComponentInvocationStatistics();
 }
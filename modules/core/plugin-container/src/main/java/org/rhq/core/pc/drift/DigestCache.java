@@ -0,0 +1,200 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.pc.drift;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the SHA-256 digests of files by path, last modification time and size, so that a file that has not been
+ * modified since it was last hashed is not read again. The cache is shared by all drift definitions, so a file covered
+ * by several definitions, or re-added after a snapshot was reverted or pinned, is hashed once. The JRE does not expose
+ * inode numbers, so the absolute path identifies the file.
+ * <p/>
+ * The cache is kept in memory and written to a file by {@link #save()}. Entries that have not been used for
+ * {@link #MAX_IDLE_MILLIS} are dropped when the cache is saved.
+ */
+class DigestCache {
+    private static final Log log = LogFactory.getLog(DigestCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    static final long MAX_IDLE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File file;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean dirty;
+
+    /**
+     * @param file the file the cache is loaded from and saved to, or <code>null</code> to only keep the cache in memory
+     */
+    DigestCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the cached digest of the file, or <code>null</code> if the file has not been hashed with the given last
+     * modification time and size
+     */
+    String get(File file, long lastModified, long length) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+            return null;
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.digest;
+    }
+
+    void put(File file, long lastModified, long length, String digest) {
+        entries.put(file.getAbsolutePath(), new Entry(lastModified, length, digest, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads the cache from its file. A missing or unreadable file leaves the cache empty.
+     */
+    void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != FORMAT_VERSION) {
+                log.info("Ignoring drift digest cache " + file + " written in an unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                String digest = in.readUTF();
+                long lastUsed = in.readLong();
+                entries.put(path, new Entry(lastModified, length, digest, lastUsed));
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Loaded " + count + " file digests from " + file);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to load drift digest cache " + file + ", files will be hashed again: " + e.getMessage());
+            entries.clear();
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the cache to its file if it changed since it was loaded or last saved. The cache is written to a
+     * temporary file first, so a failed save leaves the previous file intact.
+     *
+     * @throws IOException if the cache could not be written
+     */
+    void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        dirty = false;
+
+        long oldest = System.currentTimeMillis() - MAX_IDLE_MILLIS;
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            if (i.next().lastUsed < oldest) {
+                i.remove();
+            }
+        }
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        boolean written = false;
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> mapEntry : snapshot) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeUTF(entry.digest);
+                out.writeLong(entry.lastUsed);
+            }
+            out.close();
+            written = true;
+        } finally {
+            if (!written) {
+                dirty = true;
+                close(out);
+                tmp.delete();
+            }
+        }
+
+        // File.renameTo does not replace an existing file on all platforms
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            dirty = true;
+            throw new IOException("Failed to replace drift digest cache " + file + " with " + tmp);
+        }
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.debug("Failed to close drift digest cache stream", e);
+            }
+        }
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final String digest;
+        volatile long lastUsed;
+
+        Entry(long lastModified, long length, String digest, long lastUsed) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.rhq.core.pc.drift;
 
 import java.io.File;
+import java.util.Set;
 
 import org.rhq.core.domain.drift.DriftDefinition;
 
@@ -27,6 +28,13 @@ public interface DriftClient {
     //void sendChangeSetContentToServer(int resourceId, String driftDefinitionName, File contentDir);
     void sendChangeSetContentToServer(int resourceId, String driftDefName, File contentZipFile);
 
+    /**
+     * @param chunkHashes the SHA-256 hashes of content chunks to be sent
+     * @return the hashes of the chunks the server does not have yet, or <code>null</code> if the server only accepts
+     * whole files
+     */
+    Set<String> findMissingChunks(Set<String> chunkHashes);
+
     void repeatChangeSet(int resourceId, String driftDefName, int version);
 
     File getAbsoluteBaseDirectory(int resourceId, DriftDefinition driftDefinition);
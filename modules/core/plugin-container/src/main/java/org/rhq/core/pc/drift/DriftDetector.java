@@ -30,12 +30,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,7 +51,6 @@ import org.rhq.common.drift.Headers;
 import org.rhq.core.domain.drift.DriftChangeSetCategory;
 import org.rhq.core.domain.drift.DriftDefinition;
 import org.rhq.core.domain.drift.Filter;
-import org.rhq.core.util.MessageDigestGenerator;
 import org.rhq.core.util.file.FileVisitor;
 
 /**
@@ -66,7 +69,7 @@ public class DriftDetector implements Runnable {
 
     private ChangeSetManager changeSetMgr;
 
-    private MessageDigestGenerator digestGenerator = new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+    private FileDigester digester = new FileDigester(1, null);
 
     private DriftClient driftClient;
 
@@ -82,6 +85,10 @@ public class DriftDetector implements Runnable {
         this.driftClient = driftClient;
     }
 
+    void setFileDigester(FileDigester digester) {
+        this.digester = digester;
+    }
+
     @Override
     public void run() {
         log.debug("Starting drift detection...");
@@ -163,6 +170,9 @@ public class DriftDetector implements Runnable {
         } finally {
             try {
                 scheduleQueue.deactivateSchedule(updateSchedule);
+                if (updateSchedule) {
+                    digester.saveCache();
+                }
                 long endTime = System.currentTimeMillis();
                 log.debug("Finished drift detection in " + (endTime - startTime) + " ms");
 
@@ -280,14 +290,19 @@ public class DriftDetector implements Runnable {
                 updatePinnedSnapshot(schedule, snapshotFile, changedPinnedEntries);
             }
 
-            // add new files to the snapshotEntries and deltaEntries
+            // add new files to the snapshotEntries and deltaEntries, submitting all of them for hashing before waiting for the first digest
+            Map<File, Future<String>> newFileDigests = new LinkedHashMap<File, Future<String>>();
             for (File file : newFiles) {
+                newFileDigests.put(file, digester.submit(file));
+            }
+            for (Map.Entry<File, Future<String>> newFileDigest : newFileDigests.entrySet()) {
+                File file = newFileDigest.getKey();
                 try {
                     if (log.isInfoEnabled()) {
                         log.info("Detected added file for " + schedule + " --> " + file.getAbsolutePath());
                     }
 
-                    FileEntry addedFileEntry = getAddedFileEntry(basedir, file);
+                    FileEntry addedFileEntry = getAddedFileEntry(basedir, file, newFileDigest.getValue());
                     if (null != addedFileEntry) {
                         addedEntries.add(addedFileEntry);
                     }
@@ -369,15 +384,16 @@ public class DriftDetector implements Runnable {
      * 
      * @param basedir the drift def base directory
      * @param file the new file to add
+     * @param sha256 the file's digest, as submitted to the {@link FileDigester}
      * @return the new FileEntry, or null if this file is not appropriate for drift detection (typically if the
      * underlying file does not support the needed File operations.
      * @throws Will throw unexpected IOExceptions, outside of the FileNotFoundException it looks for. 
      */
-    private FileEntry getAddedFileEntry(File basedir, File file) throws IOException {
+    private FileEntry getAddedFileEntry(File basedir, File file, Future<String> digest) throws IOException {
         FileEntry result = null;
 
         try {
-            String sha256 = sha256(file);
+            String sha256 = FileDigester.get(digest);
             String relativePath = relativePath(basedir, file);
             long lastModified = file.lastModified();
             long length = file.length();
@@ -437,6 +453,11 @@ public class DriftDetector implements Runnable {
 
         boolean result = false;
 
+        // Hash the files that need a SHA comparison while the snapshot is read, then compare the entries in
+        // snapshot order.
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        List<Future<String>> currentSHAs = new ArrayList<Future<String>>();
+
         for (FileEntry entry : snapshotReader) {
             File file = new File(basedir, entry.getFile());
             newFiles.remove(file);
@@ -456,8 +477,7 @@ public class DriftDetector implements Runnable {
                 continue;
 
             } else {
-                String currentSHA = null;
-                boolean isChanged = false;
+                Future<String> currentSHA = null;
 
                 // perform a SHA comparison if we are unable to compare size and lastModified or if the
                 // size or lastModified test fails.  We may not have size or lastModified values for the
@@ -466,7 +486,23 @@ public class DriftDetector implements Runnable {
                 if (entry.getLastModified() == -1 || entry.getSize() == -1
                     || entry.getLastModified() != file.lastModified() || entry.getSize() != file.length()) {
 
-                    currentSHA = sha256(file);
+                    currentSHA = digester.submit(file);
+                }
+
+                entries.add(entry);
+                currentSHAs.add(currentSHA);
+            }
+        }
+
+        try {
+            for (int i = 0, size = entries.size(); i < size; ++i) {
+                FileEntry entry = entries.get(i);
+                File file = new File(basedir, entry.getFile());
+                String currentSHA = null;
+                boolean isChanged = false;
+
+                if (null != currentSHAs.get(i)) {
+                    currentSHA = FileDigester.get(currentSHAs.get(i));
                     isChanged = !entry.getNewSHA().equals(currentSHA);
                 }
 
@@ -491,6 +527,13 @@ public class DriftDetector implements Runnable {
                     unchangedEntries.add(entry);
                 }
             }
+        } finally {
+            // if the scan failed, don't leave the remaining files to be hashed for nothing
+            for (Future<String> currentSHA : currentSHAs) {
+                if (null != currentSHA) {
+                    currentSHA.cancel(false);
+                }
+            }
         }
 
         return result;
@@ -688,36 +731,44 @@ public class DriftDetector implements Runnable {
         List<Filter> includes = driftDef.getIncludes();
         List<Filter> excludes = driftDef.getExcludes();
 
+        // files are hashed while the directories are walked, and written to the change set in the order visited
+        final Map<File, Future<String>> digests = new LinkedHashMap<File, Future<String>>();
+
         for (File dir : getScanDirectories(basedir, includes)) {
             forEachFile(dir, new FilterFileVisitor(basedir, includes, excludes, new FileVisitor() {
                 @Override
                 public void visit(File file) {
-                    try {
-                        if (!file.canRead()) {
-                            if (log.isDebugEnabled()) {
-                                log.debug("Skipping " + file.getPath() + " since we do not have read access.");
-                            }
-                            return;
-                        }
-
+                    if (!file.canRead()) {
                         if (log.isDebugEnabled()) {
-                            log.debug("Adding " + file.getPath() + " to coverage change set for " + schedule);
-                        }
-
-                        FileEntry addedFileEntry = getAddedFileEntry(basedir, file);
-                        if (null != addedFileEntry) {
-                            writer.write(addedFileEntry);
+                            log.debug("Skipping " + file.getPath() + " since we do not have read access.");
                         }
-
-                    } catch (Throwable t) {
-                        // report the error but keep going, perhaps it is specific to a single file, try to
-                        // finish the detection.
-                        log.error("An unexpected error occurred while generating a coverage change set for file "
-                            + file.getPath() + " in schedule " + schedule + ". Skipping file.", t);
+                        return;
                     }
+
+                    digests.put(file, digester.submit(file));
                 }
             }));
         }
+
+        for (Map.Entry<File, Future<String>> digest : digests.entrySet()) {
+            File file = digest.getKey();
+            try {
+                if (log.isDebugEnabled()) {
+                    log.debug("Adding " + file.getPath() + " to coverage change set for " + schedule);
+                }
+
+                FileEntry addedFileEntry = getAddedFileEntry(basedir, file, digest.getValue());
+                if (null != addedFileEntry) {
+                    writer.write(addedFileEntry);
+                }
+
+            } catch (Throwable t) {
+                // report the error but keep going, perhaps it is specific to a single file, try to
+                // finish the detection.
+                log.error("An unexpected error occurred while generating a coverage change set for file "
+                    + file.getPath() + " in schedule " + schedule + ". Skipping file.", t);
+            }
+        }
     }
 
     private String relativePath(File basedir, File file) {
@@ -733,10 +784,6 @@ public class DriftDetector implements Runnable {
         return filePath.substring(basedirLen);
     }
 
-    private String sha256(File file) throws IOException {
-        return digestGenerator.calcDigestString(file);
-    }
-
     private String basedir(int resourceId, DriftDefinition driftDef) {
         return driftClient.getAbsoluteBaseDirectory(resourceId, driftDef).getAbsolutePath();
     }
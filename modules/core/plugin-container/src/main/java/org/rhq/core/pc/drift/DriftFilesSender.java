@@ -1,12 +1,20 @@
 package org.rhq.core.pc.drift;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -15,9 +23,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.rhq.common.drift.ChangeSetReader;
+import org.rhq.common.drift.ContentChunker;
+import org.rhq.common.drift.ContentChunker.Chunk;
 import org.rhq.common.drift.FileEntry;
 import org.rhq.common.drift.Headers;
 import org.rhq.core.domain.drift.DriftFile;
+import org.rhq.core.util.MessageDigestGenerator;
 import org.rhq.core.util.stream.StreamUtil;
 
 public class DriftFilesSender implements Runnable {
@@ -79,23 +90,25 @@ public class DriftFilesSender implements Runnable {
             // the content.
             //
             // jsanda
+            //
+            // A file that is sent in chunks has a <SHA>.chunks manifest entry
+            // instead of its content, and each of its chunks that the server
+            // does not have yet is sent as a <chunk SHA>.chunk entry. See
+            // ContentChunker.
 
             String timestamp = Long.toString(System.currentTimeMillis());
             String contentFileName = "content_" + timestamp + ".zip";
             final File zipFile = new File(changeSetDir, contentFileName);
             stream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
 
+            Map<DriftFile, File> files = new LinkedHashMap<DriftFile, File>();
             if (driftFiles.size() == 1) {
                 DriftFile driftFile = driftFiles.get(0);
                 File file = find(driftFile);
                 if (file == null || !file.exists()) {
                     log.warn("Unable to find file for " + driftFile);
                 } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Adding " + file.getPath() + " to " + contentFileName);
-                    }
-                    addFileToContentZipFile(stream, driftFile, file);
-                    ++numContentFiles;
+                    files.put(driftFile, file);
                 }
             } else {
                 Map<String, FileEntry> fileEntries = createSnapshotIndex();
@@ -109,15 +122,52 @@ public class DriftFilesSender implements Runnable {
                     if (file == null || !file.exists()) {
                         log.warn("Unable to find file for " + driftFile);
                     } else {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Adding " + file.getPath() + " to " + contentFileName);
-                        }
-                        addFileToContentZipFile(stream, driftFile, file);
-                        ++numContentFiles;
+                        files.put(driftFile, file);
                     }
                 }
             }
 
+            // Large files are split into content defined chunks, and only the chunks the server does not have yet
+            // are sent along with a manifest of each file's chunks. If the server only accepts whole files, or a
+            // file could not be chunked, the file is sent whole.
+            Map<DriftFile, List<Chunk>> chunkedFiles = chunkLargeFiles(files);
+            Set<String> missingChunks = chunkedFiles.isEmpty() ? null : driftClient
+                .findMissingChunks(chunkHashes(chunkedFiles));
+            if (missingChunks == null) {
+                chunkedFiles.clear();
+            }
+
+            long contentBytes = 0;
+            long sentBytes = 0;
+            Set<String> sentChunks = new HashSet<String>();
+            for (Map.Entry<DriftFile, File> entry : files.entrySet()) {
+                DriftFile driftFile = entry.getKey();
+                File file = entry.getValue();
+                List<Chunk> chunks = chunkedFiles.get(driftFile);
+                if (log.isDebugEnabled()) {
+                    log.debug("Adding " + file.getPath() + (chunks == null ? "" : " as " + chunks.size() + " chunks")
+                        + " to " + contentFileName);
+                }
+                if (chunks == null) {
+                    addFileToContentZipFile(stream, driftFile, file);
+                    sentBytes += file.length();
+                } else {
+                    long sentChunkBytes = addChunksToContentZipFile(stream, driftFile, file, chunks, missingChunks,
+                        sentChunks);
+                    if (sentChunkBytes < 0) {
+                        continue;
+                    }
+                    sentBytes += sentChunkBytes;
+                }
+                contentBytes += file.length();
+                ++numContentFiles;
+            }
+
+            if (log.isInfoEnabled() && !chunkedFiles.isEmpty()) {
+                log.info("Sending " + sentBytes + " of " + contentBytes + " content bytes for " + defToString()
+                    + ", " + (contentBytes - sentBytes) + " bytes were already stored on the server");
+            }
+
             if (numContentFiles > 0) {
                 driftClient.sendChangeSetContentToServer(resourceId, headers.getDriftDefinitionName(), zipFile);
             }
@@ -165,6 +215,78 @@ public class DriftFilesSender implements Runnable {
         }
     }
 
+    /**
+     * Adds those chunks of a chunked file the server is missing, unless already added for another file, followed by
+     * the file's manifest. Each chunk is hashed from the very bytes that are added, so a file that changed after it
+     * was chunked is detected; its manifest is left out then, as the file no longer has the requested content.
+     *
+     * @return the number of chunk bytes added, or -1 if the file changed after it was chunked
+     */
+    private long addChunksToContentZipFile(ZipOutputStream stream, DriftFile driftFile, File file,
+        List<Chunk> chunks, Set<String> missingChunks, Set<String> sentChunks) throws IOException {
+
+        long sentBytes = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[ContentChunker.MAX_CHUNK_SIZE];
+            for (Chunk chunk : chunks) {
+                if (!missingChunks.contains(chunk.getHash()) || sentChunks.contains(chunk.getHash())) {
+                    continue;
+                }
+                raf.seek(chunk.getOffset());
+                raf.readFully(buffer, 0, chunk.getLength());
+                MessageDigestGenerator digest = new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+                digest.add(buffer, 0, chunk.getLength());
+                if (!chunk.getHash().equals(digest.getDigestString())) {
+                    log.warn(file.getPath() + " changed after it was split into chunks, it will not be sent");
+                    return -1;
+                }
+                stream.putNextEntry(new ZipEntry(chunk.getHash() + ContentChunker.CHUNK_SUFFIX));
+                stream.write(buffer, 0, chunk.getLength());
+                sentChunks.add(chunk.getHash());
+                sentBytes += chunk.getLength();
+            }
+        } catch (EOFException e) {
+            log.warn(file.getPath() + " was truncated after it was split into chunks, it will not be sent");
+            return -1;
+        } finally {
+            raf.close();
+        }
+
+        stream.putNextEntry(new ZipEntry(driftFile.getHashId() + ContentChunker.MANIFEST_SUFFIX));
+        Writer manifest = new OutputStreamWriter(stream, "UTF-8");
+        ContentChunker.writeManifest(chunks, manifest);
+        return sentBytes;
+    }
+
+    private Map<DriftFile, List<Chunk>> chunkLargeFiles(Map<DriftFile, File> files) {
+        Map<DriftFile, List<Chunk>> chunkedFiles = new HashMap<DriftFile, List<Chunk>>();
+        ContentChunker chunker = new ContentChunker();
+        for (Map.Entry<DriftFile, File> entry : files.entrySet()) {
+            File file = entry.getValue();
+            if (file.length() < ContentChunker.CHUNKING_THRESHOLD) {
+                continue;
+            }
+            try {
+                chunkedFiles.put(entry.getKey(), chunker.chunk(file));
+            } catch (IOException e) {
+                log.warn("Unable to split " + file.getPath() + " into chunks, it will be sent whole: "
+                    + e.getMessage());
+            }
+        }
+        return chunkedFiles;
+    }
+
+    private static Set<String> chunkHashes(Map<DriftFile, List<Chunk>> chunkedFiles) {
+        Set<String> hashes = new HashSet<String>();
+        for (List<Chunk> chunks : chunkedFiles.values()) {
+            for (Chunk chunk : chunks) {
+                hashes.add(chunk.getHash());
+            }
+        }
+        return hashes;
+    }
+
     private File find(DriftFile driftFile) throws IOException {
         ChangeSetReader reader = changeSetMgr.getChangeSetReader(resourceId, headers.getDriftDefinitionName());
 
@@ -35,6 +35,7 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
@@ -77,6 +78,8 @@ public class DriftManager extends AgentService implements DriftAgentService, Dri
 
     private ChangeSetManager changeSetMgr;
 
+    private FileDigester fileDigester;
+
     private boolean initialized;
 
     public DriftManager() {
@@ -111,6 +114,12 @@ public class DriftManager extends AgentService implements DriftAgentService, Dri
         driftDetector.setChangeSetManager(changeSetMgr);
         driftDetector.setDriftClient(this);
 
+        DigestCache digestCache = new DigestCache(new File(pluginContainerConfiguration.getDataDirectory(),
+            "drift-digests.dat"));
+        digestCache.load();
+        fileDigester = new FileDigester(pluginContainerConfiguration.getDriftDetectionThreads(), digestCache);
+        driftDetector.setFileDigester(fileDigester);
+
         InventoryManager inventoryMgr = PluginContainer.getInstance().getInventoryManager();
         long startTime = System.currentTimeMillis();
         initSchedules(inventoryMgr.getPlatform(), inventoryMgr);
@@ -295,6 +304,11 @@ public class DriftManager extends AgentService implements DriftAgentService, Dri
             driftThreadPool = null;
         }
 
+        if (fileDigester != null) {
+            fileDigester.shutdown();
+            fileDigester = null;
+        }
+
         if (schedulesQueue != null) {
             schedulesQueue.clear();
             schedulesQueue = null;
@@ -375,6 +389,18 @@ public class DriftManager extends AgentService implements DriftAgentService, Dri
         }
     }
 
+    @Override
+    public Set<String> findMissingChunks(Set<String> chunkHashes) {
+        try {
+            DriftServerService driftServer = pluginContainerConfiguration.getServerServices().getDriftServerService();
+            return driftServer.findMissingDriftFileChunks(chunkHashes);
+        } catch (RuntimeException e) {
+            // most likely a server that predates chunked content, fall back to sending whole files
+            log.warn("Unable to find out which content chunks the server has, sending whole files: " + e.getMessage());
+            return null;
+        }
+    }
+
     @Override
     public void repeatChangeSet(int resourceId, String driftDefName, int version) {
         DriftServerService driftServer = pluginContainerConfiguration.getServerServices().getDriftServerService();
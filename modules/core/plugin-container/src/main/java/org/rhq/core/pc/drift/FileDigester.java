@@ -0,0 +1,230 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.pc.drift;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.pc.util.LoggingThreadFactory;
+import org.rhq.core.util.MessageDigestGenerator;
+
+/**
+ * Computes the SHA-256 digests of the files scanned by the {@link DriftDetector}. Digests are looked up in a
+ * {@link DigestCache} first. Files are hashed on a bounded pool of threads when more than one thread is configured,
+ * otherwise on the calling thread. When the pool's queue is full, or the pool has been shut down, the calling thread
+ * hashes the file itself, which keeps a directory walk from getting too far ahead of the hashing.
+ * <p/>
+ * Files larger than {@link #MAPPED_READ_THRESHOLD} are read through memory mapped regions of at most
+ * {@link #MAPPED_REGION_SIZE} bytes rather than a stream. This is only done on 64 bit JVMs, whose address space the
+ * mappings cannot exhaust, and not on Windows, where a mapped file cannot be deleted or replaced until the mapping is
+ * garbage collected. A file that is truncated while it is mapped makes the read fault with an {@link InternalError};
+ * such a file is read again as a stream.
+ * <p/>
+ * The digest of a file whose last modification time is within {@link #MTIME_GRANULARITY_MILLIS} of the time it was
+ * read is not cached: file systems such as FAT or ext3 keep the modification time in steps of up to two seconds, so
+ * the file can be written again after it was read without its modification time or size changing.
+ */
+class FileDigester {
+    private static final Log log = LogFactory.getLog(FileDigester.class);
+
+    private static final String THREAD_POOL_NAME = "DriftDetector.digest";
+
+    static final long MAPPED_READ_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    static final long MTIME_GRANULARITY_MILLIS = 2000L;
+
+    private static final int QUEUE_SIZE_PER_THREAD = 64;
+
+    private final DigestCache cache;
+
+    private final ThreadPoolExecutor threadPool;
+
+    private final long mappedReadThreshold;
+
+    /**
+     * @param threads the number of threads to hash files with, files are hashed on the calling thread if 1 or less
+     * @param cache the cache of digests, or <code>null</code> to always hash files
+     */
+    FileDigester(int threads, DigestCache cache) {
+        this.cache = cache;
+        if (threads > 1) {
+            threadPool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_SIZE_PER_THREAD), new LoggingThreadFactory(
+                    THREAD_POOL_NAME, true), new RejectedExecutionHandler() {
+                    // unlike CallerRunsPolicy, also run the task after shutdown so its future always completes
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        task.run();
+                    }
+                });
+            threadPool.allowCoreThreadTimeOut(true);
+        } else {
+            threadPool = null;
+        }
+        mappedReadThreshold = (File.separatorChar != '\\' && is64BitJvm()) ? MAPPED_READ_THRESHOLD : Long.MAX_VALUE;
+    }
+
+    /**
+     * Hashes the file on the calling thread.
+     *
+     * @throws java.io.FileNotFoundException if the file does not exist or cannot be opened for reading
+     * @throws IOException if the file could not be read
+     */
+    String digest(File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (cache != null) {
+            String digest = cache.get(file, lastModified, length);
+            if (digest != null) {
+                return digest;
+            }
+        }
+
+        long readStarted = System.currentTimeMillis();
+        String digest = null;
+        if (length >= mappedReadThreshold) {
+            try {
+                digest = calcMappedDigest(file);
+            } catch (InternalError e) {
+                // the file shrank while it was mapped
+                log.debug("Failed to read [" + file + "] through memory mapped regions, reading it as a stream: " + e);
+            }
+        }
+        if (digest == null) {
+            digest = new MessageDigestGenerator(MessageDigestGenerator.SHA_256).calcDigestString(file);
+        }
+
+        // only remember the digest if the file was not modified while it was read, and cannot be modified later on
+        // without its modification time changing
+        if (cache != null && file.lastModified() == lastModified && file.length() == length
+            && readStarted - lastModified > MTIME_GRANULARITY_MILLIS) {
+            cache.put(file, lastModified, length, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Schedules the file to be hashed. The digest, or the failure to compute it, is obtained with
+     * {@link #get(Future)}.
+     */
+    Future<String> submit(final File file) {
+        Callable<String> task = new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return digest(file);
+            }
+        };
+
+        if (threadPool == null) {
+            FutureTask<String> future = new FutureTask<String>(task);
+            future.run();
+            return future;
+        }
+        return threadPool.submit(task);
+    }
+
+    /**
+     * Waits for a digest scheduled by {@link #submit(File)}.
+     *
+     * @throws IOException the failure to read the file, including {@link java.io.FileNotFoundException}
+     */
+    static String get(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a file digest");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Writes the digest cache to disk if it changed.
+     */
+    void saveCache() {
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                log.warn("Failed to save the drift digest cache: " + e.getMessage());
+            }
+        }
+    }
+
+    void shutdown() {
+        if (threadPool != null) {
+            // queued files are still hashed, a detection in progress may be waiting for them
+            threadPool.shutdown();
+        }
+        saveCache();
+    }
+
+    private static boolean is64BitJvm() {
+        String dataModel = System.getProperty("sun.arch.data.model");
+        if (dataModel != null) {
+            return dataModel.equals("64");
+        }
+        return System.getProperty("os.arch", "").contains("64");
+    }
+
+    String calcMappedDigest(File file) throws IOException {
+        MessageDigestGenerator generator = new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+        MessageDigest messageDigest = generator.getMessageDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_REGION_SIZE, size - position));
+                messageDigest.update(region);
+            }
+        } finally {
+            in.close();
+        }
+        return generator.getDigestString();
+    }
+}
@@ -30,6 +30,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -267,6 +268,7 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
         // descendants, must also be DOWN. So, there's no need to even ask the resource component
         // for its current availability - its current avail is set to the parent avail type and that's that.
         // Otherwise, checkAvail as needed. 
+        boolean skipped = false;
         if (deferToParent || (AvailabilityType.DOWN == parentAvailType)) {
             current = parentAvailType;
             ++scan.numDeferToParent;
@@ -300,6 +302,14 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
                             current = safeGetAvailability(resourceComponent);
                         }
                     }
+                } catch (RejectedExecutionException e) {
+                    // the plugin's invocation threads are all busy - skip the check and keep the last known avail
+                    skipped = true;
+                    ++scan.numSkippedChecks;
+                    current = (null == previous) ? AvailabilityType.UNKNOWN : previous.getAvailabilityType();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Skipped checking availability of " + resource + ": " + e.getMessage());
+                    }
                 } catch (Throwable t) {
                     ResourceError resourceError = new ResourceError(resource, ResourceErrorType.AVAILABILITY_CHECK,
                         t.getLocalizedMessage(), ThrowableUtil.getStackAsString(t), System.currentTimeMillis());
@@ -314,18 +324,19 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
                     }
                 }
                 // Assume DOWN if for some reason the avail check failed 
-                if (AvailabilityType.UNKNOWN == current) {
+                if (!skipped && (AvailabilityType.UNKNOWN == current)) {
                     current = AvailabilityType.DOWN;
                 }
             }
         }
 
         // Add the availability to the report if it changed from its previous state or if this is a full report.
-        // Update the resource container only if the avail has changed.
+        // Update the resource container only if the avail has changed. A skipped check of a resource whose avail
+        // was never known leaves nothing to report.
         boolean availChanged = (null != current && AvailabilityType.UNKNOWN != current && (null == previous || current != previous
             .getAvailabilityType()));
 
-        if (availChanged || scan.isFull) {
+        if (availChanged || (scan.isFull && !(skipped && null == previous))) {
             Availability availability;
 
             if (availChanged) {
@@ -454,6 +465,7 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
         int numPushedByInterval = 0;
         int numAvailabilityChanges = 0;
         int numDeferToParent = 0;
+        int numSkippedChecks = 0;
 
         public Scan(long startTime, boolean isFull) {
             this.startTime = startTime;
@@ -513,13 +525,20 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
             return numDeferToParent;
         }
 
+        /**
+         * @return the number of availability checks skipped because the plugin's invocation threads were all busy
+         */
+        public int getNumSkippedChecks() {
+            return numSkippedChecks;
+        }
+
         @Override
         public String toString() {
             return "Scan [startTime=" + startTime + ", endTime=" + endTime + ", runtime=" + runtime + ", isFull="
                 + isFull + ", isForced=" + isForced + ", numResources=" + numResources + ", numGetAvailabilityCalls="
                 + numGetAvailabilityCalls + ", numScheduledRandomly=" + numScheduledRandomly + ", numPushedByInterval="
                 + numPushedByInterval + ", numAvailabilityChanges=" + numAvailabilityChanges + ", numDeferToParent="
-                + numDeferToParent + "]";
+                + numDeferToParent + ", numSkippedChecks=" + numSkippedChecks + "]";
         }
     }
 }
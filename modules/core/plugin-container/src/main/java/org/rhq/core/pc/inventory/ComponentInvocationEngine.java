@@ -0,0 +1,391 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.pc.util.HashedWheelTimer;
+import org.rhq.core.pc.util.LoggingThreadFactory;
+
+/**
+ * Runs resource component facet invocations for {@link ResourceContainer}'s proxies.
+ *
+ * <p>Invocations that need a timeout run on a bounded thread pool of the component's plugin (one for daemon and one for
+ * non-daemon threads), so a plugin whose managed resources hang can exhaust only its own threads instead of making
+ * the agent create a new thread for every call. When both the pool and its queue are full the invocation is rejected
+ * with a {@link RejectedExecutionException}. Timeouts are tracked by a single {@link HashedWheelTimer}, which cancels
+ * (interrupts) the invocation when it expires and reports it as hung if it still has not returned after a further grace
+ * period. The timeout starts when a pool thread begins running the invocation, so time spent waiting in the queue
+ * does not count against it. The caller waits for the queue as well, but for no longer than the timeout plus an
+ * allowance for the queue wait, counted from when the invocation was submitted; after that the invocation is taken
+ * off the queue (or cancelled, if it started in the meantime) and the caller gets a {@link TimeoutException}.
+ * Invocations without a timeout run directly on the calling thread.</p>
+ *
+ * <p>The pool size and queue length per plugin are set with the
+ * <code>rhq.agent.plugins.facet-invocation.threads-per-plugin</code> and
+ * <code>rhq.agent.plugins.facet-invocation.queue-size-per-plugin</code> system properties, the allowance for the
+ * queue wait in milliseconds with <code>rhq.agent.plugins.facet-invocation.max-queue-wait</code>.</p>
+ */
+public class ComponentInvocationEngine {
+    private static final Log LOG = LogFactory.getLog(ComponentInvocationEngine.class);
+
+    private static final String THREADS_PER_PLUGIN_PROP = "rhq.agent.plugins.facet-invocation.threads-per-plugin";
+    private static final int THREADS_PER_PLUGIN_DEFAULT = 20;
+    private static final String QUEUE_SIZE_PER_PLUGIN_PROP = "rhq.agent.plugins.facet-invocation.queue-size-per-plugin";
+    private static final int QUEUE_SIZE_PER_PLUGIN_DEFAULT = 1000;
+    private static final String MAX_QUEUE_WAIT_PROP = "rhq.agent.plugins.facet-invocation.max-queue-wait";
+    private static final long MAX_QUEUE_WAIT_DEFAULT = 60 * 1000L;
+
+    private static final long TIMER_TICK_MILLIS = 10L;
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+    // an invocation that ignored being interrupted for this long after its timeout is reported as hung
+    private static final long HUNG_GRACE_PERIOD_MILLIS = 60 * 1000L;
+
+    private final String poolNamePrefix;
+    private final int threadsPerPlugin;
+    private final int queueSizePerPlugin;
+    private final long maxQueueWaitMillis;
+    private final HashedWheelTimer timer;
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    private final ConcurrentMap<String, FacetStatistics> facetStatistics = new ConcurrentHashMap<String, FacetStatistics>();
+
+    ComponentInvocationEngine(String poolNamePrefix) {
+        this.poolNamePrefix = poolNamePrefix;
+        this.threadsPerPlugin = Integer.parseInt(System.getProperty(THREADS_PER_PLUGIN_PROP,
+            String.valueOf(THREADS_PER_PLUGIN_DEFAULT)));
+        this.queueSizePerPlugin = Integer.parseInt(System.getProperty(QUEUE_SIZE_PER_PLUGIN_PROP,
+            String.valueOf(QUEUE_SIZE_PER_PLUGIN_DEFAULT)));
+        this.maxQueueWaitMillis = Long.parseLong(System.getProperty(MAX_QUEUE_WAIT_PROP,
+            String.valueOf(MAX_QUEUE_WAIT_DEFAULT)));
+        this.timer = new HashedWheelTimer(poolNamePrefix + ".timer", TIMER_TICK_MILLIS, TIMER_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Invokes the given call and waits for its result.
+     *
+     * @param  pluginName   the plugin of the invoked component, selects the thread pool
+     * @param  facetName    the facet interface being invoked, used for the statistics
+     * @param  daemonThread whether the call may run on a daemon thread
+     * @param  timeout      milliseconds after the call started running after which it is interrupted; if not
+     *                      positive the call runs on the calling thread without a timeout
+     * @param  call         the invocation
+     *
+     * @throws ExecutionException         wrapping whatever the call threw
+     * @throws TimeoutException           if the call did not complete within the timeout, or did not complete within
+     *                                    the timeout plus the allowance for the queue wait after it was submitted
+     * @throws RejectedExecutionException if the plugin's thread pool and its queue are full
+     * @throws InterruptedException       if the calling thread was interrupted while waiting
+     */
+    <T> T invoke(String pluginName, String facetName, boolean daemonThread, long timeout, Callable<T> call)
+        throws ExecutionException, TimeoutException, InterruptedException {
+        FacetStatistics statistics = getFacetStatistics(facetName);
+        long start = System.nanoTime();
+
+        if (timeout <= 0) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                statistics.failures.incrementAndGet();
+                throw new ExecutionException(e);
+            } finally {
+                statistics.record(System.nanoTime() - start);
+            }
+        }
+
+        Bulkhead bulkhead = getBulkhead(pluginName, daemonThread);
+        Invocation<T> invocation = new Invocation<T>(call, bulkhead, facetName, timeout);
+        try {
+            bulkhead.executor.execute(invocation);
+        } catch (RejectedExecutionException e) {
+            statistics.rejections.incrementAndGet();
+            throw new RejectedExecutionException("Thread pool [" + bulkhead.name + "] is exhausted, "
+                + bulkhead.executor.getActiveCount() + " invocations running and " + bulkhead.executor.getQueue().size()
+                + " queued");
+        }
+
+        try {
+            return invocation.get(timeout + maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // still queued behind hung invocations, or started too late to finish in time
+            bulkhead.executor.remove(invocation);
+            invocation.expire();
+            statistics.timeouts.incrementAndGet();
+            throw new TimeoutException("Invocation timed out after " + timeout + " milliseconds");
+        } catch (CancellationException e) {
+            statistics.timeouts.incrementAndGet();
+            throw new TimeoutException("Invocation timed out after " + timeout + " milliseconds");
+        } catch (ExecutionException e) {
+            statistics.failures.incrementAndGet();
+            throw e;
+        } catch (InterruptedException e) {
+            if (daemonThread) {
+                invocation.cancel(true);
+            }
+            throw e;
+        } finally {
+            statistics.record(System.nanoTime() - start);
+        }
+    }
+
+    void shutdown() {
+        timer.stop();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.executor.shutdown();
+        }
+    }
+
+    /**
+     * @return a snapshot of the thread pools, one for each plugin and daemon flag that invoked anything so far
+     */
+    List<BulkheadStatistics> getBulkheadStatistics() {
+        List<BulkheadStatistics> result = new ArrayList<BulkheadStatistics>(bulkheads.size());
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            result.add(new BulkheadStatistics(bulkhead.name, bulkhead.executor.getActiveCount(), bulkhead.executor
+                .getQueue().size(), bulkhead.hungInvocations.get()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the statistics of each facet interface invoked so far
+     */
+    List<FacetStatistics> getFacetStatistics() {
+        return new ArrayList<FacetStatistics>(facetStatistics.values());
+    }
+
+    private FacetStatistics getFacetStatistics(String facetName) {
+        FacetStatistics statistics = facetStatistics.get(facetName);
+        if (statistics == null) {
+            statistics = new FacetStatistics(facetName);
+            FacetStatistics existing = facetStatistics.putIfAbsent(facetName, statistics);
+            if (existing != null) {
+                statistics = existing;
+            }
+        }
+        return statistics;
+    }
+
+    private Bulkhead getBulkhead(String pluginName, boolean daemonThread) {
+        String name = poolNamePrefix + (daemonThread ? ".daemon." : ".nonDaemon.") + pluginName;
+        Bulkhead bulkhead = bulkheads.get(name);
+        if (bulkhead == null) {
+            bulkhead = new Bulkhead(name, daemonThread, threadsPerPlugin, queueSizePerPlugin);
+            Bulkhead existing = bulkheads.putIfAbsent(name, bulkhead);
+            if (existing != null) {
+                bulkhead.executor.shutdown();
+                bulkhead = existing;
+            }
+        }
+        return bulkhead;
+    }
+
+    private static class Bulkhead {
+        final String name;
+        final ThreadPoolExecutor executor;
+        final AtomicInteger hungInvocations = new AtomicInteger();
+
+        Bulkhead(String name, boolean daemon, int threads, int queueSize) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new LoggingThreadFactory(name, daemon));
+            // idle plugins should not hold on to their threads
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private class Invocation<T> extends FutureTask<T> {
+        private final Bulkhead bulkhead;
+        private final String facetName;
+        private final long timeoutMillis;
+        private volatile HashedWheelTimer.Timeout timeout;
+        private volatile Thread runner;
+        private volatile boolean hung;
+
+        Invocation(Callable<T> call, Bulkhead bulkhead, String facetName, long timeoutMillis) {
+            super(call);
+            this.bulkhead = bulkhead;
+            this.facetName = facetName;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            runner = Thread.currentThread();
+            if (!isDone()) {
+                timeout = timer.schedule(new Expiry(), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            try {
+                super.run();
+            } finally {
+                runner = null;
+                if (hung) {
+                    bulkhead.hungInvocations.decrementAndGet();
+                    LOG.info("Hung [" + facetName + "] invocation on [" + bulkhead.name + "] finally returned.");
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        /**
+         * Cancels the invocation and, if it is running, starts watching for it to actually return.
+         */
+        void expire() {
+            if (cancel(true) && runner != null) {
+                timer.schedule(new HungCheck(), HUNG_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private class Expiry implements Runnable {
+            public void run() {
+                expire();
+            }
+        }
+
+        private class HungCheck implements Runnable {
+            public void run() {
+                Thread thread = runner;
+                if (thread != null) {
+                    hung = true;
+                    bulkhead.hungInvocations.incrementAndGet();
+                    LOG.warn("[" + facetName + "] invocation on thread [" + thread.getName()
+                        + "] is hung - it did not return " + HUNG_GRACE_PERIOD_MILLIS
+                        + " ms after being interrupted for timing out.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Invocation counters and latencies of one facet interface, across all plugins.
+     */
+    public static class FacetStatistics {
+        private final String facetName;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong rejections = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        FacetStatistics(String facetName) {
+            this.facetName = facetName;
+        }
+
+        void record(long latencyNanos) {
+            invocations.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            long max;
+            while (latencyNanos > (max = maxLatencyNanos.get())) {
+                if (maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+                    break;
+                }
+            }
+        }
+
+        public String getFacetName() {
+            return facetName;
+        }
+
+        public long getInvocations() {
+            return invocations.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getRejections() {
+            return rejections.get();
+        }
+
+        public long getAverageLatencyMillis() {
+            long count = invocations.get();
+            return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / count);
+        }
+
+        public long getMaxLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+        }
+    }
+
+    /**
+     * A snapshot of the state of one plugin's thread pool.
+     */
+    public static class BulkheadStatistics {
+        private final String name;
+        private final int activeThreads;
+        private final int queueDepth;
+        private final int hungInvocations;
+
+        BulkheadStatistics(String name, int activeThreads, int queueDepth, int hungInvocations) {
+            this.name = name;
+            this.activeThreads = activeThreads;
+            this.queueDepth = queueDepth;
+            this.hungInvocations = hungInvocations;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getActiveThreads() {
+            return activeThreads;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getHungInvocations() {
+            return hungInvocations;
+        }
+    }
+}
@@ -24,10 +24,8 @@ package org.rhq.core.pc.inventory;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -43,7 +41,9 @@ import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.pc.PluginContainer;
 
 /**
- * Provides methods to read and write inventory data to a file.
+ * Provides methods to read and write inventory data to a file. The inventory is written to an
+ * {@link InventoryJournal}; files serialized by older agents can still be read and are replaced by a journal when the
+ * inventory is stored the next time.
  *
  * @author John Mazzitelli
  */
@@ -53,6 +53,7 @@ public class InventoryFile {
     private final File inventoryFile;
     private Resource platform;
     private Map<String, ResourceContainer> resourceContainers; // keyed on UUID
+    private InventoryJournal journal;
 
     /**
      * Constructor for {@link InventoryFile} that will read and write inventory data to the given file.
@@ -105,15 +106,25 @@ public class InventoryFile {
     public void loadInventory() throws PluginContainerException {
         FileInputStream fis = null;
         try {
-            fis = new FileInputStream(inventoryFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
+            if (InventoryJournal.isJournal(inventoryFile)) {
+                this.journal = new InventoryJournal(inventoryFile);
+                this.resourceContainers = this.journal.load();
+                ResourceContainer platformContainer = this.resourceContainers.get(this.journal.getPlatformUuid());
+                if (platformContainer == null) {
+                    throw new PluginContainerException("Inventory journal does not contain a platform");
+                }
+                this.platform = platformContainer.getResource();
+            } else {
+                fis = new FileInputStream(inventoryFile);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+                this.platform = (Resource) ois.readObject();
+                this.resourceContainers = (Map<String, ResourceContainer>) ois.readObject();
+            }
 
             // this list will contain UUIDs of resources that we should ignore usually due to disabled plugins
             Set<String> uuidsToIgnore = new HashSet<String>();
 
-            this.platform = (Resource) ois.readObject();
             connectTypes(this.platform, uuidsToIgnore);
-            this.resourceContainers = (Map<String, ResourceContainer>) ois.readObject();
             for (ResourceContainer resourceContainer : this.resourceContainers.values()) {
                 connectTypes(resourceContainer.getResource(), uuidsToIgnore);
             }
@@ -197,26 +208,24 @@ public class InventoryFile {
      * {@link #getInventoryFile() inventory file}. This object's {@link #getPlatform() platform} and
      * {@link #getResourceContainers() resource containers} will be set to those passed to this method.
      *
+     * <p>Only the resource containers that changed since the inventory was last loaded or stored through this object
+     * are written.</p>
+     *
      * @param  platformResource
      * @param  containers
      *
+     * @return the number of journal records written
+     *
      * @throws IOException
      */
-    public void storeInventory(Resource platformResource, Map<String, ResourceContainer> containers) throws IOException {
-        FileOutputStream fos = new FileOutputStream(inventoryFile);
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            try {
-                oos.writeObject(platformResource);
-                oos.writeObject(containers);
-
-                this.platform = platformResource;
-                this.resourceContainers = containers;
-            } finally {
-                oos.close();
-            }
-        } finally {
-            fos.close();
+    public int storeInventory(Resource platformResource, Map<String, ResourceContainer> containers) throws IOException {
+        if (this.journal == null) {
+            this.journal = new InventoryJournal(inventoryFile);
         }
+        int written = this.journal.store(platformResource, containers);
+
+        this.platform = platformResource;
+        this.resourceContainers = containers;
+        return written;
     }
 }
\ No newline at end of file
@@ -0,0 +1,548 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.util.collection.IntOpenHashMap;
+
+/**
+ * An append-only journal of the agent inventory. Every record holds one {@link ResourceContainer} in the compact
+ * binary form of {@link InventoryRecordCodec}, so storing the inventory only appends the containers that changed since
+ * they were last written and a delete record for every container that went away. Once more than half of the file is
+ * taken by superseded records it is compacted by copying the live records into a new file.
+ *
+ * <p>Opening the journal only indexes the records by resource UUID and id; {@link #load()} reads the whole inventory
+ * and {@link #load(int)} a single container without reading anything else.</p>
+ *
+ * <p>The file starts with a magic number and a format version. A record is the payload length, the operation, the
+ * payload and a CRC32 of operation and payload; a torn record at the end of the file, left by a crash while appending,
+ * is cut off when the journal is opened.</p>
+ */
+public class InventoryJournal {
+    private static final Log log = LogFactory.getLog(InventoryJournal.class);
+
+    private static final int MAGIC = 0x52485149; // "RHQI"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    // the length, operation and checksum around each payload
+    private static final int RECORD_OVERHEAD = 9;
+
+    private static final long MIN_COMPACTION_LENGTH = 1024L * 1024L;
+
+    private final File file;
+
+    // the latest record of every live container, keyed on UUID, and the UUIDs keyed on resource id
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final IntOpenHashMap<String> uuids = new IntOpenHashMap<String>();
+    private String platformUuid;
+
+    // the end of the last valid record, zero if the file does not hold a journal
+    private long length;
+    private long liveLength;
+
+    /**
+     * Opens the journal in the given file and indexes its records. If the file does not exist or does not hold a
+     * journal (e.g. it is an inventory.dat written by an older agent), the journal is empty and the first
+     * {@link #store(Resource, Map) store} replaces the file.
+     *
+     * @param file the journal file
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public InventoryJournal(File file) throws IOException {
+        this.file = file;
+        if (isJournal(file)) {
+            index();
+        }
+    }
+
+    /**
+     * @param file the file to check
+     *
+     * @return <code>true</code> if the given file starts with the journal header
+     */
+    public static boolean isJournal(File file) {
+        if (!file.isFile() || (file.length() < HEADER_LENGTH)) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return (in.readInt() == MAGIC) && (in.readInt() == VERSION);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of containers in the journal
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the UUID of the platform resource, <code>null</code> if the journal is empty
+     */
+    public synchronized String getPlatformUuid() {
+        return platformUuid;
+    }
+
+    /**
+     * Reads all containers in the journal and puts their resources back into a tree. The resource types of the
+     * resources only carry name, plugin and category and still have to be connected to the plugin metadata.
+     *
+     * @return the containers keyed on the UUIDs of their resources
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized Map<String, ResourceContainer> load() throws IOException {
+        Map<String, InventoryRecordCodec.Record> records = new HashMap<String, InventoryRecordCodec.Record>(entries
+            .size() * 2);
+        if (length > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            try {
+                in.skipBytes(HEADER_LENGTH);
+                long offset = HEADER_LENGTH;
+                while (offset < length) {
+                    int payloadLength = in.readInt();
+                    byte operation = in.readByte();
+                    byte[] payload = new byte[payloadLength];
+                    in.readFully(payload);
+                    in.readInt();
+
+                    if (operation == PUT) {
+                        String uuid = InventoryRecordCodec.decodeUuid(new DataInputStream(new ByteArrayInputStream(
+                            payload)));
+                        Entry entry = entries.get(uuid);
+                        if ((entry != null) && (entry.offset == offset)) {
+                            records.put(uuid, InventoryRecordCodec.decode(new DataInputStream(
+                                new ByteArrayInputStream(payload))));
+                        }
+                    }
+                    offset += RECORD_OVERHEAD + payloadLength;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>(records.size() * 2);
+        for (Map.Entry<String, InventoryRecordCodec.Record> entry : records.entrySet()) {
+            InventoryRecordCodec.Record record = entry.getValue();
+            containers.put(entry.getKey(), record.container);
+            if (record.parentUuid != null) {
+                InventoryRecordCodec.Record parent = records.get(record.parentUuid);
+                if (parent != null) {
+                    parent.container.getResource().addChildResource(record.container.getResource());
+                } else {
+                    log.warn("Parent [" + record.parentUuid + "] of journaled resource [" + entry.getKey()
+                        + "] is not in the inventory journal");
+                }
+            }
+        }
+
+        // linking recomputed the ancestries from the placeholder types, restore the ones that were stored
+        for (InventoryRecordCodec.Record record : records.values()) {
+            record.container.getResource().setAncestry(record.ancestry);
+        }
+
+        return containers;
+    }
+
+    /**
+     * Reads a single container without reading the rest of the journal. Its resource is not connected to its
+     * parent or children.
+     *
+     * @param resourceId the id of the container's resource
+     *
+     * @return the container or <code>null</code> if the journal has no container for the resource
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized ResourceContainer load(int resourceId) throws IOException {
+        String uuid = uuids.get(resourceId);
+        return (uuid != null) ? load(uuid) : null;
+    }
+
+    /**
+     * Reads a single container without reading the rest of the journal. Its resource is not connected to its
+     * parent or children.
+     *
+     * @param uuid the UUID of the container's resource
+     *
+     * @return the container or <code>null</code> if the journal has no container for the resource
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized ResourceContainer load(String uuid) throws IOException {
+        Entry entry = entries.get(uuid);
+        if (entry == null) {
+            return null;
+        }
+
+        byte[] payload = new byte[entry.length - RECORD_OVERHEAD];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(entry.offset + 5);
+            raf.readFully(payload);
+        } finally {
+            raf.close();
+        }
+        return InventoryRecordCodec.decode(new DataInputStream(new ByteArrayInputStream(payload))).container;
+    }
+
+    /**
+     * Writes the given inventory to the journal. Only the containers whose record differs from the one in the journal
+     * are appended, followed by a delete record for every journaled container that is no longer in the inventory.
+     *
+     * @param platform the platform resource
+     * @param containers the containers keyed on the UUIDs of their resources
+     *
+     * @return the number of records written
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized int store(Resource platform, Map<String, ResourceContainer> containers) throws IOException {
+        if ((length > 0) && (file.length() != length)) {
+            // the file was deleted or replaced since it was indexed, e.g. to make the agent resync its inventory
+            log.info("Inventory journal [" + file + "] changed on disk - rewriting it");
+            length = 0;
+        }
+
+        List<byte[]> puts = new ArrayList<byte[]>();
+        Set<String> live = new HashSet<String>(containers.size() * 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        List<ResourceContainer> all = new ArrayList<ResourceContainer>(containers.values());
+        if ((platform != null) && !containers.containsKey(platform.getUuid())) {
+            all.add(new ResourceContainer(platform, null));
+        }
+
+        CRC32 crc = new CRC32();
+        for (ResourceContainer container : all) {
+            Resource resource = container.getResource();
+            bytes.reset();
+            out.writeByte(PUT);
+            InventoryRecordCodec.encode(container, resource.equals(platform), out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            live.add(resource.getUuid());
+
+            crc.reset();
+            crc.update(record);
+            Entry entry = entries.get(resource.getUuid());
+            if ((length > 0) && (entry != null) && (entry.checksum == crc.getValue())
+                && (entry.length == (record.length + RECORD_OVERHEAD - 1))) {
+                continue;
+            }
+            puts.add(record);
+        }
+
+        List<byte[]> deletes = new ArrayList<byte[]>();
+        if (length > 0) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!live.contains(entry.getKey())) {
+                    bytes.reset();
+                    out.writeByte(DELETE);
+                    InventoryRecordCodec.encodeDelete(entry.getKey(), entry.getValue().resourceId, out);
+                    out.flush();
+                    deletes.add(bytes.toByteArray());
+                }
+            }
+        }
+
+        if (length == 0) {
+            rewrite(puts);
+        } else if (!puts.isEmpty() || !deletes.isEmpty()) {
+            append(puts, deletes);
+            if (((length - HEADER_LENGTH - liveLength) > liveLength) && (length > MIN_COMPACTION_LENGTH)) {
+                compact();
+            }
+        }
+
+        return puts.size() + deletes.size();
+    }
+
+    /**
+     * Replaces the file with a new journal holding the given records.
+     */
+    private void rewrite(List<byte[]> records) throws IOException {
+        entries.clear();
+        uuids.clear();
+        platformUuid = null;
+        liveLength = 0;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = HEADER_LENGTH;
+            for (byte[] record : records) {
+                offset += writeRecord(out, record, offset);
+            }
+            out.flush();
+            fos.getFD().sync();
+            length = offset;
+        } finally {
+            fos.close();
+        }
+        replace(tmp);
+    }
+
+    private void append(List<byte[]> puts, List<byte[]> deletes) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            fos.getChannel().truncate(length);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            long offset = length;
+            for (byte[] record : puts) {
+                offset += writeRecord(out, record, offset);
+            }
+            for (byte[] record : deletes) {
+                offset += writeRecord(out, record, offset);
+            }
+            out.flush();
+            fos.getFD().sync();
+            length = offset;
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Copies the live records into a new file, dropping the superseded and deleted ones.
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long oldLength = length;
+
+        List<Entry> live = new ArrayList<Entry>(entries.values());
+        Collections.sort(live, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return (e1.offset < e2.offset) ? -1 : ((e1.offset == e2.offset) ? 0 : 1);
+            }
+        });
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                long offset = HEADER_LENGTH;
+                byte[] buffer = new byte[8192];
+                for (Entry entry : live) {
+                    if (buffer.length < entry.length) {
+                        buffer = new byte[entry.length];
+                    }
+                    raf.seek(entry.offset);
+                    raf.readFully(buffer, 0, entry.length);
+                    out.write(buffer, 0, entry.length);
+                    entry.offset = offset;
+                    offset += entry.length;
+                }
+                out.flush();
+                fos.getFD().sync();
+                length = offset;
+            } finally {
+                fos.close();
+            }
+        } finally {
+            raf.close();
+        }
+        replace(tmp);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted inventory journal [" + file + "] from [" + oldLength + "] to [" + length
+                + "] bytes in [" + (System.currentTimeMillis() - start) + "ms]");
+        }
+    }
+
+    private void replace(File tmp) throws IOException {
+        if (!tmp.renameTo(file)) {
+            // some platforms cannot rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace inventory journal [" + file + "] with [" + tmp + "]");
+            }
+        }
+    }
+
+    /**
+     * Writes a record that starts with its operation byte and indexes it.
+     *
+     * @return the length of the record in the file
+     */
+    private int writeRecord(DataOutputStream out, byte[] record, long offset) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length - 1);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+        apply(record[0], record, 1, offset, RECORD_OVERHEAD + record.length - 1, crc.getValue());
+        return RECORD_OVERHEAD + record.length - 1;
+    }
+
+    /**
+     * Updates the index with a record.
+     */
+    private void apply(byte operation, byte[] buffer, int payloadOffset, long offset, int recordLength,
+        long checksum) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, payloadOffset, buffer.length
+            - payloadOffset));
+        String uuid = InventoryRecordCodec.decodeUuid(in);
+        int resourceId = in.readInt();
+
+        Entry previous = entries.remove(uuid);
+        if (previous != null) {
+            liveLength -= previous.length;
+            if (uuid.equals(uuids.get(previous.resourceId))) {
+                uuids.remove(previous.resourceId);
+            }
+        }
+
+        if (operation == PUT) {
+            // skip the parent UUID to get to the platform flag
+            int parentLength = in.readInt();
+            if (parentLength > 0) {
+                in.skipBytes(parentLength);
+            }
+            if (in.readBoolean()) {
+                platformUuid = uuid;
+            }
+
+            entries.put(uuid, new Entry(offset, recordLength, checksum, resourceId));
+            liveLength += recordLength;
+            if (resourceId != 0) {
+                uuids.put(resourceId, uuid);
+            }
+        } else if (uuid.equals(platformUuid)) {
+            platformUuid = null;
+        }
+    }
+
+    /**
+     * Indexes the records in the file and cuts off a torn record at its end.
+     */
+    private void index() throws IOException {
+        long fileLength = file.length();
+        long offset = HEADER_LENGTH;
+        CRC32 crc = new CRC32();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            in.skipBytes(HEADER_LENGTH);
+            while (offset < fileLength) {
+                int payloadLength = in.readInt();
+                if ((payloadLength < 0) || ((offset + RECORD_OVERHEAD + payloadLength) > fileLength)) {
+                    break;
+                }
+                byte[] record = new byte[payloadLength + 1];
+                in.readFully(record);
+                int checksum = in.readInt();
+
+                crc.reset();
+                crc.update(record);
+                if ((((int) crc.getValue()) != checksum) || ((record[0] != PUT) && (record[0] != DELETE))) {
+                    break;
+                }
+
+                apply(record[0], record, 1, offset, RECORD_OVERHEAD + payloadLength, crc.getValue());
+                offset += RECORD_OVERHEAD + payloadLength;
+            }
+        } catch (EOFException e) {
+            // a torn record, handled below
+        } finally {
+            in.close();
+        }
+
+        length = offset;
+        if (offset < fileLength) {
+            log.warn("Inventory journal [" + file + "] ends with [" + (fileLength - offset)
+                + "] bytes of an incomplete record, probably written while the agent went down - dropping them");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(offset);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static class Entry {
+        long offset;
+        final int length;
+        final long checksum;
+        final int resourceId;
+
+        Entry(long offset, int length, long checksum, int resourceId) {
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.resourceId = resourceId;
+        }
+    }
+}
@@ -23,13 +23,16 @@
 package org.rhq.core.pc.inventory;
 
 import java.io.File;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -66,6 +69,7 @@ import org.rhq.core.clientapi.server.discovery.StaleTypeException;
 import org.rhq.core.domain.configuration.Configuration;
 import org.rhq.core.domain.discovery.AvailabilityReport;
 import org.rhq.core.domain.discovery.MergeResourceResponse;
+import org.rhq.core.domain.discovery.ResourceSyncHash;
 import org.rhq.core.domain.discovery.ResourceSyncInfo;
 import org.rhq.core.domain.measurement.Availability;
 import org.rhq.core.domain.measurement.AvailabilityType;
@@ -182,6 +186,11 @@ public class InventoryManager extends AgentService implements ContainerService,
     private Map<String, ResourceContainer> resourceContainers = Collections
         .synchronizedMap(new HashMap<String, ResourceContainer>(1000));
 
+    /**
+     * The data file the inventory was loaded from and is persisted to
+     */
+    private InventoryFile inventoryFile;
+
     /**
      * Collection of event listeners to inform of changes to the inventory.
      */
@@ -1037,14 +1046,30 @@ public class InventoryManager extends AgentService implements ContainerService,
             return true;
         }
 
-        ResourceSyncInfo syncInfo;
+        boolean hashedSync = configuration.isHashedInventorySync();
+        ResourceSyncInfo syncInfo = null;
+        ResourceSyncHash syncHash = null;
         try {
             String reportType = (report.isRuntimeReport()) ? "runtime" : "server";
             log.info("Sending [" + reportType + "] inventory report to Server...");
             long startTime = System.currentTimeMillis();
             DiscoveryServerService discoveryServerService = configuration.getServerServices()
                 .getDiscoveryServerService();
-            syncInfo = discoveryServerService.mergeInventoryReport(report);
+            if (hashedSync) {
+                try {
+                    syncHash = discoveryServerService.mergeInventoryReportForHashedSync(report);
+                } catch (UndeclaredThrowableException e) {
+                    if (!isMissingOnServer(e)) {
+                        throw e;
+                    }
+                    // a Server older than this agent - fall back to syncing with the full inventory tree
+                    log.debug("Server does not support hashed inventory sync, sending the report for a full sync");
+                    hashedSync = false;
+                }
+            }
+            if (!hashedSync) {
+                syncInfo = discoveryServerService.mergeInventoryReport(report);
+            }
             if (log.isDebugEnabled()) {
                 log.debug(String.format("Server DONE merging inventory report [%d] ms.",
                     (System.currentTimeMillis() - startTime)));
@@ -1075,7 +1100,9 @@ public class InventoryManager extends AgentService implements ContainerService,
         //Another (rare) scenario where this would happen would be when the platform resource type
         //would change.
         //In either case, let's sync up with the server - if it's got nothing, neither should the agent.
-        if (syncInfo != null) {
+        if (syncHash != null) {
+            synchInventory(syncHash);
+        } else if (syncInfo != null) {
             synchInventory(syncInfo);
         } else {
             purgeObsoleteResources(Collections.<String> emptySet());
@@ -1087,6 +1114,18 @@ public class InventoryManager extends AgentService implements ContainerService,
         return true;
     }
 
+    /**
+     * @return true if the remote call failed because the Server does not have the method that was called
+     */
+    private static boolean isMissingOnServer(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof NoSuchMethodException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Performs a sync so that resources passed in are reflected in the agent's inventory.
      * This assumes the resource sync infos passed in represent the full inventory tree.
@@ -1147,21 +1186,7 @@ public class InventoryManager extends AgentService implements ContainerService,
                     (System.currentTimeMillis() - startTime)));
             }
 
-            // If we synced any Resources, one or more Resource components were probably started,
-            // so run an avail check to report on their availabilities immediately. Also kick off
-            // a service scan to scan those Resources for new child Resources. Kick both tasks off
-            // asynchronously.
-            // Do this only if we are finished with resource upgrade because no availability checks
-            // or discoveries can happen during upgrade. This is to ensure maximum consistency of the
-            // inventory with the server side as well as to disallow any other server-agent traffic during
-            // the upgrade phase. Not to mention the fact that no thread pools are initialized yet by the
-            // time the upgrade kicks in..
-            if (!isResourceUpgradeActive()
-                && (!syncedResources.isEmpty() || !unknownResourceIds.isEmpty() || !modifiedResourceIds.isEmpty())) {
-                performAvailabilityChecks(true);
-                this.inventoryThreadPoolExecutor.schedule((Callable<? extends Object>) this.serviceScanExecutor,
-                    configuration.getChildResourceDiscoveryDelay(), TimeUnit.SECONDS);
-            }
+            scheduleChecksOfSyncedResources(syncedResources, unknownResourceIds, modifiedResourceIds);
         } catch (Throwable t) {
             log.warn("Failed to synchronize local inventory with Server inventory for Resource [" + syncInfo.getId()
                 + "] and its descendants: " + t.getMessage());
@@ -1170,6 +1195,127 @@ public class InventoryManager extends AgentService implements ContainerService,
         }
     }
 
+    /**
+     * Performs a full sync like {@link #synchInventory(ResourceSyncInfo)} does, but rather than walking the server's
+     * complete sync info tree, this walks the server's {@link ResourceSyncHash} tree level by level and only descends
+     * into the subtrees whose hash differs from the hash of the same subtree in the local inventory. Subtrees with
+     * matching hashes are skipped without fetching anything further from the server.
+     *
+     * @param rootSyncHash the sync hash of the platform as returned by the server
+     */
+    private void synchInventory(ResourceSyncHash rootSyncHash) {
+        log.info("Syncing local inventory with Server inventory using subtree hashes...");
+        long startTime = System.currentTimeMillis();
+        Set<Resource> syncedResources = new LinkedHashSet<Resource>();
+        Set<Integer> unknownResourceIds = new LinkedHashSet<Integer>();
+        Set<Integer> modifiedResourceIds = new LinkedHashSet<Integer>();
+        Set<Integer> deletedResourceIds = new LinkedHashSet<Integer>();
+        Set<Resource> newlyCommittedResources = new LinkedHashSet<Resource>();
+        Set<Resource> obsoleteResources = new LinkedHashSet<Resource>();
+
+        try {
+            Map<String, Long> localSyncHashes = new HashMap<String, Long>();
+            Resource localPlatform = this.platform;
+            if (localPlatform != null && localPlatform.getId() != 0) {
+                ResourceSyncHash.computeSubtreeHashes(localPlatform, localSyncHashes);
+                if (!localPlatform.getUuid().equals(rootSyncHash.getUuid())) {
+                    // the server has a different platform for us, the one we synced before is gone
+                    obsoleteResources.add(localPlatform);
+                }
+            }
+
+            DiscoveryServerService discoveryServerService = configuration.getServerServices()
+                .getDiscoveryServerService();
+            int differingResources = 0;
+            List<ResourceSyncHash> level = Collections.singletonList(rootSyncHash);
+            while (!level.isEmpty()) {
+                Map<Integer, Resource> differingParents = new LinkedHashMap<Integer, Resource>();
+                for (ResourceSyncHash syncHash : level) {
+                    Long localSyncHash = localSyncHashes.get(syncHash.getUuid());
+                    if (localSyncHash != null && localSyncHash.longValue() == syncHash.getSubtreeHash()) {
+                        continue; // the whole subtree is in sync
+                    }
+                    ++differingResources;
+                    if (processSyncData(syncHash.getId(), syncHash.getUuid(), syncHash.getMtime(),
+                        syncHash.getInventoryStatus(), syncedResources, unknownResourceIds, modifiedResourceIds,
+                        deletedResourceIds, newlyCommittedResources)) {
+                        differingParents.put(syncHash.getId(), this.resourceContainers.get(syncHash.getUuid())
+                            .getResource());
+                    }
+                }
+                if (differingParents.isEmpty()) {
+                    break;
+                }
+
+                Map<Integer, List<ResourceSyncHash>> children = discoveryServerService
+                    .getChildSyncHashes(differingParents.keySet());
+                level = new ArrayList<ResourceSyncHash>();
+                for (Map.Entry<Integer, Resource> parent : differingParents.entrySet()) {
+                    List<ResourceSyncHash> serverChildren = children.get(parent.getKey());
+                    if (serverChildren == null) {
+                        serverChildren = Collections.emptyList();
+                    }
+                    level.addAll(serverChildren);
+
+                    Set<String> serverChildUuids = new HashSet<String>(serverChildren.size() * 4 / 3 + 1);
+                    for (ResourceSyncHash serverChild : serverChildren) {
+                        serverChildUuids.add(serverChild.getUuid());
+                    }
+                    for (Resource localChild : parent.getValue().getChildResources()) {
+                        // Only purge stuff that was synchronized at some point. Other stuff may just be newly discovered.
+                        if (localChild.getId() != 0 && !serverChildUuids.contains(localChild.getUuid())) {
+                            obsoleteResources.add(localChild);
+                        }
+                    }
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("DONE comparing sync hashes - took [%d] ms - [%d] of [%d] local Resources "
+                    + "differ - found [%d] unknown Resources, [%d] modified Resources and [%d] obsolete Resources.",
+                    (System.currentTimeMillis() - startTime), differingResources, localSyncHashes.size(),
+                    unknownResourceIds.size(), modifiedResourceIds.size(), obsoleteResources.size()));
+            }
+
+            mergeUnknownResources(unknownResourceIds);
+            mergeModifiedResources(modifiedResourceIds);
+            uninventoryObsoleteResources(obsoleteResources);
+            postProcessNewlyCommittedResources(newlyCommittedResources);
+            if (log.isDebugEnabled()) {
+                if (!deletedResourceIds.isEmpty()) {
+                    log.debug("Ignored [" + deletedResourceIds.size() + "] DELETED resources.");
+                }
+                log.debug(String.format("DONE syncing local inventory [%d] ms.",
+                    (System.currentTimeMillis() - startTime)));
+            }
+
+            scheduleChecksOfSyncedResources(syncedResources, unknownResourceIds, modifiedResourceIds);
+        } catch (Throwable t) {
+            log.warn("Failed to synchronize local inventory with Server inventory for Resource ["
+                + rootSyncHash.getId() + "] and its descendants: " + t.getMessage());
+            // convert to runtime exception so as not to change the api
+            throw new RuntimeException(t);
+        }
+    }
+
+    private void scheduleChecksOfSyncedResources(Set<Resource> syncedResources, Set<Integer> unknownResourceIds,
+        Set<Integer> modifiedResourceIds) {
+        // If we synced any Resources, one or more Resource components were probably started,
+        // so run an avail check to report on their availabilities immediately. Also kick off
+        // a service scan to scan those Resources for new child Resources. Kick both tasks off
+        // asynchronously.
+        // Do this only if we are finished with resource upgrade because no availability checks
+        // or discoveries can happen during upgrade. This is to ensure maximum consistency of the
+        // inventory with the server side as well as to disallow any other server-agent traffic during
+        // the upgrade phase. Not to mention the fact that no thread pools are initialized yet by the
+        // time the upgrade kicks in..
+        if (!isResourceUpgradeActive()
+            && (!syncedResources.isEmpty() || !unknownResourceIds.isEmpty() || !modifiedResourceIds.isEmpty())) {
+            performAvailabilityChecks(true);
+            this.inventoryThreadPoolExecutor.schedule((Callable<? extends Object>) this.serviceScanExecutor,
+                configuration.getChildResourceDiscoveryDelay(), TimeUnit.SECONDS);
+        }
+    }
+
     private void getAllUuids(ResourceSyncInfo syncInfo, Set<String> allServerSideUuids) {
         allServerSideUuids.add(syncInfo.getUuid());
         for (ResourceSyncInfo child : syncInfo.getChildSyncInfos()) {
@@ -2017,6 +2163,7 @@ public class InventoryManager extends AgentService implements ContainerService,
 
                 InventoryFile inventoryFile = new InventoryFile(file);
                 inventoryFile.loadInventory();
+                this.inventoryFile = inventoryFile;
 
                 this.platform = inventoryFile.getPlatform();
                 this.resourceContainers.clear();
@@ -2088,9 +2235,15 @@ public class InventoryManager extends AgentService implements ContainerService,
                     throw new RuntimeException("Failed to create data directory [" + dataDir + "].");
                 }
             }
+            // keep using the file the inventory was loaded from, it knows which containers are already on disk
             File file = new File(dataDir, "inventory.dat");
-            InventoryFile inventoryFile = new InventoryFile(file);
-            inventoryFile.storeInventory(this.platform, this.resourceContainers);
+            if ((this.inventoryFile == null) || !this.inventoryFile.getInventoryFile().equals(file)) {
+                this.inventoryFile = new InventoryFile(file);
+            }
+            long start = System.currentTimeMillis();
+            int written = this.inventoryFile.storeInventory(this.platform, this.resourceContainers);
+            log.info("Inventory with size [" + this.resourceContainers.size() + "] persisted to data file, ["
+                + written + "] changes written in [" + (System.currentTimeMillis() - start) + "ms]");
         } catch (Exception e) {
             log.error("Could not persist inventory data to disk", e);
         }
@@ -2755,18 +2908,36 @@ public class InventoryManager extends AgentService implements ContainerService,
     private void processSyncInfo(ResourceSyncInfo syncInfo, Set<Resource> syncedResources,
         Set<Integer> unknownResourceIds, Set<Integer> modifiedResourceIds, Set<Integer> deletedResourceIds,
         Set<Resource> newlyCommittedResources) {
-        if (InventoryStatus.DELETED == syncInfo.getInventoryStatus()) {
+        if (processSyncData(syncInfo.getId(), syncInfo.getUuid(), syncInfo.getMtime(), syncInfo.getInventoryStatus(),
+            syncedResources, unknownResourceIds, modifiedResourceIds, deletedResourceIds, newlyCommittedResources)) {
+            // Recurse...
+            for (ResourceSyncInfo childSyncInfo : syncInfo.getChildSyncInfos()) {
+                processSyncInfo(childSyncInfo, syncedResources, unknownResourceIds, modifiedResourceIds,
+                    deletedResourceIds, newlyCommittedResources);
+            }
+        }
+    }
+
+    /**
+     * Syncs a single Resource with the server's sync data for it.
+     *
+     * @return true if the Resource is in the local inventory, and so its children need to be synced as well
+     */
+    private boolean processSyncData(int id, String uuid, long mtime, InventoryStatus inventoryStatus,
+        Set<Resource> syncedResources, Set<Integer> unknownResourceIds, Set<Integer> modifiedResourceIds,
+        Set<Integer> deletedResourceIds, Set<Resource> newlyCommittedResources) {
+        if (InventoryStatus.DELETED == inventoryStatus) {
             // A previously deleted resource still being reported by the server. Support for this option can
             // be removed if the server is ever modified to not report deleted resources. It is happening currently
             // because deleted resources are kept to support resource history. The deleted resources are rightfully not
             // in the PC inventory, and so must be handled separately, and not as unknown resources.
-            deletedResourceIds.add(syncInfo.getId());
+            deletedResourceIds.add(id);
         } else {
-            ResourceContainer container = this.resourceContainers.get(syncInfo.getUuid());
+            ResourceContainer container = this.resourceContainers.get(uuid);
             if (container == null) {
                 // Either a manually added Resource or just something we haven't discovered.
-                unknownResourceIds.add(syncInfo.getId());
-                log.info("Got unknown resource: " + syncInfo.getId());
+                unknownResourceIds.add(id);
+                log.info("Got unknown resource: " + id);
             } else {
                 Resource resource = container.getResource();
                 // Ensure the Resource classloader is initialized on the Resource container.
@@ -2775,32 +2946,31 @@ public class InventoryManager extends AgentService implements ContainerService,
                 if (log.isDebugEnabled()) {
                     log.debug("Local Resource: id=" + resource.getId() + ", status=" + resource.getInventoryStatus()
                         + ", mtime=" + resource.getMtime());
-                    log.debug("Sync Resource: " + syncInfo.getId() + ", status=" + syncInfo.getInventoryStatus()
-                        + ", mtime=" + syncInfo.getMtime());
+                    log.debug("Sync Resource: " + id + ", status=" + inventoryStatus + ", mtime=" + mtime);
                 }
 
                 if (resource.getInventoryStatus() != InventoryStatus.COMMITTED
-                    && syncInfo.getInventoryStatus() == InventoryStatus.COMMITTED) {
+                    && inventoryStatus == InventoryStatus.COMMITTED) {
                     newlyCommittedResources.add(resource);
                 }
 
                 if (resource.getId() == 0) {
                     // This must be a Resource we just reported to the server. Just update its id, mtime, and status.
-                    resource.setId(syncInfo.getId());
-                    resource.setMtime(syncInfo.getMtime());
-                    resource.setInventoryStatus(syncInfo.getInventoryStatus());
+                    resource.setId(id);
+                    resource.setMtime(mtime);
+                    resource.setInventoryStatus(inventoryStatus);
                     refreshResourceComponentState(container, true);
                     syncedResources.add(resource);
                 } else {
                     // It's a resource that was already synced at least once.
-                    if (resource.getId() != syncInfo.getId()) {
+                    if (resource.getId() != id) {
                         // This really should never happen, but check for it just to be bulletproof.
                         log.error("PC Resource id (" + resource.getId() + ") does not match Server Resource id ("
-                            + syncInfo.getId() + ") for Resource with uuid " + resource.getUuid() + ": " + resource);
-                        modifiedResourceIds.add(syncInfo.getId());
+                            + id + ") for Resource with uuid " + resource.getUuid() + ": " + resource);
+                        modifiedResourceIds.add(id);
                     }
                     // See if it's been modified on the Server since the last time we synced.
-                    else if (resource.getMtime() < syncInfo.getMtime()) {
+                    else if (resource.getMtime() < mtime) {
                         modifiedResourceIds.add(resource.getId());
                     } else {
                         // Only try to start up the component if the Resource has *not* been modified on the Server.
@@ -2808,14 +2978,10 @@ public class InventoryManager extends AgentService implements ContainerService,
                         refreshResourceComponentState(container, false);
                     }
                 }
-
-                // Recurse...
-                for (ResourceSyncInfo childSyncInfo : syncInfo.getChildSyncInfos()) {
-                    processSyncInfo(childSyncInfo, syncedResources, unknownResourceIds, modifiedResourceIds,
-                        deletedResourceIds, newlyCommittedResources);
-                }
+                return true;
             }
         }
+        return false;
     }
 
     private void mergeModifiedResources(Set<Integer> modifiedResourceIds) {
@@ -3047,6 +3213,23 @@ public class InventoryManager extends AgentService implements ContainerService,
         }
     }
 
+    private void uninventoryObsoleteResources(Collection<Resource> obsoleteResources) {
+        if (obsoleteResources.isEmpty()) {
+            return;
+        }
+        this.inventoryLock.writeLock().lock();
+        try {
+            for (Resource resource : obsoleteResources) {
+                uninventoryResource(resource.getId());
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Purged [" + obsoleteResources.size() + "] obsolete Resources.");
+            }
+        } finally {
+            this.inventoryLock.writeLock().unlock();
+        }
+    }
+
     private void refreshResourceComponentState(ResourceContainer container, boolean pluginConfigUpdated) {
         if (isResourceUpgradeActive()) {
             //don't do anything during upgrade. The resources are only started during the upgrade process.
@@ -0,0 +1,458 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.Property;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.domain.configuration.RawConfiguration;
+import org.rhq.core.domain.content.transfer.ResourcePackageDetails;
+import org.rhq.core.domain.drift.DriftComplianceStatus;
+import org.rhq.core.domain.drift.DriftDefinition;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.measurement.NumericType;
+import org.rhq.core.domain.resource.Agent;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+
+/**
+ * The binary encoding of the {@link InventoryJournal} records. A record holds one {@link ResourceContainer} with the
+ * fields of its {@link Resource} the plugin container keeps; the parent is referenced by UUID and the resource type by
+ * name and plugin, to be reconnected with the plugin metadata once the whole inventory is read. The rarely populated
+ * installed packages are the only part still written with Java serialization.
+ *
+ * @see InventoryJournal
+ */
+final class InventoryRecordCodec {
+
+    private static final byte PROPERTY_SIMPLE = 1;
+    private static final byte PROPERTY_LIST = 2;
+    private static final byte PROPERTY_MAP = 3;
+
+    private static final InventoryStatus[] INVENTORY_STATUSES = InventoryStatus.values();
+    private static final ResourceCategory[] RESOURCE_CATEGORIES = ResourceCategory.values();
+    private static final ResourceContainer.SynchronizationState[] SYNCHRONIZATION_STATES = ResourceContainer.SynchronizationState
+        .values();
+    private static final DataType[] DATA_TYPES = DataType.values();
+    private static final NumericType[] NUMERIC_TYPES = NumericType.values();
+    private static final DriftComplianceStatus[] COMPLIANCE_STATUSES = DriftComplianceStatus.values();
+
+    private static final Comparator<MeasurementScheduleRequest> SCHEDULE_ORDER = new Comparator<MeasurementScheduleRequest>() {
+        public int compare(MeasurementScheduleRequest r1, MeasurementScheduleRequest r2) {
+            return (r1.getScheduleId() < r2.getScheduleId()) ? -1 : ((r1.getScheduleId() == r2.getScheduleId()) ? 0
+                : 1);
+        }
+    };
+
+    private static final Comparator<DriftDefinition> DRIFT_DEFINITION_ORDER = new Comparator<DriftDefinition>() {
+        public int compare(DriftDefinition d1, DriftDefinition d2) {
+            return String.valueOf(d1.getName()).compareTo(String.valueOf(d2.getName()));
+        }
+    };
+
+    private static final Comparator<RawConfiguration> RAW_CONFIGURATION_ORDER = new Comparator<RawConfiguration>() {
+        public int compare(RawConfiguration c1, RawConfiguration c2) {
+            return String.valueOf(c1.getPath()).compareTo(String.valueOf(c2.getPath()));
+        }
+    };
+
+    private InventoryRecordCodec() {
+    }
+
+    /**
+     * A decoded record: the container plus what is needed to put its resource back into the tree.
+     */
+    static class Record {
+        final ResourceContainer container;
+        final String parentUuid;
+        final String ancestry;
+        final boolean platform;
+
+        Record(ResourceContainer container, String parentUuid, String ancestry, boolean platform) {
+            this.container = container;
+            this.parentUuid = parentUuid;
+            this.ancestry = ancestry;
+            this.platform = platform;
+        }
+    }
+
+    static void encode(ResourceContainer container, boolean platform, DataOutput out) throws IOException {
+        Resource resource = container.getResource();
+
+        // the UUID and id come first so the journal can index a record without decoding it
+        writeString(out, resource.getUuid());
+        out.writeInt(resource.getId());
+
+        Resource parent = resource.getParentResource();
+        writeString(out, (parent != null) ? parent.getUuid() : null);
+        out.writeBoolean(platform);
+        writeString(out, (platform && (resource.getAgent() != null)) ? resource.getAgent().getName() : null);
+
+        ResourceType type = resource.getResourceType();
+        out.writeBoolean(type != null);
+        if (type != null) {
+            writeString(out, type.getName());
+            writeString(out, type.getPlugin());
+            writeOrdinal(out, type.getCategory());
+        }
+
+        writeString(out, resource.getResourceKey());
+        writeString(out, resource.getName());
+        writeString(out, resource.getVersion());
+        writeString(out, resource.getDescription());
+        writeString(out, resource.getLocation());
+        writeString(out, resource.getModifiedBy());
+        writeString(out, resource.getAncestry());
+        writeOrdinal(out, resource.getInventoryStatus());
+        out.writeBoolean(resource.isConnected());
+        out.writeLong(resource.getMtime());
+        out.writeLong(resource.getItime());
+        writeConfiguration(out, resource.getPluginConfiguration());
+        writeConfiguration(out, resource.getResourceConfiguration());
+
+        // sets are written in a fixed order, so an unchanged container always encodes to the same bytes
+        writeOrdinal(out, container.getSynchronizationState());
+        List<MeasurementScheduleRequest> schedules = new ArrayList<MeasurementScheduleRequest>(container
+            .getMeasurementSchedule());
+        Collections.sort(schedules, SCHEDULE_ORDER);
+        out.writeInt(schedules.size());
+        for (MeasurementScheduleRequest schedule : schedules) {
+            writeSchedule(out, schedule);
+        }
+        MeasurementScheduleRequest availabilitySchedule = container.getAvailabilitySchedule();
+        out.writeBoolean(availabilitySchedule != null);
+        if (availabilitySchedule != null) {
+            writeSchedule(out, availabilitySchedule);
+        }
+
+        // the drift definition fields are all backed by its configuration
+        List<DriftDefinition> driftDefinitions = new ArrayList<DriftDefinition>(container.getDriftDefinitions());
+        Collections.sort(driftDefinitions, DRIFT_DEFINITION_ORDER);
+        out.writeInt(driftDefinitions.size());
+        for (DriftDefinition driftDefinition : driftDefinitions) {
+            out.writeInt(driftDefinition.getId());
+            writeConfiguration(out, driftDefinition.getConfiguration());
+            writeOrdinal(out, driftDefinition.getComplianceStatus());
+        }
+
+        Set<ResourcePackageDetails> installedPackages = container.getInstalledPackages();
+        if ((installedPackages == null) || installedPackages.isEmpty()) {
+            out.writeInt(0);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(new HashSet<ResourcePackageDetails>(installedPackages));
+            oos.close();
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * A delete record only holds the UUID and id of the resource, like the start of every other record.
+     */
+    static void encodeDelete(String uuid, int resourceId, DataOutput out) throws IOException {
+        writeString(out, uuid);
+        out.writeInt(resourceId);
+    }
+
+    static String decodeUuid(DataInput in) throws IOException {
+        return readString(in);
+    }
+
+    static Record decode(DataInput in) throws IOException {
+        Set<Resource> childResources = Collections.newSetFromMap(new ConcurrentHashMap<Resource, Boolean>());
+        Resource resource = new Resource(childResources);
+        resource.setUuid(readString(in));
+        resource.setId(in.readInt());
+
+        String parentUuid = readString(in);
+        boolean platform = in.readBoolean();
+        String agentName = readString(in);
+        if (agentName != null) {
+            resource.setAgent(new Agent(agentName, null, 0, null, null));
+        }
+
+        if (in.readBoolean()) {
+            String typeName = readString(in);
+            String plugin = readString(in);
+            ResourceCategory category = readOrdinal(in, RESOURCE_CATEGORIES);
+            resource.setResourceType(new ResourceType(typeName, plugin, category, null));
+        }
+
+        resource.setResourceKey(readString(in));
+        resource.setName(readString(in));
+        resource.setVersion(readString(in));
+        resource.setDescription(readString(in));
+        resource.setLocation(readString(in));
+        resource.setModifiedBy(readString(in));
+        String ancestry = readString(in);
+        resource.setInventoryStatus(readOrdinal(in, INVENTORY_STATUSES));
+        resource.setConnected(in.readBoolean());
+        resource.setMtime(in.readLong());
+        resource.setItime(in.readLong());
+        resource.setPluginConfiguration(readConfiguration(in));
+        resource.setResourceConfiguration(readConfiguration(in));
+
+        ResourceContainer container = new ResourceContainer(resource, null);
+        container.setSynchronizationState(readOrdinal(in, SYNCHRONIZATION_STATES));
+        int scheduleCount = in.readInt();
+        Set<MeasurementScheduleRequest> schedules = new HashSet<MeasurementScheduleRequest>(scheduleCount * 2);
+        for (int i = 0; i < scheduleCount; i++) {
+            schedules.add(readSchedule(in));
+        }
+        container.setMeasurementSchedule(schedules);
+        if (in.readBoolean()) {
+            container.setAvailabilitySchedule(readSchedule(in));
+        }
+
+        int driftDefinitionCount = in.readInt();
+        for (int i = 0; i < driftDefinitionCount; i++) {
+            int id = in.readInt();
+            DriftDefinition driftDefinition = new DriftDefinition(readConfiguration(in));
+            driftDefinition.setId(id);
+            driftDefinition.setComplianceStatus(readOrdinal(in, COMPLIANCE_STATUSES));
+            container.addDriftDefinition(driftDefinition);
+        }
+
+        int packagesLength = in.readInt();
+        if (packagesLength > 0) {
+            byte[] bytes = new byte[packagesLength];
+            in.readFully(bytes);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                @SuppressWarnings("unchecked")
+                Set<ResourcePackageDetails> installedPackages = (Set<ResourcePackageDetails>) ois.readObject();
+                container.setInstalledPackages(installedPackages);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Cannot read the installed packages of resource [" + resource.getUuid() + "]", e);
+            } finally {
+                ois.close();
+            }
+        }
+
+        return new Record(container, parentUuid, ancestry, platform);
+    }
+
+    private static void writeSchedule(DataOutput out, MeasurementScheduleRequest schedule) throws IOException {
+        out.writeInt(schedule.getScheduleId());
+        writeString(out, schedule.getName());
+        out.writeLong(schedule.getInterval());
+        out.writeBoolean(schedule.isEnabled());
+        writeOrdinal(out, schedule.getDataType());
+        writeOrdinal(out, schedule.getRawNumericType());
+    }
+
+    private static MeasurementScheduleRequest readSchedule(DataInput in) throws IOException {
+        int scheduleId = in.readInt();
+        String name = readString(in);
+        long interval = in.readLong();
+        boolean enabled = in.readBoolean();
+        DataType dataType = readOrdinal(in, DATA_TYPES);
+        NumericType rawNumericType = readOrdinal(in, NUMERIC_TYPES);
+        return new MeasurementScheduleRequest(scheduleId, name, interval, enabled, dataType, rawNumericType);
+    }
+
+    private static void writeConfiguration(DataOutput out, Configuration configuration) throws IOException {
+        out.writeBoolean(configuration != null);
+        if (configuration == null) {
+            return;
+        }
+        out.writeInt(configuration.getId());
+        writeString(out, configuration.getNotes());
+        out.writeLong(configuration.getVersion());
+        writeProperties(out, configuration.getMap());
+
+        List<RawConfiguration> rawConfigurations = new ArrayList<RawConfiguration>(configuration
+            .getRawConfigurations());
+        Collections.sort(rawConfigurations, RAW_CONFIGURATION_ORDER);
+        out.writeInt(rawConfigurations.size());
+        for (RawConfiguration rawConfiguration : rawConfigurations) {
+            out.writeInt(rawConfiguration.getId());
+            writeString(out, rawConfiguration.getPath());
+            writeString(out, rawConfiguration.getContents());
+            writeString(out, rawConfiguration.getSha256());
+        }
+    }
+
+    private static Configuration readConfiguration(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Configuration configuration = new Configuration();
+        configuration.setId(in.readInt());
+        configuration.setNotes(readString(in));
+        configuration.setVersion(in.readLong());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            configuration.put(readProperty(in));
+        }
+
+        int rawCount = in.readInt();
+        for (int i = 0; i < rawCount; i++) {
+            RawConfiguration rawConfiguration = new RawConfiguration();
+            rawConfiguration.setId(in.readInt());
+            rawConfiguration.setPath(readString(in));
+            String contents = readString(in);
+            rawConfiguration.setContents(contents, readString(in));
+            configuration.addRawConfiguration(rawConfiguration);
+        }
+        return configuration;
+    }
+
+    private static void writeProperties(DataOutput out, Map<String, Property> properties) throws IOException {
+        out.writeInt(properties.size());
+        for (Property property : properties.values()) {
+            writeProperty(out, property);
+        }
+    }
+
+    private static void writeProperty(DataOutput out, Property property) throws IOException {
+        if (property instanceof PropertySimple) {
+            out.writeByte(PROPERTY_SIMPLE);
+        } else if (property instanceof PropertyList) {
+            out.writeByte(PROPERTY_LIST);
+        } else if (property instanceof PropertyMap) {
+            out.writeByte(PROPERTY_MAP);
+        } else {
+            throw new IOException("Unsupported property type [" + property.getClass().getName() + "]");
+        }
+        out.writeInt(property.getId());
+        writeString(out, property.getName());
+        writeString(out, property.getErrorMessage());
+
+        if (property instanceof PropertySimple) {
+            PropertySimple simple = (PropertySimple) property;
+            writeString(out, simple.getStringValue());
+            Boolean override = simple.getOverride();
+            out.writeByte((override == null) ? -1 : (override.booleanValue() ? 1 : 0));
+        } else if (property instanceof PropertyList) {
+            List<Property> list = ((PropertyList) property).getList();
+            out.writeInt(list.size());
+            for (Property member : list) {
+                writeProperty(out, member);
+            }
+        } else {
+            writeProperties(out, ((PropertyMap) property).getMap());
+        }
+    }
+
+    private static Property readProperty(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        int id = in.readInt();
+        String name = readString(in);
+        String errorMessage = readString(in);
+
+        Property property;
+        switch (kind) {
+        case PROPERTY_SIMPLE: {
+            PropertySimple simple = new PropertySimple(name, readString(in));
+            byte override = in.readByte();
+            simple.setOverride((override < 0) ? null : Boolean.valueOf(override == 1));
+            property = simple;
+            break;
+        }
+        case PROPERTY_LIST: {
+            PropertyList list = new PropertyList(name);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                list.add(readProperty(in));
+            }
+            property = list;
+            break;
+        }
+        case PROPERTY_MAP: {
+            PropertyMap map = new PropertyMap(name);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                map.put(readProperty(in));
+            }
+            property = map;
+            break;
+        }
+        default:
+            throw new IOException("Unknown property type [" + kind + "]");
+        }
+        property.setId(id);
+        property.setErrorMessage(errorMessage);
+        return property;
+    }
+
+    private static void writeOrdinal(DataOutput out, Enum<?> value) throws IOException {
+        out.writeByte((value != null) ? value.ordinal() : -1);
+    }
+
+    private static <E extends Enum<E>> E readOrdinal(DataInput in, E[] values) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal < 0) {
+            return null;
+        }
+        if (ordinal >= values.length) {
+            throw new IOException("Unknown " + values.getClass().getComponentType().getSimpleName() + " [" + ordinal
+                + "]");
+        }
+        return values[ordinal];
+    }
+
+    // writeUTF is limited to 64k, which raw configurations can exceed
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
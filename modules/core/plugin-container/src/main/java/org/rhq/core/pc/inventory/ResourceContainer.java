@@ -31,14 +31,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -56,8 +53,8 @@ import org.rhq.core.domain.measurement.MeasurementDefinition;
 import org.rhq.core.domain.measurement.MeasurementSchedule;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.pc.util.FacetLockType;
-import org.rhq.core.pc.util.LoggingThreadFactory;
 import org.rhq.core.pluginapi.inventory.ResourceComponent;
 import org.rhq.core.pluginapi.inventory.ResourceContext;
 import org.rhq.core.util.exception.ThrowableUtil;
@@ -82,11 +79,9 @@ public class ResourceContainer implements Serializable {
         STARTED, STOPPED, STARTING
     }
 
-    // thread pools used to invoke methods on container's components
-    private static final String DAEMON_THREAD_POOL_NAME = "ResourceContainer.invoker.daemon";
-    private static final String NON_DAEMON_THREAD_POOL_NAME = "ResourceContainer.invoker.nonDaemon";
-    private static ExecutorService DAEMON_THREAD_POOL;
-    private static ExecutorService NON_DAEMON_THREAD_POOL;
+    // runs the methods invoked on container's components, with per plugin thread pools
+    private static final String INVOKER_THREAD_POOL_NAME = "ResourceContainer.invoker";
+    private static ComponentInvocationEngine INVOCATION_ENGINE;
 
     // non-transient fields
     private final Resource resource;
@@ -112,10 +107,7 @@ public class ResourceContainer implements Serializable {
      * Initialize the ResourceContainer's internals, such as its thread pools.
      */
     public static void initialize() {
-        LoggingThreadFactory daemonFactory = new LoggingThreadFactory(DAEMON_THREAD_POOL_NAME, true);
-        LoggingThreadFactory nonDaemonFactory = new LoggingThreadFactory(NON_DAEMON_THREAD_POOL_NAME, false);
-        DAEMON_THREAD_POOL = Executors.newCachedThreadPool(daemonFactory);
-        NON_DAEMON_THREAD_POOL = Executors.newCachedThreadPool(nonDaemonFactory);
+        INVOCATION_ENGINE = new ComponentInvocationEngine(INVOKER_THREAD_POOL_NAME);
     }
 
     /**
@@ -123,8 +115,21 @@ public class ResourceContainer implements Serializable {
      */
     public static void shutdown() {
         // TODO (ips, 04/30/12): Should we funnel these through PluginContainer.shutdownExecutorService()?
-        DAEMON_THREAD_POOL.shutdown();
-        NON_DAEMON_THREAD_POOL.shutdown();
+        INVOCATION_ENGINE.shutdown();
+    }
+
+    /**
+     * @return the invocation counters and latencies of each facet interface invoked through component proxies
+     */
+    public static List<ComponentInvocationEngine.FacetStatistics> getFacetInvocationStatistics() {
+        return INVOCATION_ENGINE.getFacetStatistics();
+    }
+
+    /**
+     * @return the state of the thread pools running component proxy invocations, one per plugin and daemon flag
+     */
+    public static List<ComponentInvocationEngine.BulkheadStatistics> getInvocationThreadPoolStatistics() {
+        return INVOCATION_ENGINE.getBulkheadStatistics();
     }
 
     public ResourceContainer(Resource resource, ClassLoader resourceClassLoader) {
@@ -399,12 +404,13 @@ public class ResourceContainer implements Serializable {
      * facet interface. This proxy will ensure that calls to the component's interface are synchronized with the given
      * lock type. If <code>lockType</code> is {@link FacetLockType#NONE} and there is no timeout, then the resource's
      * actual component instance is returned as-is (i.e. it will not be wrapped in a proxy - which means this returns
-     * the same as {@link #getResourceComponent()}).
+     * the same as {@link #getResourceComponent()}). If there is a lock but no timeout, the proxy invokes the component
+     * on the calling thread.
      *
      * @param  facetInterface the interface that the component implements and will expose via the proxy
      * @param  lockType       the type of lock to use when synchronizing access; must not be null
      * @param  timeout        if the method invocation thread has not completed after this many milliseconds, interrupt
-     *                        it; value must be positive
+     *                        it; 0 means no timeout
      * @param  daemonThread   whether or not the thread used for the invocation should be a daemon thread
      * @param  onlyIfStarted  if <code>true</code>, and the component is not started, an exception is thrown
      *
@@ -486,8 +492,9 @@ public class ResourceContainer implements Serializable {
     }
 
     /**
-     * This is a ResourceComponent proxy that invokes component methods in pooled threads. Depending on the parameters
-     * passed to its constructor, it may also:
+     * This is a ResourceComponent proxy that invokes component methods through the {@link ComponentInvocationEngine},
+     * in pooled threads or, without a timeout, in the calling thread. Depending on the parameters passed to its
+     * constructor, it may also:
      *
      *   1) obtain a facet lock before passing the invocation call to the actual component, and/or
      *   2) interrupt the invocation thread and throw a {@link TimeoutException} if its execution time exceeds a
@@ -501,6 +508,7 @@ public class ResourceContainer implements Serializable {
         private final long timeout;
         private final boolean daemonThread;
         private final Class facetInterface;
+        private final String pluginName;
 
         /**
          *
@@ -508,7 +516,7 @@ public class ResourceContainer implements Serializable {
          *                  caller must ensure the container's component is never null
          * @param lockType the type of facet lock to acquire for the invocation; must not be null
          * @param timeout if the method invocation thread has not completed after this many milliseconds, interrupt it;
-         *                value must be positive
+         *                0 to invoke the method in the calling thread without a timeout
          * @param daemonThread whether or not the thread used for the invocation should be a daemon thread
          * @param facetInterface the interface that the component implements that is being exposed by this proxy
          */
@@ -529,34 +537,32 @@ public class ResourceContainer implements Serializable {
                 break;
             }
             }
-            if (timeout <= 0) {
-                throw new IllegalArgumentException("timeout value is not positive.");
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout value is negative.");
             }
             this.timeout = timeout;
             this.daemonThread = daemonThread;
             this.facetInterface = facetInterface;
+            ResourceType resourceType = container.getResource().getResourceType();
+            this.pluginName = (resourceType != null) ? resourceType.getPlugin() : "unknown";
         }
 
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
             if (method.getDeclaringClass().equals(this.facetInterface)) {
-                return invokeInNewThreadWithLock(method, args);
+                return invokeWithLock(method, args);
             } else {
                 // toString(), etc.
                 return invokeInCurrentThreadWithoutLock(method, args);
             }
         }
 
-        private Object invokeInNewThreadWithLock(Method method, Object[] args) throws Throwable {
-            ExecutorService threadPool = this.daemonThread ? DAEMON_THREAD_POOL : NON_DAEMON_THREAD_POOL;
+        private Object invokeWithLock(Method method, Object[] args) throws Throwable {
             Callable invocationThread = new ComponentInvocationThread(this.container, method, args, this.lock);
-            Future<?> future = threadPool.submit(invocationThread);
             try {
-                return future.get(this.timeout, TimeUnit.MILLISECONDS);
+                return INVOCATION_ENGINE.invoke(this.pluginName, this.facetInterface.getSimpleName(),
+                    this.daemonThread, this.timeout, invocationThread);
             } catch (InterruptedException e) {
                 LOG.error("Thread [" + Thread.currentThread().getName() + "] was interrupted.");
-                if (this.daemonThread) {
-                    future.cancel(true);
-                }
                 throw new RuntimeException(invokedMethodString(method, args, "was rudely interrupted."), e);
             } catch (ExecutionException e) {
                 if (LOG.isDebugEnabled()) {
@@ -567,7 +573,6 @@ public class ResourceContainer implements Serializable {
                 String msg = invokedMethodString(method, args, "timed out after " + timeout
                         + " milliseconds - invocation thread will be interrupted.");
                 LOG.debug(msg);
-                future.cancel(true);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(this.container.getFacetLockStatus());
                 }
@@ -23,29 +23,43 @@
 package org.rhq.core.pc.measurement;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.rhq.core.clientapi.agent.PluginContainerException;
 import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementDataTrait;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.measurement.calltime.CallTimeData;
 import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.pc.PluginContainer;
 import org.rhq.core.pc.inventory.InventoryManager;
 import org.rhq.core.pc.inventory.ResourceContainer;
-import org.rhq.core.pc.util.ComponentUtil;
 import org.rhq.core.pc.util.FacetLockType;
+import org.rhq.core.pluginapi.measurement.BatchMeasurementFacet;
 import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.util.exception.ThrowableUtil;
 
 /**
-* Executes the collection of measurements. Every call results in one new batch of measurements collected. Each batch is
-* limited to a single resource and the measurements that are due to be collected at that time.
+* Executes the collection of measurements. Every {@link #collect(Set)} results in one new batch of measurements
+* collected. Each batch is limited to a single resource and the measurements that are due to be collected at that time.
+* Batches of sibling resources whose parent component is a {@link BatchMeasurementFacet} can be coalesced (see
+* {@link #coalesce(List)}) and then collected with a single call to the parent (see {@link #collectBatch(List)}).
 *
 * @author Greg Hinkle
 */
@@ -57,83 +71,412 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
     // this is only kept when in debug mode to help figure out which metrics are slowing things down. 
     private ScheduleHistory scheduleHistory = new ScheduleHistory();
 
+    // what each batch facet said about the child types it was asked about, for as long as the component lives
+    private Map<Object, Map<ResourceType, Boolean>> batchSupport = Collections
+        .synchronizedMap(new WeakHashMap<Object, Map<ResourceType, Boolean>>());
+
     public MeasurementCollectorRunner(MeasurementManager measurementManager) {
         this.measurementManager = measurementManager;
     }
 
+    /**
+     * Collects all measurements that are due now, one batch after the other, in the calling thread.
+     */
     public MeasurementReport call() {
         MeasurementReport report = null;
+        for (List<Set<ScheduledMeasurementInfo>> batch : coalesce(this.measurementManager.getNextScheduledSets())) {
+            report = collectBatch(batch);
+        }
+        return (report != null) ? report : this.measurementManager.getActiveReport();
+    }
+
+    /**
+     * Collects one batch of due measurements, all of which belong to the same resource, into the active report and
+     * then reschedules them. This is called concurrently by the collector threads, each with a different resource.
+     *
+     * @param requests the due measurements of one resource, as handed out by
+     *                 {@link MeasurementManager#getNextScheduledSets()}
+     *
+     * @return the report the measurements were collected into
+     */
+    public MeasurementReport collect(Set<ScheduledMeasurementInfo> requests) {
+        MeasurementReport report = null;
+        boolean rescheduled = false;
+        try {
+            this.measurementManager.getLock().readLock().lock();
+
+            report = this.measurementManager.getActiveReport();
+            long start = System.currentTimeMillis();
+
+            InventoryManager im = getInventoryManager();
+
+            ScheduledMeasurementInfo next = getNextCollection(requests);
+            this.measurementManager.recordSchedulingLag(start - next.getNextCollection(), requests.size());
+
+            if ((start - 30000L) > next.getNextCollection()) {
+                this.measurementManager.incrementLateCollections(requests.size());
+                if (log.isDebugEnabled()) {
+                    log.debug("Measurement collection is falling behind... Missed requested time by ["
+                        + (start - next.getNextCollection()) + "ms]");
+
+                    if (!scheduleHistory.isEmpty()) {
+                        log.debug("The most recent measurement requests prior to this detected delay: "
+                            + scheduleHistory);
+                    }
+                }
+
+                // BZ 834019 - reschedule these requests for the future, and away from the set of requests on this schedule
+                this.measurementManager.rescheduleLateCollections(requests);
+                rescheduled = true;
+                return report;
+            }
+
+            Integer resourceId = next.getResourceId();
+            ResourceContainer container = im.getResourceContainer(resourceId);
+            if (!isCollectable(container)) {
+                // Don't collect metrics for resources that are down
+                if (log.isDebugEnabled()) {
+                    log.debug("Measurements not collected for inactive resource component: "
+                        + container.getResource());
+                }
+            } else {
+                collectResource(report, requests, container);
+            }
+
+            this.measurementManager.reschedule(requests);
+            rescheduled = true;
+
+            // the report is shared by the collector threads; its own methods synchronize on it
+            synchronized (report) {
+                report.incrementCollectionTime(System.currentTimeMillis() - start);
+            }
+        } catch (Throwable t) {
+            log.error("Failed to run measurement collection", t);
+        } finally {
+            if (!rescheduled) {
+                // never drop the schedules (and never leave their resource marked as being collected)
+                this.measurementManager.reschedule(requests);
+            }
+            this.measurementManager.getLock().readLock().unlock();
+        }
+
+        return report;
+    }
+
+    /**
+     * Groups the given due measurements into the batches to be collected. The measurements of a resource form a
+     * batch of their own, unless the resource's parent component is a {@link BatchMeasurementFacet} that supports the
+     * resource's type and measurements of at least one of its siblings are due as well; all such siblings are then
+     * put into one batch.
+     *
+     * @param  due the due measurements, one set per resource, as handed out by
+     *             {@link MeasurementManager#getNextScheduledSets()}
+     *
+     * @return the batches, each holding the due measurements of one or more resources
+     */
+    public List<List<Set<ScheduledMeasurementInfo>>> coalesce(List<Set<ScheduledMeasurementInfo>> due) {
+        List<List<Set<ScheduledMeasurementInfo>>> batches = new ArrayList<List<Set<ScheduledMeasurementInfo>>>(
+            due.size());
+        Map<Integer, List<Set<ScheduledMeasurementInfo>>> siblings = null;
+
+        InventoryManager im = getInventoryManager();
+
+        for (Set<ScheduledMeasurementInfo> requests : due) {
+            Integer parentId = getBatchingParentId(im, requests.iterator().next().getResourceId());
+            if (parentId == null) {
+                batches.add(Collections.singletonList(requests));
+                continue;
+            }
+
+            if (siblings == null) {
+                siblings = new LinkedHashMap<Integer, List<Set<ScheduledMeasurementInfo>>>();
+            }
+            List<Set<ScheduledMeasurementInfo>> batch = siblings.get(parentId);
+            if (batch == null) {
+                batch = new ArrayList<Set<ScheduledMeasurementInfo>>();
+                siblings.put(parentId, batch);
+            }
+            batch.add(requests);
+        }
+
+        if (siblings != null) {
+            batches.addAll(siblings.values());
+        }
+
+        return batches;
+    }
+
+    /**
+     * Collects a batch of due measurements, as grouped by {@link #coalesce(List)}, into the active report and then
+     * reschedules them. If the batch holds the measurements of more than one resource, they are all collected with a
+     * single call to the {@link BatchMeasurementFacet} of the resources' parent; should that fail, each resource's
+     * measurements are collected on their own instead.
+     *
+     * @param batch the due measurements of one or more sibling resources, one set per resource
+     *
+     * @return the report the measurements were collected into
+     */
+    public MeasurementReport collectBatch(List<Set<ScheduledMeasurementInfo>> batch) {
+        if (batch.size() == 1) {
+            return collect(batch.get(0));
+        }
+
+        MeasurementReport report = null;
+        // the measurements that still need to be rescheduled
+        List<Set<ScheduledMeasurementInfo>> pending = new ArrayList<Set<ScheduledMeasurementInfo>>(batch);
         try {
             this.measurementManager.getLock().readLock().lock();
 
             report = this.measurementManager.getActiveReport();
             long start = System.currentTimeMillis();
 
-            InventoryManager im = PluginContainer.getInstance().getInventoryManager();
+            InventoryManager im = getInventoryManager();
 
-            Set<ScheduledMeasurementInfo> requests = this.measurementManager.getNextScheduledSet();
+            Map<String, Set<MeasurementScheduleRequest>> metrics;
+            metrics = new HashMap<String, Set<MeasurementScheduleRequest>>();
+            List<Set<ScheduledMeasurementInfo>> batched = new ArrayList<Set<ScheduledMeasurementInfo>>();
+            List<Set<ScheduledMeasurementInfo>> individual = new ArrayList<Set<ScheduledMeasurementInfo>>();
+            ResourceContainer parentContainer = null;
 
-            if (requests != null) {
-                ScheduledMeasurementInfo next = requests.iterator().next();
+            for (Set<ScheduledMeasurementInfo> requests : batch) {
+                ScheduledMeasurementInfo next = getNextCollection(requests);
+                this.measurementManager.recordSchedulingLag(start - next.getNextCollection(), requests.size());
 
-                if ((System.currentTimeMillis() - 30000L) > next.getNextCollection()) {
+                if ((start - 30000L) > next.getNextCollection()) {
                     this.measurementManager.incrementLateCollections(requests.size());
                     if (log.isDebugEnabled()) {
                         log.debug("Measurement collection is falling behind... Missed requested time by ["
-                            + (System.currentTimeMillis() - requests.iterator().next().getNextCollection()) + "ms]");
-
-                        if (!scheduleHistory.isEmpty()) {
-                            log.debug("The most recent measurement requests prior to this detected delay: "
-                                + scheduleHistory);
-                        }
+                            + (start - next.getNextCollection()) + "ms]");
                     }
 
-                    // BZ 834019 - reschedule these requests for the future, and away from the set of requests on this schedule
                     this.measurementManager.rescheduleLateCollections(requests);
-                    return report;
+                    pending.remove(requests);
+                    continue;
                 }
 
-                Integer resourceId = next.getResourceId();
-                ResourceContainer container = im.getResourceContainer(resourceId);
-                if (container.getResourceComponentState() != ResourceContainer.ResourceComponentState.STARTED
-                    || container.getAvailability() == null
-                    || container.getAvailability().getAvailabilityType() == AvailabilityType.DOWN) {
-                    // Don't collect metrics for resources that are down
+                ResourceContainer container = im.getResourceContainer(next.getResourceId());
+                if (container == null || !isCollectable(container)) {
                     if (log.isDebugEnabled()) {
                         log.debug("Measurements not collected for inactive resource component: "
-                            + container.getResource());
+                            + next.getResourceId());
                     }
+                    continue;
+                }
+
+                Resource resource = container.getResource();
+                if (parentContainer == null) {
+                    parentContainer = im.getResourceContainer(resource.getParentResource());
+                }
+
+                // resource keys are only unique per type, so siblings of different types might share one
+                if (metrics.containsKey(resource.getResourceKey())) {
+                    individual.add(requests);
                 } else {
-                    MeasurementFacet measurementComponent = ComponentUtil
-                        .getComponent(resourceId, MeasurementFacet.class, FacetLockType.READ,
-                            MeasurementManager.FACET_METHOD_TIMEOUT, true, true);
+                    metrics.put(resource.getResourceKey(),
+                        Collections.<MeasurementScheduleRequest> unmodifiableSet(requests));
+                    batched.add(requests);
+                }
+            }
 
-                    if (log.isDebugEnabled()) {
-                        scheduleHistory.addRequests(requests);
-                    }
+            if ((batched.size() < 2) || (parentContainer == null)
+                || !getBatchValues(report, parentContainer, metrics)) {
+                individual.addAll(batched);
+            }
 
-                    getValues(measurementComponent, report, requests, container.getResource());
+            for (Set<ScheduledMeasurementInfo> requests : individual) {
+                int resourceId = requests.iterator().next().getResourceId();
+                try {
+                    collectResource(report, requests, im.getResourceContainer(resourceId));
+                } catch (Throwable t) {
+                    log.error("Failed to run measurement collection for resource [" + resourceId + "]", t);
                 }
+            }
 
+            for (Set<ScheduledMeasurementInfo> requests : pending) {
                 this.measurementManager.reschedule(requests);
+            }
+            pending.clear();
 
+            // the report is shared by the collector threads; its own methods synchronize on it
+            synchronized (report) {
                 report.incrementCollectionTime(System.currentTimeMillis() - start);
             }
         } catch (Throwable t) {
             log.error("Failed to run measurement collection", t);
         } finally {
+            // never drop the schedules (and never leave their resources marked as being collected)
+            for (Set<ScheduledMeasurementInfo> requests : pending) {
+                this.measurementManager.reschedule(requests);
+            }
             this.measurementManager.getLock().readLock().unlock();
         }
 
         return report;
     }
 
+    /**
+     * Returns the id of the parent of the given resource if the parent's component is started and collects the
+     * measurements of children of the resource's type as a {@link BatchMeasurementFacet}. The facet is asked through
+     * the usual component proxy, so a plugin that hangs cannot hold up the collection requester for longer than the
+     * facet timeout, and it is asked only once per child type for as long as the component instance lives.
+     */
+    private Integer getBatchingParentId(InventoryManager im, int resourceId) {
+        ResourceContainer container = im.getResourceContainer(resourceId);
+        if (container == null) {
+            return null;
+        }
+
+        Resource parent = container.getResource().getParentResource();
+        if (parent == null) {
+            return null;
+        }
+
+        ResourceContainer parentContainer = im.getResourceContainer(parent);
+        if (parentContainer == null
+            || parentContainer.getResourceComponentState() != ResourceContainer.ResourceComponentState.STARTED) {
+            return null;
+        }
+
+        Object component = parentContainer.getResourceComponent();
+        if (!(component instanceof BatchMeasurementFacet)) {
+            return null;
+        }
+
+        Map<ResourceType, Boolean> supported = this.batchSupport.get(component);
+        if (supported == null) {
+            supported = new HashMap<ResourceType, Boolean>();
+            this.batchSupport.put(component, supported);
+        }
+
+        ResourceType childType = container.getResource().getResourceType();
+        Boolean batched = supported.get(childType);
+        if (batched == null) {
+            try {
+                BatchMeasurementFacet batchComponent = getFacet(parentContainer, BatchMeasurementFacet.class);
+                batched = Boolean.valueOf(batchComponent.isBatchCollectionSupported(childType));
+            } catch (Throwable t) {
+                // not asked again until the component is restarted - a component that failed to answer once would
+                // otherwise hold up every tick
+                batched = Boolean.FALSE;
+                log.warn("Failed to determine whether [" + parent + "] supports batch measurement collection for ["
+                    + childType + "], its children will be collected one at a time - cause: "
+                    + ThrowableUtil.getAllMessages(t));
+            }
+            supported.put(childType, batched);
+        }
+
+        return batched.booleanValue() ? parentContainer.getResource().getId() : null;
+    }
+
+    /**
+     * Collects the requested metrics of several children through their parent's batch facet. The data is collected
+     * into a separate report first, so a failed collection leaves nothing behind in the given report.
+     *
+     * @return <code>true</code> if the measurements were collected, or skipped because the plugin's invocation threads
+     *         are all busy, <code>false</code> if they need to be collected one resource at a time
+     */
+    private boolean getBatchValues(MeasurementReport report, ResourceContainer parentContainer,
+        Map<String, Set<MeasurementScheduleRequest>> metrics) {
+        Resource parent = parentContainer.getResource();
+        try {
+            BatchMeasurementFacet batchComponent = getFacet(parentContainer, BatchMeasurementFacet.class);
+
+            if (log.isDebugEnabled()) {
+                for (Set<MeasurementScheduleRequest> requests : metrics.values()) {
+                    scheduleHistory.addRequests(requests);
+                }
+            }
+
+            MeasurementReport batchReport = new MeasurementReport();
+            long start = System.currentTimeMillis();
+            batchComponent.getValues(batchReport, Collections.unmodifiableMap(metrics));
+            long duration = (System.currentTimeMillis() - start);
+
+            for (MeasurementDataNumeric datum : batchReport.getNumericData()) {
+                report.addData(datum);
+            }
+            for (MeasurementDataTrait datum : batchReport.getTraitData()) {
+                report.addData(datum);
+            }
+            for (CallTimeData datum : batchReport.getCallTimeData()) {
+                report.addData(datum);
+            }
+
+            this.measurementManager.recordBatchCollection(metrics.size(), duration);
+
+            if (duration > 2000L || log.isTraceEnabled()) {
+                log.info("[PERF] Batch collection of measurements for [" + metrics.size() + "] children of ["
+                    + parent + "] took [" + duration + "]ms");
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            // collecting the children one at a time would only be rejected again
+            int count = 0;
+            for (Set<MeasurementScheduleRequest> requests : metrics.values()) {
+                count += requests.size();
+            }
+            this.measurementManager.incrementSkippedCollections(count);
+            log.warn("Skipped collecting measurement data for [" + metrics.size() + "] children of " + parent
+                + " - cause: " + e.getMessage());
+            return true;
+        } catch (Throwable t) {
+            this.measurementManager.incrementFailedBatchCollections();
+            log.warn("Failure to collect measurement data for [" + metrics.size() + "] children of " + parent
+                + " in one batch, will collect them one at a time - cause: " + ThrowableUtil.getAllMessages(t));
+            return false;
+        }
+    }
+
+    private void collectResource(MeasurementReport report, Set<ScheduledMeasurementInfo> requests,
+        ResourceContainer container) throws PluginContainerException {
+        MeasurementFacet measurementComponent = getFacet(container, MeasurementFacet.class);
+
+        if (log.isDebugEnabled()) {
+            scheduleHistory.addRequests(requests);
+        }
+
+        getValues(measurementComponent, report, requests, container.getResource());
+    }
+
+    /**
+     * Returns the inventory manager the resources are looked up in.
+     */
+    InventoryManager getInventoryManager() {
+        return PluginContainer.getInstance().getInventoryManager();
+    }
+
+    /**
+     * Returns a proxy of the resource's component that invokes the given facet with a read lock and times out after
+     * {@link MeasurementManager#FACET_METHOD_TIMEOUT}.
+     */
+    <T> T getFacet(ResourceContainer container, Class<T> facetInterface) throws PluginContainerException {
+        return container.createResourceComponentProxy(facetInterface, FacetLockType.READ,
+            MeasurementManager.FACET_METHOD_TIMEOUT, true, true);
+    }
+
+    private static ScheduledMeasurementInfo getNextCollection(Set<ScheduledMeasurementInfo> requests) {
+        ScheduledMeasurementInfo next = null;
+        for (ScheduledMeasurementInfo request : requests) {
+            if ((next == null) || (request.getNextCollection() < next.getNextCollection())) {
+                next = request;
+            }
+        }
+        return next;
+    }
+
+    private static boolean isCollectable(ResourceContainer container) {
+        return container.getResourceComponentState() == ResourceContainer.ResourceComponentState.STARTED
+            && container.getAvailability() != null
+            && container.getAvailability().getAvailabilityType() != AvailabilityType.DOWN;
+    }
+
     private void getValues(MeasurementFacet measurementComponent, MeasurementReport report,
         Set<? extends MeasurementScheduleRequest> requests, Resource resource) {
         try {
             long start = System.currentTimeMillis();
             measurementComponent.getValues(report, Collections.unmodifiableSet(requests));
             long duration = (System.currentTimeMillis() - start);
+            this.measurementManager.recordCollection(duration);
             if (duration > 2000L || log.isTraceEnabled()) {
                 String message = "[PERF] Collection of measurements for [" + resource + "] (component=["
                     + measurementComponent + "]) took [" + duration + "]ms";
@@ -142,6 +485,10 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
                 }
                 log.info(message);
             }
+        } catch (RejectedExecutionException e) {
+            // the plugin's invocation threads are all busy - skip this collection, the next one is scheduled anyway
+            this.measurementManager.incrementSkippedCollections(requests.size());
+            log.warn("Skipped collecting measurement data for " + resource + " - cause: " + e.getMessage());
         } catch (Throwable t) {
             this.measurementManager.incrementFailedCollections(requests.size());
             if (log.isDebugEnabled()) {
@@ -182,15 +529,15 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
             }
         }
 
-        public void addRequests(Set<ScheduledMeasurementInfo> requests) {
+        public synchronized void addRequests(Set<? extends MeasurementScheduleRequest> requests) {
             String now = new Date().toString() + " ";
 
-            for (ScheduledMeasurementInfo request : requests) {
+            for (MeasurementScheduleRequest request : requests) {
                 push(now + request.toString());
             }
         }
 
-        public String toString() {
+        public synchronized String toString() {
             StringBuilder sb = new StringBuilder();
             while (!isEmpty()) {
                 sb.append("\n  ");
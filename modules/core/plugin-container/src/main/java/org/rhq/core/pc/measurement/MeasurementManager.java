@@ -23,15 +23,17 @@
 package org.rhq.core.pc.measurement;
 
 import java.lang.management.ManagementFactory;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -97,8 +99,10 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     private PluginContainerConfiguration configuration;
 
-    private PriorityQueue<ScheduledMeasurementInfo> scheduledRequests = new PriorityQueue<ScheduledMeasurementInfo>(
-        10000);
+    private MeasurementScheduleWheel scheduledRequests = new MeasurementScheduleWheel(System.currentTimeMillis());
+
+    // resources whose due measurements have been handed to a collector thread and are not rescheduled yet
+    private Set<Integer> collectingResources = new HashSet<Integer>();
 
     private InventoryManager inventoryManager;
 
@@ -118,6 +122,16 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     private AtomicLong lateCollections = new AtomicLong(0);
     private AtomicLong failedCollection = new AtomicLong(0);
+    private AtomicLong skippedCollections = new AtomicLong(0);
+    private SchedulingLagHistogram schedulingLag = new SchedulingLagHistogram();
+
+    // measurement facet calls, individual and batched, and how long they took
+    private AtomicLong collections = new AtomicLong(0);
+    private AtomicLong collectionTime = new AtomicLong(0);
+    private AtomicLong batchCollections = new AtomicLong(0);
+    private AtomicLong batchedResources = new AtomicLong(0);
+    private AtomicLong batchCollectionTime = new AtomicLong(0);
+    private AtomicLong failedBatchCollections = new AtomicLong(0);
 
     public MeasurementManager() {
         super(MeasurementAgentService.class);
@@ -167,25 +181,38 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         LOG.info("Measurement Manager initialized.");
     }
 
+    /**
+     * Advances the schedule wheel once per tick and hands each resource's due measurements to the collector thread
+     * pool as one batch, coalescing the batches of siblings whose parent can collect them together. This requester
+     * occupies one thread of the pool itself, so if the pool has no other thread the batches are collected inline.
+     */
     class MeasurementCollectionRequester implements Runnable {
         @Override
         public void run() {
             try {
+                long tick = scheduledRequests.getTickMillis();
                 while (!collectorThreadPool.isShutdown()) {
-                    long next = getNextExpectedCollectionTime();
-                    if (next == Long.MIN_VALUE) {
-                        Thread.sleep(10000);
-                    } else {
-                        long delay = next - System.currentTimeMillis();
-                        if (delay <= 0) {
-                            //                  collectorThreadPool.execute(measurementCollectorRunner);
-                            measurementCollectorRunner.call();
-                        } else {
-                            if (!collectorThreadPool.isShutdown()) {
-                                Thread.sleep(delay);
+                    for (final List<Set<ScheduledMeasurementInfo>> batch : measurementCollectorRunner
+                        .coalesce(getNextScheduledSets())) {
+                        if (collectorThreadPool.getCorePoolSize() > 1) {
+                            try {
+                                collectorThreadPool.execute(new Runnable() {
+                                    public void run() {
+                                        measurementCollectorRunner.collectBatch(batch);
+                                    }
+                                });
+                            } catch (RejectedExecutionException e) {
+                                // the pool is shutting down
+                                return;
                             }
+                        } else {
+                            measurementCollectorRunner.collectBatch(batch);
                         }
                     }
+
+                    if (!collectorThreadPool.isShutdown()) {
+                        Thread.sleep(tick - (System.currentTimeMillis() % tick));
+                    }
                 }
             } catch (InterruptedException e) {
                 // Log nothing - if we got interrupted, it's probably because the PC is shutting down.
@@ -356,7 +383,6 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         // TODO GH: Should I kick the pool or should I just go with the 30 second granularity on collections?
         // If I get much more granular then the server could end up with too many small reports from many agents
         // This may be another reason to have a separate sending mechanism from the collection mechanism.
-        clearDuplicateSchedules();
 
     }
 
@@ -395,7 +421,6 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         // TODO GH: Should I kick the pool or should I just go with the 30 second granularity on collections?
         // If I get much more granular then the server could end up with too many small reports from many agents
         // This may be another reason to have a separate sending mechanism from the collection mechanism.
-        clearDuplicateSchedules();
     }
 
     /**
@@ -420,38 +445,19 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
             info.setNextCollection(firstCollection);
 
-            this.scheduledRequests.remove(info);
-
-            // Don't add it if collection is disabled for this resource
+            // Don't add it if collection is disabled for this resource. The wheel holds one schedule per schedule
+            // id, so scheduling replaces any existing (possibly duplicate) schedule for it.
             if (info.isEnabled()) {
-                this.scheduledRequests.offer(info);
+                this.scheduledRequests.schedule(info);
+            } else {
+                this.scheduledRequests.unschedule(info.getScheduleId());
             }
         }
     }
 
     @Override
     public synchronized void unscheduleCollection(Set<Integer> resourceIds) {
-        Iterator<ScheduledMeasurementInfo> itr = this.scheduledRequests.iterator();
-        while (itr.hasNext()) {
-            ScheduledMeasurementInfo info = itr.next();
-            if (resourceIds.contains(info.getResourceId())) {
-                itr.remove();
-            }
-        }
-    }
-
-    private void clearDuplicateSchedules() {
-        HashSet<Integer> set = new HashSet<Integer>(this.scheduledRequests.size());
-        Iterator<ScheduledMeasurementInfo> iter = this.scheduledRequests.iterator();
-        while (iter.hasNext()) {
-            ScheduledMeasurementInfo info = iter.next();
-            if (set.contains(info.getScheduleId())) {
-                LOG.debug("Found duplicate schedule - will remove it: " + info);
-                iter.remove();
-            } else {
-                set.add(info.getScheduleId());
-            }
-        }
+        this.scheduledRequests.unscheduleResources(resourceIds);
     }
 
     // spinder 12/16/11. BZ 760139. Modified to return empty sets instead of 'null' even for erroneous conditions.
@@ -515,36 +521,34 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
     }
 
     @Override
-    public long getNextExpectedCollectionTime() {
-        ScheduledMeasurementInfo nextScheduledMeasurement = this.scheduledRequests.peek();
-        if (nextScheduledMeasurement == null) {
-            return Long.MIN_VALUE;
-        } else {
-            return nextScheduledMeasurement.getNextCollection();
-        }
+    public synchronized long getNextExpectedCollectionTime() {
+        return this.scheduledRequests.getNextCollectionTime();
     }
 
     /**
-     * Returns the complete set of scheduled measurement collections.
+     * Returns the measurement collections that are due now, one set per resource. The returned schedules are out
+     * of the schedule until they are passed to {@link #reschedule(Set)} or {@link #rescheduleLateCollections(Set)}.
+     * A resource whose previous batch is still being collected is not handed out again until that batch has been
+     * rescheduled; its due measurements are deferred to the next tick instead.
      *
-     * @return all measurement schedules
+     * @return the due measurement schedules, grouped per resource; empty if nothing is due
      */
-    public synchronized Set<ScheduledMeasurementInfo> getNextScheduledSet() {
-        ScheduledMeasurementInfo first = this.scheduledRequests.peek();
-        if ((first == null) || (first.getNextCollection() > System.currentTimeMillis())) {
-            return null;
-        }
+    public synchronized List<Set<ScheduledMeasurementInfo>> getNextScheduledSets() {
+        List<Set<ScheduledMeasurementInfo>> due = this.scheduledRequests.advance(System.currentTimeMillis());
 
-        Set<ScheduledMeasurementInfo> nextScheduledSet = new HashSet<ScheduledMeasurementInfo>();
-
-        ScheduledMeasurementInfo next = this.scheduledRequests.peek();
-        while ((next != null) && (next.getResourceId() == first.getResourceId())
-            && (next.getNextCollection() == first.getNextCollection())) {
-            nextScheduledSet.add(this.scheduledRequests.poll());
-            next = this.scheduledRequests.peek();
+        Iterator<Set<ScheduledMeasurementInfo>> iter = due.iterator();
+        while (iter.hasNext()) {
+            Set<ScheduledMeasurementInfo> requests = iter.next();
+            int resourceId = requests.iterator().next().getResourceId();
+            if (!this.collectingResources.add(resourceId)) {
+                for (ScheduledMeasurementInfo info : requests) {
+                    this.scheduledRequests.reschedule(info);
+                }
+                iter.remove();
+            }
         }
 
-        return nextScheduledSet;
+        return due;
     }
 
     /**
@@ -559,7 +563,8 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         for (ScheduledMeasurementInfo scheduledMeasurement : scheduledMeasurementInfos) {
             long interval = scheduledMeasurement.getInterval();
             scheduledMeasurement.setNextCollection(scheduledMeasurement.getNextCollection() + interval);
-            this.scheduledRequests.offer(scheduledMeasurement);
+            this.scheduledRequests.reschedule(scheduledMeasurement);
+            this.collectingResources.remove(scheduledMeasurement.getResourceId());
         }
     }
 
@@ -602,7 +607,8 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
             }
 
             scheduledMeasurement.setNextCollection(nextCollection);
-            this.scheduledRequests.offer(scheduledMeasurement);
+            this.scheduledRequests.reschedule(scheduledMeasurement);
+            this.collectingResources.remove(scheduledMeasurement.getResourceId());
         }
     }
 
@@ -650,7 +656,12 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
     public Map<String, Object> getMeasurementScheduleInfoForResource(int resourceId) {
         Map<String, Object> results = null;
 
-        for (ScheduledMeasurementInfo info : new PriorityQueue<ScheduledMeasurementInfo>(scheduledRequests)) {
+        Collection<ScheduledMeasurementInfo> schedules;
+        synchronized (this) {
+            schedules = this.scheduledRequests.getSchedules();
+        }
+
+        for (ScheduledMeasurementInfo info : schedules) {
             if (info.getResourceId() == resourceId) {
                 if (results == null) {
                     results = new HashMap<String, Object>();
@@ -739,7 +750,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
     }
 
     @Override
-    public long getCurrentlyScheduleMeasurements() {
+    public synchronized long getCurrentlyScheduleMeasurements() {
         return this.scheduledRequests.size();
     }
 
@@ -774,11 +785,76 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         this.failedCollection.addAndGet(count);
     }
 
+    void incrementSkippedCollections(int count) {
+        this.skippedCollections.addAndGet(count);
+    }
+
+    void recordSchedulingLag(long lag, int count) {
+        this.schedulingLag.record(lag, count);
+    }
+
+    @Override
+    public Map<String, Long> getSchedulingLagHistogram() {
+        return this.schedulingLag.getCounts();
+    }
+
+    void recordCollection(long duration) {
+        this.collections.incrementAndGet();
+        this.collectionTime.addAndGet(duration);
+    }
+
+    void recordBatchCollection(int resourceCount, long duration) {
+        this.batchCollections.incrementAndGet();
+        this.batchedResources.addAndGet(resourceCount);
+        this.batchCollectionTime.addAndGet(duration);
+    }
+
+    void incrementFailedBatchCollections() {
+        this.failedBatchCollections.incrementAndGet();
+    }
+
+    @Override
+    public long getBatchCollections() {
+        return this.batchCollections.get();
+    }
+
+    @Override
+    public long getBatchCollectionCallsSaved() {
+        return this.batchedResources.get() - this.batchCollections.get();
+    }
+
+    @Override
+    public long getBatchCollectionTime() {
+        return this.batchCollectionTime.get();
+    }
+
+    @Override
+    public long getEstimatedBatchCollectionTimeSaved() {
+        long count = this.collections.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        // what the batched resources would have cost if collected one at a time, at the average individual cost
+        long individualTime = (this.batchedResources.get() * this.collectionTime.get()) / count;
+        return Math.max(0, individualTime - this.batchCollectionTime.get());
+    }
+
+    @Override
+    public long getFailedBatchCollections() {
+        return this.failedBatchCollections.get();
+    }
+
     @Override
     public long getFailedCollections() {
         return failedCollection.get();
     }
 
+    @Override
+    public long getSkippedCollections() {
+        return skippedCollections.get();
+    }
+
     private static class CachedValue {
         CachedValue(long timestamp, double value) {
             this.timestamp = timestamp;
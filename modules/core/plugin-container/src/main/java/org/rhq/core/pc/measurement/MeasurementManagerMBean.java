@@ -22,6 +22,8 @@
   */
 package org.rhq.core.pc.measurement;
 
+import java.util.Map;
+
 /**
  * @author Greg Hinkle
  */
@@ -39,4 +41,44 @@ public interface MeasurementManagerMBean {
     long getLateCollections();
 
     long getFailedCollections();
+
+    /**
+     * @return the number of individual measurement collections that were skipped because the plugin's threads for
+     *         component invocations were all busy; they are collected again at their next scheduled time
+     */
+    long getSkippedCollections();
+
+    /**
+     * @return the number of measurements collected per scheduling lag bucket, i.e. how long after their scheduled
+     *         time their collection started, keyed by the bucket's upper bound (e.g. "&lt;=1000ms")
+     */
+    Map<String, Long> getSchedulingLagHistogram();
+
+    /**
+     * @return the number of calls made to collect the measurements of several resources in one batch
+     */
+    long getBatchCollections();
+
+    /**
+     * @return the number of measurement facet calls that batch collection avoided, i.e. the number of resources whose
+     *         measurements were collected in batches less the number of batch calls
+     */
+    long getBatchCollectionCallsSaved();
+
+    /**
+     * @return the total time spent in batch collections, in milliseconds
+     */
+    long getBatchCollectionTime();
+
+    /**
+     * @return an estimate of the time batch collection saved, in milliseconds; this is the time the batched resources
+     *         would have taken at the average time of an individual collection, less the time spent in batch
+     *         collections
+     */
+    long getEstimatedBatchCollectionTimeSaved();
+
+    /**
+     * @return the number of batch collections that failed and were retried one resource at a time
+     */
+    long getFailedBatchCollections();
 }
\ No newline at end of file
@@ -0,0 +1,276 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.measurement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hierarchical timing wheel holding the {@link ScheduledMeasurementInfo}s of all resources. Inserting and
+ * rescheduling a measurement is O(1) regardless of how many schedules there are, unlike the
+ * {@link java.util.PriorityQueue} this replaces, which is O(log n) per offer and O(n) per removal.
+ *
+ * <p>The wheel has {@link #LEVELS} levels of {@link #WHEEL_SIZE} slots. A slot on level 0 spans one tick, a slot
+ * on level <i>n</i> spans 64<sup>n</sup> ticks. When the current tick crosses the span of a higher level slot, the
+ * entries of that slot are cascaded down to the lower levels. Collections due further out than the wheel covers
+ * (about 194 days with one second ticks) are parked in the last slot of the top level and cascaded from there.</p>
+ *
+ * <p>Removal is lazy: the wheel keeps the live schedule of every schedule id, and entries found in a slot that are
+ * no longer the live schedule for their id are simply dropped when the slot is expired or cascaded.</p>
+ *
+ * <p>This class is not thread safe; the {@link MeasurementManager} guards all access to it.</p>
+ */
+class MeasurementScheduleWheel {
+
+    static final long DEFAULT_TICK_MILLIS = 1000L;
+
+    static final int WHEEL_SIZE = 64;
+    static final int LEVELS = 4;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = WHEEL_SIZE - 1;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+
+    // [level][slot], slots are created lazily
+    private final List<ScheduledMeasurementInfo>[][] wheels;
+
+    // the live schedule of every schedule id, whether it sits in the wheel or is currently being collected
+    private final Map<Integer, ScheduledMeasurementInfo> schedules = new HashMap<Integer, ScheduledMeasurementInfo>();
+
+    // all ticks before this one have been expired
+    private long currentTick;
+
+    MeasurementScheduleWheel(long now) {
+        this(now, DEFAULT_TICK_MILLIS);
+    }
+
+    @SuppressWarnings("unchecked")
+    MeasurementScheduleWheel(long now, long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.wheels = new List[LEVELS][WHEEL_SIZE];
+        this.currentTick = now / tickMillis;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return the number of schedules in this wheel, including the ones that are currently being collected
+     */
+    int size() {
+        return schedules.size();
+    }
+
+    /**
+     * @return all schedules in this wheel, including the ones that are currently being collected
+     */
+    Collection<ScheduledMeasurementInfo> getSchedules() {
+        return new ArrayList<ScheduledMeasurementInfo>(schedules.values());
+    }
+
+    /**
+     * Adds the schedule to the wheel, replacing any existing schedule with the same schedule id.
+     *
+     * @param info the schedule, due at its {@link ScheduledMeasurementInfo#getNextCollection() next collection}
+     */
+    void schedule(ScheduledMeasurementInfo info) {
+        schedules.put(info.getScheduleId(), info);
+        insert(info);
+    }
+
+    /**
+     * Puts a schedule that was handed out by {@link #advance(long)} back into the wheel at its (updated) next
+     * collection time. Nothing happens if the schedule was unscheduled or replaced while it was being collected.
+     *
+     * @param info the schedule to put back
+     *
+     * @return <code>true</code> if the schedule was put back
+     */
+    boolean reschedule(ScheduledMeasurementInfo info) {
+        if (schedules.get(info.getScheduleId()) != info) {
+            return false;
+        }
+        insert(info);
+        return true;
+    }
+
+    /**
+     * Removes the schedule with the given id.
+     *
+     * @param scheduleId the id of the schedule to remove
+     *
+     * @return the removed schedule or <code>null</code> if there was none
+     */
+    ScheduledMeasurementInfo unschedule(int scheduleId) {
+        return schedules.remove(scheduleId);
+    }
+
+    /**
+     * Removes all schedules of the given resources.
+     *
+     * @param resourceIds the resources to unschedule
+     */
+    void unscheduleResources(Set<Integer> resourceIds) {
+        Iterator<ScheduledMeasurementInfo> iter = schedules.values().iterator();
+        while (iter.hasNext()) {
+            if (resourceIds.contains(iter.next().getResourceId())) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Expires all ticks up to and including the tick of <code>now</code> and returns the schedules that became due,
+     * grouped per resource, in the order they became due. The returned schedules are out of the wheel until they are
+     * {@link #reschedule(ScheduledMeasurementInfo) rescheduled}.
+     *
+     * @param now the current time
+     *
+     * @return the due schedules, one set per resource; empty if nothing is due
+     */
+    List<Set<ScheduledMeasurementInfo>> advance(long now) {
+        long nowTick = now / tickMillis;
+        if (nowTick < currentTick) {
+            return new ArrayList<Set<ScheduledMeasurementInfo>>(0);
+        }
+
+        Map<Integer, Set<ScheduledMeasurementInfo>> due = new LinkedHashMap<Integer, Set<ScheduledMeasurementInfo>>();
+
+        while (currentTick <= nowTick) {
+            int slot = (int) (currentTick & SLOT_MASK);
+            List<ScheduledMeasurementInfo> expired = wheels[0][slot];
+            wheels[0][slot] = null;
+            currentTick++;
+            cascade();
+
+            if (expired != null) {
+                for (ScheduledMeasurementInfo info : expired) {
+                    if (schedules.get(info.getScheduleId()) == info) {
+                        Set<ScheduledMeasurementInfo> resourceSet = due.get(info.getResourceId());
+                        if (resourceSet == null) {
+                            resourceSet = new LinkedHashSet<ScheduledMeasurementInfo>();
+                            due.put(info.getResourceId(), resourceSet);
+                        }
+                        resourceSet.add(info);
+                    }
+                }
+            }
+        }
+
+        return new ArrayList<Set<ScheduledMeasurementInfo>>(due.values());
+    }
+
+    /**
+     * @return the earliest next collection time of all schedules in the wheel, or {@link Long#MIN_VALUE} if the
+     *         wheel is empty. Schedules currently being collected are not considered.
+     */
+    long getNextCollectionTime() {
+        long next = Long.MAX_VALUE;
+
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            long group = currentTick >> shift;
+            // the slot of the current group holds the entries of the group one full turn ahead on the upper levels
+            int first = (level == 0) ? 0 : 1;
+            for (int offset = first; offset < first + WHEEL_SIZE; offset++) {
+                List<ScheduledMeasurementInfo> slot = wheels[level][(int) ((group + offset) & SLOT_MASK)];
+                long slotNext = earliestLive(slot);
+                if (slotNext != Long.MAX_VALUE) {
+                    next = Math.min(next, slotNext);
+                    break;
+                }
+            }
+        }
+
+        return (next == Long.MAX_VALUE) ? Long.MIN_VALUE : next;
+    }
+
+    private long earliestLive(List<ScheduledMeasurementInfo> slot) {
+        long earliest = Long.MAX_VALUE;
+        if (slot != null) {
+            for (ScheduledMeasurementInfo info : slot) {
+                if ((schedules.get(info.getScheduleId()) == info) && (info.getNextCollection() < earliest)) {
+                    earliest = info.getNextCollection();
+                }
+            }
+        }
+        return earliest;
+    }
+
+    private void insert(ScheduledMeasurementInfo info) {
+        // anything already due goes into the next tick to be expired
+        long tick = Math.max(info.getNextCollection() / tickMillis, currentTick);
+        long delta = tick - currentTick;
+        if (delta > MAX_DELTA) {
+            tick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        int slot = (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+        List<ScheduledMeasurementInfo> entries = wheels[level][slot];
+        if (entries == null) {
+            entries = new ArrayList<ScheduledMeasurementInfo>();
+            wheels[level][slot] = entries;
+        }
+        entries.add(info);
+    }
+
+    /**
+     * Moves the entries of the upper level slots whose span starts at the current tick down the wheel. This is done
+     * as soon as the current tick moves, so the upper levels never hold entries of the current tick's span.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            if ((currentTick & ((1L << shift) - 1)) != 0) {
+                return;
+            }
+
+            int slot = (int) ((currentTick >> shift) & SLOT_MASK);
+            List<ScheduledMeasurementInfo> entries = wheels[level][slot];
+            wheels[level][slot] = null;
+            if (entries != null) {
+                for (ScheduledMeasurementInfo info : entries) {
+                    if (schedules.get(info.getScheduleId()) == info) {
+                        insert(info);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.measurement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how late measurement collections start relative to their scheduled time, in fixed buckets. Recording is
+ * lock free so collector threads can record concurrently.
+ */
+class SchedulingLagHistogram {
+
+    /** Inclusive upper bounds of the buckets, in milliseconds. Anything above the last bound goes in an extra bucket. */
+    static final long[] BUCKET_LIMITS = { 100L, 500L, 1000L, 5000L, 10000L, 30000L, 60000L, 300000L };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+
+    /**
+     * @param lag   how many milliseconds after its scheduled time the collection started; negative values count as 0
+     * @param count the number of measurements collected with this lag
+     */
+    void record(long lag, int count) {
+        int bucket = 0;
+        while ((bucket < BUCKET_LIMITS.length) && (lag > BUCKET_LIMITS[bucket])) {
+            bucket++;
+        }
+        counts.addAndGet(bucket, count);
+    }
+
+    /**
+     * @return the bucket counts keyed by a label of their range (e.g. "<=100ms", ">300000ms"), in ascending order
+     */
+    Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+            result.put("<=" + BUCKET_LIMITS[i] + "ms", counts.get(i));
+        }
+        result.put(">" + BUCKET_LIMITS[BUCKET_LIMITS.length - 1] + "ms", counts.get(BUCKET_LIMITS.length));
+        return result;
+    }
+}
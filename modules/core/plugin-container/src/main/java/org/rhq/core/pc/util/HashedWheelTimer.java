@@ -0,0 +1,193 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A timer for large numbers of short-lived timeouts that are almost always cancelled before they expire, such as the
+ * timeouts guarding resource component invocations. Scheduling and cancelling are O(1) and lock free; a single
+ * daemon thread advances a wheel of buckets once per tick and runs the tasks of the timeouts that expired. Timeouts
+ * never expire early, but may expire up to one tick late.
+ *
+ * <p>Tasks run on the timer thread, so they must be quick and must not block.</p>
+ */
+public class HashedWheelTimer {
+    private static final Log LOG = LogFactory.getLog(HashedWheelTimer.class);
+
+    private final long tickMillis;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final long startTime = System.nanoTime();
+    private final Thread workerThread;
+    private volatile boolean stopped;
+
+    /**
+     * @param name          the name of the timer thread
+     * @param tickMillis    the resolution of the timer
+     * @param ticksPerWheel the number of buckets; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) * 2 - 1);
+        this.tickMillis = tickMillis;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; ++i) {
+            this.wheel[i] = new ArrayList<Timeout>();
+        }
+        this.mask = size - 1;
+        this.workerThread = new LoggingThreadFactory(name, true).newThread(new Worker());
+        this.workerThread.start();
+    }
+
+    /**
+     * Schedules the given task to run on the timer thread once the delay elapsed, unless the returned timeout is
+     * cancelled first.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long now = elapsedMillis();
+        long delayMillis = unit.toMillis(delay);
+        // saturate rather than overflow for "infinite" delays
+        long deadline = (delayMillis > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + delayMillis;
+        Timeout timeout = new Timeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Timeouts that have not expired yet never will.
+     */
+    public void stop() {
+        stopped = true;
+        workerThread.interrupt();
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the timeout was cancelled by this call, false if it already expired or was cancelled
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private long tick;
+
+        public void run() {
+            while (!stopped) {
+                long deadline = tickMillis * (tick + 1);
+                long sleepMillis = deadline - elapsedMillis();
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException e) {
+                        continue; // stop() interrupts us
+                    }
+                }
+                transferPendingTimeouts();
+                expireTimeouts(wheel[(int) (tick & mask)], elapsedMillis());
+                ++tick;
+            }
+        }
+
+        private void transferPendingTimeouts() {
+            Timeout timeout;
+            while ((timeout = pendingTimeouts.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long expiryTick = timeout.deadline / tickMillis;
+                timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+                // a deadline that already passed goes into the current bucket
+                long bucketTick = Math.max(expiryTick, tick);
+                wheel[(int) (bucketTick & mask)].add(timeout);
+            }
+        }
+
+        private void expireTimeouts(List<Timeout> bucket, long now) {
+            int kept = 0;
+            for (int i = 0, size = bucket.size(); i < size; ++i) {
+                Timeout timeout = bucket.get(i);
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                    if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable t) {
+                            LOG.warn("Timer task [" + timeout.task + "] failed", t);
+                        }
+                    }
+                    continue;
+                }
+                if (timeout.remainingRounds > 0) {
+                    --timeout.remainingRounds;
+                }
+                bucket.set(kept++, timeout);
+            }
+            for (int i = bucket.size() - 1; i >= kept; --i) {
+                bucket.remove(i);
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.rhq.core.pc.drift;
 import org.rhq.core.domain.drift.DriftDefinition;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 class DriftClientTestStub implements DriftClient {
 
@@ -16,6 +18,8 @@ class DriftClientTestStub implements DriftClient {
 
     private int sendChangeSetContentInvocationCount;
 
+    private Set<String> storedChunks;
+
     @Override
     public void sendChangeSetToServer(DriftDetectionSummary detectionSummary) {
         ++sendChangeSetInvocationCount;
@@ -37,6 +41,24 @@ class DriftClientTestStub implements DriftClient {
         return sendChangeSetContentInvocationCount;
     }
 
+    @Override
+    public Set<String> findMissingChunks(Set<String> chunkHashes) {
+        if (storedChunks == null) {
+            return null;
+        }
+        Set<String> missing = new HashSet<String>(chunkHashes);
+        missing.removeAll(storedChunks);
+        return missing;
+    }
+
+    /**
+     * @param storedChunks the chunks the server has, or <code>null</code> (the default) if the server only accepts
+     * whole files
+     */
+    public void setStoredChunks(Set<String> storedChunks) {
+        this.storedChunks = storedChunks;
+    }
+
     @Override
     public void repeatChangeSet(int resourceId, String driftDefName, int version) {
     }
@@ -0,0 +1,97 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.pc.drift;
+
+import static org.rhq.core.domain.drift.DriftChangeSetCategory.COVERAGE;
+
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+import org.rhq.common.drift.ChangeSetReader;
+import org.rhq.common.drift.FileEntry;
+
+/**
+ * Measures generating the coverage change set of a synthetic tree of 100k files (the
+ * <code>drift.perf.files</code> system property changes the count) with files hashed on the detection thread, on a
+ * pool of threads with an empty digest cache, and with a warm digest cache, as when another drift definition covers
+ * the same files.
+ */
+@Test(groups = "PERF")
+public class DriftDetectorPerformanceTest extends DriftTest {
+
+    private static final int FILES = Integer.getInteger("drift.perf.files", 100000);
+    private static final int FILES_PER_DIR = 100;
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    public void testCoverageChangeSetTimes() throws Exception {
+        for (int i = 0; i < FILES; ++i) {
+            File dir = new File(resourceDir, "dir-" + (i / (FILES_PER_DIR * FILES_PER_DIR)) + "/dir-"
+                + (i / FILES_PER_DIR));
+            if (i % FILES_PER_DIR == 0) {
+                dir.mkdirs();
+            }
+            createRandomFile(dir, "file-" + i + ".txt", 512 + (i % 8) * 1024);
+        }
+
+        long sequential = detect("sequential", new FileDigester(1, null));
+
+        FileDigester digester = new FileDigester(THREADS, new DigestCache(new File(basedir(), "drift-digests.dat")));
+        try {
+            long cold = detect("parallel-cold", digester);
+            long warm = detect("parallel-warm", digester);
+
+            System.out.println(FILES + " files: sequential=" + sequential + "ms; " + THREADS
+                + " threads with empty digest cache=" + cold + "ms, with warm digest cache=" + warm + "ms");
+        } finally {
+            digester.shutdown();
+        }
+    }
+
+    private long detect(String definitionName, FileDigester digester) throws Exception {
+        DriftClientTestStub driftClient = new DriftClientTestStub();
+        driftClient.setBaseDir(resourceDir);
+        ScheduleQueue scheduleQueue = new ScheduleQueueImpl();
+        scheduleQueue.addSchedule(new DriftDetectionSchedule(resourceId(), driftDefinition(definitionName,
+            resourceDir.getAbsolutePath())));
+
+        DriftDetector detector = new DriftDetector();
+        detector.setDriftClient(driftClient);
+        detector.setChangeSetManager(changeSetMgr);
+        detector.setScheduleQueue(scheduleQueue);
+        detector.setFileDigester(digester);
+
+        long start = System.currentTimeMillis();
+        detector.run();
+        long time = System.currentTimeMillis() - start;
+
+        int count = 0;
+        ChangeSetReader reader = changeSetMgr.getChangeSetReader(changeSet(definitionName, COVERAGE));
+        try {
+            for (FileEntry entry : reader) {
+                ++count;
+            }
+        } finally {
+            reader.close();
+        }
+        assert count == FILES : "expected " + FILES + " files in the " + definitionName + " coverage change set but "
+            + "found " + count;
+        return time;
+    }
+}
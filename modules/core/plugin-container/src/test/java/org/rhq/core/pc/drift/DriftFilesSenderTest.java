@@ -28,8 +28,10 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -37,6 +39,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.rhq.common.drift.ChangeSetWriter;
+import org.rhq.common.drift.ContentChunker;
+import org.rhq.common.drift.ContentChunker.Chunk;
 import org.rhq.common.drift.Headers;
 import org.rhq.core.domain.drift.DriftChangeSetCategory;
 import org.rhq.core.domain.drift.DriftFile;
@@ -213,6 +217,85 @@ public class DriftFilesSenderTest extends DriftTest {
         assertContentFileExists(changeSetDir(driftDefName));
     }
 
+    @Test
+    public void sendLargeFileInChunks() throws Exception {
+        String driftDefName = "send-chunks-test";
+        File serverJar = createRandomFile(resourceDir, "server.jar", 2 * 1024 * 1024);
+        String serverJarHash = sha256(serverJar);
+        List<Chunk> chunks = new ContentChunker().chunk(serverJar);
+
+        File changeSetDir = changeSetDir(driftDefName);
+        Headers headers = createHeaders(driftDefName, COVERAGE);
+
+        ChangeSetWriter writer = changeSetMgr.getChangeSetWriter(resourceId(), headers);
+        writer.write(addedFileEntry("server.jar", serverJarHash, serverJar.lastModified(), serverJar.length()));
+        writer.close();
+
+        driftClient.setStoredChunks(new HashSet<String>());
+        sender.setDriftFiles(driftFiles(serverJarHash));
+        sender.setHeaders(headers);
+        sender.run();
+
+        List<String> expected = new ArrayList<String>();
+        expected.add(serverJarHash + ContentChunker.MANIFEST_SUFFIX);
+        for (Chunk chunk : chunks) {
+            expected.add(chunk.getHash() + ContentChunker.CHUNK_SUFFIX);
+        }
+
+        assertContentFileExists(changeSetDir);
+        assertContentFileMatches(changeSetDir, expected.toArray(new String[expected.size()]));
+    }
+
+    @Test
+    public void doNotSendChunksThatServerHas() throws Exception {
+        String driftDefName = "stored-chunks-test";
+        File serverJar = createRandomFile(resourceDir, "server.jar", 2 * 1024 * 1024);
+        String serverJarHash = sha256(serverJar);
+        List<Chunk> chunks = new ContentChunker().chunk(serverJar);
+        Chunk lastChunk = chunks.get(chunks.size() - 1);
+
+        File changeSetDir = changeSetDir(driftDefName);
+        Headers headers = createHeaders(driftDefName, COVERAGE);
+
+        ChangeSetWriter writer = changeSetMgr.getChangeSetWriter(resourceId(), headers);
+        writer.write(addedFileEntry("server.jar", serverJarHash, serverJar.lastModified(), serverJar.length()));
+        writer.close();
+
+        Set<String> storedChunks = new HashSet<String>();
+        for (Chunk chunk : chunks.subList(0, chunks.size() - 1)) {
+            storedChunks.add(chunk.getHash());
+        }
+        driftClient.setStoredChunks(storedChunks);
+        sender.setDriftFiles(driftFiles(serverJarHash));
+        sender.setHeaders(headers);
+        sender.run();
+
+        assertContentFileExists(changeSetDir);
+        assertContentFileMatches(changeSetDir, serverJarHash + ContentChunker.MANIFEST_SUFFIX, lastChunk.getHash()
+            + ContentChunker.CHUNK_SUFFIX);
+    }
+
+    @Test
+    public void sendLargeFileWholeWhenServerDoesNotStoreChunks() throws Exception {
+        String driftDefName = "whole-large-file-test";
+        File serverJar = createRandomFile(resourceDir, "server.jar", 2 * 1024 * 1024);
+        String serverJarHash = sha256(serverJar);
+
+        File changeSetDir = changeSetDir(driftDefName);
+        Headers headers = createHeaders(driftDefName, COVERAGE);
+
+        ChangeSetWriter writer = changeSetMgr.getChangeSetWriter(resourceId(), headers);
+        writer.write(addedFileEntry("server.jar", serverJarHash, serverJar.lastModified(), serverJar.length()));
+        writer.close();
+
+        sender.setDriftFiles(driftFiles(serverJarHash));
+        sender.setHeaders(headers);
+        sender.run();
+
+        assertContentFileExists(changeSetDir);
+        assertContentFileMatches(changeSetDir, serverJarHash);
+    }
+
     void assertContentFileExists(File changeSetDir) {
         File[] files = getContentFiles(changeSetDir);
         assertEquals(files.length, 1, "Expected to find a single content zip file but found " + Arrays.toString(files));
@@ -347,6 +347,11 @@ public class DriftManagerTest extends DriftTest {
             }
         }
 
+        @Override
+        public Set<String> findMissingDriftFileChunks(Set<String> chunkHashes) {
+            return null;
+        }
+
         @Override
         public void repeatChangeSet(int resourceId, String driftDefName, int version) {
         }
@@ -0,0 +1,142 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.pc.drift;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+public class FileDigesterTest extends DriftTest {
+
+    @Test
+    public void digestLargeFileThroughMappedRegions() throws Exception {
+        File file = createRandomFile(resourceDir, "large.jar", (int) FileDigester.MAPPED_READ_THRESHOLD + 1024);
+        FileDigester digester = new FileDigester(1, null);
+
+        assertEquals(digester.digest(file), sha256(file), "The digest of a large file is wrong");
+    }
+
+    @Test
+    public void readFileAsStreamWhenMappedReadFaults() throws Exception {
+        File file = createRandomFile(resourceDir, "truncated.jar", (int) FileDigester.MAPPED_READ_THRESHOLD + 1024);
+        FileDigester digester = new FileDigester(1, null) {
+            @Override
+            String calcMappedDigest(File file) {
+                // what the JVM throws when a mapped file is truncated under the reader
+                throw new InternalError("a fault occurred in a recent unsafe memory access operation");
+            }
+        };
+
+        assertEquals(digester.digest(file), sha256(file), "The file should have been read as a stream");
+    }
+
+    @Test
+    public void digestFilesInParallel() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 500; ++i) {
+            files.add(createRandomFile(resourceDir, "file-" + i + ".txt"));
+        }
+        FileDigester digester = new FileDigester(4, null);
+        try {
+            List<Future<String>> digests = new ArrayList<Future<String>>();
+            for (File file : files) {
+                digests.add(digester.submit(file));
+            }
+            for (int i = 0; i < files.size(); ++i) {
+                assertEquals(FileDigester.get(digests.get(i)), sha256(files.get(i)), "The digest of "
+                    + files.get(i).getName() + " is wrong");
+            }
+        } finally {
+            digester.shutdown();
+        }
+    }
+
+    @Test
+    public void useCachedDigestUntilFileIsModified() throws Exception {
+        File file = createRandomFile(resourceDir, "server.conf");
+        String originalSHA = sha256(file);
+        long lastModified = file.lastModified() - 60000L;
+        file.setLastModified(lastModified);
+        FileDigester digester = new FileDigester(1, new DigestCache(null));
+
+        assertEquals(digester.digest(file), originalSHA);
+
+        // overwrite the contents without changing the size or the last modification time
+        overwrite(file);
+        file.setLastModified(lastModified);
+        assertEquals(digester.digest(file), originalSHA, "The cached digest should be used for an unmodified file");
+
+        file.setLastModified(lastModified - 10000L);
+        assertEquals(digester.digest(file), sha256(file), "The file should be hashed again after it was modified");
+    }
+
+    @Test
+    public void doNotCacheDigestOfRecentlyModifiedFile() throws Exception {
+        File file = createRandomFile(resourceDir, "server.conf");
+        long lastModified = System.currentTimeMillis();
+        file.setLastModified(lastModified);
+        FileDigester digester = new FileDigester(1, new DigestCache(null));
+
+        digester.digest(file);
+
+        // written again within the granularity of the modification time
+        overwrite(file);
+        file.setLastModified(lastModified);
+        assertEquals(digester.digest(file), sha256(file),
+            "The digest of a file modified while it was read should not have been cached");
+    }
+
+    @Test
+    public void loadSavedDigests() throws Exception {
+        File file = createRandomFile(resourceDir, "server.conf");
+        String originalSHA = sha256(file);
+        long lastModified = file.lastModified() - 60000L;
+        file.setLastModified(lastModified);
+        File cacheFile = new File(resourceDir.getParentFile(), "loadSavedDigests.dat");
+
+        DigestCache cache = new DigestCache(cacheFile);
+        new FileDigester(1, cache).digest(file);
+        cache.save();
+
+        overwrite(file);
+        file.setLastModified(lastModified);
+        DigestCache loadedCache = new DigestCache(cacheFile);
+        loadedCache.load();
+
+        assertEquals(loadedCache.size(), 1, "The saved digest should have been loaded");
+        assertEquals(new FileDigester(1, loadedCache).digest(file), originalSHA,
+            "The saved digest should be used for an unmodified file");
+    }
+
+    private void overwrite(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(0);
+            raf.write(~raf.read());
+        } finally {
+            raf.close();
+        }
+    }
+}
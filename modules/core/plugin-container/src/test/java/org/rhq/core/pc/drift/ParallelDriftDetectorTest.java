@@ -0,0 +1,43 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.core.pc.drift;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+/**
+ * Runs the {@link DriftDetectorTest} tests with files hashed on several threads.
+ */
+public class ParallelDriftDetectorTest extends DriftDetectorTest {
+
+    private FileDigester digester;
+
+    @BeforeMethod
+    @Override
+    public void initDetector() {
+        super.initDetector();
+        digester = new FileDigester(4, null);
+        detector.setFileDigester(digester);
+    }
+
+    @AfterMethod
+    public void shutdownDigester() {
+        digester.shutdown();
+    }
+}
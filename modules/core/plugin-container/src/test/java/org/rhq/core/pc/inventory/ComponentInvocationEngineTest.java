@@ -0,0 +1,280 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@link ComponentInvocationEngine}.
+ */
+@Test
+public class ComponentInvocationEngineTest {
+
+    private ComponentInvocationEngine engine;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        System.setProperty("rhq.agent.plugins.facet-invocation.threads-per-plugin", "2");
+        System.setProperty("rhq.agent.plugins.facet-invocation.queue-size-per-plugin", "1");
+        engine = new ComponentInvocationEngine("ComponentInvocationEngineTest");
+    }
+
+    @AfterMethod
+    public void afterMethod() {
+        engine.shutdown();
+        System.clearProperty("rhq.agent.plugins.facet-invocation.threads-per-plugin");
+        System.clearProperty("rhq.agent.plugins.facet-invocation.queue-size-per-plugin");
+    }
+
+    public void testInvocationWithoutTimeoutRunsOnCallingThread() throws Exception {
+        final Thread caller = Thread.currentThread();
+        Thread invoker = engine.invoke("test", "TestFacet", true, 0, new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+        assert invoker == caller : "expected the call to run on the calling thread but it ran on " + invoker;
+        assert engine.getBulkheadStatistics().isEmpty() : "no thread pool should have been created";
+    }
+
+    public void testInvocationWithTimeoutRunsOnPluginThreadPool() throws Exception {
+        Thread invoker = engine.invoke("test", "TestFacet", true, 1000, new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        });
+        assert invoker != Thread.currentThread();
+        assert invoker.getName().startsWith("ComponentInvocationEngineTest.daemon.test") : invoker.getName();
+        assert invoker.isDaemon();
+    }
+
+    public void testTimeoutInterruptsInvocation() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        long start = System.nanoTime();
+        try {
+            engine.invoke("test", "TestFacet", true, 50, new Callable<Object>() {
+                public Object call() {
+                    try {
+                        Thread.sleep(10000L);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return null;
+                }
+            });
+            assert false : "the invocation should have timed out";
+        } catch (TimeoutException e) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert elapsed >= 50 && elapsed < 5000 : "timed out after " + elapsed + " ms";
+        assert interrupted.await(5, TimeUnit.SECONDS) : "the invocation thread was not interrupted";
+        assert getStatistics("TestFacet").getTimeouts() == 1;
+    }
+
+    public void testTimeoutStartsWhenInvocationRuns() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Callable<Object> blocking = new Callable<Object>() {
+            public Object call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        };
+        // occupy both threads, so the next invocation waits in the queue for longer than its timeout
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; ++i) {
+            callers[i] = new Thread(invocation("busy", blocking));
+            callers[i].start();
+        }
+        assert started.await(5, TimeUnit.SECONDS);
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(500L);
+                } catch (InterruptedException e) {
+                }
+                release.countDown();
+            }
+        }.start();
+
+        Object result = engine.invoke("busy", "TestFacet", true, 200, new Callable<Object>() {
+            public Object call() {
+                return "ok";
+            }
+        });
+        assert "ok".equals(result) : "time spent in the queue should not count against the timeout";
+        assert getStatistics("TestFacet").getTimeouts() == 0;
+
+        for (Thread caller : callers) {
+            caller.join(5000L);
+        }
+    }
+
+    public void testQueueWaitIsBounded() throws Exception {
+        engine.shutdown();
+        System.setProperty("rhq.agent.plugins.facet-invocation.max-queue-wait", "100");
+        try {
+            engine = new ComponentInvocationEngine("ComponentInvocationEngineTest");
+        } finally {
+            System.clearProperty("rhq.agent.plugins.facet-invocation.max-queue-wait");
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Callable<Object> blocking = new Callable<Object>() {
+            public Object call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        };
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; ++i) {
+            callers[i] = new Thread(invocation("stuck", blocking));
+            callers[i].start();
+        }
+        assert started.await(5, TimeUnit.SECONDS);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        try {
+            engine.invoke("stuck", "TestFacet", true, 100, new Callable<Object>() {
+                public Object call() {
+                    ran.countDown();
+                    return null;
+                }
+            });
+            assert false : "the invocation should have timed out in the queue";
+        } catch (TimeoutException e) {
+            // expected
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert elapsed >= 200 && elapsed < 5000 : "timed out after " + elapsed + " ms";
+        assert getQueueDepth("ComponentInvocationEngineTest.daemon.stuck") == 0 : "the invocation should be dequeued";
+        assert getStatistics("TestFacet").getTimeouts() == 1;
+
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join(5000L);
+        }
+        assert !ran.await(100, TimeUnit.MILLISECONDS) : "the expired invocation should not have run";
+    }
+
+    public void testFailureIsPropagated() throws Exception {
+        try {
+            engine.invoke("test", "TestFacet", true, 1000, new Callable<Object>() {
+                public Object call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            assert false : "the failure should have been propagated";
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof IllegalStateException : e.getCause();
+        }
+        assert getStatistics("TestFacet").getFailures() == 1;
+    }
+
+    public void testExhaustedPluginIsRejectedWithoutAffectingOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Callable<Object> blocking = new Callable<Object>() {
+            public Object call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        };
+        // two threads and one queue slot
+        Thread[] callers = new Thread[3];
+        for (int i = 0; i < callers.length; ++i) {
+            callers[i] = new Thread(invocation("hung", blocking));
+            callers[i].start();
+        }
+        assert started.await(5, TimeUnit.SECONDS);
+        while (getQueueDepth("ComponentInvocationEngineTest.daemon.hung") < 1) {
+            Thread.sleep(10L);
+        }
+
+        try {
+            engine.invoke("hung", "TestFacet", true, 1000, blocking);
+            assert false : "the invocation should have been rejected";
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assert getStatistics("TestFacet").getRejections() == 1;
+
+        // another plugin is not affected
+        Object result = engine.invoke("healthy", "TestFacet", true, 1000, new Callable<Object>() {
+            public Object call() {
+                return "ok";
+            }
+        });
+        assert "ok".equals(result);
+
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join(5000L);
+        }
+    }
+
+    private Runnable invocation(final String pluginName, final Callable<Object> call) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    engine.invoke(pluginName, "TestFacet", true, 10000, call);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private int getQueueDepth(String name) {
+        for (ComponentInvocationEngine.BulkheadStatistics stats : engine.getBulkheadStatistics()) {
+            if (stats.getName().equals(name)) {
+                return stats.getQueueDepth();
+            }
+        }
+        return 0;
+    }
+
+    private ComponentInvocationEngine.FacetStatistics getStatistics(String facetName) {
+        for (ComponentInvocationEngine.FacetStatistics stats : engine.getFacetStatistics()) {
+            if (stats.getFacetName().equals(facetName)) {
+                return stats;
+            }
+        }
+        throw new AssertionError("no statistics for " + facetName);
+    }
+}
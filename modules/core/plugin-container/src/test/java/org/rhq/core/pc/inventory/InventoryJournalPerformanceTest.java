@@ -0,0 +1,178 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+
+/**
+ * Compares persisting and loading an inventory of 10k and 100k resources with the Java serialization inventory.dat
+ * used to be written with and with the {@link InventoryJournal}: the first store, a store after 1% of the resources
+ * changed, and reading the inventory back at startup. Connecting the resource types is left out of both.
+ */
+@Test(groups = "PERF")
+public class InventoryJournalPerformanceTest {
+
+    private static final int[] SIZES = new int[] { 10000, 100000 };
+    private static final int SERVICES_PER_SERVER = 50;
+    private static final int CHANGED_PERCENT = 1;
+
+    private static final ResourceType PLATFORM_TYPE = new ResourceType("Linux", "Platforms",
+        ResourceCategory.PLATFORM, null);
+    private static final ResourceType SERVER_TYPE = new ResourceType("Server", "Test", ResourceCategory.SERVER, null);
+    private static final ResourceType SERVICE_TYPE = new ResourceType("Service", "Test", ResourceCategory.SERVICE,
+        SERVER_TYPE);
+
+    @SuppressWarnings("unchecked")
+    public void testPersistAndStartupTimes() throws Exception {
+        File dir = new File("target/InventoryJournalPerformanceTest");
+        dir.mkdirs();
+        File serialized = new File(dir, "inventory.ser");
+        File journaled = new File(dir, "inventory.dat");
+
+        for (int size : SIZES) {
+            serialized.delete();
+            journaled.delete();
+
+            Map<String, ResourceContainer> containers = createInventory(size);
+            Resource platform = containers.get("platform").getResource();
+
+            long start = System.currentTimeMillis();
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(serialized)));
+            try {
+                oos.writeObject(platform);
+                oos.writeObject(containers);
+            } finally {
+                oos.close();
+            }
+            long serializedStore = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(serialized)));
+            try {
+                ois.readObject();
+                assert ((Map<String, ResourceContainer>) ois.readObject()).size() == containers.size();
+            } finally {
+                ois.close();
+            }
+            long serializedLoad = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            InventoryJournal journal = new InventoryJournal(journaled);
+            journal.store(platform, containers);
+            long journalFirstStore = System.currentTimeMillis() - start;
+
+            List<ResourceContainer> all = new ArrayList<ResourceContainer>(containers.values());
+            for (int i = 0; i < all.size(); i += (100 / CHANGED_PERCENT)) {
+                all.get(i).getResource().setMtime(System.currentTimeMillis());
+            }
+            start = System.currentTimeMillis();
+            int written = journal.store(platform, containers);
+            long journalDeltaStore = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            journal = new InventoryJournal(journaled);
+            assert journal.load().size() == containers.size();
+            long journalLoad = System.currentTimeMillis() - start;
+
+            System.out.println(size + " resources: serialized store=" + serializedStore + "ms ("
+                + serialized.length() + " bytes), load=" + serializedLoad + "ms; journal first store="
+                + journalFirstStore + "ms, store of " + written + " changes=" + journalDeltaStore + "ms ("
+                + journaled.length() + " bytes), load=" + journalLoad + "ms");
+        }
+
+        serialized.delete();
+        journaled.delete();
+    }
+
+    private static Map<String, ResourceContainer> createInventory(int size) {
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>(size * 2);
+        Resource platform = createResource("platform", 1, PLATFORM_TYPE, null);
+        containers.put(platform.getUuid(), new ResourceContainer(platform, null));
+
+        Resource server = null;
+        for (int i = 1; i < size; i++) {
+            Resource resource;
+            if ((i % (SERVICES_PER_SERVER + 1)) == 1) {
+                server = createResource("resource-" + i, 1 + i, SERVER_TYPE, platform);
+                resource = server;
+            } else {
+                resource = createResource("resource-" + i, 1 + i, SERVICE_TYPE, server);
+            }
+
+            ResourceContainer container = new ResourceContainer(resource, null);
+            container.setSynchronizationState(ResourceContainer.SynchronizationState.SYNCHRONIZED);
+            Set<MeasurementScheduleRequest> schedules = new HashSet<MeasurementScheduleRequest>();
+            for (int j = 0; j < 10; j++) {
+                schedules.add(new MeasurementScheduleRequest((i * 10) + j, "metric" + j, 60000L, true,
+                    DataType.MEASUREMENT));
+            }
+            container.setMeasurementSchedule(schedules);
+            containers.put(resource.getUuid(), container);
+        }
+        return containers;
+    }
+
+    private static Resource createResource(String uuid, int id, ResourceType type, Resource parent) {
+        Set<Resource> childResources = Collections.newSetFromMap(new ConcurrentHashMap<Resource, Boolean>());
+        Resource resource = new Resource(childResources);
+        resource.setUuid(uuid);
+        resource.setId(id);
+        resource.setResourceKey(uuid);
+        resource.setName(uuid);
+        resource.setResourceType(type);
+        resource.setInventoryStatus(InventoryStatus.COMMITTED);
+        Configuration pluginConfiguration = new Configuration();
+        pluginConfiguration.put(new PropertySimple("host", "host-" + id));
+        pluginConfiguration.put(new PropertySimple("port", id));
+        resource.setPluginConfiguration(pluginConfiguration);
+        if (parent != null) {
+            parent.addChildResource(resource);
+        }
+        return resource;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.inventory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.configuration.Configuration;
+import org.rhq.core.domain.configuration.PropertyList;
+import org.rhq.core.domain.configuration.PropertyMap;
+import org.rhq.core.domain.configuration.PropertySimple;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+
+@Test
+public class InventoryJournalTest {
+
+    private static final ResourceType PLATFORM_TYPE = new ResourceType("Linux", "Platforms",
+        ResourceCategory.PLATFORM, null);
+    private static final ResourceType SERVER_TYPE = new ResourceType("Server", "Test", ResourceCategory.SERVER, null);
+
+    private File file;
+
+    @BeforeMethod
+    public void beforeMethod() {
+        File dir = new File("target/InventoryJournalTest");
+        dir.mkdirs();
+        file = new File(dir, "inventory.dat");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void afterMethod() {
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        Map<String, ResourceContainer> containers = createInventory(10);
+        Resource platform = containers.get("platform").getResource();
+
+        InventoryJournal journal = new InventoryJournal(file);
+        assert journal.store(platform, containers) == 11;
+        assert InventoryJournal.isJournal(file);
+
+        journal = new InventoryJournal(file);
+        assert journal.size() == 11 : journal.size();
+        assert "platform".equals(journal.getPlatformUuid());
+
+        Map<String, ResourceContainer> loaded = journal.load();
+        assert loaded.size() == 11 : loaded.size();
+        Resource loadedPlatform = loaded.get("platform").getResource();
+        assert loadedPlatform.getChildResources().size() == 10;
+        assert loadedPlatform.getResourceType().getName().equals("Linux");
+
+        ResourceContainer container = loaded.get("server-3");
+        Resource resource = container.getResource();
+        assert resource.getId() == 103;
+        assert resource.getParentResource() == loadedPlatform;
+        assert resource.getInventoryStatus() == InventoryStatus.COMMITTED;
+        assert resource.getAncestry().equals(containers.get("server-3").getResource().getAncestry());
+        assert resource.getPluginConfiguration().getSimpleValue("host", null).equals("host-3");
+        assert resource.getPluginConfiguration().getList("ports").getList().size() == 2;
+        assert resource.getPluginConfiguration().getMap("credentials").getSimpleValue("user", null).equals("rhq");
+        assert container.getSynchronizationState() == ResourceContainer.SynchronizationState.SYNCHRONIZED;
+        assert container.getMeasurementSchedule().equals(containers.get("server-3").getMeasurementSchedule());
+        assert container.getAvailabilitySchedule().getScheduleId() == 1003;
+    }
+
+    public void testStoreAppendsOnlyChanges() throws Exception {
+        Map<String, ResourceContainer> containers = createInventory(10);
+        Resource platform = containers.get("platform").getResource();
+        new InventoryJournal(file).store(platform, containers);
+
+        // a reopened journal must recognize that nothing changed, also for containers read back from it
+        InventoryJournal journal = new InventoryJournal(file);
+        Map<String, ResourceContainer> loaded = journal.load();
+        long length = file.length();
+        assert journal.store(loaded.get("platform").getResource(), loaded) == 0;
+        assert file.length() == length;
+
+        loaded.get("server-1").getResource().setName("renamed");
+        Resource removed = loaded.remove("server-2").getResource();
+        loaded.get("platform").getResource().getChildResources().remove(removed);
+        assert journal.store(loaded.get("platform").getResource(), loaded) == 2;
+
+        journal = new InventoryJournal(file);
+        assert journal.size() == 10 : journal.size();
+        assert journal.load(101).getResource().getName().equals("renamed");
+        assert journal.load(102) == null;
+        assert journal.load("server-2") == null;
+        assert journal.load().get("platform").getResource().getChildResources().size() == 9;
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        Map<String, ResourceContainer> containers = createInventory(3);
+        Resource platform = containers.get("platform").getResource();
+        new InventoryJournal(file).store(platform, containers);
+        long length = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(length);
+            raf.writeInt(1000);
+            raf.writeByte(1);
+            raf.write(new byte[10]);
+        } finally {
+            raf.close();
+        }
+
+        InventoryJournal journal = new InventoryJournal(file);
+        assert file.length() == length : "the torn record should have been cut off";
+        assert journal.size() == 4;
+
+        containers.get("server-0").getResource().setName("after crash");
+        assert journal.store(platform, containers) == 1;
+        assert new InventoryJournal(file).load(100).getResource().getName().equals("after crash");
+    }
+
+    public void testCompaction() throws Exception {
+        Map<String, ResourceContainer> containers = createInventory(2000);
+        Resource platform = containers.get("platform").getResource();
+        InventoryJournal journal = new InventoryJournal(file);
+        journal.store(platform, containers);
+        long length = file.length();
+
+        for (int round = 1; round <= 3; round++) {
+            for (ResourceContainer container : containers.values()) {
+                container.getResource().setMtime(round);
+            }
+            journal.store(platform, containers);
+            assert file.length() < (2 * length) : "superseded records should have been compacted away";
+        }
+
+        Map<String, ResourceContainer> loaded = new InventoryJournal(file).load();
+        assert loaded.size() == 2001;
+        assert loaded.get("server-7").getResource().getMtime() == 3;
+    }
+
+    public void testLegacyFileIsReplaced() throws Exception {
+        Map<String, ResourceContainer> containers = createInventory(3);
+        Resource platform = containers.get("platform").getResource();
+
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            oos.writeObject(platform);
+            oos.writeObject(containers);
+        } finally {
+            oos.close();
+        }
+        assert !InventoryJournal.isJournal(file);
+
+        InventoryJournal journal = new InventoryJournal(file);
+        assert journal.size() == 0;
+        assert journal.store(platform, containers) == 4;
+        assert InventoryJournal.isJournal(file);
+        assert new InventoryJournal(file).load().size() == 4;
+    }
+
+    private static Map<String, ResourceContainer> createInventory(int servers) {
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>();
+        Resource platform = createResource("platform", 1, PLATFORM_TYPE);
+        containers.put(platform.getUuid(), new ResourceContainer(platform, null));
+
+        for (int i = 0; i < servers; i++) {
+            Resource server = createResource("server-" + i, 100 + i, SERVER_TYPE);
+            Configuration pluginConfiguration = new Configuration();
+            pluginConfiguration.put(new PropertySimple("host", "host-" + i));
+            pluginConfiguration.put(new PropertyList("ports", new PropertySimple("port", 8080), new PropertySimple(
+                "port", 8443)));
+            pluginConfiguration.put(new PropertyMap("credentials", new PropertySimple("user", "rhq"),
+                new PropertySimple("password", null)));
+            server.setPluginConfiguration(pluginConfiguration);
+            platform.addChildResource(server);
+
+            ResourceContainer container = new ResourceContainer(server, null);
+            container.setSynchronizationState(ResourceContainer.SynchronizationState.SYNCHRONIZED);
+            Set<MeasurementScheduleRequest> schedules = new HashSet<MeasurementScheduleRequest>();
+            for (int j = 0; j < 5; j++) {
+                schedules.add(new MeasurementScheduleRequest((i * 10) + j, "metric" + j, 60000L, true,
+                    DataType.MEASUREMENT));
+            }
+            container.setMeasurementSchedule(schedules);
+            container.setAvailabilitySchedule(new MeasurementScheduleRequest(1000 + i, "AvailabilityType", 60000L,
+                true, DataType.AVAILABILITY));
+            containers.put(server.getUuid(), container);
+        }
+        return containers;
+    }
+
+    private static Resource createResource(String uuid, int id, ResourceType type) {
+        Set<Resource> childResources = Collections.newSetFromMap(new ConcurrentHashMap<Resource, Boolean>());
+        Resource resource = new Resource(childResources);
+        resource.setUuid(uuid);
+        resource.setId(id);
+        resource.setResourceKey(uuid);
+        resource.setName(uuid);
+        resource.setResourceType(type);
+        resource.setInventoryStatus(InventoryStatus.COMMITTED);
+        return resource;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.measurement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+import org.rhq.core.pc.inventory.InventoryManager;
+import org.rhq.core.pc.inventory.ResourceContainer;
+import org.rhq.core.pluginapi.inventory.ResourceComponent;
+import org.rhq.core.pluginapi.inventory.ResourceContext;
+import org.rhq.core.pluginapi.measurement.BatchMeasurementFacet;
+import org.rhq.core.pluginapi.measurement.MeasurementFacet;
+
+/**
+ * Tests that the measurements of sibling resources are collected through their parent's batch facet if it supports
+ * their type, and one resource at a time otherwise.
+ */
+@Test
+public class MeasurementCollectorRunnerTest {
+
+    private static final ResourceType PARENT_TYPE = new ResourceType("parent", "test", ResourceCategory.SERVER, null);
+    private static final ResourceType BATCHED_TYPE = new ResourceType("batched", "test", ResourceCategory.SERVICE,
+        PARENT_TYPE);
+    private static final ResourceType OTHER_TYPE = new ResourceType("other", "test", ResourceCategory.SERVICE,
+        PARENT_TYPE);
+
+    private Map<Integer, ResourceContainer> containers;
+    private BatchParentComponent parent;
+    private MeasurementManager measurementManager;
+    private MeasurementCollectorRunner runner;
+
+    @BeforeMethod
+    public void setUpInventory() {
+        containers = new HashMap<Integer, ResourceContainer>();
+        parent = new BatchParentComponent();
+        Resource parentResource = addResource(1, PARENT_TYPE, null, parent);
+        addResource(2, BATCHED_TYPE, parentResource, new ChildComponent());
+        addResource(3, BATCHED_TYPE, parentResource, new ChildComponent());
+        addResource(4, OTHER_TYPE, parentResource, new ChildComponent());
+
+        measurementManager = new MeasurementManager();
+        final InventoryManager inventoryManager = new InventoryManager() {
+            @Override
+            public ResourceContainer getResourceContainer(Integer resourceId) {
+                return containers.get(resourceId);
+            }
+
+            @Override
+            public ResourceContainer getResourceContainer(Resource resource) {
+                return containers.get(resource.getId());
+            }
+        };
+
+        runner = new MeasurementCollectorRunner(measurementManager) {
+            @Override
+            InventoryManager getInventoryManager() {
+                return inventoryManager;
+            }
+
+            @Override
+            <T> T getFacet(ResourceContainer container, Class<T> facetInterface) {
+                // no plugin container is running to hand out proxies
+                return facetInterface.cast(container.getResourceComponent());
+            }
+        };
+    }
+
+    public void testCoalesceGroupsOnlySupportedSiblings() {
+        for (int i = 0; i < 3; i++) {
+            List<List<Set<ScheduledMeasurementInfo>>> batches = runner.coalesce(due(2, 3, 4));
+
+            assert batches.size() == 2 : batches;
+            assert batches.get(0).size() == 1 : "unsupported type should be collected on its own: " + batches;
+            assert resourceIds(batches.get(0)).equals(Arrays.asList(4)) : batches;
+            assert resourceIds(batches.get(1)).equals(Arrays.asList(2, 3)) : batches;
+        }
+
+        assert parent.supportQuestions == 2 : "each child type should be asked about once: " + parent.supportQuestions;
+    }
+
+    public void testBatchedAndIndividualCollection() {
+        for (List<Set<ScheduledMeasurementInfo>> batch : runner.coalesce(due(2, 3, 4))) {
+            runner.collectBatch(batch);
+        }
+
+        assert parent.batchCalls == 1 : parent.batchCalls;
+        assert parent.collectedKeys.equals(new HashSet<String>(Arrays.asList("key-2", "key-3"))) : parent.collectedKeys;
+        assert child(2).calls == 0 : "batched child should not have been collected on its own";
+        assert child(3).calls == 0 : "batched child should not have been collected on its own";
+        assert child(4).calls == 1 : "unsupported child should have been collected on its own";
+
+        Map<Integer, Double> values = values(measurementManager.getActiveReport());
+        assert values.size() == 3 : values;
+        assert values.get(200).equals(BatchParentComponent.VALUE) : values;
+        assert values.get(300).equals(BatchParentComponent.VALUE) : values;
+        assert values.get(400).equals(ChildComponent.VALUE) : values;
+
+        assert measurementManager.getBatchCollections() == 1;
+        assert measurementManager.getBatchCollectionCallsSaved() == 1;
+    }
+
+    public void testFailedBatchFallsBackToIndividualCollection() {
+        parent.fail = true;
+
+        runner.collectBatch(due(2, 3));
+
+        assert parent.batchCalls == 1 : parent.batchCalls;
+        assert child(2).calls == 1 && child(3).calls == 1 : "children should have been collected one at a time";
+
+        Map<Integer, Double> values = values(measurementManager.getActiveReport());
+        assert values.size() == 2 : "partial batch data should have been discarded: " + values;
+        assert values.get(200).equals(ChildComponent.VALUE) : values;
+        assert values.get(300).equals(ChildComponent.VALUE) : values;
+        assert measurementManager.getFailedBatchCollections() == 1;
+    }
+
+    public void testRejectedBatchIsSkipped() {
+        parent.reject = true;
+
+        runner.collectBatch(due(2, 3));
+
+        assert parent.batchCalls == 1 : parent.batchCalls;
+        assert child(2).calls == 0 && child(3).calls == 0 : "children should not be collected one at a time";
+        assert measurementManager.getActiveReport().getDataCount() == 0;
+        assert measurementManager.getSkippedCollections() == 2 : measurementManager.getSkippedCollections();
+        assert measurementManager.getFailedBatchCollections() == 0;
+    }
+
+    public void testChildDownIsNotCollected() {
+        containers.get(3).updateAvailability(AvailabilityType.DOWN);
+
+        runner.collectBatch(due(2, 3));
+
+        // a single collectable sibling is not worth a batch call
+        assert parent.batchCalls == 0 : parent.batchCalls;
+        assert child(2).calls == 1;
+        assert child(3).calls == 0 : "a resource that is down should not be collected";
+    }
+
+    private Resource addResource(int id, ResourceType type, Resource parentResource, ResourceComponent<?> component) {
+        Resource resource = new Resource(id);
+        resource.setResourceKey("key-" + id);
+        resource.setResourceType(type);
+        resource.setParentResource(parentResource);
+
+        ResourceContainer container = new ResourceContainer(resource, getClass().getClassLoader());
+        container.setResourceComponent(component);
+        container.setResourceComponentState(ResourceContainer.ResourceComponentState.STARTED);
+        container.updateAvailability(AvailabilityType.UP);
+        containers.put(id, container);
+
+        return resource;
+    }
+
+    private ChildComponent child(int resourceId) {
+        return (ChildComponent) containers.get(resourceId).getResourceComponent();
+    }
+
+    /**
+     * Returns one set of due measurements per resource, each holding a single measurement whose schedule id is the
+     * resource id times 100.
+     */
+    private static List<Set<ScheduledMeasurementInfo>> due(int... resourceIds) {
+        List<Set<ScheduledMeasurementInfo>> due = new ArrayList<Set<ScheduledMeasurementInfo>>();
+        for (int resourceId : resourceIds) {
+            MeasurementScheduleRequest request = new MeasurementScheduleRequest(resourceId * 100, "metric", 60000L,
+                true, DataType.MEASUREMENT);
+            ScheduledMeasurementInfo info = new ScheduledMeasurementInfo(request, resourceId);
+            info.setNextCollection(System.currentTimeMillis());
+            Set<ScheduledMeasurementInfo> requests = new HashSet<ScheduledMeasurementInfo>();
+            requests.add(info);
+            due.add(requests);
+        }
+        return due;
+    }
+
+    private static List<Integer> resourceIds(List<Set<ScheduledMeasurementInfo>> batch) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Set<ScheduledMeasurementInfo> requests : batch) {
+            ids.add(requests.iterator().next().getResourceId());
+        }
+        return ids;
+    }
+
+    private static Map<Integer, Double> values(MeasurementReport report) {
+        Map<Integer, Double> values = new HashMap<Integer, Double>();
+        for (MeasurementDataNumeric datum : report.getNumericData()) {
+            values.put(datum.getScheduleId(), datum.getValue());
+        }
+        return values;
+    }
+
+    private static class BatchParentComponent implements ResourceComponent<ResourceComponent<?>>,
+        BatchMeasurementFacet {
+        static final Double VALUE = Double.valueOf(1.0);
+
+        int supportQuestions;
+        int batchCalls;
+        boolean fail;
+        boolean reject;
+        Set<String> collectedKeys = new HashSet<String>();
+
+        public boolean isBatchCollectionSupported(ResourceType childResourceType) {
+            supportQuestions++;
+            return BATCHED_TYPE.equals(childResourceType);
+        }
+
+        public void getValues(MeasurementReport report, Map<String, Set<MeasurementScheduleRequest>> metrics)
+            throws Exception {
+            batchCalls++;
+            if (reject) {
+                // what the component proxy throws when the plugin's invocation threads are all busy
+                throw new RejectedExecutionException("thread pool exhausted");
+            }
+            for (Map.Entry<String, Set<MeasurementScheduleRequest>> entry : metrics.entrySet()) {
+                for (MeasurementScheduleRequest request : entry.getValue()) {
+                    report.addData(new MeasurementDataNumeric(request, VALUE));
+                }
+                if (fail) {
+                    throw new Exception("batch failed after collecting [" + entry.getKey() + "]");
+                }
+                collectedKeys.add(entry.getKey());
+            }
+        }
+
+        public void start(ResourceContext<ResourceComponent<?>> context) {
+        }
+
+        public void stop() {
+        }
+
+        public AvailabilityType getAvailability() {
+            return AvailabilityType.UP;
+        }
+    }
+
+    private static class ChildComponent implements ResourceComponent<BatchParentComponent>, MeasurementFacet {
+        static final Double VALUE = Double.valueOf(2.0);
+
+        int calls;
+
+        public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) {
+            calls++;
+            for (MeasurementScheduleRequest request : metrics) {
+                report.addData(new MeasurementDataNumeric(request, VALUE));
+            }
+        }
+
+        public void start(ResourceContext<BatchParentComponent> context) {
+        }
+
+        public void stop() {
+        }
+
+        public AvailabilityType getAvailability() {
+            return AvailabilityType.UP;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.core.pc.measurement;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+@Test
+public class MeasurementScheduleWheelTest {
+
+    private static final long START = 1000000000123L;
+
+    public void testDueSetsAreGroupedPerResource() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(START);
+        wheel.schedule(info(1, 10, 60000L, START + 5000L));
+        wheel.schedule(info(2, 10, 60000L, START + 5000L));
+        wheel.schedule(info(3, 20, 60000L, START + 5000L));
+        wheel.schedule(info(4, 20, 60000L, START + 9000L));
+
+        assert wheel.size() == 4 : wheel.size();
+        assert wheel.getNextCollectionTime() == START + 5000L;
+        assert wheel.advance(START + 4000L).isEmpty();
+
+        List<Set<ScheduledMeasurementInfo>> due = wheel.advance(START + 5000L);
+        assert due.size() == 2 : due;
+        for (Set<ScheduledMeasurementInfo> requests : due) {
+            assert requests.size() == 2 || requests.size() == 1 : requests;
+            int resourceId = requests.iterator().next().getResourceId();
+            for (ScheduledMeasurementInfo info : requests) {
+                assert info.getResourceId() == resourceId : requests;
+            }
+        }
+        assert wheel.getNextCollectionTime() == START + 9000L;
+    }
+
+    public void testRescheduleAndUnschedule() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(START);
+        ScheduledMeasurementInfo info = info(1, 10, 600000L, START);
+        wheel.schedule(info);
+
+        Set<ScheduledMeasurementInfo> requests = wheel.advance(START).get(0);
+        assert requests.contains(info);
+        assert wheel.getNextCollectionTime() == Long.MIN_VALUE : "handed out schedules are not in the wheel";
+        assert wheel.size() == 1 : "handed out schedules are still scheduled";
+
+        info.setNextCollection(info.getNextCollection() + info.getInterval());
+        assert wheel.reschedule(info);
+        assert wheel.advance(START + 599000L).isEmpty();
+        assert wheel.advance(START + 600000L).get(0).contains(info);
+
+        // a schedule that was replaced while being collected must not come back
+        ScheduledMeasurementInfo replacement = info(1, 10, 30000L, START + 630000L);
+        wheel.schedule(replacement);
+        assert !wheel.reschedule(info);
+        assert wheel.size() == 1 : wheel.size();
+        assert wheel.getNextCollectionTime() == START + 630000L;
+
+        Set<Integer> resourceIds = new HashSet<Integer>();
+        resourceIds.add(10);
+        wheel.unscheduleResources(resourceIds);
+        assert wheel.size() == 0 : wheel.size();
+        assert wheel.advance(START + 700000L).isEmpty();
+    }
+
+    public void testAgainstBruteForce() {
+        Random random = new Random(7L);
+        long now = START;
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(now);
+        Map<Integer, ScheduledMeasurementInfo> live = new HashMap<Integer, ScheduledMeasurementInfo>();
+
+        for (int i = 0; i < 5000; i++) {
+            // from 30 seconds up to a few days, to exercise every level of the wheel
+            long interval = (30 + random.nextInt(random.nextBoolean() ? 600 : 300000)) * 1000L;
+            ScheduledMeasurementInfo info = info(i, i % 100, interval, now + random.nextInt(3000000));
+            wheel.schedule(info);
+            live.put(i, info);
+        }
+
+        long end = now + (4 * 24 * 3600 * 1000L);
+        while (now < end) {
+            now += 1 + random.nextInt(5000);
+
+            long expected = Long.MAX_VALUE;
+            for (ScheduledMeasurementInfo info : live.values()) {
+                expected = Math.min(expected, info.getNextCollection());
+            }
+            assert wheel.getNextCollectionTime() == expected : wheel.getNextCollectionTime() + " != " + expected;
+
+            for (Set<ScheduledMeasurementInfo> requests : wheel.advance(now)) {
+                for (ScheduledMeasurementInfo info : requests) {
+                    assert info.getNextCollection() / 1000L <= now / 1000L : "Collection handed out early: " + info;
+                    info.setNextCollection(info.getNextCollection() + info.getInterval());
+                    assert wheel.reschedule(info);
+                }
+            }
+
+            for (ScheduledMeasurementInfo info : live.values()) {
+                assert info.getNextCollection() / 1000L > now / 1000L : "Missed collection: " + info;
+            }
+
+            if (random.nextInt(50) == 0) {
+                int scheduleId = random.nextInt(5000);
+                wheel.unschedule(scheduleId);
+                live.remove(scheduleId);
+            }
+        }
+
+        assert wheel.size() == live.size();
+    }
+
+    private static ScheduledMeasurementInfo info(int scheduleId, int resourceId, long interval, long nextCollection) {
+        MeasurementScheduleRequest request = new MeasurementScheduleRequest(scheduleId, "metric" + scheduleId,
+            interval, true, DataType.MEASUREMENT);
+        ScheduledMeasurementInfo info = new ScheduledMeasurementInfo(request, resourceId);
+        info.setNextCollection(nextCollection);
+        return info;
+    }
+}
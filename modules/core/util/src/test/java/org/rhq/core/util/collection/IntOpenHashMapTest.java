@@ -0,0 +1,88 @@
+ /*
+  * RHQ Management Platform
+  * Copyright (C) 2005-2008 Red Hat, Inc.
+  * All rights reserved.
+  *
+  * This program is free software; you can redistribute it and/or modify
+  * it under the terms of the GNU General Public License, version 2, as
+  * published by the Free Software Foundation, and/or the GNU Lesser
+  * General Public License, version 2.1, also as published by the Free
+  * Software Foundation.
+  *
+  * This program is distributed in the hope that it will be useful,
+  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+  * GNU General Public License and the GNU Lesser General Public License
+  * for more details.
+  *
+  * You should have received a copy of the GNU General Public License
+  * and the GNU Lesser General Public License along with this program;
+  * if not, write to the Free Software Foundation, Inc.,
+  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+  */
+package org.rhq.core.util.collection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+@Test
+public class IntOpenHashMapTest {
+    public void testPutGetRemove() {
+        IntOpenHashMap<String> map = new IntOpenHashMap<String>();
+        assert map.isEmpty();
+        assert map.put(1, "one") == null;
+        assert map.put(-7, "minus seven") == null;
+        assert "one".equals(map.put(1, "uno")) : "put should return the replaced value";
+        assert map.size() == 2 : map.size();
+        assert "uno".equals(map.get(1));
+        assert "minus seven".equals(map.get(-7));
+        assert map.get(2) == null;
+        assert "uno".equals(map.remove(1));
+        assert map.remove(1) == null;
+        assert map.size() == 1 : map.size();
+        assert !map.containsKey(1);
+        assert map.containsKey(-7);
+    }
+
+    public void testAgainstHashMap() {
+        Random random = new Random(42L);
+        IntOpenHashMap<Integer> map = new IntOpenHashMap<Integer>(4);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(3000) - 100;
+            switch (random.nextInt(3)) {
+            case 0:
+                assert equal(expected.put(key, i), map.put(key, i)) : "put " + key;
+                break;
+            case 1:
+                assert equal(expected.remove(key), map.remove(key)) : "remove " + key;
+                break;
+            default:
+                assert equal(expected.get(key), map.get(key)) : "get " + key;
+            }
+            assert expected.size() == map.size() : "size after " + i;
+        }
+
+        IntOpenHashMap<Integer> copy = map.copy();
+        map.clear();
+        assert map.isEmpty();
+        assert copy.keys().length == expected.size();
+        assert copy.values().size() == expected.size();
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assert entry.getValue().equals(copy.get(entry.getKey())) : "copy " + entry.getKey();
+        }
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void testNullValue() {
+        new IntOpenHashMap<Object>().put(1, null);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
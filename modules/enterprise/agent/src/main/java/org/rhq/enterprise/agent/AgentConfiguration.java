@@ -244,6 +244,33 @@ public class AgentConfiguration {
         return value;
     }
 
+    /**
+     * Returns the port of the RHQ Server's pipelined command listener.
+     *
+     * @return the pipelined listener's port (a value less than 1 means the agent should not use pipelining)
+     */
+    public int getServerPipelinedBindPort() {
+        int value = m_preferences.getInt(AgentConfigurationConstants.SERVER_PIPELINED_BIND_PORT,
+            AgentConfigurationConstants.DEFAULT_SERVER_PIPELINED_BIND_PORT);
+        return value;
+    }
+
+    /**
+     * Returns the number of commands that may be sent to the pipelined listener before their responses are received.
+     *
+     * @return the maximum number of pipelined commands in flight
+     */
+    public int getClientSenderPipelinedMaxInFlight() {
+        int value = m_preferences.getInt(AgentConfigurationConstants.CLIENT_SENDER_PIPELINED_MAX_IN_FLIGHT,
+            AgentConfigurationConstants.DEFAULT_CLIENT_SENDER_PIPELINED_MAX_IN_FLIGHT);
+
+        if (value < 1) {
+            value = AgentConfigurationConstants.DEFAULT_CLIENT_SENDER_PIPELINED_MAX_IN_FLIGHT;
+        }
+
+        return value;
+    }
+
     /**
      * This is a convienence method that builds a full remote endpoint string that combines
      * {@link #getServerTransport()}, {@link #getServerBindAddress()}, {@link #getServerBindPort()}, and
@@ -740,6 +767,21 @@ public class AgentConfiguration {
         return flag;
     }
 
+    /**
+     * Returns the command spool file segmented flag that, if true, indicates the commands should be spooled to a
+     * directory of memory mapped segment files rather than a single file.
+     *
+     * @return <code>true</code> if the command spool should be segmented; <code>false</code> means the commands are
+     *         spooled to a single file.
+     */
+    public boolean isClientSenderCommandSpoolFileSegmented() {
+        boolean flag = m_preferences.getBoolean(
+            AgentConfigurationConstants.CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED,
+            AgentConfigurationConstants.DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED);
+
+        return flag;
+    }
+
     /**
      * Returns an array of send throttling parameters or <code>null</code> if send throttling is to be disabled. The
      * first element of the array is the maximum number of commands that can be sent before the quiet period must start.
@@ -905,6 +947,7 @@ public class AgentConfiguration {
         config.dataDirectory = getDataDirectory();
         config.serverPollingIntervalMillis = getClientSenderServerPollingInterval();
         config.commandSpoolFileCompressData = isClientSenderCommandSpoolFileCompressed();
+        config.commandSpoolFileSegmented = isClientSenderCommandSpoolFileSegmented();
         config.retryInterval = getClientSenderRetryInterval();
         config.maxRetries = getClientSenderMaxRetries();
         config.commandSpoolFileName = getClientSenderCommandSpoolFileName();
@@ -1135,6 +1178,9 @@ public class AgentConfiguration {
         long childResourceDiscoveryDelay = m_preferences.getLong(
             AgentConfigurationConstants.PLUGINS_CHILD_RESOURCE_DISOVERY_PERIOD,
             AgentConfigurationConstants.DEFAULT_PLUGINS_CHILD_RESOURCE_DISCOVERY_PERIOD);
+        boolean hashedInventorySync = m_preferences.getBoolean(
+            AgentConfigurationConstants.PLUGINS_HASHED_INVENTORY_SYNC,
+            AgentConfigurationConstants.DEFAULT_PLUGINS_HASHED_INVENTORY_SYNC);
 
         // get the time interval in which availability scans run
         long avail_scan_period = m_preferences.getLong(AgentConfigurationConstants.PLUGINS_AVAILABILITY_SCAN_PERIOD,
@@ -1162,6 +1208,8 @@ public class AgentConfiguration {
         long drift_initial_delay = m_preferences.getLong(
             AgentConfigurationConstants.PLUGINS_DRIFT_DETECTION_INITIAL_DELAY,
             AgentConfigurationConstants.DEFAULT_PLUGINS_DRIFT_DETECTION_INITIAL_DELAY);
+        int drift_threads = m_preferences.getInt(AgentConfigurationConstants.PLUGINS_DRIFT_DETECTION_THREADS,
+            AgentConfigurationConstants.DEFAULT_PLUGINS_DRIFT_DETECTION_THREADS);
 
         // determine how many operation invoker threads should be in the threadpool that is used to execute operations
         int op_threadpool_size = m_preferences.getInt(
@@ -1238,12 +1286,14 @@ public class AgentConfiguration {
         config.setServiceDiscoveryInitialDelay(service_discovery_initial_delay);
         config.setServiceDiscoveryPeriod(service_discovery_period);
         config.setChildResourceDiscoveryDelay(childResourceDiscoveryDelay);
+        config.setHashedInventorySync(hashedInventorySync);
         config.setAvailabilityScanInitialDelay(avail_scan_initial_delay);
         config.setAvailabilityScanPeriod(avail_scan_period);
         config.setMeasurementCollectionThreadPoolSize(meas_threadpool_size);
         config.setMeasurementCollectionInitialDelay(meas_scan_initial_delay);
         config.setDriftDetectionInitialDelay(drift_initial_delay);
         config.setDriftDetectionPeriod(drift_period);
+        config.setDriftDetectionThreads(drift_threads);
         config.setOperationInvokerThreadPoolSize(op_threadpool_size);
         config.setOperationInvocationTimeout(op_timeout);
         config.setContentDiscoveryThreadPoolSize(con_threadpool_size);
@@ -111,6 +111,29 @@ public interface AgentConfigurationConstants {
      */
     String DEFAULT_SERVER_TRANSPORT_PARAMS = "/jboss-remoting-servlet-invoker/ServerInvokerServlet";
 
+    /**
+     * The port that the RHQ Server's pipelined command listener is bound to. If set, the agent sends its commands to
+     * that listener, many at a time over a single connection, instead of using the server transport. This is ignored if
+     * the server transport is secure since the pipelined listener does not support SSL.
+     */
+    String SERVER_PIPELINED_BIND_PORT = PROPERTY_NAME_PREFIX + "server.pipelined-bind-port";
+
+    /**
+     * The default pipelined port, which means the agent does not use the pipelined listener.
+     */
+    int DEFAULT_SERVER_PIPELINED_BIND_PORT = -1;
+
+    /**
+     * The number of commands the agent may have sent to the pipelined listener without having received their
+     * responses yet.
+     */
+    String CLIENT_SENDER_PIPELINED_MAX_IN_FLIGHT = PROPERTY_NAME_PREFIX + "client.pipelined-max-in-flight";
+
+    /**
+     * The default number of pipelined commands that can be in flight.
+     */
+    int DEFAULT_CLIENT_SENDER_PIPELINED_MAX_IN_FLIGHT = 100;
+
     /**
      * The DNS alias for the RHQ Server - used when the server IP address is not explicitly set.
      */
@@ -337,6 +360,16 @@ public interface AgentConfigurationConstants {
      */
     boolean DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_COMPRESSED = false;
 
+    /**
+     * Property that indicates if commands are spooled to a segmented, memory mapped spool instead of a single file.
+     */
+    String CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED = PROPERTY_NAME_PREFIX + "client.command-spool-file.segmented";
+
+    /**
+     * If the client sender command spool file segmented flag is not specified, this is the default.
+     */
+    boolean DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED = false;
+
     /**
      * Property that provides the amount of time, in milliseconds, that the sender will pause before attempting to retry
      * a failed command whose delivery is to be guaranteed.
@@ -600,6 +633,18 @@ public interface AgentConfigurationConstants {
      */
     long DEFAULT_PLUGINS_CHILD_RESOURCE_DISCOVERY_PERIOD = PluginContainerConfiguration.CHILD_RESOURCE_DISCOVERY_DELAY_DEFAULT;
 
+    /**
+     * If <code>true</code>, the plugin container syncs its inventory with the server by exchanging subtree hashes
+     * rather than the full inventory tree.
+     */
+    String PLUGINS_HASHED_INVENTORY_SYNC = PROPERTY_NAME_PREFIX + "plugins.hashed-inventory-sync";
+
+    /**
+     * Agents sync their inventory by exchanging subtree hashes by default. With a Server that does not support it
+     * they fall back to syncing with the full inventory tree.
+     */
+    boolean DEFAULT_PLUGINS_HASHED_INVENTORY_SYNC = true;
+
     /**
      * Defines, in seconds, the initial delay before the first availability scan is run.
      */
@@ -664,6 +709,16 @@ public interface AgentConfigurationConstants {
      */
     long DEFAULT_PLUGINS_DRIFT_DETECTION_PERIOD = PluginContainerConfiguration.DRIFT_DETECTION_PERIOD_DEFAULT;
 
+    /**
+     * Defines the number of threads that compute file digests during a drift detection scan.
+     */
+    String PLUGINS_DRIFT_DETECTION_THREADS = PROPERTY_NAME_PREFIX + "plugins.drift-detection.threads";
+
+    /**
+     * Agents hash files with two threads during drift detection by default.
+     */
+    int DEFAULT_PLUGINS_DRIFT_DETECTION_THREADS = 2;
+
     /**
      * If defined, this is to be the size of the content discovery thread pool. If not defined, the plugin container
      * should default to something it considers appropriate.
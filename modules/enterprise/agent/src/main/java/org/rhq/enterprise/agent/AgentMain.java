@@ -154,6 +154,7 @@ import org.rhq.enterprise.communications.command.client.ClientRemotePojoFactory;
 import org.rhq.enterprise.communications.command.client.CommandPreprocessor;
 import org.rhq.enterprise.communications.command.client.JBossRemotingRemoteCommunicator;
 import org.rhq.enterprise.communications.command.client.OutgoingCommandTrace;
+import org.rhq.enterprise.communications.command.client.PipelinedRemoteCommunicator;
 import org.rhq.enterprise.communications.command.client.RemoteCommunicator;
 import org.rhq.enterprise.communications.command.impl.remotepojo.RemotePojoInvocationCommand;
 import org.rhq.enterprise.communications.command.server.CommandListener;
@@ -2666,7 +2667,18 @@ public class AgentMain {
             config.put(HTTPSClientInvoker.IGNORE_HTTPS_HOST, "true");
         }
 
-        RemoteCommunicator remote_comm = new JBossRemotingRemoteCommunicator(uri, config);
+        RemoteCommunicator remote_comm;
+        int pipelinedPort = m_configuration.getServerPipelinedBindPort();
+
+        if ((pipelinedPort > 0) && !SecurityUtil.isTransportSecure(uri)) {
+            PipelinedRemoteCommunicator pipelined_comm = new PipelinedRemoteCommunicator(uri, pipelinedPort,
+                m_configuration.getClientSenderPipelinedMaxInFlight(), m_configuration.getClientSenderQueueSize());
+            pipelined_comm.setDefaultTimeout(m_configuration.getClientSenderCommandTimeout());
+            remote_comm = pipelined_comm;
+        } else {
+            remote_comm = new JBossRemotingRemoteCommunicator(uri, config);
+        }
+
         if (withFailover) {
             remote_comm.setFailureCallback(new FailoverFailureCallback(this));
         }
@@ -26,6 +26,7 @@ import org.rhq.enterprise.agent.i18n.AgentI18NFactory;
 import org.rhq.enterprise.agent.i18n.AgentI18NResourceKeys;
 import org.rhq.enterprise.communications.command.client.ClientCommandSenderConfiguration;
 import org.rhq.enterprise.communications.command.client.PersistentFifo;
+import org.rhq.enterprise.communications.command.client.SegmentedPersistentFifo;
 import org.rhq.enterprise.communications.util.DumpBytes;
 
 /**
@@ -78,6 +79,9 @@ public class DumpSpoolPromptCommand implements AgentPromptCommand {
         }
 
         File spool_file = new File(sender_config.dataDirectory, sender_config.commandSpoolFileName);
+        if (sender_config.commandSpoolFileSegmented) {
+            spool_file = SegmentedPersistentFifo.getSegmentDirectory(spool_file);
+        }
 
         try {
             PersistentFifo.dumpContents(agent.getOut(), spool_file, agent_config
@@ -72,6 +72,7 @@ import org.rhq.enterprise.communications.command.server.CommandService;
 import org.rhq.enterprise.communications.command.server.CommandServiceDirectory;
 import org.rhq.enterprise.communications.command.server.CommandServiceId;
 import org.rhq.enterprise.communications.command.server.KeyProperty;
+import org.rhq.enterprise.communications.command.server.PipelinedCommandServer;
 import org.rhq.enterprise.communications.command.server.discovery.AutoDiscoveryListener;
 import org.rhq.enterprise.communications.i18n.CommI18NFactory;
 import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
@@ -195,6 +196,11 @@ public class ServiceContainer {
      */
     private Connector m_connector;
 
+    /**
+     * The optional listener that accepts pipelined connections; <code>null</code> if not enabled.
+     */
+    private PipelinedCommandServer m_pipelinedServer;
+
     /**
      * The factory service that will be used to create secure server sockets. Will be <code>null</code> if the
      * connector's transport does not require a secure protocol.
@@ -564,6 +570,11 @@ public class ServiceContainer {
     public void shutdown() {
         LOG.info(CommI18NResourceKeys.SERVICE_CONTAINER_SHUTTING_DOWN);
 
+        // stop the pipelined listener
+        if (m_pipelinedServer != null) {
+            m_pipelinedServer.stop();
+        }
+
         // stop connector
         try {
             if (m_connector != null) {
@@ -661,6 +672,7 @@ public class ServiceContainer {
         m_registry = null;
         m_detector = null;
         m_connector = null;
+        m_pipelinedServer = null;
         m_sslServerSocketFactoryService = null;
         m_remotePojoCommandService = null;
         m_remoteInputStreamCommandService = null;
@@ -1225,6 +1237,18 @@ public class ServiceContainer {
         m_connector.addInvocationHandler(SUBSYSTEM, handler);
         m_connector.start();
 
+        // if enabled, pipelined clients can also send us commands - they are processed by the same command processor.
+        // the pipelined listener has no SSL, so it must not open a plaintext back door next to a secure connector
+        int pipelined_port = m_configuration.getConnectorPipelinedBindPort();
+        if ((pipelined_port > 0) && SecurityUtil.isTransportSecure(transport)) {
+            LOG.warn(CommI18NResourceKeys.PIPELINED_SERVER_DISABLED_SECURE_TRANSPORT, pipelined_port, transport);
+        } else if (pipelined_port > 0) {
+            m_pipelinedServer = new PipelinedCommandServer(m_configuration.getConnectorBindAddress(), pipelined_port,
+                SUBSYSTEM, handler, m_configuration.getConnectorPipelinedMaxConcurrent(), m_configuration
+                    .getConnectorPipelinedMaxConnections());
+            m_pipelinedServer.start();
+        }
+
         // create and register our metric MBean so we can emit statistics
         ServiceContainerMetrics metrics_mbean = new ServiceContainerMetrics(this, handler);
         m_mbs.registerMBean(metrics_mbean, ServiceContainerMetricsMBean.OBJECTNAME_METRICS);
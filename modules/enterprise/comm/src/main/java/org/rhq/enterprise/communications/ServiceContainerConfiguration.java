@@ -374,6 +374,40 @@ public class ServiceContainerConfiguration {
         return value;
     }
 
+    /**
+     * Returns the port the pipelined command listener should bind to. The listener binds to the same address as the
+     * connector.
+     *
+     * @return the pipelined listener's port (a value less than 1 means the listener is disabled)
+     */
+    public int getConnectorPipelinedBindPort() {
+        int value = m_preferences.getInt(ServiceContainerConfigurationConstants.CONNECTOR_PIPELINED_BIND_PORT,
+            ServiceContainerConfigurationConstants.DEFAULT_CONNECTOR_PIPELINED_BIND_PORT);
+        return value;
+    }
+
+    /**
+     * Returns the number of commands coming in through the pipelined listener that can execute concurrently.
+     *
+     * @return the maximum number of concurrently executing pipelined commands
+     */
+    public int getConnectorPipelinedMaxConcurrent() {
+        int value = m_preferences.getInt(ServiceContainerConfigurationConstants.CONNECTOR_PIPELINED_MAX_CONCURRENT,
+            ServiceContainerConfigurationConstants.DEFAULT_CONNECTOR_PIPELINED_MAX_CONCURRENT);
+        return value;
+    }
+
+    /**
+     * Returns the number of connections the pipelined command listener keeps open at the same time.
+     *
+     * @return the maximum number of pipelined connections
+     */
+    public int getConnectorPipelinedMaxConnections() {
+        int value = m_preferences.getInt(ServiceContainerConfigurationConstants.CONNECTOR_PIPELINED_MAX_CONNECTIONS,
+            ServiceContainerConfigurationConstants.DEFAULT_CONNECTOR_PIPELINED_MAX_CONNECTIONS);
+        return value;
+    }
+
     /**
      * Returns the protocol used over the secure socket.
      *
@@ -153,6 +153,39 @@ public interface ServiceContainerConfigurationConstants {
      */
     String CONNECTOR_LEASE_PERIOD = PROPERTY_NAME_PREFIX + "connector.lease-period";
 
+    /**
+     * If set to a port number, a pipelined command listener is bound to that port in addition to the connector. Clients
+     * using a {@link org.rhq.enterprise.communications.command.client.PipelinedRemoteCommunicator} send their
+     * commands to it, many at a time over a single connection. This listener does not support SSL, so it is not
+     * started if the connector's transport is secure.
+     */
+    String CONNECTOR_PIPELINED_BIND_PORT = PROPERTY_NAME_PREFIX + "connector.pipelined-bind-port";
+
+    /**
+     * The default pipelined listener port, which disables the pipelined listener.
+     */
+    int DEFAULT_CONNECTOR_PIPELINED_BIND_PORT = -1;
+
+    /**
+     * The number of commands coming in through the pipelined listener that can execute concurrently.
+     */
+    String CONNECTOR_PIPELINED_MAX_CONCURRENT = PROPERTY_NAME_PREFIX + "connector.pipelined-max-concurrent";
+
+    /**
+     * The default number of concurrently executing pipelined commands.
+     */
+    int DEFAULT_CONNECTOR_PIPELINED_MAX_CONCURRENT = 50;
+
+    /**
+     * The number of connections the pipelined listener keeps open at the same time; further connections are refused.
+     */
+    String CONNECTOR_PIPELINED_MAX_CONNECTIONS = PROPERTY_NAME_PREFIX + "connector.pipelined-max-connections";
+
+    /**
+     * The default maximum number of pipelined connections.
+     */
+    int DEFAULT_CONNECTOR_PIPELINED_MAX_CONNECTIONS = 1000;
+
     /**
      * The secure protocol used by the socket communications layer.
      */
@@ -0,0 +1,97 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import org.rhq.enterprise.communications.command.Command;
+import org.rhq.enterprise.communications.command.CommandResponse;
+
+/**
+ * A {@link RemoteCommunicator} that can have many commands in flight at the same time without dedicating a thread to
+ * each one. {@link #sendAsynch(Command, long, ResponseHandler)} hands the command off and returns immediately; the
+ * outcome is reported later to the given {@link ResponseHandler}. When a {@link ClientCommandSender} is given a
+ * communicator of this type, its asynchronous commands are pipelined through it rather than each occupying a sender
+ * thread until its response arrives.
+ *
+ * <p>The synchronous methods of {@link RemoteCommunicator} are still supported - they send the command the same way
+ * and then wait for its outcome.</p>
+ */
+public interface AsynchronousRemoteCommunicator extends RemoteCommunicator {
+    /**
+     * Sends the given command without waiting for its response. If the communicator already has as many commands
+     * outstanding as it allows, this blocks until one of them completes, for at most the command's timeout - that is
+     * how a caller producing commands faster than they can be sent is slowed down. If no room opens up in time, this
+     * returns <code>false</code> and the command is not sent; it is up to the caller to retry later or fail the
+     * command. A caller also blocks when the {@link #getInitializeCallback() initialize callback} needs to be invoked
+     * first.
+     *
+     * <p>If this returns <code>true</code>, the handler is guaranteed to be notified exactly once. Handlers are called
+     * from a thread owned by this communicator and should not block for long periods of time.</p>
+     *
+     * @param  command the command to send (must not be <code>null</code>)
+     * @param  timeout the number of milliseconds to wait for room and then for the response before failing the
+     *                 command with a {@link java.util.concurrent.TimeoutException}; if less than 1, the command never
+     *                 times out
+     * @param  handler notified of the response or of the failure to get one
+     *
+     * @return <code>true</code> if the command was accepted for sending; <code>false</code> if too many commands
+     *         stayed outstanding for the whole timeout or the calling thread was interrupted while waiting
+     */
+    boolean sendAsynch(Command command, long timeout, ResponseHandler handler);
+
+    /**
+     * Waits until all the commands accepted by {@link #sendAsynch(Command, long, ResponseHandler)} have completed.
+     *
+     * @param  timeout the number of milliseconds to wait at most
+     *
+     * @return <code>true</code> if no command is outstanding any more; <code>false</code> if the timeout expired first
+     *
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    boolean awaitOutstandingCommands(long timeout) throws InterruptedException;
+
+    /**
+     * Returns the number of commands that were accepted by {@link #sendAsynch(Command, long, ResponseHandler)} but
+     * whose handlers have not yet been notified.
+     *
+     * @return number of outstanding commands
+     */
+    int getOutstandingCommandCount();
+
+    /**
+     * Notified when an asynchronously sent command has completed.
+     */
+    interface ResponseHandler {
+        /**
+         * The remote endpoint returned a response for the command. The response itself may indicate that the command
+         * failed to execute.
+         *
+         * @param response the response to the command
+         */
+        void responseReceived(CommandResponse response);
+
+        /**
+         * The command could not be sent or no response was received for it, either because the connection failed or
+         * the command timed out. This is the asynchronous equivalent of {@link RemoteCommunicator#send(Command)}
+         * throwing an exception.
+         *
+         * @param throwable the cause of the failure
+         */
+        void sendFailed(Throwable throwable);
+    }
+}
@@ -76,6 +76,12 @@ import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
  * throttling second. That is to say, a command to be sent must pass through the queue throttle first and then must pass
  * the send throttle in order for the command to actually be sent.</p>
  *
+ * <p>If the {@link #getRemoteCommunicator() remote communicator} is an {@link AsynchronousRemoteCommunicator},
+ * asynchronous commands are pipelined: a sender thread only hands the command to the communicator and moves on to the
+ * next one, rather than waiting for the response. The results are still delivered to the commands'
+ * {@link CommandResponseCallback callbacks} and failed guaranteed commands are still retried. Because a sender thread
+ * is no longer tied up for the duration of a command, far fewer of them are needed.</p>
+ *
  * @author John Mazzitelli
  */
 public class ClientCommandSender {
@@ -185,7 +191,7 @@ public class ClientCommandSender {
      * {@link #isDeliveryGuaranteed(Command) guaranteed commands}. The actual objects that will be stored in this object
      * will be {@link CommandAndCallback} objects.
      */
-    private PersistentFifo m_commandStore;
+    private PersistentQueue m_commandStore;
 
     /**
      * The configuration for this sender.
@@ -253,8 +259,20 @@ public class ClientCommandSender {
             File cmd_spool_file = new File(config.dataDirectory, config.commandSpoolFileName);
 
             try {
-                m_commandStore = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
-                    config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                if (config.commandSpoolFileSegmented) {
+                    File cmd_spool_dir = SegmentedPersistentFifo.getSegmentDirectory(cmd_spool_file);
+                    m_commandStore = new SegmentedPersistentFifo(cmd_spool_dir, config.commandSpoolFileMaxSize,
+                        config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                    try {
+                        migrateCommandSpoolFile(cmd_spool_file, cmd_spool_dir, config);
+                    } catch (Exception e) {
+                        LOG.warn(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR, cmd_spool_file,
+                            remote_communicator, e);
+                    }
+                } else {
+                    m_commandStore = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
+                        config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                }
             } catch (Exception e) {
                 m_commandStore = null;
                 LOG.warn(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR, cmd_spool_file,
@@ -934,13 +952,21 @@ public class ClientCommandSender {
 
                         if (process_currently_queued_commands) {
                             m_executor.shutdown();
+                            m_executor.awaitTermination(1000L * 60 * 1, TimeUnit.MILLISECONDS);
+
+                            // pipelined commands are still in flight after the executor finished handing them off
+                            if (m_remoteCommunicator instanceof AsynchronousRemoteCommunicator) {
+                                ((AsynchronousRemoteCommunicator) m_remoteCommunicator)
+                                    .awaitOutstandingCommands(1000L * 60 * 1);
+                            }
+
                             m_timerThreadPool.shutdown();
                         } else {
                             m_executor.shutdownNow();
                             m_timerThreadPool.shutdownNow();
+                            m_executor.awaitTermination(1000L * 60 * 1, TimeUnit.MILLISECONDS);
                         }
 
-                        m_executor.awaitTermination(1000L * 60 * 1, TimeUnit.MILLISECONDS);
                         m_timerThreadPool.awaitTermination(1000L * 60 * 1, TimeUnit.MILLISECONDS);
                     } catch (InterruptedException e) {
                     }
@@ -1094,18 +1120,7 @@ public class ClientCommandSender {
             // Give the post-send callbacks a chance to execute
             response = executePostSendCallbacks(command, response);
 
-            if ((response != null) && response.isSuccessful()) {
-                long num = m_metrics.successfulCommands.incrementAndGet();
-
-                // calculate the running average - num is the current command count
-                // this may not be accurate if we execute this code concurrently,
-                // but its good enough for our simple monitoring needs
-                long currentAvg = m_metrics.averageExecutionTime.get();
-                currentAvg = (((num - 1) * currentAvg) + elapsed) / num;
-                m_metrics.averageExecutionTime.set(currentAvg);
-            } else {
-                m_metrics.failedCommands.incrementAndGet();
-            }
+            updateMetrics(response, elapsed);
         } catch (Throwable t) {
             m_metrics.failedCommands.incrementAndGet();
             throw t;
@@ -1114,6 +1129,76 @@ public class ClientCommandSender {
         return response;
     }
 
+    /**
+     * This is the pipelined equivalent of {@link #send(Command)} - it hands the command to the asynchronous
+     * communicator and returns as soon as the communicator has room for it. The handler is notified when the command
+     * completes (unless this returns <code>false</code>, in which case the command was not sent because too many
+     * commands stayed outstanding for the whole timeout).
+     *
+     * <p>This is package-scoped because this is the method that the {@link ClientCommandSenderTask} will use to send
+     * its commands when this sender's communicator is an {@link AsynchronousRemoteCommunicator}.</p>
+     *
+     * @param  communicator the communicator to send the command with
+     * @param  command      the command to send
+     * @param  timeout      the number of milliseconds to wait for the response before the command fails
+     * @param  handler      notified when the command completes
+     *
+     * @return <code>true</code> if the command was accepted for sending
+     */
+    boolean sendPipelined(AsynchronousRemoteCommunicator communicator, final Command command, long timeout,
+        final AsynchronousRemoteCommunicator.ResponseHandler handler) {
+
+        // this is what the GenericCommandClient would have done for us
+        command.checkParameterValidity(true);
+
+        executePreSendCallbacks(command);
+
+        final long start = System.currentTimeMillis();
+        boolean accepted = communicator.sendAsynch(command, timeout,
+            new AsynchronousRemoteCommunicator.ResponseHandler() {
+                public void responseReceived(CommandResponse response) {
+                    long elapsed = System.currentTimeMillis() - start;
+                    response = executePostSendCallbacks(command, response);
+                    updateMetrics(response, elapsed);
+                    handler.responseReceived(response);
+                }
+
+                public void sendFailed(Throwable throwable) {
+                    m_metrics.failedCommands.incrementAndGet();
+                    handler.sendFailed(throwable);
+                }
+            });
+
+        if (!accepted) {
+            m_metrics.failedCommands.incrementAndGet();
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Updates the metrics with the outcome of a command that made the round trip to the server.
+     *
+     * @param response the response to the command
+     * @param elapsed  the number of milliseconds it took to get the response
+     */
+    private void updateMetrics(CommandResponse response, long elapsed) {
+        if ((response != null) && response.isSuccessful()) {
+            long num = m_metrics.successfulCommands.incrementAndGet();
+
+            // calculate the running average - num is the current command count
+            // this may not be accurate if we execute this code concurrently,
+            // but its good enough for our simple monitoring needs
+            long currentAvg = m_metrics.averageExecutionTime.get();
+            currentAvg = (((num - 1) * currentAvg) + elapsed) / num;
+            m_metrics.averageExecutionTime.set(currentAvg);
+        } else {
+            m_metrics.failedCommands.incrementAndGet();
+        }
+
+        return;
+    }
+
     /**
      * This method is called by {@link ClientCommandSenderTask} to indicate the task attempted to send the command but
      * failed and since the command needs guaranteed delivery, it should be retried.
@@ -1397,6 +1482,100 @@ public class ClientCommandSender {
         return;
     }
 
+    /**
+     * Moves the commands that are still spooled in a single {@link PersistentFifo} file, from before the segmented
+     * spool was enabled, into the segmented spool and deletes the file. The old spool holds the older commands, so
+     * they are put first; commands already in the segmented spool are moved aside into a temporary segmented spool
+     * and put back after them. The commands are moved one at a time, so a large spool is never held in memory.
+     *
+     * <p>A migration that was interrupted is resumed where it stopped: a marker file in the temporary spool records
+     * that all newer commands have been moved aside, so everything in the segmented spool after that came from the
+     * old spool and is left in place.</p>
+     *
+     * @param  cmd_spool_file the single spool file
+     * @param  cmd_spool_dir  the directory of the segmented spool
+     * @param  config         the sender configuration
+     *
+     * @throws IOException if the spool file could not be read or the commands could not be put in the new spool
+     */
+    private void migrateCommandSpoolFile(File cmd_spool_file, File cmd_spool_dir,
+        ClientCommandSenderConfiguration config) throws IOException {
+        if (!cmd_spool_file.isFile()) {
+            return;
+        }
+
+        PersistentFifo old_store = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
+            config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+        SegmentedPersistentFifo new_store = (SegmentedPersistentFifo) m_commandStore;
+
+        // if a previous migration was interrupted, the commands it moved aside are still in this directory
+        File newer_dir = new File(cmd_spool_dir.getParentFile(), cmd_spool_dir.getName() + ".migrating");
+        File moved_aside_marker = new File(newer_dir, "moved-aside");
+        long migrated = 0L;
+
+        if (!old_store.isEmpty() || newer_dir.isDirectory()) {
+            SegmentedPersistentFifo newer_store = new SegmentedPersistentFifo(newer_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+
+            // until the marker exists, the segmented spool only holds commands newer than the old spool's
+            if (!moved_aside_marker.exists()) {
+                moveEntries(new_store, newer_store);
+                newer_store.sync();
+                if (!moved_aside_marker.createNewFile()) {
+                    throw new IOException(moved_aside_marker.getAbsolutePath());
+                }
+            }
+
+            migrated = moveEntries(old_store, new_store);
+            moveEntries(newer_store, new_store);
+            new_store.sync();
+            newer_store.close();
+
+            // the segments are all consumed; if one cannot be deleted yet, the next start cleans it up. The marker
+            // goes last, so an interrupted cleanup still resumes after the commands were moved aside.
+            File[] segments = newer_dir.listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    if (!segment.equals(moved_aside_marker)) {
+                        segment.delete();
+                    }
+                }
+            }
+            moved_aside_marker.delete();
+            newer_dir.delete();
+        }
+
+        old_store.initializeEmptyFile();
+        if (cmd_spool_file.delete() && (migrated > 0L)) {
+            LOG.info(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_MIGRATED, migrated, cmd_spool_file,
+                cmd_spool_dir);
+        }
+
+        return;
+    }
+
+    /**
+     * Takes the entries from one queue and puts them on the other, one at a time.
+     *
+     * @param  from the queue to empty
+     * @param  to   the queue to put the entries on
+     *
+     * @return the number of entries moved
+     *
+     * @throws IOException if an entry could not be taken or put
+     */
+    private static long moveEntries(PersistentQueue from, PersistentQueue to) throws IOException {
+        long moved = 0L;
+        byte[] entry;
+
+        while ((entry = from.take()) != null) {
+            to.put(entry);
+            moved++;
+        }
+
+        return moved;
+    }
+
     /**
      * This will take the next avaialable command/callback pair from the spool file and return it.
      *
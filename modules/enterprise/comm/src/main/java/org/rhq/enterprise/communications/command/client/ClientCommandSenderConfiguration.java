@@ -158,6 +158,15 @@ public class ClientCommandSenderConfiguration implements Serializable {
      */
     public boolean commandSpoolFileCompressData = false;
 
+    /**
+     * If this flag is <code>true</code>, guaranteed commands are spooled to a {@link SegmentedPersistentFifo} in the
+     * directory named after {@link #commandSpoolFileName} (see {@link SegmentedPersistentFifo#getSegmentDirectory(java.io.File)})
+     * instead of a single {@link PersistentFifo} file. The segmented spool is much faster to fill and to replay when
+     * a lot of commands have to be spooled, for example during a long server outage. Commands still found in the
+     * single spool file are moved to the segmented spool when the sender is created.
+     */
+    public boolean commandSpoolFileSegmented = false;
+
     /**
      * A fully qualified class name of a {@link CommandPreprocessor} implementation that will be used to preprocess all
      * commands that are to be queued and sent by the client command sender. May be <code>null</code> or empty string in
@@ -253,6 +262,7 @@ public class ClientCommandSenderConfiguration implements Serializable {
         config_copy.commandSpoolFileMaxSize = this.commandSpoolFileMaxSize;
         config_copy.commandSpoolFilePurgePercentage = this.commandSpoolFilePurgePercentage;
         config_copy.commandSpoolFileCompressData = this.commandSpoolFileCompressData;
+        config_copy.commandSpoolFileSegmented = this.commandSpoolFileSegmented;
         config_copy.commandPreprocessors = this.commandPreprocessors;
         config_copy.securityServerAuthMode = this.securityServerAuthMode;
         config_copy.securityKeystoreFile = this.securityKeystoreFile;
@@ -23,6 +23,7 @@ import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -123,9 +124,18 @@ class ClientCommandSenderTask implements Callable<CommandResponse>, Runnable {
      * @see java.lang.Runnable#run()
      */
     public void run() {
+        // asynchronous commands do not need to wait for their responses if the communicator can pipeline them
+        if (m_isAsync && (m_response == null)) {
+            RemoteCommunicator communicator = m_sender.getRemoteCommunicator();
+            if (communicator instanceof AsynchronousRemoteCommunicator) {
+                runPipelined((AsynchronousRemoteCommunicator) communicator);
+                return;
+            }
+        }
+
         CommandResponse response;
         Command command = m_cnc.getCommand();
-        boolean notify_callback = (m_cnc.getCallback() != null); // only notify the callback if we actually have one
+        boolean notify_callback = true;
 
         try {
             m_sender.waitForSendThrottle(command);
@@ -157,40 +167,143 @@ class ClientCommandSenderTask implements Callable<CommandResponse>, Runnable {
                 response = call();
             }
         } catch (Throwable t) {
-            // See if the failing command was a ping and th exception was a CanNotConnectException
-            boolean isPing = false;
-            if (command instanceof RemotePojoInvocationCommand) {
-                RemotePojoInvocationCommand rp = (RemotePojoInvocationCommand) command;
-                if (rp.getTargetInterfaceName().endsWith("Ping")) {
-                    if (t instanceof CannotConnectException) {
-                        isPing = true;
+            response = new GenericCommandResponse(command, false, null, t);
+
+            if (handleFailure(command, t)) {
+                notify_callback = false; // since we are going to retry this command, do not notify the callback
+            }
+        }
+
+        // if the command attempt finished (regardless of success or failure) we need to now notify our callback of the results
+        if (notify_callback) {
+            notifyCallback(response);
+        }
+
+        if (m_response != null) {
+            m_response[0] = response;
+        }
+
+        return;
+    }
+
+    /**
+     * Hands the command off to the asynchronous communicator, which will let us know when the response comes back. The
+     * calling thread does not wait for the command to complete - it is freed up to send the next command right away.
+     * Failures are handled the same way as {@link #run()} handles them.
+     *
+     * @param communicator the communicator that will pipeline the command
+     */
+    private void runPipelined(AsynchronousRemoteCommunicator communicator) {
+        final Command command = m_cnc.getCommand();
+
+        try {
+            m_sender.waitForSendThrottle(command);
+
+            boolean accepted = m_sender.sendPipelined(communicator, command, m_timeout,
+                new AsynchronousRemoteCommunicator.ResponseHandler() {
+                    public void responseReceived(CommandResponse response) {
+                        notifyCallback(response);
+                    }
+
+                    public void sendFailed(Throwable throwable) {
+                        pipelinedSendFailed(command, throwable);
                     }
+                });
+
+            if (!accepted) {
+                // we waited for room as long as the command may take - it fails now and, if guaranteed, will be
+                // retried later
+                throw new TimeoutException(LOG.getMsgString(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_PIPELINE_FULL,
+                    communicator, command));
+            }
+        } catch (Throwable t) {
+            pipelinedSendFailed(command, t);
+        }
+
+        return;
+    }
+
+    /**
+     * Handles the failure of a pipelined command. Retrying a guaranteed command pauses for the retry interval, so this
+     * is done in a timer thread rather than in the communicator's thread that notified us of the failure.
+     *
+     * @param command   the command that failed
+     * @param throwable the cause of the failure
+     */
+    private void pipelinedSendFailed(final Command command, final Throwable throwable) {
+        Runnable failure = new Runnable() {
+            public void run() {
+                if (!handleFailure(command, throwable)) {
+                    notifyCallback(new GenericCommandResponse(command, false, null, throwable));
                 }
             }
+        };
 
-            if (isPing) {
-                String agent = m_sender.getRemoteCommunicator().toString();
-                LOG.info(CommI18NResourceKeys.AGENT_PING_FAILED, agent);
-            } else {
-                LOG.error(t, CommI18NResourceKeys.SEND_FAILED, command, ThrowableUtil.getAllMessages(t));
+        // if the timer thread pool is null or shutdown, the sender is stopping and the retry will just spool the command
+        ThreadPoolExecutor timerThreadPool = m_sender.getTimerThreadPool();
+        if ((timerThreadPool != null) && !timerThreadPool.isShutdown()) {
+            try {
+                timerThreadPool.execute(failure);
+                return;
+            } catch (RejectedExecutionException ree) {
             }
-            response = new GenericCommandResponse(command, false, null, t);
+        }
 
-            boolean retry = shouldCommandBeRetried(command, t);
+        failure.run();
 
-            if (retry) {
-                notify_callback = false; // since we are going to retry this command, do not notify the callback
-                LOG.warn(CommI18NResourceKeys.QUEUING_FAILED_COMMAND);
-                try {
-                    m_sender.retryGuaranteedTask(m_cnc);
-                } catch (Exception e) {
-                    LOG.error(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_TASK_REQUEUE_FAILED, command);
+        return;
+    }
+
+    /**
+     * Logs the failure of the command and, if the command {@link #shouldCommandBeRetried(Command, Throwable) should be
+     * retried}, queues it up to be sent again.
+     *
+     * @param  command   the command that failed
+     * @param  throwable the cause of the failure
+     *
+     * @return <code>true</code> if the command is being retried, in which case the callback must not be notified
+     */
+    private boolean handleFailure(Command command, Throwable throwable) {
+        // See if the failing command was a ping and th exception was a CanNotConnectException
+        boolean isPing = false;
+        if (command instanceof RemotePojoInvocationCommand) {
+            RemotePojoInvocationCommand rp = (RemotePojoInvocationCommand) command;
+            if (rp.getTargetInterfaceName().endsWith("Ping")) {
+                if (throwable instanceof CannotConnectException) {
+                    isPing = true;
                 }
             }
         }
 
-        // if the command attempt finished (regardless of success or failure) we need to now notify our callback of the results
-        if (notify_callback) {
+        if (isPing) {
+            String agent = m_sender.getRemoteCommunicator().toString();
+            LOG.info(CommI18NResourceKeys.AGENT_PING_FAILED, agent);
+        } else {
+            LOG.error(throwable, CommI18NResourceKeys.SEND_FAILED, command, ThrowableUtil.getAllMessages(throwable));
+        }
+
+        boolean retry = shouldCommandBeRetried(command, throwable);
+
+        if (retry) {
+            LOG.warn(CommI18NResourceKeys.QUEUING_FAILED_COMMAND);
+            try {
+                m_sender.retryGuaranteedTask(m_cnc);
+            } catch (Exception e) {
+                LOG.error(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_TASK_REQUEUE_FAILED, command);
+            }
+        }
+
+        return retry;
+    }
+
+    /**
+     * Notifies the callback, if there is one, of the outcome of the command.
+     *
+     * @param response the results of the command
+     */
+    private void notifyCallback(CommandResponse response) {
+        // only notify the callback if we actually have one
+        if (m_cnc.getCallback() != null) {
             try {
                 m_cnc.getCallback().commandSent(response);
             } catch (Throwable t) {
@@ -198,10 +311,6 @@ class ClientCommandSenderTask implements Callable<CommandResponse>, Runnable {
             }
         }
 
-        if (m_response != null) {
-            m_response[0] = response;
-        }
-
         return;
     }
 
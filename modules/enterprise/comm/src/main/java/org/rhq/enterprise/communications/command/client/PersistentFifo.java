@@ -70,7 +70,7 @@ import org.rhq.enterprise.communications.util.DumpBytes;
  *
  * @author John Mazzitelli
  */
-public class PersistentFifo {
+public class PersistentFifo implements PersistentQueue {
     /**
      * Logger
      */
@@ -121,6 +121,7 @@ public class PersistentFifo {
      * not. If the <code>raw_byte_base</code> is <code>0</code>, then the data in the file is assumed to be serialized
      * objects and thus their <code>toString()</code> is dumped. Otherwise, a dump of each entry's raw byte array is
      * retrieved in the given <code>raw_byte_base</code>, where a base of 10 is for decimal, 16 is for hexidecimal, etc.
+     * If <code>fifo_file</code> is a directory, it is dumped as a {@link SegmentedPersistentFifo}.
      *
      * @param  out           the stream to dump the output
      * @param  fifo_file     the FIFO file that contains 0 or more persisted entries
@@ -134,6 +135,11 @@ public class PersistentFifo {
      */
     public static void dumpContents(PrintWriter out, File fifo_file, boolean compressed, int raw_byte_base)
         throws IOException {
+        if (fifo_file.isDirectory()) {
+            SegmentedPersistentFifo.dumpContents(out, fifo_file, compressed, raw_byte_base);
+            return;
+        }
+
         PersistentFifo fifo = new PersistentFifo(fifo_file, Long.MAX_VALUE, 99, compressed);
 
         out.println(fifo_file);
@@ -171,50 +177,64 @@ public class PersistentFifo {
             raf.readFully(entry);
 
             if (fifo.m_compress) {
-                entry = fifo.decompress(entry);
+                entry = decompress(entry);
             }
 
-            String entry_string;
+            dumpEntry(out, entry_num++, entry, raw_byte_base);
+        }
 
-            out.print("[" + entry_num++ + "] ");
+        out.flush();
 
-            if (raw_byte_base == 0) {
-                Object obj = StreamUtil.deserialize(entry);
-                entry_string = obj.toString();
-            } else {
-                out.println();
-
-                switch (raw_byte_base) {
-                case DumpBytes.BASE_HEX: {
-                    entry_string = DumpBytes.dumpHexData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_DEC: {
-                    entry_string = DumpBytes.dumpDecData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_OCT: {
-                    entry_string = DumpBytes.dumpOctData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_BIN: {
-                    entry_string = DumpBytes.dumpBinData(entry);
-                    break;
-                }
-
-                default: {
-                    entry_string = DumpBytes.dumpData(entry, 7, raw_byte_base);
-                }
-                }
+        return;
+    }
+
+    /**
+     * Dumps a single entry to the given stream, in the format described by {@link #dumpContents}.
+     *
+     * @param out           the stream to dump the output
+     * @param entry_num     the position of the entry in the FIFO
+     * @param entry         the uncompressed entry data
+     * @param raw_byte_base 0 to dump the entry as a serialized object, otherwise the base the raw bytes are dumped in
+     */
+    static void dumpEntry(PrintWriter out, long entry_num, byte[] entry, int raw_byte_base) {
+        String entry_string;
+
+        out.print("[" + entry_num + "] ");
+
+        if (raw_byte_base == 0) {
+            Object obj = StreamUtil.deserialize(entry);
+            entry_string = obj.toString();
+        } else {
+            out.println();
+
+            switch (raw_byte_base) {
+            case DumpBytes.BASE_HEX: {
+                entry_string = DumpBytes.dumpHexData(entry);
+                break;
+            }
+
+            case DumpBytes.BASE_DEC: {
+                entry_string = DumpBytes.dumpDecData(entry);
+                break;
+            }
+
+            case DumpBytes.BASE_OCT: {
+                entry_string = DumpBytes.dumpOctData(entry);
+                break;
+            }
+
+            case DumpBytes.BASE_BIN: {
+                entry_string = DumpBytes.dumpBinData(entry);
+                break;
             }
 
-            out.println(entry_string);
+            default: {
+                entry_string = DumpBytes.dumpData(entry, 7, raw_byte_base);
+            }
+            }
         }
 
-        out.flush();
+        out.println(entry_string);
 
         return;
     }
@@ -659,7 +679,7 @@ public class PersistentFifo {
      *
      * @throws IOException if failed to compress the bytes
      */
-    private byte[] compress(byte[] bytes) throws IOException {
+    static byte[] compress(byte[] bytes) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length);
         GZIPOutputStream gzip = new GZIPOutputStream(baos);
 
@@ -680,7 +700,7 @@ public class PersistentFifo {
      *
      * @throws IOException if failed to decompress the bytes
      */
-    private byte[] decompress(byte[] entry) throws IOException {
+    static byte[] decompress(byte[] entry) throws IOException {
         ByteArrayOutputStream decompressed = new ByteArrayOutputStream(entry.length);
         ByteArrayInputStream in = new ByteArrayInputStream(entry);
         GZIPInputStream gzip_in = new GZIPInputStream(in);
@@ -0,0 +1,95 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A first-in, first-out queue of byte arrays that survives restarts. This is where the {@link ClientCommandSender}
+ * spools the commands that must have guaranteed delivery.
+ *
+ * @see PersistentFifo
+ * @see SegmentedPersistentFifo
+ */
+public interface PersistentQueue {
+    /**
+     * Puts the given Object in the queue. This method will attempt to serialize the object and store the serialized
+     * bytes via {@link #put(byte[])}. An exception will occur if the serialization fails.
+     *
+     * @param  o the object to serialize and put in the queue
+     *
+     * @throws IOException      if failed to persist the data
+     * @throws RuntimeException if failed to serialize the data
+     */
+    void putObject(Serializable o) throws IOException, RuntimeException;
+
+    /**
+     * Takes an object from the queue, deserializes it and returns it.
+     *
+     * @return the object that was taken from the queue and deserialized, or <code>null</code> if the queue is empty
+     *
+     * @throws IOException      if failed to access the persisted data
+     * @throws RuntimeException if failed to deserialize the object after taking its serialized bytes off the queue
+     */
+    Object takeObject() throws IOException, RuntimeException;
+
+    /**
+     * Puts an array of bytes on the queue.
+     *
+     * @param  bytes the data to put in the queue
+     *
+     * @throws IOException if failed to persist the data
+     */
+    void put(byte[] bytes) throws IOException;
+
+    /**
+     * Takes the next entry from the queue and returns it.
+     *
+     * @return the next entry from the queue, or <code>null</code> if the queue is empty
+     *
+     * @throws IOException if failed to access the persisted data
+     */
+    byte[] take() throws IOException;
+
+    /**
+     * Returns <code>true</code> if the queue does not contain any entries.
+     *
+     * @return <code>true</code> if the queue is empty, <code>false</code> if at least one entry can be taken
+     *
+     * @throws IOException if failed to access the persisted data
+     */
+    boolean isEmpty() throws IOException;
+
+    /**
+     * Returns the number of entries currently in the queue.
+     *
+     * @return the number of entries
+     *
+     * @throws IOException if failed to access the persisted data
+     */
+    long count() throws IOException;
+
+    /**
+     * Removes all entries from the queue and shrinks its persistent storage down to its minimal size.
+     *
+     * @throws IOException if failed to access the persisted data
+     */
+    void initializeEmptyFile() throws IOException;
+}
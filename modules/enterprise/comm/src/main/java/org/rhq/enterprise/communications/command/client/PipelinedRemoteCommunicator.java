@@ -0,0 +1,1088 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mazz.i18n.Logger;
+
+import org.jboss.remoting.InvokerLocator;
+
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.enterprise.communications.command.Command;
+import org.rhq.enterprise.communications.command.CommandResponse;
+import org.rhq.enterprise.communications.command.impl.generic.GenericCommandResponse;
+import org.rhq.enterprise.communications.i18n.CommI18NFactory;
+import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
+import org.rhq.enterprise.communications.util.NotPermittedException;
+import org.rhq.enterprise.communications.util.PipelinedFrameCodec;
+
+/**
+ * A communicator that multiplexes all of its commands over a single, non-blocking connection to the remote endpoint's
+ * pipelined command listener (see {@link org.rhq.enterprise.communications.command.server.PipelinedCommandServer}).
+ * Each command is framed with a correlation ID; the responses come back tagged with that ID, in whatever order the
+ * remote endpoint finishes them. One I/O thread does all the reading and writing - callers never wait on the socket.
+ *
+ * <p>At most {@link #getMaxInFlight() max-in-flight} commands are written to the connection before their responses
+ * are received; the rest wait, in memory, for room in that window. The total number of outstanding commands is capped
+ * too - once that limit is hit, {@link #sendAsynch(Command, long, ResponseHandler)} blocks the caller until room opens
+ * up, for at most the command's timeout, which pushes back on whoever produces the commands.</p>
+ *
+ * <p>The synchronous send methods wait for the response for at most the command's timeout: the
+ * {@link ClientCommandSender#CMDCONFIG_PROP_TIMEOUT} property of its configuration, or the
+ * {@link #setDefaultTimeout(long) default timeout} if it has none. Connecting never blocks the I/O thread either; the
+ * connection is established in the background and given up on after a while.</p>
+ *
+ * <p>The remote endpoint is given as the same locator URI that a {@link JBossRemotingRemoteCommunicator} would use -
+ * only its host is used, the connection is made to the pipelined port this communicator was created with. This keeps
+ * failover working unchanged, since failover callbacks reconfigure the communicator with a new locator URI.</p>
+ *
+ * <p>The pipelined transport does not support SSL; it is meant for unsecured agent-to-server traffic only.</p>
+ */
+public class PipelinedRemoteCommunicator implements AsynchronousRemoteCommunicator {
+    private static final Logger LOG = CommI18NFactory.getLogger(PipelinedRemoteCommunicator.class);
+
+    /**
+     * The default number of commands that may be written to the connection before their responses arrive.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    /**
+     * The default number of commands that may be outstanding (in flight or waiting to go in flight).
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING = 10000;
+
+    /**
+     * The default number of milliseconds a synchronously sent command waits for its response.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 600000L;
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000L;
+    private static final long RECONNECT_DELAY_MILLIS = 1000L;
+    private static final long MAX_SELECT_MILLIS = 1000L;
+
+    private final int m_port;
+    private final int m_maxInFlight;
+    private final int m_maxOutstanding;
+
+    private volatile long m_defaultTimeout = DEFAULT_TIMEOUT_MILLIS;
+    private volatile String m_remoteEndpoint;
+    private volatile String m_host;
+    private volatile FailureCallback m_failureCallback;
+    private volatile InitializeCallback m_initializeCallback;
+    private volatile boolean m_needToCallInitializeCallback;
+    private final Object m_initializeCallbackLock = new Object();
+
+    private final AtomicLong m_nextCorrelationId = new AtomicLong(0L);
+    private final AtomicInteger m_outstanding = new AtomicInteger(0);
+
+    /**
+     * Callers waiting for the number of outstanding commands to drop wait on this; the number of them is kept so
+     * completing a command only has to take the lock when someone is waiting.
+     */
+    private final Object m_roomLock = new Object();
+    private volatile int m_waitingForRoom;
+
+    /**
+     * Commands handed to us by callers (or being resent); the I/O thread drains this.
+     */
+    private final ConcurrentLinkedQueue<PendingCommand> m_submitted = new ConcurrentLinkedQueue<PendingCommand>();
+
+    // lifecycle of the I/O machinery - guarded by this
+    private Thread m_ioThread;
+    private volatile Selector m_selector;
+    private volatile boolean m_running;
+    private volatile boolean m_connected;
+    private volatile boolean m_endpointChanged;
+    private volatile ThreadPoolExecutor m_completionExecutor;
+
+    // the following are only ever touched by the I/O thread (or by disconnect, once the I/O thread is gone)
+    private final LinkedList<PendingCommand> m_waiting = new LinkedList<PendingCommand>();
+    private final Map<Long, PendingCommand> m_inFlight = new LinkedHashMap<Long, PendingCommand>();
+    private final LinkedList<ByteBuffer> m_writes = new LinkedList<ByteBuffer>();
+    private SocketChannel m_channel;
+    private SelectionKey m_channelKey;
+    private PipelinedFrameCodec m_reader;
+    private long m_nextConnectAttempt;
+    private long m_connectDeadline; // 0 unless a connection is being established
+
+    /**
+     * Creates the communicator with the default limits.
+     *
+     * @param  endpoint the locator URI of the remote endpoint
+     * @param  port     the port the remote endpoint's pipelined listener is bound to
+     *
+     * @throws MalformedURLException if the endpoint is not a valid locator URI
+     */
+    public PipelinedRemoteCommunicator(String endpoint, int port) throws MalformedURLException {
+        this(endpoint, port, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_OUTSTANDING);
+    }
+
+    /**
+     * Creates the communicator.
+     *
+     * @param  endpoint        the locator URI of the remote endpoint
+     * @param  port            the port the remote endpoint's pipelined listener is bound to
+     * @param  max_in_flight   the number of commands that may be sent before their responses arrive
+     * @param  max_outstanding the number of commands that may be accepted before callers have to wait for room; this
+     *                         is raised to <code>max_in_flight</code> if it is smaller
+     *
+     * @throws MalformedURLException if the endpoint is not a valid locator URI
+     */
+    public PipelinedRemoteCommunicator(String endpoint, int port, int max_in_flight, int max_outstanding)
+        throws MalformedURLException {
+        if (max_in_flight < 1) {
+            throw new IllegalArgumentException("max_in_flight=" + max_in_flight);
+        }
+
+        m_port = port;
+        m_maxInFlight = max_in_flight;
+        m_maxOutstanding = Math.max(max_in_flight, max_outstanding);
+        setEndpoint(endpoint);
+
+        return;
+    }
+
+    /**
+     * Returns the number of commands that may be written to the connection before their responses arrive.
+     *
+     * @return max in flight
+     */
+    public int getMaxInFlight() {
+        return m_maxInFlight;
+    }
+
+    /**
+     * Returns the port of the remote endpoint's pipelined listener.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return m_port;
+    }
+
+    /**
+     * Returns the number of milliseconds a synchronously sent command waits for its response if the command does not
+     * specify its own timeout.
+     *
+     * @return the default timeout
+     */
+    public long getDefaultTimeout() {
+        return m_defaultTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds a synchronously sent command waits for its response if the command does not
+     * specify its own timeout. If less than 1, such commands wait forever.
+     *
+     * @param timeout the default timeout
+     */
+    public void setDefaultTimeout(long timeout) {
+        m_defaultTimeout = timeout;
+    }
+
+    public FailureCallback getFailureCallback() {
+        return m_failureCallback;
+    }
+
+    public void setFailureCallback(FailureCallback callback) {
+        m_failureCallback = callback;
+    }
+
+    public InitializeCallback getInitializeCallback() {
+        return m_initializeCallback;
+    }
+
+    public void setInitializeCallback(InitializeCallback callback) {
+        m_initializeCallback = callback;
+        m_needToCallInitializeCallback = (callback != null);
+    }
+
+    public String getRemoteEndpoint() {
+        return m_remoteEndpoint;
+    }
+
+    public void setRemoteEndpoint(String endpoint) throws Exception {
+        setEndpoint(endpoint);
+
+        // have the I/O thread drop the connection to the old endpoint
+        m_endpointChanged = true;
+        wakeup();
+    }
+
+    public void connect() throws Exception {
+        start();
+        m_needToCallInitializeCallback = (getInitializeCallback() != null);
+    }
+
+    /**
+     * Stops the I/O thread and closes the connection. Every command that is still outstanding is failed before this
+     * method returns - its handler is notified in the calling thread.
+     */
+    public void disconnect() {
+        Thread io_thread;
+        ThreadPoolExecutor completion_executor;
+
+        synchronized (this) {
+            io_thread = m_ioThread;
+            completion_executor = m_completionExecutor;
+            m_running = false;
+            m_ioThread = null;
+            m_completionExecutor = null;
+            wakeup();
+        }
+
+        if (io_thread != null) {
+            try {
+                // the I/O thread never blocks for longer than one select, which the wakeup cut short
+                io_thread.join(MAX_SELECT_MILLIS * 10);
+            } catch (InterruptedException ie) {
+            }
+        }
+
+        boolean io_stopped = (io_thread == null) || !io_thread.isAlive();
+
+        if (completion_executor != null) {
+            // let completions already handed off finish; any resends they do land in the submitted queue
+            completion_executor.shutdown();
+            try {
+                completion_executor.awaitTermination(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+            }
+        }
+
+        synchronized (this) {
+            if (io_stopped && (m_ioThread == null)) {
+                closeChannel();
+
+                List<PendingCommand> orphans = new ArrayList<PendingCommand>(m_inFlight.values());
+                orphans.addAll(m_waiting);
+                m_inFlight.clear();
+                m_waiting.clear();
+                m_writes.clear();
+
+                for (PendingCommand pending = m_submitted.poll(); pending != null; pending = m_submitted.poll()) {
+                    orphans.add(pending);
+                }
+
+                for (PendingCommand pending : orphans) {
+                    finish(pending, null, new ConnectException(LOG.getMsgString(
+                        CommI18NResourceKeys.PIPELINED_COMM_DISCONNECTED, this, pending.m_command)));
+                }
+
+                if (m_selector != null) {
+                    try {
+                        m_selector.close();
+                    } catch (IOException ignore) {
+                    }
+                    m_selector = null;
+                }
+            }
+        }
+
+        m_needToCallInitializeCallback = (getInitializeCallback() != null);
+
+        return;
+    }
+
+    public boolean isConnected() {
+        return m_running && m_connected;
+    }
+
+    public int getOutstandingCommandCount() {
+        return m_outstanding.get();
+    }
+
+    public boolean awaitOutstandingCommands(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (m_roomLock) {
+            m_waitingForRoom++;
+            try {
+                while (m_outstanding.get() > 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0L) {
+                        return false;
+                    }
+                    m_roomLock.wait(wait);
+                }
+            } finally {
+                m_waitingForRoom--;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean sendAsynch(Command command, long timeout, ResponseHandler handler) {
+        CommandResponse initializeErrorResponse = invokeInitializeCallbackIfNeeded(command);
+        if (initializeErrorResponse != null) {
+            try {
+                handler.responseReceived(initializeErrorResponse);
+            } catch (Throwable t) {
+                LOG.warn(t, CommI18NResourceKeys.PIPELINED_COMM_HANDLER_FAILED, command);
+            }
+            return true;
+        }
+
+        if (!waitForRoom(timeout)) {
+            return false;
+        }
+
+        submit(new PendingCommand(command, timeout, handler, false));
+        return true;
+    }
+
+    public CommandResponse sendWithoutCallbacks(Command command) throws Throwable {
+        // same NotPermittedException handling as the JBoss/Remoting communicator - the caller is synchronous anyway
+        CommandResponse ret_response = null;
+        boolean retry;
+        do {
+            retry = false;
+            ret_response = rawSend(command);
+            Throwable exception = ret_response.getException();
+            if ((exception != null) && (exception instanceof NotPermittedException)) {
+                long pause = ((NotPermittedException) exception).getSleepBeforeRetry();
+                LOG.debug(CommI18NResourceKeys.COMMAND_NOT_PERMITTED, command, pause);
+                retry = true;
+                Thread.sleep(pause);
+            }
+        } while (retry);
+
+        return ret_response;
+    }
+
+    public CommandResponse sendWithoutInitializeCallback(Command command) throws Throwable {
+        CommandResponse ret_response = null;
+        boolean retry = false;
+
+        do {
+            try {
+                ret_response = sendWithoutCallbacks(command);
+                retry = invokeFailureCallbackIfNeeded(command, ret_response, null);
+            } catch (Throwable t) {
+                retry = invokeFailureCallbackIfNeeded(command, ret_response, t);
+                if (!retry) {
+                    throw t;
+                }
+            }
+        } while (retry);
+
+        return ret_response;
+    }
+
+    public CommandResponse send(Command command) throws Throwable {
+        CommandResponse initializeErrorResponse = invokeInitializeCallbackIfNeeded(command);
+        if (initializeErrorResponse != null) {
+            return initializeErrorResponse;
+        }
+
+        return sendWithoutInitializeCallback(command);
+    }
+
+    @Override
+    public String toString() {
+        return "pipelined endpoint [" + m_host + ':' + m_port + ']';
+    }
+
+    /**
+     * Sends the command and waits for its outcome, for at most the command's timeout. The outcome is handed straight
+     * from the I/O thread to the waiting caller - none of the retry logic is applied, which is what allows a failure
+     * callback (running in the completion thread) to send commands synchronously. A synchronous command does not wait
+     * for room, so this also works from a handler while the maximum number of commands is outstanding.
+     *
+     * @param  command the command to send
+     *
+     * @return the response
+     *
+     * @throws Throwable if the command could not be sent or no response was received
+     */
+    private CommandResponse rawSend(Command command) throws Throwable {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] outcome = new Object[1];
+
+        ResponseHandler handler = new ResponseHandler() {
+            public void responseReceived(CommandResponse response) {
+                outcome[0] = response;
+                done.countDown();
+            }
+
+            public void sendFailed(Throwable throwable) {
+                outcome[0] = throwable;
+                done.countDown();
+            }
+        };
+
+        long timeout = getCommandTimeout(command);
+        m_outstanding.incrementAndGet();
+        submit(new PendingCommand(command, timeout, handler, true));
+
+        if (timeout > 0L) {
+            // the I/O thread fails the command once it expires, this only guards against that never happening
+            if (!done.await(timeout + MAX_SELECT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException(LOG.getMsgString(CommI18NResourceKeys.PIPELINED_COMM_TIMEOUT, command,
+                    timeout));
+            }
+        } else {
+            done.await();
+        }
+
+        if (outcome[0] instanceof Throwable) {
+            throw (Throwable) outcome[0];
+        }
+
+        return (CommandResponse) outcome[0];
+    }
+
+    /**
+     * Counts one more outstanding command, waiting first until there are fewer than the maximum.
+     *
+     * @param  timeout the number of milliseconds to wait at most; if less than 1, waits as long as it takes
+     *
+     * @return <code>false</code> if no room opened up in time or the calling thread was interrupted
+     */
+    private boolean waitForRoom(long timeout) {
+        long deadline = (timeout > 0L) ? (System.currentTimeMillis() + timeout) : 0L;
+
+        synchronized (m_roomLock) {
+            // counted before looking, so a command completing right after we looked is sure to wake us up
+            m_waitingForRoom++;
+            try {
+                while (true) {
+                    int outstanding = m_outstanding.get();
+                    if (outstanding < m_maxOutstanding) {
+                        if (m_outstanding.compareAndSet(outstanding, outstanding + 1)) {
+                            return true;
+                        }
+                        continue; // a synchronous command got in between
+                    }
+
+                    long wait = 0L;
+                    if (deadline > 0L) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0L) {
+                            return false;
+                        }
+                    }
+
+                    m_roomLock.wait(wait);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                m_waitingForRoom--;
+            }
+        }
+    }
+
+    /**
+     * Returns the timeout the command was configured with, or the default timeout if it was not.
+     */
+    private long getCommandTimeout(Command command) {
+        if (command.getConfiguration() != null) {
+            String timeout = command.getConfiguration().getProperty(ClientCommandSender.CMDCONFIG_PROP_TIMEOUT);
+            if (timeout != null) {
+                try {
+                    return Long.parseLong(timeout);
+                } catch (NumberFormatException nfe) {
+                    // the sender already warns about this, just use the default
+                }
+            }
+        }
+
+        return m_defaultTimeout;
+    }
+
+    /**
+     * Accepts the command for sending and wakes up the I/O thread, starting it if need be. The command must already
+     * be counted as outstanding.
+     *
+     * @param pending the command to send
+     */
+    private void submit(PendingCommand pending) {
+        OutgoingCommandTrace.start(pending.m_command);
+
+        try {
+            start();
+            pending.encode(m_nextCorrelationId.incrementAndGet());
+        } catch (Throwable t) {
+            finish(pending, null, t);
+            return;
+        }
+
+        m_submitted.add(pending);
+        wakeup();
+
+        return;
+    }
+
+    /**
+     * Puts a command that was already accepted back in line, for example after a failover or when the remote endpoint
+     * asked us to try again later. The command is re-encoded since callbacks may have modified it.
+     */
+    private void resubmit(PendingCommand pending, long not_before) {
+        try {
+            pending.m_notBefore = not_before;
+            pending.encode(m_nextCorrelationId.incrementAndGet());
+        } catch (Throwable t) {
+            finish(pending, null, t);
+            return;
+        }
+
+        m_submitted.add(pending);
+        wakeup();
+
+        return;
+    }
+
+    private synchronized void start() throws IOException {
+        if (!m_running) {
+            m_selector = Selector.open();
+            m_completionExecutor = new ThreadPoolExecutor(1, 1, 60000L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+            m_completionExecutor.allowCoreThreadTimeOut(true);
+            m_completionExecutor.setThreadFactory(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PipelinedRemoteCommunicator Completion Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            m_running = true;
+            m_ioThread = new Thread(new Runnable() {
+                public void run() {
+                    runIoLoop();
+                }
+            }, "PipelinedRemoteCommunicator I/O Thread");
+            m_ioThread.setDaemon(true);
+            m_ioThread.start();
+        }
+
+        return;
+    }
+
+    private void wakeup() {
+        Selector selector = m_selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void setEndpoint(String endpoint) throws MalformedURLException {
+        InvokerLocator locator = new InvokerLocator(endpoint);
+        m_host = locator.getHost();
+        m_remoteEndpoint = endpoint;
+    }
+
+    /**
+     * The body of the I/O thread - connects when there is work to do, writes commands as room opens up in the window,
+     * reads responses and expires the commands that timed out.
+     */
+    private void runIoLoop() {
+        try {
+            while (m_running) {
+                if (m_endpointChanged) {
+                    m_endpointChanged = false;
+                    if (m_channel != null) {
+                        // whatever was in flight to the old endpoint gets sent again to the new one
+                        closeChannel();
+                        m_waiting.addAll(0, m_inFlight.values());
+                        m_inFlight.clear();
+                    }
+                }
+
+                for (PendingCommand pending = m_submitted.poll(); pending != null; pending = m_submitted.poll()) {
+                    m_waiting.add(pending);
+                }
+
+                long now = System.currentTimeMillis();
+
+                if ((m_channel == null) && !m_waiting.isEmpty() && (now >= m_nextConnectAttempt)) {
+                    openChannel();
+                }
+
+                if ((m_connectDeadline > 0L) && (now >= m_connectDeadline)) {
+                    connectFailed(new ConnectException(LOG.getMsgString(
+                        CommI18NResourceKeys.PIPELINED_COMM_CONNECT_TIMEOUT, this, CONNECT_TIMEOUT_MILLIS)));
+                }
+
+                if (m_connected) {
+                    fillWindow(now);
+                }
+
+                long wait = expireTimedOutCommands(now);
+                if (m_connectDeadline > 0L) {
+                    wait = Math.max(1L, Math.min(wait, m_connectDeadline - now));
+                }
+                m_selector.select(wait);
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isConnectable()) {
+                        finishConnect();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        readResponses();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        flushWrites();
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            LOG.error(t, CommI18NResourceKeys.PIPELINED_COMM_IO_THREAD_FAILED, this);
+            connectionLost(t);
+
+            // let the next command start a new I/O thread; it will pick up the commands still waiting
+            synchronized (this) {
+                if (m_ioThread == Thread.currentThread()) {
+                    m_running = false;
+                    m_ioThread = null;
+                    try {
+                        m_selector.close();
+                    } catch (IOException ignore) {
+                    }
+                    m_selector = null;
+                }
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * Starts connecting to the remote endpoint without blocking the I/O thread. Unless the connection is established
+     * right away, the selector tells the I/O thread when it can {@link #finishConnect() finish} connecting.
+     */
+    private void openChannel() {
+        try {
+            m_channel = SocketChannel.open();
+            m_channel.configureBlocking(false);
+            m_channel.socket().setTcpNoDelay(true);
+            m_channel.socket().setKeepAlive(true);
+            m_reader = new PipelinedFrameCodec();
+
+            if (m_channel.connect(new InetSocketAddress(m_host, m_port))) {
+                connected();
+            } else {
+                m_connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+                m_channelKey = m_channel.register(m_selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (Throwable t) {
+            connectFailed(t);
+        }
+
+        return;
+    }
+
+    private void finishConnect() {
+        try {
+            if (m_channel.finishConnect()) {
+                connected();
+            }
+        } catch (Throwable t) {
+            connectFailed(t);
+        }
+
+        return;
+    }
+
+    private void connected() throws IOException {
+        m_connectDeadline = 0L;
+        m_channelKey = m_channel.register(m_selector, SelectionKey.OP_READ);
+        m_connected = true;
+    }
+
+    private void connectFailed(Throwable t) {
+        closeChannel();
+
+        LOG.warn(CommI18NResourceKeys.PIPELINED_COMM_CONNECT_FAILED, this, ThrowableUtil.getAllMessages(t));
+        m_nextConnectAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+
+        // nothing waiting can be sent - let the failure callback decide whether to failover and try again
+        ConnectException ce = new ConnectException(ThrowableUtil.getAllMessages(t));
+        ce.initCause(t);
+        List<PendingCommand> failed = new ArrayList<PendingCommand>(m_waiting);
+        m_waiting.clear();
+        completeAll(failed, ce);
+
+        return;
+    }
+
+    private void closeChannel() {
+        m_connected = false;
+        m_connectDeadline = 0L;
+
+        if (m_channel != null) {
+            try {
+                m_channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        m_channel = null;
+        m_channelKey = null;
+        m_reader = null;
+        m_writes.clear();
+    }
+
+    /**
+     * Called when the connection broke. The commands in flight are failed (their fate on the remote side is unknown);
+     * the commands still waiting are kept and will go out over the next connection.
+     */
+    private void connectionLost(Throwable cause) {
+        if (m_channel != null) {
+            LOG.warn(CommI18NResourceKeys.PIPELINED_COMM_CONNECTION_LOST, this, m_inFlight.size(), ThrowableUtil
+                .getAllMessages(cause));
+        }
+
+        closeChannel();
+
+        ConnectException ce = new ConnectException(ThrowableUtil.getAllMessages(cause));
+        ce.initCause(cause);
+        List<PendingCommand> failed = new ArrayList<PendingCommand>(m_inFlight.values());
+        m_inFlight.clear();
+        completeAll(failed, ce);
+    }
+
+    /**
+     * Moves waiting commands into flight until the window is full.
+     */
+    private void fillWindow(long now) {
+        Iterator<PendingCommand> iter = m_waiting.iterator();
+        while ((m_inFlight.size() < m_maxInFlight) && iter.hasNext()) {
+            PendingCommand pending = iter.next();
+            if (pending.m_notBefore <= now) {
+                iter.remove();
+                m_inFlight.put(Long.valueOf(pending.m_correlationId), pending);
+                m_writes.add(ByteBuffer.wrap(pending.m_frame));
+            }
+        }
+
+        if (!m_writes.isEmpty()) {
+            flushWrites();
+        }
+
+        return;
+    }
+
+    private void flushWrites() {
+        try {
+            while (!m_writes.isEmpty()) {
+                ByteBuffer buffer = m_writes.getFirst();
+                m_channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break; // the socket buffer is full - we'll be told when we can write again
+                }
+                m_writes.removeFirst();
+            }
+
+            m_channelKey.interestOps(m_writes.isEmpty() ? SelectionKey.OP_READ
+                : (SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+
+        return;
+    }
+
+    private void readResponses() {
+        try {
+            while ((m_reader != null) && m_reader.readFrame(m_channel)) {
+                Long id = Long.valueOf(m_reader.getCorrelationId());
+                byte[] payload = m_reader.getPayload();
+                PendingCommand pending = m_inFlight.remove(id);
+
+                if (pending != null) {
+                    // the response to a command that already timed out is simply dropped
+                    try {
+                        complete(pending, (CommandResponse) PipelinedFrameCodec.decode(payload));
+                    } catch (Throwable t) {
+                        LOG.error(CommI18NResourceKeys.PIPELINED_COMM_BAD_RESPONSE, pending.m_command, ThrowableUtil
+                            .getAllMessages(t));
+                        complete(pending, new GenericCommandResponse(pending.m_command, false, null, t));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+
+        return;
+    }
+
+    /**
+     * Fails all commands whose timeout expired, whether they are in flight or still waiting.
+     *
+     * @return the number of milliseconds the I/O thread can wait before it needs to check again
+     */
+    private long expireTimedOutCommands(long now) {
+        long next = now + MAX_SELECT_MILLIS;
+
+        List<PendingCommand> expired = null;
+        for (Iterator<PendingCommand> iter = m_inFlight.values().iterator(); iter.hasNext();) {
+            PendingCommand pending = iter.next();
+            if (pending.isExpired(now)) {
+                iter.remove();
+                expired = (expired != null) ? expired : new ArrayList<PendingCommand>();
+                expired.add(pending);
+            } else if (pending.m_deadline > 0L) {
+                next = Math.min(next, pending.m_deadline);
+            }
+        }
+
+        for (Iterator<PendingCommand> iter = m_waiting.iterator(); iter.hasNext();) {
+            PendingCommand pending = iter.next();
+            if (pending.isExpired(now)) {
+                iter.remove();
+                expired = (expired != null) ? expired : new ArrayList<PendingCommand>();
+                expired.add(pending);
+            } else {
+                if (pending.m_deadline > 0L) {
+                    next = Math.min(next, pending.m_deadline);
+                }
+                if (pending.m_notBefore > now) {
+                    next = Math.min(next, pending.m_notBefore);
+                }
+            }
+        }
+
+        if (expired != null) {
+            for (PendingCommand pending : expired) {
+                TimeoutException te = new TimeoutException(LOG.getMsgString(CommI18NResourceKeys.PIPELINED_COMM_TIMEOUT,
+                    pending.m_command, pending.m_timeout));
+                completeAll(Collections.singletonList(pending), te);
+            }
+        }
+
+        return Math.max(1L, next - now);
+    }
+
+    /**
+     * Completes a command that got a response. Unless the command was sent synchronously, the response is examined
+     * in the completion thread - if the remote endpoint did not permit the command, it is resent after the requested
+     * pause; if the failure callback asks for a retry, it is resent right away.
+     */
+    private void complete(final PendingCommand pending, final CommandResponse response) {
+        if (pending.m_synchronous) {
+            finish(pending, response, null);
+            return;
+        }
+
+        dispatch(new Runnable() {
+            public void run() {
+                Throwable exception = response.getException();
+                if (exception instanceof NotPermittedException) {
+                    long pause = ((NotPermittedException) exception).getSleepBeforeRetry();
+                    LOG.debug(CommI18NResourceKeys.COMMAND_NOT_PERMITTED, pending.m_command, pause);
+                    resubmit(pending, System.currentTimeMillis() + pause);
+                } else if (invokeFailureCallbackIfNeeded(pending.m_command, response, null)) {
+                    resubmit(pending, 0L);
+                } else {
+                    finish(pending, response, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails the given commands, all for the same reason. The failure callback is consulted only once for the whole
+     * group - a lost connection should cause one failover, not one per command that was in flight.
+     */
+    private void completeAll(final List<PendingCommand> failed, final Throwable cause) {
+        if (failed.isEmpty()) {
+            return;
+        }
+
+        List<PendingCommand> asynchronous = new ArrayList<PendingCommand>(failed.size());
+        for (PendingCommand pending : failed) {
+            if (pending.m_synchronous) {
+                finish(pending, null, cause);
+            } else {
+                asynchronous.add(pending);
+            }
+        }
+
+        if (asynchronous.isEmpty()) {
+            return;
+        }
+
+        final List<PendingCommand> group = asynchronous;
+        final boolean may_retry = !(cause instanceof TimeoutException);
+
+        dispatch(new Runnable() {
+            public void run() {
+                boolean retry = may_retry && invokeFailureCallbackIfNeeded(group.get(0).m_command, null, cause);
+                for (PendingCommand pending : group) {
+                    if (retry) {
+                        resubmit(pending, 0L);
+                    } else {
+                        finish(pending, null, cause);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given completion work in the completion thread so the I/O thread never runs callback code. If the
+     * communicator is being disconnected, it runs in the calling thread instead.
+     */
+    private void dispatch(Runnable completion) {
+        ThreadPoolExecutor executor = m_completionExecutor;
+
+        if (executor != null) {
+            try {
+                executor.execute(completion);
+                return;
+            } catch (RejectedExecutionException ree) {
+                // we are shutting down, just run it now
+            }
+        }
+
+        completion.run();
+    }
+
+    /**
+     * Notifies the command's handler of its final outcome.
+     */
+    private void finish(PendingCommand pending, CommandResponse response, Throwable throwable) {
+        m_outstanding.decrementAndGet();
+        if (m_waitingForRoom > 0) {
+            synchronized (m_roomLock) {
+                m_roomLock.notifyAll();
+            }
+        }
+        OutgoingCommandTrace.finish(pending.m_command, (throwable != null) ? throwable : response);
+
+        try {
+            if (throwable != null) {
+                pending.m_handler.sendFailed(throwable);
+            } else {
+                pending.m_handler.responseReceived(response);
+            }
+        } catch (Throwable t) {
+            LOG.warn(t, CommI18NResourceKeys.PIPELINED_COMM_HANDLER_FAILED, pending.m_command);
+        }
+
+        return;
+    }
+
+    /**
+     * Same as the JBoss/Remoting communicator - blocks all senders until the initialize callback has run once.
+     */
+    private CommandResponse invokeInitializeCallbackIfNeeded(Command command) {
+        InitializeCallback callback = getInitializeCallback();
+        if ((callback != null) && m_needToCallInitializeCallback) {
+            synchronized (m_initializeCallbackLock) {
+                if (m_needToCallInitializeCallback) {
+                    try {
+                        m_needToCallInitializeCallback = (!callback.sendingInitialCommand(this, command));
+                        LOG.debug(CommI18NResourceKeys.INITIALIZE_CALLBACK_DONE, m_needToCallInitializeCallback);
+                    } catch (Throwable t) {
+                        m_needToCallInitializeCallback = true; // callback failed, we'll want to call it again
+                        LOG.error(t, CommI18NResourceKeys.INITIALIZE_CALLBACK_FAILED, ThrowableUtil.getAllMessages(t));
+                        return new GenericCommandResponse(command, false, null, t);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private boolean invokeFailureCallbackIfNeeded(Command command, CommandResponse response, Throwable throwable) {
+        FailureCallback callback = getFailureCallback();
+        boolean retry = false;
+
+        if (callback != null) {
+            if (throwable != null || ((response != null) && (response.getException() != null))) {
+                try {
+                    retry = callback.failureDetected(this, command, response, throwable);
+                } catch (Throwable t) {
+                    // the callback itself failed - just keep going
+                }
+            }
+        }
+
+        return retry;
+    }
+
+    /**
+     * A command that has been accepted but whose handler has not been notified yet.
+     */
+    private static class PendingCommand {
+        private final Command m_command;
+        private final long m_timeout;
+        private final long m_deadline;
+        private final ResponseHandler m_handler;
+        private final boolean m_synchronous;
+        private volatile long m_notBefore;
+        private volatile long m_correlationId;
+        private volatile byte[] m_frame;
+
+        PendingCommand(Command command, long timeout, ResponseHandler handler, boolean synchronous) {
+            m_command = command;
+            m_timeout = timeout;
+            m_deadline = (timeout > 0L) ? (System.currentTimeMillis() + timeout) : 0L;
+            m_handler = handler;
+            m_synchronous = synchronous;
+        }
+
+        void encode(long correlation_id) throws IOException {
+            m_frame = PipelinedFrameCodec.encode(correlation_id, m_command);
+            m_correlationId = correlation_id;
+        }
+
+        boolean isExpired(long now) {
+            return (m_deadline > 0L) && (now >= m_deadline);
+        }
+    }
+}
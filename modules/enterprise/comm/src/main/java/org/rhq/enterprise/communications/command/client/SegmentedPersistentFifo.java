@@ -0,0 +1,774 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import mazz.i18n.Logger;
+
+import org.rhq.core.util.stream.StreamUtil;
+import org.rhq.enterprise.communications.i18n.CommI18NFactory;
+import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
+
+/**
+ * Persists byte arrays in a FIFO queue that is spread over a directory of fixed size, memory mapped segment files.
+ * This is an alternative to {@link PersistentFifo} that is built for spools that grow large, for example when an agent
+ * has to spool its guaranteed commands through a long server outage:
+ *
+ * <ul>
+ * <li>Entries are only ever appended to the newest segment and read from the oldest segment; nothing is moved around
+ * in a file. Once all entries of a segment have been taken, the whole segment file is deleted.</li>
+ * <li>If the spool grows beyond its maximum size, the oldest segments are deleted (sacrificing their entries) until
+ * the spool is back under its purge percentage - there is no in-place purge that rewrites the spool.</li>
+ * <li>Putting and taking are guarded by two separate locks of this instance, so a producer is never blocked by a
+ * consumer replaying a large spool (and vice versa), and separate spools never block each other.</li>
+ * <li>Segments are memory mapped, so a put or take is a memory copy. The mapped pages are forced to disk by the first
+ * put after {@link #SYNC_INTERVAL_MILLIS} milliseconds have passed since the last sync, whenever a segment fills up
+ * and on {@link #sync()} and {@link #close()}, so a burst of puts shares a single disk sync (group commit).</li>
+ * </ul>
+ *
+ * <p>Each segment file is named after its sequence number and starts with a header: a magic number followed by the
+ * file offset of the next entry to take (the read offset). Each entry consists of its length plus one (so that the
+ * zero-filled, unused rest of a segment reads as "no more entries"), a CRC32 checksum of the entry data and the entry
+ * data itself:</p>
+ *
+ * <pre>
+ * MAGIC | read-offset | length+1 | crc | entry-byte-array-data | length+1 | crc | entry-byte-array-data | 0 0 0 ...
+ * </pre>
+ *
+ * <p>When the spool is opened, the segments are scanned to rebuild the entry count; a segment is only scanned up to
+ * its first entry with an invalid length or checksum, which is what an entry looks like that was being written when
+ * the process died. New entries are always appended to a new segment after a restart.</p>
+ */
+public class SegmentedPersistentFifo implements PersistentQueue {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = CommI18NFactory.getLogger(SegmentedPersistentFifo.class);
+
+    /**
+     * The suffix of the directory that holds the segments of a spool, relative to the spool's file name.
+     */
+    public static final String SEGMENT_DIRECTORY_SUFFIX = ".segments";
+
+    /**
+     * The minimum time, in milliseconds, between two syncs triggered by puts. There is no timer: entries put after the
+     * last sync stay in the mapped pages until the next put that is due to sync, a segment fills up or the fifo is
+     * synced or closed. The mapped pages belong to the operating system, so they survive the death of this process;
+     * only an operating system crash can lose them.
+     */
+    public static final long SYNC_INTERVAL_MILLIS = 1000L;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final int MAGIC = 0x52485153;
+    private static final int READ_OFFSET_POSITION = 4;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final long MIN_SEGMENT_SIZE = 4096L;
+    private static final long MAX_DEFAULT_SEGMENT_SIZE = 4L * 1024L * 1024L;
+
+    private final File m_directory;
+    private final long m_maxSizeBytes; // total size of all segments that, when reached, triggers a purge
+    private final long m_purgeResultMaxBytes; // the total size all segments must be less than after a purge
+    private final int m_segmentSize;
+    private final boolean m_compress;
+
+    // guards m_tail and the writing of entries; when both locks are needed, this one is acquired first
+    private final Object m_putLock = new Object();
+    // guards m_head and the reading of entries
+    private final Object m_takeLock = new Object();
+
+    private Segment m_head; // the segment entries are taken from
+    private Segment m_tail; // the segment entries are put to
+    private long m_lastSync;
+    // set with both locks held, so it may be read with either one
+    private boolean m_closed;
+
+    private final AtomicLong m_count = new AtomicLong(0L);
+    private final AtomicLong m_totalBytes = new AtomicLong(0L);
+
+    /**
+     * Returns the directory that holds the segments of the spool that would otherwise be stored in the given file.
+     *
+     * @param  spool_file the single spool file a {@link PersistentFifo} would use
+     *
+     * @return the segment directory
+     */
+    public static File getSegmentDirectory(File spool_file) {
+        return new File(spool_file.getParentFile(), spool_file.getName() + SEGMENT_DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * A simple utility that dumps all the data found in the segmented FIFO to the given stream without taking it off
+     * the queue. See {@link PersistentFifo#dumpContents(PrintWriter, File, boolean, int)} for the meaning of the
+     * parameters.
+     *
+     * @param  out           the stream to dump the output
+     * @param  directory     the directory that contains the FIFO's segment files
+     * @param  compressed    if <code>true</code>, the entries will be assumed to be compressed
+     * @param  raw_byte_base the base to dump the raw entry data in, 0 to dump entries as objects, -1 to only dump the
+     *                       number of entries
+     *
+     * @throws IOException
+     */
+    public static void dumpContents(PrintWriter out, File directory, boolean compressed, int raw_byte_base)
+        throws IOException {
+        File[] files = listSegmentFiles(directory);
+
+        long count = 0L;
+        for (File file : files) {
+            Segment segment = Segment.open(file, getSequence(file), true);
+            count += segment.countEntries(segment.m_readPosition);
+            segment.close();
+        }
+
+        out.println(directory);
+        out.println(count);
+        out.flush();
+
+        // don't bother to continue, return immediately if caller only wanted to see the number of entries
+        if (raw_byte_base < 0) {
+            return;
+        }
+
+        long entry_num = 0L;
+        for (File file : files) {
+            Segment segment = Segment.open(file, getSequence(file), true);
+            try {
+                byte[] entry;
+                while ((entry = segment.read()) != null) {
+                    if (compressed) {
+                        entry = PersistentFifo.decompress(entry);
+                    }
+
+                    PersistentFifo.dumpEntry(out, entry_num++, entry, raw_byte_base);
+                }
+            } finally {
+                segment.close();
+            }
+        }
+
+        out.flush();
+
+        return;
+    }
+
+    /**
+     * Creates a new {@link SegmentedPersistentFifo} object whose segments are sized so that about eight of them make
+     * up the maximum size. See {@link #SegmentedPersistentFifo(File, long, int, boolean, long)}.
+     *
+     * @param  directory        the directory containing the FIFO segments; it is created if it does not exist
+     * @param  max_size_bytes   the maximum total size, in bytes, the segments are allowed to grow before a purge is
+     *                          triggered
+     * @param  purge_percentage when a purge is triggered, it will free up enough space to lower the amount of used
+     *                          space down to this percentage of the total max space
+     * @param  compress         if <code>true</code>, the data spooled to the segments should be compressed
+     *
+     * @throws IOException              if the directory or its segments cannot be created or read
+     * @throws IllegalArgumentException if purge_percentage is not between 0 and 99 or max_size_bytes is less than 1000
+     */
+    public SegmentedPersistentFifo(File directory, long max_size_bytes, int purge_percentage, boolean compress)
+        throws IOException {
+        this(directory, max_size_bytes, purge_percentage, compress, Math.min(max_size_bytes, Math.max(
+            MIN_SEGMENT_SIZE, Math.min(max_size_bytes / 8L, MAX_DEFAULT_SEGMENT_SIZE))));
+    }
+
+    /**
+     * Creates a new {@link SegmentedPersistentFifo} object. The <code>max_size_bytes</code> indicates the maximum
+     * total size of all segments. If a new segment would cross this threshold, the oldest segments are deleted, along
+     * with the entries that have not been taken from them yet, until the total size is down to <code>
+     * purge_percentage</code> of the maximum size or less. The newest segment is never purged.
+     *
+     * @param  directory          the directory containing the FIFO segments; it is created if it does not exist
+     * @param  max_size_bytes     the maximum total size, in bytes, the segments are allowed to grow before a purge is
+     *                            triggered
+     * @param  purge_percentage   when a purge is triggered, it will free up enough space to lower the amount of used
+     *                            space down to this percentage of the total max space
+     * @param  compress           if <code>true</code>, the data spooled to the segments should be compressed
+     * @param  segment_size_bytes the size of each segment file; an entry larger than this gets a segment of its own
+     *
+     * @throws IOException              if the directory or its segments cannot be created or read
+     * @throws IllegalArgumentException if purge_percentage is not between 0 and 99 or max_size_bytes is less than 1000
+     */
+    public SegmentedPersistentFifo(File directory, long max_size_bytes, int purge_percentage, boolean compress,
+        long segment_size_bytes) throws IOException {
+        if ((purge_percentage < 0) || (purge_percentage > 99)) {
+            throw new IllegalArgumentException(LOG.getMsgString(CommI18NResourceKeys.INVALID_PURGE_PERCENTAGE,
+                purge_percentage));
+        }
+
+        if (max_size_bytes < 1000L) {
+            throw new IllegalArgumentException(LOG.getMsgString(CommI18NResourceKeys.INVALID_MAX_SIZE, max_size_bytes,
+                1000));
+        }
+
+        m_directory = directory;
+        m_maxSizeBytes = max_size_bytes;
+        m_purgeResultMaxBytes = (long) (max_size_bytes * (purge_percentage / 100.0f));
+        m_segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(segment_size_bytes, SEGMENT_HEADER_SIZE
+            + ENTRY_HEADER_SIZE));
+        m_compress = compress;
+
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            throw new IOException(m_directory.getAbsolutePath());
+        }
+
+        synchronized (m_putLock) {
+            synchronized (m_takeLock) {
+                recover();
+            }
+        }
+    }
+
+    public void putObject(Serializable o) throws IOException, RuntimeException {
+        byte[] serialized_bytes = StreamUtil.serialize(o);
+        put(serialized_bytes);
+        return;
+    }
+
+    public Object takeObject() throws IOException, RuntimeException {
+        Object o = null;
+
+        byte[] serialized_bytes = take();
+        if (serialized_bytes != null) {
+            o = StreamUtil.deserialize(serialized_bytes);
+        }
+
+        return o;
+    }
+
+    public void put(byte[] bytes) throws IOException {
+        // compress outside of the lock, this is the expensive part of a put
+        if (m_compress) {
+            bytes = PersistentFifo.compress(bytes);
+        }
+
+        synchronized (m_putLock) {
+            checkOpen();
+
+            if (!m_tail.hasRoomFor(bytes.length)) {
+                roll(bytes.length);
+            }
+
+            // count before the entry becomes visible to takers so the count never goes negative
+            m_count.incrementAndGet();
+            m_tail.append(bytes);
+
+            long now = System.currentTimeMillis();
+            if ((now - m_lastSync) >= SYNC_INTERVAL_MILLIS) {
+                m_tail.force();
+                m_lastSync = now;
+            }
+        }
+
+        return;
+    }
+
+    public byte[] take() throws IOException {
+        byte[] entry = null;
+
+        synchronized (m_takeLock) {
+            checkOpen();
+
+            while (entry == null) {
+                entry = m_head.read();
+                if (entry == null) {
+                    Segment next = m_head.m_next;
+                    if (next == null) {
+                        return null;
+                    }
+
+                    // the head segment was sealed before its successor was published, so anything appended to it is
+                    // visible now - look once more before deleting it
+                    entry = m_head.read();
+                    if (entry == null) {
+                        Segment consumed = m_head;
+                        m_head = next;
+                        delete(consumed);
+                    }
+                }
+            }
+
+            m_count.decrementAndGet();
+        }
+
+        if (m_compress) {
+            entry = PersistentFifo.decompress(entry);
+        }
+
+        return entry;
+    }
+
+    public boolean isEmpty() {
+        return m_count.get() <= 0L;
+    }
+
+    public long count() {
+        return m_count.get();
+    }
+
+    /**
+     * Deletes all segments, and with them all entries, and starts over with a single empty segment.
+     */
+    public void initializeEmptyFile() throws IOException {
+        synchronized (m_putLock) {
+            synchronized (m_takeLock) {
+                checkOpen();
+
+                long sequence = m_tail.m_sequence + 1L;
+
+                while (m_head != null) {
+                    Segment segment = m_head;
+                    m_head = segment.m_next;
+                    delete(segment);
+                }
+
+                m_tail = createSegment(sequence, m_segmentSize);
+                m_head = m_tail;
+                m_count.set(0L);
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * Forces all entries that were put on the queue, and the positions of the entries that were taken, to disk. Does
+     * nothing if the fifo has been closed, which already forced everything to disk.
+     */
+    public void sync() {
+        synchronized (m_putLock) {
+            if (m_closed) {
+                return;
+            }
+
+            m_tail.force();
+            m_lastSync = System.currentTimeMillis();
+        }
+
+        synchronized (m_takeLock) {
+            if (!m_closed) {
+                m_head.force();
+            }
+        }
+    }
+
+    /**
+     * Forces all entries to disk and releases the segment files. Afterwards, puts and takes fail with an
+     * {@link IOException} instead of touching the released mappings; closing again does nothing.
+     */
+    public void close() {
+        synchronized (m_putLock) {
+            synchronized (m_takeLock) {
+                if (m_closed) {
+                    return;
+                }
+
+                m_closed = true;
+                for (Segment segment = m_head; segment != null; segment = segment.m_next) {
+                    segment.close();
+                }
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * Returns the total size of all segment files, in bytes.
+     *
+     * @return the size of the spool on disk
+     */
+    public long getTotalSize() {
+        return m_totalBytes.get();
+    }
+
+    /**
+     * Fails if the fifo has been closed; using a segment whose mapping has been released would crash the VM. Must be
+     * called with the put or the take lock held.
+     */
+    private void checkOpen() throws IOException {
+        if (m_closed) {
+            throw new IOException(LOG.getMsgString(CommI18NResourceKeys.SEGMENTED_FIFO_CLOSED, m_directory));
+        }
+    }
+
+    /**
+     * Seals the tail segment and starts a new one big enough for an entry of the given size, purging the oldest
+     * segments if the new segment would make the spool too large. Must be called with the put lock held.
+     */
+    private void roll(int entry_size) throws IOException {
+        m_tail.force();
+        m_lastSync = System.currentTimeMillis();
+
+        int capacity = (int) Math.max(m_segmentSize, (long) SEGMENT_HEADER_SIZE + ENTRY_HEADER_SIZE + entry_size);
+
+        if ((m_totalBytes.get() + capacity) > m_maxSizeBytes) {
+            purge(capacity);
+        }
+
+        Segment segment = createSegment(m_tail.m_sequence + 1L, capacity);
+        m_tail.m_next = segment; // publishes the new segment to the takers
+        m_tail = segment;
+
+        return;
+    }
+
+    /**
+     * Deletes the oldest segments until adding a segment of the given size stays within the purge percentage. Must be
+     * called with the put lock held.
+     */
+    private void purge(int capacity) {
+        long purged = 0L;
+
+        synchronized (m_takeLock) {
+            while ((m_head != m_tail) && ((m_totalBytes.get() + capacity) > m_purgeResultMaxBytes)) {
+                Segment segment = m_head;
+                purged += segment.countEntries(segment.m_readPosition);
+                m_head = segment.m_next;
+                delete(segment);
+            }
+
+            m_count.addAndGet(-purged);
+        }
+
+        if (purged > 0L) {
+            LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_PURGED, m_directory, purged);
+        }
+
+        return;
+    }
+
+    /**
+     * Opens all existing segments, rebuilding the entry count, and appends a new, empty tail segment.
+     */
+    private void recover() throws IOException {
+        Segment last = null;
+        long next_sequence = 0L;
+
+        for (File file : listSegmentFiles(m_directory)) {
+            long sequence = getSequence(file);
+            next_sequence = sequence + 1L;
+
+            Segment segment;
+            try {
+                segment = Segment.open(file, sequence, false);
+            } catch (IOException e) {
+                LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_CORRUPT_SEGMENT, file, 0, e);
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                continue;
+            }
+
+            long count = segment.countEntries(segment.m_readPosition);
+            if (count == 0L) {
+                // everything in it has been taken already
+                segment.close();
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                continue;
+            }
+
+            m_count.addAndGet(count);
+            m_totalBytes.addAndGet(segment.m_capacity);
+
+            if (last == null) {
+                m_head = segment;
+            } else {
+                last.m_next = segment;
+            }
+            last = segment;
+        }
+
+        m_tail = createSegment(next_sequence, m_segmentSize);
+        if (last == null) {
+            m_head = m_tail;
+        } else {
+            last.m_next = m_tail;
+        }
+
+        m_lastSync = System.currentTimeMillis();
+
+        return;
+    }
+
+    private Segment createSegment(long sequence, int capacity) throws IOException {
+        Segment segment = Segment.create(new File(m_directory, getSegmentFileName(sequence)), sequence, capacity);
+        m_totalBytes.addAndGet(capacity);
+        return segment;
+    }
+
+    private void delete(Segment segment) {
+        m_totalBytes.addAndGet(-segment.m_capacity);
+        segment.close();
+
+        // on some platforms a file cannot be deleted while it is still mapped; its read offset says it has been
+        // fully consumed, so it is simply deleted the next time the spool is opened
+        if (!segment.m_file.delete()) {
+            LOG.debug(CommI18NResourceKeys.SEGMENTED_FIFO_DELETE_FAILED, segment.m_file);
+        }
+
+        return;
+    }
+
+    private static File[] listSegmentFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        // the file names are zero-padded sequence numbers, so they sort in queue order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static String getSegmentFileName(long sequence) {
+        String digits = String.valueOf(sequence);
+        StringBuilder name = new StringBuilder(20 + SEGMENT_FILE_SUFFIX.length());
+        for (int i = digits.length(); i < 20; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(SEGMENT_FILE_SUFFIX).toString();
+    }
+
+    private static long getSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * A single memory mapped segment file. Its entries are appended by the thread holding the put lock and read by the
+     * thread holding the take lock; the two only share {@link #m_writePosition} and {@link #m_next}.
+     */
+    private static class Segment {
+        private final File m_file;
+        private final long m_sequence;
+        private final int m_capacity;
+        private final MappedByteBuffer m_buffer;
+        private final ByteBuffer m_writer; // only used with the put lock held
+        private final ByteBuffer m_reader; // only used with the take lock held
+
+        // the end of the last complete entry
+        private volatile int m_writePosition;
+        // the segment following this one, set once this segment is sealed
+        private volatile Segment m_next;
+        // the start of the next entry to take
+        private int m_readPosition;
+
+        static Segment create(File file, long sequence, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(capacity);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, capacity);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(READ_OFFSET_POSITION, SEGMENT_HEADER_SIZE);
+                return new Segment(file, sequence, buffer, SEGMENT_HEADER_SIZE, SEGMENT_HEADER_SIZE);
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+        }
+
+        static Segment open(File file, long sequence, boolean read_only) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, read_only ? "r" : "rw");
+            try {
+                long length = raf.length();
+                if ((length < SEGMENT_HEADER_SIZE) || (length > Integer.MAX_VALUE)) {
+                    throw new IOException(file.getAbsolutePath() + ": " + length);
+                }
+
+                MappedByteBuffer buffer = raf.getChannel().map(
+                    read_only ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0L, length);
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException(file.getAbsolutePath());
+                }
+
+                int capacity = (int) length;
+                int write_position = scan(file, buffer, capacity);
+                int read_position = buffer.getInt(READ_OFFSET_POSITION);
+                if ((read_position < SEGMENT_HEADER_SIZE) || (read_position > write_position)) {
+                    read_position = write_position;
+                }
+
+                return new Segment(file, sequence, buffer, write_position, read_position);
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+        }
+
+        /**
+         * Walks the entries of the segment and returns the end of the last valid one.
+         */
+        private static int scan(File file, ByteBuffer buffer, int capacity) {
+            ByteBuffer reader = buffer.duplicate();
+            CRC32 crc = new CRC32();
+            int position = SEGMENT_HEADER_SIZE;
+
+            while ((position + ENTRY_HEADER_SIZE) <= capacity) {
+                int stored_length = buffer.getInt(position);
+                if (stored_length == 0) {
+                    break; // the unused rest of the segment
+                }
+
+                int length = stored_length - 1;
+                if ((length < 0) || (length > (capacity - position - ENTRY_HEADER_SIZE))) {
+                    LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_CORRUPT_SEGMENT, file, position, "length="
+                        + length);
+                    break;
+                }
+
+                byte[] data = new byte[length];
+                reader.position(position + ENTRY_HEADER_SIZE);
+                reader.get(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_CORRUPT_SEGMENT, file, position, "crc");
+                    break;
+                }
+
+                position += ENTRY_HEADER_SIZE + length;
+            }
+
+            return position;
+        }
+
+        private Segment(File file, long sequence, MappedByteBuffer buffer, int write_position, int read_position) {
+            m_file = file;
+            m_sequence = sequence;
+            m_capacity = buffer.capacity();
+            m_buffer = buffer;
+            m_writer = buffer.duplicate();
+            m_reader = buffer.duplicate();
+            m_writePosition = write_position;
+            m_readPosition = read_position;
+        }
+
+        boolean hasRoomFor(int length) {
+            return ((long) m_writePosition + ENTRY_HEADER_SIZE + length) <= m_capacity;
+        }
+
+        void append(byte[] data) {
+            int position = m_writePosition;
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            m_buffer.putInt(position + 4, (int) crc.getValue());
+            m_writer.position(position + ENTRY_HEADER_SIZE);
+            m_writer.put(data);
+            m_buffer.putInt(position, data.length + 1);
+
+            // publishes the entry to the takers
+            m_writePosition = position + ENTRY_HEADER_SIZE + data.length;
+        }
+
+        /**
+         * Reads the next entry and moves the read offset past it.
+         *
+         * @return the next entry or <code>null</code> if all entries written so far have been read
+         */
+        byte[] read() {
+            int position = m_readPosition;
+            if (position >= m_writePosition) {
+                return null;
+            }
+
+            byte[] data = new byte[m_buffer.getInt(position) - 1];
+            m_reader.position(position + ENTRY_HEADER_SIZE);
+            m_reader.get(data);
+
+            m_readPosition = position + ENTRY_HEADER_SIZE + data.length;
+            if (!m_buffer.isReadOnly()) {
+                m_buffer.putInt(READ_OFFSET_POSITION, m_readPosition);
+            }
+
+            return data;
+        }
+
+        /**
+         * Counts the entries from the given position up to the write position.
+         */
+        long countEntries(int from) {
+            long count = 0L;
+            int position = from;
+            int end = m_writePosition;
+            while (position < end) {
+                position += ENTRY_HEADER_SIZE + m_buffer.getInt(position) - 1;
+                count++;
+            }
+            return count;
+        }
+
+        void force() {
+            if (!m_buffer.isReadOnly()) {
+                m_buffer.force();
+            }
+        }
+
+        /**
+         * Releases the mapping. The segment must not be used afterwards.
+         */
+        void close() {
+            force();
+
+            // there is no public API to unmap a buffer before it is garbage collected, which would keep the file
+            // from being deleted on some platforms; use the VM's cleaner if there is one
+            try {
+                Method cleaner_method = m_buffer.getClass().getMethod("cleaner");
+                cleaner_method.setAccessible(true);
+                Object cleaner = cleaner_method.invoke(m_buffer);
+                if (cleaner != null) {
+                    Method clean_method = cleaner.getClass().getMethod("clean");
+                    clean_method.setAccessible(true);
+                    clean_method.invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // not available on this VM, the mapping is released when the buffer is garbage collected
+            }
+        }
+
+        @Override
+        public String toString() {
+            return m_file.getName() + "[read=" + m_readPosition + ", write=" + m_writePosition + ", capacity="
+                + m_capacity + "]";
+        }
+    }
+}
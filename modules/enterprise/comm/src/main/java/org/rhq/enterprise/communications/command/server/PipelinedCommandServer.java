@@ -0,0 +1,452 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mazz.i18n.Logger;
+
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.ServerInvocationHandler;
+
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.enterprise.communications.command.Command;
+import org.rhq.enterprise.communications.command.CommandResponse;
+import org.rhq.enterprise.communications.command.impl.generic.GenericCommandResponse;
+import org.rhq.enterprise.communications.i18n.CommI18NFactory;
+import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
+import org.rhq.enterprise.communications.util.PipelinedFrameCodec;
+
+/**
+ * Listens for connections from {@link org.rhq.enterprise.communications.command.client.PipelinedRemoteCommunicator}
+ * clients. Each connection carries many commands at once; they are handed to the same {@link CommandProcessor} that
+ * processes the commands coming in over JBoss/Remoting (so authentication, command listeners, concurrency limits and
+ * metrics all apply) and each response is written back with the correlation ID of its command as soon as it is ready.
+ *
+ * <p>One I/O thread accepts, reads and writes for all connections; a fixed pool of worker threads executes the
+ * commands. When a connection has as many commands executing as it is allowed, or the commands of all connections
+ * fill up the workers and their bounded queue, the listener stops reading from the connection until some of them
+ * finish - the client then sees the backpressure through TCP flow control and this server never queues more than it
+ * can handle. The number of connections is limited as well; connections beyond the limit are closed right after they
+ * are accepted. Together with the {@link PipelinedFrameCodec#MAX_PAYLOAD_SIZE maximum frame size} this bounds the
+ * memory that unauthenticated peers can make the listener hold.</p>
+ */
+public class PipelinedCommandServer {
+    private static final Logger LOG = CommI18NFactory.getLogger(PipelinedCommandServer.class);
+
+    private final String m_bindAddress;
+    private final int m_bindPort;
+    private final String m_subsystem;
+    private final ServerInvocationHandler m_processor;
+    private final int m_maxConcurrent;
+    private final int m_maxConnections;
+    private final int m_maxPending; // commands of all connections executing or waiting for a worker
+
+    private ServerSocketChannel m_serverChannel;
+    private volatile Selector m_selector;
+    private Thread m_ioThread;
+    private ThreadPoolExecutor m_workers;
+    private volatile boolean m_running;
+    private final AtomicInteger m_workerIndex = new AtomicInteger(0);
+    private final AtomicInteger m_pending = new AtomicInteger(0);
+    private int m_connectionCount; // only used by the I/O thread
+
+    /**
+     * Connections that have new responses to write or that may be able to resume reading.
+     */
+    private final ConcurrentLinkedQueue<Connection> m_ready = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Connections whose reading is suspended; only used by the I/O thread.
+     */
+    private final List<Connection> m_suspended = new LinkedList<Connection>();
+
+    /**
+     * Creates the listener; it won't accept connections until {@link #start() started}.
+     *
+     * @param bind_address    the address to bind to (<code>null</code> binds to all addresses)
+     * @param bind_port       the port to bind to (0 picks a free port)
+     * @param subsystem       the subsystem that all incoming commands are destined for
+     * @param processor       the processor that executes the incoming commands (normally a {@link CommandProcessor})
+     * @param max_concurrent  the number of commands that can execute concurrently; as many more can wait for a worker
+     *                        thread, and each connection is limited to this many commands being executed at any one
+     *                        time
+     * @param max_connections the number of connections that can be open at the same time
+     */
+    public PipelinedCommandServer(String bind_address, int bind_port, String subsystem,
+        ServerInvocationHandler processor, int max_concurrent, int max_connections) {
+        m_bindAddress = bind_address;
+        m_bindPort = bind_port;
+        m_subsystem = subsystem;
+        m_processor = processor;
+        m_maxConcurrent = Math.max(1, max_concurrent);
+        m_maxConnections = Math.max(1, max_connections);
+        m_maxPending = m_maxConcurrent * 2;
+    }
+
+    /**
+     * Binds the server socket and starts accepting connections.
+     *
+     * @throws IOException if the server socket could not be bound
+     */
+    public synchronized void start() throws IOException {
+        if (m_running) {
+            return;
+        }
+
+        m_selector = Selector.open();
+        m_serverChannel = ServerSocketChannel.open();
+        m_serverChannel.socket().setReuseAddress(true);
+
+        try {
+            InetSocketAddress address = (m_bindAddress != null) ? new InetSocketAddress(m_bindAddress, m_bindPort)
+                : new InetSocketAddress(m_bindPort);
+            m_serverChannel.socket().bind(address);
+            m_serverChannel.configureBlocking(false);
+            m_serverChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            m_serverChannel.close();
+            m_selector.close();
+            throw e;
+        }
+
+        // reading stops at m_maxPending commands; the queue has room for all of them so that a command submitted
+        // while a worker is still on its way back from responding is never rejected
+        m_workers = new ThreadPoolExecutor(m_maxConcurrent, m_maxConcurrent, 60000L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(m_maxPending));
+        m_workers.allowCoreThreadTimeOut(true);
+        m_workers.setThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PipelinedCommandServer Worker #" + m_workerIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        m_running = true;
+        m_ioThread = new Thread(new Runnable() {
+            public void run() {
+                runIoLoop();
+            }
+        }, "PipelinedCommandServer I/O Thread");
+        m_ioThread.setDaemon(true);
+        m_ioThread.start();
+
+        LOG.info(CommI18NResourceKeys.PIPELINED_SERVER_STARTED, m_serverChannel.socket().getInetAddress()
+            .getHostAddress(), getBoundPort());
+
+        return;
+    }
+
+    /**
+     * Closes all connections and stops accepting new ones. Commands that are currently executing are allowed to
+     * finish but their responses are not sent.
+     */
+    public synchronized void stop() {
+        if (!m_running) {
+            return;
+        }
+
+        m_running = false;
+        m_selector.wakeup();
+
+        try {
+            m_ioThread.join(10000L);
+        } catch (InterruptedException ie) {
+        }
+
+        try {
+            for (SelectionKey key : m_selector.keys()) {
+                key.channel().close();
+            }
+            m_selector.close();
+        } catch (Exception e) {
+            LOG.warn(e, CommI18NResourceKeys.PIPELINED_SERVER_STOP_FAILURE);
+        }
+
+        m_workers.shutdown();
+        m_ioThread = null;
+        m_ready.clear();
+        m_suspended.clear();
+        m_connectionCount = 0;
+
+        return;
+    }
+
+    /**
+     * Returns the port the server socket is actually bound to.
+     *
+     * @return the bound port, or -1 if not started
+     */
+    public synchronized int getBoundPort() {
+        return (m_running) ? m_serverChannel.socket().getLocalPort() : -1;
+    }
+
+    private void runIoLoop() {
+        try {
+            while (m_running) {
+                boolean finished = false;
+                for (Connection connection = m_ready.poll(); connection != null; connection = m_ready.poll()) {
+                    connection.flush();
+                    finished = true;
+                }
+
+                if (finished) {
+                    resumeSuspendedReads();
+                }
+
+                m_selector.select();
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            if (m_running) {
+                LOG.error(t, CommI18NResourceKeys.PIPELINED_SERVER_IO_THREAD_FAILED);
+            }
+        }
+
+        return;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = m_serverChannel.accept();
+        if (channel != null) {
+            if (m_connectionCount >= m_maxConnections) {
+                LOG.warn(CommI18NResourceKeys.PIPELINED_SERVER_TOO_MANY_CONNECTIONS, channel.socket()
+                    .getRemoteSocketAddress(), m_maxConnections);
+                channel.close();
+                return;
+            }
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.m_key = channel.register(m_selector, SelectionKey.OP_READ, connection);
+            m_connectionCount++;
+        }
+    }
+
+    /**
+     * Lets the connections whose reading was suspended read again, as far as there is room for their commands now.
+     */
+    private void resumeSuspendedReads() {
+        for (Iterator<Connection> iter = m_suspended.iterator(); iter.hasNext();) {
+            if (m_pending.get() >= m_maxPending) {
+                break;
+            }
+
+            if (iter.next().resumeReadingIfPossible()) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Executes the command in the given frame payload; called in a worker thread.
+     */
+    private byte[] execute(long correlation_id, byte[] payload) {
+        CommandResponse response;
+
+        try {
+            Command command = (Command) PipelinedFrameCodec.decode(payload);
+            response = (CommandResponse) m_processor.invoke(new InvocationRequest(null, m_subsystem, command, null,
+                null, null));
+        } catch (Throwable t) {
+            response = new GenericCommandResponse(null, false, null, t);
+        }
+
+        try {
+            return PipelinedFrameCodec.encode(correlation_id, response);
+        } catch (Throwable t) {
+            // most likely the results are not serializable - at least let the client know why it got no results
+            try {
+                return PipelinedFrameCodec.encode(correlation_id, new GenericCommandResponse(null, false, null,
+                    new Exception(ThrowableUtil.getAllMessages(t))));
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe); // cannot happen, a generic response is small
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection. All methods but {@link #respond(ByteBuffer)} run in the I/O thread.
+     */
+    private class Connection {
+        private final SocketChannel m_channel;
+        private final PipelinedFrameCodec m_reader = new PipelinedFrameCodec();
+        private final ConcurrentLinkedQueue<ByteBuffer> m_responses = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicInteger m_executing = new AtomicInteger(0);
+        private SelectionKey m_key;
+        private boolean m_readSuspended;
+        private boolean m_closed;
+
+        Connection(SocketChannel channel) {
+            m_channel = channel;
+        }
+
+        void read() {
+            try {
+                while (true) {
+                    if ((m_executing.get() >= m_maxConcurrent) || (m_pending.get() >= m_maxPending)) {
+                        // stop reading until some of this client's commands, or the commands of all clients, finish
+                        m_readSuspended = true;
+                        m_key.interestOps(m_key.interestOps() & ~SelectionKey.OP_READ);
+                        m_suspended.add(this);
+                        break;
+                    }
+
+                    if (!m_reader.readFrame(m_channel)) {
+                        break;
+                    }
+
+                    final long id = m_reader.getCorrelationId();
+                    final byte[] payload = m_reader.getPayload();
+
+                    m_executing.incrementAndGet();
+                    m_pending.incrementAndGet();
+                    try {
+                        m_workers.execute(new Runnable() {
+                            public void run() {
+                                respond(ByteBuffer.wrap(execute(id, payload)));
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        m_executing.decrementAndGet();
+                        m_pending.decrementAndGet();
+                        throw e;
+                    }
+                }
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        void respond(ByteBuffer frame) {
+            m_responses.add(frame);
+            m_executing.decrementAndGet();
+            m_pending.decrementAndGet();
+            m_ready.add(this);
+
+            Selector selector = m_selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        void flush() {
+            if (!m_key.isValid()) {
+                m_responses.clear(); // the connection was closed, nobody to respond to
+                return;
+            }
+
+            try {
+                ByteBuffer frame;
+                while ((frame = m_responses.peek()) != null) {
+                    m_channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        break;
+                    }
+                    m_responses.poll();
+                }
+
+                int ops = m_key.interestOps();
+                m_key.interestOps(m_responses.isEmpty() ? (ops & ~SelectionKey.OP_WRITE)
+                    : (ops | SelectionKey.OP_WRITE));
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the connection no longer needs to be resumed - it reads again or is closed
+         */
+        boolean resumeReadingIfPossible() {
+            if (!m_key.isValid()) {
+                return true;
+            }
+
+            if (m_readSuspended && (m_executing.get() < m_maxConcurrent) && (m_pending.get() < m_maxPending)) {
+                m_readSuspended = false;
+                m_key.interestOps(m_key.interestOps() | SelectionKey.OP_READ);
+            }
+
+            return !m_readSuspended;
+        }
+
+        private void close(Exception cause) {
+            if (m_closed) {
+                return;
+            }
+
+            m_closed = true;
+            m_connectionCount--;
+
+            if (!(cause instanceof EOFException)) {
+                LOG.debug(CommI18NResourceKeys.PIPELINED_SERVER_CONNECTION_CLOSED, m_channel.socket()
+                    .getRemoteSocketAddress(), ThrowableUtil.getAllMessages(cause));
+            }
+
+            m_key.cancel();
+            try {
+                m_channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -237,6 +237,63 @@ public interface CommI18NResourceKeys {
         @I18NMessage(value = "Die Maximalgrüße [{0}] muss größer oder gleich [{1}] sein", locale = "de") })
     String INVALID_MAX_SIZE = "PersistentFifo.invalid-max-size";
 
+    @I18NMessages( { @I18NMessage("The segment [{0}] of the command spool is invalid at offset [{1}] - the entries from there on are lost. Cause: {2}") })
+    String SEGMENTED_FIFO_CORRUPT_SEGMENT = "SegmentedPersistentFifo.corrupt-segment";
+
+    @I18NMessages( { @I18NMessage("The command spool [{0}] reached its maximum size - the oldest [{1}] entries have been purged to make room for new ones") })
+    String SEGMENTED_FIFO_PURGED = "SegmentedPersistentFifo.purged";
+
+    @I18NMessages( { @I18NMessage("Could not delete the consumed command spool segment [{0}] - it will be deleted the next time the spool is opened") })
+    String SEGMENTED_FIFO_DELETE_FAILED = "SegmentedPersistentFifo.delete-failed";
+
+    @I18NMessages( { @I18NMessage("The command spool [{0}] has been closed") })
+    String SEGMENTED_FIFO_CLOSED = "SegmentedPersistentFifo.closed";
+
+    @I18NMessages( { @I18NMessage("Failed to connect to {0} - the commands waiting to be sent have failed. Cause: {1}") })
+    String PIPELINED_COMM_CONNECT_FAILED = "PipelinedRemoteCommunicator.connect-failed";
+
+    @I18NMessages( { @I18NMessage("Could not connect to {0} within [{1}] milliseconds") })
+    String PIPELINED_COMM_CONNECT_TIMEOUT = "PipelinedRemoteCommunicator.connect-timeout";
+
+    @I18NMessages( { @I18NMessage("Lost the connection to {0} with [{1}] commands in flight. Cause: {2}") })
+    String PIPELINED_COMM_CONNECTION_LOST = "PipelinedRemoteCommunicator.connection-lost";
+
+    @I18NMessages( { @I18NMessage("{0} was disconnected before command [{1}] completed") })
+    String PIPELINED_COMM_DISCONNECTED = "PipelinedRemoteCommunicator.disconnected";
+
+    @I18NMessages( { @I18NMessage("Command [{0}] did not complete within [{1}] milliseconds") })
+    String PIPELINED_COMM_TIMEOUT = "PipelinedRemoteCommunicator.timeout";
+
+    @I18NMessages( { @I18NMessage("Failed to read the response to command [{0}]. Cause: {1}") })
+    String PIPELINED_COMM_BAD_RESPONSE = "PipelinedRemoteCommunicator.bad-response";
+
+    @I18NMessages( { @I18NMessage("The response handler for command [{0}] failed") })
+    String PIPELINED_COMM_HANDLER_FAILED = "PipelinedRemoteCommunicator.handler-failed";
+
+    @I18NMessages( { @I18NMessage("The I/O thread for {0} failed - it will be restarted when the next command is sent") })
+    String PIPELINED_COMM_IO_THREAD_FAILED = "PipelinedRemoteCommunicator.io-thread-failed";
+
+    @I18NMessages( { @I18NMessage("Pipelined command listener is accepting connections on [{0}:{1}]") })
+    String PIPELINED_SERVER_STARTED = "PipelinedCommandServer.started";
+
+    @I18NMessages( { @I18NMessage("The pipelined command listener does not support SSL; it is not started on port [{0}] because the connector transport [{1}] is secure") })
+    String PIPELINED_SERVER_DISABLED_SECURE_TRANSPORT = "PipelinedCommandServer.disabled-secure-transport";
+
+    @I18NMessages( { @I18NMessage("Closed the pipelined connection from [{0}]. Cause: {1}") })
+    String PIPELINED_SERVER_CONNECTION_CLOSED = "PipelinedCommandServer.connection-closed";
+
+    @I18NMessages( { @I18NMessage("Refused the pipelined connection from [{0}] - the listener already has the maximum of [{1}] connections") })
+    String PIPELINED_SERVER_TOO_MANY_CONNECTIONS = "PipelinedCommandServer.too-many-connections";
+
+    @I18NMessages( { @I18NMessage("The pipelined command listener's I/O thread failed - no more pipelined commands will be accepted") })
+    String PIPELINED_SERVER_IO_THREAD_FAILED = "PipelinedCommandServer.io-thread-failed";
+
+    @I18NMessages( { @I18NMessage("Failed to cleanly stop the pipelined command listener; this will be ignored and the shutdown will continue") })
+    String PIPELINED_SERVER_STOP_FAILURE = "PipelinedCommandServer.stop-failure";
+
+    @I18NMessages( { @I18NMessage("Too many commands stayed outstanding on {0} - no room opened up in time and command [{1}] was not sent") })
+    String CLIENT_COMMAND_SENDER_PIPELINE_FULL = "ClientCommandSender.pipeline-full";
+
     @I18NMessages( { @I18NMessage("Failed to execute remote POJO method [{0}]. Cause: {1}") })
     String CLIENT_REMOTE_POJO_INVOKER_EXECUTION_FAILURE = "ClientRemotePojoFactory.execution-failure";
 
@@ -346,6 +403,9 @@ public interface CommI18NResourceKeys {
     @I18NMessages( { @I18NMessage("Cannot access the command spool file [{0}] - cannot guarantee the delivery of commands to [{1}]. Cause: {2}") })
     String CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR = "ClientCommandSender.command-spool-access-error";
 
+    @I18NMessages( { @I18NMessage("Moved [{0}] spooled commands from the command spool file [{1}] to the segmented command spool [{2}]") })
+    String CLIENT_COMMAND_SENDER_COMMAND_SPOOL_MIGRATED = "ClientCommandSender.command-spool-migrated";
+
     @I18NMessages( { @I18NMessage("Failed to queue up the previously queued tasks - some commands are lost for [{0}]") })
     String CLIENT_COMMAND_SENDER_REQUEUE_FAILED = "ClientCommandSender.requeue-failed";
 
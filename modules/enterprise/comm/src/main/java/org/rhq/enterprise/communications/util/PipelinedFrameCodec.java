@@ -0,0 +1,177 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.rhq.core.util.stream.StreamUtil;
+
+/**
+ * Reads and writes the frames that the pipelined transport sends over its connections. A frame is a 4-byte payload
+ * length, an 8-byte correlation ID and the serialized payload (a command going out, its response coming back). The
+ * correlation ID is what allows many commands to be in flight on the same connection at once - a response carries the
+ * ID of the command it answers and the responses can arrive in any order.
+ *
+ * <p>One instance of this object is used per connection to assemble the frames arriving on it; frames may be split
+ * across any number of non-blocking reads. Instances are not thread safe - they are meant to be used by the one
+ * thread that performs the reads of its connection.</p>
+ */
+public class PipelinedFrameCodec {
+    /**
+     * The number of bytes in the frame header - the payload length followed by the correlation ID.
+     */
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * Frames whose payload is larger than this are considered corrupt and the connection will be dropped. The largest
+     * commands agents send, full inventory reports of big agents, serialize to a few megabytes; the limit leaves room
+     * for those while keeping what an unauthenticated peer can make the listener buffer small.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The payload buffer starts at most this big and grows as the payload actually arrives, so a frame header alone
+     * cannot make the reader allocate {@link #MAX_PAYLOAD_SIZE} bytes.
+     */
+    private static final int INITIAL_PAYLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer m_header = ByteBuffer.allocate(HEADER_SIZE);
+    private ByteBuffer m_payload;
+    private int m_payloadLength;
+    private long m_correlationId;
+
+    /**
+     * Serializes the given object and returns the complete frame, ready to be written to a channel.
+     *
+     * @param  correlation_id the ID that the response to this frame will carry
+     * @param  payload        the object to send
+     *
+     * @return the bytes of the frame
+     *
+     * @throws IOException if the payload is too large to be sent
+     */
+    public static byte[] encode(long correlation_id, Serializable payload) throws IOException {
+        byte[] data = StreamUtil.serialize(payload);
+
+        if (data.length > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Serialized size [" + data.length + "] exceeds the maximum frame size ["
+                + MAX_PAYLOAD_SIZE + "]");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        frame.putInt(data.length);
+        frame.putLong(correlation_id);
+        frame.put(data);
+
+        return frame.array();
+    }
+
+    /**
+     * Deserializes a payload that was {@link #getPayload() read} from a frame.
+     *
+     * @param  payload the payload bytes
+     *
+     * @return the object that was sent
+     */
+    public static Object decode(byte[] payload) {
+        return StreamUtil.deserialize(payload);
+    }
+
+    /**
+     * Reads as much as is available from the channel without blocking. If this completes a frame, <code>true</code> is
+     * returned and the frame can be obtained via {@link #getCorrelationId()} and {@link #getPayload()}; the caller
+     * should then call this method again since more frames may already be available.
+     *
+     * @param  channel the non-blocking channel to read from
+     *
+     * @return <code>true</code> if a complete frame has been read
+     *
+     * @throws EOFException if the other side closed the connection
+     * @throws IOException  if the read failed or the stream is corrupt
+     */
+    public boolean readFrame(ReadableByteChannel channel) throws IOException {
+        if (m_payload == null) {
+            if (channel.read(m_header) < 0) {
+                throw new EOFException();
+            }
+
+            if (m_header.hasRemaining()) {
+                return false;
+            }
+
+            m_header.flip();
+            int length = m_header.getInt();
+            m_correlationId = m_header.getLong();
+            m_header.clear();
+
+            if ((length < 0) || (length > MAX_PAYLOAD_SIZE)) {
+                throw new IOException("Invalid frame length [" + length + "] - the stream is corrupt");
+            }
+
+            m_payloadLength = length;
+            m_payload = ByteBuffer.allocate(Math.min(length, INITIAL_PAYLOAD_BUFFER_SIZE));
+        }
+
+        while (m_payload.position() < m_payloadLength) {
+            if (!m_payload.hasRemaining()) {
+                int capacity = (int) Math.min((long) m_payload.capacity() * 2L, m_payloadLength);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                m_payload.flip();
+                grown.put(m_payload);
+                m_payload = grown;
+            }
+
+            int read = channel.read(m_payload);
+            if (read < 0) {
+                throw new EOFException();
+            }
+
+            if (read == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the correlation ID of the frame that was just completed by {@link #readFrame(ReadableByteChannel)}.
+     *
+     * @return correlation ID
+     */
+    public long getCorrelationId() {
+        return m_correlationId;
+    }
+
+    /**
+     * Returns the payload of the frame that was just completed by {@link #readFrame(ReadableByteChannel)} and resets
+     * this object so it can assemble the next frame.
+     *
+     * @return the payload bytes, to be passed to {@link #decode(byte[])}
+     */
+    public byte[] getPayload() {
+        byte[] data = m_payload.array();
+        m_payload = null;
+        return data;
+    }
+}
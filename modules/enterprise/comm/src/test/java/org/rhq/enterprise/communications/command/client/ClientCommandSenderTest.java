@@ -141,6 +141,144 @@ public class ClientCommandSenderTest {
         return;
     }
 
+    /**
+     * Tests that the commands of an old single file spool are moved into the segmented spool ahead of the commands
+     * that are already in it, and that the old file is removed.
+     *
+     * @throws Exception
+     */
+    public void testMigrateCommandSpoolFile() throws Exception {
+        ClientCommandSenderConfiguration config = createConfig();
+        config.dataDirectory = File.createTempFile("command-spool-migration", ".dir");
+        config.dataDirectory.delete();
+        config.dataDirectory.mkdirs();
+        config.commandSpoolFileSegmented = true;
+
+        File cmd_spool_file = new File(config.dataDirectory, config.commandSpoolFileName);
+        File cmd_spool_dir = SegmentedPersistentFifo.getSegmentDirectory(cmd_spool_file);
+
+        try {
+            PersistentFifo old_fifo = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
+                config.commandSpoolFilePurgePercentage, false);
+            for (int i = 0; i < 100; i++) {
+                old_fifo.put(("old-" + i).getBytes());
+            }
+
+            SegmentedPersistentFifo new_fifo = new SegmentedPersistentFifo(cmd_spool_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+            for (int i = 0; i < 10; i++) {
+                new_fifo.put(("new-" + i).getBytes());
+            }
+            new_fifo.sync();
+
+            ClientCommandSender sender = new ClientCommandSender(new DummyRemoteCommunicator(), config);
+            sender.stopSending(false);
+
+            assert !cmd_spool_file.exists() : "the old spool file should have been deleted";
+            assert !new File(config.dataDirectory, cmd_spool_dir.getName() + ".migrating").exists();
+
+            SegmentedPersistentFifo migrated = new SegmentedPersistentFifo(cmd_spool_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+            assert migrated.count() == 110 : "commands are missing: " + migrated.count();
+            for (int i = 0; i < 100; i++) {
+                String entry = new String(migrated.take());
+                assert entry.equals("old-" + i) : "the old commands go first: " + entry;
+            }
+            for (int i = 0; i < 10; i++) {
+                String entry = new String(migrated.take());
+                assert entry.equals("new-" + i) : "the newer commands keep their order: " + entry;
+            }
+            assert migrated.isEmpty();
+        } finally {
+            File[] segments = cmd_spool_dir.listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    segment.delete();
+                }
+            }
+            cmd_spool_dir.delete();
+            cmd_spool_file.delete();
+            config.dataDirectory.delete();
+        }
+
+        return;
+    }
+
+    /**
+     * Tests that a migration that was interrupted after the newer commands were moved aside and some of the old
+     * commands were moved over is resumed without changing the order of the commands.
+     *
+     * @throws Exception
+     */
+    public void testResumeInterruptedMigration() throws Exception {
+        ClientCommandSenderConfiguration config = createConfig();
+        config.dataDirectory = File.createTempFile("command-spool-migration", ".dir");
+        config.dataDirectory.delete();
+        config.dataDirectory.mkdirs();
+        config.commandSpoolFileSegmented = true;
+
+        File cmd_spool_file = new File(config.dataDirectory, config.commandSpoolFileName);
+        File cmd_spool_dir = SegmentedPersistentFifo.getSegmentDirectory(cmd_spool_file);
+        File newer_dir = new File(config.dataDirectory, cmd_spool_dir.getName() + ".migrating");
+
+        try {
+            PersistentFifo old_fifo = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
+                config.commandSpoolFilePurgePercentage, false);
+            for (int i = 40; i < 100; i++) {
+                old_fifo.put(("old-" + i).getBytes());
+            }
+
+            SegmentedPersistentFifo new_fifo = new SegmentedPersistentFifo(cmd_spool_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+            for (int i = 0; i < 40; i++) {
+                new_fifo.put(("old-" + i).getBytes());
+            }
+            new_fifo.close();
+
+            SegmentedPersistentFifo newer_fifo = new SegmentedPersistentFifo(newer_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+            for (int i = 0; i < 10; i++) {
+                newer_fifo.put(("new-" + i).getBytes());
+            }
+            newer_fifo.close();
+            new File(newer_dir, "moved-aside").createNewFile();
+
+            ClientCommandSender sender = new ClientCommandSender(new DummyRemoteCommunicator(), config);
+            sender.stopSending(false);
+
+            assert !cmd_spool_file.exists() : "the old spool file should have been deleted";
+            assert !newer_dir.exists() : "the temporary spool should have been deleted";
+
+            SegmentedPersistentFifo migrated = new SegmentedPersistentFifo(cmd_spool_dir,
+                config.commandSpoolFileMaxSize, config.commandSpoolFilePurgePercentage, false);
+            assert migrated.count() == 110 : "commands are missing or duplicated: " + migrated.count();
+            for (int i = 0; i < 100; i++) {
+                String entry = new String(migrated.take());
+                assert entry.equals("old-" + i) : "the old commands go first: " + entry;
+            }
+            for (int i = 0; i < 10; i++) {
+                String entry = new String(migrated.take());
+                assert entry.equals("new-" + i) : "the newer commands keep their order: " + entry;
+            }
+            assert migrated.isEmpty();
+            migrated.close();
+        } finally {
+            for (File dir : new File[] { cmd_spool_dir, newer_dir }) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                dir.delete();
+            }
+            cmd_spool_file.delete();
+            config.dataDirectory.delete();
+        }
+
+        return;
+    }
+
     /**
      * Tests sending a guaranteed command that takes too long to complete and therefore times out. We will stop the
      * sender to see that the command will be persisted after the sender is stopped.
@@ -0,0 +1,450 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.rhq.enterprise.communications.command.Command;
+import org.rhq.enterprise.communications.command.CommandResponse;
+import org.rhq.enterprise.communications.command.CommandType;
+import org.rhq.enterprise.communications.command.impl.generic.GenericCommand;
+import org.rhq.enterprise.communications.command.impl.generic.GenericCommandResponse;
+import org.rhq.enterprise.communications.command.server.PipelinedCommandServer;
+import org.rhq.enterprise.communications.util.PipelinedFrameCodec;
+
+/**
+ * Tests the pipelined communicator against a pipelined listener whose commands are answered by an echo handler.
+ */
+@Test(groups = "comm.client")
+public class PipelinedRemoteCommunicatorTest {
+    private PipelinedCommandServer server;
+    private EchoHandler handler;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        handler = new EchoHandler();
+        server = new PipelinedCommandServer("127.0.0.1", 0, "RHQ", handler, 50, 1000);
+        server.start();
+    }
+
+    @AfterMethod
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Tests that many commands can be in flight at once and each response finds its way back to its own command, even
+     * though the responses come back out of order.
+     */
+    public void testPipelining() throws Exception {
+        PipelinedRemoteCommunicator comm = createCommunicator(100, 1000);
+
+        try {
+            int count = 200;
+            final CountDownLatch done = new CountDownLatch(count);
+            final Map<Integer, Object> results = new ConcurrentHashMap<Integer, Object>();
+
+            for (int i = 0; i < count; i++) {
+                final Integer id = Integer.valueOf(i);
+                // earlier commands sleep longer so the responses arrive in reverse order
+                boolean accepted = comm.sendAsynch(createCommand(id, (count - i) % 20), 30000L,
+                    new AsynchronousRemoteCommunicator.ResponseHandler() {
+                        public void responseReceived(CommandResponse response) {
+                            results.put(id, response.getResults());
+                            done.countDown();
+                        }
+
+                        public void sendFailed(Throwable throwable) {
+                            results.put(id, throwable);
+                            done.countDown();
+                        }
+                    });
+                assert accepted : "should have had room for command #" + i;
+            }
+
+            assert done.await(30, TimeUnit.SECONDS) : "did not get all responses: " + done.getCount();
+            assert results.size() == count;
+            for (int i = 0; i < count; i++) {
+                assert Integer.valueOf(i).equals(results.get(Integer.valueOf(i))) : "wrong result for #" + i + ": "
+                    + results.get(Integer.valueOf(i));
+            }
+
+            assert handler.maxConcurrent.get() > 1 : "commands were not executed concurrently";
+            assert comm.getOutstandingCommandCount() == 0;
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests the synchronous send methods.
+     */
+    public void testSynchronousSend() throws Throwable {
+        PipelinedRemoteCommunicator comm = createCommunicator(10, 100);
+
+        try {
+            CommandResponse response = comm.send(createCommand(Integer.valueOf(42), 0));
+            assert response.isSuccessful();
+            assert Integer.valueOf(42).equals(response.getResults());
+
+            response = comm.sendWithoutCallbacks(createCommand(Integer.valueOf(43), 0));
+            assert Integer.valueOf(43).equals(response.getResults());
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a command fails with a timeout if its response does not come back in time.
+     */
+    public void testTimeout() throws Exception {
+        PipelinedRemoteCommunicator comm = createCommunicator(10, 100);
+
+        try {
+            Outcome outcome = new Outcome();
+            assert comm.sendAsynch(createCommand(Integer.valueOf(1), 3000), 500L, outcome);
+            assert outcome.await() instanceof TimeoutException : outcome.result;
+
+            // the connection is still good for the next command
+            outcome = new Outcome();
+            assert comm.sendAsynch(createCommand(Integer.valueOf(2), 0), 10000L, outcome);
+            assert Integer.valueOf(2).equals(((CommandResponse) outcome.await()).getResults());
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a caller is held back once too many commands are outstanding - it gives up if no room opens up within
+     * the command's timeout and otherwise gets to send its command as soon as an earlier one completes.
+     */
+    public void testBackpressure() throws Exception {
+        PipelinedRemoteCommunicator comm = createCommunicator(2, 5);
+
+        try {
+            Outcome[] outcomes = new Outcome[5];
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new Outcome();
+                assert comm.sendAsynch(createCommand(Integer.valueOf(i), 1000), 30000L, outcomes[i]);
+            }
+
+            long start = System.currentTimeMillis();
+            assert !comm.sendAsynch(createCommand(Integer.valueOf(99), 0), 300L, new Outcome()) : "should be full";
+            assert (System.currentTimeMillis() - start) >= 250L : "should have waited for room";
+
+            Outcome waited = new Outcome();
+            assert comm.sendAsynch(createCommand(Integer.valueOf(100), 0), 30000L, waited) : "should have got room";
+
+            for (int i = 0; i < outcomes.length; i++) {
+                assert Integer.valueOf(i).equals(((CommandResponse) outcomes[i].await()).getResults());
+            }
+            assert Integer.valueOf(100).equals(((CommandResponse) waited.await()).getResults());
+
+            assert handler.maxConcurrent.get() <= 2 : "more commands were in flight than allowed";
+            assert comm.awaitOutstandingCommands(30000L);
+            assert comm.getOutstandingCommandCount() == 0;
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that the listener stops reading once the commands of all its connections fill up its workers and their
+     * queue, and that every command still gets executed once room opens up.
+     */
+    public void testListenerBackpressure() throws Exception {
+        server.stop();
+        server = new PipelinedCommandServer("127.0.0.1", 0, "RHQ", handler, 2, 1000);
+        server.start();
+
+        PipelinedRemoteCommunicator[] comms = new PipelinedRemoteCommunicator[3];
+        Outcome[] outcomes = new Outcome[comms.length * 10];
+
+        try {
+            for (int i = 0; i < comms.length; i++) {
+                comms[i] = createCommunicator(10, 100);
+            }
+
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new Outcome();
+                assert comms[i % comms.length].sendAsynch(createCommand(Integer.valueOf(i), 100), 30000L, outcomes[i]);
+            }
+
+            for (int i = 0; i < outcomes.length; i++) {
+                Object result = outcomes[i].await();
+                assert (result instanceof CommandResponse) : result;
+                assert Integer.valueOf(i).equals(((CommandResponse) result).getResults());
+            }
+
+            assert handler.maxConcurrent.get() <= 2 : "more commands were executed than allowed";
+        } finally {
+            for (PipelinedRemoteCommunicator comm : comms) {
+                if (comm != null) {
+                    comm.disconnect();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that connections beyond the listener's limit are refused and that a closed connection makes room again.
+     */
+    public void testConnectionLimit() throws Exception {
+        server.stop();
+        server = new PipelinedCommandServer("127.0.0.1", 0, "RHQ", handler, 50, 1);
+        server.start();
+
+        PipelinedRemoteCommunicator first = createCommunicator(10, 100);
+        PipelinedRemoteCommunicator second = createCommunicator(10, 100);
+
+        try {
+            Outcome outcome = new Outcome();
+            assert first.sendAsynch(createCommand(Integer.valueOf(1), 0), 30000L, outcome);
+            assert Integer.valueOf(1).equals(((CommandResponse) outcome.await()).getResults());
+
+            outcome = new Outcome();
+            assert second.sendAsynch(createCommand(Integer.valueOf(2), 0), 30000L, outcome);
+            assert outcome.await() instanceof Throwable : "the second connection should have been refused";
+        } finally {
+            first.disconnect();
+            second.disconnect();
+        }
+
+        // the listener notices the closed connection asynchronously
+        Object result = null;
+        for (int attempt = 0; (attempt < 50) && !(result instanceof CommandResponse); attempt++) {
+            PipelinedRemoteCommunicator third = createCommunicator(10, 100);
+            try {
+                Outcome outcome = new Outcome();
+                assert third.sendAsynch(createCommand(Integer.valueOf(3), 0), 30000L, outcome);
+                result = outcome.await();
+            } finally {
+                third.disconnect();
+            }
+
+            if (!(result instanceof CommandResponse)) {
+                Thread.sleep(100L);
+            }
+        }
+
+        assert result instanceof CommandResponse : "a new connection should be accepted again: " + result;
+    }
+
+    /**
+     * Tests that a payload that arrives in many reads is assembled completely, and that a payload larger than the
+     * maximum frame size is not sent at all.
+     */
+    public void testLargePayloads() throws Exception {
+        PipelinedRemoteCommunicator comm = createCommunicator(10, 100);
+
+        try {
+            byte[] data = new byte[PipelinedFrameCodec.MAX_PAYLOAD_SIZE / 2];
+            data[data.length - 1] = 42;
+            GenericCommand command = createCommand(Integer.valueOf(1), 0);
+            command.setParameterValue("id", data);
+
+            Outcome outcome = new Outcome();
+            assert comm.sendAsynch(command, 30000L, outcome);
+            Object result = outcome.await();
+            assert (result instanceof CommandResponse) : result;
+            byte[] echoed = (byte[]) ((CommandResponse) result).getResults();
+            assert echoed.length == data.length;
+            assert echoed[echoed.length - 1] == 42;
+
+            try {
+                PipelinedFrameCodec.encode(1L, new byte[PipelinedFrameCodec.MAX_PAYLOAD_SIZE]);
+                assert false : "a frame larger than the maximum should not be encoded";
+            } catch (IOException expected) {
+            }
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a synchronous send gives up waiting for its response once the command's own timeout expires.
+     */
+    public void testSynchronousTimeout() throws Throwable {
+        PipelinedRemoteCommunicator comm = createCommunicator(10, 100);
+
+        try {
+            GenericCommand command = createCommand(Integer.valueOf(1), 3000);
+            command.getConfiguration().setProperty(ClientCommandSender.CMDCONFIG_PROP_TIMEOUT, "500");
+
+            long start = System.currentTimeMillis();
+            try {
+                comm.send(command);
+                assert false : "should have timed out";
+            } catch (TimeoutException expected) {
+                assert (System.currentTimeMillis() - start) < 2500L : "should not have waited for the response";
+            }
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that the commands fail with a connect exception when the endpoint cannot be reached.
+     */
+    public void testConnectFailure() throws Exception {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        PipelinedRemoteCommunicator comm = new PipelinedRemoteCommunicator("socket://127.0.0.1:1234", port);
+
+        try {
+            Outcome outcome = new Outcome();
+            assert comm.sendAsynch(createCommand(Integer.valueOf(1), 0), 30000L, outcome);
+            assert outcome.await() instanceof ConnectException : outcome.result;
+        } finally {
+            comm.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a sender with a single thread pipelines its asynchronous commands through the communicator rather
+     * than sending them one after the other.
+     */
+    public void testSenderPipelining() throws Exception {
+        PipelinedRemoteCommunicator comm = createCommunicator(100, 1000);
+
+        ClientCommandSenderConfiguration config = new ClientCommandSenderConfiguration();
+        config.maxConcurrent = 1;
+        config.queueSize = 1000;
+        config.defaultTimeoutMillis = 30000L;
+        config.serverPollingIntervalMillis = 0L;
+
+        ClientCommandSender sender = new ClientCommandSender(comm, config);
+
+        try {
+            sender.startSending();
+
+            int count = 100;
+            final CountDownLatch done = new CountDownLatch(count);
+            final AtomicInteger successful = new AtomicInteger(0);
+            long start = System.currentTimeMillis();
+
+            for (int i = 0; i < count; i++) {
+                // each command takes 200ms - sent one at a time, this would take 20 seconds
+                sender.sendAsynch(createCommand(Integer.valueOf(i), 200), new CommandResponseCallback() {
+                    private static final long serialVersionUID = 1L;
+
+                    public void commandSent(CommandResponse response) {
+                        if (response.isSuccessful()) {
+                            successful.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+
+            assert done.await(30, TimeUnit.SECONDS) : "did not get all responses: " + done.getCount();
+            assert successful.get() == count;
+            assert (System.currentTimeMillis() - start) < 10000L : "commands were not pipelined";
+        } finally {
+            sender.stopSending(false);
+        }
+    }
+
+    private PipelinedRemoteCommunicator createCommunicator(int max_in_flight, int max_outstanding) throws Exception {
+        return new PipelinedRemoteCommunicator("socket://127.0.0.1:16163", server.getBoundPort(), max_in_flight,
+            max_outstanding);
+    }
+
+    private GenericCommand createCommand(Integer id, long sleep) {
+        GenericCommand cmd = new GenericCommand();
+        cmd.setCommandType(new CommandType("test", 1));
+        cmd.setParameterValue("id", id);
+        cmd.setParameterValue("sleep", Long.valueOf(sleep));
+        return cmd;
+    }
+
+    /**
+     * Answers each command with its "id" parameter after sleeping for its "sleep" parameter.
+     */
+    private static class EchoHandler implements ServerInvocationHandler {
+        private final AtomicInteger concurrent = new AtomicInteger(0);
+        final AtomicInteger maxConcurrent = new AtomicInteger(0);
+
+        public Object invoke(InvocationRequest invocation) throws Throwable {
+            Command command = (Command) invocation.getParameter();
+            int now = concurrent.incrementAndGet();
+            try {
+                while (now > maxConcurrent.get()) {
+                    maxConcurrent.compareAndSet(maxConcurrent.get(), now);
+                }
+                Thread.sleep(((Long) command.getParameterValue("sleep")).longValue());
+                return new GenericCommandResponse(command, true, command.getParameterValue("id"), null);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+        public void setMBeanServer(MBeanServer server) {
+        }
+
+        public void setInvoker(ServerInvoker invoker) {
+        }
+
+        public void addListener(InvokerCallbackHandler callbackHandler) {
+        }
+
+        public void removeListener(InvokerCallbackHandler callbackHandler) {
+        }
+    }
+
+    /**
+     * Captures the outcome of a command - either its response or the cause of its failure.
+     */
+    private static class Outcome implements AsynchronousRemoteCommunicator.ResponseHandler {
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile Object result;
+
+        public void responseReceived(CommandResponse response) {
+            result = response;
+            done.countDown();
+        }
+
+        public void sendFailed(Throwable throwable) {
+            result = throwable;
+            done.countDown();
+        }
+
+        Object await() throws InterruptedException {
+            assert done.await(30, TimeUnit.SECONDS) : "command never completed";
+            return result;
+        }
+    }
+}
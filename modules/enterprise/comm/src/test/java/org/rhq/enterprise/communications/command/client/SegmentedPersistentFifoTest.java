@@ -0,0 +1,294 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2008 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the segmented persistent fifo.
+ */
+@Test(groups = "comm.client")
+public class SegmentedPersistentFifoTest {
+    private File fifoDir;
+
+    @BeforeMethod
+    public void createDirectory() {
+        fifoDir = new File(System.getProperty("java.io.tmpdir"), "TEST-segmented-fifo");
+        deleteDirectory(fifoDir);
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        deleteDirectory(fifoDir);
+    }
+
+    /**
+     * Tests putting and taking from fifo.
+     */
+    public void testFifo() throws Exception {
+        doFifoTests(false);
+    }
+
+    /**
+     * Tests putting and taking from fifo.
+     */
+    public void testFifoCompressed() throws Exception {
+        doFifoTests(true);
+    }
+
+    /**
+     * Tests that the entries and the position of the consumer survive closing and reopening the fifo, and that
+     * consumed segments are deleted.
+     */
+    public void testReopen() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false, 4096L);
+        for (int i = 0; i < 1000; i++) {
+            fifo.put(("entry-" + i).getBytes());
+        }
+        for (int i = 0; i < 400; i++) {
+            assert ("entry-" + i).equals(new String(fifo.take()));
+        }
+        fifo.sync();
+        int segments = fifoDir.list().length;
+        assert segments > 1 : "entries should have been spread over several segments: " + segments;
+        fifo.close();
+
+        fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false, 4096L);
+        assert fifo.count() == 600 : "count should be 600: " + fifo.count();
+        fifo.put("entry-1000".getBytes());
+        for (int i = 400; i <= 1000; i++) {
+            assert ("entry-" + i).equals(new String(fifo.take()));
+        }
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+        assert fifoDir.list().length == 1 : "consumed segments should have been deleted";
+        fifo.close();
+    }
+
+    /**
+     * Tests that a closed fifo refuses to be used instead of touching its released segments.
+     */
+    public void testUseAfterClose() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false, 4096L);
+        fifo.put("entry".getBytes());
+        fifo.close();
+        fifo.close();
+        fifo.sync();
+
+        try {
+            fifo.put("too late".getBytes());
+            assert false : "put should fail on a closed fifo";
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            fifo.take();
+            assert false : "take should fail on a closed fifo";
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            fifo.initializeEmptyFile();
+            assert false : "initializeEmptyFile should fail on a closed fifo";
+        } catch (IOException e) {
+            // expected
+        }
+
+        fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false, 4096L);
+        assert "entry".equals(new String(fifo.take()));
+        fifo.close();
+    }
+
+    /**
+     * Tests that the oldest entries are sacrificed when the fifo grows beyond its max size.
+     */
+    public void testPurge() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 100000L, 50, false, 10000L);
+        for (int i = 0; i < 10000; i++) {
+            fifo.put(("0123456789012345678901234567890123456789x-" + i).getBytes());
+        }
+
+        assert fifo.getTotalSize() <= 100000L : "spool is too big: " + fifo.getTotalSize();
+        assert fifo.count() < 10000 : "oldest entries should have been purged";
+
+        long count = fifo.count();
+        String last = null;
+        byte[] data;
+        while ((data = fifo.take()) != null) {
+            last = new String(data);
+            count--;
+        }
+        assert count == 0 : "count was off by " + count;
+        assert "0123456789012345678901234567890123456789x-9999".equals(last) : last;
+    }
+
+    /**
+     * Tests one producer and one consumer running concurrently.
+     */
+    public void testConcurrentPutTake() throws Exception {
+        final SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 100000000L, 75, false, 8192L);
+        final int total = 50000;
+        final Throwable[] error = new Throwable[1];
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < total; i++) {
+                        fifo.put(String.valueOf(i).getBytes());
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        long give_up = System.currentTimeMillis() + 60000L;
+        while ((expected < total) && (System.currentTimeMillis() < give_up)) {
+            byte[] data = fifo.take();
+            if (data != null) {
+                assert String.valueOf(expected).equals(new String(data)) : "out of order: " + new String(data);
+                expected++;
+            }
+        }
+
+        producer.join();
+        assert error[0] == null : error[0];
+        assert expected == total : "only took " + expected;
+        assert fifo.isEmpty();
+    }
+
+    /**
+     * Compares the put/take throughput of the single file fifo and the segmented fifo, with and without compression.
+     * The numbers are only printed if <code>PersistentFifoTest.print</code> is set.
+     */
+    public void testThroughput() throws Exception {
+        int entries = Integer.getInteger("SegmentedPersistentFifoTest.entries", 20000);
+        byte[] entry = new byte[1024];
+        new Random(1L).nextBytes(entry);
+        // half random, half repeating, so there is something to compress
+        for (int i = entry.length / 2; i < entry.length; i++) {
+            entry[i] = (byte) (i % 16);
+        }
+
+        for (boolean compress : new boolean[] { false, true }) {
+            File fifoFile = new File(fifoDir.getParentFile(), "TEST-throughput.data");
+            fifoFile.delete();
+            try {
+                PersistentFifo fifo = new PersistentFifo(fifoFile, 100000000L, 75, compress);
+                measure("PersistentFifo compress=" + compress, fifo, entry, entries);
+            } finally {
+                fifoFile.delete();
+            }
+
+            deleteDirectory(fifoDir);
+            SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 100000000L, 75, compress);
+            measure("SegmentedPersistentFifo compress=" + compress, fifo, entry, entries);
+        }
+    }
+
+    private void measure(String name, PersistentQueue fifo, byte[] entry, int entries) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            fifo.put(entry);
+        }
+        long put_nanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int taken = 0;
+        while (fifo.take() != null) {
+            taken++;
+        }
+        long take_nanos = System.nanoTime() - start;
+
+        assert taken == entries : name + " took " + taken + " of " + entries;
+        print(name + ": put=" + ((entries * 1000000000L) / Math.max(1L, put_nanos)) + "/s, take="
+            + ((entries * 1000000000L) / Math.max(1L, take_nanos)) + "/s");
+    }
+
+    private void doFifoTests(boolean compress) throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 1000L, 0, compress);
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+        assert fifo.count() == 0 : "SHOULD BE EMPTY - count should be 0";
+
+        fifo.put("Mazz Was Here 1".getBytes());
+
+        assert !fifo.isEmpty() : "SHOULD NOT BE EMPTY";
+        assert fifo.count() == 1 : "count should be 1";
+        assert "Mazz Was Here 1".equals(new String(fifo.take()));
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.count() == 0 : "count should be 0";
+
+        fifo.put("Mazz Was Here 2".getBytes());
+        fifo.put("Mazz Was Here 3".getBytes());
+        fifo.initializeEmptyFile();
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+
+        // an entry bigger than the whole spool still gets its own segment
+        byte[] big = new byte[5000];
+        fifo.put(big);
+        assert fifo.take().length == big.length;
+
+        fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, compress);
+        for (int i = 0; i < 5000; i++) {
+            fifo.putObject("0123456789012345678901234567890123456789x-" + i);
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            assert ("0123456789012345678901234567890123456789x-" + i).equals(fifo.takeObject());
+        }
+
+        assert fifo.takeObject() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+    }
+
+    private void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * In case something goes wrong in this test, we can manually enable it to dump things to stdout here.
+     *
+     * @param obj object whose toString will be dumped to stdout
+     */
+    private void print(Object obj) {
+        boolean enable_print = Boolean.getBoolean("PersistentFifoTest.print");
+        if (enable_print) {
+            System.out.println(obj);
+        }
+    }
+}
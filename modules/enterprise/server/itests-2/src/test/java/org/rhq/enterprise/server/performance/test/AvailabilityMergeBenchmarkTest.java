@@ -0,0 +1,172 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.performance.test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Query;
+
+import org.testng.annotations.Listeners;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.discovery.AvailabilityReport;
+import org.rhq.core.domain.measurement.Availability;
+import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.resource.Agent;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceType;
+import org.rhq.enterprise.server.measurement.AvailabilityManagerBean;
+import org.rhq.enterprise.server.measurement.AvailabilityManagerLocal;
+import org.rhq.enterprise.server.test.AbstractEJB3PerformanceTest;
+import org.rhq.enterprise.server.util.LookupUtil;
+import org.rhq.helpers.perftest.support.reporting.ExcelExporter;
+import org.rhq.helpers.perftest.support.testng.DatabaseSetupInterceptor;
+import org.rhq.helpers.perftest.support.testng.DatabaseState;
+import org.rhq.helpers.perftest.support.testng.PerformanceReporting;
+
+/**
+ * Measures merging full and changes-only availability reports for agents with 1k, 10k and 50k resources. Run it once
+ * as is and once with <code>-D{@value AvailabilityManagerBean#SET_BASED_MERGE_PROPERTY}=false</code> on the server
+ * to compare the set based merge with merging one availability at a time.
+ */
+@Test(groups = "PERF")
+@Listeners({ DatabaseSetupInterceptor.class })
+@PerformanceReporting(exporter = ExcelExporter.class)
+@DatabaseState(url = "perftest/AvailabilityInsertPurgeTest-testOne-data.xml.zip", dbVersion = "2.125")
+public class AvailabilityMergeBenchmarkTest extends AbstractEJB3PerformanceTest {
+
+    private static final int[] SIZES = new int[] { 1000, 10000, 50000 };
+    private static final int CHANGED_PERCENT = 10;
+    private static final int REPORTS = 100 / CHANGED_PERCENT;
+    private static final int MILLIS_APART = 30000;
+    private static final String FULL_FORMAT = "Full %6d";
+    private static final String CHANGES_ONLY_FORMAT = "ChangesOnly %6d";
+
+    AvailabilityManagerLocal availabilityManager;
+
+    @Override
+    protected void beforeMethod(Method method) {
+        super.setupTimings(method);
+        try {
+            this.availabilityManager = LookupUtil.getAvailabilityManager();
+        } catch (Throwable t) {
+            // Catch RuntimeExceptions and Errors and dump their stack trace, because Surefire will completely swallow them
+            // and throw a cryptic NPE (see http://jira.codehaus.org/browse/SUREFIRE-157)!
+            t.printStackTrace();
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Every report carries all resources of the agent, {@link #CHANGED_PERCENT} of them with a changed availability.
+     */
+    public void testFullReports() throws Exception {
+        runReports(false, FULL_FORMAT);
+    }
+
+    /**
+     * Every report carries only the {@link #CHANGED_PERCENT} of the resources whose availability changed.
+     */
+    public void testChangesOnlyReports() throws Exception {
+        runReports(true, CHANGES_ONLY_FORMAT);
+    }
+
+    private void runReports(boolean changesOnly, String format) throws Exception {
+        List<Integer> resourceIds = createResources(SIZES[SIZES.length - 1]);
+        String agentName = getAgent().getName();
+
+        long start = System.currentTimeMillis() - ((SIZES.length + 1) * REPORTS * MILLIS_APART);
+        for (int size : SIZES) {
+            String name = String.format(format, size);
+
+            // bring every resource out of the initial unknown state, so we don't time the full report requests
+            AvailabilityReport initial = new AvailabilityReport(agentName);
+            for (int i = 0; i < size; i++) {
+                initial.addAvailability(new Availability(new Resource(resourceIds.get(i)), start, AvailabilityType.UP));
+            }
+            availabilityManager.mergeAvailabilityReport(initial);
+
+            for (int report = 1; report <= REPORTS; report++) {
+                long timestamp = start + (report * MILLIS_APART);
+                AvailabilityReport availabilityReport = new AvailabilityReport(changesOnly, agentName);
+                for (int i = 0; i < size; i++) {
+                    // every report takes down a different slice of the resources
+                    int slice = (i % (100 / CHANGED_PERCENT)) + 1;
+                    if (changesOnly && (slice != report)) {
+                        continue;
+                    }
+                    AvailabilityType type = (slice <= report) ? AvailabilityType.DOWN : AvailabilityType.UP;
+                    availabilityReport.addAvailability(new Availability(new Resource(resourceIds.get(i)), timestamp,
+                        type));
+                }
+
+                startTiming(name);
+                availabilityManager.mergeAvailabilityReport(availabilityReport);
+                endTiming(name);
+            }
+            start += (REPORTS + 1) * MILLIS_APART;
+
+            System.out.println(name + ": " + (getTiming(name) / REPORTS) + "ms per report");
+        }
+    }
+
+    private Agent getAgent() {
+        Query q = em.createQuery("SELECT r.agent FROM Resource r WHERE r.agent IS NOT NULL");
+        q.setMaxResults(1);
+        return (Agent) q.getSingleResult();
+    }
+
+    private List<Integer> createResources(int count) throws Exception {
+        Agent agent = getAgent();
+        Query q = em.createQuery("SELECT r.resourceType FROM Resource r WHERE r.agent.id = :agentId");
+        q.setParameter("agentId", agent.getId());
+        q.setMaxResults(1);
+        ResourceType type = (ResourceType) q.getSingleResult();
+
+        List<Integer> resourceIds = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i += 1000) {
+            List<Resource> resources = new ArrayList<Resource>(1000);
+            startTransaction();
+            try {
+                for (int j = i; j < Math.min(count, i + 1000); j++) {
+                    Resource resource = new Resource("avail-merge-" + j, "avail-merge-" + j, em.find(
+                        ResourceType.class, type.getId()));
+                    resource.setUuid("avail-merge-" + j);
+                    resource.setAgent(em.find(Agent.class, agent.getId()));
+                    resource.setInventoryStatus(InventoryStatus.COMMITTED);
+                    resource.initCurrentAvailability();
+                    em.persist(resource);
+                    resources.add(resource);
+                }
+                commitTransaction();
+            } catch (Exception e) {
+                rollbackTransaction();
+                throw e;
+            }
+            for (Resource resource : resources) {
+                resourceIds.add(resource.getId());
+            }
+            em.clear();
+        }
+        return resourceIds;
+    }
+}
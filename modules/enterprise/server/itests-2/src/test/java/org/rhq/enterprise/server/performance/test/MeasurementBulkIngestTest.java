@@ -0,0 +1,124 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.performance.test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Listeners;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.enterprise.server.measurement.MeasurementDataManagerLocal;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.test.AbstractEJB3PerformanceTest;
+import org.rhq.enterprise.server.util.LookupUtil;
+import org.rhq.helpers.perftest.support.reporting.ExcelExporter;
+import org.rhq.helpers.perftest.support.testng.DatabaseSetupInterceptor;
+import org.rhq.helpers.perftest.support.testng.DatabaseState;
+import org.rhq.helpers.perftest.support.testng.PerformanceReporting;
+
+/**
+ * Compares the ingest rate of the per-report JDBC batch insert of numeric data with the bulk path that merges the
+ * reports of many agents into one batch per raw table.
+ */
+@Test(groups = "PERF")
+@Listeners({ DatabaseSetupInterceptor.class })
+@PerformanceReporting(exporter = ExcelExporter.class)
+@DatabaseState(url = "perftest/AvailabilityInsertPurgeTest-testOne-data.xml.zip", dbVersion = "2.125")
+public class MeasurementBulkIngestTest extends AbstractEJB3PerformanceTest {
+
+    private static final int AGENTS = 500;
+    private static final int METRICS_PER_AGENT = 100;
+    private static final int ROUNDS = 5;
+    private static final int FIRST_SCHEDULE_ID = 1000000;
+    private static final String PER_REPORT = "PerReport";
+    private static final String BULK = "Bulk";
+
+    MeasurementDataManagerLocal measurementDataManager;
+
+    @Override
+    protected void beforeMethod(Method method) {
+        super.setupTimings(method);
+        try {
+            this.measurementDataManager = LookupUtil.getMeasurementDataManager();
+        } catch (Throwable t) {
+            // Catch RuntimeExceptions and Errors and dump their stack trace, because Surefire will completely swallow them
+            // and throw a cryptic NPE (see http://jira.codehaus.org/browse/SUREFIRE-157)!
+            t.printStackTrace();
+            throw new RuntimeException(t);
+        }
+    }
+
+    public void testIngestRate() throws Exception {
+        long now = System.currentTimeMillis();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // use distinct timestamps for both paths, the raw tables have a (schedule_id, time_stamp) primary key
+            List<MeasurementReport> reports = createReports(now + (round * 2));
+            startTiming(PER_REPORT);
+            for (MeasurementReport report : reports) {
+                measurementDataManager.addNumericData(report.getNumericData());
+            }
+            endTiming(PER_REPORT);
+
+            reports = createReports(now + (round * 2) + 1);
+            startTiming(BULK);
+            Map<String, NumericDataBatch> batches = new HashMap<String, NumericDataBatch>();
+            for (MeasurementReport report : reports) {
+                for (MeasurementDataNumeric datum : report.getNumericData()) {
+                    String table = MeasurementDataManagerUtility.getTable(datum.getTimestamp());
+                    NumericDataBatch batch = batches.get(table);
+                    if (batch == null) {
+                        batch = new NumericDataBatch(table);
+                        batches.put(table, batch);
+                    }
+                    batch.add(datum.getScheduleId(), datum.getTimestamp(), datum.getValue());
+                }
+            }
+            for (NumericDataBatch batch : batches.values()) {
+                measurementDataManager.addNumericDataBatch(batch);
+            }
+            endTiming(BULK);
+        }
+
+        long rows = (long) AGENTS * METRICS_PER_AGENT * ROUNDS;
+        System.out.println("Per report rows/s: " + ((rows * 1000L) / Math.max(1L, getTiming(PER_REPORT))));
+        System.out.println("Bulk rows/s: " + ((rows * 1000L) / Math.max(1L, getTiming(BULK))));
+    }
+
+    private List<MeasurementReport> createReports(long timestamp) {
+        List<MeasurementReport> reports = new ArrayList<MeasurementReport>(AGENTS);
+        int scheduleId = FIRST_SCHEDULE_ID;
+        for (int agent = 0; agent < AGENTS; agent++) {
+            MeasurementReport report = new MeasurementReport();
+            for (int metric = 0; metric < METRICS_PER_AGENT; metric++) {
+                MeasurementDataNumeric datum = new MeasurementDataNumeric(timestamp, scheduleId++, (double) metric);
+                report.addData(datum);
+            }
+            reports.add(report);
+        }
+        return reports;
+    }
+}
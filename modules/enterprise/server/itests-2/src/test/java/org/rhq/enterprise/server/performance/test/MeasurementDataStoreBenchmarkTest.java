@@ -0,0 +1,146 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.performance.test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.testng.annotations.Listeners;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.util.file.FileUtil;
+import org.rhq.enterprise.server.measurement.storage.ColumnarFileMeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.JdbcMeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStore;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.test.AbstractEJB3PerformanceTest;
+import org.rhq.enterprise.server.util.LookupUtil;
+import org.rhq.helpers.perftest.support.reporting.ExcelExporter;
+import org.rhq.helpers.perftest.support.testng.DatabaseSetupInterceptor;
+import org.rhq.helpers.perftest.support.testng.DatabaseState;
+import org.rhq.helpers.perftest.support.testng.PerformanceReporting;
+
+/**
+ * Runs the same numeric data ingest and chart query workload against the relational store and the columnar file
+ * store.
+ */
+@Test(groups = "PERF")
+@Listeners({ DatabaseSetupInterceptor.class })
+@PerformanceReporting(exporter = ExcelExporter.class)
+@DatabaseState(url = "perftest/AvailabilityInsertPurgeTest-testOne-data.xml.zip", dbVersion = "2.125")
+public class MeasurementDataStoreBenchmarkTest extends AbstractEJB3PerformanceTest {
+
+    private static final int SCHEDULES = 10000;
+    private static final int ROUNDS = 30;
+    private static final int QUERIES = 200;
+    private static final int FIRST_SCHEDULE_ID = 2000000;
+    private static final long INTERVAL = 60000L;
+
+    DataSource dataSource;
+
+    @Override
+    protected void beforeMethod(Method method) {
+        super.setupTimings(method);
+        try {
+            this.dataSource = LookupUtil.getDataSource();
+        } catch (Throwable t) {
+            // Catch RuntimeExceptions and Errors and dump their stack trace, because Surefire will completely swallow them
+            // and throw a cryptic NPE (see http://jira.codehaus.org/browse/SUREFIRE-157)!
+            t.printStackTrace();
+            throw new RuntimeException(t);
+        }
+    }
+
+    public void testJdbcStore() throws Exception {
+        runWorkload("Jdbc", new JdbcMeasurementDataStore(dataSource));
+    }
+
+    public void testColumnarStore() throws Exception {
+        File directory = FileUtil.createTempDirectory("rhq-metrics", null, null);
+        try {
+            MeasurementDataStore store = new ColumnarFileMeasurementDataStore(directory,
+                MeasurementDataManagerUtility.getInstance(dataSource));
+            try {
+                runWorkload("Columnar", store);
+            } finally {
+                store.shutdown();
+            }
+        } finally {
+            FileUtil.purge(directory, true);
+        }
+    }
+
+    private void runWorkload(String name, MeasurementDataStore store) {
+        // stay inside the current raw table, which is the one findRawData reads
+        long end = System.currentTimeMillis();
+        long begin = Math.max(end - (ROUNDS * INTERVAL), (end / MeasurementDataManagerUtility.MILLISECONDS_PER_TABLE)
+            * MeasurementDataManagerUtility.MILLISECONDS_PER_TABLE);
+        long interval = Math.max(1L, (end - begin) / ROUNDS);
+
+        String ingest = name + "Ingest";
+        startTiming(ingest);
+        for (int round = 0; round < ROUNDS; round++) {
+            store.addNumericData(createRound(begin + (round * interval)));
+        }
+        endTiming(ingest);
+
+        String raw = name + "RawQuery";
+        String aggregate = name + "AggregateQuery";
+        String points = name + "DataPointsQuery";
+        String latest = name + "LatestQuery";
+        for (int i = 0; i < QUERIES; i++) {
+            int scheduleId = FIRST_SCHEDULE_ID + ((i * 7919) % SCHEDULES);
+
+            startTiming(raw);
+            store.findRawData(scheduleId, begin, end);
+            endTiming(raw);
+
+            startTiming(aggregate);
+            store.getAggregate(scheduleId, begin, end);
+            endTiming(aggregate);
+
+            startTiming(points);
+            store.findDataPoints(scheduleId, begin, end, MeasurementDataManagerUtility.DEFAULT_NUM_DATA_POINTS);
+            endTiming(points);
+
+            startTiming(latest);
+            store.getLatestValue(scheduleId);
+            endTiming(latest);
+        }
+
+        long rows = (long) SCHEDULES * ROUNDS;
+        System.out.println(name + " ingest rows/s: " + ((rows * 1000L) / Math.max(1L, getTiming(ingest))));
+        System.out.println(name + " " + QUERIES + " raw queries: " + getTiming(raw) + "ms, aggregates: "
+            + getTiming(aggregate) + "ms, data points: " + getTiming(points) + "ms, latest values: "
+            + getTiming(latest) + "ms");
+    }
+
+    private List<MeasurementDataNumeric> createRound(long timestamp) {
+        List<MeasurementDataNumeric> data = new ArrayList<MeasurementDataNumeric>(SCHEDULES);
+        for (int i = 0; i < SCHEDULES; i++) {
+            data.add(new MeasurementDataNumeric(timestamp, FIRST_SCHEDULE_ID + i, (double) (i % 100)));
+        }
+        return data;
+    }
+}
@@ -18,13 +18,23 @@
  */
 package org.rhq.enterprise.server.resource.group.definition.framework.test;
 
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.AVAILABILITY;
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.INVENTORY;
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.PLUGIN_CONFIGURATION;
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.RELATIVES;
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.RESOURCE_CONFIGURATION;
+import static org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency.TRAIT;
+
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.testng.annotations.Test;
 
 import org.rhq.core.domain.resource.group.DuplicateExpressionTypeException;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionEvaluator;
 import org.rhq.core.domain.resource.group.InvalidExpressionException;
 import org.rhq.enterprise.server.test.AbstractEJB3Test;
@@ -256,6 +266,71 @@ public class ExpressionEvaluatorTest extends AbstractEJB3Test {
         }
     }
 
+    @Test(groups = "integration.session")
+    public void testDependencies() throws Exception {
+        Object[][] testCases = {
+            { "resource.name = joseph", EnumSet.of(INVENTORY), true },
+            { "groupBy resource.type.plugin", EnumSet.of(INVENTORY), true },
+            { "resource.trait[partitionName] = cluster-1", EnumSet.of(INVENTORY, TRAIT), true },
+            { "resource.pluginConfiguration[partition] = cluster-1", EnumSet.of(INVENTORY, PLUGIN_CONFIGURATION),
+                true },
+            { "resource.resourceConfiguration[partition] = cluster-1",
+                EnumSet.of(INVENTORY, RESOURCE_CONFIGURATION), false },
+            { "resource.availability = UP", EnumSet.of(INVENTORY, AVAILABILITY), false },
+            { "resource.parent.name = joseph", EnumSet.of(INVENTORY, RELATIVES), false },
+            { "resource.grandParent.type.plugin = harry", EnumSet.of(INVENTORY, RELATIVES), false },
+            { "resource.child.trait[partitionName] = cluster-1", EnumSet.of(INVENTORY, RELATIVES, TRAIT), false },
+            { "resource.type.plugin = harry;resource.trait[partitionName] = cluster-1",
+                EnumSet.of(INVENTORY, TRAIT), true } };
+
+        for (Object[] testCase : testCases) {
+            ExpressionEvaluator evaluator = new ExpressionEvaluator();
+            evaluator.setTestMode(true); // to prevent actual query from happening
+            for (String expression : ((String) testCase[0]).split(";")) {
+                evaluator.addExpression(expression);
+            }
+
+            Set<ExpressionDependency> dependencies = evaluator.getDependencies();
+            assert dependencies.equals(testCase[1]) : testCase[0] + " depends on " + dependencies;
+            assert ExpressionDependency.isTracked(dependencies) == (Boolean) testCase[2] : testCase[0]
+                + " should " + (((Boolean) testCase[2]) ? "" : "not ") + "be recalculated incrementally";
+        }
+    }
+
+    @Test(groups = "integration.session")
+    public void testResourceIdRestriction() throws Exception {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.setTestMode(true); // to prevent actual query from happening
+        evaluator.addExpression("resource.name = joseph");
+        evaluator.setResourceIdRestriction(Arrays.asList(1, 2));
+        evaluator.execute();
+
+        String expected = "SELECT res.id FROM Resource res WHERE res.name = :arg1 AND res.id IN (:resourceIds)";
+        String actual = cleanUp(evaluator.getComputedJPQLStatement());
+        assert expected.equalsIgnoreCase(actual) : actual;
+
+        evaluator = new ExpressionEvaluator();
+        evaluator.setTestMode(true);
+        evaluator.addExpression("groupBy resource.type.plugin");
+        evaluator.setResourceIdRestriction(Arrays.asList(1, 2));
+        evaluator.execute();
+
+        expected = "SELECT res.resourceType.plugin FROM Resource res WHERE res.id IN (:resourceIds) "
+            + "GROUP BY res.resourceType.plugin";
+        actual = cleanUp(evaluator.getComputedJPQLStatement());
+        assert expected.equalsIgnoreCase(actual) : actual;
+        expected = "SELECT res.id FROM Resource res WHERE res.resourceType.plugin = :arg1 "
+            + "AND res.id IN (:resourceIds)";
+        actual = cleanUp(evaluator.getComputedJPQLGroupStatement());
+        assert expected.equalsIgnoreCase(actual) : "the restriction must apply to each group too: " + actual;
+
+        try {
+            evaluator.setResourceIdRestriction(Arrays.asList(3));
+            assert false : "the restriction cannot change once the queries are computed";
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
     private static interface ExpressionGenerator {
         String[] getExpressions();
     }
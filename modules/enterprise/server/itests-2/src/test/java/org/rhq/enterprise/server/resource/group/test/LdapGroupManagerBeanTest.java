@@ -20,16 +20,23 @@ package org.rhq.enterprise.server.resource.group.test;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Properties;
 
+import javax.persistence.EntityManager;
 import javax.persistence.Query;
 
 import org.testng.annotations.Test;
 
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.core.domain.authz.Permission;
+import org.rhq.core.domain.authz.Role;
 import org.rhq.core.domain.common.SystemConfiguration;
 import org.rhq.core.domain.common.composite.SystemSetting;
+import org.rhq.core.domain.resource.group.LdapGroup;
 import org.rhq.enterprise.server.RHQConstants;
+import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.resource.group.LdapGroupManagerBean;
 import org.rhq.enterprise.server.resource.group.LdapGroupManagerLocal;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
@@ -38,6 +45,7 @@ import org.rhq.enterprise.server.test.TestServerPluginService;
 import org.rhq.enterprise.server.test.TransactionCallback;
 import org.rhq.enterprise.server.test.ldap.FakeLdapCtxFactory;
 import org.rhq.enterprise.server.util.LookupUtil;
+import org.rhq.enterprise.server.util.SessionTestHelper;
 
 /**
  * Integration tests for methods and operations performed by {@link LdapGroupManagerBean}. 
@@ -435,6 +443,40 @@ public class LdapGroupManagerBeanTest extends AbstractEJB3Test {
             ldapGroupManager.findAvailableGroupsFor("pbrady"));
     }
 
+    /**
+     * Test {@link LdapGroupManagerBean#assignRolesToLdapSubject(int, java.util.List)} method
+     * with a user who left the LDAP group of a role.
+     * 
+     * The test verifies that the permissions of the role are revoked as soon as the roles are assigned again,
+     * even though they were looked up, and so indexed, before.
+     * 
+     * @throws Throwable
+     */
+    @Test(groups = "integration.session")
+    public void testAssignRolesToLdapSubjectRevokesPermissions() throws Throwable {
+        AuthorizationManagerLocal authorizationManager = LookupUtil.getAuthorizationManager();
+        getTransactionManager().begin();
+        EntityManager em = getEntityManager();
+        try {
+            Subject subject = SessionTestHelper.createNewSubject(em, "ldapSubject");
+            Role role = SessionTestHelper.createNewRoleForSubject(em, subject, "ldapRole",
+                Permission.MANAGE_INVENTORY);
+            LdapGroup group = new LdapGroup();
+            group.setName("ldapRoleGroup");
+            role.addLdapGroup(group);
+            em.persist(group);
+            em.flush();
+
+            ldapGroupManager.assignRolesToLdapSubject(subject.getId(), Arrays.asList("ldapRoleGroup"));
+            assert authorizationManager.hasGlobalPermission(subject, Permission.MANAGE_INVENTORY) : "The role of the LDAP group should grant its permissions";
+
+            ldapGroupManager.assignRolesToLdapSubject(subject.getId(), Collections.<String> emptyList());
+            assert !authorizationManager.hasGlobalPermission(subject, Permission.MANAGE_INVENTORY) : "The role should have been revoked with the LDAP group";
+        } finally {
+            getTransactionManager().rollback();
+        }
+    }
+
     /*---------------
      * Helper methods
      ---------------*/
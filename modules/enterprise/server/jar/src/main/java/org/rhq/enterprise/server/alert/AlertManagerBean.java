@@ -427,6 +427,12 @@ public class AlertManagerBean implements AlertManagerLocal, AlertManagerRemote {
         return deletedAlerts;
     }
 
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Long getOldestAlertTime() {
+        Query query = entityManager.createQuery("SELECT MIN(a.ctime) FROM Alert a");
+        return (Long) query.getSingleResult();
+    }
+
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     @TransactionTimeout(6 * 60 * 60)
     public int purgeAlerts() {
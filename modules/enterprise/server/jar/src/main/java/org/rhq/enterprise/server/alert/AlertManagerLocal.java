@@ -40,6 +40,11 @@ public interface AlertManagerLocal {
 
     int deleteAlerts(long beginTime, long endTime);
 
+    /**
+     * @return the creation time of the oldest alert, or null if there are no alerts
+     */
+    Long getOldestAlertTime();
+
     int getAlertCountByMeasurementDefinitionId(Integer measurementDefinitionId, long begin, long end);
 
     int getAlertCountByMeasurementDefinitionAndResourceGroup(int measurementDefinitionId, int groupId, long beginDate,
@@ -19,6 +19,8 @@
 package org.rhq.enterprise.server.alert.engine;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
@@ -90,6 +92,12 @@ public class AlertConditionCacheManagerBean implements AlertConditionCacheManage
         return stats;
     }
 
+    public AlertConditionCacheStats checkConditions(Map<EventSource, Set<Event>> events) {
+        AlertConditionCacheStats stats;
+        stats = AlertConditionCacheCoordinator.getInstance().checkConditions(events);
+        return stats;
+    }
+
     public AlertConditionCacheStats checkConditions(ResourceConfigurationUpdate update) {
         AlertConditionCacheStats stats;
         stats = AlertConditionCacheCoordinator.getInstance().checkConditions(update);
@@ -22,6 +22,9 @@ package org.rhq.enterprise.server.alert.engine;
  * @author Joseph Marques
  */
 
+import java.util.Map;
+import java.util.Set;
+
 import javax.ejb.Local;
 
 import org.rhq.core.domain.configuration.ResourceConfigurationUpdate;
@@ -97,6 +100,13 @@ public interface AlertConditionCacheManagerLocal {
      */
     AlertConditionCacheStats checkConditions(EventSource source, Event... events);
 
+    /**
+     * Checks all the Events of an EventReport at once, rather than source by source.
+     *
+     * @return the number of conditions that were true against this argument
+     */
+    AlertConditionCacheStats checkConditions(Map<EventSource, Set<Event>> events);
+
     /**
      * ResourceConfiguration changes can be made through the UI or on the managed resource.  Whenever a new
      * ResourceConfigurationUpdate is created, it should be passed to this method
@@ -26,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.core.util.collection.IntOpenHashMap;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.alert.engine.jms.CachedConditionProducerLocal;
 import org.rhq.enterprise.server.alert.engine.model.AbstractCacheElement;
@@ -140,5 +141,30 @@ abstract class AbstractConditionCache {
         return success;
     }
 
+    <T extends AbstractCacheElement<?>> boolean addTo(String mapName, IntOpenHashMap<List<T>> cache, int key,
+        T cacheElement, int alertConditionId, AlertConditionCacheStats stats) {
+        List<T> cacheElements = cache.get(key);
+
+        if (cacheElements == null) {
+            cacheElements = new ArrayList<T>();
+            cache.put(key, cacheElements);
+        }
+
+        if (cacheElement == null) {
+            log.warn("Cannot insert null cache element in '" + mapName + "' element: " + "key=" + key);
+            return false;
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("Inserting '" + mapName + "' element: " + "key=" + key + ", " + "value=" + cacheElement);
+        }
+
+        boolean success = cacheElements.add(cacheElement);
+        if (success) {
+            stats.created++;
+        }
+        return success;
+    }
+
     public abstract int getCacheSize(AlertConditionCacheCoordinator.Cache cache);
 }
@@ -25,6 +25,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.rhq.core.domain.alert.AlertCondition;
@@ -51,6 +52,7 @@ import org.rhq.core.domain.measurement.calltime.CallTimeDataValue;
 import org.rhq.core.domain.resource.Resource;
 import org.rhq.core.domain.util.PageControl;
 import org.rhq.core.domain.util.PageList;
+import org.rhq.core.util.collection.IntOpenHashMap;
 import org.rhq.enterprise.server.alert.AlertConditionManagerLocal;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.alert.engine.internal.AlertConditionCacheCoordinator.Cache;
@@ -59,6 +61,7 @@ import org.rhq.enterprise.server.alert.engine.model.CallTimeDataCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.CallTimeDataCacheElement.CallTimeElementValue;
 import org.rhq.enterprise.server.alert.engine.model.DriftCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.EventCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.EventDetailsMatcher;
 import org.rhq.enterprise.server.alert.engine.model.InvalidCacheElementException;
 import org.rhq.enterprise.server.alert.engine.model.MeasurementBaselineCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.MeasurementNumericCacheElement;
@@ -75,11 +78,20 @@ import org.rhq.enterprise.server.util.LookupUtil;
  */
 class AgentConditionCache extends AbstractConditionCache {
 
-    private Map<Integer, List<NumericDoubleCacheElement>> measurementDataCache; // key: schedule ID
-    private Map<Integer, List<MeasurementTraitCacheElement>> measurementTraitCache; // key: schedule ID
-    private Map<Integer, List<CallTimeDataCacheElement>> callTimeCache; // key: schedule ID
-    private Map<Integer, List<EventCacheElement>> eventsCache; // key: resource ID
-    private Map<Integer, List<DriftCacheElement>> driftCache; // key: resource ID
+    /*
+     * these maps are only written while the cache is loaded in the constructor; afterwards the cache is published
+     * to readers by the coordinator and only ever read, so lookups need neither locking nor boxing of the keys
+     */
+    private IntOpenHashMap<List<NumericDoubleCacheElement>> measurementDataCache; // key: schedule ID
+    private IntOpenHashMap<List<MeasurementTraitCacheElement>> measurementTraitCache; // key: schedule ID
+    private IntOpenHashMap<List<CallTimeDataCacheElement>> callTimeCache; // key: schedule ID
+    private IntOpenHashMap<List<EventCacheElement>> eventsCache; // key: resource ID
+    private IntOpenHashMap<List<DriftCacheElement>> driftCache; // key: resource ID
+
+    /*
+     * selects the elements of eventsCache worth checking against the details of an event, see EventDetailsMatcher
+     */
+    private IntOpenHashMap<EventDetailsMatcher> eventMatchers; // key: resource ID
 
     private AlertConditionManagerLocal alertConditionManager;
     private MeasurementDataManagerLocal measurementDataManager;
@@ -92,17 +104,22 @@ class AgentConditionCache extends AbstractConditionCache {
 
         this.agentId = agentId;
 
-        measurementDataCache = new HashMap<Integer, List<NumericDoubleCacheElement>>();
-        measurementTraitCache = new HashMap<Integer, List<MeasurementTraitCacheElement>>();
-        callTimeCache = new HashMap<Integer, List<CallTimeDataCacheElement>>();
-        eventsCache = new HashMap<Integer, List<EventCacheElement>>();
-        driftCache = new HashMap<Integer, List<DriftCacheElement>>();
+        measurementDataCache = new IntOpenHashMap<List<NumericDoubleCacheElement>>();
+        measurementTraitCache = new IntOpenHashMap<List<MeasurementTraitCacheElement>>();
+        callTimeCache = new IntOpenHashMap<List<CallTimeDataCacheElement>>();
+        eventsCache = new IntOpenHashMap<List<EventCacheElement>>();
+        driftCache = new IntOpenHashMap<List<DriftCacheElement>>();
 
         alertConditionManager = LookupUtil.getAlertConditionManager();
         measurementDataManager = LookupUtil.getMeasurementDataManager();
         subjectManager = LookupUtil.getSubjectManager();
 
         loadCachesForAgent(agentId);
+
+        eventMatchers = new IntOpenHashMap<EventDetailsMatcher>(eventsCache.size());
+        for (int resourceId : eventsCache.keys()) {
+            eventMatchers.put(resourceId, new EventDetailsMatcher(eventsCache.get(resourceId)));
+        }
     }
 
     /**
@@ -497,10 +514,13 @@ class AgentConditionCache extends AbstractConditionCache {
         AlertConditionCacheStats stats = new AlertConditionCacheStats();
         try {
             Resource resource = source.getResource();
-            List<EventCacheElement> cacheElements = lookupEventCacheElements(resource.getId());
+            EventDetailsMatcher matcher = lookupEventDetailsMatcher(resource.getId());
 
-            for (Event event : events) {
-                processCacheElements(cacheElements, event.getSeverity(), event.getTimestamp(), stats, event.getDetail());
+            if (matcher != null) {
+                for (Event event : events) {
+                    processCacheElements(matcher.getCandidates(event.getDetail()), event.getSeverity(),
+                        event.getTimestamp(), stats, event.getDetail());
+                }
             }
 
             AlertConditionCacheMonitor.getMBean().incrementEventCacheElementMatches(stats.matched);
@@ -515,6 +535,34 @@ class AgentConditionCache extends AbstractConditionCache {
         return stats;
     }
 
+    public AlertConditionCacheStats checkConditions(Map<EventSource, Set<Event>> events) {
+        AlertConditionCacheStats stats = new AlertConditionCacheStats();
+        try {
+            int eventCount = 0;
+            for (Map.Entry<EventSource, Set<Event>> entry : events.entrySet()) {
+                EventDetailsMatcher matcher = lookupEventDetailsMatcher(entry.getKey().getResource().getId());
+
+                if (matcher != null) {
+                    for (Event event : entry.getValue()) {
+                        processCacheElements(matcher.getCandidates(event.getDetail()), event.getSeverity(),
+                            event.getTimestamp(), stats, event.getDetail());
+                    }
+                }
+                eventCount += entry.getValue().size();
+            }
+
+            AlertConditionCacheMonitor.getMBean().incrementEventCacheElementMatches(stats.matched);
+            AlertConditionCacheMonitor.getMBean().incrementEventProcessingTime(stats.getAge());
+            if (log.isDebugEnabled()) {
+                log.debug("Check Events[sources=" + events.size() + ", size=" + eventCount + "] - " + stats);
+            }
+        } catch (Throwable t) {
+            // don't let any exceptions bubble up to the calling SLSB layer
+            log.error("Error during event cache processing for agent[id=" + agentId + "]", t);
+        }
+        return stats;
+    }
+
     public AlertConditionCacheStats checkConditions(DriftChangeSetSummary driftChangeSetSummary) {
         AlertConditionCacheStats stats = new AlertConditionCacheStats();
         try {
@@ -548,8 +596,8 @@ class AgentConditionCache extends AbstractConditionCache {
         return measurementTraitCache.get(scheduleId); // yup, might be null
     }
 
-    private List<EventCacheElement> lookupEventCacheElements(int resourceId) {
-        return eventsCache.get(resourceId); // yup, might be null
+    private EventDetailsMatcher lookupEventDetailsMatcher(int resourceId) {
+        return eventMatchers.get(resourceId); // yup, might be null
     }
 
     private List<DriftCacheElement> lookupDriftCacheElements(int resourceId) {
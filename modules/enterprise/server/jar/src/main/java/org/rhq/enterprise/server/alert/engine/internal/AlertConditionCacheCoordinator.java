@@ -18,11 +18,9 @@
  */
 package org.rhq.enterprise.server.alert.engine.internal;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
 
 import javax.persistence.EntityNotFoundException;
 
@@ -36,6 +34,7 @@ import org.rhq.core.domain.measurement.Availability;
 import org.rhq.core.domain.measurement.MeasurementData;
 import org.rhq.core.domain.measurement.calltime.CallTimeData;
 import org.rhq.core.domain.operation.OperationHistory;
+import org.rhq.core.util.collection.IntOpenHashMap;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.alert.engine.model.AbstractCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.AvailabilityDurationComposite;
@@ -85,9 +84,14 @@ public final class AlertConditionCacheCoordinator {
     }
 
     private volatile GlobalConditionCache globalCache;
-    private Map<Integer, AgentConditionCache> agentCaches;
 
-    private ReentrantReadWriteLock agentReadWriteLock;
+    /*
+     * copy-on-write snapshot of the agent caches: readers simply dereference the volatile field and never block,
+     * while a reload builds the new agent cache outside of any lock and then publishes a new snapshot with only
+     * that agent's entry swapped
+     */
+    private volatile IntOpenHashMap<AgentConditionCache> agentCaches;
+    private final Object agentCachesWriteLock = new Object();
 
     private AgentManagerLocal agentManager;
     private StatusManagerLocal statusManager;
@@ -99,8 +103,7 @@ public final class AlertConditionCacheCoordinator {
         globalCache = new GlobalConditionCache();
 
         // create the collections ahead of time
-        agentCaches = new HashMap<Integer, AgentConditionCache>();
-        agentReadWriteLock = new ReentrantReadWriteLock();
+        agentCaches = new IntOpenHashMap<AgentConditionCache>();
     }
 
     public static AlertConditionCacheCoordinator getInstance() {
@@ -172,15 +175,16 @@ public final class AlertConditionCacheCoordinator {
         }
 
         if (agentCache != null) {
-            agentReadWriteLock.writeLock().lock();
-            try {
-                // simply "forget" about the old cache, let the JVM release the memory in time
-                agentCaches.put(agentId, agentCache);
-                log.debug("Reloaded agent[id=" + agentId + "] cache");
-            } catch (Throwable t) {
-                log.error("Error reloading cache for agent[id=" + agentId + "]", t); // don't let any exceptions bubble up to the calling SLSB layer
-            } finally {
-                agentReadWriteLock.writeLock().unlock();
+            synchronized (agentCachesWriteLock) {
+                try {
+                    // simply "forget" about the old cache, let the JVM release the memory in time
+                    IntOpenHashMap<AgentConditionCache> newAgentCaches = agentCaches.copy();
+                    newAgentCaches.put(agentId, agentCache);
+                    agentCaches = newAgentCaches;
+                    log.debug("Reloaded agent[id=" + agentId + "] cache");
+                } catch (Throwable t) {
+                    log.error("Error reloading cache for agent[id=" + agentId + "]", t); // don't let any exceptions bubble up to the calling SLSB layer
+                }
             }
         }
     }
@@ -198,15 +202,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(measurementData);
         } else {
@@ -229,15 +225,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(callTimeData);
         } else {
@@ -285,15 +273,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(source, events);
         } else {
@@ -302,6 +282,49 @@ public final class AlertConditionCacheCoordinator {
         return stats;
     }
 
+    public AlertConditionCacheStats checkConditions(Map<EventSource, Set<Event>> events) {
+        AlertConditionCacheStats stats = new AlertConditionCacheStats();
+        if (events == null || events.isEmpty()) {
+            return stats;
+        }
+
+        // the sources of a report normally all belong to the same agent, so look up each resource's agent only once
+        Map<Integer, Integer> agentIds = new HashMap<Integer, Integer>();
+        Map<Integer, Map<EventSource, Set<Event>>> agentEvents = new HashMap<Integer, Map<EventSource, Set<Event>>>();
+        for (Map.Entry<EventSource, Set<Event>> entry : events.entrySet()) {
+            EventSource source = entry.getKey();
+            int resourceId = source.getResource().getId();
+            Integer agentId;
+            if (agentIds.containsKey(resourceId)) {
+                agentId = agentIds.get(resourceId);
+            } else {
+                agentId = getAgentId(source);
+                agentIds.put(resourceId, agentId);
+                if (agentId == null) {
+                    log.error("Could not find agent for resourceId = " + resourceId);
+                }
+            }
+            if (agentId == null) {
+                continue;
+            }
+
+            Map<EventSource, Set<Event>> sourceEvents = agentEvents.get(agentId);
+            if (sourceEvents == null) {
+                sourceEvents = new HashMap<EventSource, Set<Event>>();
+                agentEvents.put(agentId, sourceEvents);
+            }
+            sourceEvents.put(source, entry.getValue());
+        }
+
+        for (Map.Entry<Integer, Map<EventSource, Set<Event>>> entry : agentEvents.entrySet()) {
+            AgentConditionCache agentCache = agentCaches.get(entry.getKey());
+            if (agentCache != null) {
+                stats.add(agentCache.checkConditions(entry.getValue()));
+            }
+        }
+        return stats;
+    }
+
     public AlertConditionCacheStats checkConditions(DriftChangeSetSummary driftChangeSetSummary) {
         if (driftChangeSetSummary == null) {
             return new AlertConditionCacheStats();
@@ -314,15 +337,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(driftChangeSetSummary);
         } else {
@@ -406,17 +421,7 @@ public final class AlertConditionCacheCoordinator {
         if (cache.type == Cache.Type.Global) {
             result += globalCache.getCacheSize(cache);
         } else if (cache.type == Cache.Type.Agent) {
-            List<AgentConditionCache> cachesCopy = null;
-            agentReadWriteLock.readLock().lock();
-            try {
-                cachesCopy = new ArrayList<AgentConditionCache>(agentCaches.values());
-            } catch (Throwable t) {
-                log.error("Error during getCacheSize", t); // don't let any exceptions bubble up to the calling SLSB layer
-            } finally {
-                agentReadWriteLock.readLock().unlock();
-            }
-
-            for (AgentConditionCache agentCache : cachesCopy) {
+            for (AgentConditionCache agentCache : agentCaches.values()) {
                 result += agentCache.getCacheSize(cache);
             }
         } else {
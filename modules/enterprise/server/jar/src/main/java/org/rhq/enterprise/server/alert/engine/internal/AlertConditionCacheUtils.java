@@ -27,6 +27,7 @@ import org.apache.commons.logging.LogFactory;
 import org.rhq.core.domain.alert.AlertCondition;
 import org.rhq.core.domain.alert.AlertConditionCategory;
 import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.core.util.collection.IntOpenHashMap;
 import org.rhq.enterprise.server.alert.engine.model.AbstractCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.UnsupportedAlertConditionOperatorException;
 
@@ -165,6 +166,19 @@ class AlertConditionCacheUtils {
         return count;
     }
 
+    public static <T> int getMapListCount(IntOpenHashMap<List<T>> mapList) {
+        int count = 0;
+        try {
+            for (List<?> listValue : mapList.values()) {
+                count += listValue.size();
+            }
+        } catch (Throwable t) {
+            // don't let any exceptions bubble up to the calling SLSB layer
+            log.error("Error counting MapList", t);
+        }
+        return count;
+    }
+
     public static <R, S, T> int getMapMapListCount(Map<R, Map<S, List<T>>> mapMapList) {
         int count = 0;
         try {
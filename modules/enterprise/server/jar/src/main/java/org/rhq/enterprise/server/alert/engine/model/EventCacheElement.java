@@ -50,6 +50,13 @@ public class EventCacheElement extends AbstractEnumCacheElement<EventSeverity> {
             | Pattern.DOTALL);
     }
 
+    /**
+     * @return the pattern the event details have to match, or null if this element only compares the severity
+     */
+    public Pattern getEventDetailsPattern() {
+        return eventDetailsPattern;
+    }
+
     @Override
     public boolean matches(EventSeverity providedValue, Object... extraParams) {
         boolean matches = super.matches(providedValue, extraParams);
@@ -0,0 +1,406 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.alert.engine.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+
+/**
+ * Selects the {@link EventCacheElement}s of a resource that an event can match, so that the event details regular
+ * expressions only have to be evaluated for those.
+ * <p/>
+ * A literal that every match of an element's regular expression must contain is extracted from it, and the literals of
+ * all elements are compiled into one Aho-Corasick automaton. The event details are scanned by the automaton once, in
+ * a single pass whatever the number of elements, and only the elements whose literal was found remain candidates.
+ * Their regular expressions are still evaluated in {@link EventCacheElement#matches(org.rhq.core.domain.event.EventSeverity, Object...)},
+ * so the automaton only ever rules out elements that could not have matched.
+ * <p/>
+ * Elements without such a literal, elements whose operator keeps state across events, and elements that are currently
+ * active (which need to see the non-matching event to be deactivated) are always candidates.
+ * <p/>
+ * The matcher is immutable once built and can be used by several threads at once.
+ */
+public class EventDetailsMatcher {
+
+    private final List<EventCacheElement> cacheElements;
+
+    /*
+     * indexes of the elements that are always candidates
+     */
+    private final BitSet unfiltered = new BitSet();
+    private final int filteredCount;
+
+    /*
+     * the automaton: for each state, its sorted transition characters and their target states, its failure state, and
+     * the indexes of the elements whose literal was found when the state is reached
+     */
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] failures;
+    private final int[][] outputs;
+
+    public EventDetailsMatcher(List<EventCacheElement> cacheElements) {
+        this.cacheElements = cacheElements;
+
+        List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+        List<List<Integer>> trieOutputs = new ArrayList<List<Integer>>();
+        trie.add(new TreeMap<Character, Integer>());
+        trieOutputs.add(new ArrayList<Integer>());
+
+        int filtered = 0;
+        for (int i = 0; i < cacheElements.size(); i++) {
+            String literal = getRequiredLiteral(cacheElements.get(i));
+            if (literal == null) {
+                unfiltered.set(i);
+                continue;
+            }
+
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                Integer next = trie.get(state).get(literal.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    trieOutputs.add(new ArrayList<Integer>());
+                    trie.get(state).put(literal.charAt(j), next);
+                }
+                state = next;
+            }
+            trieOutputs.get(state).add(i);
+            filtered++;
+        }
+        this.filteredCount = filtered;
+
+        int states = trie.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        failures = new int[states];
+        outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            Map<Character, Integer> transitions = trie.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int j = 0;
+            for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                labels[state][j] = transition.getKey(); // sorted, the map is a TreeMap
+                targets[state][j] = transition.getValue();
+                j++;
+            }
+        }
+
+        // breadth first, so that the failure state of a state (which is shallower) is complete before the state
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        outputs[0] = toArray(trieOutputs.get(0));
+        for (int child : targets[0]) {
+            failures[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            List<Integer> output = trieOutputs.get(state);
+            for (int index : outputs[failures[state]]) {
+                output.add(index);
+            }
+            outputs[state] = toArray(output);
+            for (int j = 0; j < labels[state].length; j++) {
+                int child = targets[state][j];
+                int failure = failures[state];
+                int next = transition(failure, labels[state][j]);
+                while (next < 0 && failure != 0) {
+                    failure = failures[failure];
+                    next = transition(failure, labels[state][j]);
+                }
+                failures[child] = (next < 0) ? 0 : next;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements that are only candidates when their literal is found in the event details
+     */
+    public int getFilteredCount() {
+        return filteredCount;
+    }
+
+    /**
+     * Returns the elements that have to be processed for an event with the given details, in their original order.
+     * Any element that is not returned would not have matched the event.
+     *
+     * @param eventDetails the details of the event
+     * @return the candidate elements
+     */
+    public List<EventCacheElement> getCandidates(String eventDetails) {
+        if (filteredCount == 0 || eventDetails == null) {
+            return cacheElements;
+        }
+
+        BitSet candidates = scan(eventDetails);
+        candidates.or(unfiltered);
+
+        List<EventCacheElement> results = new ArrayList<EventCacheElement>(candidates.cardinality());
+        for (int i = 0, size = cacheElements.size(); i < size; i++) {
+            EventCacheElement cacheElement = cacheElements.get(i);
+            if (candidates.get(i) || cacheElement.isActive()) {
+                results.add(cacheElement);
+            }
+        }
+        return results;
+    }
+
+    private BitSet scan(String eventDetails) {
+        BitSet found = new BitSet(cacheElements.size());
+        int state = 0;
+        for (int i = 0, length = eventDetails.length(); i < length; i++) {
+            char c = Character.toLowerCase(eventDetails.charAt(i));
+            int next = transition(state, c);
+            while (next < 0 && state != 0) {
+                state = failures[state];
+                next = transition(state, c);
+            }
+            state = (next < 0) ? 0 : next;
+            for (int index : outputs[state]) {
+                found.set(index);
+            }
+        }
+        return found;
+    }
+
+    private int transition(int state, char c) {
+        int j = Arrays.binarySearch(labels[state], c);
+        return (j < 0) ? -1 : targets[state][j];
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static String getRequiredLiteral(EventCacheElement cacheElement) {
+        Pattern pattern = cacheElement.getEventDetailsPattern();
+        if (pattern == null) {
+            return null;
+        }
+
+        // these operators update the element with every event they see, matching or not
+        AlertConditionOperator operator = cacheElement.getAlertConditionOperator();
+        if (operator == AlertConditionOperator.CHANGES || operator == AlertConditionOperator.CHANGES_TO
+            || operator == AlertConditionOperator.CHANGES_FROM) {
+            return null;
+        }
+
+        return getRequiredLiteral(pattern.pattern());
+    }
+
+    /**
+     * Extracts the longest run of literal characters that any string matching the whole regular expression has to
+     * contain, lower cased character by character like the event details are when scanned. The analysis is
+     * conservative: anything inside groups and character classes is ignored, and no literal is returned for
+     * expressions with alternatives at the top level, inline flags, or escapes that are not simple.
+     *
+     * @param regex the regular expression
+     * @return the literal, or null if none could be found
+     */
+    static String getRequiredLiteral(String regex) {
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            switch (c) {
+            case '\\':
+                if (i + 1 == length) {
+                    return null;
+                }
+                char escaped = regex.charAt(i + 1);
+                if (escaped == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        end = length;
+                    }
+                    run.append(regex, i + 2, end);
+                    i = end + 2;
+                } else if (!Character.isLetterOrDigit(escaped)) {
+                    run.append(escaped);
+                    i += 2;
+                } else if ("dDsSwWbBAGZz".indexOf(escaped) >= 0) {
+                    longest = longest(longest, run);
+                    i += 2;
+                } else {
+                    // control characters, code points, properties, back references...
+                    return null;
+                }
+                break;
+            case '[':
+                longest = longest(longest, run);
+                i = skipCharacterClass(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                break;
+            case '(':
+                if (i + 2 < length && regex.charAt(i + 1) == '?'
+                    && (Character.isLetter(regex.charAt(i + 2)) || regex.charAt(i + 2) == '-')) {
+                    // inline flags, e.g. (?x) which changes what the literal characters mean
+                    return null;
+                }
+                longest = longest(longest, run);
+                i = skipGroup(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                break;
+            case '|':
+            case ')':
+                return null;
+            case '*':
+            case '?':
+            case '{':
+                // the quantified character is optional
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                longest = longest(longest, run);
+                if (c == '{') {
+                    i = regex.indexOf('}', i);
+                    if (i < 0) {
+                        return null;
+                    }
+                }
+                i++;
+                break;
+            case '+':
+                // the quantified character is there at least once, but what follows is not necessarily next to it
+                longest = longest(longest, run);
+                i++;
+                break;
+            case '.':
+            case '^':
+            case '$':
+                longest = longest(longest, run);
+                i++;
+                break;
+            default:
+                run.append(c);
+                i++;
+            }
+        }
+        longest = longest(longest, run);
+
+        if (longest.length() == 0) {
+            return null;
+        }
+        char[] chars = longest.toCharArray();
+        for (int j = 0; j < chars.length; j++) {
+            chars[j] = Character.toLowerCase(chars[j]);
+        }
+        return new String(chars);
+    }
+
+    /*
+     * returns the longer of the two and empties the run
+     */
+    private static String longest(String longest, StringBuilder run) {
+        if (run.length() > longest.length()) {
+            longest = run.toString();
+        }
+        run.setLength(0);
+        return longest;
+    }
+
+    /*
+     * returns the index after the character class starting at the given index, or -1 if it does not end
+     */
+    private static int skipCharacterClass(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++; // a leading ] is a literal
+        }
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '[') {
+                i = skipCharacterClass(regex, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == ']') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * returns the index after the group starting at the given index, or -1 if it does not end
+     */
+    private static int skipGroup(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        return -1;
+                    }
+                    i = end + 2;
+                } else {
+                    i += 2;
+                }
+            } else if (c == '[') {
+                i = skipCharacterClass(regex, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                depth--;
+                i++;
+                if (depth == 0) {
+                    return i;
+                }
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+}
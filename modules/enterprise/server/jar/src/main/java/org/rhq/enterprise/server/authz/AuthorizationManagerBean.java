@@ -18,23 +18,30 @@
  */
 package org.rhq.enterprise.server.authz;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.interceptor.ExcludeDefaultInterceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.authz.Permission;
 import org.rhq.core.domain.authz.Permission.Target;
+import org.rhq.core.domain.authz.Role;
 import org.rhq.core.domain.content.Repo;
 import org.rhq.core.domain.resource.group.ResourceGroup;
 import org.rhq.enterprise.server.RHQConstants;
+import org.rhq.enterprise.server.util.BatchIterator;
 
 /**
  * @author Joseph Marques
@@ -48,9 +55,47 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
     private static final int SUBJECT_ID_OVERLORD = 1;
     private static final int SUBJECT_ID_RHQADMIN = 2;
 
+    // shared by all bean instances; see PermissionIndex for how it is kept up to date
+    private static final PermissionIndex permissionIndex = new PermissionIndex();
+
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    @Resource
+    private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    private final PermissionIndex.Loader permissionIndexLoader = new PermissionIndex.Loader() {
+        public long loadGeneration() {
+            Query query = entityManager.createNativeQuery(Role.NATIVE_QUERY_FIND_AUTHZ_GENERATION);
+            return ((Number) query.getSingleResult()).longValue();
+        }
+
+        @SuppressWarnings("unchecked")
+        public Collection<Integer> loadRoleIds(int subjectId) {
+            Query query = entityManager.createNamedQuery(Role.QUERY_FIND_IDS_BY_SUBJECT_ID);
+            query.setParameter("subjectId", subjectId);
+            return query.getResultList();
+        }
+
+        @SuppressWarnings("unchecked")
+        public PermissionIndex.RoleEntry loadRole(int roleId) {
+            Role role = entityManager.find(Role.class, roleId);
+            if (role == null) {
+                return null;
+            }
+
+            Query query = entityManager.createNamedQuery(Role.QUERY_FIND_GROUP_IDS_BY_ROLE_ID);
+            query.setParameter("roleId", roleId);
+            List<Integer> groupIds = query.getResultList();
+
+            query = entityManager.createNamedQuery(Role.QUERY_FIND_IMPLICIT_RESOURCE_IDS_BY_ROLE_ID);
+            query.setParameter("roleId", roleId);
+            List<Integer> resourceIds = query.getResultList();
+
+            return new PermissionIndex.RoleEntry(role.getPermissions(), groupIds, resourceIds);
+        }
+    };
+
     @SuppressWarnings("unchecked")
     public Set<Permission> getExplicitGlobalPermissions(Subject subject) {
         Query query = entityManager.createNamedQuery(Subject.QUERY_GET_GLOBAL_PERMISSIONS);
@@ -130,6 +175,10 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
             return true;
         }
 
+        if (permissionIndex.isEnabled()) {
+            return permissionIndex.hasGlobalPermission(permissionIndexLoader, subject.getId(), permission);
+        }
+
         Query query = entityManager.createNamedQuery(Subject.QUERY_HAS_GLOBAL_PERMISSION);
         query.setParameter("subject", subject);
         query.setParameter("permission", permission);
@@ -147,7 +196,11 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
         Subject owner = group.getSubject();
 
         if (null == owner) {
-            // role-owned group
+            // role-owned group; the index does not know about the roles of recursive auto-clusters' groups
+            if (permissionIndex.isEnabled() && group.getClusterResourceGroup() == null) {
+                return permissionIndex.hasGroupPermission(permissionIndexLoader, subject.getId(), permission, groupId);
+            }
+
             Query query = entityManager.createNamedQuery(Subject.QUERY_HAS_GROUP_PERMISSION);
             query.setParameter("subject", subject);
             query.setParameter("permission", permission);
@@ -175,6 +228,11 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
             return true;
         }
 
+        if (permissionIndex.isEnabled()) {
+            return permissionIndex.hasResourcePermission(permissionIndexLoader, subject.getId(), permission,
+                resourceId);
+        }
+
         Query query = entityManager.createNamedQuery(Subject.QUERY_HAS_RESOURCE_PERMISSION);
         query.setParameter("subject", subject);
         query.setParameter("permission", permission);
@@ -212,6 +270,10 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
             return true;
         }
 
+        if (permissionIndex.isEnabled()) {
+            return permissionIndex.canViewResource(permissionIndexLoader, subject.getId(), resourceId);
+        }
+
         Query query = entityManager.createNamedQuery(Subject.QUERY_CAN_VIEW_RESOURCE);
         query.setParameter("subject", subject);
         query.setParameter("resourceId", resourceId);
@@ -224,6 +286,10 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
             return true;
         }
 
+        if (permissionIndex.isEnabled()) {
+            return permissionIndex.canViewResources(permissionIndexLoader, subject.getId(), resourceIds);
+        }
+
         Query query = entityManager.createNamedQuery(Subject.QUERY_CAN_VIEW_RESOURCES);
         query.setParameter("subject", subject);
         query.setParameter("resourceIds", resourceIds);
@@ -319,4 +385,87 @@ public class AuthorizationManagerBean implements AuthorizationManagerLocal {
         return num > 0;
     }
 
-}
\ No newline at end of file
+    public void invalidatePermissionIndexForSubjects(final int... subjectIds) {
+        invalidatePermissionIndex(new Runnable() {
+            public void run() {
+                for (int subjectId : subjectIds) {
+                    permissionIndex.invalidateSubject(subjectId);
+                }
+            }
+        }, true);
+    }
+
+    public void invalidatePermissionIndexForRoles(final int... roleIds) {
+        invalidatePermissionIndex(new Runnable() {
+            public void run() {
+                for (int roleId : roleIds) {
+                    permissionIndex.invalidateRole(roleId);
+                }
+            }
+        }, true);
+    }
+
+    public void invalidatePermissionIndexForGroups(final int... groupIds) {
+        invalidatePermissionIndex(new Runnable() {
+            public void run() {
+                for (int groupId : groupIds) {
+                    permissionIndex.invalidateGroup(groupId);
+                }
+            }
+        }, isAssignedToRole(groupIds));
+    }
+
+    /**
+     * Group membership changes often, with every inventory change, but only matters to the index if a role references
+     * the group.
+     */
+    private boolean isAssignedToRole(int... groupIds) {
+        List<Integer> ids = new ArrayList<Integer>(groupIds.length);
+        for (int groupId : groupIds) {
+            ids.add(groupId);
+        }
+        for (List<Integer> batch : new BatchIterator<Integer>(ids)) {
+            Query query = entityManager.createNamedQuery(Role.QUERY_COUNT_BY_GROUP_IDS);
+            query.setParameter("groupIds", batch);
+            if (((Number) query.getSingleResult()).longValue() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void invalidatePermissionIndex() {
+        invalidatePermissionIndex(new Runnable() {
+            public void run() {
+                permissionIndex.invalidateAll();
+            }
+        }, true);
+    }
+
+    /**
+     * Runs the invalidation now, and again once the caller's transaction completes, so that entries loaded by other
+     * threads before the change was committed do not survive it.
+     *
+     * @param shared if true the database generation is incremented in the caller's transaction, so that the indexes of
+     * all servers drop their entries once the change is committed
+     */
+    private void invalidatePermissionIndex(final Runnable invalidation, boolean shared) {
+        invalidation.run();
+        if (shared) {
+            entityManager.createNativeQuery(Role.NATIVE_UPDATE_AUTHZ_GENERATION).executeUpdate();
+        }
+
+        if (transactionSynchronizationRegistry != null
+            && transactionSynchronizationRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+            transactionSynchronizationRegistry.registerInterposedSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+
+                public void afterCompletion(int status) {
+                    invalidation.run();
+                }
+            });
+        }
+    }
+
+}
@@ -244,4 +244,35 @@ public interface AuthorizationManagerLocal {
      */
     boolean canUpdateRepo(Subject subject, int repoId);
 
-}
\ No newline at end of file
+    /**
+     * Drops the subjects' role assignments from the in-memory permission index. Call when roles are assigned to or
+     * unassigned from the subjects. The entries are dropped again once the caller's transaction completes.
+     *
+     * @param subjectIds the ids of the subjects that changed
+     */
+    void invalidatePermissionIndexForSubjects(int... subjectIds);
+
+    /**
+     * Drops the roles from the in-memory permission index. Call when the permissions or resource groups of the roles
+     * change, or the roles are deleted. The entries are dropped again once the caller's transaction completes.
+     *
+     * @param roleIds the ids of the roles that changed
+     */
+    void invalidatePermissionIndexForRoles(int... roleIds);
+
+    /**
+     * Drops the roles the groups are assigned to from the in-memory permission index. Call when the (implicit)
+     * members of the groups change, or the groups are deleted. The entries are dropped again once the caller's
+     * transaction completes.
+     *
+     * @param groupIds the ids of the groups that changed
+     */
+    void invalidatePermissionIndexForGroups(int... groupIds);
+
+    /**
+     * Empties the in-memory permission index of all servers. Call after changing authorization data in a way the other
+     * methods do not cover.
+     */
+    void invalidatePermissionIndex();
+
+}
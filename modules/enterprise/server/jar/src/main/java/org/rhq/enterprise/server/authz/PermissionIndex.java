@@ -0,0 +1,302 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.authz;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.core.domain.authz.Permission;
+
+/**
+ * An in-memory index of the roles of each subject, and of the permissions, groups and (implicit) resources of each
+ * role, so that the common authorization checks of {@link AuthorizationManagerBean} are memory lookups rather than
+ * queries. Subjects and roles are loaded lazily, through a {@link Loader}, the first time they are checked.
+ * <p/>
+ * Entries are invalidated as soon as the role, subject or group they were built from changes on this server. Every
+ * such change also increments a generation counter stored in the database, which each check reads first, see
+ * {@link Loader#loadGeneration()}. When it differs from the value the index last saw, some server of the cloud
+ * changed authorization data and the whole index is dropped. To keep an invalidation from being undone by a load that
+ * read the data just before it, every invalidation also moves the index to a new local generation and loads started
+ * in an older one are used but not kept.
+ */
+public class PermissionIndex {
+
+    /**
+     * System property that disables the index when set to false.
+     */
+    public static final String ENABLED_PROPERTY = "rhq.server.authz.permission-index.enabled";
+
+    /**
+     * Loads the authorization data of a subject or role from the database.
+     */
+    public interface Loader {
+        /**
+         * @return the database's authorization generation, which changes whenever authorization data changes on any
+         * server
+         */
+        long loadGeneration();
+
+        /**
+         * @return the ids of the roles assigned to the subject
+         */
+        Collection<Integer> loadRoleIds(int subjectId);
+
+        /**
+         * @return the role's data, or null if the role does not exist
+         */
+        RoleEntry loadRole(int roleId);
+    }
+
+    /**
+     * What a role grants: its permissions, on its groups and on their implicit resources.
+     */
+    public static class RoleEntry {
+        private final Set<Permission> permissions;
+        private final BitSet groupIds = new BitSet();
+        private final BitSet resourceIds = new BitSet();
+
+        public RoleEntry(Collection<Permission> permissions, Collection<Integer> groupIds,
+            Collection<Integer> resourceIds) {
+            this.permissions = permissions.isEmpty() ? EnumSet.noneOf(Permission.class) : EnumSet.copyOf(permissions);
+            for (Integer groupId : groupIds) {
+                this.groupIds.set(groupId);
+            }
+            for (Integer resourceId : resourceIds) {
+                this.resourceIds.set(resourceId);
+            }
+        }
+
+        boolean hasPermission(Permission permission) {
+            return permissions.contains(permission);
+        }
+
+        boolean containsGroup(int groupId) {
+            return groupIds.get(groupId);
+        }
+
+        boolean containsResource(int resourceId) {
+            return resourceIds.get(resourceId);
+        }
+    }
+
+    private static class SubjectEntry {
+        private final int[] roleIds;
+
+        SubjectEntry(Collection<Integer> roleIds) {
+            this.roleIds = new int[roleIds.size()];
+            int i = 0;
+            for (Integer roleId : roleIds) {
+                this.roleIds[i++] = roleId;
+            }
+        }
+    }
+
+    private final ConcurrentMap<Integer, SubjectEntry> subjects = new ConcurrentHashMap<Integer, SubjectEntry>();
+
+    private final ConcurrentMap<Integer, RoleEntry> roles = new ConcurrentHashMap<Integer, RoleEntry>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    // the database generation the entries were loaded in, null until the first check
+    private volatile Long databaseGeneration;
+
+    private final boolean enabled;
+
+    public PermissionIndex() {
+        this(!"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY)));
+    }
+
+    public PermissionIndex(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return false if the index is disabled and must not be used
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean hasGlobalPermission(Loader loader, int subjectId, Permission permission) {
+        checkDatabaseGeneration(loader);
+        for (int roleId : getRoleIds(loader, subjectId)) {
+            RoleEntry role = getRole(loader, roleId);
+            if (role != null && role.hasPermission(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the permission is granted on the group through one of the roles the group is assigned to.
+     * This does not cover private groups or the backing groups of auto-clusters.
+     */
+    public boolean hasGroupPermission(Loader loader, int subjectId, Permission permission, int groupId) {
+        checkDatabaseGeneration(loader);
+        for (int roleId : getRoleIds(loader, subjectId)) {
+            RoleEntry role = getRole(loader, roleId);
+            if (role != null && role.hasPermission(permission) && role.containsGroup(groupId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasResourcePermission(Loader loader, int subjectId, Permission permission, int resourceId) {
+        checkDatabaseGeneration(loader);
+        for (int roleId : getRoleIds(loader, subjectId)) {
+            RoleEntry role = getRole(loader, roleId);
+            if (role != null && role.hasPermission(permission) && role.containsResource(resourceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canViewResource(Loader loader, int subjectId, int resourceId) {
+        checkDatabaseGeneration(loader);
+        for (int roleId : getRoleIds(loader, subjectId)) {
+            RoleEntry role = getRole(loader, roleId);
+            if (role != null && role.containsResource(resourceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canViewResources(Loader loader, int subjectId, Collection<Integer> resourceIds) {
+        checkDatabaseGeneration(loader);
+        int[] roleIds = getRoleIds(loader, subjectId);
+        RoleEntry[] subjectRoles = new RoleEntry[roleIds.length];
+        for (int i = 0; i < roleIds.length; ++i) {
+            subjectRoles[i] = getRole(loader, roleIds[i]);
+        }
+
+        for (Integer resourceId : resourceIds) {
+            boolean viewable = false;
+            for (RoleEntry role : subjectRoles) {
+                if (role != null && role.containsResource(resourceId)) {
+                    viewable = true;
+                    break;
+                }
+            }
+            if (!viewable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Call when the roles assigned to the subject changed.
+     */
+    public void invalidateSubject(int subjectId) {
+        generation.incrementAndGet();
+        subjects.remove(subjectId);
+    }
+
+    /**
+     * Call when the permissions or groups of the role changed, or the role was deleted.
+     */
+    public void invalidateRole(int roleId) {
+        generation.incrementAndGet();
+        roles.remove(roleId);
+    }
+
+    /**
+     * Call when the (implicit) resources of the group changed, or the group was deleted. Only the roles the group is
+     * assigned to are reloaded.
+     */
+    public void invalidateGroup(int groupId) {
+        generation.incrementAndGet();
+        for (Iterator<Map.Entry<Integer, RoleEntry>> i = roles.entrySet().iterator(); i.hasNext();) {
+            if (i.next().getValue().containsGroup(groupId)) {
+                i.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        subjects.clear();
+        roles.clear();
+    }
+
+    /**
+     * Drops all entries if authorization data changed in the database since they were loaded. A change committed
+     * after the generation was read is caught by the next check; the local generation it moves to keeps loads racing
+     * with it from being kept.
+     */
+    void checkDatabaseGeneration(Loader loader) {
+        long current = loader.loadGeneration();
+        Long known = databaseGeneration;
+        if (known == null || known.longValue() != current) {
+            invalidateAll();
+            databaseGeneration = current;
+        }
+    }
+
+    int[] getRoleIds(Loader loader, int subjectId) {
+        SubjectEntry entry = subjects.get(subjectId);
+        if (entry == null) {
+            long loadGeneration = generation.get();
+            entry = new SubjectEntry(loader.loadRoleIds(subjectId));
+            if (generation.get() == loadGeneration) {
+                subjects.put(subjectId, entry);
+                if (generation.get() != loadGeneration) {
+                    // invalidated while being put
+                    subjects.remove(subjectId, entry);
+                }
+            }
+        }
+        return entry.roleIds;
+    }
+
+    RoleEntry getRole(Loader loader, int roleId) {
+        RoleEntry entry = roles.get(roleId);
+        if (entry == null) {
+            long loadGeneration = generation.get();
+            entry = loader.loadRole(roleId);
+            if (entry == null) {
+                roles.remove(roleId);
+                return null;
+            }
+            if (generation.get() == loadGeneration) {
+                roles.put(roleId, entry);
+                if (generation.get() != loadGeneration) {
+                    // invalidated while being put
+                    roles.remove(roleId, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    int size() {
+        return subjects.size() + roles.size();
+    }
+}
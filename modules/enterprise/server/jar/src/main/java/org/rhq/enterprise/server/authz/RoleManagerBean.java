@@ -216,6 +216,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
 
                 entityManager.remove(doomedRole);
             }
+
+            authorizationManager.invalidatePermissionIndexForRoles(doomedRoleIds);
         }
 
         return;
@@ -258,6 +260,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                     role.addLdapSubject(subjectToModify);
                 }
             }
+
+            authorizationManager.invalidatePermissionIndexForSubjects(subjectId);
         }
     }
 
@@ -287,6 +291,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 role.addSubject(newSubject);
 
             }
+
+            authorizationManager.invalidatePermissionIndexForSubjects(subjectIds);
         }
 
         return;
@@ -311,6 +317,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                     role.removeSubject(subjectToModify);
                 }
             }
+
+            authorizationManager.invalidatePermissionIndexForSubjects(subjectId);
         }
 
         return;
@@ -367,6 +375,7 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
         rolePermissions.addAll(permissions);
         entityManager.merge(role);
         entityManager.flush();
+        authorizationManager.invalidatePermissionIndexForRoles(roleId);
         return;
     }
 
@@ -410,11 +419,13 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
             }
             for (Subject subject : subjectsToRemove) {
                 attachedRole.removeSubject(subject);
+                authorizationManager.invalidatePermissionIndexForSubjects(subject.getId());
             }
 
             for (Subject subject : newSubjects) {
                 Subject attachedSubject = entityManager.find(Subject.class, subject.getId());
                 attachedRole.addSubject(attachedSubject);
+                authorizationManager.invalidatePermissionIndexForSubjects(subject.getId());
             }
         }
 
@@ -455,6 +466,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
             }
         }
 
+        authorizationManager.invalidatePermissionIndexForRoles(attachedRole.getId());
+
         // Fetch the lazy Sets on the Role to be returned.
         attachedRole.getResourceGroups().size();
         attachedRole.getSubjects().size();
@@ -582,6 +595,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 }
                 role.addResourceGroup(group);
             }
+
+            authorizationManager.invalidatePermissionIndexForRoles(roleId);
         }
 
         return;
@@ -607,6 +622,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 }
                 role.removeResourceGroup(doomedGroup);
             }
+
+            authorizationManager.invalidatePermissionIndexForRoles(roleId);
         }
     }
 
@@ -686,6 +703,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 }
                 role.removeSubject(doomedSubject);
             }
+
+            authorizationManager.invalidatePermissionIndexForSubjects(subjectIds);
         }
     }
 
@@ -738,6 +757,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 }
                 group.removeRole(doomedRole);
             }
+
+            authorizationManager.invalidatePermissionIndexForRoles(roleIds);
         }
 
         return;
@@ -764,6 +785,8 @@ public class RoleManagerBean implements RoleManagerLocal, RoleManagerRemote {
                 }
                 group.addRole(role);
             }
+
+            authorizationManager.invalidatePermissionIndexForRoles(roleIds);
         }
 
         return;
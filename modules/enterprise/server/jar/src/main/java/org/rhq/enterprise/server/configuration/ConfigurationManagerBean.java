@@ -20,6 +20,7 @@ package org.rhq.enterprise.server.configuration;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -120,6 +121,8 @@ import org.rhq.enterprise.server.resource.ResourceNotFoundException;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
 import org.rhq.enterprise.server.resource.group.ResourceGroupNotFoundException;
 import org.rhq.enterprise.server.resource.group.ResourceGroupUpdateException;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.scheduler.SchedulerLocal;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
@@ -147,6 +150,8 @@ public class ConfigurationManagerBean implements ConfigurationManagerLocal, Conf
     @EJB
     private ResourceGroupManagerLocal resourceGroupManager;
     @EJB
+    private GroupDefinitionManagerLocal groupDefinitionManager;
+    @EJB
     private ResourceManagerLocal resourceManager;
     @EJB
     private ConfigurationManagerLocal configurationManager; // yes, this is ourself
@@ -218,6 +223,8 @@ public class ConfigurationManagerBean implements ConfigurationManagerLocal, Conf
         // link to the newer, persisted configuration object -- regardless of errors
         resource.setAgentSynchronizationNeeded();
         resource.setPluginConfiguration(update.getConfiguration());
+        groupDefinitionManager.recordResourceChanges(ExpressionDependency.PLUGIN_CONFIGURATION, Collections
+            .singletonList(resource.getId()));
 
         if (response.getStatus() == ConfigurationUpdateStatus.SUCCESS) {
             update.setStatus(ConfigurationUpdateStatus.SUCCESS);
@@ -43,6 +43,9 @@ import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.cloud.TopologyManagerLocal;
 import org.rhq.enterprise.server.cloud.instance.ServerManagerLocal;
+import org.rhq.enterprise.server.measurement.ingest.MeasurementReportQueue;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBuffer;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStoreFactory;
 import org.rhq.enterprise.server.scheduler.SchedulerLocal;
 import org.rhq.enterprise.server.util.LookupUtil;
 
@@ -90,6 +93,8 @@ public class ShutdownListener {
         log.info("Shutdown listener has been told we are shutting down - starting to clean up now...");
         logShutdownTime();
         stopScheduler();
+        stopMeasurementIngest();
+        stopMeasurementDataStore();
         updateServerOperationMode();
         stopEmbeddedDatabase();
         log.info("Shutdown listener completed its shutdown tasks. It is safe to shutdown now.");
@@ -164,6 +169,35 @@ public class ShutdownListener {
         }
     }
 
+    /**
+     * This will write out (or spool) the reports still sitting in the ingest queue, and then all numeric data still
+     * sitting in the bulk ingest buffer.
+     */
+    private void stopMeasurementIngest() {
+        try {
+            MeasurementReportQueue.getSingleton().shutdown();
+        } catch (Throwable t) {
+            log.warn("Failed to drain the measurement ingest queue: " + t.getMessage());
+        }
+
+        try {
+            NumericDataBuffer.getSingleton().shutdown();
+        } catch (Throwable t) {
+            log.warn("Failed to flush the numeric data bulk ingest buffer: " + t.getMessage());
+        }
+    }
+
+    /**
+     * This will close the numeric measurement data store, after the ingest buffer has been written into it.
+     */
+    private void stopMeasurementDataStore() {
+        try {
+            MeasurementDataStoreFactory.shutdown();
+        } catch (Throwable t) {
+            log.warn("Failed to close the measurement data store: " + t.getMessage());
+        }
+    }
+
     private void updateServerOperationMode() {
         try {
             // Set the server operation mode to DOWN unless in MM
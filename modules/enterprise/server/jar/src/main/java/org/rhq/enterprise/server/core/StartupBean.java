@@ -69,6 +69,8 @@ import org.rhq.enterprise.server.cloud.instance.ServerManagerLocal;
 import org.rhq.enterprise.server.cloud.instance.SyncEndpointAddressException;
 import org.rhq.enterprise.server.core.comm.ServerCommunicationsServiceUtil;
 import org.rhq.enterprise.server.core.plugin.PluginDeploymentScannerMBean;
+import org.rhq.enterprise.server.measurement.ingest.MeasurementReportQueue;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBuffer;
 import org.rhq.enterprise.server.naming.NamingHack;
 import org.rhq.enterprise.server.plugin.pc.MasterServerPluginContainer;
 import org.rhq.enterprise.server.plugin.pc.ServerPluginServiceMBean;
@@ -193,6 +195,7 @@ public class StartupBean {
         startPluginDeployer(); // make sure this is initialized before starting the server plugin container
         startServerPluginContainer(); // before comm in case an agent wants to talk to it
         installJaasModules();
+        startMeasurementIngest(); // before comm so agent reports can be buffered right away
         startServerCommunicationServices();
         startScheduler();
         scheduleJobs();
@@ -440,6 +443,24 @@ public class StartupBean {
         }
     }
 
+    /**
+     * Starts the bulk ingest buffer for numeric measurement data, if it has been enabled.
+     */
+    private void startMeasurementIngest() {
+        try {
+            NumericDataBuffer.getSingleton().start();
+        } catch (Throwable t) {
+            log.error("Failed to start the numeric data bulk ingest - measurement data will be inserted per report",
+                t);
+        }
+
+        try {
+            MeasurementReportQueue.getSingleton().start();
+        } catch (Throwable t) {
+            log.error("Failed to start the measurement ingest queue - reports will be merged as they are received", t);
+        }
+    }
+
     /**
      * Initializes the server-side communications services. Once complete, agents can talk to the server.
      *
@@ -609,14 +630,11 @@ public class StartupBean {
             log.error("Cannot schedule check-for-timed-out-artifact-requests job.", e);
         }
 
-        // Data Purge Job
+        // Data Purge Job, with a trigger per data maintenance task, one after the other over the hour
         try {
-            // TODO [mazz]: make the data purge job's cron string configurable via SystemManagerBean
-            // For Quartz cron syntax, see: http://www.quartz-scheduler.org/documentation/quartz-2.1.x/tutorials/crontrigger
-            String cronString = "0 0 * * * ?"; // every hour, on the hour
-            schedulerBean.scheduleSimpleCronJob(DataPurgeJob.class, true, false, cronString);
+            DataPurgeJob.scheduleTasks(schedulerBean);
         } catch (Exception e) {
-            log.error("Cannot schedule data purge job.", e);
+            log.error("Cannot schedule data purge jobs.", e);
         }
 
         // Server Plugin Jobs
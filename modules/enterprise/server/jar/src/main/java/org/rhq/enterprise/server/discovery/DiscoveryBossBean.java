@@ -66,6 +66,7 @@ import org.rhq.core.domain.authz.Permission;
 import org.rhq.core.domain.configuration.Configuration;
 import org.rhq.core.domain.criteria.ResourceCriteria;
 import org.rhq.core.domain.discovery.MergeResourceResponse;
+import org.rhq.core.domain.discovery.ResourceSyncHash;
 import org.rhq.core.domain.discovery.ResourceSyncInfo;
 import org.rhq.core.domain.resource.Agent;
 import org.rhq.core.domain.resource.CannotConnectToAgentException;
@@ -94,6 +95,8 @@ import org.rhq.enterprise.server.resource.ResourceAvailabilityManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceTypeManagerLocal;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.resource.metadata.PluginManagerLocal;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
 import org.rhq.enterprise.server.util.LookupUtil;
@@ -121,6 +124,8 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
     @EJB
     private ResourceGroupManagerLocal groupManager;
     @EJB
+    private GroupDefinitionManagerLocal groupDefinitionManager;
+    @EJB
     private ResourceManagerLocal resourceManager;
     @EJB
     private ResourceAvailabilityManagerLocal resourceAvailabilityManager;
@@ -137,6 +142,87 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
     private PluginManagerLocal pluginManager;
 
     public ResourceSyncInfo mergeInventoryReport(InventoryReport report) throws InvalidInventoryReportException {
+        long start = System.currentTimeMillis();
+        Resource platform = mergeInventoryReportInternal(report);
+
+        //the platform can be null in only one scenario.. a brand new agent has connected to the server
+        //and that agent is currently trying to upgrade its resources. For that it asks us to send down
+        //the current inventory on the server side. But at this point there isn't any since that very
+        //agent just registered and is starting up for the very first time and therefore hasn't had
+        //a chance yet to send us its full inventory report.
+        ResourceSyncInfo syncInfo = null;
+        if (platform != null) {
+            // Prepare the ResourceSyncInfo tree which contains all the info the PC needs to sync itself up with us.
+            syncInfo = this.entityManager.find(ResourceSyncInfo.class, platform.getId());
+            // a hashed sync of this agent that is still in progress must not continue on the old hashes
+            ResourceSyncHashCache.getSingleton().invalidate(platform.getId());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Inventory merge completed in (" + (System.currentTimeMillis() - start) + ")ms");
+        }
+
+        return syncInfo;
+    }
+
+    public ResourceSyncHash mergeInventoryReportForHashedSync(InventoryReport report)
+        throws InvalidInventoryReportException {
+        long start = System.currentTimeMillis();
+        Resource platform = mergeInventoryReportInternal(report);
+
+        // see mergeInventoryReport() for when the platform can be null
+        ResourceSyncHash syncHash = null;
+        if (platform != null) {
+            ResourceSyncHashTree tree = loadSyncHashTree(platform.getId());
+            ResourceSyncHashCache.getSingleton().put(tree, platform.getId());
+            syncHash = tree.get(platform.getId());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Inventory merge for hashed sync completed in (" + (System.currentTimeMillis() - start) + ")ms");
+        }
+
+        return syncHash;
+    }
+
+    public Map<Integer, List<ResourceSyncHash>> getChildSyncHashes(Set<Integer> parentResourceIds) {
+        ResourceSyncHashCache cache = ResourceSyncHashCache.getSingleton();
+        Map<Integer, List<ResourceSyncHash>> result = new HashMap<Integer, List<ResourceSyncHash>>(
+            parentResourceIds.size() * 4 / 3 + 1);
+        for (Integer parentResourceId : parentResourceIds) {
+            ResourceSyncHashTree tree = cache.find(parentResourceId);
+            if (tree == null) {
+                tree = loadSyncHashTree(parentResourceId);
+                if (!tree.contains(parentResourceId)) {
+                    // the parent has been uninventoried in the meantime
+                    result.put(parentResourceId, new ArrayList<ResourceSyncHash>(0));
+                    continue;
+                }
+                cache.put(tree, parentResourceId);
+            }
+            result.put(parentResourceId, new ArrayList<ResourceSyncHash>(tree.getChildren(parentResourceId)));
+        }
+        return result;
+    }
+
+    /**
+     * Builds the sync hash tree of all Resources managed by the agent that also manages the given Resource. This is a
+     * single flat query rather than the eagerly fetched {@link ResourceSyncInfo} tree.
+     */
+    @SuppressWarnings("unchecked")
+    private ResourceSyncHashTree loadSyncHashTree(int resourceId) {
+        Query query = entityManager.createNamedQuery(Resource.QUERY_FIND_SYNC_DATA_BY_AGENT_OF_RESOURCE);
+        query.setParameter("resourceId", resourceId);
+        List<Object[]> rows = query.getResultList();
+        return new ResourceSyncHashTree(rows);
+    }
+
+    /**
+     * Merges the report into inventory.
+     *
+     * @return the platform of the reporting agent, or null if the server does not have it yet
+     */
+    private Resource mergeInventoryReportInternal(InventoryReport report) throws InvalidInventoryReportException {
         validateInventoryReport(report);
 
         DeletedResourceTypeFilter filter = new DeletedResourceTypeFilter(subjectManager, resourceTypeManager, pluginManager);
@@ -155,7 +241,6 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
         }
 
         Agent agent = report.getAgent();
-        long start = System.currentTimeMillis();
 
         Agent knownAgent = agentManager.getAgentByName(agent.getName());
         if (knownAgent == null) {
@@ -200,22 +285,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             }
         }
 
-        // Prepare the ResourceSyncInfo tree which contains all the info the PC needs to sync itself up with us.
-        Resource platform = this.resourceManager.getPlatform(knownAgent);
-
-        //the platform can be null in only one scenario.. a brand new agent has connected to the server
-        //and that agent is currently trying to upgrade its resources. For that it asks us to send down
-        //the current inventory on the server side. But at this point there isn't any since that very
-        //agent just registered and is starting up for the very first time and therefore hasn't had
-        //a chance yet to send us its full inventory report.
-        ResourceSyncInfo syncInfo = platform != null ? this.entityManager
-            .find(ResourceSyncInfo.class, platform.getId()) : null;
-
-        if (log.isDebugEnabled()) {
-            log.debug("Inventory merge completed in (" + (System.currentTimeMillis() - start) + ")ms");
-        }
-
-        return syncInfo;
+        return this.resourceManager.getPlatform(knownAgent);
     }
 
     @RequiredPermission(Permission.MANAGE_INVENTORY)
@@ -530,6 +600,8 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             boolean changed = updateResourceVersion(existingResource, version);
             if (changed) {
                 this.entityManager.merge(existingResource);
+                groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+                    .singletonList(resourceId));
             }
             return true;
         } else {
@@ -642,6 +714,8 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             if (allowGenericPropertiesUpgrade && needsUpgrade(resource.getName(), name)) {
                 resource.setName(name);
                 logMessage.append("name, ");
+                groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+                    .singletonList(resource.getId()));
             }
             ret.setUpgradedResourceName(resource.getName());
 
@@ -894,13 +968,19 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
                 + existingResource.getResourceKey() + "' to '" + updatedResource.getResourceKey() + "'.");
         }
 
-        updateResourceVersion(existingResource, updatedResource.getVersion());
+        boolean changed = updateResourceVersion(existingResource, updatedResource.getVersion());
 
         // If the resource was marked as deleted, reactivate it again.
         if (existingResource.getInventoryStatus() == InventoryStatus.DELETED) {
             existingResource.setInventoryStatus(InventoryStatus.COMMITTED);
             existingResource.setPluginConfiguration(updatedResource.getPluginConfiguration());
             existingResource.setAgentSynchronizationNeeded();
+            changed = true;
+        }
+
+        if (changed) {
+            groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+                .singletonList(existingResource.getId()));
         }
 
         for (Resource childResource : updatedResource.getChildResources()) {
@@ -953,11 +1033,26 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             groupManager.updateImplicitGroupMembership(subjectManager.getOverlord(), resource);
         }
 
+        // auto-committed resources may belong in DynaGroups
+        List<Integer> committedResourceIds = new ArrayList<Integer>();
+        addCommittedResourceIdsRecursively(resource, committedResourceIds);
+        groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, committedResourceIds);
+
         // do NOT delete this flush/clear - it greatly improves performance
         entityManager.flush();
         entityManager.clear();
     }
 
+    private void addCommittedResourceIdsRecursively(Resource resource, List<Integer> resourceIds) {
+        if (resource.getInventoryStatus() == InventoryStatus.COMMITTED) {
+            resourceIds.add(resource.getId());
+        }
+
+        for (Resource child : resource.getChildResources()) {
+            addCommittedResourceIdsRecursively(child, resourceIds);
+        }
+    }
+
     /**
      * Ensures the resource has the proper relationship to its product version. This method will recursively dig
      * into child resources, updating their versions as well.
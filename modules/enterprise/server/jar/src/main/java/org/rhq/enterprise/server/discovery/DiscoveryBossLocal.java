@@ -36,6 +36,7 @@ import org.rhq.core.clientapi.server.discovery.InventoryReport;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.configuration.Configuration;
 import org.rhq.core.domain.discovery.MergeResourceResponse;
+import org.rhq.core.domain.discovery.ResourceSyncHash;
 import org.rhq.core.domain.discovery.ResourceSyncInfo;
 import org.rhq.core.domain.resource.InventoryStatus;
 import org.rhq.core.domain.resource.Resource;
@@ -62,6 +63,28 @@ public interface DiscoveryBossLocal extends DiscoveryBossRemote {
     ResourceSyncInfo mergeInventoryReport(InventoryReport report)
         throws InvalidInventoryReportException;
 
+    /**
+     * Like {@link #mergeInventoryReport(InventoryReport)}, but returns only the root of the reporting agent's
+     * {@link ResourceSyncHash} tree.
+     *
+     * @param  report the inventory report to be merged
+     *
+     * @return the sync hash of the agent's platform, or null if the server does not have a platform for the agent yet
+     *
+     * @throws InvalidInventoryReportException if the inventory report is invalid
+     */
+    ResourceSyncHash mergeInventoryReportForHashedSync(InventoryReport report)
+        throws InvalidInventoryReportException;
+
+    /**
+     * Returns the sync hashes of the direct children, including DELETED ones, of the given Resources.
+     *
+     * @param  parentResourceIds the parent Resources
+     *
+     * @return the children keyed by parent id
+     */
+    Map<Integer, List<ResourceSyncHash>> getChildSyncHashes(Set<Integer> parentResourceIds);
+
     /**
      * Returns a map of platforms (the keys) and their servers (the values) that are in the auto-discovery queue but not
      * yet imported into inventory. Note that only servers whose direct parent is the plaform will appear in the
@@ -19,6 +19,7 @@
 package org.rhq.enterprise.server.discovery;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,6 +36,7 @@ import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.configuration.Configuration;
 import org.rhq.core.domain.discovery.AvailabilityReport;
 import org.rhq.core.domain.discovery.MergeResourceResponse;
+import org.rhq.core.domain.discovery.ResourceSyncHash;
 import org.rhq.core.domain.discovery.ResourceSyncInfo;
 import org.rhq.core.domain.measurement.ResourceMeasurementScheduleRequest;
 import org.rhq.core.domain.resource.Agent;
@@ -109,6 +111,65 @@ public class DiscoveryServerServiceImpl implements DiscoveryServerService {
         return syncInfo;
     }
 
+    /**
+     * @see DiscoveryServerService#mergeInventoryReportForHashedSync(InventoryReport)
+     */
+    @Override
+    public ResourceSyncHash mergeInventoryReportForHashedSync(InventoryReport report) throws InvalidInventoryReportException,
+        StaleTypeException {
+        long start = System.currentTimeMillis();
+        DiscoveryBossLocal discoveryBoss = LookupUtil.getDiscoveryBoss();
+        ResourceSyncHash syncHash;
+        try {
+            syncHash = discoveryBoss.mergeInventoryReportForHashedSync(report);
+        } catch (StaleTypeException e) {
+            // There is no need to log this exception as it is part of a normal work flow
+            // that occurs as a result of a user deleting a plugin. DiscoveryBossBean
+            // already logs a message about the stale types that can be useful for
+            // debugging; so, we just need to propagate the exception to the agent.
+            throw e;
+        } catch (InvalidInventoryReportException e) {
+            Agent agent = report.getAgent();
+            if (log.isDebugEnabled()) {
+                log.error("Received invalid inventory report from agent [" + agent + "]", e);
+            } else {
+                /* 
+                 * this is expected when the platform is uninventoried, because the agent often has in-flight reports
+                 * going to the server at the time the platform's agent is being deleted from the database
+                 */
+                log.error("Received invalid inventory report from agent [" + agent + "]: " + e.getMessage());
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            log.error(
+                "Fatal error occurred during merging of inventory report from agent [" + report.getAgent() + "].", e);
+            throw e;
+        }
+
+        long elapsed = (System.currentTimeMillis() - start);
+        if (elapsed > 30000L) {
+            log.warn("Performance: inventory merge (" + elapsed + ")ms");
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Performance: inventory merge (" + elapsed + ")ms");
+            }
+        }
+
+        return syncHash;
+    }
+
+    @Override
+    public Map<Integer, List<ResourceSyncHash>> getChildSyncHashes(Set<Integer> parentResourceIds) {
+        long start = System.currentTimeMillis();
+        Map<Integer, List<ResourceSyncHash>> childSyncHashes = LookupUtil.getDiscoveryBoss().getChildSyncHashes(
+            parentResourceIds);
+        if (log.isDebugEnabled()) {
+            log.debug("Performance: get child sync hashes of [" + parentResourceIds.size() + "] Resources, timing ("
+                + (System.currentTimeMillis() - start) + ")ms");
+        }
+        return childSyncHashes;
+    }
+
     @Override
     public boolean mergeAvailabilityReport(AvailabilityReport availabilityReport) {
         AvailabilityReportSerializer.getSingleton().lock(availabilityReport.getAgentName());
@@ -0,0 +1,81 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.discovery;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the {@link ResourceSyncHashTree}s of the agents currently synchronizing their inventory, so that the
+ * level-by-level descent of a hashed sync does not have to reload the agent's Resources for every level. Trees are
+ * rebuilt on every inventory report and expire after a short time, set by the
+ * <code>rhq.server.inventory-sync.hash-cache-ttl</code> system property in milliseconds (60 seconds by default). A
+ * tree that went stale within that window only delays noticing a change until the agent's next inventory report.
+ */
+class ResourceSyncHashCache {
+
+    private static final long TTL = Long.parseLong(System.getProperty("rhq.server.inventory-sync.hash-cache-ttl",
+        "60000"));
+
+    private static ResourceSyncHashCache singleton = new ResourceSyncHashCache();
+
+    // only as many entries as agents synchronizing within the last TTL, a linear scan is cheaper than an index
+    private final CopyOnWriteArrayList<ResourceSyncHashTree> trees = new CopyOnWriteArrayList<ResourceSyncHashTree>();
+
+    private ResourceSyncHashCache() {
+    }
+
+    static ResourceSyncHashCache getSingleton() {
+        return singleton;
+    }
+
+    /**
+     * Caches the given tree, replacing any other tree of the same agent.
+     */
+    void put(ResourceSyncHashTree tree, int platformId) {
+        invalidate(platformId);
+        trees.add(tree);
+    }
+
+    /**
+     * @return the unexpired tree containing the given Resource, or null
+     */
+    ResourceSyncHashTree find(int resourceId) {
+        long now = System.currentTimeMillis();
+        for (ResourceSyncHashTree tree : trees) {
+            if (now - tree.getCreatedTime() > TTL) {
+                trees.remove(tree);
+            } else if (tree.contains(resourceId)) {
+                return tree;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the tree containing the given Resource, if any. Called whenever the inventory of the Resource's agent
+     * changed through an inventory report.
+     */
+    void invalidate(int resourceId) {
+        for (ResourceSyncHashTree tree : trees) {
+            if (tree.contains(resourceId)) {
+                trees.remove(tree);
+            }
+        }
+    }
+}
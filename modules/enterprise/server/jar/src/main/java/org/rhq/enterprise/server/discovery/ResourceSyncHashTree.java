@@ -0,0 +1,115 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.rhq.core.domain.discovery.ResourceSyncHash;
+import org.rhq.core.domain.resource.InventoryStatus;
+
+/**
+ * The {@link ResourceSyncHash} tree of all Resources of one agent, built from the flat rows of
+ * {@link org.rhq.core.domain.resource.Resource#QUERY_FIND_SYNC_DATA_BY_AGENT_OF_RESOURCE}. Immutable once built.
+ */
+class ResourceSyncHashTree {
+
+    private final long createdTime = System.currentTimeMillis();
+    private final Map<Integer, ResourceSyncHash> hashes;
+    private final Map<Integer, List<ResourceSyncHash>> children;
+
+    /**
+     * @param rows each row being the id, uuid, mtime, inventory status and parent id (or null) of a Resource
+     */
+    ResourceSyncHashTree(List<Object[]> rows) {
+        Map<Integer, Object[]> rowsById = new HashMap<Integer, Object[]>(rows.size() * 4 / 3 + 1);
+        Map<Integer, List<Integer>> childIds = new HashMap<Integer, List<Integer>>();
+        List<Integer> rootIds = new ArrayList<Integer>(1);
+        for (Object[] row : rows) {
+            Integer id = ((Number) row[0]).intValue();
+            rowsById.put(id, row);
+            if (row[4] == null) {
+                rootIds.add(id);
+            } else {
+                Integer parentId = ((Number) row[4]).intValue();
+                List<Integer> siblings = childIds.get(parentId);
+                if (siblings == null) {
+                    siblings = new ArrayList<Integer>();
+                    childIds.put(parentId, siblings);
+                }
+                siblings.add(id);
+            }
+        }
+
+        this.hashes = new HashMap<Integer, ResourceSyncHash>(rowsById.size() * 4 / 3 + 1);
+        this.children = new HashMap<Integer, List<ResourceSyncHash>>(childIds.size() * 4 / 3 + 1);
+        for (Integer rootId : rootIds) {
+            build(rootId, rowsById, childIds);
+        }
+    }
+
+    private ResourceSyncHash build(Integer id, Map<Integer, Object[]> rowsById, Map<Integer, List<Integer>> childIds) {
+        Object[] row = rowsById.get(id);
+        String uuid = (String) row[1];
+        long mtime = (row[2] != null) ? ((Number) row[2]).longValue() : 0L;
+        InventoryStatus status = (InventoryStatus) row[3];
+
+        List<Integer> ids = childIds.get(id);
+        long childSum = 0L;
+        if (ids != null) {
+            List<ResourceSyncHash> childHashes = new ArrayList<ResourceSyncHash>(ids.size());
+            for (Integer childId : ids) {
+                ResourceSyncHash childHash = build(childId, rowsById, childIds);
+                childHashes.add(childHash);
+                if (childHash.getInventoryStatus() != InventoryStatus.DELETED) {
+                    childSum += childHash.getSubtreeHash();
+                }
+            }
+            this.children.put(id, childHashes);
+        }
+
+        long subtreeHash = 0L;
+        if (status != InventoryStatus.DELETED) {
+            subtreeHash = ResourceSyncHash.subtreeHash(ResourceSyncHash.nodeHash(id, uuid, mtime, status), childSum);
+        }
+        ResourceSyncHash hash = new ResourceSyncHash(id, uuid, mtime, status, subtreeHash);
+        this.hashes.put(id, hash);
+        return hash;
+    }
+
+    long getCreatedTime() {
+        return createdTime;
+    }
+
+    boolean contains(int resourceId) {
+        return hashes.containsKey(resourceId);
+    }
+
+    ResourceSyncHash get(int resourceId) {
+        return hashes.get(resourceId);
+    }
+
+    List<ResourceSyncHash> getChildren(int resourceId) {
+        List<ResourceSyncHash> result = children.get(resourceId);
+        return (result != null) ? result : Collections.<ResourceSyncHash> emptyList();
+    }
+}
@@ -99,6 +99,7 @@ import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.authz.PermissionException;
 import org.rhq.enterprise.server.core.AgentManagerLocal;
 import org.rhq.enterprise.server.plugin.pc.MasterServerPluginContainer;
+import org.rhq.enterprise.server.plugin.pc.drift.ChunkedDriftServerPluginFacet;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftChangeSetSummary;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftServerPluginContainer;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftServerPluginFacet;
@@ -194,7 +195,12 @@ public class DriftManagerBean implements DriftManagerLocal, DriftManagerRemote {
     public void saveChangeSetContent(Subject subject, int resourceId, String driftDefName, String token,
         File changeSetFilesZip) throws Exception {
         authorizeOrFail(subject, resourceId, "Can not update drifts");
-        saveChangeSetFiles(subject, changeSetFilesZip);
+        DriftChangeSetSummary summary = saveChangeSetFiles(subject, changeSetFilesZip);
+        if (summary != null && summary.getContentBytesSaved() > 0 && log.isDebugEnabled()) {
+            log.debug("Stored [" + summary.getContentBytes() + "] content bytes for drift definition [" + driftDefName
+                + "] on resource [" + resourceId + "], [" + summary.getContentBytesSaved()
+                + "] of them were already stored and not sent by the agent");
+        }
 
         AgentClient agent = agentManager.getAgentClient(subjectManager.getOverlord(), resourceId);
         DriftAgentService driftService = agent.getDriftAgentService();
@@ -540,9 +546,23 @@ public class DriftManagerBean implements DriftManagerLocal, DriftManagerRemote {
 
     @Override
     @TransactionAttribute(NOT_SUPPORTED)
-    public void saveChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception {
+    public DriftChangeSetSummary saveChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception {
         DriftServerPluginFacet driftServerPlugin = getServerPlugin();
+        if (driftServerPlugin instanceof ChunkedDriftServerPluginFacet) {
+            return ((ChunkedDriftServerPluginFacet) driftServerPlugin).saveChunkedChangeSetFiles(subject,
+                changeSetFilesZip);
+        }
         driftServerPlugin.saveChangeSetFiles(subject, changeSetFilesZip);
+        return null;
+    }
+
+    @Override
+    public Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes) {
+        DriftServerPluginFacet driftServerPlugin = getServerPlugin();
+        if (!(driftServerPlugin instanceof ChunkedDriftServerPluginFacet)) {
+            return null;
+        }
+        return ((ChunkedDriftServerPluginFacet) driftServerPlugin).findMissingDriftFileChunks(subject, chunkHashes);
     }
 
     /**
@@ -21,6 +21,7 @@ package org.rhq.enterprise.server.drift;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Set;
 
 import javax.ejb.Local;
 
@@ -38,6 +39,7 @@ import org.rhq.core.domain.drift.DriftDetails;
 import org.rhq.core.domain.drift.DriftFile;
 import org.rhq.core.domain.drift.DriftSnapshot;
 import org.rhq.core.domain.util.PageList;
+import org.rhq.enterprise.server.plugin.pc.drift.ChunkedDriftServerPluginFacet;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftChangeSetSummary;
 
 @Local
@@ -135,7 +137,25 @@ public interface DriftManagerLocal extends DriftManagerRemote {
 
     DriftChangeSetSummary saveChangeSet(Subject subject, int resourceId, File changeSetZip) throws Exception;
 
-    void saveChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception;
+    /**
+     * @param subject
+     * @param changeSetFilesZip
+     * @return the content byte counts, see
+     * {@link ChunkedDriftServerPluginFacet#saveChunkedChangeSetFiles(Subject, File)}, or null if the drift server
+     * plugin does not store content in chunks
+     * @throws Exception
+     */
+    DriftChangeSetSummary saveChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception;
+
+    /**
+     * Determines which of the given content chunks are not stored yet, see
+     * {@link org.rhq.core.clientapi.server.drift.DriftServerService#findMissingDriftFileChunks(Set)}.
+     *
+     * @param subject
+     * @param chunkHashes the SHA-256 hashes of content chunks
+     * @return the hashes of the chunks not stored, or null if the drift server plugin does not store content in chunks
+     */
+    Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes);
 
     void updateDriftDefinition(Subject subject, DriftDefinition driftDefinition);
 
@@ -69,6 +69,12 @@ public class DriftServerServiceImpl implements DriftServerService {
         }
     }
 
+    @Override
+    public Set<String> findMissingDriftFileChunks(Set<String> chunkHashes) {
+        Subject overlord = getSubjectManager().getOverlord();
+        return getDriftManager().findMissingDriftFileChunks(overlord, chunkHashes);
+    }
+
     @Override
     public void repeatChangeSet(int resourceId, String driftDefName, int version) {
         DriftManagerLocal driftManager = getDriftManager();
@@ -26,14 +26,19 @@ import static org.rhq.core.domain.drift.DriftFileStatus.LOADED;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -50,6 +55,8 @@ import org.hibernate.Session;
 
 import org.rhq.common.drift.ChangeSetReader;
 import org.rhq.common.drift.ChangeSetReaderImpl;
+import org.rhq.common.drift.ContentChunker;
+import org.rhq.common.drift.ContentChunker.Chunk;
 import org.rhq.common.drift.FileEntry;
 import org.rhq.common.drift.Headers;
 import org.rhq.core.clientapi.agent.drift.DriftAgentService;
@@ -70,9 +77,11 @@ import org.rhq.core.domain.drift.JPADrift;
 import org.rhq.core.domain.drift.JPADriftChangeSet;
 import org.rhq.core.domain.drift.JPADriftFile;
 import org.rhq.core.domain.drift.JPADriftFileBits;
+import org.rhq.core.domain.drift.JPADriftFileChunk;
 import org.rhq.core.domain.drift.JPADriftSet;
 import org.rhq.core.domain.resource.Resource;
 import org.rhq.core.domain.util.PageList;
+import org.rhq.core.util.MessageDigestGenerator;
 import org.rhq.core.util.StopWatch;
 import org.rhq.core.util.ZipUtil;
 import org.rhq.core.util.file.FileUtil;
@@ -82,6 +91,7 @@ import org.rhq.enterprise.server.agentclient.AgentClient;
 import org.rhq.enterprise.server.auth.SubjectManagerLocal;
 import org.rhq.enterprise.server.core.AgentManagerLocal;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftChangeSetSummary;
+import org.rhq.enterprise.server.util.BatchIterator;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 
@@ -110,10 +120,21 @@ public class JPADriftServerBean implements JPADriftServerLocal {
     @Override
     @TransactionAttribute(REQUIRES_NEW)
     public int purgeOrphanedDriftFiles(Subject subject, long purgeMillis) {
-        Query q = entityManager.createNativeQuery(JPADriftFile.NATIVE_DELETE_ORPHANED_DRIFT_FILES);
+        // the chunk maps of the orphaned files go first, they reference the files
+        Query q = entityManager.createNativeQuery(JPADriftFileChunk.NATIVE_DELETE_ORPHANED_CHUNK_MAPS);
+        q.setParameter(1, purgeMillis);
+        q.executeUpdate();
+
+        q = entityManager.createNativeQuery(JPADriftFile.NATIVE_DELETE_ORPHANED_DRIFT_FILES);
         q.setParameter(1, purgeMillis);
         int count = q.executeUpdate();
         log.debug("purged [" + count + "] drift files that were orphaned (that is, no longer referenced by drift)");
+
+        q = entityManager.createNativeQuery(JPADriftFileChunk.NATIVE_DELETE_ORPHANED_CHUNKS);
+        q.setParameter(1, purgeMillis);
+        int chunkCount = q.executeUpdate();
+        log.debug("purged [" + chunkCount + "] drift file chunks that were orphaned (that is, no longer part of any "
+            + "drift file)");
         return count;
     }
 
@@ -302,6 +323,106 @@ public class JPADriftServerBean implements JPADriftServerLocal {
         df.setStatus(LOADED);
     }
 
+    @Override
+    @TransactionAttribute(REQUIRES_NEW)
+    public void persistDriftFileChunk(String hashId, InputStream data, long numBytes) throws Exception {
+        if (null != entityManager.find(JPADriftFileChunk.class, hashId)) {
+            // another file, or another agent, already provided this content
+            return;
+        }
+        if (numBytes > ContentChunker.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Drift file chunk [" + hashId + "] is [" + numBytes
+                + "] bytes, more than the maximum chunk size of [" + ContentChunker.MAX_CHUNK_SIZE + "]");
+        }
+
+        // chunks are shared by all files holding the same content, so one stored under the wrong hash would corrupt
+        // every one of them
+        byte[] bytes = new byte[(int) numBytes];
+        new DataInputStream(data).readFully(bytes);
+        String actualHashId = new MessageDigestGenerator(MessageDigestGenerator.SHA_256).calcDigestString(bytes);
+        if (!hashId.equals(actualHashId)) {
+            throw new IllegalArgumentException("Drift file chunk [" + hashId
+                + "] does not match its content, which has [" + actualHashId + "]");
+        }
+
+        JPADriftFileChunk chunk = new JPADriftFileChunk(hashId);
+        Session session = (Session) entityManager.getDelegate();
+        chunk.setDataSize(numBytes);
+        chunk.setData(session.getLobHelper().createBlob(bytes));
+        entityManager.persist(chunk);
+    }
+
+    @Override
+    @TransactionAttribute(REQUIRES_NEW)
+    public long persistDriftFileChunks(JPADriftFile driftFile, List<Chunk> chunks) throws Exception {
+        JPADriftFileBits df = entityManager.find(JPADriftFileBits.class, driftFile.getHashId());
+        if (null == df) {
+            throw new IllegalArgumentException("JPADriftFile not found [" + driftFile.getHashId() + "]");
+        }
+
+        Set<String> chunkHashes = new HashSet<String>();
+        long numBytes = 0;
+        for (Chunk chunk : chunks) {
+            chunkHashes.add(chunk.getHash());
+            numBytes += chunk.getLength();
+        }
+        Set<String> missing = findMissingDriftFileChunks(null, chunkHashes);
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Unable to store drift file [" + driftFile.getHashId() + "], ["
+                + missing.size() + "] of its chunks are not stored: " + missing);
+        }
+
+        // the manifest comes from the agent, make sure the chunks it lists really make up the file's content
+        MessageDigestGenerator digest = new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+        for (Chunk chunk : chunks) {
+            JPADriftFileChunk storedChunk = entityManager.find(JPADriftFileChunk.class, chunk.getHash());
+            if (null == storedChunk.getDataSize() || storedChunk.getDataSize() != chunk.getLength()) {
+                throw new IllegalStateException("Unable to store drift file [" + driftFile.getHashId() + "], chunk ["
+                    + chunk.getHash() + "] is [" + storedChunk.getDataSize() + "] bytes, the manifest expects ["
+                    + chunk.getLength() + "]");
+            }
+            InputStream data = storedChunk.getData();
+            try {
+                digest.add(data);
+            } finally {
+                StreamUtil.safeClose(data);
+            }
+        }
+        String actualHashId = digest.getDigestString();
+        if (!df.getHashId().equals(actualHashId)) {
+            throw new IllegalStateException("Unable to store drift file [" + driftFile.getHashId()
+                + "], its chunks reassemble to content with [" + actualHashId + "]");
+        }
+
+        Query delete = entityManager.createNativeQuery(JPADriftFileChunk.NATIVE_DELETE_CHUNK_MAP);
+        delete.setParameter(1, df.getHashId());
+        delete.executeUpdate();
+        for (int i = 0; i < chunks.size(); ++i) {
+            Query insert = entityManager.createNativeQuery(JPADriftFileChunk.NATIVE_INSERT_CHUNK_MAP);
+            insert.setParameter(1, df.getHashId());
+            insert.setParameter(2, i);
+            insert.setParameter(3, chunks.get(i).getHash());
+            insert.executeUpdate();
+        }
+
+        df.setDataSize(numBytes);
+        df.setData(null);
+        df.setStatus(LOADED);
+        return numBytes;
+    }
+
+    @Override
+    public Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes) {
+        Set<String> missing = new HashSet<String>(chunkHashes);
+        BatchIterator<String> batchIter = new BatchIterator<String>(new ArrayList<String>(chunkHashes));
+        for (List<String> batch : batchIter) {
+            Query q = entityManager.createNamedQuery(JPADriftFileChunk.QUERY_FIND_EXISTING_IDS);
+            q.setParameter("hashIds", batch);
+            missing.removeAll(q.getResultList());
+        }
+        return missing;
+    }
+
     // This facade does not start, or participate in, a transaction so that it can execute its work
     // in two new transactions.  The first transaction ensures all new entities are committed to the
     // database.  The second transaction can then safely acknowledge that the changeset is persisted
@@ -510,7 +631,7 @@ public class JPADriftServerBean implements JPADriftServerLocal {
     }
 
     @Override
-    public void storeFiles(Subject subject, File filesZip) throws Exception {
+    public DriftChangeSetSummary storeFiles(Subject subject, File filesZip) throws Exception {
         // No longer using ZipUtil.walkZipFile because an IOException was getting thrown
         // after reading the first entry, resulting in subsequent entries being skipped.
         // DriftFileVisitor passed the ZipInputStream to Hibernate.createBlob, and either
@@ -525,12 +646,52 @@ public class JPADriftServerBean implements JPADriftServerLocal {
         dir.mkdir();
 
         ZipUtil.unzipFile(filesZip, dir);
+
+        // Large files may be sent as a manifest of content chunks along with those chunks that are not stored yet,
+        // see ContentChunker. The chunks are stored first so that the manifests can reference them.
+        DriftChangeSetSummary summary = new DriftChangeSetSummary();
+        List<File> manifests = new ArrayList<File>();
         for (File file : dir.listFiles()) {
-            JPADriftFile driftFile = new JPADriftFile(file.getName());
+            String fileName = file.getName();
+            if (fileName.endsWith(ContentChunker.CHUNK_SUFFIX)) {
+                String hashId = fileName.substring(0, fileName.length() - ContentChunker.CHUNK_SUFFIX.length());
+                InputStream data = new FileInputStream(file);
+                try {
+                    JPADriftServer.persistDriftFileChunk(hashId, data, file.length());
+                    summary.addContentBytes(0, file.length());
+                } catch (Exception e) {
+                    log.info("Skipping bad drift file chunk", e);
+                } finally {
+                    StreamUtil.safeClose(data);
+                }
+            } else if (fileName.endsWith(ContentChunker.MANIFEST_SUFFIX)) {
+                manifests.add(file);
+            } else {
+                JPADriftFile driftFile = new JPADriftFile(fileName);
+                InputStream data = new FileInputStream(file);
+                try {
+                    JPADriftServer.persistDriftFileData(driftFile, data, file.length());
+                    summary.addContentBytes(file.length(), file.length());
+                } catch (Exception e) {
+                    log.info("Skipping bad drift file", e);
+                } finally {
+                    StreamUtil.safeClose(data);
+                }
+            }
+        }
+
+        for (File manifest : manifests) {
+            String fileName = manifest.getName();
+            JPADriftFile driftFile = new JPADriftFile(fileName.substring(0, fileName.length()
+                - ContentChunker.MANIFEST_SUFFIX.length()));
+            Reader reader = new InputStreamReader(new FileInputStream(manifest), "UTF-8");
             try {
-                JPADriftServer.persistDriftFileData(driftFile, new FileInputStream(file), file.length());
+                List<Chunk> chunks = ContentChunker.readManifest(reader);
+                summary.addContentBytes(JPADriftServer.persistDriftFileChunks(driftFile, chunks), 0);
             } catch (Exception e) {
-                LogFactory.getLog(getClass()).info("Skipping bad drift file", e);
+                log.info("Skipping bad drift file chunk manifest", e);
+            } finally {
+                StreamUtil.safeClose(reader);
             }
         }
 
@@ -543,6 +704,12 @@ public class JPADriftServerBean implements JPADriftServerLocal {
                 "Unable to delete " + dir.getAbsolutePath() + ". This directory and "
                     + "its contents are no longer needed. It can be deleted.");
         }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Stored [" + summary.getContentBytes() + "] bytes of drift file content from " + zipFileName
+                + ", [" + summary.getTransferredContentBytes() + "] of them were transferred");
+        }
+        return summary;
     }
 
     @Override
@@ -559,6 +726,9 @@ public class JPADriftServerBean implements JPADriftServerLocal {
             if (content.getDataSize() == null || content.getDataSize() < 1) {
                 return new byte[] {};
             }
+            if (content.getBlob() == null) {
+                return getChunkedDriftFileAsByteArray(hash, content.getDataSize());
+            }
             return StreamUtil.slurp(content.getBlob().getBinaryStream());
         } catch (SQLException e) {
             e.printStackTrace();
@@ -566,6 +736,19 @@ public class JPADriftServerBean implements JPADriftServerLocal {
         }
     }
 
+    private byte[] getChunkedDriftFileAsByteArray(String hash, long dataSize) throws SQLException {
+        Query q = entityManager.createNativeQuery(JPADriftFileChunk.NATIVE_FIND_CHUNK_IDS);
+        q.setParameter(1, hash);
+        List<?> chunkIds = q.getResultList();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) dataSize);
+        for (Object chunkId : chunkIds) {
+            JPADriftFileChunk chunk = entityManager.find(JPADriftFileChunk.class, chunkId);
+            StreamUtil.copy(chunk.getData(), out, true);
+        }
+        return out.toByteArray();
+    }
+
     private Resource getResource(int resourceId) {
         Resource resource = entityManager.find(Resource.class, resourceId);
         if (null == resource) {
@@ -22,9 +22,11 @@ package org.rhq.enterprise.server.drift;
 import java.io.File;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
 
 import javax.ejb.Local;
 
+import org.rhq.common.drift.ContentChunker.Chunk;
 import org.rhq.common.drift.Headers;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.criteria.DriftChangeSetCriteria;
@@ -92,6 +94,35 @@ public interface JPADriftServerLocal {
      */
     void persistDriftFileData(JPADriftFile driftFile, InputStream data, long numBytes) throws Exception;
 
+    /**
+     * SUPPORTS JPA DRIFT SERVER PLUGIN
+     * Stores a content chunk, unless a chunk with the same hash is already stored.
+     * @param hashId the SHA-256 of the chunk content, the chunk is rejected if its content does not match it
+     * @param data
+     * @param numBytes
+     * @throws Exception
+     */
+    void persistDriftFileChunk(String hashId, InputStream data, long numBytes) throws Exception;
+
+    /**
+     * SUPPORTS JPA DRIFT SERVER PLUGIN
+     * Stores the content of the drift file as the given chunks, which must all be stored already and together
+     * must have the drift file's SHA-256.
+     * @param driftFile
+     * @param chunks the file's chunks, in content order
+     * @return the size of the drift file content
+     * @throws Exception
+     */
+    long persistDriftFileChunks(JPADriftFile driftFile, List<Chunk> chunks) throws Exception;
+
+    /**
+     * SUPPORTS JPA DRIFT SERVER PLUGIN
+     * @param subject
+     * @param chunkHashes the SHA-256 hashes of content chunks
+     * @return those of the given hashes for which no chunk is stored
+     */
+    Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes);
+
     /**
      * This method stores the provided change-set file for the resource. The version will be incremented based
      * on the max version of existing change-sets for the resource. The change-set will be processed generating
@@ -119,12 +150,14 @@ public interface JPADriftServerLocal {
     /**
      * This method stores the provided drift files. The files should correspond to requested drift files.
      * The unzipped files will have their sha256 generated. Those not corresponding to needed content will
-     * be logged and ignored.
+     * be logged and ignored. Large files may instead be provided as a manifest of content chunks, along with
+     * those chunks that are not stored yet. See {@link org.rhq.common.drift.ContentChunker ContentChunker}.
      *  
      * @param filesZip The change-set zip file
+     * @return a summary carrying the number of content bytes stored and transferred
      * @throws Exception
      */
-    void storeFiles(Subject subject, File filesZip) throws Exception;
+    DriftChangeSetSummary storeFiles(Subject subject, File filesZip) throws Exception;
 
     /**
      * SUPPORTS JPA DRIFT SERVER PLUGIN
@@ -20,10 +20,14 @@ package org.rhq.enterprise.server.event;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -89,11 +93,20 @@ public class EventManagerBean implements EventManagerLocal, EventManagerRemote {
         + "SELECT (SELECT id FROM RHQ_Event_Def WHERE name = ? AND resource_type_id = (SELECT id FROM RHQ_Resource_Type WHERE name = ? AND plugin = ?)), ?, ? FROM RHQ_Numbers WHERE i = 42 "
         + "AND NOT EXISTS (SELECT * FROM RHQ_Event_Source WHERE event_def_id = (SELECT id FROM RHQ_Event_Def WHERE name = ? AND resource_type_id = (SELECT id FROM RHQ_Resource_Type WHERE name = ? AND plugin = ?)) AND resource_id = ? AND location = ?)";
 
+    private static final String EVENT_SOURCE_SELECT_STMT = "SELECT evs.id FROM RHQ_Event_Source evs, RHQ_Event_Def def, RHQ_Resource_Type rt "
+        + "WHERE evs.event_def_id = def.id AND def.resource_type_id = rt.id "
+        + "AND def.name = ? AND rt.name = ? AND rt.plugin = ? AND evs.resource_id = ? AND evs.location = ?";
+
+    // The events are inserted by source id. Selecting the source makes an event whose (cached) source id is stale
+    // insert nothing, rather than fail the whole batch.
     private static final String EVENT_INSERT_STMT = "INSERT INTO RHQ_Event (id, event_source_id, timestamp, severity, detail) "
-        + "VALUES (%s, (SELECT id FROM RHQ_Event_Source WHERE event_def_id = (SELECT id FROM RHQ_Event_Def WHERE name = ? AND resource_type_id = (SELECT id FROM RHQ_Resource_Type WHERE name = ? AND plugin = ?)) AND resource_id = ? AND location = ?), ?, ?, ?)";
+        + "SELECT %s, id, ?, ?, ? FROM RHQ_Event_Source WHERE id = ?";
 
     private static final String EVENT_INSERT_STMT_AUTOINC = "INSERT INTO RHQ_Event (event_source_id, timestamp, severity, detail) "
-        + "VALUES ((SELECT id FROM RHQ_Event_Source WHERE event_def_id = (SELECT id FROM RHQ_Event_Def WHERE name = ? AND resource_type_id = (SELECT id FROM RHQ_Resource_Type WHERE name = ? AND plugin = ?)) AND resource_id = ? AND location = ?), ?, ?, ?)";
+        + "SELECT id, ?, ?, ? FROM RHQ_Event_Source WHERE id = ?";
+
+    // shared by all bean instances
+    private static final EventSourceIdCache eventSourceIdCache = new EventSourceIdCache();
 
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
     private EntityManager entityManager;
@@ -114,82 +127,34 @@ public class EventManagerBean implements EventManagerLocal, EventManagerRemote {
         if (events == null || events.size() == 0)
             return;
 
-        String statementSql;
         Connection conn = null;
-        PreparedStatement ps = null;
         try {
             conn = rhqDs.getConnection();
             DatabaseType dbType = DatabaseTypeFactory.getDatabaseType(conn);
 
-            if (dbType instanceof PostgresqlDatabaseType || dbType instanceof OracleDatabaseType
-                || dbType instanceof H2DatabaseType) {
-                String nextvalSql = JDBCUtil.getNextValSql(conn, EventSource.TABLE_NAME);
-                statementSql = String.format(EVENT_SOURCE_INSERT_STMT, nextvalSql);
-            } else if (dbType instanceof SQLServerDatabaseType) {
-                statementSql = EVENT_SOURCE_INSERT_STMT_AUTOINC;
-            } else {
-                throw new IllegalArgumentException("Unknown database type, can't continue: " + dbType);
-            }
-
-            // First insert the "keys" (i.e. the EventSources).
-            ps = conn.prepareStatement(statementSql);
-            try {
-                for (EventSource eventSource : events.keySet()) {
-                    int paramIndex = 1;
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
-                    ps.setInt(paramIndex++, eventSource.getResource().getId());
-                    ps.setString(paramIndex++, eventSource.getLocation());
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
-                    ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
-                    ps.setInt(paramIndex++, eventSource.getResource().getId());
-                    ps.setString(paramIndex++, eventSource.getLocation());
-
-                    ps.addBatch();
+            Set<EventSource> cachedSources = new HashSet<EventSource>();
+            Map<EventSource, Integer> sourceIds = getEventSourceIds(conn, dbType, events.keySet(), cachedSources);
+            Set<EventSource> staleSources = insertEvents(conn, dbType, events, sourceIds, cachedSources);
+            if (!staleSources.isEmpty()) {
+                // The cached ids of these sources were stale, e.g. because the sources were deleted with their
+                // resource, so insert or look up the sources again and insert their events.
+                for (EventSource eventSource : staleSources) {
+                    eventSourceIdCache.remove(eventSource);
                 }
-                ps.executeBatch();
-            } finally {
-                JDBCUtil.safeClose(ps);
-            }
-
-            if (dbType instanceof PostgresqlDatabaseType || dbType instanceof OracleDatabaseType
-                || dbType instanceof H2DatabaseType) {
-                String nextvalSql = JDBCUtil.getNextValSql(conn, Event.TABLE_NAME);
-                statementSql = String.format(EVENT_INSERT_STMT, nextvalSql);
-            } else if (dbType instanceof SQLServerDatabaseType) {
-                statementSql = EVENT_INSERT_STMT_AUTOINC;
-            } else {
-                throw new IllegalArgumentException("Unknown database type, can't continue: " + dbType);
-            }
-
-            // Then insert the "values" (i.e. the Events).
-            ps = conn.prepareStatement(statementSql);
-            try {
-                for (EventSource eventSource : events.keySet()) {
-                    Set<Event> eventData = events.get(eventSource);
-                    for (Event event : eventData) {
-                        int paramIndex = 1;
-                        ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
-                        ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
-                        ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
-                        ps.setInt(paramIndex++, eventSource.getResource().getId());
-                        ps.setString(paramIndex++, eventSource.getLocation());
-                        ps.setLong(paramIndex++, event.getTimestamp());
-                        ps.setString(paramIndex++, event.getSeverity().toString());
-                        ps.setString(paramIndex++, event.getDetail());
-                        ps.addBatch();
+                sourceIds = getEventSourceIds(conn, dbType, staleSources, cachedSources);
+                staleSources = insertEvents(conn, dbType, events, sourceIds, cachedSources);
+                if (!staleSources.isEmpty()) {
+                    int droppedEvents = 0;
+                    for (EventSource eventSource : staleSources) {
+                        droppedEvents += events.get(eventSource).size();
                     }
-
-                    notifyAlertConditionCacheManager("addEventData", eventSource, eventData.toArray(new Event[eventData
-                        .size()]));
+                    log.warn("addEventData: Could not insert " + droppedEvents + " events of " + staleSources.size()
+                        + " event sources, which no longer exist: " + staleSources);
                 }
-                ps.executeBatch();
-            } finally {
-                JDBCUtil.safeClose(ps);
             }
 
+            notifyAlertConditionCacheManager("addEventData", events);
+
         } catch (Throwable t) {
             // TODO what do we want to do here ?
             log.warn("addEventData: Insert of events failed : " + t.getMessage());
@@ -206,8 +171,201 @@ public class EventManagerBean implements EventManagerLocal, EventManagerRemote {
         }
     }
 
-    private void notifyAlertConditionCacheManager(String callingMethod, EventSource source, Event... events) {
-        AlertConditionCacheStats stats = alertConditionCacheManager.checkConditions(source, events);
+    /**
+     * Returns the ids of the event sources, from the cache where possible. The sources that are not cached are inserted
+     * if they do not exist yet, and then looked up.
+     *
+     * @param cachedSources gets the sources whose id came from the cache, and so may be stale
+     */
+    private Map<EventSource, Integer> getEventSourceIds(Connection conn, DatabaseType dbType,
+        Collection<EventSource> eventSources, Set<EventSource> cachedSources) throws SQLException {
+
+        Map<EventSource, Integer> sourceIds = new HashMap<EventSource, Integer>(eventSources.size());
+        List<EventSource> uncachedSources = new ArrayList<EventSource>();
+        cachedSources.clear();
+        for (EventSource eventSource : eventSources) {
+            Integer sourceId = eventSourceIdCache.get(eventSource);
+            if (sourceId != null) {
+                sourceIds.put(eventSource, sourceId);
+                cachedSources.add(eventSource);
+            } else {
+                uncachedSources.add(eventSource);
+            }
+        }
+        if (uncachedSources.isEmpty()) {
+            return sourceIds;
+        }
+
+        String statementSql;
+        if (dbType instanceof PostgresqlDatabaseType || dbType instanceof OracleDatabaseType
+            || dbType instanceof H2DatabaseType) {
+            String nextvalSql = JDBCUtil.getNextValSql(conn, EventSource.TABLE_NAME);
+            statementSql = String.format(EVENT_SOURCE_INSERT_STMT, nextvalSql);
+        } else if (dbType instanceof SQLServerDatabaseType) {
+            statementSql = EVENT_SOURCE_INSERT_STMT_AUTOINC;
+        } else {
+            throw new IllegalArgumentException("Unknown database type, can't continue: " + dbType);
+        }
+
+        // First insert the "keys" (i.e. the EventSources).
+        PreparedStatement ps = conn.prepareStatement(statementSql);
+        try {
+            for (EventSource eventSource : uncachedSources) {
+                int paramIndex = 1;
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
+                ps.setInt(paramIndex++, eventSource.getResource().getId());
+                ps.setString(paramIndex++, eventSource.getLocation());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
+                ps.setInt(paramIndex++, eventSource.getResource().getId());
+                ps.setString(paramIndex++, eventSource.getLocation());
+
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } finally {
+            JDBCUtil.safeClose(ps);
+        }
+
+        // Then look up their ids.
+        ps = conn.prepareStatement(EVENT_SOURCE_SELECT_STMT);
+        ResultSet rs = null;
+        try {
+            for (EventSource eventSource : uncachedSources) {
+                int paramIndex = 1;
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getName());
+                ps.setString(paramIndex++, eventSource.getEventDefinition().getResourceType().getPlugin());
+                ps.setInt(paramIndex++, eventSource.getResource().getId());
+                ps.setString(paramIndex++, eventSource.getLocation());
+                rs = ps.executeQuery();
+                if (rs.next()) {
+                    int sourceId = rs.getInt(1);
+                    sourceIds.put(eventSource, sourceId);
+                    eventSourceIdCache.put(eventSource, sourceId);
+                } else {
+                    log.warn("addEventData: Event source " + eventSource + " could not be inserted");
+                }
+                JDBCUtil.safeClose(rs);
+                rs = null;
+            }
+        } finally {
+            JDBCUtil.safeClose(ps, rs);
+        }
+
+        return sourceIds;
+    }
+
+    /**
+     * Inserts the events of the sources with the given ids in one batch.
+     *
+     * @param cachedSources the sources whose id came from the cache; only their ids can be stale
+     *
+     * @return the sources whose id did not exist, so their events were not inserted
+     */
+    private Set<EventSource> insertEvents(Connection conn, DatabaseType dbType, Map<EventSource, Set<Event>> events,
+        Map<EventSource, Integer> sourceIds, Set<EventSource> cachedSources) throws SQLException {
+
+        String statementSql;
+        if (dbType instanceof PostgresqlDatabaseType || dbType instanceof OracleDatabaseType
+            || dbType instanceof H2DatabaseType) {
+            String nextvalSql = JDBCUtil.getNextValSql(conn, Event.TABLE_NAME);
+            statementSql = String.format(EVENT_INSERT_STMT, nextvalSql);
+        } else if (dbType instanceof SQLServerDatabaseType) {
+            statementSql = EVENT_INSERT_STMT_AUTOINC;
+        } else {
+            throw new IllegalArgumentException("Unknown database type, can't continue: " + dbType);
+        }
+
+        // Then insert the "values" (i.e. the Events).
+        List<EventSource> batchSources = new ArrayList<EventSource>();
+        int[] results;
+        PreparedStatement ps = conn.prepareStatement(statementSql);
+        try {
+            for (Map.Entry<EventSource, Integer> entry : sourceIds.entrySet()) {
+                for (Event event : events.get(entry.getKey())) {
+                    int paramIndex = 1;
+                    ps.setLong(paramIndex++, event.getTimestamp());
+                    ps.setString(paramIndex++, event.getSeverity().toString());
+                    ps.setString(paramIndex++, event.getDetail());
+                    ps.setInt(paramIndex++, entry.getValue());
+                    ps.addBatch();
+                    batchSources.add(entry.getKey());
+                }
+            }
+            results = ps.executeBatch();
+        } finally {
+            JDBCUtil.safeClose(ps);
+        }
+
+        Set<EventSource> staleSources = new HashSet<EventSource>();
+        boolean rowCountsReported = true;
+        for (int i = 0; i < results.length && i < batchSources.size(); i++) {
+            if (results[i] == 0) {
+                staleSources.add(batchSources.get(i));
+            } else if (results[i] == Statement.SUCCESS_NO_INFO) {
+                rowCountsReported = false;
+            }
+        }
+
+        if (!rowCountsReported) {
+            // Some drivers (e.g. Oracle) do not report the row counts of batches, so check whether the cached ids
+            // still exist instead. The events of a source whose id did not exist were not inserted.
+            Set<Integer> existingIds = getExistingEventSourceIds(conn, cachedSources, sourceIds);
+            for (EventSource eventSource : cachedSources) {
+                if (!existingIds.contains(sourceIds.get(eventSource))) {
+                    staleSources.add(eventSource);
+                }
+            }
+        }
+
+        return staleSources;
+    }
+
+    /**
+     * @return those ids of the sources that exist
+     */
+    private Set<Integer> getExistingEventSourceIds(Connection conn, Set<EventSource> eventSources,
+        Map<EventSource, Integer> sourceIds) throws SQLException {
+
+        List<Integer> ids = new ArrayList<Integer>(eventSources.size());
+        for (EventSource eventSource : eventSources) {
+            ids.add(sourceIds.get(eventSource));
+        }
+
+        Set<Integer> existingIds = new HashSet<Integer>(ids.size());
+        // Oracle allows no more than 1000 values in an IN list
+        for (int from = 0; from < ids.size(); from += 1000) {
+            List<Integer> chunk = ids.subList(from, Math.min(from + 1000, ids.size()));
+            StringBuilder sql = new StringBuilder("SELECT id FROM RHQ_Event_Source WHERE id IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append((i == 0) ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            PreparedStatement ps = conn.prepareStatement(sql.toString());
+            ResultSet rs = null;
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setInt(i + 1, chunk.get(i));
+                }
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    existingIds.add(rs.getInt(1));
+                }
+            } finally {
+                JDBCUtil.safeClose(ps, rs);
+            }
+        }
+
+        return existingIds;
+    }
+
+    private void notifyAlertConditionCacheManager(String callingMethod, Map<EventSource, Set<Event>> events) {
+        AlertConditionCacheStats stats = alertConditionCacheManager.checkConditions(events);
 
         log.debug(callingMethod + ": " + stats.toString());
     }
@@ -224,6 +382,30 @@ public class EventManagerBean implements EventManagerLocal, EventManagerRemote {
         return deleted;
     }
 
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int purgeEventData(int firstEventSourceId, int lastEventSourceId, Date deleteUpToTime) {
+        // the range of sources makes the (EVENT_SOURCE_ID, TIMESTAMP) index usable for the delete
+        Query q = entityManager.createQuery("DELETE FROM Event e " //
+            + "WHERE e.source.id BETWEEN :firstSourceId AND :lastSourceId AND e.timestamp < :cutOff");
+        q.setParameter("firstSourceId", firstEventSourceId);
+        q.setParameter("lastSourceId", lastEventSourceId);
+        q.setParameter("cutOff", deleteUpToTime.getTime());
+        long startTime = System.currentTimeMillis();
+        int deleted = q.executeUpdate();
+        MeasurementMonitor.getMBean().incrementPurgeTime(System.currentTimeMillis() - startTime);
+        return deleted;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public int[] getEventSourceIdRange() {
+        Query q = entityManager.createQuery("SELECT MIN(e.source.id), MAX(e.source.id) FROM Event e");
+        Object[] range = (Object[]) q.getSingleResult();
+        if (range[0] == null) {
+            return null;
+        }
+        return new int[] { ((Number) range[0]).intValue(), ((Number) range[1]).intValue() };
+    }
+
     public int[] getEventCounts(Subject subject, int resourceId, long begin, long end, int numBuckets) {
 
         int[] buckets = new int[numBuckets];
@@ -267,6 +449,7 @@ public class EventManagerBean implements EventManagerLocal, EventManagerRemote {
         for (EventSource source : sources) {
             entityManager.remove(source);
         }
+        eventSourceIdCache.clear();
     }
 
     public int deleteEventsForContext(Subject subject, EntityContext context, List<Integer> eventIds) {
@@ -61,6 +61,22 @@ public interface EventManagerLocal {
      */
     int purgeEventData(Date deleteUpToTime) throws SQLException;
 
+    /**
+     * Deletes the event data older than the specified time whose event source is in the specified range, in a new
+     * transaction. Used to purge old data in small chunks.
+     *
+     * @param firstEventSourceId the first event source id of the range, inclusive
+     * @param lastEventSourceId the last event source id of the range, inclusive
+     * @param deleteUpToTime event data older than this time will be deleted
+     * @return number of deleted Events
+     */
+    int purgeEventData(int firstEventSourceId, int lastEventSourceId, Date deleteUpToTime);
+
+    /**
+     * @return the lowest and highest event source ids that have event data, or null if there is no event data
+     */
+    int[] getEventSourceIdRange();
+
     Map<EventSeverity, Integer> getEventCountsBySeverity(Subject subject, int resourceId, long startDate, long endDate);
 
     Map<EventSeverity, Integer> getEventCountsBySeverityForGroup(Subject subject, int groupId, long startDate,
@@ -0,0 +1,184 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.event;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rhq.core.domain.event.EventSource;
+
+/**
+ * Remembers the ids of the {@link EventSource}s events were recently reported for, so that their events can be
+ * inserted by source id rather than by looking up the source from its definition, resource and location each time.
+ * The agent does not know the ids of event definitions or sources, so they are identified by the name, resource type
+ * and plugin of the definition, the resource id and the location.
+ * <p/>
+ * A cached id can be stale when the source was deleted, e.g. with its resource or definition, on this or another
+ * server. Callers must check that the source still exists where they use the id, and {@link #remove(EventSource)} it
+ * if not. Since the deletions on other servers are not seen here, ids are only cached for a limited time, so a stale
+ * id does not linger until it happens to be dropped as the least recently used one.
+ */
+public class EventSourceIdCache {
+
+    /**
+     * System property with the number of source ids that are cached. A value of 0 disables the cache.
+     */
+    public static final String SIZE_PROPERTY = "rhq.server.event.source-id-cache.size";
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * System property with the time (in millis) a source id is cached for.
+     */
+    public static final String TIME_TO_LIVE_PROPERTY = "rhq.server.event.source-id-cache.time-to-live";
+
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000L;
+
+    private static class Key {
+        private final String definitionName;
+        private final String resourceTypeName;
+        private final String plugin;
+        private final int resourceId;
+        private final String location;
+        private final int hashCode;
+
+        Key(EventSource source) {
+            this.definitionName = source.getEventDefinition().getName();
+            this.resourceTypeName = source.getEventDefinition().getResourceType().getName();
+            this.plugin = source.getEventDefinition().getResourceType().getPlugin();
+            this.resourceId = source.getResource().getId();
+            this.location = source.getLocation();
+
+            int result = resourceId;
+            result = 31 * result + hash(definitionName);
+            result = 31 * result + hash(resourceTypeName);
+            result = 31 * result + hash(plugin);
+            result = 31 * result + hash(location);
+            this.hashCode = result;
+        }
+
+        private static int hash(String value) {
+            return (value != null) ? value.hashCode() : 0;
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a != null) ? a.equals(b) : b == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return resourceId == other.resourceId && equal(location, other.location)
+                && equal(definitionName, other.definitionName) && equal(resourceTypeName, other.resourceTypeName)
+                && equal(plugin, other.plugin);
+        }
+    }
+
+    private static class CachedId {
+        private final int id;
+        private final long expirationTime;
+
+        CachedId(int id, long expirationTime) {
+            this.id = id;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private final int size;
+
+    private final long timeToLive;
+
+    private final Map<Key, CachedId> ids;
+
+    public EventSourceIdCache() {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE), Long.getLong(TIME_TO_LIVE_PROPERTY,
+            DEFAULT_TIME_TO_LIVE));
+    }
+
+    public EventSourceIdCache(int size) {
+        this(size, DEFAULT_TIME_TO_LIVE);
+    }
+
+    public EventSourceIdCache(final int size, long timeToLive) {
+        this.size = size;
+        this.timeToLive = timeToLive;
+        // access ordered, so the least recently used source is dropped first
+        this.ids = new LinkedHashMap<Key, CachedId>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedId> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return size > 0;
+    }
+
+    /**
+     * @return the id of the source or null if it is not cached, or was cached too long ago
+     */
+    public synchronized Integer get(EventSource source) {
+        Key key = new Key(source);
+        CachedId cachedId = ids.get(key);
+        if (cachedId == null) {
+            return null;
+        }
+        if (currentTimeMillis() >= cachedId.expirationTime) {
+            ids.remove(key);
+            return null;
+        }
+        return cachedId.id;
+    }
+
+    public synchronized void put(EventSource source, int id) {
+        if (isEnabled()) {
+            ids.put(new Key(source), new CachedId(id, currentTimeMillis() + timeToLive));
+        }
+    }
+
+    public synchronized void remove(EventSource source) {
+        ids.remove(new Key(source));
+    }
+
+    public synchronized void clear() {
+        ids.clear();
+    }
+
+    public synchronized int getCachedCount() {
+        return ids.size();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -18,10 +18,17 @@
  */
 package org.rhq.enterprise.server.measurement;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
@@ -33,12 +40,18 @@ import javax.persistence.NoResultException;
 import javax.persistence.NonUniqueResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.jboss.ejb3.annotation.TransactionTimeout;
 
+import org.rhq.core.db.DatabaseType;
+import org.rhq.core.db.DatabaseTypeFactory;
+import org.rhq.core.db.H2DatabaseType;
+import org.rhq.core.db.OracleDatabaseType;
+import org.rhq.core.db.PostgresqlDatabaseType;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.common.EntityContext;
 import org.rhq.core.domain.criteria.AvailabilityCriteria;
@@ -55,6 +68,8 @@ import org.rhq.core.domain.util.PageControl;
 import org.rhq.core.domain.util.PageList;
 import org.rhq.core.domain.util.PageOrdering;
 import org.rhq.core.util.StopWatch;
+import org.rhq.core.util.collection.IntOpenHashMap;
+import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheManagerLocal;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
@@ -78,9 +93,35 @@ import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 public class AvailabilityManagerBean implements AvailabilityManagerLocal, AvailabilityManagerRemote {
     private final Log log = LogFactory.getLog(AvailabilityManagerBean.class);
 
+    /**
+     * Set this system property to <code>false</code> to merge availability reports one availability at a time.
+     */
+    public static final String SET_BASED_MERGE_PROPERTY = "rhq.server.availability.set-based-merge";
+
+    private static final boolean SET_BASED_MERGE = !"false".equalsIgnoreCase(System
+        .getProperty(SET_BASED_MERGE_PROPERTY));
+
+    private static final String CURRENT_AVAILABILITIES = "" //
+        + "SELECT ID, RESOURCE_ID, START_TIME, AVAILABILITY_TYPE " //
+        + "  FROM RHQ_AVAILABILITY " //
+        + " WHERE END_TIME IS NULL AND RESOURCE_ID IN ( :resourceIds )";
+
+    private static final String UPDATE_END_TIME = "UPDATE RHQ_AVAILABILITY SET END_TIME = ? WHERE ID = ?";
+
+    private static final String INSERT_AVAILABILITY = "" //
+        + "INSERT INTO RHQ_AVAILABILITY ( ID, RESOURCE_ID, START_TIME, END_TIME, AVAILABILITY_TYPE ) " //
+        + "     VALUES ( %s, ?, ?, NULL, ? )";
+
+    private static final String UPDATE_RESOURCE_AVAILABILITY = "" //
+        + "UPDATE RHQ_RESOURCE_AVAIL SET AVAILABILITY_TYPE = ? " //
+        + " WHERE RESOURCE_ID = ? AND AVAILABILITY_TYPE <> ?";
+
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    @javax.annotation.Resource(name = "RHQ_DS")
+    private DataSource rhqDs;
+
     @EJB
     private AvailabilityManagerLocal availabilityManager;
     @EJB
@@ -113,6 +154,34 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
         }
     }
 
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int purgeAvailabilities(int firstResourceId, int lastResourceId, long oldest) {
+        try {
+            Query purgeQuery = entityManager.createNativeQuery(Availability.NATIVE_QUERY_PURGE_RESOURCE_RANGE);
+            purgeQuery.setParameter(1, firstResourceId);
+            purgeQuery.setParameter(2, lastResourceId);
+            purgeQuery.setParameter(3, oldest);
+            purgeQuery.setParameter(4, oldest);
+            long startTime = System.currentTimeMillis();
+            int deleted = purgeQuery.executeUpdate();
+            MeasurementMonitor.getMBean().incrementPurgeTime(System.currentTimeMillis() - startTime);
+            return deleted;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to purge availabilities older than [" + oldest + "] for resources ["
+                + firstResourceId + ".." + lastResourceId + "]", e);
+        }
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public int[] getAvailabilityResourceIdRange() {
+        Query query = entityManager.createNativeQuery(Availability.NATIVE_QUERY_FIND_RESOURCE_ID_RANGE);
+        Object[] range = (Object[]) query.getSingleResult();
+        if (range[0] == null) {
+            return null;
+        }
+        return new int[] { ((Number) range[0]).intValue(), ((Number) range[1]).intValue() };
+    }
+
     public AvailabilityType getCurrentAvailabilityTypeForResource(Subject subject, int resourceId) {
         return resourceAvailabilityManager.getLatestAvailabilityType(subject, resourceId);
     }
@@ -495,131 +564,30 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
             askForFullReport = true;
 
         } else {
+            MergeResult result = new MergeResult();
+
+            // merge what can be merged set based, the rest (and all of it if that is off) one availability at a time
+            List<Availability> remaining = availabilities;
+            if (SET_BASED_MERGE && (availabilities.size() > 1)) {
+                remaining = mergeAvailabilities(report, availabilities, disabledAvailabilities, result);
+            }
+
             Query q = entityManager.createNamedQuery(Availability.FIND_CURRENT_BY_RESOURCE);
             q.setFlushMode(FlushModeType.COMMIT);
 
             int count = 0;
-            for (Availability reported : availabilities) {
+            for (Availability reported : remaining) {
                 if ((++count % 100) == 0) {
                     entityManager.flush();
                     entityManager.clear();
                 }
 
-                // availability reports only tell us the current state at the start time; end time is ignored/must be null
-                reported.setEndTime(null);
-
-                try {
-                    q.setParameter("resourceId", reported.getResource().getId());
-                    Availability latest = (Availability) q.getSingleResult();
-                    AvailabilityType latestType = latest.getAvailabilityType();
-                    AvailabilityType reportedType = reported.getAvailabilityType();
-
-                    // If the current avail is DISABLED, and this report is not trying to re-enable the resource,
-                    // Then ignore the reported avail.
-                    if (AvailabilityType.DISABLED == latestType) {
-                        if (!(report.isEnablementReport() && (AvailabilityType.UNKNOWN == reportedType))) {
-                            disabledAvailabilities.add(reported);
-                            continue;
-                        }
-                    }
-
-                    if (reported.getStartTime() >= latest.getStartTime()) {
-                        //log.info( "new avail (latest/reported)-->" + latest + "/" + reported );
-
-                        // the new availability data is for a time after our last known state change
-                        // we are runlength encoded, so only persist data if the availability changed                        
-                        if (latest.getAvailabilityType() != reported.getAvailabilityType()) {
-                            entityManager.persist(reported);
-                            numInserted++;
-
-                            latest.setEndTime(reported.getStartTime());
-                            latest = entityManager.merge(latest);
-
-                            updateResourceAvailability(reported);
-                        }
-
-                        // our last known state was unknown, ask for a full report to ensure we are in sync with agent
-                        if (latest.getAvailabilityType() == AvailabilityType.UNKNOWN) {
-                            askForFullReport = true;
-                        }
-                    } else {
-                        //log.info( "past avail (latest/reported)==>" + latest + "/" + reported );
-
-                        // The new data is for a time in the past, probably an agent sending a report after
-                        // a network outage has been corrected but after we have already backfilled.
-                        // We need to insert it into our past timeline.
-                        insertAvailability(reported);
-                        numInserted++;
-
-                        // this is an unusual report - ask the agent for a full report so as to ensure we are in sync with agent
-                        askForFullReport = true;
-                    }
-                } catch (NoResultException nre) {
-                    // This should not happen unless the Resource in the report is stale, which can happen in certain
-                    // sync scenarios. A Resource is given its initial Availability/ResourceAvailability when it is
-                    // persisted so it is guaranteed to have Availability, so, the Resource must not exist. At least
-                    // it must not exist in my utopian view of the world. Let's just make sure...
-                    Resource attachedResource = (Resource) entityManager.find(Resource.class, reported.getResource()
-                        .getId());
-                    if (null == attachedResource) {
-                        // expected case
-                        log.info("Skipping mergeAvailabilityReport() for stale resource [" + reported.getResource()
-                            + "]. These messages should go away after the next agent synchronization with the server.");
-
-                    } else if (InventoryStatus.COMMITTED == attachedResource.getInventoryStatus()) {
-                        // this should not happen, it means the resource exists but has no latest Availability
-                        // record (i.e. sendTime == null).  Try to correct the situation.
-                        log.warn("Resource [" + reported.getResource()
-                            + "] has no latest availability record (i.e. no endtime) - will attempt to repair.\n"
-                            + report.toString(false));
-                        try {
-                            List<Availability> attachedAvails = attachedResource.getAvailability();
-                            if (attachedAvails.isEmpty()) {
-                                attachedResource.initCurrentAvailability();
-                                entityManager.merge(attachedResource);
-
-                            } else {
-                                Availability attachedLastAvail = attachedAvails.get(attachedAvails.size() - 1);
-                                attachedLastAvail.setEndTime(null);
-                                entityManager.merge(attachedLastAvail);
-                            }
-
-                            // ask the agent for a full report so as to ensure we are in sync with agent
-                            askForFullReport = true;
-
-                        } catch (Throwable t) {
-                            log.warn("Unable to repair latest availablity for Resource [" + reported.getResource()
-                                + "]", t);
-                        }
-                    }
-
-                } catch (NonUniqueResultException nure) {
-                    // This condition should never happen.  In my world of la-la land, I've done everything
-                    // correctly so this never happens.  But, due to the asynchronous nature of things,
-                    // I have to believe that this still might happen (albeit rarely).  If it does happen,
-                    // and we do nothing about it - bad things arise.  So, if we find that a resource
-                    // has 2 or more availabilities with endTime of null, we need to delete all but the
-                    // latest one (the one whose start time is the latest).  This should correct the
-                    // problem and allow us to continue processing availability reports for that resource
-                    log.warn("Resource [" + reported.getResource()
-                        + "] has multiple availabilities without an endtime [" + nure.getMessage()
-                        + "] - will attempt to remove the extra ones\n" + report.toString(false));
-
-                    q.setParameter("resourceId", reported.getResource().getId());
-                    List<Availability> latest = q.getResultList();
-
-                    // delete all but the last one (our query sorts in ASC start time order)
-                    int latestCount = latest.size();
-                    for (int i = 0; i < (latestCount - 1); i++) {
-                        entityManager.remove(latest.get(i));
-                    }
-                    updateResourceAvailability(latest.get(latestCount - 1));
-
-                    // this is an unusual report - ask the agent for a full report so as to ensure we are in sync with agent
-                    askForFullReport = true;
-                }
+                mergeAvailability(q, reported, report, disabledAvailabilities, result);
             }
 
+            numInserted = result.inserted;
+            askForFullReport = askForFullReport || result.askForFullReport;
+
             MeasurementMonitor.getMBean().incrementAvailabilityReports(report.isChangesOnlyReport());
             MeasurementMonitor.getMBean().incrementAvailabilitiesInserted(numInserted);
             MeasurementMonitor.getMBean().incrementAvailabilityInsertTime(watch.getElapsed());
@@ -650,6 +618,295 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
         return true; // everything is OK and things look to be in sync
     }
 
+    /**
+     * Merges a single reported availability, looking up the current availability of its resource.
+     */
+    private void mergeAvailability(Query q, Availability reported, AvailabilityReport report,
+        List<Availability> disabledAvailabilities, MergeResult result) {
+        // availability reports only tell us the current state at the start time; end time is ignored/must be null
+        reported.setEndTime(null);
+
+        try {
+            q.setParameter("resourceId", reported.getResource().getId());
+            Availability latest = (Availability) q.getSingleResult();
+            AvailabilityType latestType = latest.getAvailabilityType();
+            AvailabilityType reportedType = reported.getAvailabilityType();
+
+            // If the current avail is DISABLED, and this report is not trying to re-enable the resource,
+            // Then ignore the reported avail.
+            if (AvailabilityType.DISABLED == latestType) {
+                if (!(report.isEnablementReport() && (AvailabilityType.UNKNOWN == reportedType))) {
+                    disabledAvailabilities.add(reported);
+                    return;
+                }
+            }
+
+            if (reported.getStartTime() >= latest.getStartTime()) {
+                //log.info( "new avail (latest/reported)-->" + latest + "/" + reported );
+
+                // the new availability data is for a time after our last known state change
+                // we are runlength encoded, so only persist data if the availability changed                        
+                if (latest.getAvailabilityType() != reported.getAvailabilityType()) {
+                    entityManager.persist(reported);
+                    result.inserted++;
+
+                    latest.setEndTime(reported.getStartTime());
+                    latest = entityManager.merge(latest);
+
+                    updateResourceAvailability(reported);
+                }
+
+                // our last known state was unknown, ask for a full report to ensure we are in sync with agent
+                if (latest.getAvailabilityType() == AvailabilityType.UNKNOWN) {
+                    result.askForFullReport = true;
+                }
+            } else {
+                //log.info( "past avail (latest/reported)==>" + latest + "/" + reported );
+
+                // The new data is for a time in the past, probably an agent sending a report after
+                // a network outage has been corrected but after we have already backfilled.
+                // We need to insert it into our past timeline.
+                insertAvailability(reported);
+                result.inserted++;
+
+                // this is an unusual report - ask the agent for a full report so as to ensure we are in sync with agent
+                result.askForFullReport = true;
+            }
+        } catch (NoResultException nre) {
+            // This should not happen unless the Resource in the report is stale, which can happen in certain
+            // sync scenarios. A Resource is given its initial Availability/ResourceAvailability when it is
+            // persisted so it is guaranteed to have Availability, so, the Resource must not exist. At least
+            // it must not exist in my utopian view of the world. Let's just make sure...
+            Resource attachedResource = (Resource) entityManager.find(Resource.class, reported.getResource()
+                .getId());
+            if (null == attachedResource) {
+                // expected case
+                log.info("Skipping mergeAvailabilityReport() for stale resource [" + reported.getResource()
+                    + "]. These messages should go away after the next agent synchronization with the server.");
+
+            } else if (InventoryStatus.COMMITTED == attachedResource.getInventoryStatus()) {
+                // this should not happen, it means the resource exists but has no latest Availability
+                // record (i.e. sendTime == null).  Try to correct the situation.
+                log.warn("Resource [" + reported.getResource()
+                    + "] has no latest availability record (i.e. no endtime) - will attempt to repair.\n"
+                    + report.toString(false));
+                try {
+                    List<Availability> attachedAvails = attachedResource.getAvailability();
+                    if (attachedAvails.isEmpty()) {
+                        attachedResource.initCurrentAvailability();
+                        entityManager.merge(attachedResource);
+
+                    } else {
+                        Availability attachedLastAvail = attachedAvails.get(attachedAvails.size() - 1);
+                        attachedLastAvail.setEndTime(null);
+                        entityManager.merge(attachedLastAvail);
+                    }
+
+                    // ask the agent for a full report so as to ensure we are in sync with agent
+                    result.askForFullReport = true;
+
+                } catch (Throwable t) {
+                    log.warn("Unable to repair latest availablity for Resource [" + reported.getResource()
+                        + "]", t);
+                }
+            }
+
+        } catch (NonUniqueResultException nure) {
+            // This condition should never happen.  In my world of la-la land, I've done everything
+            // correctly so this never happens.  But, due to the asynchronous nature of things,
+            // I have to believe that this still might happen (albeit rarely).  If it does happen,
+            // and we do nothing about it - bad things arise.  So, if we find that a resource
+            // has 2 or more availabilities with endTime of null, we need to delete all but the
+            // latest one (the one whose start time is the latest).  This should correct the
+            // problem and allow us to continue processing availability reports for that resource
+            log.warn("Resource [" + reported.getResource()
+                + "] has multiple availabilities without an endtime [" + nure.getMessage()
+                + "] - will attempt to remove the extra ones\n" + report.toString(false));
+
+            q.setParameter("resourceId", reported.getResource().getId());
+            List<Availability> latest = q.getResultList();
+
+            // delete all but the last one (our query sorts in ASC start time order)
+            int latestCount = latest.size();
+            for (int i = 0; i < (latestCount - 1); i++) {
+                entityManager.remove(latest.get(i));
+            }
+            updateResourceAvailability(latest.get(latestCount - 1));
+
+            // this is an unusual report - ask the agent for a full report so as to ensure we are in sync with agent
+            result.askForFullReport = true;
+        }
+    }
+
+    /**
+     * Merges the reported availabilities set based: the current availability of all their resources is loaded with
+     * one query per 1000 resources, the changes are computed in memory and written with batched JDBC statements. The
+     * availabilities that need more than appending a new interval - a resource without exactly one current
+     * availability, data for a time in the past, a resource reported twice - are returned to be merged one at a time.
+     *
+     * @return the reported availabilities that still need to be merged
+     */
+    private List<Availability> mergeAvailabilities(AvailabilityReport report, List<Availability> availabilities,
+        List<Availability> disabledAvailabilities, MergeResult result) {
+
+        List<Availability> remaining = new ArrayList<Availability>();
+
+        // make sure what the entity manager did so far is visible to the JDBC statements
+        entityManager.flush();
+
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = rhqDs.getConnection();
+            DatabaseType dbType = DatabaseTypeFactory.getDatabaseType(conn);
+            if (!(dbType instanceof PostgresqlDatabaseType || dbType instanceof OracleDatabaseType
+                || dbType instanceof H2DatabaseType)) {
+                return availabilities;
+            }
+
+            int[] resourceIds = new int[availabilities.size()];
+            for (int i = 0; i < resourceIds.length; i++) {
+                resourceIds[i] = availabilities.get(i).getResource().getId();
+            }
+
+            // resource id -> {id, start time, availability type} of the current availability
+            IntOpenHashMap<long[]> current = new IntOpenHashMap<long[]>(resourceIds.length);
+            Set<Integer> ambiguous = new HashSet<Integer>();
+            for (int fromIndex = 0; fromIndex < resourceIds.length; fromIndex += 1000) {
+                int[] ids = Arrays.copyOfRange(resourceIds, fromIndex, Math.min(resourceIds.length, fromIndex + 1000));
+                ps = conn.prepareStatement(JDBCUtil.transformQueryForMultipleInParameters(CURRENT_AVAILABILITIES,
+                    ":resourceIds", ids.length));
+                JDBCUtil.bindNTimes(ps, ids, 1);
+                rs = ps.executeQuery();
+                while (rs.next()) {
+                    int resourceId = rs.getInt(2);
+                    long[] row = new long[] { rs.getInt(1), rs.getLong(3), rs.getInt(4) };
+                    if (current.put(resourceId, row) != null) {
+                        ambiguous.add(resourceId);
+                    }
+                }
+                JDBCUtil.safeClose(ps, rs);
+                ps = null;
+                rs = null;
+            }
+
+            List<Availability> inserts = new ArrayList<Availability>();
+            List<long[]> endTimes = new ArrayList<long[]>();
+            Set<Integer> merged = new HashSet<Integer>();
+            AvailabilityType[] types = AvailabilityType.values();
+
+            for (Availability reported : availabilities) {
+                // availability reports only tell us the current state at the start time; end time is ignored/must be null
+                reported.setEndTime(null);
+
+                int resourceId = reported.getResource().getId();
+                long[] latest = current.get(resourceId);
+                if ((latest == null) || ambiguous.contains(resourceId) || !merged.add(resourceId)) {
+                    remaining.add(reported);
+                    continue;
+                }
+
+                AvailabilityType latestType = types[(int) latest[2]];
+                AvailabilityType reportedType = reported.getAvailabilityType();
+
+                // If the current avail is DISABLED, and this report is not trying to re-enable the resource,
+                // Then ignore the reported avail.
+                if (AvailabilityType.DISABLED == latestType) {
+                    if (!(report.isEnablementReport() && (AvailabilityType.UNKNOWN == reportedType))) {
+                        disabledAvailabilities.add(reported);
+                        continue;
+                    }
+                }
+
+                if (reported.getStartTime() < latest[1]) {
+                    // data for a time in the past has to be shoe-horned into the timeline
+                    remaining.add(reported);
+                    continue;
+                }
+
+                // we are runlength encoded, so only persist data if the availability changed
+                if (latestType != reportedType) {
+                    inserts.add(reported);
+                    endTimes.add(new long[] { reported.getStartTime(), latest[0] });
+                }
+
+                // our last known state was unknown, ask for a full report to ensure we are in sync with agent
+                if (latestType == AvailabilityType.UNKNOWN) {
+                    result.askForFullReport = true;
+                }
+            }
+
+            if (!inserts.isEmpty()) {
+                ps = conn.prepareStatement(UPDATE_END_TIME);
+                for (int i = 0; i < endTimes.size(); i++) {
+                    ps.setLong(1, endTimes.get(i)[0]);
+                    ps.setInt(2, (int) endTimes.get(i)[1]);
+                    ps.addBatch();
+                    if (((i + 1) % 1000) == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+                JDBCUtil.safeClose(ps);
+
+                ps = conn.prepareStatement(String.format(INSERT_AVAILABILITY, JDBCUtil.getNextValSql(conn,
+                    "RHQ_AVAILABILITY")));
+                for (int i = 0; i < inserts.size(); i++) {
+                    Availability reported = inserts.get(i);
+                    ps.setInt(1, reported.getResource().getId());
+                    ps.setLong(2, reported.getStartTime());
+                    ps.setInt(3, reported.getAvailabilityType().ordinal());
+                    ps.addBatch();
+                    if (((i + 1) % 1000) == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+                JDBCUtil.safeClose(ps);
+
+                ps = conn.prepareStatement(UPDATE_RESOURCE_AVAILABILITY);
+                for (int i = 0; i < inserts.size(); i++) {
+                    Availability reported = inserts.get(i);
+                    int type = reported.getAvailabilityType().ordinal();
+                    ps.setInt(1, type);
+                    ps.setInt(2, reported.getResource().getId());
+                    ps.setInt(3, type);
+                    ps.addBatch();
+                    if (((i + 1) % 1000) == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+
+                result.inserted += inserts.size();
+
+                // the rows changed behind the entity manager's back, don't let it hand out stale entities
+                entityManager.clear();
+            }
+        } catch (SQLException e) {
+            throw new MeasurementException("Failed to merge the availability report of agent [" + report.getAgentName()
+                + "]", e);
+        } finally {
+            JDBCUtil.safeClose(conn, ps, rs);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Agent [" + report.getAgentName() + "]: merged [" + (availabilities.size() - remaining.size())
+                + "] availabilities set based, [" + remaining.size() + "] remain");
+        }
+
+        return remaining;
+    }
+
+    /**
+     * What merging the availabilities of a report did.
+     */
+    private static class MergeResult {
+        int inserted;
+        boolean askForFullReport;
+    }
+
     private void updateResourceAvailability(Availability reported) {
         // update the last known availability data for this resource
         ResourceAvailability currentAvailability = resourceAvailabilityManager.getLatestAvailability(reported
@@ -47,6 +47,20 @@ public interface AvailabilityManagerLocal extends AvailabilityManagerRemote {
      */
     int purgeAvailabilities(long oldest);
 
+    /**
+     * Same as {@link #purgeAvailabilities(long)}, restricted to the resources with an id between
+     * <code>firstResourceId</code> and <code>lastResourceId</code>, both inclusive. Used to purge old data in small
+     * chunks.
+     *
+     * @return the number of availabilities that were purged
+     */
+    int purgeAvailabilities(int firstResourceId, int lastResourceId, long oldest);
+
+    /**
+     * @return the lowest and highest resource ids that have availability data, or null if there is no availability
+     */
+    int[] getAvailabilityResourceIdRange();
+
     /**
      * Indicates if the given resource is currently up (i.e. available) or down.
      *
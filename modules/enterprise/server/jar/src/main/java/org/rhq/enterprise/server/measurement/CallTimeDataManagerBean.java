@@ -20,6 +20,7 @@ package org.rhq.enterprise.server.measurement;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
@@ -100,6 +101,11 @@ public class CallTimeDataManagerBean implements CallTimeDataManagerLocal, CallTi
     private static final String CALLTIME_VALUE_PURGE_STATEMENT = "DELETE FROM " + DATA_VALUE_TABLE_NAME
         + " WHERE end_time < ?";
 
+    private static final String CALLTIME_VALUE_PURGE_RANGE_STATEMENT = "DELETE FROM " + DATA_VALUE_TABLE_NAME
+        + " WHERE end_time BETWEEN ? AND ?";
+
+    private static final String CALLTIME_VALUE_OLDEST_STATEMENT = "SELECT MIN(end_time) FROM " + DATA_VALUE_TABLE_NAME;
+
     private final Log log = LogFactory.getLog(CallTimeDataManagerBean.class);
 
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
@@ -276,6 +282,52 @@ public class CallTimeDataManagerBean implements CallTimeDataManagerLocal, CallTi
         }
     }
 
+    /**
+     * Deletes the call-time data that ended in the specified range of time. Used to purge old data in small chunks.
+     *
+     * @param beginTime the start of the range, inclusive
+     * @param endTime the end of the range, inclusive
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int purgeCallTimeData(long beginTime, long endTime) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = rhqDs.getConnection();
+            stmt = conn.prepareStatement(CALLTIME_VALUE_PURGE_RANGE_STATEMENT);
+            stmt.setLong(1, beginTime);
+            stmt.setLong(2, endTime);
+
+            long startTime = System.currentTimeMillis();
+            int deletedRowCount = stmt.executeUpdate();
+            MeasurementMonitor.getMBean().incrementPurgeTime(System.currentTimeMillis() - startTime);
+            return deletedRowCount;
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, null);
+        }
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Long getOldestCallTimeDataTime() throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = rhqDs.getConnection();
+            stmt = conn.prepareStatement(CALLTIME_VALUE_OLDEST_STATEMENT);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                long oldest = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    return oldest;
+                }
+            }
+            return null;
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, rs);
+        }
+    }
+
     /*
      * internal method, do not expose to the remote API
      */
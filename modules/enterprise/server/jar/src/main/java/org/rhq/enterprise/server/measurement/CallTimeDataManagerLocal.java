@@ -56,6 +56,19 @@ public interface CallTimeDataManagerLocal {
 
     int purgeCallTimeData(Date deleteUpToTime) throws SQLException;
 
+    /**
+     * Deletes the call-time data that ended between <code>beginTime</code> and <code>endTime</code>, both inclusive,
+     * in a new transaction. Used to purge old data in small chunks.
+     *
+     * @return the number of deleted call-time data values
+     */
+    int purgeCallTimeData(long beginTime, long endTime) throws SQLException;
+
+    /**
+     * @return the end time of the oldest call-time data value, or null if there is no call-time data
+     */
+    Long getOldestCallTimeDataTime() throws SQLException;
+
     /*
      * internal methods that are exposed here so as to enable finer-grained manipulation of transactional boundaries
      */
@@ -20,9 +20,13 @@ package org.rhq.enterprise.server.measurement;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.ejb.EJB;
@@ -50,12 +54,15 @@ import org.rhq.core.domain.measurement.MeasurementSchedule;
 import org.rhq.core.domain.measurement.NumericType;
 import org.rhq.core.domain.resource.Resource;
 import org.rhq.core.util.collection.ArrayUtils;
+import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.auth.SubjectManagerLocal;
 import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.authz.PermissionException;
 import org.rhq.enterprise.server.cloud.StatusManagerLocal;
 import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStoreFactory;
 import org.rhq.enterprise.server.resource.ResourceManagerLocal;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
 
@@ -96,6 +103,72 @@ public class MeasurementBaselineManagerBean implements MeasurementBaselineManage
 
     private final Log log = LogFactory.getLog(MeasurementBaselineManagerBean.class);
 
+    /**
+     * System property that, when set to false, makes the hourly baseline and OOB calculations go back to the full
+     * passes over the 1h data.
+     */
+    public static final String INCREMENTAL_CALCULATION_PROPERTY = "rhq.server.baseline.incremental-calculation";
+
+    // the number of schedule ids whose statistics, baselines and OOBs are updated per transaction
+    private static final int SCHEDULE_ID_RANGE = 5000;
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static final String STATISTICS_SELECT = "" //
+        + "SELECT schedule_id, stat_day, samples, sum_value, min_value, max_value, first_time_stamp, last_time_stamp " //
+        + "  FROM RHQ_MEASUREMENT_BLINE_STAT " //
+        + " WHERE schedule_id BETWEEN ? AND ? AND stat_day >= ?";
+
+    private static final String STATISTICS_INSERT = "" //
+        + "INSERT INTO RHQ_MEASUREMENT_BLINE_STAT " //
+        + "       (samples, sum_value, min_value, max_value, first_time_stamp, last_time_stamp, schedule_id, stat_day) " //
+        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String STATISTICS_UPDATE = "" //
+        + "UPDATE RHQ_MEASUREMENT_BLINE_STAT " //
+        + "   SET samples = ?, sum_value = ?, min_value = ?, max_value = ?, first_time_stamp = ?, last_time_stamp = ? " //
+        + " WHERE schedule_id = ? AND stat_day = ?";
+
+    private static final String STATISTICS_PURGE = "" //
+        + "DELETE FROM RHQ_MEASUREMENT_BLINE_STAT WHERE schedule_id BETWEEN ? AND ? AND stat_day < ?";
+
+    // only dynamic metrics (NumericType.DYNAMIC) have baselines
+    private static final String DYNAMIC_SCHEDULES_SELECT = "" //
+        + "SELECT sched.id, sched.enabled " //
+        + "  FROM RHQ_MEASUREMENT_SCHED sched, RHQ_MEASUREMENT_DEF def " //
+        + " WHERE sched.id BETWEEN ? AND ? " //
+        + "   AND sched.definition = def.id " //
+        + "   AND def.numeric_type = 0 ";
+
+    private static final String BASELINE_DELETE = "" //
+        + "DELETE FROM RHQ_MEASUREMENT_BLINE WHERE schedule_id BETWEEN ? AND ? AND bl_compute_time < ?";
+
+    private static final String BASELINE_SELECT = "" //
+        + "SELECT schedule_id, bl_min, bl_max FROM RHQ_MEASUREMENT_BLINE WHERE schedule_id BETWEEN ? AND ?";
+
+    private static final String BASELINE_INSERT_POSTGRES = "" //
+        + "INSERT INTO RHQ_MEASUREMENT_BLINE (id, bl_min, bl_max, bl_mean, bl_compute_time, schedule_id) " //
+        + "VALUES (nextval('RHQ_MEASUREMENT_BLINE_ID_SEQ'), ?, ?, ?, ?, ?)";
+
+    private static final String BASELINE_INSERT_ORACLE = "" //
+        + "INSERT INTO RHQ_MEASUREMENT_BLINE (id, bl_min, bl_max, bl_mean, bl_compute_time, schedule_id) " //
+        + "VALUES (RHQ_MEASUREMENT_BLINE_ID_SEQ.nextval, ?, ?, ?, ?, ?)";
+
+    private static final String BASELINE_INSERT_SQLSERVER = "" //
+        + "INSERT INTO RHQ_MEASUREMENT_BLINE (bl_min, bl_max, bl_mean, bl_compute_time, schedule_id) " //
+        + "VALUES (?, ?, ?, ?, ?)";
+
+    private static final String OOB_SELECT = "" //
+        + "SELECT schedule_id, oob_factor FROM RHQ_MEASUREMENT_OOB WHERE schedule_id BETWEEN ? AND ?";
+
+    private static final String OOB_INSERT = "" //
+        + "INSERT INTO RHQ_MEASUREMENT_OOB (oob_factor, time_stamp, schedule_id) VALUES (?, ?, ?)";
+
+    private static final String OOB_UPDATE = "" //
+        + "UPDATE RHQ_MEASUREMENT_OOB SET oob_factor = ?, time_stamp = ? WHERE schedule_id = ?";
+
+    private static final String OOB_DELETE = "DELETE FROM RHQ_MEASUREMENT_OOB WHERE schedule_id = ?";
+
     @TransactionAttribute(TransactionAttributeType.NEVER)
     public void calculateAutoBaselines() {
         Properties conf = systemManager.getSystemConfiguration(subjectManager.getOverlord());
@@ -212,6 +285,389 @@ public class MeasurementBaselineManagerBean implements MeasurementBaselineManage
         }
     }
 
+    public boolean isIncrementalCalculationEnabled() {
+        // the full passes read the 1h table, which is empty when the data is kept elsewhere
+        if (!MeasurementDataStoreFactory.isJdbcStore(getStore())) {
+            return true;
+        }
+        return Boolean.valueOf(System.getProperty(INCREMENTAL_CALCULATION_PROPERTY, "true"));
+    }
+
+    private MeasurementDataStore getStore() {
+        return MeasurementDataStoreFactory.getStore(dataSource);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NEVER)
+    public void calculateAutoBaselinesAndOOBsIncrementally() {
+        Properties conf = systemManager.getSystemConfiguration(subjectManager.getOverlord());
+        long amountOfData = Long.parseLong(conf.getProperty(RHQConstants.BaselineDataSet));
+        long baselineFrequency = Long.parseLong(conf.getProperty(RHQConstants.BaselineFrequency));
+
+        long computeTime = System.currentTimeMillis();
+        long windowStart = computeTime - amountOfData;
+        long baselinesOlderThanTime = -1;
+        if (baselineFrequency == 0) {
+            log.info("Baseline frequency is set to 0 - not recomputing baselines. Go to Admin->System settings to change this.");
+        } else {
+            baselinesOlderThanTime = computeTime - baselineFrequency;
+        }
+
+        Long newestDataTime = getStore().getLatestOneHourTimestamp();
+        Object[] scheduleIds = (Object[]) entityManager.createQuery(
+            "SELECT MIN(ms.id), MAX(ms.id) FROM MeasurementSchedule ms").getSingleResult();
+        if (newestDataTime == null || scheduleIds[0] == null) {
+            log.debug("No data yet in 1h table, nothing to do");
+            return;
+        }
+        int firstScheduleId = ((Number) scheduleIds[0]).intValue();
+        int lastScheduleId = ((Number) scheduleIds[1]).intValue();
+
+        log.info("Calculating auto baselines and OOBs incrementally from the 1h data up to " + new Date(newestDataTime));
+        int dataPoints = 0;
+        int baselines = 0;
+        int oobs = 0;
+        int failedRanges = 0;
+        for (long first = firstScheduleId; first <= lastScheduleId; first += SCHEDULE_ID_RANGE) {
+            int last = (int) Math.min(first + SCHEDULE_ID_RANGE - 1, lastScheduleId);
+            try {
+                int[] counts = measurementBaselineManager._calculateAutoBaselinesAndOOBsINCREMENTAL((int) first, last,
+                    windowStart, newestDataTime, baselinesOlderThanTime);
+                dataPoints += counts[0];
+                baselines += counts[1];
+                oobs += counts[2];
+            } catch (Exception e) {
+                // the statistics of the range were not updated, so its data is picked up by the next calculation
+                failedRanges++;
+                log.warn("Failed to calculate baselines and OOBs for schedules [" + first + ".." + last + "]: "
+                    + e.getMessage());
+            }
+        }
+
+        long duration = System.currentTimeMillis() - computeTime;
+        log.info("Added [" + dataPoints + "] 1h data points to the baseline statistics, calculated [" + baselines
+            + "] new baselines and updated [" + oobs + "] OOBs in [" + duration + "]ms"
+            + ((failedRanges > 0) ? " - [" + failedRanges + "] schedule ranges failed" : ""));
+        MeasurementMonitor.getMBean().incrementBaselineCalculationTime(duration);
+
+        if (baselines > 0) {
+            agentStatusManager.updateByAutoBaselineCalculationJob();
+        }
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int[] _calculateAutoBaselinesAndOOBsINCREMENTAL(int firstScheduleId, int lastScheduleId,
+        long windowStart, long newestDataTime, long baselinesOlderThanTime) throws Exception {
+        long computeTime = System.currentTimeMillis();
+        // the day before the window is kept, it tells whether a schedule has data from the start of the window
+        long oldestDay = MeasurementBaselineStatistic.getDay(windowStart) - MeasurementBaselineStatistic.DAY;
+
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+
+        try {
+            conn = dataSource.getConnection();
+            DatabaseType dbType = DatabaseTypeFactory.getDatabaseType(conn);
+
+            // the statistics of the range, and up to which 1h data they were updated
+            final Map<Integer, Map<Long, MeasurementBaselineStatistic>> statistics = new HashMap<Integer, Map<Long, MeasurementBaselineStatistic>>();
+            long updatedUpTo = windowStart - HOUR;
+            ps = conn.prepareStatement(STATISTICS_SELECT);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            ps.setLong(3, oldestDay);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                MeasurementBaselineStatistic statistic = new MeasurementBaselineStatistic(rs.getInt(1),
+                    rs.getLong(2), rs.getInt(3), rs.getDouble(4), rs.getDouble(5), rs.getDouble(6), rs.getLong(7),
+                    rs.getLong(8));
+                getStatistics(statistics, statistic.getScheduleId()).put(statistic.getDay(), statistic);
+                updatedUpTo = Math.max(updatedUpTo, statistic.getLastTimestamp());
+            }
+            JDBCUtil.safeClose(ps, rs);
+
+            // add the new 1h data, streamed so that only the statistics of the range are kept in memory
+            final int[] dataPoints = { 0 };
+            Map<Integer, Boolean> dynamicSchedules = null;
+            if (newestDataTime > updatedUpTo) {
+                dynamicSchedules = findDynamicSchedules(conn, firstScheduleId, lastScheduleId);
+                final Map<Integer, Boolean> dynamic = dynamicSchedules;
+                getStore().scanOneHourData(firstScheduleId, lastScheduleId, updatedUpTo, newestDataTime,
+                    new MeasurementDataStore.RollupVisitor() {
+                        public void rollup(int scheduleId, long timestamp, double value, double min, double max) {
+                            if (!dynamic.containsKey(scheduleId)) {
+                                return;
+                            }
+                            long day = MeasurementBaselineStatistic.getDay(timestamp);
+                            Map<Long, MeasurementBaselineStatistic> days = getStatistics(statistics, scheduleId);
+                            MeasurementBaselineStatistic statistic = days.get(day);
+                            if (statistic == null) {
+                                statistic = new MeasurementBaselineStatistic(scheduleId, day);
+                                days.put(day, statistic);
+                            }
+                            if (statistic.add(timestamp, value, min, max)) {
+                                dataPoints[0]++;
+                            }
+                        }
+                    });
+
+                writeStatistics(conn, statistics);
+            }
+
+            ps = conn.prepareStatement(STATISTICS_PURGE);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            ps.setLong(3, oldestDay);
+            ps.executeUpdate();
+            JDBCUtil.safeClose(ps);
+            ps = null;
+
+            // recalculate the baselines that are due from the statistics
+            int baselines = 0;
+            if (baselinesOlderThanTime >= 0) {
+                ps = conn.prepareStatement(BASELINE_DELETE);
+                ps.setInt(1, firstScheduleId);
+                ps.setInt(2, lastScheduleId);
+                ps.setLong(3, baselinesOlderThanTime);
+                ps.executeUpdate();
+                JDBCUtil.safeClose(ps);
+                ps = null;
+            }
+            Map<Integer, double[]> currentBaselines = findBaselines(conn, firstScheduleId, lastScheduleId);
+            if (baselinesOlderThanTime >= 0) {
+                baselines = insertBaselines(conn, dbType, statistics, currentBaselines, windowStart, computeTime);
+            }
+
+            // update the OOBs from the new 1h data
+            int oobs = 0;
+            if (newestDataTime > updatedUpTo) {
+                oobs = updateOOBs(conn, firstScheduleId, lastScheduleId, updatedUpTo, newestDataTime,
+                    currentBaselines, dynamicSchedules);
+            }
+
+            return new int[] { dataPoints[0], baselines, oobs };
+        } finally {
+            JDBCUtil.safeClose(conn, ps, rs);
+        }
+    }
+
+    private static Map<Long, MeasurementBaselineStatistic> getStatistics(
+        Map<Integer, Map<Long, MeasurementBaselineStatistic>> statistics, int scheduleId) {
+        Map<Long, MeasurementBaselineStatistic> days = statistics.get(scheduleId);
+        if (days == null) {
+            days = new HashMap<Long, MeasurementBaselineStatistic>();
+            statistics.put(scheduleId, days);
+        }
+        return days;
+    }
+
+    /**
+     * @return whether the schedules of dynamic metrics in the range are enabled, keyed by schedule id
+     */
+    private Map<Integer, Boolean> findDynamicSchedules(Connection conn, int firstScheduleId, int lastScheduleId)
+        throws Exception {
+        Map<Integer, Boolean> schedules = new HashMap<Integer, Boolean>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(DYNAMIC_SCHEDULES_SELECT);
+            ps.setFetchSize(1000);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                schedules.put(rs.getInt(1), rs.getBoolean(2));
+            }
+            return schedules;
+        } finally {
+            JDBCUtil.safeClose(ps, rs);
+        }
+    }
+
+    private void writeStatistics(Connection conn, Map<Integer, Map<Long, MeasurementBaselineStatistic>> statistics)
+        throws Exception {
+        PreparedStatement insert = null;
+        PreparedStatement update = null;
+        try {
+            insert = conn.prepareStatement(STATISTICS_INSERT);
+            update = conn.prepareStatement(STATISTICS_UPDATE);
+            for (Map<Long, MeasurementBaselineStatistic> days : statistics.values()) {
+                for (MeasurementBaselineStatistic statistic : days.values()) {
+                    if (!statistic.isDirty()) {
+                        continue;
+                    }
+                    PreparedStatement ps = statistic.isPersisted() ? update : insert;
+                    ps.setInt(1, statistic.getSamples());
+                    ps.setDouble(2, statistic.getSum());
+                    ps.setDouble(3, statistic.getMin());
+                    ps.setDouble(4, statistic.getMax());
+                    ps.setLong(5, statistic.getFirstTimestamp());
+                    ps.setLong(6, statistic.getLastTimestamp());
+                    ps.setInt(7, statistic.getScheduleId());
+                    ps.setLong(8, statistic.getDay());
+                    ps.addBatch();
+                }
+            }
+            insert.executeBatch();
+            update.executeBatch();
+        } finally {
+            JDBCUtil.safeClose(insert);
+            JDBCUtil.safeClose(update);
+        }
+    }
+
+    /**
+     * @return the min and max of the baselines of the schedules in the range, keyed by schedule id
+     */
+    private Map<Integer, double[]> findBaselines(Connection conn, int firstScheduleId, int lastScheduleId)
+        throws Exception {
+        Map<Integer, double[]> baselines = new HashMap<Integer, double[]>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(BASELINE_SELECT);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                baselines.put(rs.getInt(1), new double[] { rs.getDouble(2), rs.getDouble(3) });
+            }
+            return baselines;
+        } finally {
+            JDBCUtil.safeClose(ps, rs);
+        }
+    }
+
+    /**
+     * Inserts a baseline for the schedules that have none, if their statistics cover the baseline window, and
+     * removes their OOBs, which were computed against the baseline they had before.
+     *
+     * @return the number of inserted baselines
+     */
+    private int insertBaselines(Connection conn, DatabaseType dbType,
+        Map<Integer, Map<Long, MeasurementBaselineStatistic>> statistics, Map<Integer, double[]> currentBaselines,
+        long windowStart, long computeTime) throws Exception {
+        String insertSql;
+        if (dbType instanceof PostgresqlDatabaseType || dbType instanceof H2DatabaseType) {
+            insertSql = BASELINE_INSERT_POSTGRES;
+        } else if (dbType instanceof OracleDatabaseType) {
+            insertSql = BASELINE_INSERT_ORACLE;
+        } else if (dbType instanceof SQLServerDatabaseType) {
+            insertSql = BASELINE_INSERT_SQLSERVER;
+        } else {
+            throw new IllegalArgumentException("Unknown database type, can't continue: " + dbType);
+        }
+
+        List<Integer> scheduleIds = new ArrayList<Integer>();
+        PreparedStatement insert = null;
+        PreparedStatement deleteOOB = null;
+        try {
+            insert = conn.prepareStatement(insertSql);
+            deleteOOB = conn.prepareStatement(OOB_DELETE);
+            for (Map.Entry<Integer, Map<Long, MeasurementBaselineStatistic>> entry : statistics.entrySet()) {
+                int scheduleId = entry.getKey();
+                if (currentBaselines.containsKey(scheduleId)) {
+                    continue;
+                }
+                // any OOB was computed against a baseline that is gone now
+                deleteOOB.setInt(1, scheduleId);
+                deleteOOB.addBatch();
+                double[] baseline = MeasurementBaselineStatistic.computeBaseline(entry.getValue().values(),
+                    windowStart);
+                if (baseline == null) {
+                    continue;
+                }
+                insert.setDouble(1, baseline[0]);
+                insert.setDouble(2, baseline[1]);
+                insert.setDouble(3, baseline[2]);
+                insert.setLong(4, computeTime);
+                insert.setInt(5, scheduleId);
+                insert.addBatch();
+                currentBaselines.put(scheduleId, new double[] { baseline[0], baseline[1] });
+                scheduleIds.add(scheduleId);
+            }
+            deleteOOB.executeBatch();
+            insert.executeBatch();
+            return scheduleIds.size();
+        } finally {
+            JDBCUtil.safeClose(insert);
+            JDBCUtil.safeClose(deleteOOB);
+        }
+    }
+
+    /**
+     * Computes the OOBs of the 1h data after <code>after</code> against the current baselines, and records them where
+     * they are worse than the OOB the schedule already has.
+     *
+     * @return the number of inserted or updated OOBs
+     */
+    private int updateOOBs(Connection conn, int firstScheduleId, int lastScheduleId, long after, long upTo,
+        final Map<Integer, double[]> currentBaselines, final Map<Integer, Boolean> dynamicSchedules) throws Exception {
+        // the worst OOB of each schedule: { factor, timestamp }
+        final Map<Integer, long[]> worst = new HashMap<Integer, long[]>();
+        Map<Integer, Integer> existing = new HashMap<Integer, Integer>();
+        getStore().scanOneHourData(firstScheduleId, lastScheduleId, after, upTo,
+            new MeasurementDataStore.RollupVisitor() {
+                public void rollup(int scheduleId, long timestamp, double value, double min, double max) {
+                    double[] baseline = currentBaselines.get(scheduleId);
+                    if (baseline == null || !Boolean.TRUE.equals(dynamicSchedules.get(scheduleId))) {
+                        return;
+                    }
+                    double factor = MeasurementBaselineStatistic.getOOBFactor(value, min, max, baseline[0],
+                        baseline[1]);
+                    long oobFactor = Math.round(factor * 100);
+                    long[] oob = worst.get(scheduleId);
+                    if (oobFactor > 0 && (oob == null || oobFactor > oob[0])) {
+                        worst.put(scheduleId, new long[] { oobFactor, timestamp });
+                    }
+                }
+            });
+
+        if (worst.isEmpty()) {
+            return 0;
+        }
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(OOB_SELECT);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                existing.put(rs.getInt(1), rs.getInt(2));
+            }
+        } finally {
+            JDBCUtil.safeClose(ps, rs);
+        }
+
+        int count = 0;
+        PreparedStatement insert = null;
+        PreparedStatement update = null;
+        try {
+            insert = conn.prepareStatement(OOB_INSERT);
+            update = conn.prepareStatement(OOB_UPDATE);
+            for (Map.Entry<Integer, long[]> entry : worst.entrySet()) {
+                Integer existingFactor = existing.get(entry.getKey());
+                if (existingFactor != null && existingFactor >= entry.getValue()[0]) {
+                    continue;
+                }
+                PreparedStatement statement = (existingFactor == null) ? insert : update;
+                statement.setInt(1, (int) entry.getValue()[0]);
+                statement.setLong(2, entry.getValue()[1]);
+                statement.setInt(3, entry.getKey());
+                statement.addBatch();
+                count++;
+            }
+            insert.executeBatch();
+            update.executeBatch();
+            return count;
+        } finally {
+            JDBCUtil.safeClose(insert);
+            JDBCUtil.safeClose(update);
+        }
+    }
+
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     //@TransactionTimeout( 60 * 60 )
     public int _calculateAutoBaselinesDELETE(long olderThanTime) throws Exception {
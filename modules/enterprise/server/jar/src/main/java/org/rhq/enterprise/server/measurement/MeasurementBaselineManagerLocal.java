@@ -72,6 +72,34 @@ public interface MeasurementBaselineManagerLocal {
      */
     int _calculateAutoBaselinesINSERT(long amountOfData) throws Exception;
 
+    /**
+     * @return true unless the incremental calculation was turned off with the
+     * {@link MeasurementBaselineManagerBean#INCREMENTAL_CALCULATION_PROPERTY} system property
+     */
+    boolean isIncrementalCalculationEnabled();
+
+    /**
+     * Replaces {@link #calculateAutoBaselines()} and the OOB calculation with a pass over only the 1h data that was
+     * added since the last call. That data is folded into per-day statistics of each schedule, from which the baselines
+     * that are due are computed, and is compared to the current baselines to update the OOBs. Schedules are processed
+     * in ranges, each range in its own transaction, so memory use is bounded by the size of a range.
+     */
+    void calculateAutoBaselinesAndOOBsIncrementally();
+
+    /**
+     * Updates the statistics, baselines and OOBs of the schedules in the given id range.
+     *
+     * @param firstScheduleId first schedule id of the range, inclusive
+     * @param lastScheduleId last schedule id of the range, inclusive
+     * @param windowStart start of the baseline data set
+     * @param newestDataTime time stamp of the newest 1h data
+     * @param baselinesOlderThanTime baselines computed before this time are recalculated; -1 to keep all baselines
+     * @return the number of added data points, calculated baselines and updated OOBs
+     * @throws Exception
+     */
+    int[] _calculateAutoBaselinesAndOOBsINCREMENTAL(int firstScheduleId, int lastScheduleId, long windowStart,
+        long newestDataTime, long baselinesOlderThanTime) throws Exception;
+
     MeasurementBaseline getBaselineIfEqual(Subject subject, int groupId, int definitionId);
 
     /**
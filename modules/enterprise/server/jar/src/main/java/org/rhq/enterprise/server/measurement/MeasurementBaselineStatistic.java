@@ -0,0 +1,212 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement;
+
+import java.util.Collection;
+
+import org.rhq.core.domain.measurement.MeasurementBaseline;
+import org.rhq.core.domain.measurement.MeasurementOOB;
+
+/**
+ * The statistics of one day of the 1h data of a schedule. They are updated as the 1h data is produced, and a
+ * {@link MeasurementBaseline} is computed by merging the statistics of the days it covers rather than by going back
+ * to the 1h data.
+ */
+public class MeasurementBaselineStatistic {
+
+    public static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /**
+     * OOBs are not computed against baselines narrower than this.
+     */
+    private static final double MIN_OOB_BASELINE_WIDTH = 0.1;
+
+    /**
+     * The lowest factor, in baseline widths, worth recording as an OOB.
+     */
+    private static final double MIN_OOB_FACTOR = 0.05;
+
+    private final int scheduleId;
+    private final long day;
+    private int samples;
+    private double sum;
+    private double min;
+    private double max;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private final boolean persisted;
+    private boolean dirty;
+
+    public MeasurementBaselineStatistic(int scheduleId, long day) {
+        this.scheduleId = scheduleId;
+        this.day = day;
+        this.persisted = false;
+    }
+
+    public MeasurementBaselineStatistic(int scheduleId, long day, int samples, double sum, double min, double max,
+        long firstTimestamp, long lastTimestamp) {
+        this.scheduleId = scheduleId;
+        this.day = day;
+        this.samples = samples;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.persisted = true;
+    }
+
+    /**
+     * @return the start of the day the timestamp is in
+     */
+    public static long getDay(long timestamp) {
+        return timestamp - (timestamp % DAY);
+    }
+
+    /**
+     * Adds a 1h data point of the day. A data point that is not newer than the last one added is ignored, so adding
+     * the same 1h data again does not count it twice.
+     *
+     * @return true if the data point was added
+     */
+    public boolean add(long timestamp, double value, double minValue, double maxValue) {
+        if (samples > 0 && timestamp <= lastTimestamp) {
+            return false;
+        }
+
+        if (samples == 0) {
+            min = minValue;
+            max = maxValue;
+            firstTimestamp = timestamp;
+        } else {
+            min = Math.min(min, minValue);
+            max = Math.max(max, maxValue);
+        }
+        sum += value;
+        samples++;
+        lastTimestamp = timestamp;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Computes a baseline from the statistics of a schedule, the same way a baseline is computed from the 1h data: the
+     * lowest minimum, highest maximum and mean value since <code>windowStart</code>, if the schedule has data from
+     * <code>windowStart</code> or earlier. The window is rounded down to the start of its first day.
+     *
+     * @return the baseline's min, max and mean, or null if the statistics do not cover the window
+     */
+    public static double[] computeBaseline(Collection<MeasurementBaselineStatistic> statistics, long windowStart) {
+        long firstDay = getDay(windowStart);
+        boolean covered = false;
+        int samples = 0;
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        for (MeasurementBaselineStatistic statistic : statistics) {
+            if (statistic.samples == 0) {
+                continue;
+            }
+            if (statistic.firstTimestamp <= windowStart) {
+                covered = true;
+            }
+            if (statistic.day >= firstDay) {
+                samples += statistic.samples;
+                sum += statistic.sum;
+                min = Math.min(min, statistic.min);
+                max = Math.max(max, statistic.max);
+            }
+        }
+
+        if (!covered || samples == 0) {
+            return null;
+        }
+        return new double[] { min, max, sum / samples };
+    }
+
+    /**
+     * Computes how far a 1h data point went out of a baseline, in baseline widths, the same way the
+     * {@link MeasurementOOB#INSERT_QUERY} does.
+     *
+     * @return the factor, or 0 if the data point is within the baseline, or the baseline is too narrow
+     */
+    public static double getOOBFactor(double value, double minValue, double maxValue, double baselineMin,
+        double baselineMax) {
+        double width = baselineMax - baselineMin;
+        if (width <= MIN_OOB_BASELINE_WIDTH) {
+            return 0.0;
+        }
+
+        double factor = 0.0;
+        if (value > baselineMax && maxValue > baselineMax) {
+            factor = (maxValue - baselineMax) / width;
+        }
+        if (value < baselineMax && baselineMin > minValue) {
+            factor = Math.max(factor, (baselineMin - minValue) / width);
+        }
+        return (factor > MIN_OOB_FACTOR) ? factor : 0.0;
+    }
+
+    public int getScheduleId() {
+        return scheduleId;
+    }
+
+    public long getDay() {
+        return day;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return true if the statistic was loaded from the database, false if it is new
+     */
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    /**
+     * @return true if data points were added since the statistic was created or loaded
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+}
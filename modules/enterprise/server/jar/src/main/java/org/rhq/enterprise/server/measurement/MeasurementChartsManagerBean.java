@@ -57,7 +57,8 @@ import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.authz.PermissionException;
 import org.rhq.enterprise.server.common.PerformanceMonitorInterceptor;
 import org.rhq.enterprise.server.measurement.MeasurementPreferences.MetricRangePreferences;
-import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStoreFactory;
 import org.rhq.enterprise.server.measurement.util.MeasurementUtils;
 import org.rhq.enterprise.server.resource.ResourceManagerLocal;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
@@ -446,7 +447,7 @@ public class MeasurementChartsManagerBean implements MeasurementChartsManagerLoc
             }
         }
 
-        MeasurementDataManagerUtility dataUtil = MeasurementDataManagerUtility.getInstance(rhqDs);
+        MeasurementDataStore dataStore = MeasurementDataStoreFactory.getStore(rhqDs);
 
         // Loop over the definitions, find matching schedules and create a MetricDisplaySummary for each definition
         for (int definitionId : measurementDefinitionIds) {
@@ -510,7 +511,7 @@ public class MeasurementChartsManagerBean implements MeasurementChartsManagerLoc
                 log.warn("No metric schedules found for def=[" + definition + "] and " + context
                     + ", using empty aggregate");
             } else {
-                aggregate = dataUtil.getAggregateByDefinitionAndContext(begin, end, definitionId, context);
+                aggregate = dataStore.getAggregate(definitionId, context, begin, end);
             }
             if (aggregate.isEmpty()) {
                 if (log.isTraceEnabled()) {
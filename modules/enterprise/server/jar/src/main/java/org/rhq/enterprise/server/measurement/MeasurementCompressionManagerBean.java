@@ -24,8 +24,15 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
@@ -44,6 +51,8 @@ import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.auth.SubjectManagerLocal;
 import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStoreFactory;
 import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
 import org.rhq.enterprise.server.util.TimingVoodoo;
@@ -51,6 +60,14 @@ import org.rhq.enterprise.server.util.TimingVoodoo;
 /**
  * Compresses data that increases in size over time to maintain the system for long durations. Any table that
  * continuously grows in a non-negligible manner should be compressed and/or purged in this job.
+ * <p/>
+ * Setting {@link #THREADS_PROPERTY} to a positive number computes the rollups incrementally per schedule id range:
+ * the schedule id space is split into ranges of {@link #RANGE_SIZE_PROPERTY} ids, and up to that many ranges are
+ * compressed at the same time, each one by an asynchronous call of {@link #compressScheduleRange}. The high-water
+ * mark of a range is the newest timestamp already rolled up for its schedules, so a run that was interrupted resumes
+ * where each range left off instead of recomputing the intervals other ranges have already finished. Ranges without
+ * new data are skipped without querying them one by one. The thread count defaults to 0, the serial, whole table
+ * compression.
  *
  * @author Greg Hinkle
  * @author jay shaughnessy
@@ -65,6 +82,12 @@ public class MeasurementCompressionManagerBean implements MeasurementCompression
     private static final long DAY = HOUR * 24;
     private static final long SIX_HOUR = HOUR * 6;
 
+    public static final String THREADS_PROPERTY = "rhq.server.measurement.compression.threads";
+    public static final String RANGE_SIZE_PROPERTY = "rhq.server.measurement.compression.range-size";
+
+    private static final int DEFAULT_THREADS = 0;
+    private static final int DEFAULT_RANGE_SIZE = 10000;
+
     @javax.annotation.Resource(name = "RHQ_DS", mappedName = RHQConstants.DATASOURCE_JNDI_NAME)
     private DataSource dataSource;
 
@@ -105,6 +128,22 @@ public class MeasurementCompressionManagerBean implements MeasurementCompression
         // current time rounded down to the start of this hour.
         long now = TimingVoodoo.roundDownTime(System.currentTimeMillis(), HOUR);
 
+        MeasurementDataStore store = MeasurementDataStoreFactory.getStore(dataSource);
+        if (!MeasurementDataStoreFactory.isJdbcStore(store)) {
+            // the store keeps its own rollups, none of the tables below hold numeric data
+            try {
+                store.compressAndPurge(now, this.purge1h, this.purge6h, this.purge1d);
+            } catch (Exception e) {
+                throw new MeasurementStorageException("Failed to compress and purge the measurement data store", e);
+            }
+            return;
+        }
+
+        compressAndPurgeTables(now, this.purge1h, this.purge6h, this.purge1d);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void compressAndPurgeTables(long now, long purge1h, long purge6h, long purge1d) throws SQLException {
         // Compress hourly data
         long hourAgo = TimingVoodoo.roundDownTime(now - HOUR, HOUR);
         String deadTable = MeasurementDataManagerUtility.getDeadTable(hourAgo);
@@ -133,16 +172,16 @@ public class MeasurementCompressionManagerBean implements MeasurementCompression
         last = compressData(TAB_DATA_1H, TAB_DATA_6H, SIX_HOUR, now);
 
         // Purge, ensuring we don't purge data not yet compressed.
-        purgeMeasurements(TAB_DATA_1H, Math.min(now - this.purge1h, last), HOUR);
+        purgeMeasurements(TAB_DATA_1H, Math.min(now - purge1h, last), HOUR);
 
         // Compress daily data
         last = compressData(TAB_DATA_6H, TAB_DATA_1D, DAY, now);
 
         // Purge, ensuring we don't purge data not yet compressed.
-        purgeMeasurements(TAB_DATA_6H, Math.min(now - this.purge6h, last), SIX_HOUR);
+        purgeMeasurements(TAB_DATA_6H, Math.min(now - purge6h, last), SIX_HOUR);
 
         // Purge, we never store more than 1 year of data.
-        purgeMeasurements(TAB_DATA_1D, now - this.purge1d, DAY);
+        purgeMeasurements(TAB_DATA_1D, now - purge1d, DAY);
 
         return;
     }
@@ -153,6 +192,9 @@ public class MeasurementCompressionManagerBean implements MeasurementCompression
      * @return The last timestamp that was compressed
      */
     private long compressData(String fromTable, String toTable, long interval, long now) throws SQLException {
+        if (getCompressionThreads() > 0) {
+            return compressDataByScheduleRange(fromTable, toTable, interval, now);
+        }
 
         // First determine the window to operate on.  If no previous compression
         // information is found, the last value from the table to compress from
@@ -273,6 +315,233 @@ public class MeasurementCompressionManagerBean implements MeasurementCompression
         return rows;
     }
 
+    /**
+     * Compresses data one schedule id range at a time, with up to {@link #THREADS_PROPERTY} ranges running in
+     * parallel.
+     *
+     * @return The begin time of the oldest interval not yet compressed over all ranges, which is the last timestamp
+     *         that is safe to purge from the from table.
+     */
+    long compressDataByScheduleRange(String fromTable, String toTable, long interval, long now) throws SQLException {
+        // stale data older than the raw collection period is ignored, see compressData(String, String, long, long)
+        long rawTimeStart = TimingVoodoo.roundDownTime(MeasurementDataManagerUtility.getRawTimePeriodStart(now), HOUR);
+
+        int rangeSize = getRangeSize();
+        int threads = getCompressionThreads();
+
+        // two queries per table tell which ranges have anything to compress, so sparse ranges cost nothing
+        Map<Integer, Long> newestData = getTimestampsByScheduleRange("MAX", fromTable, rangeSize, rawTimeStart);
+        Map<Integer, Long> highWaterMarks = getTimestampsByScheduleRange("MAX", toTable, rangeSize, rawTimeStart);
+
+        log.info("Begin compression from [" + fromTable + "] to [" + toTable + "] for [" + newestData.size()
+            + "] schedule ranges with data");
+
+        long[] result = new long[] { now, 0L };
+        int ranges = 0;
+        LinkedList<Future<long[]>> running = new LinkedList<Future<long[]>>();
+        for (Map.Entry<Integer, Long> range : newestData.entrySet()) {
+            Long highWater = highWaterMarks.get(range.getKey());
+            long begin = (highWater == null) ? rawTimeStart : Math.max(highWater + interval, rawTimeStart);
+            if (range.getValue() < begin) {
+                // everything in this range is compressed already, so nothing in it holds back a purge
+                continue;
+            }
+
+            if (running.size() >= threads) {
+                addRangeResult(result, running.removeFirst(), fromTable, toTable, rawTimeStart);
+            }
+
+            int rangeMin = range.getKey() * rangeSize;
+            running.add(compressionManager.compressScheduleRange(fromTable, toTable, interval, now, begin, rangeMin,
+                rangeMin + rangeSize - 1));
+            ranges++;
+        }
+        while (!running.isEmpty()) {
+            addRangeResult(result, running.removeFirst(), fromTable, toTable, rawTimeStart);
+        }
+
+        log.info("Finished compression from [" + fromTable + "] to [" + toTable + "], [" + result[1]
+            + "] compressed rows in [" + ranges + "] schedule ranges");
+
+        return result[0];
+    }
+
+    private void addRangeResult(long[] result, Future<long[]> rangeResult, String fromTable, String toTable,
+        long rawTimeStart) throws SQLException {
+        try {
+            long[] range = rangeResult.get();
+            result[0] = Math.min(result[0], range[0]);
+            result[1] += range[1];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while compressing data from [" + fromTable + "] to [" + toTable + "]");
+        } catch (ExecutionException e) {
+            // compressScheduleRange logs and swallows per interval failures, so this is unexpected
+            log.error("Unable to compress a schedule range from [" + fromTable + "] to [" + toTable + "]: "
+                + ThrowableUtil.getAllMessages(e.getCause()));
+            result[0] = Math.min(result[0], rawTimeStart);
+        }
+    }
+
+    /**
+     * Compresses the intervals of one schedule id range from <code>begin</code> up to <code>now</code>, each
+     * interval in its own transaction.
+     *
+     * @return a two element array: the begin time of the first interval that has not been compressed for this
+     *         range, and the number of compressed rows
+     */
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<long[]> compressScheduleRange(String fromTable, String toTable, long interval, long now,
+        long begin, int minScheduleId, int maxScheduleId) throws SQLException {
+
+        // skip ahead to the first interval that has data to compress
+        long next = getMinTimestamp(fromTable, minScheduleId, maxScheduleId, begin);
+        if (next == 0L) {
+            // nothing left to compress for this range, so nothing in it holds back a purge
+            return new AsyncResult<long[]>(new long[] { now, 0L });
+        }
+        begin = TimingVoodoo.roundDownTime(Math.max(begin, next), interval);
+
+        StopWatch watch = new StopWatch();
+        long rows = 0;
+        while (begin + interval <= now) {
+            long end = begin + interval;
+
+            try {
+                rows += compressionManager.compressDataIntervalForScheduleRange(fromTable, toTable, begin, end,
+                    minScheduleId, maxScheduleId);
+            } catch (Throwable t) {
+                log.error("Unable to compress data from [" + fromTable + "] to [" + toTable + "] at "
+                    + TimeUtil.toString(begin) + " for schedule ids [" + minScheduleId + ".." + maxScheduleId
+                    + "]: " + ThrowableUtil.getAllMessages(t));
+                // leave the high-water mark here so the next run retries this interval
+                break;
+            }
+
+            begin = end;
+        }
+
+        MeasurementMonitor.getMBean().setCompressionRangeTime(toTable, minScheduleId, maxScheduleId,
+            watch.getElapsed());
+
+        return new AsyncResult<long[]>(new long[] { begin, rows });
+    }
+
+    // 60 minute timeout
+    @TransactionTimeout(60 * 60)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int compressDataIntervalForScheduleRange(String fromTable, String toTable, long begin, long end,
+        int minScheduleId, int maxScheduleId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement insStmt = null;
+
+        int rows = 0;
+        StopWatch watch = new StopWatch();
+        try {
+            conn = dataSource.getConnection();
+
+            String minMax;
+            if (MeasurementDataManagerUtility.isRawTable(fromTable)) {
+                minMax = "AVG(value), MIN(value), MAX(value) ";
+            } else {
+                minMax = "AVG(value), MIN(minvalue), MAX(maxvalue) ";
+            }
+
+            insStmt = conn.prepareStatement("INSERT INTO " + toTable + " (SELECT ?, ft.schedule_id, " + minMax
+                + "  FROM " + fromTable + " ft "
+                + "  WHERE ft.time_stamp >= ? AND ft.time_stamp < ? AND ft.schedule_id BETWEEN ? AND ? "
+                + "  GROUP BY ft.schedule_id)");
+
+            insStmt.setLong(1, begin);
+            insStmt.setLong(2, begin);
+            insStmt.setLong(3, end);
+            insStmt.setInt(4, minScheduleId);
+            insStmt.setInt(5, maxScheduleId);
+
+            rows = insStmt.executeUpdate();
+
+            MeasurementMonitor.getMBean().incrementMeasurementCompressionTime(watch.getElapsed());
+        } finally {
+            JDBCUtil.safeClose(conn, insStmt, null);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compressed data from table [" + fromTable + "] to table [" + toTable + "] between ["
+                + TimeUtil.toString(begin) + "] and [" + TimeUtil.toString(end) + "] for schedule ids ["
+                + minScheduleId + ".." + maxScheduleId + "], [" + rows + "] compressed rows in ["
+                + watch.getElapsed() + "] ms");
+        }
+
+        return rows;
+    }
+
+    long getMinTimestamp(String dataTable, int minScheduleId, int maxScheduleId, long notBefore) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = dataSource.getConnection();
+            stmt = conn.prepareStatement("SELECT MIN(time_stamp) FROM " + dataTable
+                + " WHERE schedule_id BETWEEN ? AND ? AND time_stamp >= ?");
+            stmt.setInt(1, minScheduleId);
+            stmt.setInt(2, maxScheduleId);
+            stmt.setLong(3, notBefore);
+            rs = stmt.executeQuery();
+
+            // a null aggregate is returned as 0, which means no data
+            return rs.next() ? rs.getLong(1) : 0L;
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, rs);
+        }
+    }
+
+    /**
+     * @return the MIN or MAX timestamp not before <code>notBefore</code> per schedule id range that has any such
+     *         data, keyed by the range index (the schedule id divided by the range size)
+     */
+    Map<Integer, Long> getTimestampsByScheduleRange(String function, String dataTable, int rangeSize, long notBefore)
+        throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = dataSource.getConnection();
+            String range = "FLOOR(schedule_id / " + rangeSize + ")";
+            stmt = conn.prepareStatement("SELECT " + range + ", " + function + "(time_stamp) FROM " + dataTable
+                + " WHERE time_stamp >= ? GROUP BY " + range);
+            stmt.setLong(1, notBefore);
+            rs = stmt.executeQuery();
+
+            Map<Integer, Long> timestamps = new HashMap<Integer, Long>();
+            while (rs.next()) {
+                timestamps.put((int) rs.getLong(1), rs.getLong(2));
+            }
+            return timestamps;
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, rs);
+        }
+    }
+
+    static int getCompressionThreads() {
+        try {
+            return Integer.parseInt(System.getProperty(THREADS_PROPERTY, String.valueOf(DEFAULT_THREADS)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_THREADS;
+        }
+    }
+
+    private static int getRangeSize() {
+        try {
+            int size = Integer.parseInt(System.getProperty(RANGE_SIZE_PROPERTY, String.valueOf(DEFAULT_RANGE_SIZE)));
+            return (size > 0) ? size : DEFAULT_RANGE_SIZE;
+        } catch (NumberFormatException e) {
+            return DEFAULT_RANGE_SIZE;
+        }
+    }
+
     /**
      * Get the oldest timestamp in the database. Getting the minimum time is expensive, so this is only called once when
      * the compression routine runs for the first time. After the first call, the range is cached.
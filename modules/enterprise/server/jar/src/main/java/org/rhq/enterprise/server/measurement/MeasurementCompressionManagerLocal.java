@@ -19,6 +19,7 @@
 package org.rhq.enterprise.server.measurement;
 
 import java.sql.SQLException;
+import java.util.concurrent.Future;
 
 import javax.ejb.Local;
 
@@ -33,8 +34,26 @@ public interface MeasurementCompressionManagerLocal {
 
     void compressPurgeAndTruncate() throws SQLException;
 
+    /**
+     * Compresses the raw tables into the 1 hour table and on into the 6 hour and 1 day tables, truncates the dead raw
+     * table and purges the rollups older than their retention. This is the part of
+     * {@link #compressPurgeAndTruncate()} that works on the measurement tables.
+     *
+     * @param now     the current time rounded down to the hour
+     * @param purge1h the retention of the 1 hour data, in milliseconds
+     * @param purge6h the retention of the 6 hour data, in milliseconds
+     * @param purge1d the retention of the 1 day data, in milliseconds
+     */
+    void compressAndPurgeTables(long now, long purge1h, long purge6h, long purge1d) throws SQLException;
+
     int compressDataInterval(String fromTable, String toTable, long begin, long end) throws SQLException;
 
+    Future<long[]> compressScheduleRange(String fromTable, String toTable, long interval, long now, long begin,
+        int minScheduleId, int maxScheduleId) throws SQLException;
+
+    int compressDataIntervalForScheduleRange(String fromTable, String toTable, long begin, long end,
+        int minScheduleId, int maxScheduleId) throws SQLException;
+
     int purgeMeasurementInterval(String tableName, long purgeAfter, long purgeBefore) throws SQLException;
 
     void truncateMeasurements(String tableName) throws SQLException;
@@ -22,7 +22,6 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -51,9 +50,6 @@ import org.jetbrains.annotations.Nullable;
 
 import org.jboss.ejb3.annotation.TransactionTimeout;
 
-import org.rhq.core.db.DatabaseType;
-import org.rhq.core.db.DatabaseTypeFactory;
-import org.rhq.core.db.Postgresql83DatabaseType;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.common.EntityContext;
 import org.rhq.core.domain.criteria.MeasurementDataTraitCriteria;
@@ -88,9 +84,13 @@ import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.authz.PermissionException;
 import org.rhq.enterprise.server.core.AgentManagerLocal;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBuffer;
 import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
-import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStore;
+import org.rhq.enterprise.server.measurement.storage.MeasurementDataStoreFactory;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 
@@ -141,6 +141,8 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
     @EJB
     private ResourceGroupManagerLocal resourceGroupManager;
     @EJB
+    private GroupDefinitionManagerLocal groupDefinitionManager;
+    @EJB
     private CallTimeDataManagerLocal callTimeDataManager;
     @EJB
     private MeasurementDataManagerLocal measurementDataManager;
@@ -171,6 +173,55 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
         }
     }
 
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int purgeTraits(int firstScheduleId, int lastScheduleId, long oldest) {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = rhqDs.getConnection();
+            stmt = conn.prepareStatement(MeasurementDataTrait.NATIVE_QUERY_PURGE_SCHEDULE_RANGE);
+            stmt.setInt(1, firstScheduleId);
+            stmt.setInt(2, lastScheduleId);
+            stmt.setLong(3, oldest);
+            stmt.setInt(4, firstScheduleId);
+            stmt.setInt(5, lastScheduleId);
+            long startTime = System.currentTimeMillis();
+            int deleted = stmt.executeUpdate();
+            MeasurementMonitor.getMBean().incrementPurgeTime(System.currentTimeMillis() - startTime);
+            return deleted;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to purge traits older than [" + oldest + "] for schedules ["
+                + firstScheduleId + ".." + lastScheduleId + "]", e);
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, null);
+        }
+    }
+
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public int[] getTraitScheduleIdRange() {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = rhqDs.getConnection();
+            stmt = conn.prepareStatement(MeasurementDataTrait.NATIVE_QUERY_FIND_SCHEDULE_ID_RANGE);
+            rs = stmt.executeQuery();
+            if (rs.next()) {
+                int first = rs.getInt(1);
+                if (!rs.wasNull()) {
+                    return new int[] { first, rs.getInt(2) };
+                }
+            }
+            return null;
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to find the range of trait schedules", e);
+        } finally {
+            JDBCUtil.safeClose(conn, stmt, rs);
+        }
+    }
+
     @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     public void mergeMeasurementReport(MeasurementReport report) {
         long start = System.currentTimeMillis();
@@ -182,7 +233,13 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
          * when real work will be done;
          */
         if (report.getNumericData() != null && !report.getNumericData().isEmpty()) {
-            this.measurementDataManager.addNumericData(report.getNumericData());
+            NumericDataBuffer buffer = NumericDataBuffer.getSingleton();
+            if (buffer.isEnabled()) {
+                // the buffer writes the data in bulk later on, and checks the alert conditions once it is stored
+                buffer.add(report.getNumericData());
+            } else {
+                this.measurementDataManager.addNumericData(report.getNumericData());
+            }
         }
         if (report.getTraitData() != null && !report.getTraitData().isEmpty()) {
             this.measurementDataManager.addTraitData(report.getTraitData());
@@ -213,81 +270,28 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             return;
         }
 
-        int expectedCount = data.size();
-
-        Connection conn = null;
-        DatabaseType dbType = null;
-
-        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
-
         try {
-            conn = rhqDs.getConnection();
-            dbType = DatabaseTypeFactory.getDatabaseType(conn);
-
-            if (dbType instanceof Postgresql83DatabaseType) {
-                Statement st = null;
-                try {
-                    // Take advantage of async commit here
-                    st = conn.createStatement();
-                    st.execute("SET synchronous_commit = off");
-                } finally {
-                    JDBCUtil.safeClose(st);
-                }
-            }
-
-            for (MeasurementDataNumeric aData : data) {
-                Double value = aData.getValue();
-                if ((value == null) || Double.isNaN(value) || Double.isInfinite(value)) {
-                    expectedCount--;
-                    continue;
-                }
-
-                String table = MeasurementDataManagerUtility.getTable(aData.getTimestamp());
-
-                PreparedStatement ps = statements.get(table);
-
-                if (ps == null) {
-                    String insertSql = "INSERT  /*+ APPEND */ INTO " + table
-                        + "(schedule_id,time_stamp,value) VALUES(?,?,?)";
-                    ps = conn.prepareStatement(insertSql);
-                    statements.put(table, ps);
-                }
-
-                ps.setInt(1, aData.getScheduleId());
-                ps.setLong(2, aData.getTimestamp());
-                ps.setDouble(3, value);
-                ps.addBatch();
-            }
-
-            int count = 0;
-            for (PreparedStatement ps : statements.values()) {
-                int[] res = ps.executeBatch();
-                for (int updates : res) {
-                    if ((updates != 1) && (updates != -2)) // oracle returns -2 on success
-                    {
-                        throw new MeasurementStorageException("Unexpected batch update size [" + updates + "]");
-                    }
-
-                    count++;
-                }
-            }
-
-            if (count != expectedCount) {
-                throw new MeasurementStorageException("Failure to store measurement data.");
-            }
-
+            getStore().addNumericData(data);
             notifyAlertConditionCacheManager("mergeMeasurementReport", data.toArray(new MeasurementData[data.size()]));
-        } catch (SQLException e) {
+        } catch (MeasurementStorageException e) {
             log.warn("Failure saving measurement numeric data:\n" + ThrowableUtil.getAllMessages(e));
         } catch (Exception e) {
             log.error("Error persisting numeric data", e);
-        } finally {
-            for (PreparedStatement ps : statements.values()) {
-                JDBCUtil.safeClose(ps);
-            }
+        }
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public int addNumericDataBatch(NumericDataBatch batch) {
+        if ((batch == null) || batch.isEmpty()) {
+            return 0;
+        }
 
-            JDBCUtil.safeClose(conn);
+        int count = getStore().addNumericData(batch);
+        if (count != batch.size()) {
+            throw new MeasurementStorageException("Failure to store measurement data: expected [" + batch.size()
+                + "] rows, stored [" + count + "]");
         }
+        return count;
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
@@ -302,7 +306,9 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             conn = rhqDs.getConnection();
             ps = conn.prepareStatement(TRAIT_INSERT_STATEMENT);
 
+            List<Integer> scheduleIds = new ArrayList<Integer>(data.size());
             for (MeasurementDataTrait aData : data) {
+                scheduleIds.add(aData.getScheduleId());
                 // time_stamp, schedule_id, value, schedule_id, schedule_id, value, value, value, value
                 ps.setLong(1, aData.getTimestamp());
                 ps.setInt(2, aData.getScheduleId());
@@ -322,6 +328,15 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
                 // It is expected that some of these batch updates didn't update anything as the previous value was the same
             }
 
+            // only the traits whose value changed were inserted
+            List<Integer> changedScheduleIds = new ArrayList<Integer>();
+            for (int i = 0; i < res.length; ++i) {
+                if (res[i] != 0) {
+                    changedScheduleIds.add(scheduleIds.get(i));
+                }
+            }
+            groupDefinitionManager.recordTraitChanges(changedScheduleIds);
+
             notifyAlertConditionCacheManager("mergeMeasurementReport", data.toArray(new MeasurementData[data.size()]));
         } catch (SQLException e) {
             log.warn("Failure saving measurement trait data:\n" + ThrowableUtil.getAllMessages(e));
@@ -612,7 +627,7 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
 
     @Nullable
     public MeasurementDataNumeric getCurrentNumericForSchedule(int scheduleId) {
-        return getConnectedUtilityInstance().getLatestValueForSchedule(scheduleId);
+        return getStore().getLatestValue(scheduleId);
     }
 
     private void notifyAlertConditionCacheManager(String callingMethod, MeasurementData[] data) {
@@ -640,8 +655,7 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             throw new IllegalArgumentException("Start date " + startTime + " is not before " + endTime);
         }
 
-        MeasurementAggregate aggregate = getConnectedUtilityInstance().getAggregateByScheduleId(startTime, endTime,
-            schedule.getId());
+        MeasurementAggregate aggregate = getStore().getAggregate(schedule.getId(), startTime, endTime);
         return aggregate;
     }
 
@@ -663,8 +677,8 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             throw new IllegalArgumentException("Start date " + startTime + " is not before " + endTime);
         }
 
-        MeasurementAggregate aggregate = getConnectedUtilityInstance().getAggregateByDefinitionAndContext(startTime,
-            endTime, definitionId, EntityContext.forGroup(groupId));
+        MeasurementAggregate aggregate = getStore().getAggregate(definitionId, EntityContext.forGroup(groupId),
+            startTime, endTime);
         return aggregate;
     }
 
@@ -750,8 +764,8 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             }
         }
 
-        List<List<MeasurementDataNumericHighLowComposite>> results = getConnectedUtilityInstance()
-            .getMeasurementDataAggregatesForContext(beginTime, endTime, context, definitionId, numDataPoints);
+        List<List<MeasurementDataNumericHighLowComposite>> results = Collections.singletonList(getStore()
+            .findDataPoints(definitionId, context, beginTime, endTime, numDataPoints));
         return results;
     }
 
@@ -766,8 +780,7 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
         List<List<MeasurementDataNumericHighLowComposite>> results = new ArrayList<List<MeasurementDataNumericHighLowComposite>>();
         EntityContext context = EntityContext.forResource(resourceId);
         for (int nextDefinitionId : definitionIds) {
-            results.addAll(getConnectedUtilityInstance().getMeasurementDataAggregatesForContext(beginTime, endTime,
-                context, nextDefinitionId, numDataPoints));
+            results.add(getStore().findDataPoints(nextDefinitionId, context, beginTime, endTime, numDataPoints));
         }
         return results;
     }
@@ -850,32 +863,7 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
 
     @Override
     public List<MeasurementDataNumeric> findRawData(Subject subject, int scheduleId, long startTime, long endTime) {
-
-        List<MeasurementDataNumeric> result = new ArrayList<MeasurementDataNumeric>();
-        String table = MeasurementDataManagerUtility.getCurrentRawTable();
-        Connection connection = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-        try {
-            connection = rhqDs.getConnection();
-            ps = connection.prepareStatement( // TODO supply real impl that spans multiple tables
-                "SELECT time_stamp,value FROM " + table + " WHERE schedule_id= ? AND time_stamp BETWEEN ? AND ?");
-            ps.setLong(1, scheduleId);
-            ps.setLong(2, startTime);
-            ps.setLong(3, endTime);
-            rs = ps.executeQuery();
-
-            while (rs.next()) {
-                MeasurementDataNumeric point = new MeasurementDataNumeric(rs.getLong(1), scheduleId, rs.getDouble(2));
-                result.add(point);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace(); // TODO: Customise this generated block
-        } finally {
-            JDBCUtil.safeClose(connection, ps, rs);
-        }
-
-        return result;
+        return getStore().findRawData(scheduleId, startTime, endTime);
     }
 
     /**
@@ -938,7 +926,7 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
         return results;
     }
 
-    private MeasurementDataManagerUtility getConnectedUtilityInstance() {
-        return MeasurementDataManagerUtility.getInstance(rhqDs);
+    private MeasurementDataStore getStore() {
+        return MeasurementDataStoreFactory.getStore(rhqDs);
     }
 }
\ No newline at end of file
@@ -41,6 +41,7 @@ import org.rhq.core.domain.resource.Resource;
 import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.domain.resource.group.ResourceGroup;
 import org.rhq.core.domain.util.PageList;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
 
 /**
  * A manager for {@link MeasurementData}s.
@@ -50,10 +51,30 @@ public interface MeasurementDataManagerLocal {
 
     int purgeTraits(long oldest);
 
+    /**
+     * Same as {@link #purgeTraits(long)}, restricted to the schedules with an id between <code>firstScheduleId</code>
+     * and <code>lastScheduleId</code>, both inclusive. Used to purge old data in small chunks.
+     */
+    int purgeTraits(int firstScheduleId, int lastScheduleId, long oldest);
+
+    /**
+     * @return the lowest and highest schedule ids that have trait data, or null if there is no trait data
+     */
+    int[] getTraitScheduleIdRange();
+
     void mergeMeasurementReport(MeasurementReport report);
 
     void addNumericData(Set<MeasurementDataNumeric> data);
 
+    /**
+     * Bulk loads a batch of buffered numeric data into its raw table in a new transaction.
+     *
+     * @param  batch rows that all belong to the same raw table
+     *
+     * @return the number of rows inserted
+     */
+    int addNumericDataBatch(NumericDataBatch batch);
+
     void addTraitData(Set<MeasurementDataTrait> data);
 
     /**
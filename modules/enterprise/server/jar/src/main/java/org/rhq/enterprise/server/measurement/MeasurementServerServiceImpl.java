@@ -28,6 +28,7 @@ import org.rhq.core.clientapi.server.measurement.MeasurementServerService;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.ResourceMeasurementScheduleRequest;
 import org.rhq.core.util.collection.ArrayUtils;
+import org.rhq.enterprise.server.measurement.ingest.MeasurementReportQueue;
 import org.rhq.enterprise.server.util.LookupUtil;
 
 /**
@@ -38,6 +39,11 @@ public class MeasurementServerServiceImpl implements MeasurementServerService {
     private Log log = LogFactory.getLog(MeasurementServerServiceImpl.class);
 
     public void mergeMeasurementReport(MeasurementReport report) {
+        // when the ingest queue is on, the report is acknowledged as soon as it is queued
+        if (MeasurementReportQueue.getSingleton().offer(report)) {
+            return;
+        }
+
         long start = System.currentTimeMillis();
         MeasurementDataManagerLocal dataManager = LookupUtil.getMeasurementDataManager();
         dataManager.mergeMeasurementReport(report);
@@ -0,0 +1,609 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.ingest;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementDataTrait;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.calltime.CallTimeData;
+import org.rhq.enterprise.communications.command.client.SegmentedPersistentFifo;
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * Server wide, bounded queue between the receipt of a {@link MeasurementReport} from an agent and the database
+ * writes of {@link org.rhq.enterprise.server.measurement.MeasurementDataManagerLocal#mergeMeasurementReport}. The
+ * agent's call returns as soon as the report is queued, so a slow database no longer holds up the agents'
+ * communication threads, and the alert condition checks run on the writer threads.
+ * <p/>
+ * The queue is split into {@link #SHARDS_PROPERTY} shards with a writer thread each. A report is split up by
+ * schedule id, so all data of a schedule goes through the same shard and is written in the order it was received,
+ * which the trait inserts rely on. Where a shard keeps its reports is set by {@link #OVERFLOW_PROPERTY}:
+ * <ul>
+ * <li><code>block</code> (default) - up to {@link #CAPACITY_PROPERTY} reports are kept in memory; when the shard is
+ * full, the agent's call waits until there is room, as it waits for the database today</li>
+ * <li><code>drop</code> - up to {@link #CAPACITY_PROPERTY} reports are kept in memory; when the shard is full, the
+ * report is dropped and counted</li>
+ * <li><code>spool</code> - every report is written to a {@link SegmentedPersistentFifo} of the shard under
+ * {@link #SPOOL_DIRECTORY_PROPERTY} before the agent's call returns, and the writer takes it from there. Reports
+ * still spooled on shutdown are replayed when the server starts again, so a report that was acknowledged survives a
+ * crash of the server process; only the one being written at the time is lost. If a report cannot be spooled, the
+ * agent's call merges it itself.</li>
+ * </ul>
+ * A merge that fails with a transient database error (a lost connection, a deadlock) is retried a few times. In
+ * spool mode a report whose retries all failed is put in a retry spool of its shard, which the writer takes from
+ * before the shard's spool, so the report outlives a database outage and the shard does not move on to newer reports
+ * of its schedules until it is written. Reports that could not be merged otherwise are counted as failed.
+ * <p/>
+ * On shutdown the queue stops accepting reports before it stops the writers; in memory mode they get up to
+ * {@link #SHUTDOWN_DRAIN_TIME} milliseconds to write out what is queued, whatever is left after that is lost.
+ * <p/>
+ * The queue is disabled by default; set the system property {@link #ENABLED_PROPERTY} to <code>true</code> to turn it
+ * on.
+ */
+public class MeasurementReportQueue {
+
+    public static final String ENABLED_PROPERTY = "rhq.server.measurement.ingest-queue.enabled";
+    public static final String SHARDS_PROPERTY = "rhq.server.measurement.ingest-queue.shards";
+    public static final String CAPACITY_PROPERTY = "rhq.server.measurement.ingest-queue.capacity";
+    public static final String OVERFLOW_PROPERTY = "rhq.server.measurement.ingest-queue.overflow";
+    public static final String SPOOL_DIRECTORY_PROPERTY = "rhq.server.measurement.ingest-queue.spool-dir";
+    public static final String SPOOL_SIZE_PROPERTY = "rhq.server.measurement.ingest-queue.spool-max-bytes";
+
+    public enum Overflow {
+        BLOCK, DROP, SPOOL
+    }
+
+    private static final int DEFAULT_SHARDS = 4;
+    private static final int DEFAULT_CAPACITY = 1000;
+    private static final long DEFAULT_SPOOL_SIZE = 100L * 1024L * 1024L;
+    private static final long SHUTDOWN_DRAIN_TIME = 30000L;
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+    private static final long RETRY_DELAY = 1000L;
+
+    private static final MeasurementReportQueue singleton = new MeasurementReportQueue();
+
+    private final Log log = LogFactory.getLog(MeasurementReportQueue.class);
+
+    private final boolean enabled;
+    private final int shardCount;
+    private final int capacity;
+    private final Overflow overflow;
+    private final File spoolDirectory;
+    private final long spoolSize;
+
+    private Shard[] shards;
+    // offers hold the read lock, so shutdown can wait for the ones in progress once it stopped accepting
+    private final ReadWriteLock offerLock = new ReentrantReadWriteLock();
+    private volatile boolean accepting = false;
+    private volatile boolean running = false;
+    private volatile long drainDeadline;
+
+    /**
+     * A queued report and the time it was queued.
+     */
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long queued;
+        final MeasurementReport report;
+
+        Entry(long queued, MeasurementReport report) {
+            this.queued = queued;
+            this.report = report;
+        }
+    }
+
+    private class Shard implements Runnable {
+        final int index;
+        final BlockingQueue<Entry> queue;
+        final SegmentedPersistentFifo spool;
+        // in spool mode, the report whose retries failed, written before anything else of the shard
+        final SegmentedPersistentFifo retrySpool;
+
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong totalLatency = new AtomicLong();
+        final AtomicLong maxLatency = new AtomicLong();
+
+        Thread thread;
+
+        Shard(int index, SegmentedPersistentFifo spool, SegmentedPersistentFifo retrySpool) {
+            this.index = index;
+            this.queue = (spool == null) ? new ArrayBlockingQueue<Entry>(capacity) : null;
+            this.spool = spool;
+            this.retrySpool = retrySpool;
+        }
+
+        /**
+         * @return <code>true</code> if the entry was taken care of, <code>false</code> if the caller has to merge it
+         */
+        boolean offer(Entry entry) throws InterruptedException {
+            switch (overflow) {
+            case SPOOL:
+                return spool(entry);
+            case DROP:
+                if (!queue.offer(entry)) {
+                    drop(entry);
+                }
+                return true;
+            default:
+                while (!queue.offer(entry, 1, TimeUnit.SECONDS)) {
+                    if (!accepting) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        boolean spool(Entry entry) {
+            return spool(spool, entry);
+        }
+
+        private boolean spool(SegmentedPersistentFifo fifo, Entry entry) {
+            synchronized (this) {
+                try {
+                    fifo.putObject(entry);
+                } catch (Exception e) {
+                    log.warn("Failed to spool a measurement report of [" + entry.report.getDataCount()
+                        + "] values: " + e);
+                    return false;
+                }
+                notifyAll();
+                return true;
+            }
+        }
+
+        private void drop(Entry entry) {
+            long count = dropped.incrementAndGet();
+            if ((count == 1) || ((count % 1000) == 0)) {
+                log.warn("Measurement ingest queue shard [" + index + "] is full, dropped [" + count
+                    + "] reports so far");
+            }
+        }
+
+        Entry poll(long timeout) throws Exception {
+            if (spool == null) {
+                return queue.poll(timeout, TimeUnit.MILLISECONDS);
+            }
+            synchronized (this) {
+                if (!retrySpool.isEmpty()) {
+                    return (Entry) retrySpool.takeObject();
+                }
+                if (spool.isEmpty() && running) {
+                    wait(timeout);
+                }
+                return (Entry) spool.takeObject();
+            }
+        }
+
+        long getDepth() {
+            return (spool == null) ? queue.size() : (spool.count() + retrySpool.count());
+        }
+
+        /**
+         * @return <code>true</code> while the writer has to keep going: until the queue stops, and after that until
+         *         the reports queued in memory are written or the drain time is up; spooled reports wait for the next
+         *         start
+         */
+        boolean isWriting() {
+            return running
+                || ((spool == null) && !queue.isEmpty() && (System.currentTimeMillis() < drainDeadline));
+        }
+
+        public void run() {
+            while (isWriting()) {
+                try {
+                    Entry entry = poll(1000L);
+                    if (entry != null) {
+                        write(entry);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    log.error("Measurement ingest queue shard [" + index + "] failed to take a report", t);
+                }
+            }
+        }
+
+        void write(Entry entry) {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    merge(entry.report);
+                    written.incrementAndGet();
+                    break;
+                } catch (Exception e) {
+                    if (!NumericDataBuffer.isTransient(e)) {
+                        failed(entry, e);
+                        break;
+                    }
+                    if (attempt >= MAX_WRITE_ATTEMPTS) {
+                        retryLater(entry, e);
+                        break;
+                    }
+                    log.warn("Failed to merge a queued measurement report of [" + entry.report.getDataCount()
+                        + "] values, retrying: " + e);
+                    try {
+                        Thread.sleep(getRetryDelay(attempt));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        retryLater(entry, e);
+                        break;
+                    }
+                }
+            }
+
+            long latency = System.currentTimeMillis() - entry.queued;
+            totalLatency.addAndGet(latency);
+            long max = maxLatency.get();
+            while ((latency > max) && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        }
+
+        /**
+         * Puts the entry in the retry spool after a transient failure, in spool mode, so it is taken again before the
+         * reports that were queued after it; counts it as failed otherwise.
+         */
+        private void retryLater(Entry entry, Exception e) {
+            if ((retrySpool != null) && spool(retrySpool, entry)) {
+                log.warn("Failed to merge a queued measurement report of [" + entry.report.getDataCount()
+                    + "] values, will retry it before the next reports: " + e);
+            } else {
+                failed(entry, e);
+            }
+        }
+
+        private void failed(Entry entry, Exception e) {
+            failed.incrementAndGet();
+            log.error("Failed to merge a queued measurement report of [" + entry.report.getDataCount()
+                + "] values, its data is lost", e);
+        }
+    }
+
+    public static MeasurementReportQueue getSingleton() {
+        return singleton;
+    }
+
+    private MeasurementReportQueue() {
+        this(Boolean.getBoolean(ENABLED_PROPERTY), Integer.getInteger(SHARDS_PROPERTY, DEFAULT_SHARDS), Integer
+            .getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY), getOverflow(System.getProperty(OVERFLOW_PROPERTY)),
+            getSpoolDirectory(), Long.getLong(SPOOL_SIZE_PROPERTY, DEFAULT_SPOOL_SIZE));
+    }
+
+    MeasurementReportQueue(boolean enabled, int shardCount, int capacity, Overflow overflow, File spoolDirectory,
+        long spoolSize) {
+        this.enabled = enabled;
+        this.shardCount = (shardCount > 0) ? shardCount : DEFAULT_SHARDS;
+        this.capacity = (capacity > 0) ? capacity : DEFAULT_CAPACITY;
+        this.overflow = overflow;
+        this.spoolDirectory = spoolDirectory;
+        this.spoolSize = (spoolSize > 0) ? spoolSize : DEFAULT_SPOOL_SIZE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts the writer threads, replaying any spooled reports first. A no-op if the queue is disabled or already
+     * started.
+     */
+    public synchronized void start() {
+        if (!enabled || running) {
+            return;
+        }
+
+        Shard[] newShards = new Shard[shardCount];
+        long spooled = 0;
+        for (int i = 0; i < shardCount; i++) {
+            SegmentedPersistentFifo spool = null;
+            SegmentedPersistentFifo retrySpool = null;
+            if (overflow == Overflow.SPOOL) {
+                try {
+                    spool = new SegmentedPersistentFifo(new File(spoolDirectory, "shard-" + i), spoolSize
+                        / shardCount, 90, true);
+                    retrySpool = new SegmentedPersistentFifo(new File(spoolDirectory, "shard-" + i + "-retry"),
+                        spoolSize / shardCount, 90, true);
+                } catch (Exception e) {
+                    log.error("Cannot open the measurement ingest spool in [" + spoolDirectory
+                        + "] - the ingest queue stays off", e);
+                    if (spool != null) {
+                        spool.close();
+                    }
+                    for (int j = 0; j < i; j++) {
+                        newShards[j].spool.close();
+                        newShards[j].retrySpool.close();
+                    }
+                    return;
+                }
+                spooled += spool.count() + retrySpool.count();
+            }
+            newShards[i] = new Shard(i, spool, retrySpool);
+        }
+
+        shards = newShards;
+        running = true;
+        accepting = true;
+        for (Shard shard : shards) {
+            shard.thread = new Thread(shard, "RHQ Measurement Ingest " + shard.index);
+            shard.thread.setDaemon(true);
+            shard.thread.start();
+        }
+
+        log.info("Measurement ingest queue started: shards=" + shardCount + ", capacity=" + capacity + ", overflow="
+            + overflow + ((spooled > 0) ? (", replaying [" + spooled + "] spooled reports") : ""));
+    }
+
+    /**
+     * Stops accepting reports, waits for the reports being offered, and stops the writer threads. In memory mode
+     * the writers first write out the reports still queued for up to {@link #SHUTDOWN_DRAIN_TIME} milliseconds;
+     * whatever is left after that is lost. In spool mode the spooled reports are kept for the next start.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+
+        // from here on offer() returns false and the callers merge their reports themselves
+        accepting = false;
+        offerLock.writeLock().lock();
+        offerLock.writeLock().unlock();
+
+        drainDeadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_TIME;
+        running = false;
+        for (Shard shard : shards) {
+            if (shard.spool != null) {
+                synchronized (shard) {
+                    shard.notifyAll();
+                }
+            }
+        }
+
+        int lost = 0;
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while stopping measurement ingest queue shard [" + shard.index + "]");
+            }
+            if (shard.spool != null) {
+                shard.spool.close();
+                shard.retrySpool.close();
+            } else {
+                lost += shard.queue.size();
+                shard.queue.clear();
+            }
+        }
+
+        if (lost > 0) {
+            log.warn("Measurement ingest queue lost [" + lost + "] reports on shutdown");
+        }
+        log.info("Measurement ingest queue stopped");
+    }
+
+    /**
+     * Queues the report for writing.
+     *
+     * @param  report the report to queue
+     *
+     * @return <code>true</code> if the report was taken care of, <code>false</code> if the queue is not running and
+     *         the caller has to merge the report itself
+     */
+    public boolean offer(MeasurementReport report) {
+        offerLock.readLock().lock();
+        try {
+            if (!accepting) {
+                return false;
+            }
+
+            Shard[] current = shards;
+            long now = System.currentTimeMillis();
+            if (current.length == 1) {
+                return offer(current[0], new Entry(now, report));
+            }
+
+            MeasurementReport[] split = split(report, current.length);
+            for (int i = 0; i < split.length; i++) {
+                // some parts may be queued already, so the part that was not is merged right here
+                if ((split[i] != null) && !offer(current[i], new Entry(now, split[i]))) {
+                    merge(split[i]);
+                }
+            }
+            return true;
+        } finally {
+            offerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the shard took the entry, <code>false</code> if the caller has to merge it
+     */
+    private boolean offer(Shard shard, Entry entry) {
+        try {
+            return shard.offer(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the report to the database.
+     */
+    void merge(MeasurementReport report) {
+        LookupUtil.getMeasurementDataManager().mergeMeasurementReport(report);
+    }
+
+    /**
+     * @return how long to wait before the given failed attempt to merge a report is retried, in milliseconds
+     */
+    long getRetryDelay(int attempt) {
+        return RETRY_DELAY * attempt;
+    }
+
+    /**
+     * Splits the report into one report per shard, by schedule id. Returns the report itself in its shard's slot if
+     * all of its data goes to one shard.
+     */
+    private static MeasurementReport[] split(MeasurementReport report, int count) {
+        MeasurementReport[] split = new MeasurementReport[count];
+        int only = -1;
+        boolean single = true;
+
+        for (MeasurementDataNumeric datum : report.getNumericData()) {
+            int shard = getShard(datum.getScheduleId(), count);
+            single = single && ((only < 0) || (only == shard));
+            only = shard;
+            getReport(split, shard, report).addData(datum);
+        }
+        for (MeasurementDataTrait datum : report.getTraitData()) {
+            int shard = getShard(datum.getScheduleId(), count);
+            single = single && ((only < 0) || (only == shard));
+            only = shard;
+            getReport(split, shard, report).addData(datum);
+        }
+        for (CallTimeData datum : report.getCallTimeData()) {
+            int shard = getShard(datum.getScheduleId(), count);
+            single = single && ((only < 0) || (only == shard));
+            only = shard;
+            getReport(split, shard, report).addData(datum);
+        }
+
+        if (single && (only >= 0)) {
+            split[only] = report;
+        }
+        return split;
+    }
+
+    private static MeasurementReport getReport(MeasurementReport[] split, int shard, MeasurementReport original) {
+        MeasurementReport report = split[shard];
+        if (report == null) {
+            report = new MeasurementReport();
+            report.setCollectionTime(original.getCollectionTime());
+            split[shard] = report;
+        }
+        return report;
+    }
+
+    private static int getShard(int scheduleId, int count) {
+        int hash = scheduleId * 0x9E3779B9;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * @return the number of reports waiting in memory and in the spool, keyed by shard
+     */
+    public Map<String, Long> getDepths() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Shard shard : getShards()) {
+            result.put("shard-" + shard.index, shard.getDepth());
+        }
+        return result;
+    }
+
+    /**
+     * @return the average and maximum time in milliseconds from queueing a report until it was written, keyed by
+     *         shard
+     */
+    public Map<String, String> getLatencies() {
+        Map<String, String> result = new TreeMap<String, String>();
+        for (Shard shard : getShards()) {
+            long written = shard.written.get();
+            long average = (written > 0) ? (shard.totalLatency.get() / written) : 0L;
+            result.put("shard-" + shard.index, "avg=" + average + "ms, max=" + shard.maxLatency.get() + "ms");
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of reports dropped because the shard was full, keyed by shard
+     */
+    public Map<String, Long> getDrops() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Shard shard : getShards()) {
+            result.put("shard-" + shard.index, shard.dropped.get());
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of reports that could not be merged, keyed by shard
+     */
+    public Map<String, Long> getFailures() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Shard shard : getShards()) {
+            result.put("shard-" + shard.index, shard.failed.get());
+        }
+        return result;
+    }
+
+    private List<Shard> getShards() {
+        Shard[] current = shards;
+        List<Shard> result = new ArrayList<Shard>();
+        if (current != null) {
+            for (Shard shard : current) {
+                result.add(shard);
+            }
+        }
+        return result;
+    }
+
+    private static Overflow getOverflow(String value) {
+        if (value != null) {
+            try {
+                return Overflow.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                LogFactory.getLog(MeasurementReportQueue.class).warn(
+                    "Unknown " + OVERFLOW_PROPERTY + " [" + value + "], using [block]");
+            }
+        }
+        return Overflow.BLOCK;
+    }
+
+    private static File getSpoolDirectory() {
+        String directory = System.getProperty(SPOOL_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            directory = new File(System.getProperty("jboss.server.data.dir", "."), "rhq-ingest-spool").getPath();
+        }
+        return new File(directory);
+    }
+}
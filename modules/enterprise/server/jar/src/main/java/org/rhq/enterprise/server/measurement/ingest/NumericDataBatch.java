@@ -0,0 +1,119 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.ingest;
+
+/**
+ * A column oriented buffer of numeric data points that all belong to the same raw table. Schedule ids, timestamps
+ * and values are kept in parallel primitive arrays so a buffer of many thousand rows does not allocate a
+ * {@link org.rhq.core.domain.measurement.MeasurementDataNumeric} (and its boxed value) per row.
+ *
+ * This class is not thread safe; {@link NumericDataBuffer} guards access to the batches it owns.
+ */
+public class NumericDataBatch {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final String table;
+    private int size;
+    private int[] scheduleIds;
+    private long[] timestamps;
+    private double[] values;
+
+    public NumericDataBatch(String table) {
+        this(table, DEFAULT_CAPACITY);
+    }
+
+    public NumericDataBatch(String table, int initialCapacity) {
+        this.table = table;
+        int capacity = Math.max(initialCapacity, 1);
+        this.scheduleIds = new int[capacity];
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    public void add(int scheduleId, long timestamp, double value) {
+        if (size == scheduleIds.length) {
+            grow();
+        }
+        scheduleIds[size] = scheduleId;
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * @return the raw table (e.g. RHQ_MEAS_DATA_NUM_R03) all rows of this batch go to
+     */
+    public String getTable() {
+        return table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getScheduleId(int index) {
+        return scheduleIds[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return a new batch with the rows from fromIndex (inclusive) to toIndex (exclusive) of this batch
+     */
+    public NumericDataBatch subBatch(int fromIndex, int toIndex) {
+        NumericDataBatch subBatch = new NumericDataBatch(table, toIndex - fromIndex);
+        System.arraycopy(scheduleIds, fromIndex, subBatch.scheduleIds, 0, toIndex - fromIndex);
+        System.arraycopy(timestamps, fromIndex, subBatch.timestamps, 0, toIndex - fromIndex);
+        System.arraycopy(values, fromIndex, subBatch.values, 0, toIndex - fromIndex);
+        subBatch.size = toIndex - fromIndex;
+        return subBatch;
+    }
+
+    private void grow() {
+        int capacity = scheduleIds.length * 2;
+
+        int[] newScheduleIds = new int[capacity];
+        System.arraycopy(scheduleIds, 0, newScheduleIds, 0, size);
+        scheduleIds = newScheduleIds;
+
+        long[] newTimestamps = new long[capacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+
+        double[] newValues = new double[capacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+    }
+
+    @Override
+    public String toString() {
+        return "NumericDataBatch[table=" + table + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.ingest;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.measurement.MeasurementData;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
+import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * Server wide buffer that merges the numeric data of the measurement reports of all agents into one
+ * {@link NumericDataBatch} per raw table. The buffers are flushed with {@link NumericDataBulkWriter} when either
+ * {@link #MAX_ROWS_PROPERTY} rows are buffered or {@link #MAX_DELAY_PROPERTY} milliseconds have passed since the
+ * last flush, whichever comes first. This replaces one connection and one small JDBC batch per agent report with a
+ * few large bulk loads.
+ *
+ * The buffer is disabled by default; set the system property {@link #ENABLED_PROPERTY} to <code>true</code> to
+ * turn it on. Data that is buffered but not yet flushed is lost if the server dies, which is the same guarantee
+ * the agent already gets today once its report has been sent.
+ *
+ * A batch that fails because of a transient database problem (lost connection, deadlock...) is put back into the
+ * buffer and written again with the next flush, up to {@link #MAX_ATTEMPTS} times. A batch that fails for another
+ * reason is written again in halves, down to single rows, so that only the rows that cannot be stored are dropped
+ * and not the rows of all the other agents merged into the same batch. The alert conditions are checked for the
+ * rows once they are stored, so alerts never fire for data that is then lost.
+ */
+public class NumericDataBuffer {
+
+    public static final String ENABLED_PROPERTY = "rhq.server.measurement.bulk-ingest.enabled";
+    public static final String MAX_ROWS_PROPERTY = "rhq.server.measurement.bulk-ingest.max-rows";
+    public static final String MAX_DELAY_PROPERTY = "rhq.server.measurement.bulk-ingest.max-delay-ms";
+
+    private static final int DEFAULT_MAX_ROWS = 10000;
+    private static final long DEFAULT_MAX_DELAY = 5000L;
+
+    /**
+     * The number of times a batch that failed because of a transient database problem is written.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final NumericDataBuffer singleton = new NumericDataBuffer();
+
+    private final Log log = LogFactory.getLog(NumericDataBuffer.class);
+
+    private final boolean enabled;
+    private final int maxRows;
+    private final long maxDelay;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private Map<String, NumericDataBatch> batches = new HashMap<String, NumericDataBatch>();
+    // guarded by lock
+    private int bufferedRows = 0;
+    // batches to write again with the next flush, guarded by lock
+    private List<NumericDataBatch> retries = new ArrayList<NumericDataBatch>();
+    // the attempts made so far for the batches in retries, guarded by lock
+    private List<Integer> retryAttempts = new ArrayList<Integer>();
+
+    // serializes flushes so batches are written in the order they were taken from the buffer
+    private final Object flushLock = new Object();
+
+    private Thread flushThread;
+    private volatile boolean running = false;
+
+    public static NumericDataBuffer getSingleton() {
+        return singleton;
+    }
+
+    private NumericDataBuffer() {
+        this(Boolean.getBoolean(ENABLED_PROPERTY), getIntProperty(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS),
+            getLongProperty(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY));
+    }
+
+    NumericDataBuffer(boolean enabled, int maxRows, long maxDelay) {
+        this.enabled = enabled;
+        this.maxRows = (maxRows > 0) ? maxRows : DEFAULT_MAX_ROWS;
+        this.maxDelay = (maxDelay > 0) ? maxDelay : DEFAULT_MAX_DELAY;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getBufferedRows() {
+        synchronized (lock) {
+            return bufferedRows;
+        }
+    }
+
+    /**
+     * Starts the background thread that flushes the buffer. A no-op if the buffer is disabled or already started.
+     */
+    public synchronized void start() {
+        if (!enabled || running) {
+            return;
+        }
+
+        running = true;
+        flushThread = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "RHQ Numeric Data Bulk Ingest");
+        flushThread.setDaemon(true);
+        flushThread.start();
+
+        log.info("Numeric data bulk ingest started: maxRows=" + maxRows + ", maxDelay=" + maxDelay + "ms");
+    }
+
+    /**
+     * Stops the background thread and writes out everything that is still buffered.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        try {
+            flushThread.join(maxDelay * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushThread = null;
+
+        // batches that failed transiently are given their remaining attempts right away
+        while (getBufferedRows() > 0) {
+            flush();
+        }
+        log.info("Numeric data bulk ingest stopped");
+    }
+
+    /**
+     * Adds the data points to the buffer. Values that cannot be stored (null, NaN, infinite) are dropped, just as
+     * the non-buffered insert path does. If the buffer has grown to twice its flush threshold because the flush
+     * thread cannot keep up, the calling thread flushes itself, which throttles the callers to the speed of the
+     * database.
+     *
+     * @param  data the data to buffer
+     *
+     * @return the number of data points that were buffered
+     */
+    public int add(Collection<MeasurementDataNumeric> data) {
+        if (data == null || data.isEmpty()) {
+            return 0;
+        }
+
+        int added = 0;
+        boolean flushNow;
+
+        synchronized (lock) {
+            for (MeasurementDataNumeric datum : data) {
+                Double value = datum.getValue();
+                if ((value == null) || Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+
+                String table = MeasurementDataManagerUtility.getTable(datum.getTimestamp());
+                NumericDataBatch batch = batches.get(table);
+                if (batch == null) {
+                    batch = new NumericDataBatch(table);
+                    batches.put(table, batch);
+                }
+                batch.add(datum.getScheduleId(), datum.getTimestamp(), value);
+                added++;
+            }
+
+            bufferedRows += added;
+            if (bufferedRows >= maxRows) {
+                lock.notifyAll();
+            }
+            flushNow = (bufferedRows >= (2 * maxRows)) || !running;
+        }
+
+        if (flushNow) {
+            flush();
+        }
+
+        return added;
+    }
+
+    /**
+     * Writes out everything currently buffered.
+     *
+     * @return the number of rows written
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            List<NumericDataBatch> toWrite;
+            List<Integer> attempts;
+            synchronized (lock) {
+                if (bufferedRows == 0) {
+                    return 0;
+                }
+                // the batches that failed before go first
+                toWrite = retries;
+                attempts = retryAttempts;
+                for (NumericDataBatch batch : batches.values()) {
+                    toWrite.add(batch);
+                    attempts.add(0);
+                }
+                batches = new HashMap<String, NumericDataBatch>();
+                retries = new ArrayList<NumericDataBatch>();
+                retryAttempts = new ArrayList<Integer>();
+                bufferedRows = 0;
+            }
+
+            return write(toWrite, attempts);
+        }
+    }
+
+    private int write(List<NumericDataBatch> toWrite, List<Integer> attempts) {
+        int written = 0;
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < toWrite.size(); i++) {
+            written += write(toWrite.get(i), attempts.get(i) + 1);
+        }
+
+        long time = System.currentTimeMillis() - start;
+        MeasurementMonitor.getMBean().incrementBulkIngestFlushTime(time);
+        MeasurementMonitor.getMBean().incrementBulkIngestFlushes();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Bulk ingest of [" + written + "] numeric data points in [" + toWrite.size() + "] tables took "
+                + time + "ms");
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes the batch, and if that fails for a reason other than a transient database problem, writes its two halves
+     * separately, down to single rows, so that a bad row only costs itself.
+     *
+     * @return the number of rows written
+     */
+    private int write(NumericDataBatch batch, int attempt) {
+        int written;
+        try {
+            written = writeBatch(batch);
+        } catch (Exception e) {
+            if (isTransient(e)) {
+                if (attempt < MAX_ATTEMPTS) {
+                    log.warn("Failure saving [" + batch.size() + "] buffered numeric data points into ["
+                        + batch.getTable() + "], will try again with the next flush:\n"
+                        + ThrowableUtil.getAllMessages(e));
+                    retry(batch, attempt);
+                } else {
+                    log.error("Failure saving [" + batch.size() + "] buffered numeric data points into ["
+                        + batch.getTable() + "] after " + attempt + " attempts, the data points are dropped:\n"
+                        + ThrowableUtil.getAllMessages(e));
+                }
+                return 0;
+            }
+
+            if (batch.size() == 1) {
+                log.warn("Failure saving buffered numeric data point [scheduleId=" + batch.getScheduleId(0)
+                    + ", timestamp=" + batch.getTimestamp(0) + ", value=" + batch.getValue(0) + "] into ["
+                    + batch.getTable() + "], the data point is dropped:\n" + ThrowableUtil.getAllMessages(e));
+                return 0;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Failure saving " + batch + ", saving it in halves: " + ThrowableUtil.getAllMessages(e));
+            }
+            int half = batch.size() / 2;
+            return write(batch.subBatch(0, half), attempt) + write(batch.subBatch(half, batch.size()), attempt);
+        }
+
+        try {
+            notifyAlertConditions(batch);
+        } catch (Exception e) {
+            log.error("Failure checking alert conditions for " + batch, e);
+        }
+        return written;
+    }
+
+    private void retry(NumericDataBatch batch, int attempt) {
+        synchronized (lock) {
+            retries.add(batch);
+            retryAttempts.add(attempt);
+            bufferedRows += batch.size();
+        }
+    }
+
+    /**
+     * Stores the batch in its own transaction.
+     *
+     * @return the number of rows written
+     */
+    int writeBatch(NumericDataBatch batch) {
+        return LookupUtil.getMeasurementDataManager().addNumericDataBatch(batch);
+    }
+
+    /**
+     * Checks the alert conditions for the rows of a batch that has been stored.
+     */
+    void notifyAlertConditions(NumericDataBatch batch) {
+        MeasurementData[] data = new MeasurementData[batch.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new MeasurementDataNumeric(batch.getTimestamp(i), batch.getScheduleId(i), batch.getValue(i));
+        }
+        AlertConditionCacheStats stats = LookupUtil.getAlertConditionCacheManager().checkConditions(data);
+        if (log.isDebugEnabled()) {
+            log.debug("Bulk ingest alert condition check: " + stats);
+        }
+    }
+
+    /*
+     * a lost connection, a deadlock or another failure that can be expected to go away by itself
+     */
+    static boolean isTransient(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                // connection exception, transaction rollback (e.g. deadlock)
+                if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void flushLoop() {
+        long lastFlush = System.currentTimeMillis();
+
+        while (running) {
+            try {
+                synchronized (lock) {
+                    long wait = maxDelay - (System.currentTimeMillis() - lastFlush);
+                    if (running && (wait > 0) && (bufferedRows < maxRows)) {
+                        lock.wait(wait);
+                    }
+                }
+
+                synchronized (lock) {
+                    boolean due = (System.currentTimeMillis() - lastFlush) >= maxDelay;
+                    if (!due && (bufferedRows < maxRows)) {
+                        continue;
+                    }
+                }
+
+                flush();
+                lastFlush = System.currentTimeMillis();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                log.error("Numeric data bulk ingest flush failed", t);
+                lastFlush = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        try {
+            return Long.parseLong(System.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
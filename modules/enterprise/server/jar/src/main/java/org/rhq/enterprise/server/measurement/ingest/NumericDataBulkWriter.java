@@ -0,0 +1,218 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.ingest;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.db.DatabaseType;
+import org.rhq.core.db.DatabaseTypeFactory;
+import org.rhq.core.db.Oracle11DatabaseType;
+import org.rhq.core.db.OracleDatabaseType;
+import org.rhq.core.db.Postgresql83DatabaseType;
+import org.rhq.core.db.PostgresqlDatabaseType;
+import org.rhq.core.util.jdbc.JDBCUtil;
+import org.rhq.enterprise.server.measurement.MeasurementStorageException;
+
+/**
+ * Writes a {@link NumericDataBatch} into its raw table using the cheapest path the database offers:
+ *
+ * <ul>
+ * <li>PostgreSQL: <code>COPY ... FROM STDIN</code> through the driver's CopyManager. The driver is not a compile
+ * time dependency of the server, so it is driven reflectively; if the connection cannot be unwrapped down to the
+ * native driver connection we fall back to the JDBC batch below.</li>
+ * <li>Oracle: a single JDBC batch, which the Oracle driver sends as an array bind, with a direct-path
+ * (<code>APPEND_VALUES</code> on 11g and later) hint.</li>
+ * <li>All others: a plain JDBC batch.</li>
+ * </ul>
+ */
+public class NumericDataBulkWriter {
+
+    private static final Log LOG = LogFactory.getLog(NumericDataBulkWriter.class);
+
+    /**
+     * Upper bound of rows sent in one executeBatch() call, so the driver does not need to hold the bind
+     * values of a whole flush at once.
+     */
+    private static final int MAX_BATCH_SIZE = 5000;
+
+    private static volatile boolean copyUnavailableLogged = false;
+
+    private NumericDataBulkWriter() {
+        // only static access
+    }
+
+    /**
+     * Inserts all rows of the given batch. The caller owns the connection and the surrounding transaction.
+     *
+     * @param  conn  connection to write to
+     * @param  batch the rows to write, all belonging to {@link NumericDataBatch#getTable()}
+     *
+     * @return the number of rows written
+     *
+     * @throws SQLException if the insert failed
+     */
+    public static int write(Connection conn, NumericDataBatch batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        DatabaseType dbType = DatabaseTypeFactory.getDatabaseType(conn);
+
+        if (dbType instanceof PostgresqlDatabaseType) {
+            if (dbType instanceof Postgresql83DatabaseType) {
+                // Take advantage of async commit here, like the row by row insert does
+                Statement st = null;
+                try {
+                    st = conn.createStatement();
+                    st.execute("SET synchronous_commit = off");
+                } finally {
+                    JDBCUtil.safeClose(st);
+                }
+            }
+
+            long copied = copyIn(conn, batch);
+            if (copied >= 0) {
+                return (int) copied;
+            }
+        }
+
+        String hint;
+        if (dbType instanceof Oracle11DatabaseType) {
+            hint = "/*+ APPEND_VALUES */";
+        } else if (dbType instanceof OracleDatabaseType) {
+            hint = "/*+ APPEND */";
+        } else {
+            hint = "";
+        }
+
+        return batchInsert(conn, batch, hint);
+    }
+
+    private static int batchInsert(Connection conn, NumericDataBatch batch, String hint) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement("INSERT " + hint + " INTO " + batch.getTable()
+                + "(schedule_id,time_stamp,value) VALUES(?,?,?)");
+
+            int count = 0;
+            int pending = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                ps.setInt(1, batch.getScheduleId(i));
+                ps.setLong(2, batch.getTimestamp(i));
+                ps.setDouble(3, batch.getValue(i));
+                ps.addBatch();
+
+                if (++pending == MAX_BATCH_SIZE) {
+                    count += checkBatchResult(ps.executeBatch());
+                    pending = 0;
+                }
+            }
+
+            if (pending > 0) {
+                count += checkBatchResult(ps.executeBatch());
+            }
+
+            return count;
+        } finally {
+            JDBCUtil.safeClose(ps);
+        }
+    }
+
+    private static int checkBatchResult(int[] results) {
+        for (int updates : results) {
+            if ((updates != 1) && (updates != PreparedStatement.SUCCESS_NO_INFO)) { // oracle returns -2 on success
+                throw new MeasurementStorageException("Unexpected batch update size [" + updates + "]");
+            }
+        }
+        return results.length;
+    }
+
+    /**
+     * Streams the batch through PostgreSQL's COPY protocol.
+     *
+     * @return the number of copied rows, or -1 if COPY is not available on this connection
+     */
+    private static long copyIn(Connection conn, NumericDataBatch batch) throws SQLException {
+        Object copyManager = getCopyManager(conn);
+        if (copyManager == null) {
+            return -1;
+        }
+
+        StringBuilder rows = new StringBuilder(batch.size() * 40);
+        for (int i = 0; i < batch.size(); i++) {
+            rows.append(batch.getScheduleId(i)).append('\t');
+            rows.append(batch.getTimestamp(i)).append('\t');
+            rows.append(batch.getValue(i)).append('\n');
+        }
+
+        String sql = "COPY " + batch.getTable() + " (schedule_id, time_stamp, value) FROM STDIN";
+        try {
+            Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+            Number copied = (Number) copyIn.invoke(copyManager, sql, new StringReader(rows.toString()));
+            return copied.longValue();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new MeasurementStorageException("COPY into " + batch.getTable() + " failed", cause);
+        } catch (Exception e) {
+            logCopyUnavailable(e);
+            return -1;
+        }
+    }
+
+    private static Object getCopyManager(Connection conn) {
+        try {
+            Object nativeConn = conn;
+            // unwrap the application server's pooled connection wrapper
+            try {
+                Method getUnderlying = nativeConn.getClass().getMethod("getUnderlyingConnection");
+                nativeConn = getUnderlying.invoke(nativeConn);
+            } catch (NoSuchMethodException e) {
+                // not wrapped
+            }
+
+            Method getCopyAPI = nativeConn.getClass().getMethod("getCopyAPI");
+            getCopyAPI.setAccessible(true);
+            return getCopyAPI.invoke(nativeConn);
+        } catch (Exception e) {
+            logCopyUnavailable(e);
+            return null;
+        }
+    }
+
+    private static void logCopyUnavailable(Exception e) {
+        if (!copyUnavailableLogged) {
+            copyUnavailableLogged = true;
+            LOG.info("PostgreSQL COPY is not available on this connection, numeric data will be bulk inserted "
+                + "with JDBC batches: " + e);
+        }
+    }
+}
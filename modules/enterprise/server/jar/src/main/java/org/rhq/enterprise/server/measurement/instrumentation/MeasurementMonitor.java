@@ -18,6 +18,9 @@
  */
 package org.rhq.enterprise.server.measurement.instrumentation;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanRegistration;
@@ -25,6 +28,8 @@ import javax.management.MBeanServer;
 import javax.management.MBeanServerInvocationHandler;
 import javax.management.ObjectName;
 
+import org.rhq.enterprise.server.measurement.ingest.MeasurementReportQueue;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBuffer;
 import org.rhq.enterprise.server.util.LookupUtil;
 
 /**
@@ -35,6 +40,14 @@ public class MeasurementMonitor implements MeasurementMonitorMBean, MBeanRegistr
 
     private AtomicLong measurementsInserted = new AtomicLong();
 
+    private AtomicLong bulkIngestFlushTime = new AtomicLong();
+
+    private AtomicLong bulkIngestFlushes = new AtomicLong();
+
+    private AtomicLong chartCacheBucketsHit = new AtomicLong();
+
+    private AtomicLong chartCacheBucketsRead = new AtomicLong();
+
     private AtomicLong callTimeInsertTime = new AtomicLong();
 
     private AtomicLong calltimeValuesInserted = new AtomicLong();
@@ -49,6 +62,8 @@ public class MeasurementMonitor implements MeasurementMonitorMBean, MBeanRegistr
 
     private AtomicLong compressionTime = new AtomicLong();
 
+    private Map<String, Long> compressionRangeTimes = new ConcurrentHashMap<String, Long>();
+
     private AtomicLong purgeTime = new AtomicLong();
 
     private AtomicLong baselineCalculationTime = new AtomicLong();
@@ -105,6 +120,55 @@ public class MeasurementMonitor implements MeasurementMonitorMBean, MBeanRegistr
         this.measurementsInserted.addAndGet(delta);
     }
 
+    public long getBulkIngestFlushTime() {
+        return bulkIngestFlushTime.get();
+    }
+
+    public void incrementBulkIngestFlushTime(long delta) {
+        this.bulkIngestFlushTime.addAndGet(delta);
+    }
+
+    public long getBulkIngestFlushes() {
+        return bulkIngestFlushes.get();
+    }
+
+    public void incrementBulkIngestFlushes() {
+        this.bulkIngestFlushes.incrementAndGet();
+    }
+
+    public int getBulkIngestBufferedRows() {
+        return NumericDataBuffer.getSingleton().getBufferedRows();
+    }
+
+    public Map<String, Long> getIngestQueueDepths() {
+        return MeasurementReportQueue.getSingleton().getDepths();
+    }
+
+    public Map<String, String> getIngestQueueLatencies() {
+        return MeasurementReportQueue.getSingleton().getLatencies();
+    }
+
+    public Map<String, Long> getIngestQueueDrops() {
+        return MeasurementReportQueue.getSingleton().getDrops();
+    }
+
+    public Map<String, Long> getIngestQueueFailures() {
+        return MeasurementReportQueue.getSingleton().getFailures();
+    }
+
+    public long getChartCacheBucketsHit() {
+        return chartCacheBucketsHit.get();
+    }
+
+    public long getChartCacheBucketsRead() {
+        return chartCacheBucketsRead.get();
+    }
+
+    public void incrementChartCacheBuckets(long hit, long read) {
+        this.chartCacheBucketsHit.addAndGet(hit);
+        this.chartCacheBucketsRead.addAndGet(read);
+    }
+
     public long getCalltimeValuesInserted() {
         return calltimeValuesInserted.get();
     }
@@ -169,6 +233,14 @@ public class MeasurementMonitor implements MeasurementMonitorMBean, MBeanRegistr
         this.compressionTime.addAndGet(delta);
     }
 
+    public Map<String, Long> getCompressionRangeTimes() {
+        return new TreeMap<String, Long>(compressionRangeTimes);
+    }
+
+    public void setCompressionRangeTime(String table, int minScheduleId, int maxScheduleId, long millis) {
+        this.compressionRangeTimes.put(table + "[" + minScheduleId + ".." + maxScheduleId + "]", millis);
+    }
+
     public long getPurgeTime() {
         return purgeTime.get();
     }
@@ -18,6 +18,8 @@
  */
 package org.rhq.enterprise.server.measurement.instrumentation;
 
+import java.util.Map;
+
 /**
  * @author Greg Hinkle
  */
@@ -31,6 +33,49 @@ public interface MeasurementMonitorMBean {
 
     void incrementMeasurementsInserted(long delta);
 
+    long getBulkIngestFlushTime();
+
+    void incrementBulkIngestFlushTime(long delta);
+
+    long getBulkIngestFlushes();
+
+    void incrementBulkIngestFlushes();
+
+    int getBulkIngestBufferedRows();
+
+    /**
+     * @return the number of measurement reports waiting to be written, keyed by ingest queue shard
+     */
+    Map<String, Long> getIngestQueueDepths();
+
+    /**
+     * @return the average and maximum time from queueing a measurement report until it was written, keyed by ingest
+     *         queue shard
+     */
+    Map<String, String> getIngestQueueLatencies();
+
+    /**
+     * @return the number of measurement reports dropped because the ingest queue was full, keyed by shard
+     */
+    Map<String, Long> getIngestQueueDrops();
+
+    /**
+     * @return the number of queued measurement reports that could not be merged, keyed by ingest queue shard
+     */
+    Map<String, Long> getIngestQueueFailures();
+
+    /**
+     * @return the number of chart data points that were served from the chart data cache
+     */
+    long getChartCacheBucketsHit();
+
+    /**
+     * @return the number of chart data points that had to be read from the measurement data store
+     */
+    long getChartCacheBucketsRead();
+
+    void incrementChartCacheBuckets(long hit, long read);
+
     long getCallTimeInsertTime();
 
     void incrementCallTimeInsertTime(long delta);
@@ -49,6 +94,14 @@ public interface MeasurementMonitorMBean {
 
     void incrementMeasurementCompressionTime(long delta);
 
+    /**
+     * @return the duration in millis of the last compression of each schedule id range, keyed by
+     *         "table[minScheduleId..maxScheduleId]"
+     */
+    Map<String, Long> getCompressionRangeTimes();
+
+    void setCompressionRangeTime(String table, int minScheduleId, int maxScheduleId, long millis);
+
     long getBaselineCalculationTime();
 
     void incrementBaselineCalculationTime(long delta);
@@ -0,0 +1,535 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.common.EntityContext;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowComposite;
+import org.rhq.core.util.collection.IntOpenHashMap;
+import org.rhq.enterprise.server.measurement.MeasurementAggregate;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+
+/**
+ * A {@link MeasurementDataStore} that caches the chart data points of another store. Dashboards redraw the same
+ * graphs over a window that slides forward on every refresh, so almost all of the points of a graph were already
+ * computed by the previous refresh.
+ * <p/>
+ * A graph is cached as a series of buckets, keyed by its schedule (or its definition and context), the bucket width
+ * and the bucket start. Bucket starts are aligned to multiples of the width, which makes two windows of the same
+ * length share their buckets no matter when they were requested; the last bucket is the one holding the requested
+ * end time, so a graph can start up to one width after the requested begin time. A bucket is only cached once it
+ * ended more than the settle time ago, so the trailing, still filling buckets are read from the store on every
+ * request, together with any bucket that is not cached yet, in a single query.
+ * <p/>
+ * Data inserted through this store drops the cached buckets it falls into, so late data from a spooling agent shows
+ * up on the next refresh. The buckets are dropped before the insert and again once the inserting transaction has
+ * completed, since a graph drawn in between still reads the old data and caches it again. Data inserted by other
+ * servers of the cloud is only picked up when the series expires after its time to live, which is also when the
+ * schedules of a group are resolved again. The cache is bounded by an estimate of its memory use and evicts the
+ * least recently used series first.
+ * <p/>
+ * The buckets only keep the average, high and low of each point, not the number of values behind it, so data that
+ * is inserted cannot be added to a cached bucket; it is read again instead.
+ */
+public class CachingMeasurementDataStore implements MeasurementDataStore {
+
+    private static final Log LOG = LogFactory.getLog(CachingMeasurementDataStore.class);
+
+    // rough heap use of a cached bucket (tree map entry, key and value array) and of a series without buckets
+    private static final long BUCKET_BYTES = 112L;
+    private static final long SERIES_BYTES = 256L;
+
+    /**
+     * Identifies a graph: a single schedule, or a definition in a context, drawn with a given bucket width.
+     */
+    private static class SeriesKey {
+        // the context as passed in, only its ids take part in equality
+        final EntityContext context;
+        final int scheduleId;
+        final int definitionId;
+        final EntityContext.Type type;
+        final int resourceId;
+        final int groupId;
+        final int parentResourceId;
+        final int resourceTypeId;
+        final long width;
+
+        SeriesKey(int scheduleId, long width) {
+            this(scheduleId, 0, null, width);
+        }
+
+        SeriesKey(int scheduleId, int definitionId, EntityContext context, long width) {
+            this.context = context;
+            this.scheduleId = scheduleId;
+            this.definitionId = definitionId;
+            this.type = (context != null) ? context.type : null;
+            this.resourceId = (context != null) ? context.resourceId : 0;
+            this.groupId = (context != null) ? context.groupId : 0;
+            this.parentResourceId = (context != null) ? context.parentResourceId : 0;
+            this.resourceTypeId = (context != null) ? context.resourceTypeId : 0;
+            this.width = width;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = scheduleId;
+            result = 31 * result + definitionId;
+            result = 31 * result + ((type != null) ? type.hashCode() : 0);
+            result = 31 * result + resourceId;
+            result = 31 * result + groupId;
+            result = 31 * result + parentResourceId;
+            result = 31 * result + resourceTypeId;
+            result = 31 * result + (int) (width ^ (width >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return (scheduleId == other.scheduleId) && (definitionId == other.definitionId) && (type == other.type)
+                && (resourceId == other.resourceId) && (groupId == other.groupId)
+                && (parentResourceId == other.parentResourceId) && (resourceTypeId == other.resourceTypeId)
+                && (width == other.width);
+        }
+
+        @Override
+        public String toString() {
+            if (type == null) {
+                return "schedule[" + scheduleId + "], width[" + width + "]";
+            }
+            return "definition[" + definitionId + "], " + type + "[" + resourceId + "," + groupId + ","
+                + parentResourceId + "," + resourceTypeId + "], width[" + width + "]";
+        }
+    }
+
+    /**
+     * The cached buckets of one graph, keyed by their start time; each value is {average, high, low}.
+     */
+    private static class Series {
+        final SeriesKey key;
+        final int[] scheduleIds;
+        final long created;
+
+        // guarded by this
+        final TreeMap<Long, double[]> buckets = new TreeMap<Long, double[]>();
+        // incremented whenever buckets are dropped, so a read that overlapped an insert does not cache stale data
+        int generation;
+        boolean evicted;
+
+        // guarded by the store
+        long bytes = SERIES_BYTES;
+
+        Series(SeriesKey key, int[] scheduleIds, long created) {
+            this.key = key;
+            this.scheduleIds = scheduleIds;
+            this.created = created;
+        }
+
+        /**
+         * @return the number of buckets that were dropped
+         */
+        synchronized int invalidate(long timestamp) {
+            long start = (timestamp / key.width) * key.width;
+            if (buckets.remove(start) == null) {
+                return 0;
+            }
+            generation++;
+            return 1;
+        }
+    }
+
+    private final MeasurementDataStore delegate;
+    private final ScheduleIdResolver scheduleIdResolver;
+    private final TransactionSynchronizationRegistry transactionRegistry;
+    private final long maxBytes;
+    private final long settleTime;
+    private final long timeToLive;
+
+    // all guarded by this
+    private final LinkedHashMap<SeriesKey, Series> series = new LinkedHashMap<SeriesKey, Series>(256, 0.75f, true);
+    private final IntOpenHashMap<List<Series>> seriesBySchedule = new IntOpenHashMap<List<Series>>();
+    private long bytes;
+
+    /**
+     * @param delegate           the store that holds the data
+     * @param scheduleIdResolver resolves the schedules of a definition in a context, to drop their buckets on insert
+     * @param transactionRegistry registers the callback that drops the buckets of inserted data again once their
+     *                           transaction completes, can be <code>null</code> if inserts are not transacted
+     * @param maxBytes           the estimated heap the cached buckets may use
+     * @param settleTime         how long after its end a bucket is still read from the store, in milliseconds
+     * @param timeToLive         how long a series is kept before it is read again from scratch, in milliseconds
+     */
+    public CachingMeasurementDataStore(MeasurementDataStore delegate, ScheduleIdResolver scheduleIdResolver,
+        TransactionSynchronizationRegistry transactionRegistry, long maxBytes, long settleTime, long timeToLive) {
+        this.delegate = delegate;
+        this.scheduleIdResolver = scheduleIdResolver;
+        this.transactionRegistry = transactionRegistry;
+        this.maxBytes = maxBytes;
+        this.settleTime = settleTime;
+        this.timeToLive = timeToLive;
+    }
+
+    public MeasurementDataStore getDelegate() {
+        return delegate;
+    }
+
+    public synchronized long getCacheSize() {
+        return bytes;
+    }
+
+    public int addNumericData(final Collection<MeasurementDataNumeric> data) {
+        Runnable invalidation = new Runnable() {
+            public void run() {
+                synchronized (CachingMeasurementDataStore.this) {
+                    if (!series.isEmpty()) {
+                        for (MeasurementDataNumeric datum : data) {
+                            invalidate(datum.getScheduleId(), datum.getTimestamp());
+                        }
+                    }
+                }
+            }
+        };
+
+        invalidation.run();
+        int count = delegate.addNumericData(data);
+        invalidateAfterCompletion(invalidation);
+        return count;
+    }
+
+    public int addNumericData(final NumericDataBatch batch) {
+        Runnable invalidation = new Runnable() {
+            public void run() {
+                synchronized (CachingMeasurementDataStore.this) {
+                    if (!series.isEmpty()) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            invalidate(batch.getScheduleId(i), batch.getTimestamp(i));
+                        }
+                    }
+                }
+            }
+        };
+
+        invalidation.run();
+        int count = delegate.addNumericData(batch);
+        invalidateAfterCompletion(invalidation);
+        return count;
+    }
+
+    /**
+     * Runs the invalidation again once the caller's transaction completes, so that buckets read before the inserted
+     * data was committed do not survive it. Without a transaction the data is already visible and nothing is left to
+     * do.
+     */
+    private void invalidateAfterCompletion(final Runnable invalidation) {
+        if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+            transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+
+                public void afterCompletion(int status) {
+                    invalidation.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Must hold the lock of this store.
+     */
+    private void invalidate(int scheduleId, long timestamp) {
+        List<Series> list = seriesBySchedule.get(scheduleId);
+        if (list == null) {
+            return;
+        }
+        for (Series s : list) {
+            int dropped = s.invalidate(timestamp);
+            s.bytes -= dropped * BUCKET_BYTES;
+            bytes -= dropped * BUCKET_BYTES;
+        }
+    }
+
+    public List<MeasurementDataNumeric> findRawData(int scheduleId, long beginTime, long endTime) {
+        return delegate.findRawData(scheduleId, beginTime, endTime);
+    }
+
+    public MeasurementDataNumeric getLatestValue(int scheduleId) {
+        return delegate.getLatestValue(scheduleId);
+    }
+
+    public MeasurementAggregate getAggregate(int scheduleId, long beginTime, long endTime) {
+        return delegate.getAggregate(scheduleId, beginTime, endTime);
+    }
+
+    public MeasurementAggregate getAggregate(int definitionId, EntityContext context, long beginTime, long endTime) {
+        return delegate.getAggregate(definitionId, context, beginTime, endTime);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int scheduleId, long beginTime, long endTime,
+        int numDataPoints) {
+        int points = getNumDataPoints(numDataPoints);
+        long width = (endTime - beginTime) / points;
+        if (width <= 0) {
+            return delegate.findDataPoints(scheduleId, beginTime, endTime, numDataPoints);
+        }
+        return findDataPoints(new SeriesKey(scheduleId, width), endTime, points);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int definitionId, EntityContext context,
+        long beginTime, long endTime, int numDataPoints) {
+        int points = getNumDataPoints(numDataPoints);
+        long width = (endTime - beginTime) / points;
+        if (width <= 0) {
+            return delegate.findDataPoints(definitionId, context, beginTime, endTime, numDataPoints);
+        }
+        return findDataPoints(new SeriesKey(0, definitionId, context, width), endTime, points);
+    }
+
+    private List<MeasurementDataNumericHighLowComposite> findDataPoints(SeriesKey key, long endTime, int points) {
+        // the last bucket is the one that holds the end time, so the newest data is always part of the graph
+        long width = key.width;
+        long alignedBegin = (((endTime / width) + 1) * width) - (points * width);
+        long now = System.currentTimeMillis();
+        long settled = now - settleTime;
+
+        Series s = getSeries(key, now);
+
+        double[][] values = new double[points][];
+        int first = -1;
+        int last = -1;
+        int generation;
+        synchronized (s) {
+            generation = s.generation;
+            for (int i = 0; i < points; i++) {
+                values[i] = s.buckets.get(alignedBegin + (i * width));
+                if (values[i] == null) {
+                    if (first < 0) {
+                        first = i;
+                    }
+                    last = i;
+                }
+            }
+        }
+
+        if (first >= 0) {
+            // one query for everything that is missing, usually just the trailing buckets
+            long readBegin = alignedBegin + (first * width);
+            int readPoints = last - first + 1;
+            List<MeasurementDataNumericHighLowComposite> read = read(key, readBegin, readBegin + (readPoints * width),
+                readPoints);
+
+            List<double[]> settledBuckets = new ArrayList<double[]>(readPoints);
+            List<Long> settledStarts = new ArrayList<Long>(readPoints);
+            for (MeasurementDataNumericHighLowComposite composite : read) {
+                long offset = composite.getTimestamp() - alignedBegin;
+                if ((offset < 0) || ((offset % width) != 0) || ((offset / width) >= points)) {
+                    continue;
+                }
+                int i = (int) (offset / width);
+                double[] bucket = new double[] { composite.getValue(), composite.getHighValue(),
+                    composite.getLowValue() };
+                values[i] = bucket;
+                if ((composite.getTimestamp() + width) <= settled) {
+                    settledBuckets.add(bucket);
+                    settledStarts.add(composite.getTimestamp());
+                }
+            }
+
+            if (!settledBuckets.isEmpty()) {
+                store(s, generation, settledStarts, settledBuckets);
+            }
+            MeasurementMonitor.getMBean().incrementChartCacheBuckets(points - readPoints, readPoints);
+        } else {
+            MeasurementMonitor.getMBean().incrementChartCacheBuckets(points, 0);
+        }
+
+        List<MeasurementDataNumericHighLowComposite> result = new ArrayList<MeasurementDataNumericHighLowComposite>(
+            points);
+        for (int i = 0; i < points; i++) {
+            double[] bucket = values[i];
+            long timestamp = alignedBegin + (i * width);
+            if (bucket == null) {
+                result.add(new MeasurementDataNumericHighLowComposite(timestamp, Double.NaN, Double.NaN, Double.NaN));
+            } else {
+                result.add(new MeasurementDataNumericHighLowComposite(timestamp, bucket[0], bucket[1], bucket[2]));
+            }
+        }
+        return result;
+    }
+
+    private List<MeasurementDataNumericHighLowComposite> read(SeriesKey key, long beginTime, long endTime, int points) {
+        if (key.type == null) {
+            return delegate.findDataPoints(key.scheduleId, beginTime, endTime, points);
+        }
+        return delegate.findDataPoints(key.definitionId, key.context, beginTime, endTime, points);
+    }
+
+    private void store(Series s, int generation, List<Long> starts, List<double[]> buckets) {
+        int added = 0;
+        synchronized (s) {
+            if (s.evicted || (s.generation != generation)) {
+                // data was inserted while reading, the next request reads these buckets again
+                return;
+            }
+            for (int i = 0; i < starts.size(); i++) {
+                if (s.buckets.put(starts.get(i), buckets.get(i)) == null) {
+                    added++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (series.get(s.key) != s) {
+                return;
+            }
+            s.bytes += added * BUCKET_BYTES;
+            bytes += added * BUCKET_BYTES;
+
+            Iterator<Series> eldest = series.values().iterator();
+            while ((bytes > maxBytes) && eldest.hasNext()) {
+                Series evict = eldest.next();
+                eldest.remove();
+                remove(evict);
+            }
+        }
+    }
+
+    /**
+     * Returns the series of the key, creating it if it does not exist or has expired.
+     */
+    private Series getSeries(SeriesKey key, long now) {
+        synchronized (this) {
+            Series s = series.get(key);
+            if ((s != null) && ((now - s.created) < timeToLive)) {
+                return s;
+            }
+            if (s != null) {
+                series.remove(key);
+                remove(s);
+            }
+        }
+
+        // resolve outside of the lock, this is a query for a context
+        int[] scheduleIds;
+        if (key.type == null) {
+            scheduleIds = new int[] { key.scheduleId };
+        } else {
+            scheduleIds = scheduleIdResolver.getScheduleIds(key.definitionId, key.context);
+        }
+
+        synchronized (this) {
+            Series s = series.get(key);
+            if (s != null) {
+                return s;
+            }
+
+            s = new Series(key, scheduleIds, now);
+            series.put(key, s);
+            bytes += s.bytes + (scheduleIds.length * 4L);
+            s.bytes += scheduleIds.length * 4L;
+            for (int scheduleId : scheduleIds) {
+                List<Series> list = seriesBySchedule.get(scheduleId);
+                if (list == null) {
+                    list = new ArrayList<Series>(2);
+                    seriesBySchedule.put(scheduleId, list);
+                }
+                list.add(s);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Caching chart data of " + key + " over [" + scheduleIds.length + "] schedules");
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Forgets a series that has been taken out of the map. Must hold the lock of this store.
+     */
+    private void remove(Series s) {
+        synchronized (s) {
+            s.evicted = true;
+        }
+        bytes -= s.bytes;
+        for (int scheduleId : s.scheduleIds) {
+            List<Series> list = seriesBySchedule.get(scheduleId);
+            if (list != null) {
+                list.remove(s);
+                if (list.isEmpty()) {
+                    seriesBySchedule.remove(scheduleId);
+                }
+            }
+        }
+    }
+
+    private static int getNumDataPoints(int numDataPoints) {
+        return (numDataPoints <= 0) ? MeasurementDataManagerUtility.DEFAULT_NUM_DATA_POINTS : numDataPoints;
+    }
+
+    public void scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo,
+        RollupVisitor visitor) {
+        delegate.scanOneHourData(firstScheduleId, lastScheduleId, after, upTo, visitor);
+    }
+
+    public Long getLatestOneHourTimestamp() {
+        return delegate.getLatestOneHourTimestamp();
+    }
+
+    public void compressAndPurge(long now, long purge1h, long purge6h, long purge1d) throws Exception {
+        delegate.compressAndPurge(now, purge1h, purge6h, purge1d);
+    }
+
+    /**
+     * Drops all cached buckets.
+     */
+    public synchronized void clear() {
+        for (Series s : series.values()) {
+            remove(s);
+        }
+        series.clear();
+        bytes = 0;
+    }
+
+    public void shutdown() {
+        clear();
+        delegate.shutdown();
+    }
+}
@@ -0,0 +1,673 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.common.EntityContext;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowComposite;
+import org.rhq.core.util.collection.IntOpenHashMap;
+import org.rhq.enterprise.server.measurement.MeasurementAggregate;
+import org.rhq.enterprise.server.measurement.MeasurementNotFoundException;
+import org.rhq.enterprise.server.measurement.MeasurementStorageException;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+
+/**
+ * An embedded {@link MeasurementDataStore} that keeps the data in append-only, column oriented files instead of the
+ * relational database. Each resolution (raw, 1 hour, 6 hour and 1 day) has a directory of {@link ColumnarPartition
+ * partitions}, each covering a fixed time span. Every insert appends one block to the partition of its time, sorted
+ * by schedule id. The rollups are appended to their partitions by {@link #compressAndPurge(long, long, long, long)},
+ * which records in a small state file how far each resolution has been rolled up, so an interrupted run resumes
+ * where it stopped. A rollup block holds the rows of a single interval, so an interval whose block was appended
+ * before a crash, but not yet recorded in the state file, is recognized by its block and not appended again.
+ * Purging old data deletes whole partitions, like truncating a raw table.
+ * <p/>
+ * Appends are not forced to disk, so the most recent data can be lost when the machine (not just the server) dies;
+ * that is the same guarantee the raw tables get with asynchronous commits. Rows with the same schedule id and
+ * timestamp are not collapsed.
+ * <p/>
+ * Reads share a lock and appends take it exclusively, which is cheap because an append is a single write.
+ */
+public class ColumnarFileMeasurementDataStore implements MeasurementDataStore {
+
+    private static final Log LOG = LogFactory.getLog(ColumnarFileMeasurementDataStore.class);
+
+    private static final long HOUR = 60L * 60L * 1000L;
+    private static final long SIX_HOUR = 6L * HOUR;
+    private static final long DAY = 24L * HOUR;
+
+    private static final String STATE_FILE = "compression.properties";
+    private static final String PARTITION_SUFFIX = ".dat";
+
+    /**
+     * The data of one resolution: its partitions keyed by their start time.
+     */
+    private static class Level {
+        final String name;
+        final long interval;
+        final long partitionSpan;
+        final boolean rollup;
+        final File directory;
+        final NavigableMap<Long, ColumnarPartition> partitions = new TreeMap<Long, ColumnarPartition>();
+
+        Level(File root, String name, long interval, long partitionSpan) {
+            this.name = name;
+            this.interval = interval;
+            this.partitionSpan = partitionSpan;
+            this.rollup = (interval > 0);
+            this.directory = new File(root, name);
+        }
+
+        long getPartitionStart(long time) {
+            return (time / partitionSpan) * partitionSpan;
+        }
+
+        /**
+         * @return the partitions that can hold data between the two times, oldest first
+         */
+        Collection<ColumnarPartition> getPartitions(long beginTime, long endTime) {
+            return partitions.subMap(getPartitionStart(beginTime), true, endTime, true).values();
+        }
+    }
+
+    /**
+     * Sum, count, minimum and maximum of the rows passed to it.
+     */
+    private static class Accumulator implements ColumnarPartition.RowVisitor {
+        double sum;
+        long count;
+        double min = Double.NaN;
+        double max = Double.NaN;
+
+        public void row(int scheduleId, long timestamp, double value, double rowMin, double rowMax) {
+            add(value, rowMin, rowMax);
+        }
+
+        void add(double value, double rowMin, double rowMax) {
+            sum += value;
+            min = (count == 0) ? rowMin : Math.min(min, rowMin);
+            max = (count == 0) ? rowMax : Math.max(max, rowMax);
+            count++;
+        }
+
+        double getAverage() {
+            return (count == 0) ? Double.NaN : (sum / count);
+        }
+    }
+
+    /**
+     * Rows collected for one partition, in the order they are to be appended.
+     */
+    private static class Rows {
+        int[] scheduleIds = new int[16];
+        long[] timestamps = new long[16];
+        double[] values = new double[16];
+        double[] mins = new double[16];
+        double[] maxs = new double[16];
+        int count;
+
+        void add(int scheduleId, long timestamp, double value, double min, double max) {
+            if (count == scheduleIds.length) {
+                int capacity = count * 2;
+                scheduleIds = Arrays.copyOf(scheduleIds, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+            }
+            scheduleIds[count] = scheduleId;
+            timestamps[count] = timestamp;
+            values[count] = value;
+            mins[count] = min;
+            maxs[count] = max;
+            count++;
+        }
+    }
+
+    private final File directory;
+    private final ScheduleIdResolver scheduleIdResolver;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Level raw;
+    private final Level oneHour;
+    private final Level sixHour;
+    private final Level oneDay;
+
+    // how far each rollup level has been computed, keyed by level name; guarded by lock
+    private final Properties state = new Properties();
+
+    // the retention of the rollups, as last passed to compressAndPurge; used to pick the level a query reads
+    private volatile long purge1h = 14L * DAY;
+    private volatile long purge6h = 31L * DAY;
+    private volatile long purge1d = 365L * DAY;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param directory          where the data files are kept
+     * @param scheduleIdResolver resolves the schedules of chart and aggregate queries over a context
+     */
+    public ColumnarFileMeasurementDataStore(File directory, ScheduleIdResolver scheduleIdResolver) throws IOException {
+        this.directory = directory;
+        this.scheduleIdResolver = scheduleIdResolver;
+
+        this.raw = new Level(directory, "raw", 0, MeasurementDataManagerUtility.MILLISECONDS_PER_TABLE);
+        this.oneHour = new Level(directory, "1h", HOUR, DAY);
+        this.sixHour = new Level(directory, "6h", SIX_HOUR, 7L * DAY);
+        this.oneDay = new Level(directory, "1d", DAY, 28L * DAY);
+
+        for (Level level : getLevels()) {
+            open(level);
+        }
+
+        File stateFile = new File(directory, STATE_FILE);
+        if (stateFile.exists()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        LOG.info("Opened columnar measurement data store in " + directory);
+    }
+
+    private List<Level> getLevels() {
+        return Arrays.asList(raw, oneHour, sixHour, oneDay);
+    }
+
+    private void open(Level level) throws IOException {
+        if (!level.directory.isDirectory() && !level.directory.mkdirs()) {
+            throw new IOException("Could not create " + level.directory);
+        }
+
+        File[] files = level.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(PARTITION_SUFFIX)) {
+                continue;
+            }
+
+            long start;
+            try {
+                start = Long.parseLong(name.substring(0, name.length() - PARTITION_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring unexpected file " + file);
+                continue;
+            }
+            level.partitions.put(start, new ColumnarPartition(file, start, level.rollup));
+        }
+    }
+
+    public int addNumericData(Collection<MeasurementDataNumeric> data) {
+        int count = 0;
+        int[] scheduleIds = new int[data.size()];
+        long[] timestamps = new long[data.size()];
+        double[] values = new double[data.size()];
+
+        for (MeasurementDataNumeric datum : data) {
+            Double value = datum.getValue();
+            if ((value == null) || Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            scheduleIds[count] = datum.getScheduleId();
+            timestamps[count] = datum.getTimestamp();
+            values[count] = value;
+            count++;
+        }
+
+        return addRawData(scheduleIds, timestamps, values, count);
+    }
+
+    public int addNumericData(NumericDataBatch batch) {
+        int count = 0;
+        int[] scheduleIds = new int[batch.size()];
+        long[] timestamps = new long[batch.size()];
+        double[] values = new double[batch.size()];
+
+        for (int i = 0; i < batch.size(); i++) {
+            double value = batch.getValue(i);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            scheduleIds[count] = batch.getScheduleId(i);
+            timestamps[count] = batch.getTimestamp(i);
+            values[count] = value;
+            count++;
+        }
+
+        return addRawData(scheduleIds, timestamps, values, count);
+    }
+
+    private int addRawData(int[] scheduleIds, long[] timestamps, double[] values, int count) {
+        if (count == 0) {
+            return 0;
+        }
+
+        // sort the rows by schedule id; schedule ids are positive, so the row index fits in the low bits
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (((long) scheduleIds[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        // usually all rows go into the current partition, only around its end do they span two
+        Map<Long, Rows> partitions = new HashMap<Long, Rows>(4);
+        for (long key : order) {
+            int i = (int) key;
+            Long start = raw.getPartitionStart(timestamps[i]);
+            Rows rows = partitions.get(start);
+            if (rows == null) {
+                rows = new Rows();
+                partitions.put(start, rows);
+            }
+            rows.add(scheduleIds[i], timestamps[i], values[i], values[i], values[i]);
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<Long, Rows> entry : partitions.entrySet()) {
+                append(raw, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new MeasurementStorageException("Failure saving [" + count + "] numeric data points", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        return count;
+    }
+
+    /**
+     * Appends the rows to the partition of the given level that starts at the given time. Must hold the write lock.
+     */
+    private void append(Level level, long partitionStart, Rows rows) throws IOException {
+        ColumnarPartition partition = level.partitions.get(partitionStart);
+        if (partition == null) {
+            File file = new File(level.directory, partitionStart + PARTITION_SUFFIX);
+            partition = new ColumnarPartition(file, partitionStart, level.rollup);
+            level.partitions.put(partitionStart, partition);
+        }
+        partition.append(rows.scheduleIds, rows.timestamps, rows.values, rows.mins, rows.maxs, rows.count);
+    }
+
+    /**
+     * Scans the given level for the rows of the given schedules between the two times.
+     *
+     * @param scheduleIds the schedules, sorted; <code>null</code> for all of them
+     */
+    private void scan(Level level, int[] scheduleIds, long beginTime, long endTime,
+        ColumnarPartition.RowVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (ColumnarPartition partition : level.getPartitions(beginTime, endTime)) {
+                partition.scan(scheduleIds, beginTime, endTime, visitor);
+            }
+        } catch (IOException e) {
+            throw new MeasurementNotFoundException("Failure reading the " + level.name + " measurement data", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<MeasurementDataNumeric> findRawData(final int scheduleId, long beginTime, long endTime) {
+        final List<MeasurementDataNumeric> result = new ArrayList<MeasurementDataNumeric>();
+        scan(raw, new int[] { scheduleId }, beginTime, endTime, new ColumnarPartition.RowVisitor() {
+            public void row(int rowScheduleId, long timestamp, double value, double min, double max) {
+                result.add(new MeasurementDataNumeric(timestamp, scheduleId, value));
+            }
+        });
+
+        if (result.size() > 1) {
+            Collections.sort(result, new Comparator<MeasurementDataNumeric>() {
+                public int compare(MeasurementDataNumeric d1, MeasurementDataNumeric d2) {
+                    return (d1.getTimestamp() < d2.getTimestamp()) ? -1
+                        : ((d1.getTimestamp() == d2.getTimestamp()) ? 0 : 1);
+                }
+            });
+        }
+        return result;
+    }
+
+    public MeasurementDataNumeric getLatestValue(int scheduleId) {
+        final long[] latest = { Long.MIN_VALUE };
+        final double[] latestValue = { Double.NaN };
+        ColumnarPartition.RowVisitor visitor = new ColumnarPartition.RowVisitor() {
+            public void row(int rowScheduleId, long timestamp, double value, double min, double max) {
+                if (timestamp > latest[0]) {
+                    latest[0] = timestamp;
+                    latestValue[0] = value;
+                }
+            }
+        };
+
+        int[] scheduleIds = { scheduleId };
+        lock.readLock().lock();
+        try {
+            // newest partition first, the first one that holds data for the schedule holds its latest value
+            for (ColumnarPartition partition : raw.partitions.descendingMap().values()) {
+                partition.scan(scheduleIds, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+                if (latest[0] != Long.MIN_VALUE) {
+                    return new MeasurementDataNumeric(latest[0], scheduleId, latestValue[0]);
+                }
+            }
+        } catch (IOException e) {
+            throw new MeasurementNotFoundException("Failure reading the raw measurement data", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return null;
+    }
+
+    public MeasurementAggregate getAggregate(int scheduleId, long beginTime, long endTime) {
+        return getAggregate(new int[] { scheduleId }, beginTime, endTime);
+    }
+
+    public MeasurementAggregate getAggregate(int definitionId, EntityContext context, long beginTime, long endTime) {
+        return getAggregate(resolve(definitionId, context), beginTime, endTime);
+    }
+
+    private MeasurementAggregate getAggregate(int[] scheduleIds, long beginTime, long endTime) {
+        Accumulator accumulator = new Accumulator();
+        if (scheduleIds.length > 0) {
+            scan(getLevel(beginTime), scheduleIds, beginTime, endTime, accumulator);
+        }
+        return new MeasurementAggregate(accumulator.min, accumulator.getAverage(), accumulator.max);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int scheduleId, long beginTime, long endTime,
+        int numDataPoints) {
+        return findDataPoints(new int[] { scheduleId }, beginTime, endTime, numDataPoints);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int definitionId, EntityContext context,
+        long beginTime, long endTime, int numDataPoints) {
+        return findDataPoints(resolve(definitionId, context), beginTime, endTime, numDataPoints);
+    }
+
+    private List<MeasurementDataNumericHighLowComposite> findDataPoints(int[] scheduleIds, final long beginTime,
+        long endTime, int numDataPoints) {
+        final int points = (numDataPoints <= 0) ? MeasurementDataManagerUtility.DEFAULT_NUM_DATA_POINTS
+            : numDataPoints;
+        final long interval = Math.max(1L, (endTime - beginTime) / points);
+
+        final Accumulator[] buckets = new Accumulator[points];
+        for (int i = 0; i < points; i++) {
+            buckets[i] = new Accumulator();
+        }
+
+        if (scheduleIds.length > 0) {
+            scan(getLevel(beginTime), scheduleIds, beginTime, endTime, new ColumnarPartition.RowVisitor() {
+                public void row(int scheduleId, long timestamp, double value, double min, double max) {
+                    int bucket = (int) Math.min(points - 1, (timestamp - beginTime) / interval);
+                    buckets[bucket].add(value, min, max);
+                }
+            });
+        }
+
+        List<MeasurementDataNumericHighLowComposite> result = new ArrayList<MeasurementDataNumericHighLowComposite>(
+            points);
+        for (int i = 0; i < points; i++) {
+            Accumulator bucket = buckets[i];
+            result.add(new MeasurementDataNumericHighLowComposite(beginTime + (i * interval), bucket.getAverage(),
+                bucket.max, bucket.min));
+        }
+        return result;
+    }
+
+    private int[] resolve(int definitionId, EntityContext context) {
+        int[] scheduleIds = scheduleIdResolver.getScheduleIds(definitionId, context);
+        Arrays.sort(scheduleIds);
+        return scheduleIds;
+    }
+
+    /**
+     * Picks the level to read for a query that begins at the given time, the same way
+     * {@link MeasurementDataManagerUtility#getTables(long, long, long)} picks the tables.
+     */
+    private Level getLevel(long beginTime) {
+        long now = System.currentTimeMillis();
+        if ((now - MeasurementDataManagerUtility.RAW_PURGE) < beginTime) {
+            return raw;
+        } else if ((now - purge1h) < beginTime) {
+            return oneHour;
+        } else if ((now - purge6h) < beginTime) {
+            return sixHour;
+        } else {
+            return oneDay;
+        }
+    }
+
+    public void scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo,
+        final RollupVisitor visitor) {
+        if (after >= upTo) {
+            return;
+        }
+
+        ColumnarPartition.RowVisitor rowVisitor = new ColumnarPartition.RowVisitor() {
+            public void row(int scheduleId, long timestamp, double value, double min, double max) {
+                visitor.rollup(scheduleId, timestamp, value, min, max);
+            }
+        };
+
+        lock.readLock().lock();
+        try {
+            for (ColumnarPartition partition : oneHour.getPartitions(after + 1, upTo)) {
+                partition.scan(firstScheduleId, lastScheduleId, after + 1, upTo, rowVisitor);
+            }
+        } catch (IOException e) {
+            throw new MeasurementNotFoundException("Failure reading the " + oneHour.name + " measurement data", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Long getLatestOneHourTimestamp() {
+        lock.readLock().lock();
+        try {
+            // newest partition first, rollups are only ever appended to the end
+            for (ColumnarPartition partition : oneHour.partitions.descendingMap().values()) {
+                long maxTime = partition.getMaxTime();
+                if (maxTime != Long.MIN_VALUE) {
+                    return maxTime;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void compressAndPurge(long now, long purge1h, long purge6h, long purge1d) throws IOException {
+        this.purge1h = purge1h;
+        this.purge6h = purge6h;
+        this.purge1d = purge1d;
+
+        long last1h = rollUp(raw, oneHour, now);
+        long last6h = rollUp(oneHour, sixHour, now);
+        long last1d = rollUp(sixHour, oneDay, now);
+
+        // never purge data that has not been rolled up yet
+        purge(raw, Math.min(now - MeasurementDataManagerUtility.RAW_PURGE, last1h));
+        purge(oneHour, Math.min(now - purge1h, last6h));
+        purge(sixHour, Math.min(now - purge6h, last1d));
+        purge(oneDay, now - purge1d);
+    }
+
+    /**
+     * Rolls up the complete intervals of the target level that have not been rolled up yet.
+     *
+     * @return the time up to which the source level has been rolled up
+     */
+    private long rollUp(Level source, Level target, long now) throws IOException {
+        long interval = target.interval;
+        long end = (now / interval) * interval;
+
+        long begin;
+        lock.readLock().lock();
+        try {
+            String last = state.getProperty(target.name);
+            if (last != null) {
+                begin = Long.parseLong(last);
+            } else if (!source.partitions.isEmpty()) {
+                begin = (source.partitions.firstKey() / interval) * interval;
+            } else {
+                begin = end;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int intervals = 0;
+        long rolledUpTo = begin;
+        for (long time = begin; (time + interval) <= end; time += interval) {
+            final IntOpenHashMap<Accumulator> accumulators = new IntOpenHashMap<Accumulator>();
+            scan(source, null, time, time + interval - 1, new ColumnarPartition.RowVisitor() {
+                public void row(int scheduleId, long timestamp, double value, double min, double max) {
+                    Accumulator accumulator = accumulators.get(scheduleId);
+                    if (accumulator == null) {
+                        accumulator = new Accumulator();
+                        accumulators.put(scheduleId, accumulator);
+                    }
+                    accumulator.add(value, min, max);
+                }
+            });
+
+            int[] scheduleIds = accumulators.keys();
+            Arrays.sort(scheduleIds);
+            Rows rows = new Rows();
+            for (int scheduleId : scheduleIds) {
+                Accumulator accumulator = accumulators.get(scheduleId);
+                rows.add(scheduleId, time, accumulator.getAverage(), accumulator.min, accumulator.max);
+            }
+
+            lock.writeLock().lock();
+            try {
+                long partitionStart = target.getPartitionStart(time);
+                ColumnarPartition partition = target.partitions.get(partitionStart);
+                if ((partition != null) && partition.hasBlock(time)) {
+                    LOG.info("The " + target.name + " rollup of [" + time + "] was appended before, not appending it "
+                        + "again");
+                } else if (rows.count > 0) {
+                    append(target, partitionStart, rows);
+                }
+                state.setProperty(target.name, String.valueOf(time + interval));
+                saveState();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            rolledUpTo = time + interval;
+            intervals++;
+        }
+
+        if (LOG.isDebugEnabled() && (intervals > 0)) {
+            LOG.debug("Rolled up [" + intervals + "] intervals of " + source.name + " data into " + target.name);
+        }
+
+        return rolledUpTo;
+    }
+
+    /**
+     * Deletes the partitions of the given level that only hold data older than the given time.
+     */
+    private void purge(Level level, long purgeBefore) throws IOException {
+        lock.writeLock().lock();
+        try {
+            while (!level.partitions.isEmpty()) {
+                long start = level.partitions.firstKey();
+                if ((start + level.partitionSpan) > purgeBefore) {
+                    break;
+                }
+                ColumnarPartition partition = level.partitions.remove(start);
+                partition.delete();
+                LOG.debug("Purged " + partition);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Must hold the write lock.
+     */
+    private void saveState() throws IOException {
+        File stateFile = new File(directory, STATE_FILE);
+        File tmpFile = new File(directory, STATE_FILE + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            state.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(stateFile)) {
+            // not atomic, but rename does not replace an existing file on every platform
+            stateFile.delete();
+            if (!tmpFile.renameTo(stateFile)) {
+                throw new IOException("Could not replace " + stateFile);
+            }
+        }
+    }
+
+    public void shutdown() {
+        lock.writeLock().lock();
+        try {
+            for (Level level : getLevels()) {
+                for (ColumnarPartition partition : level.partitions.values()) {
+                    try {
+                        partition.close();
+                    } catch (IOException e) {
+                        LOG.warn("Failed to close " + partition + ": " + e);
+                    }
+                }
+                level.partitions.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
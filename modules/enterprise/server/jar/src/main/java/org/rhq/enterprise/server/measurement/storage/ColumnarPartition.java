@@ -0,0 +1,434 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One append-only file of a {@link ColumnarFileMeasurementDataStore}, holding the data of a fixed time span. The file
+ * is a sequence of blocks, one per append. Each block starts with a header:
+ *
+ * <pre>
+ * int    magic
+ * int    number of rows
+ * int    lowest schedule id
+ * int    highest schedule id
+ * long   lowest timestamp
+ * long   highest timestamp
+ * int    payload length
+ * long   CRC32 of the payload
+ * </pre>
+ *
+ * followed by the payload, which stores the rows column by column: all schedule ids, then all timestamps, then all
+ * values and, for rollups, all minimum and all maximum values. The rows of a block are sorted by schedule id, so the
+ * rows of one schedule are found with a binary search over the schedule id column and only their slices of the
+ * other columns are read. Whole blocks are skipped by their header when their schedule ids or times do not overlap
+ * the query.
+ * <p/>
+ * The headers are read into memory when the file is opened. Only the last block can have been torn by a crash, so
+ * only its checksum is verified; a torn or corrupt tail is cut off.
+ * <p/>
+ * This class is not thread safe; the store serializes appends against reads.
+ */
+class ColumnarPartition {
+
+    private static final Log LOG = LogFactory.getLog(ColumnarPartition.class);
+
+    private static final int MAGIC = 0x52485143; // "RHQC"
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * Below this many requested schedules, only the rows of each schedule are read from a block; above it, the whole
+     * block is read and filtered.
+     */
+    private static final int MAX_SLICED_SCHEDULES = 32;
+
+    /**
+     * Receives the rows found by {@link ColumnarPartition#scan(int[], long, long, RowVisitor)}. For raw data the
+     * minimum and maximum are the value itself.
+     */
+    interface RowVisitor {
+        void row(int scheduleId, long timestamp, double value, double min, double max);
+    }
+
+    private static class Block {
+        long offset;
+        int rows;
+        int minScheduleId;
+        int maxScheduleId;
+        long minTime;
+        long maxTime;
+    }
+
+    private final File file;
+    private final long start;
+    private final boolean rollup;
+    private final int bytesPerRow;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private long size;
+
+    ColumnarPartition(File file, long start, boolean rollup) throws IOException {
+        this.file = file;
+        this.start = start;
+        this.rollup = rollup;
+        this.bytesPerRow = rollup ? 36 : 20;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        load();
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the newest timestamp in this partition, or <code>Long.MIN_VALUE</code> if it is empty
+     */
+    long getMaxTime() {
+        long maxTime = Long.MIN_VALUE;
+        for (Block block : blocks) {
+            maxTime = Math.max(maxTime, block.maxTime);
+        }
+        return maxTime;
+    }
+
+    private void load() throws IOException {
+        long length = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while ((position + HEADER_SIZE) <= length) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+
+            Block block = new Block();
+            block.offset = position;
+            block.rows = header.getInt();
+            block.minScheduleId = header.getInt();
+            block.maxScheduleId = header.getInt();
+            block.minTime = header.getLong();
+            block.maxTime = header.getLong();
+            int payloadLength = header.getInt();
+            long crc = header.getLong();
+
+            long end = position + HEADER_SIZE + payloadLength;
+            if ((block.rows < 0) || (payloadLength != (block.rows * bytesPerRow)) || (end > length)) {
+                break;
+            }
+
+            if (end == length) {
+                ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+                readFully(payload, position + HEADER_SIZE);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload.array(), 0, payloadLength);
+                if (checksum.getValue() != crc) {
+                    break;
+                }
+            }
+
+            blocks.add(block);
+            position = end;
+        }
+
+        if (position < length) {
+            LOG.warn("Cutting off [" + (length - position) + "] bytes of torn or corrupt data at the end of " + file);
+            channel.truncate(position);
+        }
+
+        size = position;
+    }
+
+    /**
+     * Appends the given rows as one block. The rows must be sorted by schedule id.
+     *
+     * @param mins the minimum values, only used for rollups
+     * @param maxs the maximum values, only used for rollups
+     */
+    void append(int[] scheduleIds, long[] timestamps, double[] values, double[] mins, double[] maxs, int count)
+        throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        int payloadLength = count * bytesPerRow;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minTime = Math.min(minTime, timestamps[i]);
+            maxTime = Math.max(maxTime, timestamps[i]);
+        }
+
+        buffer.position(HEADER_SIZE);
+        buffer.asIntBuffer().put(scheduleIds, 0, count);
+        buffer.position(HEADER_SIZE + (count * 4));
+        buffer.asLongBuffer().put(timestamps, 0, count);
+        buffer.position(HEADER_SIZE + (count * 12));
+        buffer.asDoubleBuffer().put(values, 0, count);
+        if (rollup) {
+            buffer.position(HEADER_SIZE + (count * 20));
+            buffer.asDoubleBuffer().put(mins, 0, count);
+            buffer.position(HEADER_SIZE + (count * 28));
+            buffer.asDoubleBuffer().put(maxs, 0, count);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), HEADER_SIZE, payloadLength);
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(count);
+        buffer.putInt(scheduleIds[0]);
+        buffer.putInt(scheduleIds[count - 1]);
+        buffer.putLong(minTime);
+        buffer.putLong(maxTime);
+        buffer.putInt(payloadLength);
+        buffer.putLong(checksum.getValue());
+        buffer.clear();
+
+        long position = size;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        Block block = new Block();
+        block.offset = size;
+        block.rows = count;
+        block.minScheduleId = scheduleIds[0];
+        block.maxScheduleId = scheduleIds[count - 1];
+        block.minTime = minTime;
+        block.maxTime = maxTime;
+        blocks.add(block);
+
+        size = position;
+    }
+
+    /**
+     * Passes all rows with a timestamp between <code>beginTime</code> and <code>endTime</code> (inclusive) of the
+     * given schedules to the visitor, in no particular order.
+     *
+     * @param scheduleIds the schedules, sorted; <code>null</code> for all schedules
+     */
+    void scan(int[] scheduleIds, long beginTime, long endTime, RowVisitor visitor) throws IOException {
+        for (Block block : blocks) {
+            if ((block.maxTime < beginTime) || (block.minTime > endTime)) {
+                continue;
+            }
+
+            if (scheduleIds == null) {
+                scanBlock(block, null, beginTime, endTime, visitor);
+                continue;
+            }
+
+            int first = lowerBound(scheduleIds, 0, scheduleIds.length, block.minScheduleId);
+            int last = lowerBound(scheduleIds, first, scheduleIds.length, block.maxScheduleId + 1);
+            if (first == last) {
+                continue;
+            }
+
+            if ((last - first) > MAX_SLICED_SCHEDULES) {
+                scanBlock(block, scheduleIds, beginTime, endTime, visitor);
+                continue;
+            }
+
+            int[] blockScheduleIds = readInts(block.offset + HEADER_SIZE, block.rows);
+            for (int i = first; i < last; i++) {
+                int from = lowerBound(blockScheduleIds, 0, block.rows, scheduleIds[i]);
+                int to = lowerBound(blockScheduleIds, from, block.rows, scheduleIds[i] + 1);
+                if (from < to) {
+                    scanRows(block, blockScheduleIds, from, to, beginTime, endTime, visitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes all rows with a schedule id between <code>firstScheduleId</code> and <code>lastScheduleId</code> and a
+     * timestamp between <code>beginTime</code> and <code>endTime</code> (all inclusive) to the visitor, in no
+     * particular order. Only the rows of the range are read from a block.
+     */
+    void scan(int firstScheduleId, int lastScheduleId, long beginTime, long endTime, RowVisitor visitor)
+        throws IOException {
+        for (Block block : blocks) {
+            if ((block.maxTime < beginTime) || (block.minTime > endTime) || (block.maxScheduleId < firstScheduleId)
+                || (block.minScheduleId > lastScheduleId)) {
+                continue;
+            }
+
+            int[] blockScheduleIds = readInts(block.offset + HEADER_SIZE, block.rows);
+            int from = lowerBound(blockScheduleIds, 0, block.rows, firstScheduleId);
+            int to = (lastScheduleId == Integer.MAX_VALUE) ? block.rows : lowerBound(blockScheduleIds, from,
+                block.rows, lastScheduleId + 1);
+            if (from < to) {
+                scanRows(block, blockScheduleIds, from, to, beginTime, endTime, visitor);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this partition holds a block whose rows all have the given timestamp
+     */
+    boolean hasBlock(long timestamp) {
+        for (Block block : blocks) {
+            if ((block.minTime == timestamp) && (block.maxTime == timestamp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scanBlock(Block block, int[] scheduleIds, long beginTime, long endTime, RowVisitor visitor)
+        throws IOException {
+        long payload = block.offset + HEADER_SIZE;
+        int rows = block.rows;
+        int[] blockScheduleIds = readInts(payload, rows);
+        long[] timestamps = readLongs(payload + (rows * 4L), rows);
+        double[] values = readDoubles(payload + (rows * 12L), rows);
+        double[] mins = rollup ? readDoubles(payload + (rows * 20L), rows) : values;
+        double[] maxs = rollup ? readDoubles(payload + (rows * 28L), rows) : values;
+
+        for (int i = 0; i < rows; i++) {
+            long timestamp = timestamps[i];
+            if ((timestamp < beginTime) || (timestamp > endTime)) {
+                continue;
+            }
+            if ((scheduleIds != null) && (Arrays.binarySearch(scheduleIds, blockScheduleIds[i]) < 0)) {
+                continue;
+            }
+            visitor.row(blockScheduleIds[i], timestamp, values[i], mins[i], maxs[i]);
+        }
+    }
+
+    /**
+     * Passes the rows <code>from</code> (inclusive) to <code>to</code> (exclusive) of the block that lie between the
+     * two times to the visitor, reading only their slices of the columns.
+     */
+    private void scanRows(Block block, int[] blockScheduleIds, int from, int to, long beginTime, long endTime,
+        RowVisitor visitor) throws IOException {
+        long payload = block.offset + HEADER_SIZE;
+        int rows = block.rows;
+        int count = to - from;
+        long[] timestamps = readLongs(payload + (rows * 4L) + (from * 8L), count);
+        double[] values = readDoubles(payload + (rows * 12L) + (from * 8L), count);
+        double[] mins = rollup ? readDoubles(payload + (rows * 20L) + (from * 8L), count) : values;
+        double[] maxs = rollup ? readDoubles(payload + (rows * 28L) + (from * 8L), count) : values;
+
+        for (int i = 0; i < count; i++) {
+            long timestamp = timestamps[i];
+            if ((timestamp >= beginTime) && (timestamp <= endTime)) {
+                visitor.row(blockScheduleIds[from + i], timestamp, values[i], mins[i], maxs[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first element in the given range that is not less than the key
+     */
+    private static int lowerBound(int[] sorted, int from, int to, int key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (sorted[mid] < key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private int[] readInts(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 4);
+        readFully(buffer, position);
+        buffer.flip();
+        int[] result = new int[count];
+        buffer.asIntBuffer().get(result);
+        return result;
+    }
+
+    private long[] readLongs(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+        readFully(buffer, position);
+        buffer.flip();
+        long[] result = new long[count];
+        buffer.asLongBuffer().get(result);
+        return result;
+    }
+
+    private double[] readDoubles(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+        readFully(buffer, position);
+        buffer.flip();
+        double[] result = new double[count];
+        buffer.asDoubleBuffer().get(result);
+        return result;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    void delete() throws IOException {
+        raf.close();
+        if (!file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarPartition[" + file + ", blocks=" + blocks.size() + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.rhq.core.db.DatabaseType;
+import org.rhq.core.db.DatabaseTypeFactory;
+import org.rhq.core.db.Postgresql83DatabaseType;
+import org.rhq.core.domain.common.EntityContext;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowComposite;
+import org.rhq.core.util.jdbc.JDBCUtil;
+import org.rhq.enterprise.server.measurement.MeasurementAggregate;
+import org.rhq.enterprise.server.measurement.MeasurementStorageException;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBulkWriter;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * The default {@link MeasurementDataStore}: raw data goes into the rotating <code>RHQ_MEAS_DATA_NUM_Rxx</code>
+ * tables and the rollups into <code>RHQ_MEASUREMENT_DATA_NUM_1H/6H/1D</code>, and all queries are the SQL of
+ * {@link MeasurementDataManagerUtility}. Connections are taken from the data source, so they take part in the
+ * caller's transaction.
+ */
+public class JdbcMeasurementDataStore implements MeasurementDataStore {
+
+    private static final String DATA_1H_SELECT = "" //
+        + "SELECT schedule_id, time_stamp, value, minvalue, maxvalue " //
+        + "  FROM RHQ_MEASUREMENT_DATA_NUM_1H " //
+        + " WHERE schedule_id BETWEEN ? AND ? AND time_stamp > ? AND time_stamp <= ?";
+
+    private final DataSource dataSource;
+
+    public JdbcMeasurementDataStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public int addNumericData(Collection<MeasurementDataNumeric> data) {
+        int expectedCount = data.size();
+
+        Connection conn = null;
+        DatabaseType dbType = null;
+
+        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+        try {
+            conn = dataSource.getConnection();
+            dbType = DatabaseTypeFactory.getDatabaseType(conn);
+
+            if (dbType instanceof Postgresql83DatabaseType) {
+                Statement st = null;
+                try {
+                    // Take advantage of async commit here
+                    st = conn.createStatement();
+                    st.execute("SET synchronous_commit = off");
+                } finally {
+                    JDBCUtil.safeClose(st);
+                }
+            }
+
+            for (MeasurementDataNumeric aData : data) {
+                Double value = aData.getValue();
+                if ((value == null) || Double.isNaN(value) || Double.isInfinite(value)) {
+                    expectedCount--;
+                    continue;
+                }
+
+                String table = MeasurementDataManagerUtility.getTable(aData.getTimestamp());
+
+                PreparedStatement ps = statements.get(table);
+
+                if (ps == null) {
+                    String insertSql = "INSERT  /*+ APPEND */ INTO " + table
+                        + "(schedule_id,time_stamp,value) VALUES(?,?,?)";
+                    ps = conn.prepareStatement(insertSql);
+                    statements.put(table, ps);
+                }
+
+                ps.setInt(1, aData.getScheduleId());
+                ps.setLong(2, aData.getTimestamp());
+                ps.setDouble(3, value);
+                ps.addBatch();
+            }
+
+            int count = 0;
+            for (PreparedStatement ps : statements.values()) {
+                int[] res = ps.executeBatch();
+                for (int updates : res) {
+                    if ((updates != 1) && (updates != -2)) // oracle returns -2 on success
+                    {
+                        throw new MeasurementStorageException("Unexpected batch update size [" + updates + "]");
+                    }
+
+                    count++;
+                }
+            }
+
+            if (count != expectedCount) {
+                throw new MeasurementStorageException("Failure to store measurement data.");
+            }
+
+            return count;
+        } catch (SQLException e) {
+            throw new MeasurementStorageException("Failure saving measurement numeric data", e);
+        } catch (MeasurementStorageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MeasurementStorageException("Error persisting numeric data", e);
+        } finally {
+            for (PreparedStatement ps : statements.values()) {
+                JDBCUtil.safeClose(ps);
+            }
+
+            JDBCUtil.safeClose(conn);
+        }
+    }
+
+    public int addNumericData(NumericDataBatch batch) {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            return NumericDataBulkWriter.write(conn, batch);
+        } catch (SQLException e) {
+            throw new MeasurementStorageException("Failure saving " + batch, e);
+        } finally {
+            JDBCUtil.safeClose(conn);
+        }
+    }
+
+    public List<MeasurementDataNumeric> findRawData(int scheduleId, long beginTime, long endTime) {
+        List<MeasurementDataNumeric> result = new ArrayList<MeasurementDataNumeric>();
+        String table = MeasurementDataManagerUtility.getCurrentRawTable();
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            ps = connection.prepareStatement( // TODO supply real impl that spans multiple tables
+                "SELECT time_stamp,value FROM " + table + " WHERE schedule_id= ? AND time_stamp BETWEEN ? AND ?"
+                    + " ORDER BY time_stamp");
+            ps.setLong(1, scheduleId);
+            ps.setLong(2, beginTime);
+            ps.setLong(3, endTime);
+            rs = ps.executeQuery();
+
+            while (rs.next()) {
+                MeasurementDataNumeric point = new MeasurementDataNumeric(rs.getLong(1), scheduleId, rs.getDouble(2));
+                result.add(point);
+            }
+        } catch (SQLException e) {
+            throw new MeasurementStorageException("Failure reading raw data of schedule [" + scheduleId + "]", e);
+        } finally {
+            JDBCUtil.safeClose(connection, ps, rs);
+        }
+
+        return result;
+    }
+
+    public MeasurementDataNumeric getLatestValue(int scheduleId) {
+        return getUtility().getLatestValueForSchedule(scheduleId);
+    }
+
+    public MeasurementAggregate getAggregate(int scheduleId, long beginTime, long endTime) {
+        return getUtility().getAggregateByScheduleId(beginTime, endTime, scheduleId);
+    }
+
+    public MeasurementAggregate getAggregate(int definitionId, EntityContext context, long beginTime, long endTime) {
+        return getUtility().getAggregateByDefinitionAndContext(beginTime, endTime, definitionId, context);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int scheduleId, long beginTime, long endTime,
+        int numDataPoints) {
+        return getUtility().getMeasurementDataAggregatesForSchedule(beginTime, endTime, scheduleId, numDataPoints);
+    }
+
+    public List<MeasurementDataNumericHighLowComposite> findDataPoints(int definitionId, EntityContext context,
+        long beginTime, long endTime, int numDataPoints) {
+        return getUtility().getMeasurementDataAggregatesForContext(beginTime, endTime, context, definitionId,
+            numDataPoints).get(0);
+    }
+
+    public void scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo,
+        RollupVisitor visitor) {
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            ps = connection.prepareStatement(DATA_1H_SELECT);
+            ps.setFetchSize(1000);
+            ps.setInt(1, firstScheduleId);
+            ps.setInt(2, lastScheduleId);
+            ps.setLong(3, after);
+            ps.setLong(4, upTo);
+            rs = ps.executeQuery();
+
+            while (rs.next()) {
+                double value = rs.getDouble(3);
+                if (rs.wasNull()) {
+                    continue;
+                }
+                double min = rs.getDouble(4);
+                if (rs.wasNull()) {
+                    min = value;
+                }
+                double max = rs.getDouble(5);
+                if (rs.wasNull()) {
+                    max = value;
+                }
+                visitor.rollup(rs.getInt(1), rs.getLong(2), value, min, max);
+            }
+        } catch (SQLException e) {
+            throw new MeasurementStorageException("Failure reading 1h data of schedules [" + firstScheduleId + ".."
+                + lastScheduleId + "]", e);
+        } finally {
+            JDBCUtil.safeClose(connection, ps, rs);
+        }
+    }
+
+    public Long getLatestOneHourTimestamp() {
+        Connection connection = null;
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            connection = dataSource.getConnection();
+            st = connection.createStatement();
+            rs = st.executeQuery("SELECT MAX(time_stamp) FROM RHQ_MEASUREMENT_DATA_NUM_1H");
+            if (rs.next()) {
+                long latest = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    return latest;
+                }
+            }
+            return null;
+        } catch (SQLException e) {
+            throw new MeasurementStorageException("Failure reading the newest 1h data", e);
+        } finally {
+            JDBCUtil.safeClose(connection, st, rs);
+        }
+    }
+
+    /**
+     * The rollups of the tables are computed by the SQL of the compression manager.
+     */
+    public void compressAndPurge(long now, long purge1h, long purge6h, long purge1d) throws Exception {
+        LookupUtil.getMeasurementCompressionManager().compressAndPurgeTables(now, purge1h, purge6h, purge1d);
+    }
+
+    public void shutdown() {
+    }
+
+    private MeasurementDataManagerUtility getUtility() {
+        return MeasurementDataManagerUtility.getInstance(dataSource);
+    }
+}
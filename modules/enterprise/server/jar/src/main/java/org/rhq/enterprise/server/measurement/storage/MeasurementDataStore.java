@@ -0,0 +1,142 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.rhq.core.domain.common.EntityContext;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowComposite;
+import org.rhq.enterprise.server.measurement.MeasurementAggregate;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+
+/**
+ * Storage of numeric measurement data: the raw values the agents report and their 1 hour, 6 hour and 1 day
+ * rollups. The measurement data manager, the compression manager and the chart queries go through this rather than
+ * through the raw and rollup tables themselves, so the data can live somewhere other than the relational database.
+ * <p/>
+ * Implementations must be thread safe. Which one is used is decided by {@link MeasurementDataStoreFactory}.
+ * <p/>
+ * Traits, call time data, baselines and out-of-bounds are not covered; they stay in the relational database. The
+ * baseline and out-of-bounds calculations read the 1 hour data they are computed from through
+ * {@link #scanOneHourData(int, int, long, long, RollupVisitor)}.
+ */
+public interface MeasurementDataStore {
+
+    /**
+     * Receives the rollups found by {@link MeasurementDataStore#scanOneHourData(int, int, long, long, RollupVisitor)}.
+     */
+    interface RollupVisitor {
+        void rollup(int scheduleId, long timestamp, double value, double min, double max);
+    }
+
+    /**
+     * Stores raw numeric data. Values that are null, NaN or infinite are skipped.
+     *
+     * @param  data the data points, possibly of many schedules
+     *
+     * @return the number of data points stored
+     *
+     * @throws org.rhq.enterprise.server.measurement.MeasurementStorageException if the data could not be stored
+     */
+    int addNumericData(Collection<MeasurementDataNumeric> data);
+
+    /**
+     * Stores a batch of raw numeric data as collected by the bulk ingest buffer.
+     *
+     * @param  batch the data points, possibly of many schedules
+     *
+     * @return the number of data points stored
+     *
+     * @throws org.rhq.enterprise.server.measurement.MeasurementStorageException if the data could not be stored
+     */
+    int addNumericData(NumericDataBatch batch);
+
+    /**
+     * @return the raw data points of the given schedule with a timestamp between <code>beginTime</code> and
+     *         <code>endTime</code> (inclusive), oldest first
+     */
+    List<MeasurementDataNumeric> findRawData(int scheduleId, long beginTime, long endTime);
+
+    /**
+     * @return the most recent raw data point of the given schedule, or <code>null</code> if there is none
+     */
+    MeasurementDataNumeric getLatestValue(int scheduleId);
+
+    /**
+     * @return the minimum, average and maximum of the given schedule's data between the two times; its values are
+     *         NaN if there is no data
+     */
+    MeasurementAggregate getAggregate(int scheduleId, long beginTime, long endTime);
+
+    /**
+     * @return the minimum, average and maximum of the data between the two times of all the schedules of the given
+     *         definition in the given context; its values are NaN if there is no data
+     */
+    MeasurementAggregate getAggregate(int definitionId, EntityContext context, long beginTime, long endTime);
+
+    /**
+     * Splits the time between <code>beginTime</code> and <code>endTime</code> into <code>numDataPoints</code>
+     * intervals and returns the average, high and low of the given schedule's data for each of them. Raw data is used
+     * while it is still kept for the begin time; after that the coarsest rollup that is still kept is used.
+     *
+     * @return one data point per interval, oldest first; its values are NaN if the interval holds no data
+     */
+    List<MeasurementDataNumericHighLowComposite> findDataPoints(int scheduleId, long beginTime, long endTime,
+        int numDataPoints);
+
+    /**
+     * Like {@link #findDataPoints(int, long, long, int)}, only over all the schedules of the given definition in the
+     * given context.
+     */
+    List<MeasurementDataNumericHighLowComposite> findDataPoints(int definitionId, EntityContext context,
+        long beginTime, long endTime, int numDataPoints);
+
+    /**
+     * Passes the 1 hour rollups of the schedules between <code>firstScheduleId</code> and <code>lastScheduleId</code>
+     * (inclusive) with a timestamp after <code>after</code> and up to <code>upTo</code> (inclusive) to the visitor,
+     * in no particular order. A minimum or maximum that is not known is passed as the value itself.
+     */
+    void scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo, RollupVisitor visitor);
+
+    /**
+     * @return the timestamp of the newest 1 hour rollup, or <code>null</code> if there is none
+     */
+    Long getLatestOneHourTimestamp();
+
+    /**
+     * Rolls up the raw data into 1 hour, the 1 hour data into 6 hour and the 6 hour data into 1 day intervals, as
+     * far as complete intervals exist before <code>now</code>, and purges the data that is older than it is to be
+     * kept. Data is never purged before it has been rolled up.
+     *
+     * @param now     the current time, rounded down to the hour
+     * @param purge1h how long to keep the 1 hour data, in milliseconds
+     * @param purge6h how long to keep the 6 hour data, in milliseconds
+     * @param purge1d how long to keep the 1 day data, in milliseconds
+     *
+     * @throws Exception if the compression failed; it will be resumed by the next call
+     */
+    void compressAndPurge(long now, long purge1h, long purge6h, long purge1d) throws Exception;
+
+    /**
+     * Releases the resources held by this store. It must not be used afterwards.
+     */
+    void shutdown();
+}
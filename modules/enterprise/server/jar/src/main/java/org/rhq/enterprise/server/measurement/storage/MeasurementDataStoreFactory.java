@@ -0,0 +1,186 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.util.jdbc.JDBCUtil;
+import org.rhq.enterprise.server.measurement.MeasurementStorageException;
+import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * Creates the server wide {@link MeasurementDataStore}. The store is picked by the system property
+ * {@link #STORE_PROPERTY}: <code>jdbc</code> (the default) keeps the numeric data in the relational tables,
+ * <code>columnar</code> keeps it in a {@link ColumnarFileMeasurementDataStore} in the directory named by
+ * {@link #DIRECTORY_PROPERTY}. Switching stores does not migrate existing data.
+ * <p/>
+ * The columnar store keeps the data on the local disk of one server, where the other servers of a cloud cannot see
+ * it, so it is refused if more than one server is installed and the JDBC store is used instead.
+ * <p/>
+ * The chart data points of either store can be cached by a {@link CachingMeasurementDataStore} of at most
+ * {@link #CHART_CACHE_SIZE_PROPERTY} bytes. The cache is off (0) by default: it aligns the buckets of a graph to
+ * multiples of their width, so a cached graph can start up to one bucket later than the same graph read from the
+ * store.
+ */
+public class MeasurementDataStoreFactory {
+
+    public static final String STORE_PROPERTY = "rhq.server.measurement.storage";
+    public static final String DIRECTORY_PROPERTY = "rhq.server.measurement.storage.dir";
+
+    public static final String CHART_CACHE_SIZE_PROPERTY = "rhq.server.measurement.chart-cache.max-bytes";
+    public static final String CHART_CACHE_SETTLE_PROPERTY = "rhq.server.measurement.chart-cache.settle-ms";
+    public static final String CHART_CACHE_TTL_PROPERTY = "rhq.server.measurement.chart-cache.ttl-ms";
+
+    public static final String STORE_JDBC = "jdbc";
+    public static final String STORE_COLUMNAR = "columnar";
+
+    private static final long DEFAULT_CHART_CACHE_SIZE = 0L;
+    private static final long DEFAULT_CHART_CACHE_SETTLE = 2L * 60L * 1000L;
+    private static final long DEFAULT_CHART_CACHE_TTL = 15L * 60L * 1000L;
+
+    private static final Log LOG = LogFactory.getLog(MeasurementDataStoreFactory.class);
+
+    private static MeasurementDataStore store;
+
+    private MeasurementDataStoreFactory() {
+    }
+
+    /**
+     * Returns the configured store, creating it on first use.
+     *
+     * @param dataSource the RHQ data source, used by the JDBC store and to resolve the schedules of a context
+     */
+    public static synchronized MeasurementDataStore getStore(DataSource dataSource) {
+        if (store == null) {
+            store = createStore(dataSource);
+
+            long cacheSize = getLongProperty(CHART_CACHE_SIZE_PROPERTY, DEFAULT_CHART_CACHE_SIZE);
+            if (cacheSize > 0) {
+                store = new CachingMeasurementDataStore(store, MeasurementDataManagerUtility.getInstance(dataSource),
+                    getTransactionSynchronizationRegistry(), cacheSize,
+                    getLongProperty(CHART_CACHE_SETTLE_PROPERTY, DEFAULT_CHART_CACHE_SETTLE),
+                    getLongProperty(CHART_CACHE_TTL_PROPERTY, DEFAULT_CHART_CACHE_TTL));
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return <code>true</code> if the given store keeps the data in the relational tables
+     */
+    public static boolean isJdbcStore(MeasurementDataStore store) {
+        if (store instanceof CachingMeasurementDataStore) {
+            store = ((CachingMeasurementDataStore) store).getDelegate();
+        }
+        return store instanceof JdbcMeasurementDataStore;
+    }
+
+    private static TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        try {
+            return LookupUtil.getTransactionSynchronizationRegistry();
+        } catch (RuntimeException e) {
+            LOG.warn("The chart cache drops the buckets of inserted data before their transaction commits: " + e);
+            return null;
+        }
+    }
+
+    private static MeasurementDataStore createStore(DataSource dataSource) {
+        String type = System.getProperty(STORE_PROPERTY, STORE_JDBC).trim();
+
+        if (STORE_COLUMNAR.equalsIgnoreCase(type) && !isSingleServer(dataSource)) {
+            LOG.error("The [" + STORE_COLUMNAR + "] measurement data store set in " + STORE_PROPERTY
+                + " can only be used with a single server, using [" + STORE_JDBC + "]");
+            return new JdbcMeasurementDataStore(dataSource);
+        }
+
+        if (STORE_COLUMNAR.equalsIgnoreCase(type)) {
+            File directory = getDirectory();
+            try {
+                return new ColumnarFileMeasurementDataStore(directory, MeasurementDataManagerUtility
+                    .getInstance(dataSource));
+            } catch (Exception e) {
+                throw new MeasurementStorageException("Could not open the measurement data store in " + directory, e);
+            }
+        }
+
+        if (!STORE_JDBC.equalsIgnoreCase(type)) {
+            LOG.warn("Unknown measurement data store [" + type + "] set in " + STORE_PROPERTY + ", using ["
+                + STORE_JDBC + "]");
+        }
+        return new JdbcMeasurementDataStore(dataSource);
+    }
+
+    /**
+     * @return <code>true</code> if no more than one server is installed; <code>false</code> if there are more, or
+     *         if they could not be counted
+     */
+    private static boolean isSingleServer(DataSource dataSource) {
+        Connection conn = null;
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            st = conn.createStatement();
+            rs = st.executeQuery("SELECT COUNT(*) FROM RHQ_SERVER");
+            return rs.next() && (rs.getInt(1) <= 1);
+        } catch (SQLException e) {
+            LOG.warn("Could not count the installed servers: " + e);
+            return false;
+        } finally {
+            JDBCUtil.safeClose(conn, st, rs);
+        }
+    }
+
+    private static File getDirectory() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null) {
+            directory = new File(System.getProperty("jboss.server.data.dir", "."), "rhq-metrics").getPath();
+        }
+        return new File(directory);
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        try {
+            return Long.parseLong(System.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Closes the store, if one was created.
+     */
+    public static synchronized void shutdown() {
+        if (store != null) {
+            store.shutdown();
+            store = null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.measurement.storage;
+
+import org.rhq.core.domain.common.EntityContext;
+
+/**
+ * Resolves the schedules a chart or aggregate query is about, for {@link MeasurementDataStore stores} that can not
+ * join against the inventory themselves.
+ */
+public interface ScheduleIdResolver {
+
+    /**
+     * @return the ids of the schedules of the given definition in the given context, in no particular order
+     */
+    int[] getScheduleIds(int definitionId, EntityContext context);
+}
@@ -45,6 +45,7 @@ import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.measurement.MeasurementAggregate;
 import org.rhq.enterprise.server.measurement.MeasurementNotFoundException;
+import org.rhq.enterprise.server.measurement.storage.ScheduleIdResolver;
 import org.rhq.enterprise.server.util.LookupUtil;
 
 /**
@@ -59,7 +60,7 @@ import org.rhq.enterprise.server.util.LookupUtil;
  * @author Greg Hinkle
  * @author Joseph Marques
  */
-public class MeasurementDataManagerUtility {
+public class MeasurementDataManagerUtility implements ScheduleIdResolver {
     private static final Log LOG = LogFactory.getLog(MeasurementDataManagerUtility.class);
 
     public static final int STORED_DAYS = 7;
@@ -157,6 +158,34 @@ public class MeasurementDataManagerUtility {
         }
     }
 
+    public List<MeasurementDataNumericHighLowComposite> getMeasurementDataAggregatesForSchedule(long beginTime,
+        long endTime, int scheduleId, int numDataPoints) throws MeasurementNotFoundException {
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        Connection connection = null;
+
+        try {
+            String condition = "         AND d.schedule_id = ? \n";
+
+            connection = datasource.getConnection();
+            ps = getFullQuery("getMeasurementDataAggregatesForSchedule", connection, beginTime, endTime,
+                numDataPoints, condition, scheduleId);
+            rs = ps.executeQuery();
+
+            List<MeasurementDataNumericHighLowComposite> compositeList = new ArrayList<MeasurementDataNumericHighLowComposite>();
+            while (rs.next()) {
+                compositeList.add(fillHighLowCompositeFromResultSet(rs));
+            }
+
+            return compositeList;
+        } catch (SQLException e) {
+            throw new MeasurementNotFoundException(e);
+        } finally {
+            JDBCUtil.safeClose(connection, ps, rs);
+        }
+    }
+
     public MeasurementAggregate getAggregateByScheduleId(long beginTime, long endTime, long scheduleId)
         throws MeasurementNotFoundException {
 
@@ -210,7 +239,53 @@ public class MeasurementDataManagerUtility {
         }
     }
 
+    public int[] getScheduleIds(int definitionId, EntityContext context) throws MeasurementNotFoundException {
+        String scheduleSubQuery = getScheduleSubQuery(context);
+        if (scheduleSubQuery == null) {
+            return new int[0];
+        }
+
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+
+        try {
+            connection = datasource.getConnection();
+            ps = connection.prepareStatement(scheduleSubQuery);
+            int i = 1;
+            for (Object param : getBindParamsByDefinitionAndContext(definitionId, context)) {
+                ps.setObject(i++, param);
+            }
+            rs = ps.executeQuery();
+
+            List<Integer> ids = new ArrayList<Integer>();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+
+            int[] scheduleIds = new int[ids.size()];
+            for (i = 0; i < scheduleIds.length; i++) {
+                scheduleIds[i] = ids.get(i);
+            }
+            return scheduleIds;
+        } catch (SQLException e) {
+            throw new MeasurementNotFoundException(e);
+        } finally {
+            JDBCUtil.safeClose(connection, ps, rs);
+        }
+    }
+
     private String getQueryConditionsByDefinitionAndContext(int definitionId, EntityContext context) {
+        String scheduleSubQuery = getScheduleSubQuery(context);
+
+        if (scheduleSubQuery != null) {
+            return "         AND d.schedule_id IN ( " + scheduleSubQuery + " ) \n";
+        } else {
+            return ""; // no condition filter for unknown entity context
+        }
+    }
+
+    private String getScheduleSubQuery(EntityContext context) {
         String scheduleSubQuery = null;
 
         if (context.type == EntityContext.Type.Resource) {
@@ -241,11 +316,7 @@ public class MeasurementDataManagerUtility {
 
         }
 
-        if (scheduleSubQuery != null) {
-            return "         AND d.schedule_id IN ( " + scheduleSubQuery + " ) \n";
-        } else {
-            return ""; // no condition filter for unknown entity context
-        }
+        return scheduleSubQuery;
     }
 
     private Object[] getBindParamsByDefinitionAndContext(int definitionId, EntityContext context) {
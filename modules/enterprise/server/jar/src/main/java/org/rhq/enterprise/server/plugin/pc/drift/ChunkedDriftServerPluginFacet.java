@@ -0,0 +1,54 @@
+/*
+ * RHQ Management Platform
+ * Copyright 2012, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.plugin.pc.drift;
+
+import java.io.File;
+import java.util.Set;
+
+import org.rhq.core.domain.auth.Subject;
+
+/**
+ * Optionally implemented by drift server plugins that store large drift files as content defined chunks, see
+ * {@link org.rhq.common.drift.ContentChunker ContentChunker}. Agents then only send the chunks the plugin does not
+ * store yet, along with a manifest of each file's chunks, and the plugin's
+ * {@link DriftServerPluginFacet#saveChangeSetFiles(Subject, File) saveChangeSetFiles} must accept such
+ * manifests and chunks in the content zip file. Plugins not implementing this facet are always sent whole files.
+ */
+public interface ChunkedDriftServerPluginFacet extends DriftServerPluginFacet {
+
+    /**
+     * @param subject
+     * @param chunkHashes the SHA-256 hashes of content chunks
+     * @return those of the given hashes for which no chunk is stored
+     */
+    Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes);
+
+    /**
+     * Does the same as {@link #saveChangeSetFiles(Subject, File)} and also reports how much content was stored and how
+     * much of it the agent actually sent.
+     *
+     * @param subject
+     * @param changeSetFilesZip
+     * @return a summary that only carries the content byte counts, see
+     * {@link DriftChangeSetSummary#getContentBytes()} and {@link DriftChangeSetSummary#getTransferredContentBytes()}
+     * @throws Exception
+     */
+    DriftChangeSetSummary saveChunkedChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception;
+}
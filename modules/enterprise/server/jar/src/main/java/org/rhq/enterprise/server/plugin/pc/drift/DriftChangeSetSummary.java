@@ -43,6 +43,8 @@ public class DriftChangeSetSummary {
     private DriftHandlingMode driftHandlingMode;
     private List<String> driftPathnames;
     private boolean isInitialChangeSet;
+    private long contentBytes;
+    private long transferredContentBytes;
 
     /**
      * Because this summary object is used within the alert subsystem, this toString is used to display
@@ -126,4 +128,39 @@ public class DriftChangeSetSummary {
         this.isInitialChangeSet = isInitialChangeSet;
     }
 
+    /**
+     * @return the number of bytes of drift file content stored for the change set
+     */
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    public void setContentBytes(long contentBytes) {
+        this.contentBytes = contentBytes;
+    }
+
+    /**
+     * @return the number of content bytes the agent actually had to send. This is less than
+     * {@link #getContentBytes()} when the content was sent in chunks and some of them were already stored.
+     */
+    public long getTransferredContentBytes() {
+        return transferredContentBytes;
+    }
+
+    public void setTransferredContentBytes(long transferredContentBytes) {
+        this.transferredContentBytes = transferredContentBytes;
+    }
+
+    public void addContentBytes(long contentBytes, long transferredContentBytes) {
+        this.contentBytes += contentBytes;
+        this.transferredContentBytes += transferredContentBytes;
+    }
+
+    /**
+     * @return the number of content bytes that did not have to be sent because they were already stored
+     */
+    public long getContentBytesSaved() {
+        return contentBytes - transferredContentBytes;
+    }
+
 }
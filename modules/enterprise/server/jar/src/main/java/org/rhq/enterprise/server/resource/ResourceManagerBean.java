@@ -125,6 +125,8 @@ import org.rhq.enterprise.server.measurement.MeasurementScheduleManagerLocal;
 import org.rhq.enterprise.server.resource.disambiguation.DisambiguationUpdateStrategy;
 import org.rhq.enterprise.server.resource.disambiguation.Disambiguator;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 import org.rhq.enterprise.server.util.QueryUtility;
@@ -161,6 +163,8 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
     @EJB
     private ResourceTypeManagerLocal typeManager;
     @EJB
+    private GroupDefinitionManagerLocal groupDefinitionManager;
+    @EJB
     //@IgnoreDependency
     private MeasurementScheduleManagerLocal measurementScheduleManager;
 
@@ -199,6 +203,11 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
         Subject overlord = this.subjectManager.getOverlord();
         updateImplicitMembership(overlord, resource);
 
+        if (resource.getInventoryStatus() == InventoryStatus.COMMITTED) {
+            groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+                .singletonList(resource.getId()));
+        }
+
         // Because this resource is in the process of creation it has no measurement schedules
         // defined. These are needed before applying alert templates for the resource type.
         // This call will create the schedules as necessary and, as a side effect, apply the templates.
@@ -237,6 +246,8 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
         if (!persistedResource.getName().equals(resource.getName())) {
             persistedResource.setName(resource.getName());
             updateAncestry(persistedResource);
+            groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+                .singletonList(persistedResource.getId()));
         }
         persistedResource.setLocation(resource.getLocation());
         persistedResource.setDescription(resource.getDescription());
@@ -633,6 +644,8 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
         resource.setInventoryStatus(newStatus);
         resource.setItime(now);
         resource.setAgentSynchronizationNeeded();
+        groupDefinitionManager.recordResourceChanges(ExpressionDependency.INVENTORY, Collections
+            .singletonList(resource.getId()));
     }
 
     @SuppressWarnings("unchecked")
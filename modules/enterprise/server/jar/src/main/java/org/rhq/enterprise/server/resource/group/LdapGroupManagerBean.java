@@ -56,6 +56,7 @@ import org.rhq.core.domain.util.PageControl;
 import org.rhq.core.domain.util.PageList;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.auth.SubjectManagerLocal;
+import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
 import org.rhq.enterprise.server.authz.RequiredPermission;
 import org.rhq.enterprise.server.exception.LdapCommunicationException;
 import org.rhq.enterprise.server.exception.LdapFilterException;
@@ -83,6 +84,9 @@ public class LdapGroupManagerBean implements LdapGroupManagerLocal {
     @EJB
     private SubjectManagerLocal subjectManager;
 
+    @EJB
+    private AuthorizationManagerLocal authorizationManager;
+
     @EJB
     private SystemManagerLocal systemManager;
 
@@ -237,6 +241,8 @@ public class LdapGroupManagerBean implements LdapGroupManagerLocal {
             sub.addRole(role);
             sub.addLdapRole(role);
         }
+        // a role the subject lost in LDAP must stop granting its permissions right away
+        authorizationManager.invalidatePermissionIndexForSubjects(subjectId);
     }
 
     public PageList<LdapGroup> findLdapGroupsByRole(int roleId, PageControl pageControl) {
@@ -234,6 +234,7 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
             newlyAttachedGroup.setRecursive(false);
             clearImplicitResources(groupId);
             makeImplicitMirrorExplicit(groupId);
+            authorizationManager.invalidatePermissionIndexForGroups(groupId);
         }
 
         if (updateMembership) {
@@ -293,6 +294,9 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
         ResourceGroupDeleteException {
         ResourceGroup group = getResourceGroupById(subject, groupId, null);
 
+        // while the roles still reference the group
+        authorizationManager.invalidatePermissionIndexForGroups(groupId);
+
         for (Role doomedRoleRelationship : group.getRoles()) {
             group.removeRole(doomedRoleRelationship);
             entityManager.merge(doomedRoleRelationship);
@@ -431,6 +435,8 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
 
         // step 3: add the explicit resources back, this time with the recursive bit flipped on
         addResourcesToGroupImplicit(subject, groupId, explicitResourceIdList, false, true);
+
+        authorizationManager.invalidatePermissionIndexForGroups(groupId);
     }
 
     @RequiredPermission(Permission.MANAGE_INVENTORY)
@@ -456,6 +462,8 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
             addResourcesToGroupExplicit(subject, groupId, batchIds, isRecursive);
         }
 
+        authorizationManager.invalidatePermissionIndexForGroups(groupId);
+
         if (setType) {
             try {
                 setResourceType(groupId);
@@ -605,6 +613,8 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
             removeResourcesFromGroup_helper(subject, groupId, batchIdArray, isRecursive);
         }
 
+        authorizationManager.invalidatePermissionIndexForGroups(groupId);
+
         if (setType) {
             try {
                 setResourceType(groupId);
@@ -705,6 +715,8 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
 
             explicitStatement.executeUpdate();
             implicitStatement.executeUpdate();
+
+            authorizationManager.invalidatePermissionIndexForGroups(groupId);
         } catch (SQLException sqle) {
             log.error("Error removing group resources", sqle);
             throw new ResourceGroupDeleteException("Error removing group resources: " + sqle.getMessage());
@@ -849,6 +861,9 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
                  */
                 //setResourceType(implicitRecursiveGroupId);
             }
+
+            authorizationManager.invalidatePermissionIndexForGroups(ArrayUtils
+                .unwrapCollection(implicitRecursiveGroupIds));
         } catch (Exception e) {
             throw new ResourceGroupUpdateException("Could not add resource[id=" + resource.getId()
                 + "] to necessary implicit groups", e);
@@ -18,20 +18,30 @@
  */
 package org.rhq.enterprise.server.resource.group.definition;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +55,8 @@ import org.rhq.core.domain.server.PersistenceUtility;
 import org.rhq.core.domain.util.PageControl;
 import org.rhq.core.domain.util.PageList;
 import org.rhq.core.util.collection.ArrayUtils;
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.core.util.jdbc.JDBCUtil;
 import org.rhq.enterprise.server.RHQConstants;
 import org.rhq.enterprise.server.auth.SubjectManagerLocal;
 import org.rhq.enterprise.server.authz.AuthorizationManagerLocal;
@@ -61,20 +73,59 @@ import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefini
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionException;
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionNotFoundException;
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionUpdateException;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionEvaluator;
 import org.rhq.core.domain.resource.group.InvalidExpressionException;
 import org.rhq.enterprise.server.resource.group.definition.mbean.GroupDefinitionRecalculationThreadMonitor;
 import org.rhq.enterprise.server.resource.group.definition.mbean.GroupDefinitionRecalculationThreadMonitorMBean;
+import org.rhq.enterprise.server.util.BatchIterator;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 
 @Stateless
+@javax.annotation.Resource(name = "RHQ_DS", mappedName = RHQConstants.DATASOURCE_JNDI_NAME)
 public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal {
     private final Log log = LogFactory.getLog(GroupDefinitionManagerBean.class);
 
+    /**
+     * System property that, when set to false, stops the recording of resource changes; auto-recalculating
+     * DynaGroups are then only updated by their periodic full recalculation.
+     */
+    public static final String INCREMENTAL_RECALCULATION_PROPERTY = "rhq.server.dynagroup.incremental-recalculation";
+
+    // recorded changes applied per incremental recalculation, the rest is left for the next one
+    private static final int MAX_CHANGES_PER_RECALCULATION = 50000;
+
+    // how long the set of changes worth recording is kept before it is computed again from the group definitions
+    private static final long TRACKED_CHANGES_MAX_AGE = 60000L;
+
+    private static final String INSERT_CHANGE = "" //
+        + "INSERT INTO RHQ_GROUP_DEF_RES_CHANGE (RESOURCE_ID, CHANGES, CTIME) VALUES (?, ?, ?)";
+
+    private static final String INSERT_TRAIT_CHANGE = "" //
+        + "INSERT INTO RHQ_GROUP_DEF_RES_CHANGE (RESOURCE_ID, CHANGES, CTIME) " //
+        + "SELECT s.RESOURCE_ID, ?, ? FROM RHQ_MEASUREMENT_SCHED s WHERE s.ID = ?";
+
+    private static final String SELECT_CHANGES = "" //
+        + "SELECT RESOURCE_ID, CHANGES, CTIME FROM RHQ_GROUP_DEF_RES_CHANGE";
+
+    private static final String DELETE_CHANGE = "" //
+        + "DELETE FROM RHQ_GROUP_DEF_RES_CHANGE WHERE RESOURCE_ID = ? AND CHANGES = ? AND CTIME = ?";
+
+    // bit mask of the ExpressionDependency changes some incrementally recalculated group definition depends on
+    private static volatile int trackedChanges;
+    private static volatile long trackedChangesLoadTime;
+
+    // the parsed dependencies of each auto-recalculating group definition, by definition id
+    private static final ConcurrentMap<Integer, DefinitionDependencies> definitionDependencies =
+        new ConcurrentHashMap<Integer, DefinitionDependencies>();
+
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
     private EntityManager entityManager;
 
+    @javax.annotation.Resource(name = "RHQ_DS")
+    private DataSource rhqDs;
+
     @EJB
     private GroupDefinitionManagerLocal groupDefinitionManager; // self, for xactional purposes
 
@@ -131,6 +182,283 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal {
         }
         long totalEnd = System.currentTimeMillis();
         monitor.updateAutoRecalculationThreadTime(totalEnd - totalStart);
+
+        // definitions calculated for the first time may now be recalculated incrementally
+        trackedChangesLoadTime = 0L;
+    }
+
+    @RequiredPermission(Permission.MANAGE_INVENTORY)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void recalculateDynaGroupsIncrementally(Subject subject) {
+        if (!isIncrementalRecalculationEnabled()) {
+            return;
+        }
+
+        List<ResourceChange> changes = findResourceChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, Integer> changesByResourceId = new HashMap<Integer, Integer>();
+        for (ResourceChange change : changes) {
+            Integer previousChanges = changesByResourceId.get(change.resourceId);
+            changesByResourceId.put(change.resourceId, (previousChanges != null) ? (previousChanges | change.changes)
+                : change.changes);
+        }
+
+        GroupDefinitionRecalculationThreadMonitorMBean monitor = GroupDefinitionRecalculationThreadMonitor.getMBean();
+
+        long totalStart = System.currentTimeMillis();
+        for (Map.Entry<Integer, Integer> groupDefinition : findIncrementallyRecalculatedGroupDefinitions().entrySet()) {
+            int groupDefinitionId = groupDefinition.getKey();
+            int dependencies = groupDefinition.getValue();
+
+            List<Integer> resourceIds = new ArrayList<Integer>();
+            for (Map.Entry<Integer, Integer> resourceChanges : changesByResourceId.entrySet()) {
+                if ((resourceChanges.getValue() & dependencies) != 0) {
+                    resourceIds.add(resourceChanges.getKey());
+                }
+            }
+            if (resourceIds.isEmpty()) {
+                continue;
+            }
+
+            long singleStart = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                Set<Integer> changedResourceGroupIds = new HashSet<Integer>();
+                for (List<Integer> resourceIdBatch : new BatchIterator<Integer>(resourceIds)) {
+                    changedResourceGroupIds.addAll(groupDefinitionManager.calculateGroupMembershipIncrementally(
+                        subject, groupDefinitionId, resourceIdBatch));
+                }
+                // see calculateGroupMembership, the group category may have changed with the membership
+                for (Integer changedResourceGroupId : changedResourceGroupIds) {
+                    resourceGroupManager.setResourceType(changedResourceGroupId);
+                }
+                success = true;
+            } catch (Throwable t) {
+                // the next full recalculation of the definition will correct its DynaGroups
+                log.error("Error incrementally recalculating DynaGroups for GroupDefinition[id=" + groupDefinitionId
+                    + "]", t);
+            }
+            long singleEnd = System.currentTimeMillis();
+
+            try {
+                GroupDefinition attachedGroupDefinition = getById(groupDefinitionId);
+                monitor.updateIncrementalStatistic(attachedGroupDefinition.getName(), resourceIds.size(), success,
+                    singleEnd - singleStart);
+            } catch (Throwable t) {
+                log.error("Error updating DynaGroup statistics GroupDefinition[id=" + groupDefinitionId + "]", t);
+                // ignore error during statistic update
+            }
+        }
+
+        // only delete what was read, changes recorded in the meantime are applied by the next recalculation
+        deleteResourceChanges(changes);
+
+        long totalEnd = System.currentTimeMillis();
+        monitor.updateIncrementalRecalculationThreadTime(totalEnd - totalStart);
+    }
+
+    public void recordResourceChanges(ExpressionDependency change, Collection<Integer> resourceIds) {
+        if ((resourceIds == null) || resourceIds.isEmpty() || ((getTrackedChanges() & change.getMask()) == 0)) {
+            return;
+        }
+
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = rhqDs.getConnection();
+            ps = conn.prepareStatement(INSERT_CHANGE);
+
+            long now = System.currentTimeMillis();
+            for (Integer resourceId : resourceIds) {
+                ps.setInt(1, resourceId);
+                ps.setInt(2, change.getMask());
+                ps.setLong(3, now);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } catch (SQLException e) {
+            // the next full recalculation will pick the change up
+            log.warn("Failure recording " + change + " changes for DynaGroups:\n" + ThrowableUtil.getAllMessages(e));
+        } finally {
+            JDBCUtil.safeClose(conn, ps, null);
+        }
+    }
+
+    public void recordTraitChanges(Collection<Integer> scheduleIds) {
+        if ((scheduleIds == null) || scheduleIds.isEmpty()
+            || ((getTrackedChanges() & ExpressionDependency.TRAIT.getMask()) == 0)) {
+            return;
+        }
+
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = rhqDs.getConnection();
+            ps = conn.prepareStatement(INSERT_TRAIT_CHANGE);
+
+            long now = System.currentTimeMillis();
+            for (Integer scheduleId : scheduleIds) {
+                ps.setInt(1, ExpressionDependency.TRAIT.getMask());
+                ps.setLong(2, now);
+                ps.setInt(3, scheduleId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } catch (SQLException e) {
+            // the next full recalculation will pick the change up
+            log.warn("Failure recording trait changes for DynaGroups:\n" + ThrowableUtil.getAllMessages(e));
+        } finally {
+            JDBCUtil.safeClose(conn, ps, null);
+        }
+    }
+
+    private static class ResourceChange {
+        private final int resourceId;
+        private final int changes;
+        private final long ctime;
+
+        private ResourceChange(int resourceId, int changes, long ctime) {
+            this.resourceId = resourceId;
+            this.changes = changes;
+            this.ctime = ctime;
+        }
+    }
+
+    private List<ResourceChange> findResourceChanges() {
+        List<ResourceChange> changes = new ArrayList<ResourceChange>();
+
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = rhqDs.getConnection();
+            ps = conn.prepareStatement(SELECT_CHANGES);
+            ps.setMaxRows(MAX_CHANGES_PER_RECALCULATION);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                changes.add(new ResourceChange(rs.getInt(1), rs.getInt(2), rs.getLong(3)));
+            }
+        } catch (SQLException e) {
+            log.warn("Failure reading resource changes for DynaGroups:\n" + ThrowableUtil.getAllMessages(e));
+        } finally {
+            JDBCUtil.safeClose(conn, ps, rs);
+        }
+
+        return changes;
+    }
+
+    private void deleteResourceChanges(List<ResourceChange> changes) {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = rhqDs.getConnection();
+            ps = conn.prepareStatement(DELETE_CHANGE);
+
+            for (List<ResourceChange> batch : new BatchIterator<ResourceChange>(changes)) {
+                for (ResourceChange change : batch) {
+                    ps.setInt(1, change.resourceId);
+                    ps.setInt(2, change.changes);
+                    ps.setLong(3, change.ctime);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        } catch (SQLException e) {
+            // applying the same changes again is harmless, they are deleted by the next recalculation
+            log.warn("Failure deleting resource changes for DynaGroups:\n" + ThrowableUtil.getAllMessages(e));
+        } finally {
+            JDBCUtil.safeClose(conn, ps, null);
+        }
+    }
+
+    private boolean isIncrementalRecalculationEnabled() {
+        return Boolean.valueOf(System.getProperty(INCREMENTAL_RECALCULATION_PROPERTY, "true"));
+    }
+
+    private int getTrackedChanges() {
+        if (!isIncrementalRecalculationEnabled()) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - trackedChangesLoadTime > TRACKED_CHANGES_MAX_AGE) {
+            int changes = 0;
+            for (Integer dependencies : findIncrementallyRecalculatedGroupDefinitions().values()) {
+                changes |= dependencies;
+            }
+            trackedChanges = changes;
+            trackedChangesLoadTime = now;
+        }
+        return trackedChanges;
+    }
+
+    /**
+     * @return the bit mask of the {@link ExpressionDependency}s of each auto-recalculating group definition, by
+     *         definition id, for the definitions whose expressions only depend on tracked changes and which were
+     *         calculated in full at least once
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Integer, Integer> findIncrementallyRecalculatedGroupDefinitions() {
+        Query query = entityManager.createNamedQuery(GroupDefinition.QUERY_FIND_ALL_RECALCULATING);
+        query.setFlushMode(FlushModeType.COMMIT); // called while recording the changes of the caller's transaction
+        List<GroupDefinition> groupDefinitions = query.getResultList();
+
+        Map<Integer, Integer> results = new HashMap<Integer, Integer>();
+        Set<Integer> groupDefinitionIds = new HashSet<Integer>();
+        for (GroupDefinition groupDefinition : groupDefinitions) {
+            groupDefinitionIds.add(groupDefinition.getId());
+            if (groupDefinition.getLastCalculationTime() == null) {
+                continue;
+            }
+
+            DefinitionDependencies dependencies = definitionDependencies.get(groupDefinition.getId());
+            if (dependencies == null || !dependencies.isFor(groupDefinition.getExpression())) {
+                dependencies = new DefinitionDependencies(groupDefinition.getExpression(),
+                    parseDependencies(groupDefinition));
+                definitionDependencies.put(groupDefinition.getId(), dependencies);
+            }
+            if (dependencies.mask != null) {
+                results.put(groupDefinition.getId(), dependencies.mask);
+            }
+        }
+        // forget deleted definitions and those no longer recalculated automatically
+        definitionDependencies.keySet().retainAll(groupDefinitionIds);
+        return results;
+    }
+
+    /**
+     * @return the bit mask of the {@link ExpressionDependency}s of the definition's expressions, or null if they
+     *         depend on changes that are not tracked or cannot be parsed
+     */
+    private Integer parseDependencies(GroupDefinition groupDefinition) {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        try {
+            for (String expression : groupDefinition.getExpressionAsList()) {
+                evaluator.addExpression(expression);
+            }
+        } catch (InvalidExpressionException iee) {
+            return null; // left to the full recalculation, which reports it
+        }
+
+        Set<ExpressionDependency> dependencies = evaluator.getDependencies();
+        return ExpressionDependency.isTracked(dependencies) ? ExpressionDependency.getMask(dependencies) : null;
+    }
+
+    private static class DefinitionDependencies {
+        private final String expression;
+        private final Integer mask;
+
+        private DefinitionDependencies(String expression, Integer mask) {
+            this.expression = expression;
+            this.mask = mask;
+        }
+
+        private boolean isFor(String expression) {
+            return (this.expression == null) ? (expression == null) : this.expression.equals(expression);
+        }
     }
 
     public GroupDefinition getById(int groupDefinitionId) throws GroupDefinitionNotFoundException {
@@ -358,14 +686,7 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal {
             groupDefinition.getId(), groupByClause);
         int resourceGroupId = 0;
         if (resourceGroup == null) {
-            String newDynamicGroupName = getDynamicGroupName(groupDefinition.getName(), groupByClause);
-
-            resourceGroup = new ResourceGroup(newDynamicGroupName);
-            resourceGroupId = resourceGroupManager.createResourceGroup(overlord, resourceGroup).getId();
-
-            resourceGroup.setRecursive(groupDefinition.isRecursive());
-            resourceGroup.setGroupByClause(groupByClause);
-            groupDefinition.addResourceGroup(resourceGroup);
+            resourceGroupId = createManagedResourceGroup(overlord, groupDefinition, groupByClause);
         } else {
             resourceGroupId = resourceGroup.getId();
         }
@@ -377,8 +698,8 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal {
          * use resourceManager.getExplicitResourceIdsByResourceGroup instead of resourceGroup.getExplicitResources to keep
          * the data we need to pull across the line from the database as small as possible
          */
-        Collection<Integer> existingResourceIds = resourceManager.findExplicitResourceIdsByResourceGroup(resourceGroup
-            .getId());
+        Collection<Integer> existingResourceIds = resourceManager
+            .findExplicitResourceIdsByResourceGroup(resourceGroupId);
 
         Set<Integer> idsToAdd = new HashSet<Integer>(result.getData());
         idsToAdd.removeAll(existingResourceIds);
@@ -397,6 +718,89 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal {
         return resourceGroupId;
     }
 
+    @SuppressWarnings("unchecked")
+    @RequiredPermission(Permission.MANAGE_INVENTORY)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Collection<Integer> calculateGroupMembershipIncrementally(Subject subject, int groupDefinitionId,
+        Collection<Integer> resourceIds) throws GroupDefinitionNotFoundException, InvalidExpressionException {
+        long startTime = System.currentTimeMillis();
+
+        // managed groups are created and changed as overlord, like the full recalculation's jobs do
+        Subject overlord = subjectManager.getOverlord();
+
+        GroupDefinition groupDefinition = getById(groupDefinitionId);
+
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        for (String expression : groupDefinition.getExpressionAsList()) {
+            evaluator.addExpression(expression);
+        }
+        evaluator.setResourceIdRestriction(resourceIds);
+
+        // the managed groups the resources are currently in
+        ManagedGroupMembership membership = new ManagedGroupMembership();
+        Query query = entityManager.createNamedQuery(GroupDefinition.QUERY_FIND_MANAGED_RESOURCE_GROUP_MEMBERS_ADMIN);
+        query.setParameter("groupDefinitionId", groupDefinitionId);
+        query.setParameter("resourceIds", resourceIds);
+        for (Object[] member : (List<Object[]>) query.getResultList()) {
+            membership.addPreviousMember((Integer) member[0], (Integer) member[1]);
+        }
+
+        Set<Integer> changedResourceGroupIds = new HashSet<Integer>();
+        for (ExpressionEvaluator.Result result : evaluator) {
+            if (result == null) {
+                continue; // see calculateGroupMembership
+            }
+
+            String groupByClause = result.getGroupByClause();
+            ResourceGroup resourceGroup = resourceGroupManager.getByGroupDefinitionAndGroupByClause(
+                groupDefinitionId, groupByClause);
+            if (resourceGroup == null && result.getData().isEmpty()) {
+                continue;
+            }
+            int resourceGroupId = (resourceGroup != null) ? resourceGroup.getId() : createManagedResourceGroup(
+                overlord, groupDefinition, groupByClause);
+
+            ManagedGroupMembership.Change change = membership.compare(resourceGroupId, result.getData());
+            if (!change.isEmpty()) {
+                resourceGroupManager.addResourcesToGroup(overlord, resourceGroupId, ArrayUtils
+                    .unwrapCollection(change.getIdsToAdd()));
+                resourceGroupManager.removeResourcesFromGroup(overlord, resourceGroupId, ArrayUtils
+                    .unwrapCollection(change.getIdsToRemove()));
+                changedResourceGroupIds.add(resourceGroupId);
+            }
+        }
+
+        /*
+         * resources left over no longer match the group they are in; groups left empty by this are deleted by the
+         * next full recalculation
+         */
+        for (Map.Entry<Integer, Set<Integer>> doomedMembers : membership.getRemainingMembers().entrySet()) {
+            resourceGroupManager.removeResourcesFromGroup(overlord, doomedMembers.getKey(), ArrayUtils
+                .unwrapCollection(doomedMembers.getValue()));
+            changedResourceGroupIds.add(doomedMembers.getKey());
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        log.debug("calculateGroupMembershipIncrementally took " + (endTime - startTime) + " millis for "
+            + resourceIds.size() + " resources");
+
+        return changedResourceGroupIds;
+    }
+
+    private int createManagedResourceGroup(Subject subject, GroupDefinition groupDefinition, String groupByClause) {
+        String newDynamicGroupName = getDynamicGroupName(groupDefinition.getName(), groupByClause);
+
+        ResourceGroup resourceGroup = new ResourceGroup(newDynamicGroupName);
+        int resourceGroupId = resourceGroupManager.createResourceGroup(subject, resourceGroup).getId();
+
+        resourceGroup.setRecursive(groupDefinition.isRecursive());
+        resourceGroup.setGroupByClause(groupByClause);
+        groupDefinition.addResourceGroup(resourceGroup);
+
+        return resourceGroupId;
+    }
+
     @SuppressWarnings( { "unchecked" })
     public PageList<GroupDefinition> getGroupDefinitions(Subject subject, PageControl pc) {
         pc.initDefaultOrderingField("gd.name");
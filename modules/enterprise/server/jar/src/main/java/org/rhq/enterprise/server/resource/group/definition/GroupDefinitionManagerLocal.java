@@ -18,6 +18,8 @@
  */
 package org.rhq.enterprise.server.resource.group.definition;
 
+import java.util.Collection;
+
 import javax.ejb.Local;
 
 import org.rhq.core.domain.auth.Subject;
@@ -32,6 +34,7 @@ import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefini
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionDeleteException;
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionNotFoundException;
 import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefinitionUpdateException;
+import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionDependency;
 import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionEvaluator;
 import org.rhq.core.domain.resource.group.InvalidExpressionException;
 
@@ -40,6 +43,32 @@ public interface GroupDefinitionManagerLocal {
 
     void recalculateDynaGroups(Subject subject);
 
+    /**
+     * Applies the resource changes recorded with {@link #recordResourceChanges(ExpressionDependency, Collection)} and
+     * {@link #recordTraitChanges(Collection)} to the DynaGroups of the auto-recalculating group definitions whose
+     * expressions only depend on recorded kinds of changes, recalculating the membership of the changed resources
+     * only. The other definitions, and DynaGroups left empty, are handled by {@link #recalculateDynaGroups(Subject)}.
+     */
+    void recalculateDynaGroupsIncrementally(Subject subject);
+
+    /**
+     * Records that the given resources changed, for {@link #recalculateDynaGroupsIncrementally(Subject)}. Nothing is
+     * recorded unless some group definition can be recalculated incrementally and depends on this kind of change.
+     * The change is recorded in the caller's transaction.
+     *
+     * @param change the kind of resource data that changed
+     * @param resourceIds the ids of the changed resources
+     */
+    void recordResourceChanges(ExpressionDependency change, Collection<Integer> resourceIds);
+
+    /**
+     * Records that the values of the traits with the given schedules changed; see
+     * {@link #recordResourceChanges(ExpressionDependency, Collection)}.
+     *
+     * @param scheduleIds the ids of the trait schedules whose value changed
+     */
+    void recordTraitChanges(Collection<Integer> scheduleIds);
+
     GroupDefinition getById(int groupDefinitionId) throws GroupDefinitionNotFoundException;
 
     GroupDefinition createGroupDefinition(Subject subject, GroupDefinition newGroupDefinition)
@@ -55,6 +84,12 @@ public interface GroupDefinitionManagerLocal {
     Integer calculateGroupMembership_helper(Subject subject, int groupDefinitionId, ExpressionEvaluator.Result result)
         throws ResourceGroupDeleteException, GroupDefinitionNotFoundException, GroupDefinitionNotFoundException;
 
+    /**
+     * @return the ids of the DynaGroups whose membership changed
+     */
+    Collection<Integer> calculateGroupMembershipIncrementally(Subject subject, int groupDefinitionId,
+        Collection<Integer> resourceIds) throws GroupDefinitionNotFoundException, InvalidExpressionException;
+
     PageList<GroupDefinition> getGroupDefinitions(Subject subject, PageControl pc);
 
     PageList<GroupDefinition> findGroupDefinitionsByCriteria(Subject subject, ResourceGroupDefinitionCriteria criteria);
@@ -0,0 +1,100 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.resource.group.definition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out the membership changes of a group definition's managed groups when only some resources are
+ * recalculated. It is given the managed groups those resources are in now, then the matching resources of each group
+ * the definition's expressions produce; resources in groups no result names are left over and must be removed.
+ */
+class ManagedGroupMembership {
+
+    /**
+     * The resources to add to and to remove from one managed group.
+     */
+    static class Change {
+        private final Set<Integer> idsToAdd;
+        private final Set<Integer> idsToRemove;
+
+        Change(Set<Integer> idsToAdd, Set<Integer> idsToRemove) {
+            this.idsToAdd = idsToAdd;
+            this.idsToRemove = idsToRemove;
+        }
+
+        Set<Integer> getIdsToAdd() {
+            return idsToAdd;
+        }
+
+        Set<Integer> getIdsToRemove() {
+            return idsToRemove;
+        }
+
+        boolean isEmpty() {
+            return idsToAdd.isEmpty() && idsToRemove.isEmpty();
+        }
+    }
+
+    private final Map<Integer, Set<Integer>> previousMembers = new HashMap<Integer, Set<Integer>>();
+
+    /**
+     * Records that the resource is currently an explicit member of the managed group.
+     */
+    void addPreviousMember(int resourceGroupId, int resourceId) {
+        Set<Integer> members = previousMembers.get(resourceGroupId);
+        if (members == null) {
+            members = new HashSet<Integer>();
+            previousMembers.put(resourceGroupId, members);
+        }
+        members.add(resourceId);
+    }
+
+    /**
+     * @param resourceGroupId the managed group of one result of the expressions
+     * @param matchingResourceIds the recalculated resources that belong to the group
+     * @return the changes that make the group's membership match, as far as the recalculated resources go
+     */
+    Change compare(int resourceGroupId, Collection<Integer> matchingResourceIds) {
+        Set<Integer> existingResourceIds = previousMembers.remove(resourceGroupId);
+        if (existingResourceIds == null) {
+            existingResourceIds = new HashSet<Integer>();
+        }
+
+        Set<Integer> idsToAdd = new HashSet<Integer>(matchingResourceIds);
+        idsToAdd.removeAll(existingResourceIds);
+
+        Set<Integer> idsToRemove = new HashSet<Integer>(existingResourceIds);
+        idsToRemove.removeAll(matchingResourceIds);
+
+        return new Change(idsToAdd, idsToRemove);
+    }
+
+    /**
+     * @return the members of the groups no result was compared for, by group id; they no longer match the group they
+     *         are in and must be removed from it
+     */
+    Map<Integer, Set<Integer>> getRemainingMembers() {
+        return previousMembers;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.resource.group.definition.framework;
+
+import java.util.Collection;
+
+/**
+ * The kinds of resource data a group definition expression reads. Changes to the tracked kinds are recorded per
+ * resource, so that the membership of definitions depending only on tracked kinds can be recalculated for just the
+ * changed resources; definitions depending on anything else are only recalculated in full.
+ */
+public enum ExpressionDependency {
+    /** inventory status, name, version, type and id of the resource itself */
+    INVENTORY(1, true), //
+    /** the latest value of a trait of the resource */
+    TRAIT(2, true), //
+    /** the plugin configuration of the resource */
+    PLUGIN_CONFIGURATION(4, true), //
+    AVAILABILITY(8, false), //
+    RESOURCE_CONFIGURATION(16, false), //
+    /** anything on the parent, ancestors or children of the resource */
+    RELATIVES(32, false);
+
+    private final int mask;
+    private final boolean tracked;
+
+    private ExpressionDependency(int mask, boolean tracked) {
+        this.mask = mask;
+        this.tracked = tracked;
+    }
+
+    /**
+     * @return the bit of this kind in a change mask; stored in the database, so never renumber
+     */
+    public int getMask() {
+        return mask;
+    }
+
+    /**
+     * @return true if changes of this kind are recorded for incremental recalculation
+     */
+    public boolean isTracked() {
+        return tracked;
+    }
+
+    public static int getMask(Collection<ExpressionDependency> dependencies) {
+        int result = 0;
+        for (ExpressionDependency dependency : dependencies) {
+            result |= dependency.mask;
+        }
+        return result;
+    }
+
+    public static boolean isTracked(Collection<ExpressionDependency> dependencies) {
+        for (ExpressionDependency dependency : dependencies) {
+            if (!dependency.tracked) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
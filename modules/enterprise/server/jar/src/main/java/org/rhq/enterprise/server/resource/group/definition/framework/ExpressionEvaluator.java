@@ -20,7 +20,9 @@ package org.rhq.enterprise.server.resource.group.definition.framework;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -81,6 +83,8 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
     private Map<String, Class<?>> whereReplacementTypes;
     private Set<String> whereStatics;
     private List<String> groupByElements;
+    private Set<ExpressionDependency> dependencies;
+    private Collection<Integer> resourceIdRestriction;
 
     private List<String> simpleSubExpressions;
     private List<String> groupedSubExpressions;
@@ -112,6 +116,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
         whereReplacementTypes = new HashMap<String, Class<?>>();
         whereStatics = new LinkedHashSet<String>();
         groupByElements = new ArrayList<String>();
+        dependencies = EnumSet.of(ExpressionDependency.INVENTORY);
 
         simpleSubExpressions = new ArrayList<String>();
         groupedSubExpressions = new ArrayList<String>();
@@ -236,6 +241,28 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
         whereStatics.remove("res.inventoryStatus = org.rhq.core.domain.resource.InventoryStatus.COMMITTED");
     }
 
+    /**
+     * Restricts the evaluation to the given resources, so that only their membership is computed. Must be called
+     * before the evaluator is executed or iterated.
+     *
+     * @param resourceIds the ids of the resources to evaluate the expressions for, at most 1000 of them
+     */
+    public void setResourceIdRestriction(Collection<Integer> resourceIds) {
+        if (resultsComputed) {
+            throw new IllegalStateException("The resource restriction must be set before the evaluator is executed");
+        }
+        resourceIdRestriction = resourceIds;
+        whereStatics.add("res.id IN (:resourceIds)");
+    }
+
+    /**
+     * @return the kinds of resource data the expressions added so far depend on, always including
+     *         {@link ExpressionDependency#INVENTORY}
+     */
+    public Set<ExpressionDependency> getDependencies() {
+        return Collections.unmodifiableSet(dependencies);
+    }
+
     /**
      * @param  expression a string in the form of 'condition = value' or 'groupBy condition'
      *
@@ -517,6 +544,12 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                     validateSubExpressionAgainstPreviouslySeen(normalizedSubExpression, false);
                 }
 
+                if (nextToken.equals("parent") || nextToken.equals("grandparent")
+                    || nextToken.equals("greatgrandparent") || nextToken.equals("greatgreatgrandparent")
+                    || nextToken.equals("child")) {
+                    dependencies.add(ExpressionDependency.RELATIVES);
+                }
+
                 if (nextToken.equals("parent")) {
                     context = ParseContext.ResourceParent;
                     deepestResourceContext = context;
@@ -570,6 +603,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                             + "only 'UP''DOWN''DISABLED''UNKNOWN' are valid values");
                     }
                 }
+                dependencies.add(ExpressionDependency.AVAILABILITY);
                 addJoinCondition(JoinCondition.AVAILABILITY);
                 populatePredicateCollections(JoinCondition.AVAILABILITY.alias + ".availabilityType", type);
             } else if (context == ParseContext.Trait) {
@@ -577,6 +611,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                 // WHERE def.name = :arg1 AND trait.value = :arg2 AND trait.schedule = sched AND trait.id.timestamp =
                 // (SELECT max(mdt.id.timestamp) FROM MeasurementDataTrait mdt WHERE sched.id = mdt.schedule.id)
                 String traitName = parseTraitName(originalTokens);
+                dependencies.add(ExpressionDependency.TRAIT);
                 addJoinCondition(JoinCondition.SCHEDULES);
                 populatePredicateCollections(METRIC_DEF_ALIAS + ".name", "%" + traitName + "%", false);
                 populatePredicateCollections(TRAIT_ALIAS + ".value", value);
@@ -593,10 +628,12 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                     prefix = "pluginconfiguration";
                     joinCondition = JoinCondition.PLUGIN_CONFIGURATION;
                     definitionJoinCondition = JoinCondition.PLUGIN_CONFIGURATION_DEFINITION;
+                    dependencies.add(ExpressionDependency.PLUGIN_CONFIGURATION);
                 } else if (subcontext == ParseSubContext.ResourceConfiguration) {
                     prefix = "resourceconfiguration";
                     joinCondition = JoinCondition.RESOURCE_CONFIGURATION;
                     definitionJoinCondition = JoinCondition.RESOURCE_CONFIGURATION_DEFINITION;
+                    dependencies.add(ExpressionDependency.RESOURCE_CONFIGURATION);
                 } else {
                     throw new InvalidExpressionException("Invalid 'configuration' subexpression: " + subcontext);
                 }
@@ -1003,6 +1040,10 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                 }
             }
 
+            if (resourceIdRestriction != null) {
+                resolvedQuery = resolvedQuery.replace(":resourceIds", resourceIdRestriction.toString());
+            }
+
             log.debug("Query: " + resolvedQuery);
         }
 
@@ -1031,6 +1072,10 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
             }
         }
 
+        if (resourceIdRestriction != null) {
+            query.setParameter("resourceIds", resourceIdRestriction);
+        }
+
         return query.getResultList();
     }
 
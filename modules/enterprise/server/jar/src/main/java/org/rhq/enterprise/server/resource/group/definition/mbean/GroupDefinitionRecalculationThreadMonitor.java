@@ -54,6 +54,10 @@ public class GroupDefinitionRecalculationThreadMonitor implements GroupDefinitio
         private long minExecutionTime;
         private long maxExecutionTime;
         private long totalEexecutionTime;
+        private long incrementalCount;
+        private long incrementalSuccessfulCount;
+        private long incrementalResourceCount;
+        private long totalIncrementalExecutionTime;
 
         public synchronized void update(int newDynaGroupCount, boolean success, long executionTime) {
             dynaGroupCount = newDynaGroupCount;
@@ -63,14 +67,24 @@ public class GroupDefinitionRecalculationThreadMonitor implements GroupDefinitio
             }
             recalculationCount++;
 
-            if (executionTime < minExecutionTime) {
+            if (recalculationCount == 1 || executionTime < minExecutionTime) {
                 minExecutionTime = executionTime;
-            } else if (executionTime > maxExecutionTime) {
+            }
+            if (executionTime > maxExecutionTime) {
                 maxExecutionTime = executionTime;
             }
             totalEexecutionTime += executionTime;
         }
 
+        public synchronized void updateIncremental(int resourceCount, boolean success, long executionTime) {
+            if (success) {
+                incrementalSuccessfulCount++;
+            }
+            incrementalCount++;
+            incrementalResourceCount += resourceCount;
+            totalIncrementalExecutionTime += executionTime;
+        }
+
         public synchronized Map<String, Object> getStatistics() {
             Map<String, Object> stats = new HashMap<String, Object>();
             stats.put("dynaGroupCount", dynaGroupCount);
@@ -80,11 +94,16 @@ public class GroupDefinitionRecalculationThreadMonitor implements GroupDefinitio
             stats.put("minExecutionTime", minExecutionTime);
             stats.put("maxExecutionTime", maxExecutionTime);
             stats.put("avgEexecutionTime", totalEexecutionTime / (double) recalculationCount);
+            stats.put("incrementalRecalculationCount", incrementalCount);
+            stats.put("incrementalFailureCount", incrementalCount - incrementalSuccessfulCount);
+            stats.put("incrementalResourceCount", incrementalResourceCount);
+            stats.put("avgIncrementalExecutionTime", totalIncrementalExecutionTime / (double) incrementalCount);
             return stats;
         }
     }
 
     private static AtomicLong lastAutoRecalculationThreadTime = new AtomicLong(0);
+    private static AtomicLong lastIncrementalRecalculationThreadTime = new AtomicLong(0);
     private static ConcurrentMap<String, GroupDefinitionRecalculationStatistic> statistics = new ConcurrentHashMap<String, GroupDefinitionRecalculationStatistic>();
 
     private static MBeanServer mbeanServer;
@@ -140,12 +159,27 @@ public class GroupDefinitionRecalculationThreadMonitor implements GroupDefinitio
         lastAutoRecalculationThreadTime.set(timeInMillis);
     }
 
+    public long getIncrementalRecalculationThreadTime() {
+        return lastIncrementalRecalculationThreadTime.get();
+    }
+
+    public void updateIncrementalRecalculationThreadTime(long timeInMillis) {
+        lastIncrementalRecalculationThreadTime.set(timeInMillis);
+    }
+
     public void updateStatistic(String groupDefinitionName, int newDynaGroupCount, boolean success, long executionTime) {
         statistics.putIfAbsent(groupDefinitionName, new GroupDefinitionRecalculationStatistic());
         GroupDefinitionRecalculationStatistic stat = statistics.get(groupDefinitionName);
         stat.update(newDynaGroupCount, success, executionTime);
     }
 
+    public void updateIncrementalStatistic(String groupDefinitionName, int resourceCount, boolean success,
+        long executionTime) {
+        statistics.putIfAbsent(groupDefinitionName, new GroupDefinitionRecalculationStatistic());
+        GroupDefinitionRecalculationStatistic stat = statistics.get(groupDefinitionName);
+        stat.updateIncremental(resourceCount, success, executionTime);
+    }
+
     public Map<String, Map<String, Object>> getStatistics() {
         Map<String, Map<String, Object>> results = new HashMap<String, Map<String, Object>>();
         for (Map.Entry<String, GroupDefinitionRecalculationStatistic> stat : statistics.entrySet()) {
@@ -83,6 +83,23 @@ public interface GroupDefinitionRecalculationThreadMonitorMBean {
      */
     void updateAutoRecalculationThreadTime(long timeInMillis);
 
+    /**
+     * Returns the time (in millis) that it took to apply the recorded resource changes to the DynaGroups whose owning
+     *         {@link GroupDefinition} can be recalculated incrementally (this metric only reflects the last known /
+     *         collected time for the recalculation thread)
+     *
+     * @return the time (in millis) of the last incremental recalculation
+     */
+    long getIncrementalRecalculationThreadTime();
+
+    /**
+     * Sets the time (in millis) that it took to apply the recorded resource changes to the DynaGroups whose owning
+     *         {@link GroupDefinition} can be recalculated incrementally
+     *
+     * @param timeInMillis the time (in millis) of the last incremental recalculation
+     */
+    void updateIncrementalRecalculationThreadTime(long timeInMillis);
+
     /**
      * Returns a map of statistics broken down by group definition.
      * 
@@ -102,4 +119,16 @@ public interface GroupDefinitionRecalculationThreadMonitorMBean {
      */
     void updateStatistic(String groupDefinitionName, int newDynaGroupCount, boolean success, long executionTime);
 
-}
\ No newline at end of file
+    /**
+     * Updates the incremental recalculation part of the internal
+     * {@link GroupDefinitionRecalculationThreadMonitor.GroupDefinitionRecalculationStatistic} for the
+     * {@link GroupDefinition} with the given name.
+     *
+     * @param groupDefinitionName the name of the {@link GroupDefinition} whose internal statistics will be updated
+     * @param resourceCount the number of changed resources whose membership was recalculated
+     * @param success whether or not the incremental recalculation was successful
+     * @param executionTime the time (in millis) that it took to recalculate the changed resources
+     */
+    void updateIncrementalStatistic(String groupDefinitionName, int resourceCount, boolean success, long executionTime);
+
+}
@@ -20,15 +20,18 @@ package org.rhq.enterprise.server.scheduler.jobs;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Locale;
 import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.quartz.Job;
+import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
-import org.quartz.SimpleTrigger;
+import org.quartz.SchedulerException;
 import org.quartz.StatefulJob;
+import org.quartz.Trigger;
 
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.enterprise.server.RHQConstants;
@@ -44,68 +47,325 @@ import org.rhq.enterprise.server.measurement.MeasurementBaselineManagerLocal;
 import org.rhq.enterprise.server.measurement.MeasurementCompressionManagerLocal;
 import org.rhq.enterprise.server.measurement.MeasurementDataManagerLocal;
 import org.rhq.enterprise.server.measurement.MeasurementOOBManagerLocal;
+import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
 import org.rhq.enterprise.server.scheduler.SchedulerLocal;
+import org.rhq.enterprise.server.scheduler.jobs.mbean.DataPurgeMonitor;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
 import org.rhq.enterprise.server.util.LookupUtil;
 import org.rhq.enterprise.server.util.TimingVoodoo;
 
 /**
- * This implements {@link StatefulJob} (as opposed to {@link Job}) because we do not need nor want this job triggered
- * concurrently. That is, we don't want multiple data purge jobs performing the data purge at the same time.
+ * Runs the data maintenance {@link Task}s: measurement data compression (followed by the baseline and OOB
+ * calculations that depend on it), the purges of old data and the database maintenance. Each task is scheduled as a
+ * job of its own, with the name of the task in its job data, and has a time budget. The purges delete their data in
+ * small chunks of keys, each in a transaction of its own, and stop when they run out of time; whatever is left is
+ * purged by their next run. Progress and throughput of the tasks are reported through the {@link DataPurgeMonitor}.
+ * <p/>
+ * This implements {@link StatefulJob} (as opposed to {@link Job}) so that a task never runs concurrently with itself;
+ * the compression and the purges touch different tables and run concurrently with each other. Only the database
+ * maintenance (whose VACUUM and REINDEX lock the tables) must not run while another task is writing. Since the
+ * triggers of a running stateful job are blocked on every server of the cluster, the tasks use the trigger states to
+ * keep out of each other's way: the maintenance waits for the running tasks to finish before it starts, and any
+ * other task fired while the maintenance runs skips its run. No task ever waits for the maintenance, so the two can
+ * not wait for each other.
  */
 public class DataPurgeJob extends AbstractStatefulJob {
     private static final Log LOG = LogFactory.getLog(DataPurgeJob.class);
 
     private static long HOUR = 60 * 60 * 1000L;
 
+    private static final String GROUP = DataPurgeJob.class.getName();
+
+    /**
+     * How often the database maintenance checks whether the other tasks are done.
+     */
+    private static final long EXCLUSION_POLL_INTERVAL = 10 * 1000L;
+
+    /**
+     * The job data entry with the name of the {@link Task} the job runs.
+     */
+    public static final String DATAMAP_TASK = "task";
+
+    /**
+     * The width of the time windows the call-time and alert purges delete at a time.
+     */
+    private static final long TIME_CHUNK = HOUR;
+
+    /**
+     * The number of schedule, resource or event source ids the trait, availability and event purges delete at a time.
+     */
+    private static final long ID_CHUNK = 500;
+
     /**
-     * Schedules a purge job to trigger right now. This will not block - it schedules the job to trigger but immediately
-     * returns. This method will ensure that no two data purge jobs will execute at the same time (Quartz will ensure
-     * this since {@link DataPurgeJob} is an implementation of {@link StatefulJob}).
+     * The data maintenance tasks, in the order they run in every hour. Each one is triggered when the budget of the
+     * previous one is used up, which spreads their load over the hour and lets the database maintenance, the last
+     * task, usually start without waiting.
+     */
+    public enum Task {
+        MEASUREMENT_COMPRESSION("0 0 * * * ?", 20), //
+        CALLTIME_PURGE("0 20 * * * ?", 5), //
+        EVENT_PURGE("0 25 * * * ?", 5), //
+        ALERT_PURGE("0 30 * * * ?", 5), //
+        TRAIT_PURGE("0 35 * * * ?", 5), //
+        AVAILABILITY_PURGE("0 40 * * * ?", 5), //
+        DRIFT_FILE_PURGE("0 45 * * * ?", 5), //
+        DATABASE_MAINTENANCE("0 50 * * * ?", 10);
+
+        private final String cronString;
+        private final long defaultTimeBudget;
+
+        private Task(String cronString, int defaultTimeBudgetMinutes) {
+            this.cronString = cronString;
+            this.defaultTimeBudget = defaultTimeBudgetMinutes * 60 * 1000L;
+        }
+
+        public String getCronString() {
+            return cronString;
+        }
+
+        /**
+         * @return the time (in millis) the task is given per run, which can be overridden with the
+         * <code>rhq.server.data-purge.[task].time-budget</code> system property, e.g.
+         * <code>rhq.server.data-purge.trait-purge.time-budget</code>
+         */
+        public long getTimeBudget() {
+            String property = "rhq.server.data-purge." + name().toLowerCase(Locale.US).replace('_', '-')
+                + ".time-budget";
+            return Long.getLong(property, defaultTimeBudget);
+        }
+
+        /**
+         * @return the name of both the job of the task and its trigger
+         */
+        public String getTriggerName() {
+            return DataPurgeJob.class.getName() + "." + name();
+        }
+    }
+
+    /**
+     * Schedules a job for each {@link Task}, and deletes the job that used to run all of them every hour.
      *
-     * @throws Exception if failed to schedule the data purge for immediate execution
+     * @throws SchedulerException if failed to schedule the jobs
+     */
+    public static void scheduleTasks(SchedulerLocal scheduler) throws SchedulerException {
+        scheduler.deleteJob(GROUP, GROUP);
+
+        for (Task task : Task.values()) {
+            JobDataMap jobData = new JobDataMap();
+            jobData.put(DATAMAP_TASK, task.name());
+            scheduler.scheduleCronJob(task.getTriggerName(), GROUP, jobData, DataPurgeJob.class, true, false,
+                task.getCronString());
+        }
+    }
+
+    /**
+     * Triggers all tasks to run right now. This will not block - it triggers the jobs of the tasks but immediately
+     * returns. A task that is still running is run again once it is done. The database maintenance is triggered last,
+     * so it waits for the other tasks instead of them skipping their run.
+     *
+     * @throws Exception if failed to trigger the tasks for immediate execution
      */
     public static void purgeNow() throws Exception {
-        // there should always be a DataPurgeJob defined with a job name as the same as this class' name
-        // let's trigger that job now.  this ensures the job is only ever run once, never concurrently
-        // note that you can't call this method again until the data purge job finished; otherwise,
-        // you'll get an exception saying there is already a trigger defined - this is what we want, you
-        // shouldn't ask for more than one data purge job to execute now - you have to wait for it to finish.
         SchedulerLocal scheduler = LookupUtil.getSchedulerBean();
-        SimpleTrigger trigger = new SimpleTrigger("DataPurgeJobNow", DataPurgeJob.class.getName());
-        trigger.setJobName(DataPurgeJob.class.getName());
-        trigger.setJobGroup(DataPurgeJob.class.getName());
-        scheduler.scheduleJob(trigger);
+        for (Task task : Task.values()) {
+            scheduler.triggerJob(task.getTriggerName(), GROUP);
+        }
     }
 
     @Override
     public void executeJobCode(JobExecutionContext context) throws JobExecutionException {
-        long timeStart = System.currentTimeMillis();
-        LOG.info("Data Purge Job STARTING");
+        String taskName = context.getMergedJobDataMap().getString(DATAMAP_TASK);
+        runTask(Task.valueOf(taskName));
+    }
+
+    /**
+     * Decides whether a task may run, as described in the class comment: the database maintenance waits, as long as
+     * its budget lasts, until no other task is running, and any other task may run unless the maintenance is running.
+     *
+     * @return <code>false</code> if the task should skip this run
+     */
+    static boolean mayRun(SchedulerLocal scheduler, TaskRun run, long pollInterval) throws SchedulerException,
+        InterruptedException {
+        if (run.task != Task.DATABASE_MAINTENANCE) {
+            if (isRunning(scheduler, Task.DATABASE_MAINTENANCE)) {
+                LOG.info("Data maintenance task [" + run.task + "] skipped while the database maintenance runs");
+                return false;
+            }
+            return true;
+        }
+
+        while (true) {
+            Task running = null;
+            for (Task task : Task.values()) {
+                if (task != run.task && isRunning(scheduler, task)) {
+                    running = task;
+                    break;
+                }
+            }
+            if (running == null) {
+                return true;
+            }
+            if (run.isOutOfTime()) {
+                run.budgetExceeded = true;
+                LOG.warn("Data maintenance task [" + run.task + "] skipped - task [" + running
+                    + "] is still running at the end of its time budget");
+                return false;
+            }
+            LOG.debug("Data maintenance task [" + run.task + "] waiting for task [" + running + "] to finish");
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    private static boolean isRunning(SchedulerLocal scheduler, Task task) throws SchedulerException {
+        return scheduler.getTriggerState(task.getTriggerName(), GROUP) == Trigger.STATE_BLOCKED;
+    }
+
+    private void runTask(Task task) {
+        TaskRun run = new TaskRun(task);
+        try {
+            if (!mayRun(LookupUtil.getSchedulerBean(), run, EXCLUSION_POLL_INTERVAL)) {
+                return;
+            }
+        } catch (Exception e) {
+            LOG.error("Data maintenance task [" + task + "] skipped - failed to check the other tasks. Cause: " + e);
+            return;
+        }
+
+        LOG.info("Data maintenance task [" + task + "] STARTING");
+        DataPurgeMonitor.getMBean().startTask(task.name());
 
         try {
             Properties systemConfig = LookupUtil.getSystemManager().getSystemConfiguration(
                 LookupUtil.getSubjectManager().getOverlord());
-            compressMeasurementData(LookupUtil.getMeasurementCompressionManager());
-            purgeEverything(systemConfig);
-            performDatabaseMaintenance(LookupUtil.getSystemManager(), systemConfig);
-            calculateAutoBaselines(LookupUtil.getMeasurementBaselineManager());
-            calculateOOBs();
+
+            switch (task) {
+            case MEASUREMENT_COMPRESSION:
+                compressMeasurementData(LookupUtil.getMeasurementCompressionManager(), run);
+                MeasurementBaselineManagerLocal baselineManager = LookupUtil.getMeasurementBaselineManager();
+                if (baselineManager.isIncrementalCalculationEnabled()) {
+                    calculateAutoBaselinesAndOOBsIncrementally(baselineManager, run);
+                } else {
+                    calculateAutoBaselines(baselineManager, run);
+                    calculateOOBs();
+                }
+                break;
+            case CALLTIME_PURGE:
+                purgeCallTimeData(LookupUtil.getCallTimeDataManager(), systemConfig, run);
+                break;
+            case EVENT_PURGE:
+                purgeEventData(LookupUtil.getEventManager(), systemConfig, run);
+                break;
+            case ALERT_PURGE:
+                purgeAlertData(LookupUtil.getAlertManager(), systemConfig, run);
+                purgeUnusedAlertDefinitions(LookupUtil.getAlertDefinitionManager(), run);
+                purgeOrphanedAlertConditions(LookupUtil.getAlertConditionManager(), run);
+                purgeOrphanedAlertNotifications(LookupUtil.getAlertNotificationManager(), run);
+                break;
+            case TRAIT_PURGE:
+                purgeMeasurementTraitData(LookupUtil.getMeasurementDataManager(), systemConfig, run);
+                break;
+            case AVAILABILITY_PURGE:
+                purgeAvailabilityData(LookupUtil.getAvailabilityManager(), systemConfig, run);
+                break;
+            case DRIFT_FILE_PURGE:
+                purgeOrphanedDriftFiles(LookupUtil.getDriftManager(), systemConfig, run);
+                break;
+            case DATABASE_MAINTENANCE:
+                performDatabaseMaintenance(LookupUtil.getSystemManager(), systemConfig, run);
+                break;
+            }
         } catch (Exception e) {
-            LOG.error("Data Purge Job FAILED TO COMPLETE. Cause: " + e);
+            run.failed = true;
+            LOG.error("Data maintenance task [" + task + "] FAILED TO COMPLETE. Cause: " + e);
         } finally {
-            long duration = System.currentTimeMillis() - timeStart;
-            LOG.info("Data Purge Job FINISHED [" + duration + "]ms");
+            long duration = System.currentTimeMillis() - run.startTime;
+            if (duration > task.getTimeBudget()) {
+                run.budgetExceeded = true;
+            }
+            if (run.budgetExceeded) {
+                LOG.warn("Data maintenance task [" + task + "] exceeded its time budget of [" + task.getTimeBudget()
+                    + "]ms");
+            }
+            DataPurgeMonitor.getMBean().finishTask(task.name(), !run.failed, run.budgetExceeded, run.rowsPurged,
+                duration);
+            LOG.info("Data maintenance task [" + task + "] FINISHED [" + duration + "]ms");
+        }
+    }
+
+    /**
+     * The state of one run of a task.
+     */
+    static class TaskRun {
+        private final Task task;
+        private final long startTime = System.currentTimeMillis();
+        private final long deadline;
+        long rowsPurged;
+        boolean budgetExceeded;
+        boolean failed;
+
+        TaskRun(Task task) {
+            this(task, task.getTimeBudget());
+        }
+
+        TaskRun(Task task, long timeBudget) {
+            this.task = task;
+            this.deadline = startTime + timeBudget;
+        }
+
+        private boolean isOutOfTime() {
+            return System.currentTimeMillis() > deadline;
+        }
+    }
+
+    abstract static class ChunkedPurge {
+        /**
+         * Purges the keys from <code>first</code> to <code>last</code>, both inclusive, in a transaction of its own.
+         *
+         * @return the number of purged rows
+         */
+        abstract int purge(long first, long last) throws Exception;
+    }
+
+    /**
+     * Purges the keys from <code>first</code> to <code>last</code>, both inclusive, in chunks of
+     * <code>chunkSize</code> keys, until all of them are purged or the task runs out of time.
+     *
+     * @return the number of purged rows
+     */
+    static int purgeInChunks(TaskRun run, long first, long last, long chunkSize, ChunkedPurge purge)
+        throws Exception {
+        long chunkCount = (last - first) / chunkSize + 1;
+        long chunksDone = 0;
+        int purged = 0;
+
+        try {
+            for (long chunkFirst = first; chunkFirst <= last; chunkFirst += chunkSize) {
+                if (run.isOutOfTime()) {
+                    run.budgetExceeded = true;
+                    LOG.warn("Data maintenance task [" + run.task + "] ran out of time after [" + chunksDone
+                        + "] of [" + chunkCount + "] chunks - the rest is left for its next run");
+                    break;
+                }
+                purged += purge.purge(chunkFirst, Math.min(chunkFirst + chunkSize - 1, last));
+                chunksDone++;
+                DataPurgeMonitor.getMBean().updateProgress(run.task.name(), run.rowsPurged + purged, chunksDone,
+                    chunkCount);
+            }
+        } finally {
+            run.rowsPurged += purged;
         }
+
+        return purged;
     }
 
-    private void compressMeasurementData(MeasurementCompressionManagerLocal compressionManager) {
+    private void compressMeasurementData(MeasurementCompressionManagerLocal compressionManager, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Measurement data compression starting at " + new Date(timeStart));
 
         try {
             compressionManager.compressPurgeAndTruncate();
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to compress measurement data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -113,25 +373,14 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeEverything(Properties systemConfig) {
-        purgeCallTimeData(LookupUtil.getCallTimeDataManager(), systemConfig);
-        purgeEventData(LookupUtil.getEventManager(), systemConfig);
-        purgeAlertData(LookupUtil.getAlertManager(), systemConfig);
-        purgeUnusedAlertDefinitions(LookupUtil.getAlertDefinitionManager());
-        purgeOrphanedAlertConditions(LookupUtil.getAlertConditionManager());
-        purgeOrphanedAlertNotifications(LookupUtil.getAlertNotificationManager());
-        purgeMeasurementTraitData(LookupUtil.getMeasurementDataManager(), systemConfig);
-        purgeAvailabilityData(LookupUtil.getAvailabilityManager(), systemConfig);
-        purgeOrphanedDriftFiles(LookupUtil.getDriftManager(), systemConfig);
-    }
-
-    private void purgeMeasurementTraitData(MeasurementDataManagerLocal measurementDataManager, Properties systemConfig) {
+    private void purgeMeasurementTraitData(final MeasurementDataManagerLocal measurementDataManager,
+        Properties systemConfig, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Trait data purge starting at " + new Date(timeStart));
         int traitsPurged = 0;
 
         try {
-            long threshold;
+            final long threshold;
             String traitPurgeThresholdStr = systemConfig.getProperty(RHQConstants.TraitPurge);
             if (traitPurgeThresholdStr == null) {
                 threshold = timeStart - (1000L * 60 * 60 * 24 * 365);
@@ -141,8 +390,17 @@ public class DataPurgeJob extends AbstractStatefulJob {
             }
 
             LOG.info("Purging traits that are older than " + new Date(threshold));
-            traitsPurged = measurementDataManager.purgeTraits(threshold);
+            int[] scheduleIds = measurementDataManager.getTraitScheduleIdRange();
+            if (scheduleIds != null) {
+                traitsPurged = purgeInChunks(run, scheduleIds[0], scheduleIds[1], ID_CHUNK, new ChunkedPurge() {
+                    int purge(long first, long last) {
+                        return measurementDataManager.purgeTraits((int) first, (int) last, threshold);
+                    }
+                });
+            }
+            MeasurementMonitor.getMBean().setPurgedMeasurementTraits(traitsPurged);
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge trait data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -150,13 +408,14 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeAvailabilityData(AvailabilityManagerLocal availabilityManager, Properties systemConfig) {
+    private void purgeAvailabilityData(final AvailabilityManagerLocal availabilityManager, Properties systemConfig,
+        TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Availability data purge starting at " + new Date(timeStart));
         int availsPurged = 0;
 
         try {
-            long threshold;
+            final long threshold;
             String availPurgeThresholdStr = systemConfig.getProperty(RHQConstants.AvailabilityPurge);
             if (availPurgeThresholdStr == null) {
                 threshold = timeStart - (1000L * 60 * 60 * 24 * 365);
@@ -165,8 +424,17 @@ public class DataPurgeJob extends AbstractStatefulJob {
                 threshold = timeStart - Long.parseLong(availPurgeThresholdStr);
             }
             LOG.info("Purging availablities that are older than " + new Date(threshold));
-            availsPurged = availabilityManager.purgeAvailabilities(threshold);
+            int[] resourceIds = availabilityManager.getAvailabilityResourceIdRange();
+            if (resourceIds != null) {
+                availsPurged = purgeInChunks(run, resourceIds[0], resourceIds[1], ID_CHUNK, new ChunkedPurge() {
+                    int purge(long first, long last) {
+                        return availabilityManager.purgeAvailabilities((int) first, (int) last, threshold);
+                    }
+                });
+            }
+            MeasurementMonitor.getMBean().setPurgedAvailabilities(availsPurged);
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge availability data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -174,7 +442,8 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeCallTimeData(CallTimeDataManagerLocal callTimeDataManager, Properties systemConfig) {
+    private void purgeCallTimeData(final CallTimeDataManagerLocal callTimeDataManager, Properties systemConfig,
+        TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Measurement calltime data purge starting at " + new Date(timeStart));
         int calltimePurged = 0;
@@ -182,8 +451,17 @@ public class DataPurgeJob extends AbstractStatefulJob {
         try {
             long threshold = timeStart - Long.parseLong(systemConfig.getProperty(RHQConstants.RtDataPurge));
             LOG.info("Purging calltime data that is older than " + new Date(threshold));
-            calltimePurged = callTimeDataManager.purgeCallTimeData(new Date(threshold));
+            Long oldest = callTimeDataManager.getOldestCallTimeDataTime();
+            if (oldest != null && oldest < threshold) {
+                calltimePurged = purgeInChunks(run, oldest, threshold - 1, TIME_CHUNK, new ChunkedPurge() {
+                    int purge(long first, long last) throws Exception {
+                        return callTimeDataManager.purgeCallTimeData(first, last);
+                    }
+                });
+            }
+            MeasurementMonitor.getMBean().setPurgedCallTimeData(calltimePurged);
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge calltime data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -191,16 +469,26 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeEventData(EventManagerLocal eventManager, Properties systemConfig) {
+    private void purgeEventData(final EventManagerLocal eventManager, Properties systemConfig, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Event data purge starting at " + new Date(timeStart));
         int eventsPurged = 0;
 
         try {
-            long threshold = timeStart - Long.parseLong(systemConfig.getProperty(RHQConstants.EventPurge));
-            LOG.info("Purging event data older than " + new Date(threshold));
-            eventsPurged = eventManager.purgeEventData(new Date(threshold));
+            final Date threshold = new Date(timeStart
+                - Long.parseLong(systemConfig.getProperty(RHQConstants.EventPurge)));
+            LOG.info("Purging event data older than " + threshold);
+            int[] eventSourceIds = eventManager.getEventSourceIdRange();
+            if (eventSourceIds != null) {
+                eventsPurged = purgeInChunks(run, eventSourceIds[0], eventSourceIds[1], ID_CHUNK, new ChunkedPurge() {
+                    int purge(long first, long last) {
+                        return eventManager.purgeEventData((int) first, (int) last, threshold);
+                    }
+                });
+            }
+            MeasurementMonitor.getMBean().setPurgedEvents(eventsPurged);
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge event data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -208,7 +496,7 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeAlertData(AlertManagerLocal alertManager, Properties systemConfig) {
+    private void purgeAlertData(final AlertManagerLocal alertManager, Properties systemConfig, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Alert data purge starting at " + new Date(timeStart));
         int alertsPurged = 0;
@@ -216,8 +504,17 @@ public class DataPurgeJob extends AbstractStatefulJob {
         try {
             long threshold = timeStart - Long.parseLong(systemConfig.getProperty(RHQConstants.AlertPurge));
             LOG.info("Purging alert data older than " + new Date(threshold));
-            alertsPurged = alertManager.deleteAlerts(0, threshold);
+            Long oldest = alertManager.getOldestAlertTime();
+            if (oldest != null && oldest <= threshold) {
+                alertsPurged = purgeInChunks(run, oldest, threshold, TIME_CHUNK, new ChunkedPurge() {
+                    int purge(long first, long last) {
+                        return alertManager.deleteAlerts(first, last);
+                    }
+                });
+            }
+            MeasurementMonitor.getMBean().setPurgedAlerts(alertsPurged);
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge alert data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -225,14 +522,16 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeUnusedAlertDefinitions(AlertDefinitionManagerLocal alertDefinitionManager) {
+    private void purgeUnusedAlertDefinitions(AlertDefinitionManagerLocal alertDefinitionManager, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Alert definition unused purge starting at " + new Date(timeStart));
         int alertDefinitionsPurged = 0;
 
         try {
             alertDefinitionsPurged = alertDefinitionManager.purgeUnusedAlertDefinitions();
+            run.rowsPurged += alertDefinitionsPurged;
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge alert definition data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -240,14 +539,16 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeOrphanedAlertConditions(AlertConditionManagerLocal alertConditionManager) {
+    private void purgeOrphanedAlertConditions(AlertConditionManagerLocal alertConditionManager, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Alert condition orphan purge starting at " + new Date(timeStart));
         int orphansPurged = 0;
 
         try {
             orphansPurged = alertConditionManager.purgeOrphanedAlertConditions();
+            run.rowsPurged += orphansPurged;
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge alert condition data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -255,14 +556,17 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeOrphanedAlertNotifications(AlertNotificationManagerLocal alertNotificationManager) {
+    private void purgeOrphanedAlertNotifications(AlertNotificationManagerLocal alertNotificationManager,
+        TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Alert notification orphan purge starting at " + new Date(timeStart));
         int orphansPurged = 0;
 
         try {
             orphansPurged = alertNotificationManager.purgeOrphanedAlertNotifications();
+            run.rowsPurged += orphansPurged;
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge alert notification data. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -270,7 +574,7 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void purgeOrphanedDriftFiles(DriftManagerLocal driftManager, Properties systemConfig) {
+    private void purgeOrphanedDriftFiles(DriftManagerLocal driftManager, Properties systemConfig, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Drift file orphan purge starting at " + new Date(timeStart));
         int orphansPurged = 0;
@@ -280,7 +584,9 @@ public class DataPurgeJob extends AbstractStatefulJob {
             LOG.info("Purging orphaned drift files older than " + new Date(threshold));
             orphansPurged = driftManager.purgeOrphanedDriftFiles(LookupUtil.getSubjectManager().getOverlord(),
                 threshold);
+            run.rowsPurged += orphansPurged;
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to purge orphaned drift files. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -288,7 +594,8 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
-    private void performDatabaseMaintenance(SystemManagerLocal systemManager, Properties systemConfig) {
+    private void performDatabaseMaintenance(SystemManagerLocal systemManager, Properties systemConfig,
+        TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Database maintenance starting at " + new Date(timeStart));
 
@@ -329,6 +636,7 @@ public class DataPurgeJob extends AbstractStatefulJob {
                 LOG.debug("Not performing any database maintenance now");
             }
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to perform database maintenance. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -338,13 +646,14 @@ public class DataPurgeJob extends AbstractStatefulJob {
         return;
     }
 
-    private void calculateAutoBaselines(MeasurementBaselineManagerLocal measurementBaselineManager) {
+    private void calculateAutoBaselines(MeasurementBaselineManagerLocal measurementBaselineManager, TaskRun run) {
         long timeStart = System.currentTimeMillis();
         LOG.info("Auto-calculation of baselines starting at " + new Date(timeStart));
 
         try {
             measurementBaselineManager.calculateAutoBaselines();
         } catch (Exception e) {
+            run.failed = true;
             LOG.error("Failed to auto-calculate baselines. Cause: " + e, e);
         } finally {
             long duration = System.currentTimeMillis() - timeStart;
@@ -352,6 +661,22 @@ public class DataPurgeJob extends AbstractStatefulJob {
         }
     }
 
+    private void calculateAutoBaselinesAndOOBsIncrementally(MeasurementBaselineManagerLocal measurementBaselineManager,
+        TaskRun run) {
+        long timeStart = System.currentTimeMillis();
+        LOG.info("Incremental calculation of baselines and OOBs starting at " + new Date(timeStart));
+
+        try {
+            measurementBaselineManager.calculateAutoBaselinesAndOOBsIncrementally();
+        } catch (Exception e) {
+            run.failed = true;
+            LOG.error("Failed to calculate baselines and OOBs. Cause: " + e, e);
+        } finally {
+            long duration = System.currentTimeMillis() - timeStart;
+            LOG.info("Incremental calculation of baselines and OOBs completed in [" + duration + "]ms");
+        }
+    }
+
     /**
      * Calculate the OOB values for the last hour.
      * This also removes outdated ones due to recalculated baselines.
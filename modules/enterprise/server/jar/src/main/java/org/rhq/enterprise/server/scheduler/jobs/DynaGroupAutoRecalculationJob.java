@@ -24,11 +24,12 @@ import org.quartz.JobExecutionException;
 import org.quartz.StatefulJob;
 
 import org.rhq.core.domain.auth.Subject;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
 import org.rhq.enterprise.server.util.LookupUtil;
 
 /**
  * This is a Quartz scheduler job whose sole purpose in life is, when triggered, ask the group definition
- * manager to see if there are any DynaGroups to recalculate
+ * manager to apply the recorded resource changes to DynaGroups, and to see if there are any DynaGroups to recalculate
  *
  * <p>This implements {@link StatefulJob} (as opposed to {@link Job}) because we do not need nor want this job triggered
  * concurrently. That is, we don't need or want multiple instances of this job running at the same time.</p>
@@ -39,6 +40,8 @@ public class DynaGroupAutoRecalculationJob extends AbstractStatefulJob {
     @Override
     public void executeJobCode(JobExecutionContext context) throws JobExecutionException {
         Subject overlord = LookupUtil.getSubjectManager().getOverlord();
-        LookupUtil.getGroupDefinitionManager().recalculateDynaGroups(overlord);
+        GroupDefinitionManagerLocal groupDefinitionManager = LookupUtil.getGroupDefinitionManager();
+        groupDefinitionManager.recalculateDynaGroupsIncrementally(overlord);
+        groupDefinitionManager.recalculateDynaGroups(overlord);
     }
 }
\ No newline at end of file
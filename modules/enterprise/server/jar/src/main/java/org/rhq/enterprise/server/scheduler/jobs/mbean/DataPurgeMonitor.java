@@ -0,0 +1,186 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.scheduler.jobs.mbean;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerInvocationHandler;
+import javax.management.ObjectName;
+
+/**
+ * An MBean that exposes the progress and throughput of the data maintenance tasks.
+ */
+public class DataPurgeMonitor implements DataPurgeMonitorMBean, MBeanRegistration {
+
+    /*
+     * synchronization policy: all private attributes of this statistics object are meant to be read and written
+     * atomically, so all access to them is guarded by the intrinsic object lock.
+     */
+    public class DataPurgeTaskStatistic {
+        private boolean running;
+        private long lastStartTime;
+        private long currentRowsPurged;
+        private long currentChunksDone;
+        private long currentChunkCount;
+
+        private long runCount;
+        private long successfulCount;
+        private long budgetExceededCount;
+        private long lastExecutionTime;
+        private long lastRowsPurged;
+        private long maxExecutionTime;
+        private long totalExecutionTime;
+        private long totalRowsPurged;
+
+        public synchronized void start() {
+            running = true;
+            lastStartTime = System.currentTimeMillis();
+            currentRowsPurged = 0;
+            currentChunksDone = 0;
+            currentChunkCount = 0;
+        }
+
+        public synchronized void updateProgress(long rowsPurged, long chunksDone, long chunkCount) {
+            currentRowsPurged = rowsPurged;
+            currentChunksDone = chunksDone;
+            currentChunkCount = chunkCount;
+        }
+
+        public synchronized void finish(boolean success, boolean budgetExceeded, long rowsPurged, long executionTime) {
+            running = false;
+            currentRowsPurged = rowsPurged;
+
+            runCount++;
+            if (success) {
+                successfulCount++;
+            }
+            if (budgetExceeded) {
+                budgetExceededCount++;
+            }
+            lastExecutionTime = executionTime;
+            lastRowsPurged = rowsPurged;
+            if (executionTime > maxExecutionTime) {
+                maxExecutionTime = executionTime;
+            }
+            totalExecutionTime += executionTime;
+            totalRowsPurged += rowsPurged;
+        }
+
+        public synchronized Map<String, Object> getStatistics() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("running", running);
+            stats.put("lastStartTime", lastStartTime);
+            if (running) {
+                long elapsed = System.currentTimeMillis() - lastStartTime;
+                stats.put("currentExecutionTime", elapsed);
+                stats.put("currentRowsPurged", currentRowsPurged);
+                stats.put("currentChunksDone", currentChunksDone);
+                stats.put("currentChunkCount", currentChunkCount);
+                stats.put("currentRowsPerSecond", rowsPerSecond(currentRowsPurged, elapsed));
+            }
+            stats.put("runCount", runCount);
+            stats.put("failureCount", runCount - successfulCount);
+            stats.put("budgetExceededCount", budgetExceededCount);
+            stats.put("lastExecutionTime", lastExecutionTime);
+            stats.put("lastRowsPurged", lastRowsPurged);
+            stats.put("lastRowsPerSecond", rowsPerSecond(lastRowsPurged, lastExecutionTime));
+            stats.put("maxExecutionTime", maxExecutionTime);
+            stats.put("avgExecutionTime", (runCount > 0) ? (totalExecutionTime / (double) runCount) : 0.0);
+            stats.put("totalRowsPurged", totalRowsPurged);
+            stats.put("avgRowsPerSecond", rowsPerSecond(totalRowsPurged, totalExecutionTime));
+            return stats;
+        }
+
+        private double rowsPerSecond(long rows, long millis) {
+            return (millis > 0) ? (rows * 1000.0 / millis) : 0.0;
+        }
+    }
+
+    private static ConcurrentMap<String, DataPurgeTaskStatistic> statistics = new ConcurrentHashMap<String, DataPurgeTaskStatistic>();
+
+    private static MBeanServer mbeanServer;
+    private static ObjectName objectName;
+
+    private static DataPurgeMonitorMBean proxy;
+
+    public static DataPurgeMonitorMBean getMBean() {
+        if (proxy == null) {
+            if (objectName != null) {
+                proxy = (DataPurgeMonitorMBean) MBeanServerInvocationHandler.newProxyInstance(mbeanServer, objectName,
+                    DataPurgeMonitorMBean.class, false);
+            } else {
+                // create a local object
+                proxy = new DataPurgeMonitor();
+            }
+        }
+
+        return proxy;
+    }
+
+    public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
+        objectName = name;
+        mbeanServer = server;
+        return name;
+    }
+
+    public void clear() {
+        statistics.clear();
+    }
+
+    public Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> results = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, DataPurgeTaskStatistic> stat : statistics.entrySet()) {
+            results.put(stat.getKey(), stat.getValue().getStatistics());
+        }
+        return results;
+    }
+
+    public void startTask(String task) {
+        getStatistic(task).start();
+    }
+
+    public void updateProgress(String task, long rowsPurged, long chunksDone, long chunkCount) {
+        getStatistic(task).updateProgress(rowsPurged, chunksDone, chunkCount);
+    }
+
+    public void finishTask(String task, boolean success, boolean budgetExceeded, long rowsPurged, long executionTime) {
+        getStatistic(task).finish(success, budgetExceeded, rowsPurged, executionTime);
+    }
+
+    private DataPurgeTaskStatistic getStatistic(String task) {
+        statistics.putIfAbsent(task, new DataPurgeTaskStatistic());
+        return statistics.get(task);
+    }
+
+    public void postRegister(Boolean registrationDone) {
+    }
+
+    public void preDeregister() throws Exception {
+    }
+
+    public void postDeregister() {
+        mbeanServer = null;
+    }
+
+}
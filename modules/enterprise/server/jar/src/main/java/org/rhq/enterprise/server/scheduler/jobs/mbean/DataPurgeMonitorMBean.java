@@ -0,0 +1,70 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.scheduler.jobs.mbean;
+
+import java.util.Map;
+
+import org.rhq.enterprise.server.scheduler.jobs.DataPurgeJob;
+
+/**
+ * An MBean that exposes the progress and throughput of the data maintenance tasks run by the {@link DataPurgeJob}.
+ */
+public interface DataPurgeMonitorMBean {
+
+    /**
+     * Clears the metrics data, starting all values back to 0 as if starting fresh.
+     */
+    void clear();
+
+    /**
+     * Returns a map of statistics broken down by task. Besides counts and times, each task reports the rows it purged
+     * per second, and while it is running, the number of chunks it completed out of the chunks it needs.
+     *
+     * @return complex data
+     */
+    Map<String, Map<String, Object>> getStatistics();
+
+    /**
+     * Marks the task as running, and resets its progress.
+     *
+     * @param task the name of the task
+     */
+    void startTask(String task);
+
+    /**
+     * Updates the progress of the running task.
+     *
+     * @param task the name of the task
+     * @param rowsPurged the number of rows the task purged so far in this run
+     * @param chunksDone the number of chunks the task completed so far in this run
+     * @param chunkCount the number of chunks the task needs to complete in this run, 0 if unknown
+     */
+    void updateProgress(String task, long rowsPurged, long chunksDone, long chunkCount);
+
+    /**
+     * Records the end of a run of the task.
+     *
+     * @param task the name of the task
+     * @param success whether or not the run completed without errors
+     * @param budgetExceeded whether or not the run was stopped, or overran, because it exceeded its time budget
+     * @param rowsPurged the number of rows the run purged
+     * @param executionTime the time (in millis) of the run
+     */
+    void finishTask(String task, boolean success, boolean budgetExceeded, long rowsPurged, long executionTime);
+}
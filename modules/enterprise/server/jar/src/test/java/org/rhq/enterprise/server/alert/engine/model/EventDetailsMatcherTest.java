@@ -0,0 +1,105 @@
+package org.rhq.enterprise.server.alert.engine.model;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.core.domain.event.EventSeverity;
+
+@Test
+public class EventDetailsMatcherTest {
+
+    public void requiredLiteral() {
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*OutOfMemoryError.*"), "outofmemoryerror");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*deploy(ed|ing) app.*"), "deploy");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*connections?\\s+refused.*"), "connection");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*errors+ found.*"), "errors");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*[Ee]rror \\d+ in module.*"), " in module");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*file \\Q/a.b\\E.*"), "file /a.b");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*cost \\$5.*"), "cost $5");
+        assertEquals(EventDetailsMatcher.getRequiredLiteral(".*ab{2,}c.*"), "a");
+
+        assertNull(EventDetailsMatcher.getRequiredLiteral(".*timeout|refused.*"), "alternatives");
+        assertNull(EventDetailsMatcher.getRequiredLiteral("(?x).*time out.*"), "inline flags");
+        assertNull(EventDetailsMatcher.getRequiredLiteral(".*(a)\\1.*"), "back reference");
+        assertNull(EventDetailsMatcher.getRequiredLiteral(".*"), "no literal");
+    }
+
+    public void candidatesContainTheElementsWithLiteralFound() {
+        EventCacheElement outOfMemory = element(".*OutOfMemoryError.*");
+        EventCacheElement refused = element("connection refused");
+        EventCacheElement any = element(".*");
+        EventCacheElement severityOnly = new EventCacheElement(AlertConditionOperator.GREATER_THAN_OR_EQUAL_TO,
+            EventSeverity.ERROR, 4);
+        EventDetailsMatcher matcher = new EventDetailsMatcher(Arrays.asList(outOfMemory, refused, any, severityOnly));
+
+        assertEquals(matcher.getFilteredCount(), 2);
+        assertEquals(matcher.getCandidates("java.lang.outOfMemoryError: heap"), Arrays.asList(outOfMemory, any,
+            severityOnly));
+        assertEquals(matcher.getCandidates("nothing special"), Arrays.asList(any, severityOnly));
+        assertEquals(matcher.getCandidates("OutOfMemoryError after CONNECTION REFUSED"), Arrays.asList(outOfMemory,
+            refused, any, severityOnly));
+    }
+
+    public void activeElementsAreAlwaysCandidates() {
+        EventCacheElement refused = element("connection refused");
+        EventDetailsMatcher matcher = new EventDetailsMatcher(Arrays.asList(refused));
+        assertTrue(matcher.getCandidates("other").isEmpty());
+
+        // an active element has to see events it does not match, to be deactivated
+        refused.setActive(true);
+        assertEquals(matcher.getCandidates("other"), Arrays.asList(refused));
+    }
+
+    public void elementsWithoutLiteralAreNotFiltered() {
+        List<EventCacheElement> elements = Arrays.asList(element("a|b"), new EventCacheElement(
+            AlertConditionOperator.CHANGES, "refused", EventSeverity.ERROR, 2));
+        EventDetailsMatcher matcher = new EventDetailsMatcher(elements);
+        assertEquals(matcher.getFilteredCount(), 0);
+        assertSame(matcher.getCandidates("other"), elements);
+    }
+
+    public void noMatchingElementIsFilteredOut() {
+        String[] words = { "error", "err", "rror", "deploy", "ploy", "timeout", "time", "out", "fail", "failed" };
+        String[] regexes = { "%s", ".*%s.*", "%s\\s+\\d+", "x?%s", "%s(ed)?", "[a-z]+%s", "%s*", "%s+" };
+        Random random = new Random(42L);
+
+        List<EventCacheElement> elements = new ArrayList<EventCacheElement>();
+        for (int i = 0; i < 200; i++) {
+            String regex = String.format(regexes[random.nextInt(regexes.length)], words[random.nextInt(words.length)]);
+            elements.add(element(regex));
+        }
+        EventDetailsMatcher matcher = new EventDetailsMatcher(elements);
+
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder details = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                String word = words[random.nextInt(words.length)];
+                details.append(random.nextBoolean() ? word.toUpperCase() : word);
+                details.append(random.nextBoolean() ? " " : String.valueOf(random.nextInt(100)));
+            }
+            List<EventCacheElement> candidates = matcher.getCandidates(details.toString());
+            for (EventCacheElement element : elements) {
+                if (element.matches(EventSeverity.ERROR, details.toString())) {
+                    assertTrue(candidates.contains(element), element.getEventDetailsPattern() + " matches " + details);
+                }
+            }
+        }
+    }
+
+    private static int conditionId;
+
+    private static EventCacheElement element(String regex) {
+        return new EventCacheElement(AlertConditionOperator.GREATER_THAN_OR_EQUAL_TO, regex, EventSeverity.WARN,
+            ++conditionId);
+    }
+}
@@ -0,0 +1,154 @@
+package org.rhq.enterprise.server.authz;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.authz.Permission;
+
+@Test
+public class PermissionIndexTest {
+
+    public void checksAnswerFromRoles() {
+        FakeLoader loader = new FakeLoader();
+        loader.subjects.put(10, Arrays.asList(1, 2));
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000, 1001)));
+        loader.roles.put(2, role(EnumSet.of(Permission.MANAGE_SETTINGS), Arrays.asList(200), Arrays.asList(2000)));
+
+        PermissionIndex index = new PermissionIndex(true);
+        assertTrue(index.hasGlobalPermission(loader, 10, Permission.MANAGE_SETTINGS));
+        assertFalse(index.hasGlobalPermission(loader, 10, Permission.MANAGE_INVENTORY));
+        assertTrue(index.hasGroupPermission(loader, 10, Permission.MANAGE_ALERTS, 100));
+        assertFalse(index.hasGroupPermission(loader, 10, Permission.MANAGE_ALERTS, 200), "wrong role for the group");
+        assertTrue(index.hasResourcePermission(loader, 10, Permission.MANAGE_ALERTS, 1001));
+        assertFalse(index.hasResourcePermission(loader, 10, Permission.MANAGE_ALERTS, 2000));
+        assertTrue(index.canViewResource(loader, 10, 2000));
+        assertFalse(index.canViewResource(loader, 10, 3000));
+        assertTrue(index.canViewResources(loader, 10, Arrays.asList(1000, 2000)));
+        assertFalse(index.canViewResources(loader, 10, Arrays.asList(1000, 3000)));
+
+        assertFalse(index.canViewResource(loader, 11, 1000), "subject without roles");
+    }
+
+    public void loadsOnlyOnce() {
+        FakeLoader loader = new FakeLoader();
+        loader.subjects.put(10, Arrays.asList(1));
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000)));
+
+        PermissionIndex index = new PermissionIndex(true);
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(index.canViewResource(loader, 10, 1000));
+        }
+        assertEquals(loader.subjectLoads, 1);
+        assertEquals(loader.roleLoads, 1);
+    }
+
+    public void invalidationReloads() {
+        FakeLoader loader = new FakeLoader();
+        loader.subjects.put(10, Arrays.asList(1));
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000)));
+        loader.roles.put(2, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(200), Arrays.asList(2000)));
+
+        PermissionIndex index = new PermissionIndex(true);
+        assertFalse(index.canViewResource(loader, 10, 2000));
+
+        loader.subjects.put(10, Arrays.asList(1, 2));
+        assertFalse(index.canViewResource(loader, 10, 2000), "not invalidated yet");
+        index.invalidateSubject(10);
+        assertTrue(index.canViewResource(loader, 10, 2000));
+
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000, 1001)));
+        index.invalidateGroup(100);
+        assertTrue(index.canViewResource(loader, 10, 1001));
+        assertEquals(loader.roleLoads, 3, "only the role the group is assigned to is reloaded");
+
+        loader.roles.remove(2);
+        index.invalidateRole(2);
+        assertFalse(index.canViewResource(loader, 10, 2000), "deleted role");
+        assertNull(index.getRole(loader, 2));
+    }
+
+    public void changesOnOtherServersDropEntries() {
+        FakeLoader loader = new FakeLoader();
+        loader.subjects.put(10, Arrays.asList(1));
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000)));
+
+        PermissionIndex index = new PermissionIndex(true);
+        assertTrue(index.canViewResource(loader, 10, 1000));
+
+        loader.subjects.put(10, Collections.<Integer> emptyList());
+        assertTrue(index.canViewResource(loader, 10, 1000), "the database generation did not change");
+        assertEquals(loader.subjectLoads, 1);
+
+        // another server changed the subject and incremented the generation
+        ++loader.generation;
+        assertFalse(index.canViewResource(loader, 10, 1000));
+        assertEquals(loader.subjectLoads, 2);
+        assertEquals(loader.generationLoads, 3, "every check reads the generation");
+    }
+
+    public void loadRacingInvalidationIsNotKept() {
+        final PermissionIndex index = new PermissionIndex(true);
+        FakeLoader loader = new FakeLoader() {
+            @Override
+            public Collection<Integer> loadRoleIds(int subjectId) {
+                Collection<Integer> roleIds = super.loadRoleIds(subjectId);
+                // the subject changes after it was read, but before the read is cached
+                index.invalidateSubject(subjectId);
+                return roleIds;
+            }
+        };
+        loader.subjects.put(10, Arrays.asList(1));
+        loader.roles.put(1, role(EnumSet.of(Permission.MANAGE_ALERTS), Arrays.asList(100), Arrays.asList(1000)));
+
+        assertTrue(index.canViewResource(loader, 10, 1000));
+        assertEquals(index.size(), 1, "only the role is cached");
+    }
+
+    public void enabledByDefault() {
+        assertFalse(new PermissionIndex(false).isEnabled());
+        assertTrue(new PermissionIndex().isEnabled());
+    }
+
+    private static PermissionIndex.RoleEntry role(EnumSet<Permission> permissions, List<Integer> groupIds,
+        List<Integer> resourceIds) {
+        return new PermissionIndex.RoleEntry(permissions, groupIds, resourceIds);
+    }
+
+    private static class FakeLoader implements PermissionIndex.Loader {
+        Map<Integer, List<Integer>> subjects = new HashMap<Integer, List<Integer>>();
+        Map<Integer, PermissionIndex.RoleEntry> roles = new HashMap<Integer, PermissionIndex.RoleEntry>();
+        long generation;
+        int subjectLoads;
+        int roleLoads;
+        int generationLoads;
+
+        public long loadGeneration() {
+            ++generationLoads;
+            return generation;
+        }
+
+        public Collection<Integer> loadRoleIds(int subjectId) {
+            ++subjectLoads;
+            List<Integer> roleIds = subjects.get(subjectId);
+            return (roleIds != null) ? new ArrayList<Integer>(roleIds) : Collections.<Integer> emptyList();
+        }
+
+        public PermissionIndex.RoleEntry loadRole(int roleId) {
+            ++roleLoads;
+            return roles.get(roleId);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.rhq.enterprise.server.discovery;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.discovery.ResourceSyncHash;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+
+@Test
+public class ResourceSyncHashTreeTest {
+
+    public void rootHashCoversWholeTree() {
+        ResourceSyncHashTree tree = new ResourceSyncHashTree(rows());
+
+        long service = hash(4, "service", 1L, InventoryStatus.COMMITTED, 0L);
+        long server1 = hash(2, "server1", 1L, InventoryStatus.COMMITTED, service);
+        long server2 = hash(3, "server2", 1L, InventoryStatus.COMMITTED, 0L);
+        long platform = hash(1, "platform", 1L, InventoryStatus.COMMITTED, server1 + server2);
+
+        assertEquals(tree.get(1).getSubtreeHash(), platform);
+        assertEquals(tree.get(2).getSubtreeHash(), server1);
+        assertEquals(tree.getChildren(1).size(), 3, "DELETED children must be listed");
+        assertEquals(tree.getChildren(4).size(), 0);
+    }
+
+    public void rowOrderDoesNotMatter() {
+        List<Object[]> rows = rows();
+        long expected = new ResourceSyncHashTree(rows).get(1).getSubtreeHash();
+        Collections.reverse(rows);
+        assertEquals(new ResourceSyncHashTree(rows).get(1).getSubtreeHash(), expected);
+    }
+
+    public void changeOfDescendantChangesAncestors() {
+        ResourceSyncHashTree before = new ResourceSyncHashTree(rows());
+        List<Object[]> rows = rows();
+        rows.get(3)[2] = 2L; // mtime of the service
+        ResourceSyncHashTree after = new ResourceSyncHashTree(rows);
+
+        assertTrue(after.get(1).getSubtreeHash() != before.get(1).getSubtreeHash());
+        assertTrue(after.get(2).getSubtreeHash() != before.get(2).getSubtreeHash());
+        assertEquals(after.get(3).getSubtreeHash(), before.get(3).getSubtreeHash());
+    }
+
+    public void deletedResourcesDoNotContribute() {
+        List<Object[]> rows = rows();
+        long withDeleted = new ResourceSyncHashTree(rows).get(1).getSubtreeHash();
+        rows.remove(4);
+        ResourceSyncHashTree tree = new ResourceSyncHashTree(rows);
+        assertEquals(tree.get(1).getSubtreeHash(), withDeleted);
+        assertFalse(tree.contains(5));
+        assertTrue(tree.contains(4));
+    }
+
+    public void agentHashesMatchServerHashes() {
+        List<Object[]> rows = rows();
+        ResourceSyncHashTree tree = new ResourceSyncHashTree(rows);
+
+        // the agent's inventory of the same tree, plus a Resource it discovered but did not sync yet
+        Map<Integer, Resource> resources = new HashMap<Integer, Resource>();
+        for (Object[] row : rows) {
+            Resource resource = new Resource((Integer) row[0]);
+            resource.setUuid((String) row[1]);
+            resource.setMtime((Long) row[2]);
+            resource.setInventoryStatus((InventoryStatus) row[3]);
+            resources.put(resource.getId(), resource);
+        }
+        for (Object[] row : rows) {
+            if (row[4] != null) {
+                resources.get(row[4]).addChildResource(resources.get(row[0]));
+            }
+        }
+        Resource discovered = new Resource(0);
+        discovered.setUuid("discovered");
+        resources.get(2).addChildResource(discovered);
+
+        Map<String, Long> agentHashes = new HashMap<String, Long>();
+        long platform = ResourceSyncHash.computeSubtreeHashes(resources.get(1), agentHashes);
+
+        assertEquals(platform, tree.get(1).getSubtreeHash());
+        for (Object[] row : rows) {
+            assertEquals(agentHashes.get(row[1]), Long.valueOf(tree.get((Integer) row[0]).getSubtreeHash()),
+                "hashes differ for " + row[1]);
+        }
+        assertFalse(agentHashes.containsKey("discovered"));
+    }
+
+    private static long hash(int id, String uuid, long mtime, InventoryStatus status, long childSum) {
+        return ResourceSyncHash.subtreeHash(ResourceSyncHash.nodeHash(id, uuid, mtime, status), childSum);
+    }
+
+    private static List<Object[]> rows() {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[] { 1, "platform", 1L, InventoryStatus.COMMITTED, null });
+        rows.add(new Object[] { 2, "server1", 1L, InventoryStatus.COMMITTED, 1 });
+        rows.add(new Object[] { 3, "server2", 1L, InventoryStatus.COMMITTED, 1 });
+        rows.add(new Object[] { 4, "service", 1L, InventoryStatus.COMMITTED, 2 });
+        rows.add(new Object[] { 5, "gone", 1L, InventoryStatus.DELETED, 1 });
+        return rows;
+    }
+}
@@ -0,0 +1,81 @@
+package org.rhq.enterprise.server.event;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.event.EventDefinition;
+import org.rhq.core.domain.event.EventSource;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+
+@Test
+public class EventSourceIdCacheTest {
+
+    public void sourcesAreIdentifiedByDefinitionResourceAndLocation() {
+        EventSourceIdCache cache = new EventSourceIdCache(10);
+        cache.put(source("logEntry", "JBossAS7", 1, "/var/log/server.log"), 100);
+
+        assertEquals(cache.get(source("logEntry", "JBossAS7", 1, "/var/log/server.log")), Integer.valueOf(100),
+            "an equal source reported again");
+        assertNull(cache.get(source("logEntry", "JBossAS7", 2, "/var/log/server.log")), "other resource");
+        assertNull(cache.get(source("logEntry", "JBossAS7", 1, "/var/log/boot.log")), "other location");
+        assertNull(cache.get(source("errorLog", "JBossAS7", 1, "/var/log/server.log")), "other definition");
+        assertNull(cache.get(source("logEntry", "Apache", 1, "/var/log/server.log")), "other resource type");
+
+        cache.remove(source("logEntry", "JBossAS7", 1, "/var/log/server.log"));
+        assertNull(cache.get(source("logEntry", "JBossAS7", 1, "/var/log/server.log")));
+    }
+
+    public void leastRecentlyUsedSourceIsDropped() {
+        EventSourceIdCache cache = new EventSourceIdCache(2);
+        cache.put(source("logEntry", "JBossAS7", 1, "a"), 1);
+        cache.put(source("logEntry", "JBossAS7", 2, "b"), 2);
+        cache.get(source("logEntry", "JBossAS7", 1, "a"));
+        cache.put(source("logEntry", "JBossAS7", 3, "c"), 3);
+
+        assertEquals(cache.getCachedCount(), 2);
+        assertEquals(cache.get(source("logEntry", "JBossAS7", 1, "a")), Integer.valueOf(1));
+        assertNull(cache.get(source("logEntry", "JBossAS7", 2, "b")));
+    }
+
+    public void disabledWithZeroSize() {
+        EventSourceIdCache cache = new EventSourceIdCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put(source("logEntry", "JBossAS7", 1, "a"), 1);
+        assertNull(cache.get(source("logEntry", "JBossAS7", 1, "a")));
+        assertTrue(new EventSourceIdCache().isEnabled());
+    }
+
+    public void idsExpireAfterTheirTimeToLive() {
+        final long[] now = { 1000L };
+        EventSourceIdCache cache = new EventSourceIdCache(10, 500L) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        cache.put(source("logEntry", "JBossAS7", 1, "a"), 1);
+
+        now[0] = 1499L;
+        assertEquals(cache.get(source("logEntry", "JBossAS7", 1, "a")), Integer.valueOf(1));
+
+        now[0] = 1500L;
+        assertNull(cache.get(source("logEntry", "JBossAS7", 1, "a")),
+            "the source may have been deleted on another server in the meantime");
+        assertEquals(cache.getCachedCount(), 0, "an expired id should be dropped");
+
+        cache.put(source("logEntry", "JBossAS7", 1, "a"), 2);
+        assertEquals(cache.get(source("logEntry", "JBossAS7", 1, "a")), Integer.valueOf(2),
+            "a looked up id should be cached for its own time to live");
+    }
+
+    private static EventSource source(String definitionName, String resourceTypeName, int resourceId, String location) {
+        ResourceType resourceType = new ResourceType(resourceTypeName, "plugin", ResourceCategory.SERVER, null);
+        return new EventSource(location, new EventDefinition(resourceType, definitionName), new Resource(resourceId));
+    }
+}
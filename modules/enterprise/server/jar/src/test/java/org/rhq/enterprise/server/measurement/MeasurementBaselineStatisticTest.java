@@ -0,0 +1,91 @@
+package org.rhq.enterprise.server.measurement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+@Test
+public class MeasurementBaselineStatisticTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = MeasurementBaselineStatistic.DAY;
+
+    public void addIgnoresDataAlreadyAdded() {
+        MeasurementBaselineStatistic statistic = new MeasurementBaselineStatistic(1, 10 * DAY);
+        assertFalse(statistic.isPersisted());
+        assertFalse(statistic.isDirty());
+
+        assertTrue(statistic.add(10 * DAY + HOUR, 5.0, 4.0, 6.0));
+        assertTrue(statistic.add(10 * DAY + 2 * HOUR, 7.0, 1.0, 9.0));
+        assertFalse(statistic.add(10 * DAY + 2 * HOUR, 7.0, 1.0, 9.0), "same data point again");
+        assertFalse(statistic.add(10 * DAY + HOUR, 5.0, 4.0, 6.0), "older data point");
+
+        assertTrue(statistic.isDirty());
+        assertEquals(statistic.getSamples(), 2);
+        assertEquals(statistic.getSum(), 12.0);
+        assertEquals(statistic.getMin(), 1.0);
+        assertEquals(statistic.getMax(), 9.0);
+        assertEquals(statistic.getFirstTimestamp(), 10 * DAY + HOUR);
+        assertEquals(statistic.getLastTimestamp(), 10 * DAY + 2 * HOUR);
+    }
+
+    public void loadedStatisticIsNotDirty() {
+        MeasurementBaselineStatistic statistic = new MeasurementBaselineStatistic(1, 10 * DAY, 2, 12.0, 1.0, 9.0,
+            10 * DAY + HOUR, 10 * DAY + 2 * HOUR);
+        assertTrue(statistic.isPersisted());
+        assertFalse(statistic.isDirty());
+        assertFalse(statistic.add(10 * DAY + 2 * HOUR, 7.0, 1.0, 9.0));
+        assertTrue(statistic.add(10 * DAY + 3 * HOUR, 3.0, 0.0, 3.0));
+        assertTrue(statistic.isDirty());
+        assertEquals(statistic.getSamples(), 3);
+        assertEquals(statistic.getMin(), 0.0);
+    }
+
+    public void getDay() {
+        assertEquals(MeasurementBaselineStatistic.getDay(10 * DAY), 10 * DAY);
+        assertEquals(MeasurementBaselineStatistic.getDay(10 * DAY + 23 * HOUR), 10 * DAY);
+    }
+
+    public void baselineNeedsDataFromWindowStart() {
+        MeasurementBaselineStatistic day10 = new MeasurementBaselineStatistic(1, 10 * DAY);
+        day10.add(10 * DAY + 12 * HOUR, 2.0, 1.0, 3.0);
+        MeasurementBaselineStatistic day11 = new MeasurementBaselineStatistic(1, 11 * DAY);
+        day11.add(11 * DAY + HOUR, 4.0, 3.0, 8.0);
+
+        assertNull(MeasurementBaselineStatistic.computeBaseline(Arrays.asList(day10, day11), 10 * DAY + 6 * HOUR),
+            "no data at the start of the window");
+
+        double[] baseline = MeasurementBaselineStatistic.computeBaseline(Arrays.asList(day10, day11),
+            10 * DAY + 18 * HOUR);
+        assertNotNull(baseline);
+        assertEquals(baseline[0], 1.0);
+        assertEquals(baseline[1], 8.0);
+        assertEquals(baseline[2], 3.0);
+    }
+
+    public void baselineSkipsDaysBeforeWindow() {
+        MeasurementBaselineStatistic day9 = new MeasurementBaselineStatistic(1, 9 * DAY);
+        day9.add(9 * DAY + HOUR, 100.0, 100.0, 100.0);
+        MeasurementBaselineStatistic day10 = new MeasurementBaselineStatistic(1, 10 * DAY);
+        day10.add(10 * DAY + HOUR, 2.0, 1.0, 3.0);
+
+        double[] baseline = MeasurementBaselineStatistic.computeBaseline(Arrays.asList(day9, day10), 10 * DAY + HOUR);
+        assertEquals(baseline[0], 1.0);
+        assertEquals(baseline[1], 3.0);
+        assertEquals(baseline[2], 2.0);
+    }
+
+    public void oobFactor() {
+        assertEquals(MeasurementBaselineStatistic.getOOBFactor(5.0, 4.0, 6.0, 0.0, 10.0), 0.0, "within baseline");
+        assertEquals(MeasurementBaselineStatistic.getOOBFactor(12.0, 11.0, 15.0, 0.0, 10.0), 0.5);
+        assertEquals(MeasurementBaselineStatistic.getOOBFactor(5.0, -2.0, 6.0, 0.0, 10.0), 0.2);
+        assertEquals(MeasurementBaselineStatistic.getOOBFactor(10.1, 10.0, 10.2, 0.0, 10.0), 0.0, "too small");
+        assertEquals(MeasurementBaselineStatistic.getOOBFactor(20.0, 20.0, 20.0, 1.0, 1.05), 0.0, "narrow baseline");
+    }
+}
@@ -0,0 +1,167 @@
+package org.rhq.enterprise.server.measurement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.enterprise.server.util.TimingVoodoo;
+
+@Test
+public class MeasurementCompressionManagerBeanTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final String RAW_TABLE = "RHQ_MEAS_DATA_NUM_R00";
+
+    private final long now = TimingVoodoo.roundDownTime(System.currentTimeMillis(), HOUR);
+
+    private Map<Integer, Long> newestData;
+    private Map<Integer, Long> highWaterMarks;
+    private Map<Integer, Long> oldestData;
+    private List<String> queriedRanges;
+    private List<String> compressedIntervals;
+    private int failingScheduleId;
+    private TestBean bean;
+
+    @BeforeMethod
+    public void createBean() throws Exception {
+        System.setProperty(MeasurementCompressionManagerBean.THREADS_PROPERTY, "2");
+        newestData = new HashMap<Integer, Long>();
+        highWaterMarks = new HashMap<Integer, Long>();
+        oldestData = new HashMap<Integer, Long>();
+        queriedRanges = new ArrayList<String>();
+        compressedIntervals = new ArrayList<String>();
+        failingScheduleId = -1;
+
+        bean = new TestBean();
+        Field field = MeasurementCompressionManagerBean.class.getDeclaredField("compressionManager");
+        field.setAccessible(true);
+        field.set(bean, new TestBusinessInterface());
+    }
+
+    @AfterMethod
+    public void clearProperties() {
+        System.clearProperty(MeasurementCompressionManagerBean.THREADS_PROPERTY);
+    }
+
+    public void rangedCompressionIsOptIn() {
+        System.clearProperty(MeasurementCompressionManagerBean.THREADS_PROPERTY);
+        assertEquals(MeasurementCompressionManagerBean.getCompressionThreads(), 0);
+    }
+
+    public void skipsRangesWithoutNewData() throws Exception {
+        // range 0 was compressed three hours ago
+        newestData.put(0, now - 1);
+        highWaterMarks.put(0, now - 3 * HOUR);
+        oldestData.put(0, now - 2 * HOUR);
+        // range 3 was never compressed
+        newestData.put(3, now - 1);
+        oldestData.put(3, now - HOUR);
+        // range 7 has nothing newer than its last rollup
+        newestData.put(7, now - 5 * HOUR);
+        highWaterMarks.put(7, now - 5 * HOUR);
+
+        long last = bean.compressDataByScheduleRange(RAW_TABLE,
+            MeasurementCompressionManagerLocal.TAB_DATA_1H, HOUR, now);
+
+        assertEquals(last, now, "everything was compressed");
+        assertEquals(queriedRanges.size(), 2, "only the ranges with new data are queried: " + queriedRanges);
+        assertTrue(queriedRanges.contains("0..9999"));
+        assertTrue(queriedRanges.contains("30000..39999"));
+        assertEquals(compressedIntervals.size(), 3, compressedIntervals.toString());
+        assertTrue(compressedIntervals.contains("0@" + (now - 2 * HOUR)));
+        assertTrue(compressedIntervals.contains("0@" + (now - HOUR)));
+        assertTrue(compressedIntervals.contains("30000@" + (now - HOUR)));
+    }
+
+    public void failedIntervalHoldsBackPurge() throws Exception {
+        newestData.put(0, now - 1);
+        highWaterMarks.put(0, now - 3 * HOUR);
+        oldestData.put(0, now - 2 * HOUR);
+        newestData.put(3, now - 1);
+        oldestData.put(3, now - HOUR);
+        failingScheduleId = 30000;
+
+        long last = bean.compressDataByScheduleRange(RAW_TABLE,
+            MeasurementCompressionManagerLocal.TAB_DATA_1H, HOUR, now);
+
+        assertEquals(last, now - HOUR, "the failed interval of range 3 must not be purged");
+        assertEquals(compressedIntervals.size(), 2, compressedIntervals.toString());
+    }
+
+    public void emptyTableCompressesNothing() throws Exception {
+        long last = bean.compressDataByScheduleRange(RAW_TABLE,
+            MeasurementCompressionManagerLocal.TAB_DATA_1H, HOUR, now);
+
+        assertEquals(last, now);
+        assertTrue(queriedRanges.isEmpty());
+        assertTrue(compressedIntervals.isEmpty());
+    }
+
+    /**
+     * Answers the queries from the maps of the test instead of the database.
+     */
+    private class TestBean extends MeasurementCompressionManagerBean {
+        @Override
+        Map<Integer, Long> getTimestampsByScheduleRange(String function, String dataTable, int rangeSize,
+            long notBefore) {
+            assertEquals(function, "MAX");
+            return new HashMap<Integer, Long>(dataTable.equals(RAW_TABLE) ? newestData : highWaterMarks);
+        }
+
+        @Override
+        long getMinTimestamp(String dataTable, int minScheduleId, int maxScheduleId, long notBefore) {
+            queriedRanges.add(minScheduleId + ".." + maxScheduleId);
+            Long oldest = oldestData.get(minScheduleId / 10000);
+            return (oldest == null || oldest < notBefore) ? 0L : oldest;
+        }
+    }
+
+    /**
+     * Stands in for the container proxy: calls the bean synchronously and records the compressed intervals.
+     */
+    private class TestBusinessInterface implements MeasurementCompressionManagerLocal {
+        public void compressPurgeAndTruncate() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void compressAndPurgeTables(long now, long purge1h, long purge6h, long purge1d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int compressDataInterval(String fromTable, String toTable, long begin, long end) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Future<long[]> compressScheduleRange(String fromTable, String toTable, long interval, long now,
+            long begin, int minScheduleId, int maxScheduleId) throws SQLException {
+            return bean.compressScheduleRange(fromTable, toTable, interval, now, begin, minScheduleId, maxScheduleId);
+        }
+
+        public int compressDataIntervalForScheduleRange(String fromTable, String toTable, long begin, long end,
+            int minScheduleId, int maxScheduleId) throws SQLException {
+            if (minScheduleId == failingScheduleId) {
+                throw new SQLException("deadlock");
+            }
+            compressedIntervals.add(minScheduleId + "@" + begin);
+            return 1;
+        }
+
+        public int purgeMeasurementInterval(String tableName, long purgeAfter, long purgeBefore) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void truncateMeasurements(String tableName) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
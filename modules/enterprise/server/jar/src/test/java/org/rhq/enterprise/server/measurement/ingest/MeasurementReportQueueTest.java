@@ -0,0 +1,214 @@
+package org.rhq.enterprise.server.measurement.ingest;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.EJBException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.enterprise.server.measurement.ingest.MeasurementReportQueue.Overflow;
+
+@Test
+public class MeasurementReportQueueTest {
+
+    private File spoolDirectory;
+
+    @BeforeMethod
+    public void createSpoolDirectory() throws IOException {
+        spoolDirectory = File.createTempFile("ingest-spool", "");
+        spoolDirectory.delete();
+    }
+
+    @AfterMethod
+    public void deleteSpoolDirectory() {
+        delete(spoolDirectory);
+    }
+
+    public void shutdownStopsAcceptingAndWritesWhatIsQueued() throws Exception {
+        TestQueue queue = new TestQueue(Overflow.BLOCK);
+        queue.mergeTime = 20L;
+        queue.start();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(report(i)));
+        }
+
+        queue.shutdown();
+
+        assertEquals(queue.merged.size(), 10, "the queued reports should have been written before the writers stopped");
+        assertFalse(queue.offer(report(10)), "a stopped queue should leave the report to the caller");
+        assertEquals(queue.merged.size(), 10);
+    }
+
+    public void spoolsBeforeAcknowledging() throws Exception {
+        final TestQueue queue = new TestQueue(Overflow.SPOOL);
+        queue.blocked = new CountDownLatch(1);
+        queue.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(report(i)));
+        }
+
+        // the writer holds the first report, the others are on disk
+        assertTrue(queue.taken.await(10, TimeUnit.SECONDS));
+        assertEquals(queue.getDepths().get("shard-0"), Long.valueOf(2));
+
+        Thread release = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                }
+                queue.blocked.countDown();
+            }
+        };
+        release.start();
+        queue.shutdown();
+        assertEquals(queue.merged, Collections.singletonList(0), "shutdown should have waited for the writer");
+
+        TestQueue restarted = new TestQueue(Overflow.SPOOL);
+        restarted.start();
+        restarted.awaitMerged(2);
+        restarted.shutdown();
+        assertEquals(restarted.merged.size(), 2, "the spooled reports should have been replayed: " + restarted.merged);
+        assertTrue(restarted.merged.contains(1) && restarted.merged.contains(2), restarted.merged.toString());
+    }
+
+    public void retriesTransientFailures() throws Exception {
+        TestQueue queue = new TestQueue(Overflow.BLOCK);
+        queue.transientFailures = 2;
+        queue.start();
+        queue.offer(report(1));
+        queue.awaitMerged(1);
+        queue.shutdown();
+
+        assertEquals(queue.attempts, 3);
+        assertEquals(queue.getFailures().get("shard-0"), Long.valueOf(0));
+    }
+
+    public void countsReportsThatCannotBeMerged() throws Exception {
+        TestQueue queue = new TestQueue(Overflow.BLOCK);
+        queue.permanentFailures = 1;
+        queue.start();
+        queue.offer(report(1));
+        queue.offer(report(2));
+        queue.awaitMerged(1);
+        queue.shutdown();
+
+        assertEquals(queue.attempts, 2, "a non transient failure should not be retried");
+        assertEquals(queue.merged, Collections.singletonList(2));
+        assertEquals(queue.getFailures().get("shard-0"), Long.valueOf(1));
+    }
+
+    public void spoolsAgainWhenRetriesAreUsedUp() throws Exception {
+        TestQueue queue = new TestQueue(Overflow.SPOOL);
+        queue.transientFailures = 7;
+        queue.start();
+        queue.offer(report(1));
+        queue.awaitMerged(1);
+        queue.shutdown();
+
+        assertEquals(queue.attempts, 8);
+        assertEquals(queue.merged, Collections.singletonList(1));
+        assertEquals(queue.getFailures().get("shard-0"), Long.valueOf(0));
+    }
+
+    public void retriesBeforeTakingNewerReports() throws Exception {
+        TestQueue queue = new TestQueue(Overflow.SPOOL);
+        queue.transientFailures = 7;
+        queue.blocked = new CountDownLatch(1);
+        queue.start();
+        queue.offer(report(1));
+        queue.offer(report(2));
+        assertTrue(queue.taken.await(10, TimeUnit.SECONDS));
+        queue.blocked.countDown();
+        queue.awaitMerged(2);
+        queue.shutdown();
+
+        assertEquals(queue.merged, Arrays.asList(1, 2), "a report being retried should not be overtaken");
+        assertEquals(queue.attempts, 9);
+    }
+
+    private static MeasurementReport report(int id) {
+        MeasurementReport report = new MeasurementReport();
+        report.addData(new MeasurementDataNumeric(System.currentTimeMillis(), id, (double) id));
+        return report;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A single shard queue that keeps the schedule ids of the merged reports instead of writing them to the database.
+     */
+    private class TestQueue extends MeasurementReportQueue {
+        final List<Integer> merged = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch taken = new CountDownLatch(1);
+        volatile CountDownLatch blocked;
+        volatile long mergeTime;
+        volatile int transientFailures;
+        volatile int permanentFailures;
+        volatile int attempts;
+
+        TestQueue(Overflow overflow) {
+            super(true, 1, 100, overflow, spoolDirectory, 1000000L);
+        }
+
+        @Override
+        void merge(MeasurementReport report) {
+            attempts++;
+            taken.countDown();
+            try {
+                if (blocked != null) {
+                    blocked.await();
+                }
+                Thread.sleep(mergeTime);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (transientFailures > 0) {
+                transientFailures--;
+                throw new EJBException(new SQLTransientConnectionException("connection lost"));
+            }
+            if (permanentFailures > 0) {
+                permanentFailures--;
+                throw new EJBException(new SQLException("integrity constraint violated", "23000"));
+            }
+            merged.add(report.getNumericData().iterator().next().getScheduleId());
+        }
+
+        @Override
+        long getRetryDelay(int attempt) {
+            return 1L;
+        }
+
+        void awaitMerged(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000L;
+            while ((merged.size() < count) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10L);
+            }
+        }
+    }
+}
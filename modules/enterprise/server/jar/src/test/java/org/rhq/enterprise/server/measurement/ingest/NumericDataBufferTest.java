@@ -0,0 +1,119 @@
+package org.rhq.enterprise.server.measurement.ingest;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.ejb.EJBException;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+
+@Test
+public class NumericDataBufferTest {
+
+    public void dropsOnlyBadRows() {
+        TestBuffer buffer = new TestBuffer();
+        buffer.badScheduleIds.add(7);
+
+        buffer.add(data(100));
+        assertEquals(buffer.getBufferedRows(), 0);
+        assertEquals(buffer.stored.size(), 99);
+        assertFalse(buffer.stored.contains(7));
+        assertEquals(buffer.checked, buffer.stored, "alerts are checked for every stored row and only for them");
+    }
+
+    public void retriesTransientFailuresWithNextFlush() {
+        TestBuffer buffer = new TestBuffer();
+        buffer.transientFailures = 1;
+
+        buffer.add(data(10));
+        assertTrue(buffer.stored.isEmpty());
+        assertTrue(buffer.checked.isEmpty(), "no alerts for data that is not stored");
+        assertEquals(buffer.getBufferedRows(), 10);
+
+        buffer.flush();
+        assertEquals(buffer.getBufferedRows(), 0);
+        assertEquals(buffer.stored.size(), 10);
+        assertEquals(buffer.checked, buffer.stored);
+    }
+
+    public void dropsTransientFailuresAfterMaxAttempts() {
+        TestBuffer buffer = new TestBuffer();
+        buffer.transientFailures = Integer.MAX_VALUE;
+
+        buffer.add(data(10));
+        for (int i = 1; i < NumericDataBuffer.MAX_ATTEMPTS; i++) {
+            assertEquals(buffer.getBufferedRows(), 10);
+            buffer.flush();
+        }
+        assertEquals(buffer.getBufferedRows(), 0);
+        assertEquals(buffer.writes, NumericDataBuffer.MAX_ATTEMPTS);
+        assertTrue(buffer.stored.isEmpty());
+    }
+
+    public void recognizesTransientFailures() {
+        assertTrue(NumericDataBuffer.isTransient(new EJBException(new SQLTransientConnectionException())));
+        assertTrue(NumericDataBuffer.isTransient(new EJBException(new SQLException("deadlock", "40001"))));
+        assertTrue(NumericDataBuffer.isTransient(new RuntimeException(new SQLException("gone", "08006"))));
+        assertFalse(NumericDataBuffer.isTransient(new EJBException(new SQLException("duplicate", "23505"))));
+        assertFalse(NumericDataBuffer.isTransient(new RuntimeException()));
+    }
+
+    private static List<MeasurementDataNumeric> data(int count) {
+        long now = System.currentTimeMillis();
+        List<MeasurementDataNumeric> data = new ArrayList<MeasurementDataNumeric>();
+        for (int i = 0; i < count; i++) {
+            data.add(new MeasurementDataNumeric(now, i, (double) i));
+        }
+        return data;
+    }
+
+    /**
+     * Keeps the stored rows in memory instead of writing them to the database.
+     */
+    private static class TestBuffer extends NumericDataBuffer {
+        final Set<Integer> badScheduleIds = new HashSet<Integer>();
+        final Set<Integer> stored = new HashSet<Integer>();
+        final Set<Integer> checked = new HashSet<Integer>();
+        int transientFailures;
+        int writes;
+
+        TestBuffer() {
+            super(false, 1000, 1000L);
+        }
+
+        @Override
+        int writeBatch(NumericDataBatch batch) {
+            writes++;
+            if (transientFailures > 0) {
+                transientFailures--;
+                throw new EJBException(new SQLTransientConnectionException("connection lost"));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (badScheduleIds.contains(batch.getScheduleId(i))) {
+                    throw new EJBException(new SQLException("integrity constraint violated", "23000"));
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                stored.add(batch.getScheduleId(i));
+            }
+            return batch.size();
+        }
+
+        @Override
+        void notifyAlertConditions(NumericDataBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                checked.add(batch.getScheduleId(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.rhq.enterprise.server.measurement.storage;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.common.EntityContext;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowComposite;
+import org.rhq.enterprise.server.measurement.MeasurementAggregate;
+import org.rhq.enterprise.server.measurement.ingest.NumericDataBatch;
+
+@Test
+public class CachingMeasurementDataStoreTest {
+
+    private static final long WIDTH = 60L * 1000L;
+    private static final int POINTS = 10;
+    private static final long SETTLE = 2L * 60L * 1000L;
+
+    private CountingStore delegate;
+    private CachingMeasurementDataStore store;
+
+    @BeforeMethod
+    public void createStore() {
+        delegate = new CountingStore();
+        store = new CachingMeasurementDataStore(delegate, null, null, 1024L * 1024L, SETTLE, 60L * 60L * 1000L);
+    }
+
+    public void settledBucketsAreHits() {
+        // long ago, so every bucket has settled
+        long end = 100 * WIDTH;
+        List<MeasurementDataNumericHighLowComposite> first = store.findDataPoints(1, end - POINTS * WIDTH, end,
+            POINTS);
+        assertEquals(delegate.reads.size(), 1);
+        assertEquals(delegate.reads.get(0), "91:101:10", "the last bucket is the one that holds the end time");
+
+        List<MeasurementDataNumericHighLowComposite> second = store.findDataPoints(1, end - POINTS * WIDTH, end,
+            POINTS);
+        assertEquals(delegate.reads.size(), 1, "all buckets should have been cached");
+        assertEquals(values(second), values(first));
+        assertTrue(store.getCacheSize() > 0);
+
+        // a window that slid forward by one bucket only reads the new one
+        store.findDataPoints(1, end - (POINTS - 1) * WIDTH, end + WIDTH, POINTS);
+        assertEquals(delegate.reads.size(), 2);
+        assertEquals(delegate.reads.get(1), "101:102:1");
+    }
+
+    public void unsettledBucketsAreMisses() {
+        long end = (System.currentTimeMillis() / WIDTH) * WIDTH;
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+
+        assertEquals(delegate.reads.size(), 2);
+        // the bucket holding the end time and the ones that ended less than the settle time ago are read again
+        long endBucket = end / WIDTH;
+        String expected = (endBucket - 2) + ":" + (endBucket + 1) + ":3";
+        assertTrue(delegate.reads.get(1).equals(expected)
+            || delegate.reads.get(1).equals((endBucket - 1) + ":" + (endBucket + 1) + ":2"), delegate.reads.get(1));
+    }
+
+    public void newDataDropsItsBucket() {
+        long end = 100 * WIDTH;
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+        delegate.version = 1;
+
+        store.addNumericData(Collections.singletonList(new MeasurementDataNumeric(95 * WIDTH + 10, 1, 1.0)));
+        assertEquals(delegate.inserted, 1);
+
+        List<MeasurementDataNumericHighLowComposite> points = store.findDataPoints(1, end - POINTS * WIDTH, end,
+            POINTS);
+        assertEquals(delegate.reads.size(), 2);
+        assertEquals(delegate.reads.get(1), "95:96:1", "only the bucket of the new data should be read again");
+        assertEquals(points.get(4).getTimestamp(), 95 * WIDTH);
+        assertEquals(points.get(4).getValue(), 95.0 + 1000.0);
+        assertEquals(points.get(3).getValue(), 94.0, "the other buckets come from the cache");
+
+        // data of another schedule does not touch the series
+        store.addNumericData(Collections.singletonList(new MeasurementDataNumeric(95 * WIDTH + 10, 2, 1.0)));
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+        assertEquals(delegate.reads.size(), 2);
+    }
+
+    public void bucketsReadBeforeTheCommitAreDroppedAgain() {
+        FakeTransactionRegistry registry = new FakeTransactionRegistry();
+        store = new CachingMeasurementDataStore(delegate, null, registry, 1024L * 1024L, SETTLE, 60L * 60L * 1000L);
+        long end = 100 * WIDTH;
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+
+        registry.status = Status.STATUS_ACTIVE;
+        store.addNumericData(Collections.singletonList(new MeasurementDataNumeric(95 * WIDTH + 10, 1, 1.0)));
+        assertEquals(registry.synchronizations.size(), 1);
+
+        // a graph drawn before the insert commits still sees the old data, and caches it
+        store.findDataPoints(1, end - POINTS * WIDTH, end, POINTS);
+        assertEquals(delegate.reads.get(1), "95:96:1", "the bucket should have been dropped before the insert");
+
+        delegate.version = 1;
+        registry.status = Status.STATUS_COMMITTED;
+        registry.synchronizations.get(0).afterCompletion(Status.STATUS_COMMITTED);
+
+        List<MeasurementDataNumericHighLowComposite> points = store.findDataPoints(1, end - POINTS * WIDTH, end,
+            POINTS);
+        assertEquals(delegate.reads.size(), 3);
+        assertEquals(delegate.reads.get(2), "95:96:1", "the bucket should have been dropped again after the commit");
+        assertEquals(points.get(4).getValue(), 95.0 + 1000.0);
+    }
+
+    private static List<Double> values(List<MeasurementDataNumericHighLowComposite> points) {
+        List<Double> values = new ArrayList<Double>();
+        for (MeasurementDataNumericHighLowComposite point : points) {
+            values.add(point.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Hands out the status set by the test and keeps the synchronizations for the test to complete.
+     */
+    private static class FakeTransactionRegistry implements TransactionSynchronizationRegistry {
+        final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+        int status = Status.STATUS_NO_TRANSACTION;
+
+        public Object getTransactionKey() {
+            return null;
+        }
+
+        public void putResource(Object key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object getResource(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void registerInterposedSynchronization(Synchronization sync) {
+            synchronizations.add(sync);
+        }
+
+        public int getTransactionStatus() {
+            return status;
+        }
+
+        public void setRollbackOnly() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a point per bucket whose value is its start in widths (plus 1000 per version) and records each read as
+     * "begin:end:points", in widths.
+     */
+    private static class CountingStore implements MeasurementDataStore {
+        final List<String> reads = new ArrayList<String>();
+        int version;
+        int inserted;
+
+        public List<MeasurementDataNumericHighLowComposite> findDataPoints(int scheduleId, long beginTime,
+            long endTime, int numDataPoints) {
+            reads.add((beginTime / WIDTH) + ":" + (endTime / WIDTH) + ":" + numDataPoints);
+            long width = (endTime - beginTime) / numDataPoints;
+            List<MeasurementDataNumericHighLowComposite> result = new ArrayList<MeasurementDataNumericHighLowComposite>();
+            for (int i = 0; i < numDataPoints; i++) {
+                long timestamp = beginTime + (i * width);
+                double value = (timestamp / WIDTH) + (version * 1000.0);
+                result.add(new MeasurementDataNumericHighLowComposite(timestamp, value, value, value));
+            }
+            return result;
+        }
+
+        public int addNumericData(Collection<MeasurementDataNumeric> data) {
+            inserted += data.size();
+            return data.size();
+        }
+
+        public int addNumericData(NumericDataBatch batch) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<MeasurementDataNumeric> findRawData(int scheduleId, long beginTime, long endTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        public MeasurementDataNumeric getLatestValue(int scheduleId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public MeasurementAggregate getAggregate(int scheduleId, long beginTime, long endTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        public MeasurementAggregate getAggregate(int definitionId, EntityContext context, long beginTime,
+            long endTime) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<MeasurementDataNumericHighLowComposite> findDataPoints(int definitionId, EntityContext context,
+            long beginTime, long endTime, int numDataPoints) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo,
+            RollupVisitor visitor) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Long getLatestOneHourTimestamp() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void compressAndPurge(long now, long purge1h, long purge6h, long purge1d) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.rhq.enterprise.server.measurement.storage;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+
+@Test
+public class ColumnarFileMeasurementDataStoreTest {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+    private static final long DAY = 24L * HOUR;
+    private static final long MINUTE = 60L * 1000L;
+
+    // far enough in the past that nothing is purged before the test looks at it
+    private static final long BASE = 100L * DAY;
+    private static final long KEEP = 10000L * DAY;
+
+    private File directory;
+    private ColumnarFileMeasurementDataStore store;
+
+    @BeforeMethod
+    public void openStore() throws IOException {
+        directory = File.createTempFile("columnar", "");
+        directory.delete();
+        store = new ColumnarFileMeasurementDataStore(directory, null);
+    }
+
+    @AfterMethod
+    public void deleteStore() {
+        store.shutdown();
+        delete(directory);
+    }
+
+    public void rollsUpCompleteHours() throws Exception {
+        assertNull(store.getLatestOneHourTimestamp());
+
+        store.addNumericData(Arrays.asList(data(1, BASE + 10 * MINUTE, 1.0), data(1, BASE + 20 * MINUTE, 3.0),
+            data(2, BASE + 30 * MINUTE, 7.0), data(1, BASE + 70 * MINUTE, 5.0), data(1, BASE + 130 * MINUTE, 9.0)));
+        store.compressAndPurge(BASE + 2 * HOUR, KEEP, KEEP, KEEP);
+
+        assertEquals(scanOneHourData(1, 2, BASE - 1, BASE + 2 * HOUR), Arrays.asList("1@" + BASE + "=2.0[1.0,3.0]",
+            "1@" + (BASE + HOUR) + "=5.0[5.0,5.0]", "2@" + BASE + "=7.0[7.0,7.0]"));
+        assertEquals(scanOneHourData(2, 2, BASE - 1, BASE + 2 * HOUR), Arrays.asList("2@" + BASE + "=7.0[7.0,7.0]"));
+        assertEquals(scanOneHourData(1, 2, BASE, BASE + 2 * HOUR), Arrays.asList("1@" + (BASE + HOUR)
+            + "=5.0[5.0,5.0]"), "the lower bound is exclusive");
+        assertEquals(store.getLatestOneHourTimestamp(), Long.valueOf(BASE + HOUR));
+    }
+
+    public void rollUpIsNotRepeatedAfterCrash() throws Exception {
+        store.addNumericData(Arrays.asList(data(1, BASE + 10 * MINUTE, 1.0), data(1, BASE + 70 * MINUTE, 5.0)));
+        store.compressAndPurge(BASE + 2 * HOUR, KEEP, KEEP, KEEP);
+        store.shutdown();
+
+        // the rollup of the second hour was appended, but the crash came before the state file recorded it
+        Properties state = new Properties();
+        state.setProperty("1h", String.valueOf(BASE + HOUR));
+        OutputStream out = new FileOutputStream(new File(directory, "compression.properties"));
+        try {
+            state.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        store = new ColumnarFileMeasurementDataStore(directory, null);
+        store.addNumericData(Arrays.asList(data(1, BASE + 130 * MINUTE, 9.0)));
+        store.compressAndPurge(BASE + 3 * HOUR, KEEP, KEEP, KEEP);
+
+        assertEquals(scanOneHourData(1, 1, BASE - 1, BASE + 3 * HOUR), Arrays.asList("1@" + BASE + "=1.0[1.0,1.0]",
+            "1@" + (BASE + HOUR) + "=5.0[5.0,5.0]", "1@" + (BASE + 2 * HOUR) + "=9.0[9.0,9.0]"));
+        assertEquals(store.getLatestOneHourTimestamp(), Long.valueOf(BASE + 2 * HOUR));
+    }
+
+    private List<String> scanOneHourData(int firstScheduleId, int lastScheduleId, long after, long upTo) {
+        final List<String> rows = new ArrayList<String>();
+        store.scanOneHourData(firstScheduleId, lastScheduleId, after, upTo, new MeasurementDataStore.RollupVisitor() {
+            public void rollup(int scheduleId, long timestamp, double value, double min, double max) {
+                rows.add(scheduleId + "@" + timestamp + "=" + value + "[" + min + "," + max + "]");
+            }
+        });
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static MeasurementDataNumeric data(int scheduleId, long timestamp, double value) {
+        return new MeasurementDataNumeric(timestamp, scheduleId, value);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
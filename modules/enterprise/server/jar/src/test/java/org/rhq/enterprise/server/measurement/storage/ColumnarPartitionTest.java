@@ -0,0 +1,176 @@
+package org.rhq.enterprise.server.measurement.storage;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ColumnarPartitionTest {
+
+    private File file;
+    private ColumnarPartition partition;
+
+    @BeforeMethod
+    public void createFile() throws IOException {
+        file = File.createTempFile("columnar", ".dat");
+    }
+
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        if (partition != null) {
+            partition.close();
+            partition = null;
+        }
+        file.delete();
+    }
+
+    public void scansAppendedRows() throws IOException {
+        partition = new ColumnarPartition(file, 0, false);
+        appendRaw(new int[] { 1, 2, 2, 5 }, new long[] { 10, 10, 20, 10 });
+        appendRaw(new int[] { 2, 3 }, new long[] { 30, 30 });
+
+        assertEquals(scan(null, 0, 100), Arrays.asList("1@10", "2@10", "2@20", "2@30", "3@30", "5@10"));
+        assertEquals(scan(new int[] { 2 }, 0, 100), Arrays.asList("2@10", "2@20", "2@30"));
+        assertEquals(scan(new int[] { 2 }, 15, 30), Arrays.asList("2@20", "2@30"));
+        assertEquals(scan(new int[] { 4 }, 0, 100), Collections.<String> emptyList());
+        assertEquals(scan(new int[] { 1, 3, 5 }, 10, 30), Arrays.asList("1@10", "3@30", "5@10"));
+    }
+
+    public void slicedAndFullScansAgree() throws IOException {
+        partition = new ColumnarPartition(file, 0, false);
+        int[] scheduleIds = new int[100];
+        long[] timestamps = new long[100];
+        for (int i = 0; i < 100; i++) {
+            scheduleIds[i] = i * 2;
+            timestamps[i] = i;
+        }
+        appendRaw(scheduleIds, timestamps);
+
+        // few schedules are read slice by slice, many read the whole block
+        int[] few = { 4, 5, 6 };
+        int[] many = new int[50];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = i + 4;
+        }
+        assertEquals(scan(few, 0, 100), Arrays.asList("4@2", "6@3"));
+        List<String> expected = new ArrayList<String>();
+        for (int i = 2; i <= 26; i++) {
+            expected.add((i * 2) + "@" + i);
+        }
+        Collections.sort(expected);
+        assertEquals(scan(many, 0, 100), expected);
+    }
+
+    public void scansScheduleIdRange() throws IOException {
+        partition = new ColumnarPartition(file, 0, true);
+        partition.append(new int[] { 1, 5, 9, Integer.MAX_VALUE }, new long[] { 10, 10, 10, 10 }, new double[] { 1,
+            5, 9, 0 }, new double[] { 0, 4, 8, 0 }, new double[] { 2, 6, 10, 0 }, 4);
+
+        assertEquals(scan(5, 9, 0, 100), Arrays.asList("5@10", "9@10"));
+        assertEquals(scan(2, 4, 0, 100), Collections.<String> emptyList());
+        assertEquals(scan(9, Integer.MAX_VALUE, 0, 100), Arrays.asList("2147483647@10", "9@10"));
+        assertEquals(scan(1, 9, 11, 100), Collections.<String> emptyList());
+
+        final double[] row = new double[3];
+        partition.scan(5, 5, 0, 100, new ColumnarPartition.RowVisitor() {
+            public void row(int scheduleId, long timestamp, double value, double min, double max) {
+                row[0] = value;
+                row[1] = min;
+                row[2] = max;
+            }
+        });
+        assertEquals(row[0], 5.0);
+        assertEquals(row[1], 4.0);
+        assertEquals(row[2], 6.0);
+    }
+
+    public void knowsItsBlocks() throws IOException {
+        partition = new ColumnarPartition(file, 0, true);
+        assertEquals(partition.getMaxTime(), Long.MIN_VALUE);
+        assertFalse(partition.hasBlock(10));
+
+        appendRollup(new int[] { 1, 2 }, 10);
+        appendRollup(new int[] { 1 }, 20);
+
+        assertEquals(partition.getMaxTime(), 20);
+        assertTrue(partition.hasBlock(10));
+        assertTrue(partition.hasBlock(20));
+        assertFalse(partition.hasBlock(15));
+    }
+
+    public void cutsOffTornTail() throws IOException {
+        partition = new ColumnarPartition(file, 0, false);
+        appendRaw(new int[] { 1 }, new long[] { 10 });
+        long size = partition.getSize();
+        appendRaw(new int[] { 2, 3 }, new long[] { 20, 20 });
+        partition.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        partition = new ColumnarPartition(file, 0, false);
+        assertEquals(partition.getSize(), size);
+        assertEquals(file.length(), size);
+        assertEquals(scan(null, 0, 100), Arrays.asList("1@10"));
+
+        appendRaw(new int[] { 4 }, new long[] { 30 });
+        assertEquals(scan(null, 0, 100), Arrays.asList("1@10", "4@30"));
+    }
+
+    private void appendRaw(int[] scheduleIds, long[] timestamps) throws IOException {
+        double[] values = new double[scheduleIds.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = scheduleIds[i];
+        }
+        partition.append(scheduleIds, timestamps, values, null, null, scheduleIds.length);
+    }
+
+    private void appendRollup(int[] scheduleIds, long timestamp) throws IOException {
+        long[] timestamps = new long[scheduleIds.length];
+        Arrays.fill(timestamps, timestamp);
+        double[] values = new double[scheduleIds.length];
+        partition.append(scheduleIds, timestamps, values, values, values, scheduleIds.length);
+    }
+
+    private List<String> scan(int[] scheduleIds, long beginTime, long endTime) throws IOException {
+        Collector collector = new Collector();
+        partition.scan(scheduleIds, beginTime, endTime, collector);
+        return collector.getRows();
+    }
+
+    private List<String> scan(int firstScheduleId, int lastScheduleId, long beginTime, long endTime)
+        throws IOException {
+        Collector collector = new Collector();
+        partition.scan(firstScheduleId, lastScheduleId, beginTime, endTime, collector);
+        return collector.getRows();
+    }
+
+    private static class Collector implements ColumnarPartition.RowVisitor {
+        private final List<String> rows = new ArrayList<String>();
+
+        public void row(int scheduleId, long timestamp, double value, double min, double max) {
+            rows.add(scheduleId + "@" + timestamp);
+        }
+
+        List<String> getRows() {
+            Collections.sort(rows);
+            return rows;
+        }
+    }
+}
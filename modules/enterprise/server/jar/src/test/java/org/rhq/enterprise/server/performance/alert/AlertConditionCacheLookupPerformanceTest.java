@@ -0,0 +1,108 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.performance.alert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.core.util.collection.IntOpenHashMap;
+import org.rhq.enterprise.server.alert.engine.model.MeasurementNumericCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.NumericDoubleCacheElement;
+
+/**
+ * Measures the per data point cost of the measurement condition lookup done by
+ * <code>AgentConditionCache.checkConditions(MeasurementData...)</code> with about one million cached conditions,
+ * comparing the boxed-key HashMap it used to use with the {@link IntOpenHashMap} it uses now. The JMS round trip for
+ * matched conditions is left out so the numbers only reflect the cache itself.
+ */
+@Test(groups = "PERF")
+public class AlertConditionCacheLookupPerformanceTest {
+
+    private static final int SCHEDULES = 250000;
+    private static final int CONDITIONS_PER_SCHEDULE = 4;
+    private static final int DATA_POINTS = 5000000;
+    private static final int ROUNDS = 5;
+
+    public void testCheckConditionsLookup() {
+        Map<Integer, List<NumericDoubleCacheElement>> hashMapCache = new HashMap<Integer, List<NumericDoubleCacheElement>>();
+        IntOpenHashMap<List<NumericDoubleCacheElement>> intMapCache = new IntOpenHashMap<List<NumericDoubleCacheElement>>(
+            SCHEDULES);
+
+        int conditionId = 0;
+        for (int scheduleId = 0; scheduleId < SCHEDULES; scheduleId++) {
+            List<NumericDoubleCacheElement> elements = new ArrayList<NumericDoubleCacheElement>();
+            for (int i = 0; i < CONDITIONS_PER_SCHEDULE; i++) {
+                // thresholds that never match, like the overwhelming majority of conditions in practice
+                elements.add(new MeasurementNumericCacheElement(AlertConditionOperator.GREATER_THAN, 1.0E9,
+                    ++conditionId));
+            }
+            hashMapCache.put(scheduleId, elements);
+            intMapCache.put(scheduleId, elements);
+        }
+
+        Random random = new Random(17L);
+        int[] scheduleIds = new int[DATA_POINTS];
+        Double[] values = new Double[DATA_POINTS];
+        for (int i = 0; i < DATA_POINTS; i++) {
+            // include ids that have no conditions at all
+            scheduleIds[i] = random.nextInt(SCHEDULES * 2);
+            values[i] = random.nextDouble() * 100.0;
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int matches = 0;
+            for (int i = 0; i < DATA_POINTS; i++) {
+                matches += process(hashMapCache.get(scheduleIds[i]), values[i]);
+            }
+            long hashMapNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < DATA_POINTS; i++) {
+                matches += process(intMapCache.get(scheduleIds[i]), values[i]);
+            }
+            long intMapNanos = System.nanoTime() - start;
+
+            assert matches == 0 : "No condition should have matched";
+
+            System.out.println("Round " + round + ": " + (SCHEDULES * CONDITIONS_PER_SCHEDULE) + " conditions, "
+                + DATA_POINTS + " data points: HashMap=" + (hashMapNanos / DATA_POINTS) + "ns/datum, IntOpenHashMap="
+                + (intMapNanos / DATA_POINTS) + "ns/datum");
+        }
+    }
+
+    private static int process(List<NumericDoubleCacheElement> elements, Double value) {
+        if (elements == null) {
+            return 0;
+        }
+        int matches = 0;
+        for (int i = 0, size = elements.size(); i < size; i++) {
+            if (elements.get(i).matches(value)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.performance.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.core.domain.event.EventSeverity;
+import org.rhq.enterprise.server.alert.engine.model.EventCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.EventDetailsMatcher;
+
+/**
+ * Measures the per event cost of matching the event conditions of a resource with one thousand event details
+ * patterns, as done by <code>AgentConditionCache.checkConditions(EventSource, Event...)</code>, comparing evaluating
+ * every pattern with evaluating only the candidates selected by the {@link EventDetailsMatcher}. The JMS round trip
+ * for matched conditions is left out so the numbers only reflect the matching itself.
+ */
+@Test(groups = "PERF")
+public class EventDetailsMatcherPerformanceTest {
+
+    private static final int PATTERNS = 1000;
+    private static final int EVENTS = 2000;
+    private static final int ROUNDS = 5;
+
+    private static final String[] WORDS = { "connection", "deployment", "transaction", "session", "request",
+        "datasource", "timeout", "cache", "module", "handler", "thread", "socket", "queue", "listener", "service" };
+
+    public void testCheckConditionsMatching() {
+        Random random = new Random(17L);
+
+        List<EventCacheElement> elements = new ArrayList<EventCacheElement>();
+        List<String> matchingDetails = new ArrayList<String>();
+        for (int i = 0; i < PATTERNS; i++) {
+            // patterns like the ones users write for log events, each with a distinct code
+            String regex;
+            switch (i % 3) {
+            case 0:
+                regex = "ERR" + i + ": " + WORDS[random.nextInt(WORDS.length)] + " failed";
+                matchingDetails.add(regex);
+                break;
+            case 1:
+                regex = ".*" + WORDS[random.nextInt(WORDS.length)] + "\\s+\\d+ rejected by code " + i + ".*";
+                break;
+            default:
+                regex = "[Ww]arning W" + i + " .*" + WORDS[random.nextInt(WORDS.length)];
+            }
+            elements.add(new EventCacheElement(AlertConditionOperator.GREATER_THAN_OR_EQUAL_TO, regex,
+                EventSeverity.INFO, i + 1));
+        }
+
+        long start = System.nanoTime();
+        EventDetailsMatcher matcher = new EventDetailsMatcher(elements);
+        System.out.println("Compiled " + PATTERNS + " patterns (" + matcher.getFilteredCount() + " prefiltered) in "
+            + ((System.nanoTime() - start) / 1000000) + "ms");
+
+        String[] details = new String[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            StringBuilder detail = new StringBuilder("2012-11-05 10:15:42,123 WARN [org.example.Component] ");
+            for (int j = 0; j < 12; j++) {
+                detail.append(WORDS[random.nextInt(WORDS.length)]).append(' ').append(random.nextInt(100)).append(' ');
+            }
+            if (i % 100 == 0) {
+                // a few events that do match a condition
+                detail.append(matchingDetails.get(random.nextInt(matchingDetails.size())));
+            }
+            details[i] = detail.toString();
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            int allMatches = 0;
+            for (int i = 0; i < EVENTS; i++) {
+                allMatches += process(elements, details[i]);
+            }
+            long allNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int prefilteredMatches = 0;
+            for (int i = 0; i < EVENTS; i++) {
+                prefilteredMatches += process(matcher.getCandidates(details[i]), details[i]);
+            }
+            long prefilteredNanos = System.nanoTime() - start;
+
+            assert allMatches == prefilteredMatches : "Prefiltering changed the matches: " + allMatches + " != "
+                + prefilteredMatches;
+
+            System.out.println("Round " + round + ": " + PATTERNS + " patterns, " + EVENTS + " events, "
+                + allMatches + " matches: all patterns=" + (allNanos / EVENTS) + "ns/event, prefiltered="
+                + (prefilteredNanos / EVENTS) + "ns/event");
+        }
+    }
+
+    private static int process(List<EventCacheElement> elements, String detail) {
+        int matches = 0;
+        for (int i = 0, size = elements.size(); i < size; i++) {
+            if (elements.get(i).matches(EventSeverity.WARN, detail)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,74 @@
+package org.rhq.enterprise.server.resource.group.definition;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+@Test
+public class ManagedGroupMembershipTest {
+
+    public void addsAndRemovesTheDifference() {
+        ManagedGroupMembership membership = new ManagedGroupMembership();
+        membership.addPreviousMember(10, 1);
+        membership.addPreviousMember(10, 2);
+        membership.addPreviousMember(10, 3);
+
+        ManagedGroupMembership.Change change = membership.compare(10, Arrays.asList(2, 3, 4));
+
+        assertEquals(change.getIdsToAdd(), set(4));
+        assertEquals(change.getIdsToRemove(), set(1));
+        assertFalse(change.isEmpty());
+        assertTrue(membership.getRemainingMembers().isEmpty());
+    }
+
+    public void unchangedGroupNeedsNothing() {
+        ManagedGroupMembership membership = new ManagedGroupMembership();
+        membership.addPreviousMember(10, 1);
+        membership.addPreviousMember(10, 2);
+
+        ManagedGroupMembership.Change change = membership.compare(10, Arrays.asList(1, 2));
+
+        assertTrue(change.isEmpty());
+    }
+
+    public void newGroupGetsAllMatches() {
+        ManagedGroupMembership membership = new ManagedGroupMembership();
+
+        ManagedGroupMembership.Change change = membership.compare(20, Arrays.asList(5, 6));
+
+        assertEquals(change.getIdsToAdd(), set(5, 6));
+        assertEquals(change.getIdsToRemove(), Collections.<Integer> emptySet());
+    }
+
+    public void resourcesMovingBetweenGroupsAreRemovedFromTheOldOne() {
+        // resource 1 changed its group by value from the group 10 to the group 20, group 30 no longer has matches
+        ManagedGroupMembership membership = new ManagedGroupMembership();
+        membership.addPreviousMember(10, 1);
+        membership.addPreviousMember(10, 2);
+        membership.addPreviousMember(30, 3);
+
+        ManagedGroupMembership.Change toOld = membership.compare(10, Arrays.asList(2));
+        ManagedGroupMembership.Change toNew = membership.compare(20, Arrays.asList(1));
+
+        assertEquals(toOld.getIdsToAdd(), Collections.<Integer> emptySet());
+        assertEquals(toOld.getIdsToRemove(), set(1));
+        assertEquals(toNew.getIdsToAdd(), set(1));
+        assertEquals(toNew.getIdsToRemove(), Collections.<Integer> emptySet());
+
+        Map<Integer, Set<Integer>> remaining = membership.getRemainingMembers();
+        assertEquals(remaining.size(), 1);
+        assertEquals(remaining.get(30), set(3), "no result names group 30, so its recalculated members must go");
+    }
+
+    private static Set<Integer> set(Integer... ids) {
+        return new HashSet<Integer>(Arrays.asList(ids));
+    }
+}
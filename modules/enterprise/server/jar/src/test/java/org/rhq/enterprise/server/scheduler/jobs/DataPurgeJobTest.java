@@ -0,0 +1,222 @@
+package org.rhq.enterprise.server.scheduler.jobs;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.quartz.JobDataMap;
+import org.quartz.StatefulJob;
+import org.quartz.Trigger;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.enterprise.server.scheduler.SchedulerLocal;
+import org.rhq.enterprise.server.scheduler.jobs.DataPurgeJob.ChunkedPurge;
+import org.rhq.enterprise.server.scheduler.jobs.DataPurgeJob.Task;
+import org.rhq.enterprise.server.scheduler.jobs.DataPurgeJob.TaskRun;
+import org.rhq.enterprise.server.scheduler.jobs.mbean.DataPurgeMonitor;
+
+@Test
+public class DataPurgeJobTest {
+
+    private static final String GROUP = DataPurgeJob.class.getName();
+
+    @BeforeMethod
+    public void clearMonitor() {
+        DataPurgeMonitor.getMBean().clear();
+    }
+
+    public void tasksRunOneAfterTheOtherWithinTheHour() {
+        int previousEnd = 0;
+        for (Task task : Task.values()) {
+            int minute = Integer.parseInt(task.getCronString().split(" ")[1]);
+            assertTrue(minute >= previousEnd, task + " starts before the budget of the previous task is used up");
+            previousEnd = minute + (int) (task.getTimeBudget() / (60 * 1000L));
+        }
+
+        assertTrue(previousEnd <= 60, "the tasks of an hour should fit in the hour");
+        Task[] tasks = Task.values();
+        assertEquals(tasks[tasks.length - 1], Task.DATABASE_MAINTENANCE, "the database maintenance should run last");
+    }
+
+    public void timeBudgetCanBeOverridden() {
+        String property = "rhq.server.data-purge.trait-purge.time-budget";
+        assertEquals(Task.TRAIT_PURGE.getTimeBudget(), 5 * 60 * 1000L);
+
+        System.setProperty(property, "1234");
+        try {
+            assertEquals(Task.TRAIT_PURGE.getTimeBudget(), 1234L);
+            assertEquals(Task.EVENT_PURGE.getTimeBudget(), 5 * 60 * 1000L, "only the named task should change");
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    public void eachTaskHasAStatefulJobOfItsOwn() throws Exception {
+        RecordingScheduler recorder = new RecordingScheduler();
+
+        DataPurgeJob.scheduleTasks(recorder.proxy());
+
+        assertTrue(StatefulJob.class.isAssignableFrom(DataPurgeJob.class), "a task should not overlap with itself");
+        assertTrue(recorder.deletedJobs.contains(GROUP), "the job that used to run all tasks should be deleted");
+        assertEquals(recorder.cronJobs.size(), Task.values().length);
+        for (int i = 0; i < Task.values().length; i++) {
+            Task task = Task.values()[i];
+            Object[] args = recorder.cronJobs.get(i);
+            assertEquals(args[0], task.getTriggerName());
+            assertEquals(args[1], GROUP);
+            assertEquals(((JobDataMap) args[2]).getString(DataPurgeJob.DATAMAP_TASK), task.name());
+            assertEquals(args[3], DataPurgeJob.class);
+            assertEquals(args[4], Boolean.TRUE, "the job should be rescheduled on startup");
+            assertEquals(args[6], task.getCronString());
+        }
+    }
+
+    public void tasksRunAlongsideEachOther() throws Exception {
+        RecordingScheduler recorder = new RecordingScheduler();
+        recorder.running.add(Task.MEASUREMENT_COMPRESSION);
+        recorder.running.add(Task.EVENT_PURGE);
+
+        assertTrue(DataPurgeJob.mayRun(recorder.proxy(), new TaskRun(Task.ALERT_PURGE), 1L));
+    }
+
+    public void tasksSkipTheirRunWhileTheMaintenanceRuns() throws Exception {
+        RecordingScheduler recorder = new RecordingScheduler();
+        recorder.running.add(Task.DATABASE_MAINTENANCE);
+
+        assertFalse(DataPurgeJob.mayRun(recorder.proxy(), new TaskRun(Task.TRAIT_PURGE), 1L));
+    }
+
+    public void maintenanceWaitsForTheOtherTasks() throws Exception {
+        RecordingScheduler recorder = new RecordingScheduler();
+        recorder.running.add(Task.DRIFT_FILE_PURGE);
+        recorder.finishAfterChecks = 3;
+
+        assertTrue(DataPurgeJob.mayRun(recorder.proxy(), new TaskRun(Task.DATABASE_MAINTENANCE), 1L));
+        assertTrue(recorder.running.isEmpty());
+    }
+
+    public void maintenanceGivesUpWhenOutOfTime() throws Exception {
+        RecordingScheduler recorder = new RecordingScheduler();
+        recorder.running.add(Task.MEASUREMENT_COMPRESSION);
+        TaskRun run = new TaskRun(Task.DATABASE_MAINTENANCE, -1L);
+
+        assertFalse(DataPurgeJob.mayRun(recorder.proxy(), run, 1L));
+        assertTrue(run.budgetExceeded);
+    }
+
+    public void purgesInChunks() throws Exception {
+        final List<String> chunks = new ArrayList<String>();
+        TaskRun run = new TaskRun(Task.TRAIT_PURGE);
+        run.rowsPurged = 5;
+        DataPurgeMonitor.getMBean().startTask(Task.TRAIT_PURGE.name());
+
+        int purged = DataPurgeJob.purgeInChunks(run, 1, 10, 3, new ChunkedPurge() {
+            int purge(long first, long last) {
+                chunks.add(first + "-" + last);
+                return 2;
+            }
+        });
+
+        assertEquals(chunks.toString(), "[1-3, 4-6, 7-9, 10-10]");
+        assertEquals(purged, 8);
+        assertEquals(run.rowsPurged, 13L);
+        assertFalse(run.budgetExceeded);
+
+        Map<String, Object> stats = DataPurgeMonitor.getMBean().getStatistics().get(Task.TRAIT_PURGE.name());
+        assertEquals(stats.get("currentChunksDone"), 4L);
+        assertEquals(stats.get("currentChunkCount"), 4L);
+        assertEquals(stats.get("currentRowsPurged"), 13L);
+    }
+
+    public void stopsPurgingWhenOutOfTime() throws Exception {
+        final List<String> chunks = new ArrayList<String>();
+        TaskRun run = new TaskRun(Task.EVENT_PURGE, -1L);
+
+        int purged = DataPurgeJob.purgeInChunks(run, 1, 10, 3, new ChunkedPurge() {
+            int purge(long first, long last) {
+                chunks.add(first + "-" + last);
+                return 1;
+            }
+        });
+
+        assertEquals(purged, 0);
+        assertTrue(chunks.isEmpty(), "no chunk should be purged past the deadline: " + chunks);
+        assertTrue(run.budgetExceeded);
+    }
+
+    public void countsChunksPurgedBeforeAFailure() {
+        TaskRun run = new TaskRun(Task.ALERT_PURGE);
+
+        try {
+            DataPurgeJob.purgeInChunks(run, 0, 99, 10, new ChunkedPurge() {
+                int purge(long first, long last) throws Exception {
+                    if (first == 20) {
+                        throw new Exception("deadlock");
+                    }
+                    return 3;
+                }
+            });
+            fail("the failure should have been passed on");
+        } catch (Exception e) {
+            assertEquals(e.getMessage(), "deadlock");
+        }
+
+        assertEquals(run.rowsPurged, 6L, "the chunks committed before the failure stay purged");
+    }
+
+    /**
+     * Records the jobs scheduled and deleted through the {@link SchedulerLocal} methods
+     * {@link DataPurgeJob#scheduleTasks(SchedulerLocal)} uses, and reports the triggers of the tasks in
+     * <code>running</code> as blocked, like Quartz does while a stateful job runs.
+     */
+    private static class RecordingScheduler implements InvocationHandler {
+        final List<String> deletedJobs = new ArrayList<String>();
+        final List<Object[]> cronJobs = new ArrayList<Object[]>();
+        final Set<Task> running = EnumSet.noneOf(Task.class);
+        /**
+         * The number of times a running task is reported as blocked before it finishes, or -1 if it never does.
+         */
+        int finishAfterChecks = -1;
+
+        SchedulerLocal proxy() {
+            return (SchedulerLocal) Proxy.newProxyInstance(DataPurgeJobTest.class.getClassLoader(),
+                new Class<?>[] { SchedulerLocal.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("deleteJob")) {
+                assertEquals(args[1], GROUP);
+                deletedJobs.add((String) args[0]);
+                return Boolean.FALSE;
+            } else if (name.equals("scheduleCronJob")) {
+                cronJobs.add(args);
+                return null;
+            } else if (name.equals("getTriggerState")) {
+                assertEquals(args[1], GROUP);
+                for (Task task : running) {
+                    if (task.getTriggerName().equals(args[0])) {
+                        if (finishAfterChecks-- == 0) {
+                            running.remove(task);
+                            return Trigger.STATE_NORMAL;
+                        }
+                        return Trigger.STATE_BLOCKED;
+                    }
+                }
+                return Trigger.STATE_NORMAL;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
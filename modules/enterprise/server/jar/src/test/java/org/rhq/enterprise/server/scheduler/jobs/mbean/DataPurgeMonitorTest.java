@@ -0,0 +1,70 @@
+package org.rhq.enterprise.server.scheduler.jobs.mbean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class DataPurgeMonitorTest {
+
+    private DataPurgeMonitor monitor;
+
+    @BeforeMethod
+    public void createMonitor() {
+        monitor = new DataPurgeMonitor();
+        monitor.clear();
+    }
+
+    public void reportsProgressOfRunningTask() {
+        monitor.startTask("EVENT_PURGE");
+        monitor.updateProgress("EVENT_PURGE", 300L, 3L, 10L);
+
+        Map<String, Object> stats = monitor.getStatistics().get("EVENT_PURGE");
+        assertEquals(stats.get("running"), Boolean.TRUE);
+        assertEquals(stats.get("currentRowsPurged"), 300L);
+        assertEquals(stats.get("currentChunksDone"), 3L);
+        assertEquals(stats.get("currentChunkCount"), 10L);
+        assertEquals(stats.get("runCount"), 0L);
+        assertEquals(stats.get("avgExecutionTime"), 0.0, "a task that never finished has no average");
+    }
+
+    public void accumulatesFinishedRuns() {
+        monitor.startTask("TRAIT_PURGE");
+        monitor.finishTask("TRAIT_PURGE", true, false, 1000L, 2000L);
+        monitor.startTask("TRAIT_PURGE");
+        monitor.finishTask("TRAIT_PURGE", false, true, 500L, 4000L);
+
+        Map<String, Object> stats = monitor.getStatistics().get("TRAIT_PURGE");
+        assertEquals(stats.get("running"), Boolean.FALSE);
+        assertFalse(stats.containsKey("currentChunksDone"), "progress is only reported while the task runs");
+        assertEquals(stats.get("runCount"), 2L);
+        assertEquals(stats.get("failureCount"), 1L);
+        assertEquals(stats.get("budgetExceededCount"), 1L);
+        assertEquals(stats.get("lastExecutionTime"), 4000L);
+        assertEquals(stats.get("lastRowsPurged"), 500L);
+        assertEquals(stats.get("lastRowsPerSecond"), 125.0);
+        assertEquals(stats.get("maxExecutionTime"), 4000L);
+        assertEquals(stats.get("avgExecutionTime"), 3000.0);
+        assertEquals(stats.get("totalRowsPurged"), 1500L);
+        assertEquals(stats.get("avgRowsPerSecond"), 250.0);
+    }
+
+    public void keepsTasksApart() {
+        monitor.startTask("ALERT_PURGE");
+        monitor.finishTask("ALERT_PURGE", true, false, 10L, 10L);
+        monitor.startTask("DATABASE_MAINTENANCE");
+
+        Map<String, Map<String, Object>> stats = monitor.getStatistics();
+        assertEquals(stats.size(), 2);
+        assertEquals(stats.get("ALERT_PURGE").get("running"), Boolean.FALSE);
+        assertEquals(stats.get("DATABASE_MAINTENANCE").get("running"), Boolean.TRUE);
+
+        monitor.clear();
+        assertTrue(monitor.getStatistics().isEmpty());
+    }
+}
@@ -22,6 +22,7 @@ package org.rhq.enterprise.server.plugins.drift;
 import static org.rhq.enterprise.server.util.LookupUtil.getJPADriftServer;
 
 import java.io.File;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,8 +39,8 @@ import org.rhq.core.domain.drift.JPADriftChangeSet;
 import org.rhq.core.domain.util.PageList;
 import org.rhq.enterprise.server.plugin.pc.ServerPluginComponent;
 import org.rhq.enterprise.server.plugin.pc.ServerPluginContext;
+import org.rhq.enterprise.server.plugin.pc.drift.ChunkedDriftServerPluginFacet;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftChangeSetSummary;
-import org.rhq.enterprise.server.plugin.pc.drift.DriftServerPluginFacet;
 
 /**
  * A drift server-side plugin component that the server uses to process drift files.
@@ -47,7 +48,7 @@ import org.rhq.enterprise.server.plugin.pc.drift.DriftServerPluginFacet;
  * @author Jay Shaughnessy
  * @author John Sanda
  */
-public class JPADriftServerPluginComponent implements DriftServerPluginFacet, ServerPluginComponent {
+public class JPADriftServerPluginComponent implements ChunkedDriftServerPluginFacet, ServerPluginComponent {
 
     private final Log log = LogFactory.getLog(JPADriftServerPluginComponent.class);
 
@@ -118,6 +119,16 @@ public class JPADriftServerPluginComponent implements DriftServerPluginFacet, Se
         getJPADriftServer().storeFiles(subject, changeSetFilesZip);
     }
 
+    @Override
+    public DriftChangeSetSummary saveChunkedChangeSetFiles(Subject subject, File changeSetFilesZip) throws Exception {
+        return getJPADriftServer().storeFiles(subject, changeSetFilesZip);
+    }
+
+    @Override
+    public Set<String> findMissingDriftFileChunks(Subject subject, Set<String> chunkHashes) {
+        return getJPADriftServer().findMissingDriftFileChunks(subject, chunkHashes);
+    }
+
     @Override
     public void purgeByDriftDefinitionName(Subject subject, int resourceId, String driftDefName) throws Exception {
         getJPADriftServer().purgeByDriftDefinitionName(subject, resourceId, driftDefName);
@@ -126,6 +126,8 @@ public class ApacheVirtualHostServiceComponent implements ResourceComponent<Apac
             this.logParser = new ResponseTimeLogParser(logFile, RESPONSE_TIME_LOG_TIME_MULTIPLIER);
             this.logParser.setExcludes(responseTimeConfig.getExcludes());
             this.logParser.setTransforms(responseTimeConfig.getTransforms());
+            this.logParser.setOffsetFile(new File(this.resourceContext.getResourceDataDirectory(),
+                ResponseTimeLogParser.OFFSET_FILE_NAME));
         }
     }
 
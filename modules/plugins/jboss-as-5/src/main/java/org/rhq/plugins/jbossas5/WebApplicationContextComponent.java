@@ -96,6 +96,8 @@ public class WebApplicationContextComponent extends ManagedComponentComponent {
             this.logParser = new ResponseTimeLogParser(logFile);
             this.logParser.setExcludes(responseTimeConfig.getExcludes());
             this.logParser.setTransforms(responseTimeConfig.getTransforms());
+            this.logParser.setOffsetFile(new File(getResourceContext().getResourceDataDirectory(),
+                ResponseTimeLogParser.OFFSET_FILE_NAME));
         }
     }
 
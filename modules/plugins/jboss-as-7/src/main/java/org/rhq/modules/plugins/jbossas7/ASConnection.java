@@ -65,6 +65,9 @@ public class ASConnection {
     private static final String CONTENT_LENGTH_HTTP_HEADER = "Content-Length";
     private static final String ACCEPT_HTTP_HEADER = "Accept";
     private static final String CONTENT_TYPE_HTTP_HEADER = "Content-Type";
+    private static final String CONNECTION_HTTP_HEADER = "Connection";
+
+    private static final String KEEP_ALIVE = "keep-alive";
 
     private static final String JSON_MIME_TYPE = "application/json";
 
@@ -145,8 +148,28 @@ public class ASConnection {
      * @see #executeComplex(org.rhq.modules.plugins.jbossas7.json.Operation)
      */
     public JsonNode executeRaw(Operation operation, int timeoutSec) {
+        // Check for spaces in the path, which the AS7 server will reject. Log verbose error and
+        // generate failure indicator.
+        if ((operation != null) && (operation.getAddress() != null) && operation.getAddress().getPath() != null) {
+            if (containsSpaces(operation.getAddress().getPath())) {
+                Result noResult = new Result();
+                String outcome = "- Path '" + operation.getAddress().getPath()
+                    + "' is invalid as it contains spaces -";
+                if (verbose) {
+                    log.error(outcome);
+                }
+                noResult.setFailureDescription(outcome);
+                noResult.setOutcome("failure");
+                JsonNode invalidPathResult = mapper.valueToTree(noResult);
+                return invalidPathResult;
+            }
+        }
+
         long requestStartTime = System.currentTimeMillis();
+        boolean failed = true;
 
+        // The JRE keeps the connections to the server alive and reuses them for later requests, as long as the
+        // response is read completely and the connection is not disconnected. So only disconnect after errors.
         HttpURLConnection conn;
         OutputStream out;
         try {
@@ -155,6 +178,7 @@ public class ASConnection {
             conn.setRequestMethod(POST_HTTP_METHOD);
             conn.addRequestProperty(CONTENT_TYPE_HTTP_HEADER, JSON_MIME_TYPE);
             conn.addRequestProperty(ACCEPT_HTTP_HEADER, JSON_MIME_TYPE);
+            conn.addRequestProperty(CONNECTION_HTTP_HEADER, KEEP_ALIVE);
             conn.setInstanceFollowRedirects(false);
             int timeoutMillis = timeoutSec * 1000;
             conn.setConnectTimeout(timeoutMillis);
@@ -176,30 +200,13 @@ public class ASConnection {
             failure.setOutcome("failure");
             failure.setRhqThrowable(e);
             JsonNode ret = mapper.valueToTree(failure);
+            PluginStats.getInstance().incrementFailedRequestCount();
             return ret;
         }
 
         try {
-            String jsonToSend = mapper.writeValueAsString(operation);
-
-            // Check for spaces in the path, which the AS7 server will reject. Log verbose error and
-            // generate failure indicator.
-            if ((operation != null) && (operation.getAddress() != null) && operation.getAddress().getPath() != null) {
-                if (containsSpaces(operation.getAddress().getPath())) {
-                    Result noResult = new Result();
-                    String outcome = "- Path '" + operation.getAddress().getPath()
-                        + "' is invalid as it contains spaces -";
-                    if (verbose) {
-                        log.error(outcome);
-                    }
-                    noResult.setFailureDescription(outcome);
-                    noResult.setOutcome("failure");
-                    JsonNode invalidPathResult = mapper.valueToTree(noResult);
-                    return invalidPathResult;
-                }
-            }
-
             if (verbose) {
+                String jsonToSend = mapper.writeValueAsString(operation);
                 log.info("JSON to send: " + jsonToSend);
             }
 
@@ -210,10 +217,13 @@ public class ASConnection {
 
             ResponseStatus responseStatus = new ResponseStatus(conn);
             if (isAuthorizationFailureResponse(responseStatus.getResponseCode())) {
+                // read the response anyway, so the connection can be reused
+                getResponseBody(conn);
                 handleAuthorizationFailureResponse(operation, responseStatus);
             }
 
             String responseBody = getResponseBody(conn);
+            failed = responseStatus.getResponseCode() >= 400;
             if (responseStatus.getResponseCode() >= 400) {
                 if (verbose) {
                     log.debug(operation + " failed with " + responseStatus + " - response body was [" + responseBody
@@ -267,6 +277,7 @@ public class ASConnection {
             return operationResult;
         } catch (IllegalArgumentException iae) {
             log.error("Illegal argument for input " + operation + ": " + iae.getMessage());
+            conn.disconnect();
         } catch (SocketTimeoutException ste) {
             log.error(operation + " timed out: " + ste.getMessage());
             conn.disconnect();
@@ -289,6 +300,9 @@ public class ASConnection {
             PluginStats stats = PluginStats.getInstance();
             stats.incrementRequestCount();
             stats.addRequestTime(requestEndTime - requestStartTime);
+            if (failed) {
+                stats.incrementFailedRequestCount();
+            }
         }
 
         return null;
@@ -65,6 +65,7 @@ import org.rhq.core.pluginapi.operation.OperationResult;
 import org.rhq.core.pluginapi.util.StartScriptConfiguration;
 import org.rhq.modules.plugins.jbossas7.helper.ServerPluginConfiguration;
 import org.rhq.modules.plugins.jbossas7.json.Address;
+import org.rhq.modules.plugins.jbossas7.json.ComplexResult;
 import org.rhq.modules.plugins.jbossas7.json.CompositeOperation;
 import org.rhq.modules.plugins.jbossas7.json.Operation;
 import org.rhq.modules.plugins.jbossas7.json.PROPERTY_VALUE;
@@ -160,64 +161,101 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
      */
     public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) throws Exception {
 
+        List<MeasurementScheduleRequest> requests = new ArrayList<MeasurementScheduleRequest>(metrics.size());
         for (MeasurementScheduleRequest req : metrics) {
-
             if (req.getName().startsWith(INTERNAL))
                 processPluginStats(req, report);
-            else {
-                // Metrics from the application server
-
-                String reqName = req.getName();
-
-                ComplexRequest request = null;
-                Operation op;
-                if (reqName.contains(":")) {
-                    request = ComplexRequest.create(reqName);
-                    op = new ReadAttribute(address, request.getProp());
-                } else {
-                    op = new ReadAttribute(address, reqName); // TODO batching
-                }
+            else
+                requests.add(req); // Metrics from the application server
+        }
+        if (requests.isEmpty())
+            return;
+
+        // Read all attributes of the resource in one request rather than one request per metric. If that fails,
+        // fall back to reading the attributes one by one, so a single bad metric does not fail all of them.
+        Map<String, Object> attributes = null;
+        if (requests.size() > 1) {
+            attributes = readAttributes(requests.size());
+        }
 
+        for (MeasurementScheduleRequest req : requests) {
+
+            String reqName = req.getName();
+
+            ComplexRequest request = null;
+            String attributeName;
+            if (reqName.contains(":")) {
+                request = ComplexRequest.create(reqName);
+                attributeName = request.getProp();
+            } else {
+                attributeName = reqName;
+            }
+
+            Object val;
+            if (attributes != null) {
+                val = attributes.get(attributeName);
+            } else {
+                Operation op = new ReadAttribute(address, attributeName);
                 Result res = getASConnection().execute(op);
                 if (!res.isSuccess()) {
                     log.warn("Getting metric [" + req.getName() + "] at [ " + address + "] failed: "
                         + res.getFailureDescription());
                     continue;
                 }
+                val = res.getResult();
+            }
 
-                Object val = res.getResult();
-                if (val == null) // One of the AS7 ways of telling "This is not implemented" See also AS7-1454
-                    continue;
+            if (val == null) // One of the AS7 ways of telling "This is not implemented" See also AS7-1454
+                continue;
 
-                if (req.getDataType() == DataType.MEASUREMENT) {
-                    if (val instanceof String && ((String) val).startsWith("JBAS018003")) // AS7 way of saying "no value available"
-                        continue;
-                    try {
-                        if (request != null) {
-                            HashMap<String, Number> myValues = (HashMap<String, Number>) val;
-                            for (String key : myValues.keySet()) {
-                                String sub = request.getSub();
-                                if (key.equals(sub)) {
-                                    addMetric2Report(report, req, myValues.get(key));
-                                }
+            if (req.getDataType() == DataType.MEASUREMENT) {
+                if (val instanceof String && ((String) val).startsWith("JBAS018003")) // AS7 way of saying "no value available"
+                    continue;
+                try {
+                    if (request != null) {
+                        HashMap<String, Number> myValues = (HashMap<String, Number>) val;
+                        for (String key : myValues.keySet()) {
+                            String sub = request.getSub();
+                            if (key.equals(sub)) {
+                                addMetric2Report(report, req, myValues.get(key));
                             }
-                        } else {
-                            addMetric2Report(report, req, val);
                         }
-                    } catch (NumberFormatException e) {
-                        log.warn("Non numeric input for [" + req.getName() + "] : [" + val + "]");
+                    } else {
+                        addMetric2Report(report, req, val);
                     }
-                } else if (req.getDataType() == DataType.TRAIT) {
+                } catch (NumberFormatException e) {
+                    log.warn("Non numeric input for [" + req.getName() + "] : [" + val + "]");
+                }
+            } else if (req.getDataType() == DataType.TRAIT) {
 
-                    String realVal = getStringValue(val);
+                String realVal = getStringValue(val);
 
-                    MeasurementDataTrait data = new MeasurementDataTrait(req, realVal);
-                    report.addData(data);
-                }
+                MeasurementDataTrait data = new MeasurementDataTrait(req, realVal);
+                report.addData(data);
             }
         }
     }
 
+    /**
+     * Read all attributes, including the runtime ones, of this resource with a single read-resource.
+     * @param metricCount number of metrics the attributes are read for
+     * @return the attributes by name or null if they could not be read
+     */
+    private Map<String, Object> readAttributes(int metricCount) {
+        ReadResource op = new ReadResource(address);
+        op.includeRuntime(true);
+        ComplexResult res = getASConnection().executeComplex(op);
+        if (res == null || !res.isSuccess() || res.getResult() == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Reading the attributes at [" + address + "] failed, reading the metrics one by one: "
+                    + ((res != null) ? res.getFailureDescription() : null));
+            }
+            return null;
+        }
+        PluginStats.getInstance().addBatchedRequest(metricCount);
+        return res.getResult();
+    }
+
     private void addMetric2Report(MeasurementReport report, MeasurementScheduleRequest req, Object val) {
         Double d = Double.parseDouble(getStringValue(val));
         MeasurementDataNumeric data = new MeasurementDataNumeric(req, d);
@@ -255,6 +293,14 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
             val = (double) stats.getRequestTime();
         } else if (name.equals("maxTime")) {
             val = (double) stats.getMaxTime();
+        } else if (name.equals("failedRequests")) {
+            val = (double) stats.getFailedRequestCount();
+        } else if (name.equals("batchedRequests")) {
+            val = (double) stats.getBatchedRequestCount();
+        } else if (name.equals("savedRequests")) {
+            val = (double) stats.getSavedRequestCount();
+        } else if (name.equals("averageTime")) {
+            val = stats.getAverageRequestTime();
         } else
             val = Double.NaN;
 
@@ -13,9 +13,15 @@ public class PluginStats {
 
     AtomicLong requestCount = new AtomicLong();
     AtomicLong requestTime = new AtomicLong();
+    AtomicLong failedRequestCount = new AtomicLong();
+    // read-resource requests that replaced one read-attribute request per metric
+    AtomicLong batchedRequestCount = new AtomicLong();
+    AtomicLong savedRequestCount = new AtomicLong();
     private static final int FIFO_SIZE = 200; // Initial capacity
     List<Long> maxTime = new ArrayList<Long>(FIFO_SIZE);
     final Object lock = new Object();
+    private long lastAverageCount;
+    private long lastAverageTime;
 
 
     public static PluginStats getInstance() {
@@ -34,6 +40,19 @@ public class PluginStats {
         insertTime(l);
     }
 
+    public void incrementFailedRequestCount() {
+        failedRequestCount.incrementAndGet();
+    }
+
+    /**
+     * Record a request that read the values of several metrics at once
+     * @param metricCount number of metrics read by the request
+     */
+    public void addBatchedRequest(int metricCount) {
+        batchedRequestCount.incrementAndGet();
+        savedRequestCount.addAndGet(metricCount - 1);
+    }
+
     public long getRequestCount() {
         return requestCount.get();
     }
@@ -42,6 +61,36 @@ public class PluginStats {
         return requestTime.get();
     }
 
+    public long getFailedRequestCount() {
+        return failedRequestCount.get();
+    }
+
+    public long getBatchedRequestCount() {
+        return batchedRequestCount.get();
+    }
+
+    /**
+     * @return number of requests that were not sent because their metrics were read by batched requests
+     */
+    public long getSavedRequestCount() {
+        return savedRequestCount.get();
+    }
+
+    /**
+     * @return the average time of a request since the last call of this method
+     */
+    public double getAverageRequestTime() {
+        long count = requestCount.get();
+        long time = requestTime.get();
+        synchronized (lock) {
+            long intervalCount = count - lastAverageCount;
+            long intervalTime = time - lastAverageTime;
+            lastAverageCount = count;
+            lastAverageTime = time;
+            return (intervalCount > 0) ? (double) intervalTime / intervalCount : 0.0;
+        }
+    }
+
     public long getMaxTime() {
         long max = 0;
         synchronized (lock) {
@@ -69,6 +69,8 @@ public class WebRuntimeComponent extends BaseComponent<BaseComponent<?>> {
             this.responseTimeLogParser = new ResponseTimeLogParser(logFile);
             this.responseTimeLogParser.setExcludes(responseTimeConfig.getExcludes());
             this.responseTimeLogParser.setTransforms(responseTimeConfig.getTransforms());
+            this.responseTimeLogParser.setOffsetFile(new File(resourceContext.getResourceDataDirectory(),
+                ResponseTimeLogParser.OFFSET_FILE_NAME));
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("Cannot monitor response time for [" + resourceContext.getResourceKey()
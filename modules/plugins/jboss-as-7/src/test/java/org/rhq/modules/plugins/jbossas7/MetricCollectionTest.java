@@ -0,0 +1,136 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.modules.plugins.jbossas7;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.modules.plugins.jbossas7.json.ComplexResult;
+import org.rhq.modules.plugins.jbossas7.json.Operation;
+import org.rhq.modules.plugins.jbossas7.json.Result;
+
+/**
+ * Test the collection of metrics from the management API
+ */
+@Test(groups = "unit")
+public class MetricCollectionTest {
+
+    public void readsAllMetricsWithOneRequest() throws Exception {
+        Map<String, Object> usage = new HashMap<String, Object>();
+        usage.put("used", 5);
+        usage.put("max", 10);
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("active-count", 3);
+        attributes.put("usage", usage);
+        attributes.put("name", "pool");
+        attributes.put("not-implemented", null);
+        ComplexResult result = new ComplexResult();
+        result.setOutcome(Result.SUCCESS);
+        result.setResult(attributes);
+
+        ASConnection connection = mock(ASConnection.class);
+        when(connection.executeComplex(any(Operation.class))).thenReturn(result);
+
+        MeasurementReport report = new MeasurementReport();
+        long batchedRequests = PluginStats.getInstance().getBatchedRequestCount();
+        createComponent(connection).getValues(report, requests());
+
+        verify(connection, times(1)).executeComplex(any(Operation.class));
+        verify(connection, never()).execute(any(Operation.class));
+        Assert.assertEquals(PluginStats.getInstance().getBatchedRequestCount(), batchedRequests + 1);
+        Assert.assertEquals(report.getNumericData().size(), 2);
+        for (MeasurementDataNumeric data : report.getNumericData()) {
+            Assert.assertEquals(data.getValue().doubleValue(), (data.getName().equals("active-count")) ? 3.0 : 5.0,
+                0.0);
+        }
+        Assert.assertEquals(report.getTraitData().size(), 1);
+        Assert.assertEquals(report.getTraitData().iterator().next().getValue(), "pool");
+    }
+
+    public void fallsBackToSingleReads() throws Exception {
+        ComplexResult failure = new ComplexResult();
+        failure.setOutcome("failed");
+        Result result = new Result();
+        result.setOutcome(Result.SUCCESS);
+        result.setResult(7);
+
+        ASConnection connection = mock(ASConnection.class);
+        when(connection.executeComplex(any(Operation.class))).thenReturn(failure);
+        when(connection.execute(any(Operation.class))).thenReturn(result);
+
+        MeasurementReport report = new MeasurementReport();
+        Set<MeasurementScheduleRequest> requests = new HashSet<MeasurementScheduleRequest>();
+        requests.add(new MeasurementScheduleRequest(1, "active-count", 60000, true, DataType.MEASUREMENT));
+        requests.add(new MeasurementScheduleRequest(2, "max-count", 60000, true, DataType.MEASUREMENT));
+        createComponent(connection).getValues(report, requests);
+
+        verify(connection, times(2)).execute(any(Operation.class));
+        Assert.assertEquals(report.getNumericData().size(), 2);
+    }
+
+    public void singleMetricIsReadDirectly() throws Exception {
+        Result result = new Result();
+        result.setOutcome(Result.SUCCESS);
+        result.setResult(7);
+
+        ASConnection connection = mock(ASConnection.class);
+        when(connection.execute(any(Operation.class))).thenReturn(result);
+
+        MeasurementReport report = new MeasurementReport();
+        Set<MeasurementScheduleRequest> requests = new HashSet<MeasurementScheduleRequest>();
+        requests.add(new MeasurementScheduleRequest(1, "active-count", 60000, true, DataType.MEASUREMENT));
+        createComponent(connection).getValues(report, requests);
+
+        verify(connection, never()).executeComplex(any(Operation.class));
+        Assert.assertEquals(report.getNumericData().size(), 1);
+    }
+
+    private static BaseComponent<?> createComponent(ASConnection connection) {
+        BaseComponent<?> component = new BaseComponent();
+        component.setConnection(connection);
+        component.setPath("subsystem=datasources,data-source=ExampleDS");
+        return component;
+    }
+
+    private static Set<MeasurementScheduleRequest> requests() {
+        Set<MeasurementScheduleRequest> requests = new HashSet<MeasurementScheduleRequest>();
+        requests.add(new MeasurementScheduleRequest(1, "active-count", 60000, true, DataType.MEASUREMENT));
+        requests.add(new MeasurementScheduleRequest(2, "usage:used", 60000, true, DataType.MEASUREMENT));
+        requests.add(new MeasurementScheduleRequest(3, "name", 60000, true, DataType.TRAIT));
+        requests.add(new MeasurementScheduleRequest(4, "not-implemented", 60000, true, DataType.MEASUREMENT));
+        requests.add(new MeasurementScheduleRequest(5, "missing", 60000, true, DataType.MEASUREMENT));
+        return requests;
+    }
+}
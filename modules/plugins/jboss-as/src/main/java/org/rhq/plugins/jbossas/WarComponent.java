@@ -145,6 +145,8 @@ public class WarComponent extends ApplicationComponent implements OperationFacet
             this.logParser = new ResponseTimeLogParser(logFile);
             this.logParser.setExcludes(responseTimeConfig.getExcludes());
             this.logParser.setTransforms(responseTimeConfig.getTransforms());
+            this.logParser.setOffsetFile(new File(getResourceContext().getResourceDataDirectory(),
+                ResponseTimeLogParser.OFFSET_FILE_NAME));
         }
     }
 
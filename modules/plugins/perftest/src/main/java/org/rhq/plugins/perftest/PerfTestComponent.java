@@ -37,6 +37,7 @@ import org.rhq.core.domain.measurement.MeasurementDataTrait;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.domain.measurement.calltime.CallTimeData;
+import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.pluginapi.configuration.ConfigurationFacet;
 import org.rhq.core.pluginapi.configuration.ConfigurationUpdateReport;
 import org.rhq.core.pluginapi.content.ContentFacet;
@@ -46,6 +47,7 @@ import org.rhq.core.pluginapi.event.EventPoller;
 import org.rhq.core.pluginapi.inventory.InvalidPluginConfigurationException;
 import org.rhq.core.pluginapi.inventory.ResourceComponent;
 import org.rhq.core.pluginapi.inventory.ResourceContext;
+import org.rhq.core.pluginapi.measurement.BatchMeasurementFacet;
 import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.pluginapi.operation.OperationFacet;
 import org.rhq.core.pluginapi.operation.OperationResult;
@@ -57,17 +59,19 @@ import org.rhq.plugins.perftest.trait.TraitFactory;
 
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Arrays;
 
 /**
- * RHQ resource component for handling resources defined in a performance test scenario.
+ * RHQ resource component for handling resources defined in a performance test scenario. The measurements of child
+ * resources can be collected in batches through their parent, since the values only depend on the resource type.
  *
  * @author Jason Dobies
  */
-public class PerfTestComponent implements ResourceComponent, MeasurementFacet, ContentFacet, ConfigurationFacet,
-    OperationFacet {
+public class PerfTestComponent implements ResourceComponent, MeasurementFacet, BatchMeasurementFacet, ContentFacet,
+    ConfigurationFacet, OperationFacet {
     // Attributes  --------------------------------------------
     private Log log = LogFactory.getLog(PerfTestComponent.class);
 
@@ -105,7 +109,49 @@ public class PerfTestComponent implements ResourceComponent, MeasurementFacet, C
         if (!scenarioManager.isEnabled())
             return;
 
-        String resourceTypeName = resourceContext.getResourceType().getName();
+        addValues(report, metrics, resourceContext.getResourceType().getName());
+    }
+
+    // BatchMeasurementFacet Implementation  --------------------------------------------
+
+    public boolean isBatchCollectionSupported(ResourceType childResourceType) {
+        // all perftest children are generated the same way this resource is
+        return resourceContext.getResourceType().getChildResourceTypes().contains(childResourceType);
+    }
+
+    public void getValues(MeasurementReport report, Map<String, Set<MeasurementScheduleRequest>> metrics)
+        throws Exception {
+        ScenarioManager scenarioManager = ScenarioManager.getInstance();
+        if (!scenarioManager.isEnabled())
+            return;
+
+        for (Map.Entry<String, Set<MeasurementScheduleRequest>> entry : metrics.entrySet()) {
+            addValues(report, entry.getValue(), getChildResourceTypeName(entry.getKey()));
+        }
+    }
+
+    /**
+     * Returns the name of the type of a child resource. The resource keys are generated by the
+     * {@link org.rhq.plugins.perftest.resource.SimpleResourceFactory} as the type name followed by a dash and the
+     * index of the resource.
+     */
+    private String getChildResourceTypeName(String childResourceKey) throws Exception {
+        int dash = childResourceKey.lastIndexOf('-');
+        if (dash > 0) {
+            String resourceTypeName = childResourceKey.substring(0, dash);
+            for (ResourceType childType : resourceContext.getResourceType().getChildResourceTypes()) {
+                if (childType.getName().equals(resourceTypeName)) {
+                    return resourceTypeName;
+                }
+            }
+        }
+
+        throw new Exception("Resource key [" + childResourceKey + "] is not the key of a child of ["
+            + resourceContext.getResourceKey() + "]");
+    }
+
+    private void addValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics, String resourceTypeName) {
+        ScenarioManager scenarioManager = ScenarioManager.getInstance();
         /* Currently this will use the same value generator for each metric defined for the resource type.
          * In other words, you either get values for every metric defined for the resource type or for none. There may
          * be an eventual need for finer grained control.
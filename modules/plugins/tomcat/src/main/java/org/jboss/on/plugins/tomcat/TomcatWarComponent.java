@@ -182,6 +182,8 @@ public class TomcatWarComponent extends MBeanResourceComponent<TomcatVHostCompon
             this.logParser = new ResponseTimeLogParser(logFile);
             this.logParser.setExcludes(responseTimeConfig.getExcludes());
             this.logParser.setTransforms(responseTimeConfig.getTransforms());
+            this.logParser.setOffsetFile(new File(getResourceContext().getResourceDataDirectory(),
+                ResponseTimeLogParser.OFFSET_FILE_NAME));
         }
     }
 